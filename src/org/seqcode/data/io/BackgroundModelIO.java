@@ -3,6 +3,12 @@
  */
 package org.seqcode.data.io;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.HashMap;
@@ -31,6 +37,15 @@ public class BackgroundModelIO {
   public static final Pattern BG_LINE_COUNTS_PATTERN = Pattern.compile(BG_LINE_COUNTS_REG_EX);
   public static final Pattern BG_LINE_PROBS_PATTERN = Pattern.compile(BG_LINE_PROBS_REG_EX);
 
+  /**
+   * Binary format: magic, version, model type, max kmer length, model name,
+   * then for each kmer length k the 4^k values in kmer index order (longs for
+   * counts models, doubles for frequency and markov models)
+   */
+  public static final int BINARY_MAGIC = 0x5342474d; //"SBGM"
+  public static final int BINARY_VERSION = 1;
+  private static final byte BINARY_COUNTS = 0, BINARY_FREQUENCY = 1, BINARY_MARKOV = 2;
+
   public static void main(String[] args) {
   	try {
   		MarkovBackgroundModel mbg = BackgroundModelIO.parseMarkovBackgroundModel("mm8.back", Genome.findGenome("mm8"));
@@ -143,7 +158,7 @@ public class BackgroundModelIO {
             throw new ParseException("Expected index " + j + " and kmer " + BackgroundModel.int2seq(j, (i + 1))
                 + ", but got " + lines[lineIndex], 0);
           }
-          int count = Integer.valueOf(bgLineMatcher.group(3));
+          long count = Long.valueOf(bgLineMatcher.group(3));
           model.setKmerCount(mer, count);
           lineIndex++;
         }
@@ -332,4 +347,154 @@ public class BackgroundModelIO {
       }
     }
   }
+
+
+  /**
+   * Write out the background model to a file in the binary format
+   * @param bgModel
+   * @param filename
+   * @throws IOException
+   */
+  public static void writeBinary(BackgroundModel bgModel, String filename) throws IOException {
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+    try {
+      dos.writeInt(BINARY_MAGIC);
+      dos.writeInt(BINARY_VERSION);
+      writeBinaryModel(bgModel, dos);
+    }
+    finally {
+      dos.close();
+    }
+  }
+
+
+  /**
+   * Write a background model's type, name and values (the body of the binary
+   * format, without the file header) to a stream
+   * @param bgModel
+   * @param dos
+   * @throws IOException
+   */
+  public static void writeBinaryModel(BackgroundModel bgModel, DataOutputStream dos) throws IOException {
+    byte type;
+    if (bgModel instanceof CountsBackgroundModel) {
+      type = BINARY_COUNTS;
+    }
+    else if (bgModel instanceof FrequencyBackgroundModel) {
+      type = BINARY_FREQUENCY;
+    }
+    else if (bgModel instanceof MarkovBackgroundModel) {
+      type = BINARY_MARKOV;
+    }
+    else {
+      throw new IllegalArgumentException("Unsupported background model class: " + bgModel.getClass().getName());
+    }
+    dos.writeByte(type);
+    dos.writeInt(bgModel.getMaxKmerLen());
+    dos.writeUTF(bgModel.getName() == null ? "" : bgModel.getName());
+    for (int i = 1; i <= bgModel.getMaxKmerLen(); i++) {
+      for (int j = 0; j < (1 << (2 * i)); j++) {
+        if (type == BINARY_COUNTS) {
+          dos.writeLong(((CountsBackgroundModel)bgModel).getKmerCount(j, i));
+        }
+        else if (type == BINARY_FREQUENCY) {
+          dos.writeDouble(((FrequencyBackgroundModel)bgModel).getFrequency(j, i));
+        }
+        else {
+          dos.writeDouble(bgModel.getMarkovProb(j, i));
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Parse a background model written by writeBinary. The class of the
+   * returned model (counts, frequency or markov) is the class that was
+   * written.
+   * @param filename
+   * @param gen
+   * @return
+   * @throws IOException
+   * @throws ParseException
+   */
+  public static BackgroundModel parseBinaryBackgroundModel(String filename, Genome gen) throws IOException, ParseException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+    try {
+      if (dis.readInt() != BINARY_MAGIC) {
+        throw new ParseException(filename + " is not a binary background model file", 0);
+      }
+      int version = dis.readInt();
+      if (version != BINARY_VERSION) {
+        throw new ParseException("Unsupported binary background model version " + version + " in " + filename, 4);
+      }
+      return readBinaryModel(dis, gen, filename);
+    }
+    finally {
+      dis.close();
+    }
+  }
+
+
+  /**
+   * Read a background model written by writeBinaryModel from a stream
+   * @param dis
+   * @param gen
+   * @param source the name of the stream's source, used for unnamed models
+   * and in error messages
+   * @return
+   * @throws IOException
+   * @throws ParseException
+   */
+  public static BackgroundModel readBinaryModel(DataInputStream dis, Genome gen, String source) throws IOException, ParseException {
+    byte type = dis.readByte();
+    int maxKmerLen = dis.readInt();
+    String name = dis.readUTF();
+    if (name.length() == 0) {
+      name = source;
+    }
+
+    if (type == BINARY_COUNTS) {
+      CountsBackgroundModel model = new CountsBackgroundModel(name, gen, maxKmerLen);
+      for (int i = 1; i <= maxKmerLen; i++) {
+        for (int j = 0; j < (1 << (2 * i)); j++) {
+          model.setKmerCount(BackgroundModel.int2seq(j, i), dis.readLong());
+        }
+      }
+      return model;
+    }
+    else if (type == BINARY_FREQUENCY) {
+      FrequencyBackgroundModel model = new FrequencyBackgroundModel(name, gen, maxKmerLen);
+      for (int i = 1; i <= maxKmerLen; i++) {
+        HashMap<String, Double> probs = new HashMap<String, Double>();
+        double total = 0;
+        for (int j = 0; j < (1 << (2 * i)); j++) {
+          double freq = dis.readDouble();
+          probs.put(BackgroundModel.int2seq(j, i), freq);
+          total += freq;
+        }
+        //an empty model has no frequencies to set
+        if (total > 0) {
+          model.setKmerFrequencies(probs);
+        }
+      }
+      return model;
+    }
+    else if (type == BINARY_MARKOV) {
+      MarkovBackgroundModel model = new MarkovBackgroundModel(name, gen, maxKmerLen);
+      for (int i = 1; i <= maxKmerLen; i++) {
+        for (int j = 0; j < (1 << (2 * i)); j += 4) {
+          double a = dis.readDouble(), c = dis.readDouble(), g = dis.readDouble(), t = dis.readDouble();
+          //keep the model sparse: unset contexts were written as zeros
+          if (a + c + g + t > 0) {
+            model.setNormalizedMarkovProb(BackgroundModel.int2seq(j, i).substring(0, i - 1), a, c, g, t);
+          }
+        }
+      }
+      return model;
+    }
+    else {
+      throw new ParseException("Unknown model type " + type + " in " + source, 8);
+    }
+  }
 }
@@ -5,13 +5,13 @@ package org.seqcode.data.io;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Vector;
 
 import org.apache.log4j.Logger;
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.Species;
 import org.seqcode.genome.location.Point;
-import org.seqcode.genome.location.Region;
+import org.seqcode.genome.location.PointSet;
+import org.seqcode.genome.location.RegionSet;
 import org.seqcode.gseutils.ArgParser;
 import org.seqcode.gseutils.Args;
 import org.seqcode.gseutils.NotFoundException;
@@ -86,9 +86,11 @@ public class Points2RegionsConverter {
     }
      
     logger.debug("Reading file " + inputFilename);
-    Vector<Point> points = null;
+    PointSet.Builder points = new PointSet.Builder(genome);
     try { 
-      points = DatasetsGeneralIO.readPointsFromFile(genome, inputFilename);
+      for (Point point : DatasetsGeneralIO.readPointsFromFile(genome, inputFilename)) {
+        points.add(point);
+      }
     }
     catch (IOException ioex) {
       logger.fatal(ioex);
@@ -97,18 +99,15 @@ public class Points2RegionsConverter {
     }
      
     logger.debug(points.size() + " points read. Converting to regions...");
-    Vector<Region> regions = new Vector<Region>(points.size());
-    for (Point point : points) {
-      Region region = point.expand(dist);
-      regions.add(region);
-    }
+    RegionSet regions = points.build().expand(dist);
     
     logger.debug("Writing file " + outputFilename);
     LineByLineFileWriter lblfw = new LineByLineFileWriter();
     try {
       lblfw.openFile(outputFilename);
-      for (Region region : regions) {
-        lblfw.writeLine(region.regionString());
+      //Regions are written in the order of the input points
+      for (int i : regions.inputOrder()) {
+        lblfw.writeLine(regions.getRegion(i).regionString());
       }      
     }
     catch (IOException ioex) {
@@ -0,0 +1,600 @@
+package org.seqcode.data.io.parsing;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * <code>IndexedFASTAFile</code> gives random, zero-copy access to the records of a
+ * FASTA file.
+ *
+ * The file is memory-mapped (in segments, so files larger than 2GB are fine) and an
+ * index of record offsets is loaded from a samtools-style <code>.fai</code> file next
+ * to it (or elsewhere), or built by a single scan of the file and then saved as one
+ * where that's possible. Sequences are returned as <code>CharSequence</code> views
+ * over the mapped bytes; nothing is copied until <code>toString()</code> is called on
+ * a view.
+ *
+ * Sequences are read as <code>FASTAStream</code> reads them: the concatenation of the
+ * record's lines, each trimmed of surrounding whitespace. Records whose lines all have
+ * the same width (except the last) are addressed arithmetically, as samtools does.
+ * Other records are still readable; their views look positions up in a table of line
+ * offsets. Only files in which every record has uniform lines get a saved index.
+ *
+ * Views are safe to read from several threads at once, and <code>map</code> processes
+ * records in parallel, splitting the file on record boundaries.
+ */
+public class IndexedFASTAFile implements org.seqcode.gseutils.Closeable {
+
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private File file;
+    private long fileLength;
+    private MappedByteBuffer[] segments;
+
+    private int numRecords;
+    private String[] names;         // first word of each header
+    private long[] headerOffsets;   // offset of each header's '>'
+    private long[] headerEnds;      // end of each header's text, before trailing whitespace
+    private long[] seqOffsets;      // offset of the line after each header
+    private long[] seqEnds;         // offset of the next header, or the end of the file
+    private long[] lengths;         // residues in each record
+    private int[] lineBases;        // residues per full line, or -1 if the lines are ragged
+    private int[] lineBytes;        // bytes per full line, including the line terminator
+    private Map<String,Integer> recordsByName;
+
+    /**
+     * Processes one record; see <code>map</code>
+     */
+    public interface RecordProcessor<T> {
+        public T process(int record, String header, CharSequence sequence);
+    }
+
+    public IndexedFASTAFile(File f) throws IOException {
+        this(f, true);
+    }
+
+    /**
+     * @param saveIndex if true, an index built by scanning the file is written to
+     * <code>f.fai</code> (when it can be)
+     */
+    public IndexedFASTAFile(File f, boolean saveIndex) throws IOException {
+        this(f, getIndexFile(f), saveIndex);
+    }
+
+    /**
+     * @param fai the index to load if it's newer than the file, e.g. one kept in a
+     * cache directory rather than next to the file
+     * @param saveIndex if true, an index built by scanning the file is written to
+     * <code>fai</code> when its directory is writable; otherwise the index is only
+     * kept in memory
+     */
+    public IndexedFASTAFile(File f, File fai, boolean saveIndex) throws IOException {
+        file = f;
+        map();
+        if (!(fai.exists() && fai.lastModified() >= f.lastModified() && loadIndex(fai))) {
+            buildIndex();
+            if (saveIndex) {
+                saveIndex(fai);
+            }
+        }
+        recordsByName = new HashMap<String,Integer>();
+        for (int i = numRecords - 1; i >= 0; i--) {
+            recordsByName.put(names[i], i);
+        }
+    }
+
+    public static File getIndexFile(File f) {
+        return new File(f.getPath() + ".fai");
+    }
+
+    private void map() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            fileLength = channel.size();
+            segments = new MappedByteBuffer[(int)((fileLength + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int s = 0; s < segments.length; s++) {
+                long start = (long)s << SEGMENT_BITS;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, fileLength - start));
+            }
+        } finally {
+            //the mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private byte byteAt(long offset) {
+        return segments[(int)(offset >>> SEGMENT_BITS)].get((int)(offset & SEGMENT_MASK));
+    }
+
+    private static boolean isSpace(byte b) {
+        return b <= ' ' && b >= 0;
+    }
+
+    public File getFile() {return file;}
+    public int size() {return numRecords;}
+    public String getName(int record) {return names[record];}
+    public long getLength(int record) {return lengths[record];}
+    public boolean hasUniformLines(int record) {return lineBases[record] >= 0;}
+
+    /**
+     * Returns the index of the first record with this name (the first word of its
+     * header), or -1
+     */
+    public int indexOf(String name) {
+        Integer i = recordsByName.get(name);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Returns a record's header line without the leading '>', as FASTAStream does
+     */
+    public String getHeader(int record) {
+        return decode(headerOffsets[record] + 1, headerEnds[record]);
+    }
+
+    private String decode(long from, long to) {
+        byte[] b = new byte[(int)(to - from)];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = byteAt(from + i);
+        }
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns a view of a record's sequence
+     */
+    public CharSequence getSequence(int record) {
+        if (lengths[record] > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(names[record] + " is too long to view as one sequence");
+        }
+        return getSequence(record, 0, (int)lengths[record]);
+    }
+
+    /**
+     * Returns a view of the residues [start, end) of a record's sequence (0-based)
+     */
+    public CharSequence getSequence(int record, long start, long end) {
+        if (start < 0 || end < start || end > lengths[record] || end - start > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException(names[record] + ": [" + start + ", " + end + ") of " + lengths[record]);
+        }
+        if (lineBases[record] >= 0) {
+            return new UniformView(seqOffsets[record], lineBases[record], lineBytes[record], start, (int)(end - start));
+        }
+        return new RaggedView(lineTable(record), start, (int)(end - start));
+    }
+
+    /**
+     * Returns a view of a named record's sequence, or null if there's no such record
+     */
+    public CharSequence getSequence(String name) {
+        int i = indexOf(name);
+        return i < 0 ? null : getSequence(i);
+    }
+
+    /**
+     * Splits the records into at most <code>parts</code> consecutive runs of about
+     * the same number of bytes. Returns the first record of each run, followed by
+     * <code>size()</code>.
+     */
+    public int[] splitRecords(int parts) {
+        parts = Math.max(1, Math.min(parts, numRecords));
+        int[] bounds = new int[parts + 1];
+        long total = numRecords == 0 ? 0 : seqEnds[numRecords - 1] - headerOffsets[0];
+        int r = 0;
+        for (int p = 1; p < parts; p++) {
+            long target = headerOffsets[0] + total * p / parts;
+            while (r < numRecords && seqEnds[r] <= target) {
+                r++;
+            }
+            bounds[p] = Math.max(bounds[p - 1], r);
+        }
+        bounds[parts] = numRecords;
+        return bounds;
+    }
+
+    /**
+     * Applies a processor to every record, with the records split over numThreads
+     * threads on record boundaries. Results are returned in record order.
+     */
+    public <T> List<T> map(final RecordProcessor<T> processor, int numThreads) {
+        final int[] bounds = splitRecords(numThreads);
+        List<T> results = new ArrayList<T>(numRecords);
+        if (bounds.length <= 2) {
+            for (int i = 0; i < numRecords; i++) {
+                results.add(processor.process(i, getHeader(i), getSequence(i)));
+            }
+            return results;
+        }
+        ExecutorService exec = Executors.newFixedThreadPool(bounds.length - 1);
+        try {
+            List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+            for (int p = 0; p < bounds.length - 1; p++) {
+                final int from = bounds[p], to = bounds[p + 1];
+                futures.add(exec.submit(new Callable<List<T>>() {
+                    public List<T> call() {
+                        List<T> part = new ArrayList<T>(to - from);
+                        for (int i = from; i < to; i++) {
+                            part.add(processor.process(i, getHeader(i), getSequence(i)));
+                        }
+                        return part;
+                    }
+                }));
+            }
+            for (Future<List<T>> f : futures) {
+                results.addAll(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            exec.shutdown();
+        }
+        return results;
+    }
+
+    /* (non-Javadoc)
+     * @see org.seqcode.gseutils.Closeable#close()
+     */
+    public void close() {
+        segments = null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.seqcode.gseutils.Closeable#isClosed()
+     */
+    public boolean isClosed() {
+        return segments == null;
+    }
+
+    private void allocate(int capacity) {
+        names = names == null ? new String[capacity] : Arrays.copyOf(names, capacity);
+        headerOffsets = headerOffsets == null ? new long[capacity] : Arrays.copyOf(headerOffsets, capacity);
+        headerEnds = headerEnds == null ? new long[capacity] : Arrays.copyOf(headerEnds, capacity);
+        seqOffsets = seqOffsets == null ? new long[capacity] : Arrays.copyOf(seqOffsets, capacity);
+        seqEnds = seqEnds == null ? new long[capacity] : Arrays.copyOf(seqEnds, capacity);
+        lengths = lengths == null ? new long[capacity] : Arrays.copyOf(lengths, capacity);
+        lineBases = lineBases == null ? new int[capacity] : Arrays.copyOf(lineBases, capacity);
+        lineBytes = lineBytes == null ? new int[capacity] : Arrays.copyOf(lineBytes, capacity);
+    }
+
+    /* the first word of a header, from the '>' to the first whitespace */
+    private String parseName(long headerOffset, long headerEnd) {
+        long from = headerOffset + 1;
+        while (from < headerEnd && isSpace(byteAt(from))) {
+            from++;
+        }
+        long to = from;
+        while (to < headerEnd && !isSpace(byteAt(to))) {
+            to++;
+        }
+        return decode(from, to);
+    }
+
+    /**
+     * Scans the file line by line, recording where each record starts, its length,
+     * and whether its lines are uniform
+     */
+    private void buildIndex() {
+        numRecords = 0;
+        allocate(64);
+        int r = -1;
+        boolean irregular = false; // a short (or otherwise odd) line has been seen; it must be the last
+        boolean blank = false;     // a blank line has been seen
+        long pos = 0;
+        while (pos < fileLength) {
+            long lineStart = pos;
+            long contentStart = pos;
+            byte b;
+            while (contentStart < fileLength && (b = byteAt(contentStart)) != '\n' && isSpace(b)) {
+                contentStart++;
+            }
+            long newline = contentStart;
+            while (newline < fileLength && byteAt(newline) != '\n') {
+                newline++;
+            }
+            long lineEnd = newline < fileLength ? newline + 1 : fileLength;
+            long contentEnd = newline;
+            while (contentEnd > contentStart && isSpace(byteAt(contentEnd - 1))) {
+                contentEnd--;
+            }
+            pos = lineEnd;
+
+            if (contentStart < contentEnd && byteAt(contentStart) == '>') {
+                if (r >= 0) {
+                    seqEnds[r] = lineStart;
+                }
+                r = numRecords++;
+                if (r == names.length) {
+                    allocate(names.length * 2);
+                }
+                headerOffsets[r] = contentStart;
+                headerEnds[r] = contentEnd;
+                names[r] = parseName(contentStart, contentEnd);
+                seqOffsets[r] = lineEnd;
+                seqEnds[r] = fileLength;
+                lengths[r] = 0;
+                lineBases[r] = 0;
+                lineBytes[r] = 0;
+                irregular = false;
+                blank = false;
+            } else if (r >= 0) {
+                int bases = (int)(contentEnd - contentStart);
+                int bytes = (int)(lineEnd - lineStart);
+                if (bases == 0) {
+                    blank = true;
+                    continue;
+                }
+                if (lineBases[r] >= 0) {
+                    if (irregular || blank || contentStart != lineStart) {
+                        lineBases[r] = -1;
+                    } else if (lengths[r] == 0) {
+                        lineBases[r] = bases;
+                        lineBytes[r] = bytes;
+                    } else if (bases > lineBases[r]) {
+                        lineBases[r] = -1;
+                    } else if (bases < lineBases[r] || bytes != lineBytes[r]) {
+                        irregular = true;
+                    }
+                }
+                lengths[r] += bases;
+            }
+        }
+    }
+
+    /**
+     * Loads a samtools-style index: name, length, offset, line bases, line bytes.
+     * Returns false if the index doesn't match the file.
+     */
+    private boolean loadIndex(File fai) {
+        numRecords = 0;
+        allocate(64);
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(fai));
+            try {
+                String line;
+                long previous = -1;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    String[] f = line.split("\t");
+                    if (f.length < 5) {
+                        return false;
+                    }
+                    int r = numRecords++;
+                    if (r == names.length) {
+                        allocate(names.length * 2);
+                    }
+                    names[r] = f[0];
+                    lengths[r] = Long.parseLong(f[1]);
+                    seqOffsets[r] = Long.parseLong(f[2]);
+                    lineBases[r] = Integer.parseInt(f[3]);
+                    lineBytes[r] = Integer.parseInt(f[4]);
+                    if (seqOffsets[r] <= previous || seqOffsets[r] > fileLength || seqOffsets[r] < 1
+                        || lineBases[r] < 0 || lineBytes[r] < lineBases[r] || (lengths[r] > 0 && lineBases[r] == 0)) {
+                        return false;
+                    }
+                    previous = seqOffsets[r];
+
+                    //find the header line that ends just before the sequence
+                    long end = seqOffsets[r] - 1;
+                    if (byteAt(end) != '\n') {
+                        return false;
+                    }
+                    long start = end;
+                    while (start > 0 && byteAt(start - 1) != '\n') {
+                        start--;
+                    }
+                    while (start < end && isSpace(byteAt(start))) {
+                        start++;
+                    }
+                    while (end > start && isSpace(byteAt(end - 1))) {
+                        end--;
+                    }
+                    if (start == end || byteAt(start) != '>' || !names[r].equals(parseName(start, end))) {
+                        return false;
+                    }
+                    headerOffsets[r] = start;
+                    headerEnds[r] = end;
+                }
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        for (int r = 0; r < numRecords; r++) {
+            seqEnds[r] = r + 1 < numRecords ? headerOffsets[r + 1] : fileLength;
+            if (lengths[r] > 0) {
+                long full = (lengths[r] - 1) / lineBases[r];
+                long lastEnd = seqOffsets[r] + full * lineBytes[r] + (lengths[r] - full * lineBases[r]);
+                if (lastEnd > seqEnds[r]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the index if every record has uniform lines; otherwise, or if the index
+     * can't be written, the index is just rebuilt next time
+     */
+    private void saveIndex(File fai) {
+        for (int r = 0; r < numRecords; r++) {
+            if (lineBases[r] < 0 || names[r].length() == 0) {
+                return;
+            }
+        }
+        File dir = fai.getAbsoluteFile().getParentFile();
+        if (dir == null || !dir.canWrite() || (fai.exists() && !fai.canWrite())) {
+            return;
+        }
+        try {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(fai)));
+            for (int r = 0; r < numRecords; r++) {
+                pw.println(names[r] + "\t" + lengths[r] + "\t" + seqOffsets[r] + "\t" + lineBases[r] + "\t" + lineBytes[r]);
+            }
+            pw.close();
+            if (pw.checkError()) {
+                fai.delete();
+            }
+        } catch (IOException e) {
+            fai.delete();
+        }
+    }
+
+    /**
+     * For a record with ragged lines: the residue index at which each line starts
+     * and the file offset of that line's first residue
+     */
+    private static class LineTable {
+        int[] residueStarts;
+        long[] offsets;
+        int numLines;
+    }
+
+    private LineTable lineTable(int record) {
+        LineTable t = new LineTable();
+        t.residueStarts = new int[16];
+        t.offsets = new long[16];
+        int residues = 0;
+        long pos = seqOffsets[record];
+        while (pos < seqEnds[record]) {
+            long contentStart = pos;
+            byte b;
+            while (contentStart < seqEnds[record] && (b = byteAt(contentStart)) != '\n' && isSpace(b)) {
+                contentStart++;
+            }
+            long newline = contentStart;
+            while (newline < seqEnds[record] && byteAt(newline) != '\n') {
+                newline++;
+            }
+            long contentEnd = newline;
+            while (contentEnd > contentStart && isSpace(byteAt(contentEnd - 1))) {
+                contentEnd--;
+            }
+            if (contentEnd > contentStart) {
+                if (t.numLines == t.offsets.length) {
+                    t.residueStarts = Arrays.copyOf(t.residueStarts, t.numLines * 2);
+                    t.offsets = Arrays.copyOf(t.offsets, t.numLines * 2);
+                }
+                t.residueStarts[t.numLines] = residues;
+                t.offsets[t.numLines] = contentStart;
+                t.numLines++;
+                residues += (int)(contentEnd - contentStart);
+            }
+            pos = newline + 1;
+        }
+        return t;
+    }
+
+    /**
+     * A view of residues in a record with uniform lines: residue i is at
+     * seqOffset + (i / lineBases) * lineBytes + i % lineBases
+     */
+    private class UniformView implements CharSequence {
+        private long seqOffset, start;
+        private int bases, bytes, length;
+
+        UniformView(long seqOffset, int bases, int bytes, long start, int length) {
+            this.seqOffset = seqOffset;
+            this.bases = bases;
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        public int length() {return length;}
+
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            long i = start + index;
+            return (char)(byteAt(seqOffset + (i / bases) * bytes + i % bases) & 0xff);
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to < from || to > length) {
+                throw new IndexOutOfBoundsException("[" + from + ", " + to + ") of " + length);
+            }
+            return new UniformView(seqOffset, bases, bytes, start + from, to - from);
+        }
+
+        public String toString() {
+            byte[] b = new byte[length];
+            int n = 0;
+            long i = start;
+            while (n < length) {
+                long offset = seqOffset + (i / bases) * bytes + i % bases;
+                int run = (int)Math.min(length - n, bases - i % bases);
+                for (int j = 0; j < run; j++) {
+                    b[n++] = byteAt(offset + j);
+                }
+                i += run;
+            }
+            return new String(b, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * A view of residues in a record with ragged lines, found by binary search of
+     * the record's line table
+     */
+    private class RaggedView implements CharSequence {
+        private LineTable lines;
+        private long start;
+        private int length;
+
+        RaggedView(LineTable lines, long start, int length) {
+            this.lines = lines;
+            this.start = start;
+            this.length = length;
+        }
+
+        public int length() {return length;}
+
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            int i = (int)(start + index);
+            int line = Arrays.binarySearch(lines.residueStarts, 0, lines.numLines, i);
+            if (line < 0) {
+                line = -line - 2;
+            }
+            return (char)(byteAt(lines.offsets[line] + (i - lines.residueStarts[line])) & 0xff);
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to < from || to > length) {
+                throw new IndexOutOfBoundsException("[" + from + ", " + to + ") of " + length);
+            }
+            return new RaggedView(lines, start + from, to - from);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                sb.append(charAt(i));
+            }
+            return sb.toString();
+        }
+    }
+}
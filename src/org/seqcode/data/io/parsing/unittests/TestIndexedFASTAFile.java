@@ -0,0 +1,255 @@
+package org.seqcode.data.io.parsing.unittests;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.*;
+import org.seqcode.data.io.parsing.FASTAStream;
+import org.seqcode.data.io.parsing.IndexedFASTAFile;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.sequence.SequenceGenerator;
+import org.seqcode.gseutils.Pair;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks IndexedFASTAFile against FASTAStream, which SequenceGenerator read local genomes with
+ * before, and SequenceGenerator's sequences against substrings of the FASTAStream records. Also
+ * checks where indexes get written.
+ */
+public class TestIndexedFASTAFile {
+
+    private static final String BASES = "ACGTNacgtn";
+
+    private List<File> tempFiles = new ArrayList<File>();
+    private Random rand;
+
+    @Before public void setUp() {
+        rand = new Random(43);
+    }
+
+    @After public void tearDown() {
+        //directories were added before their contents
+        for (int i = tempFiles.size() - 1; i >= 0; i--) {
+            File f = tempFiles.get(i);
+            f.setWritable(true);
+            if (f.isDirectory()) {
+                for (File g : f.listFiles()) {
+                    g.delete();
+                }
+            }
+            f.delete();
+        }
+    }
+
+    private File tempDir() throws IOException {
+        File d = Files.createTempDirectory("indexedfasta").toFile();
+        tempFiles.add(d);
+        return d;
+    }
+
+    private static String randomSequence(Random rand, int len) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            sb.append(BASES.charAt(rand.nextInt(BASES.length())));
+        }
+        return sb.toString();
+    }
+
+    /* writes the records with the given line width and terminator; if ragged, line widths vary and there are blank lines */
+    private static void writeRecords(File f, Map<String, String> records, int width, String eol, boolean ragged, Random rand)
+        throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> rec : records.entrySet()) {
+            sb.append(">").append(rec.getKey()).append(eol);
+            String seq = rec.getValue();
+            int i = 0;
+            while (i < seq.length()) {
+                int w = ragged ? 1 + rand.nextInt(2 * width) : width;
+                if (ragged && rand.nextInt(10) == 0) {
+                    sb.append(rand.nextBoolean() ? "  " : "").append(eol);
+                }
+                sb.append(seq, i, Math.min(seq.length(), i + w));
+                if (ragged && rand.nextInt(10) == 0) {
+                    sb.append(" \t");
+                }
+                sb.append(eol);
+                i += w;
+            }
+        }
+        Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static List<Pair<String, String>> readStream(File f) throws IOException {
+        List<Pair<String, String>> records = new ArrayList<Pair<String, String>>();
+        FASTAStream stream = new FASTAStream(f);
+        while (stream.hasNext()) {
+            records.add(stream.next());
+        }
+        stream.close();
+        return records;
+    }
+
+    private void assertMatchesStream(File f, IndexedFASTAFile fasta) throws IOException {
+        List<Pair<String, String>> expected = readStream(f);
+        assertEquals(expected.size(), fasta.size());
+        for (int i = 0; i < fasta.size(); i++) {
+            String header = expected.get(i).car(), seq = expected.get(i).cdr();
+            assertEquals(header, fasta.getHeader(i));
+            assertEquals(seq.length(), fasta.getLength(i));
+            assertEquals(seq, fasta.getSequence(i).toString());
+            for (int q = 0; q < 200 && seq.length() > 0; q++) {
+                int start = rand.nextInt(seq.length() + 1), end = start + rand.nextInt(seq.length() - start + 1);
+                CharSequence view = fasta.getSequence(i, start, end);
+                assertEquals(seq.substring(start, end), view.toString());
+                if (end > start) {
+                    int k = rand.nextInt(end - start);
+                    assertEquals(seq.charAt(start + k), view.charAt(k));
+                    assertEquals(seq.substring(start + k, end), view.subSequence(k, end - start).toString());
+                }
+            }
+        }
+    }
+
+    private Map<String, String> randomRecords(int n) {
+        Map<String, String> records = new LinkedHashMap<String, String>();
+        for (int r = 0; r < n; r++) {
+            int len = r == 1 ? 0 : rand.nextInt(3000);
+            records.put("seq" + r + (r % 3 == 0 ? " description " + r : ""), randomSequence(rand, len));
+        }
+        return records;
+    }
+
+    @Test public void testMatchesFASTAStream() throws IOException {
+        File dir = tempDir();
+        String[] eols = { "\n", "\r\n" };
+        for (int trial = 0; trial < 8; trial++) {
+            File f = new File(dir, "trial" + trial + ".fa");
+            boolean ragged = trial >= 4;
+            writeRecords(f, randomRecords(12), new int[] { 60, 1, 70, 13 }[trial % 4], eols[trial % 2], ragged, rand);
+
+            //built by a scan, then (for uniform lines only) loaded from the saved index
+            IndexedFASTAFile built = new IndexedFASTAFile(f);
+            assertMatchesStream(f, built);
+            built.close();
+            assertEquals(!ragged, IndexedFASTAFile.getIndexFile(f).exists());
+            IndexedFASTAFile loaded = new IndexedFASTAFile(f);
+            assertMatchesStream(f, loaded);
+            loaded.close();
+        }
+    }
+
+    @Test public void testNoIndexWritten() throws IOException {
+        File dir = tempDir(), other = tempDir();
+        File f = new File(dir, "genome.fa");
+        writeRecords(f, randomRecords(5), 60, "\n", false, rand);
+
+        IndexedFASTAFile fasta = new IndexedFASTAFile(f, false);
+        assertMatchesStream(f, fasta);
+        fasta.close();
+        assertFalse(IndexedFASTAFile.getIndexFile(f).exists());
+
+        //an index kept elsewhere is written there, and read back
+        File fai = new File(other, "genome.fa.fai");
+        fasta = new IndexedFASTAFile(f, fai, true);
+        fasta.close();
+        assertTrue(fai.exists());
+        assertFalse(IndexedFASTAFile.getIndexFile(f).exists());
+        fasta = new IndexedFASTAFile(f, fai, true);
+        assertMatchesStream(f, fasta);
+        fasta.close();
+
+        //a directory that can't be written to gets no index, and the one in memory is used
+        dir.setWritable(false);
+        Assume.assumeFalse(dir.canWrite());
+        fasta = new IndexedFASTAFile(f);
+        assertMatchesStream(f, fasta);
+        fasta.close();
+        assertFalse(IndexedFASTAFile.getIndexFile(f).exists());
+    }
+
+    /* SequenceGenerator before IndexedFASTAFile: the FASTAStream record whose name, less any chromosome prefix, matches */
+    private static String oldChromosome(File f, String chrom) throws IOException {
+        for (Pair<String, String> pair : readStream(f)) {
+            String fastachrom = pair.car().replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", "");
+            if (fastachrom.equals(chrom)) {
+                return pair.cdr();
+            }
+        }
+        return null;
+    }
+
+    private void assertMatchesOld(SequenceGenerator<Region> seqgen, Genome genome, Map<String, File> files) throws IOException {
+        for (String chrom : genome.getChromList()) {
+            String seq = oldChromosome(files.get(chrom), chrom);
+            assertEquals(genome.getChromLength(chrom), seq.length());
+            for (int q = 0; q < 300; q++) {
+                int start = 1 + rand.nextInt(seq.length()), end = start + rand.nextInt(seq.length() - start + 1);
+                assertEquals(seq.substring(start - 1, end), seqgen.execute(new Region(genome, chrom, start, end)));
+            }
+        }
+    }
+
+    @Test public void testSequenceGenerator() throws IOException {
+        Map<String, String> records = new LinkedHashMap<String, String>();
+        records.put("chr1", randomSequence(rand, 5000));
+        records.put("2", randomSequence(rand, 3001));
+        records.put("chromosomeX", randomSequence(rand, 777));
+        records.put("chrUn", randomSequence(rand, 100));
+        Map<String, Integer> lengths = new HashMap<String, Integer>();
+        lengths.put("1", 5000);
+        lengths.put("2", 3001);
+        lengths.put("X", 777);
+        Genome genome = new Genome("test", lengths);
+
+        //one file for the whole genome
+        File dir = tempDir(), cacheDir = tempDir();
+        File f = new File(dir, "genome.fa");
+        writeRecords(f, records, 60, "\n", false, rand);
+        Map<String, File> files = new HashMap<String, File>();
+        for (String chrom : lengths.keySet()) {
+            files.put(chrom, f);
+        }
+        SequenceGenerator<Region> seqgen = new SequenceGenerator<Region>(genome);
+        seqgen.useCache(true);
+        seqgen.useLocalFiles(true);
+        seqgen.setGenomePath(f.getPath());
+        SequenceGenerator.clearCache();
+        assertMatchesOld(seqgen, genome, files);
+        assertEquals(1, dir.list().length);
+
+        //indexes go in the cache directory, and are used from there
+        seqgen.setIndexCachePath(cacheDir.getPath());
+        SequenceGenerator.clearCache();
+        assertMatchesOld(seqgen, genome, files);
+        assertEquals(1, dir.list().length);
+        assertEquals(1, cacheDir.list().length);
+        SequenceGenerator.clearCache();
+        assertMatchesOld(seqgen, genome, files);
+
+        //one file per chromosome, with ragged lines
+        File chromDir = tempDir();
+        files.clear();
+        for (Map.Entry<String, String> rec : records.entrySet()) {
+            Map<String, String> one = new HashMap<String, String>();
+            one.put(rec.getKey(), rec.getValue());
+            File cf = new File(chromDir, rec.getKey() + ".fa");
+            writeRecords(cf, one, 50, "\r\n", true, rand);
+            files.put(rec.getKey().replaceFirst("^chromosome", "").replaceFirst("^chr", ""), cf);
+        }
+        seqgen = new SequenceGenerator<Region>(genome);
+        seqgen.useCache(true);
+        seqgen.useLocalFiles(true);
+        seqgen.setGenomePath(chromDir.getPath());
+        SequenceGenerator.clearCache();
+        assertMatchesOld(seqgen, genome, files);
+        assertEquals(records.size(), chromDir.list().length);
+        SequenceGenerator.clearCache();
+    }
+
+    public static void main(String args[]) {
+        org.junit.runner.JUnitCore.main("org.seqcode.data.io.parsing.unittests.TestIndexedFASTAFile");
+    }
+}
@@ -0,0 +1,511 @@
+package org.seqcode.data.motifdb;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.seqcode.data.io.BackgroundModelIO;
+import org.seqcode.data.io.RegionFileUtilities;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.GenomeConfig;
+import org.seqcode.genome.location.Region;
+import org.seqcode.gseutils.ArgParser;
+import org.seqcode.gseutils.Args;
+
+
+/**
+ * Estimates background models directly from a local FASTA file. Each
+ * chromosome (FASTA record) is streamed from disk by one of a pool of worker
+ * threads. K-mers are counted with a rolling 2-bit index into flat count
+ * tables, so no sequence strings are built.
+ *
+ * Every k-mer of length 1..maxKmerLen that lies entirely within an unmasked
+ * stretch is counted, as in CountsBackgroundModel.addKmerCountsFromSequence.
+ * Non-ACGT characters always break a stretch. Lowercase (soft-masked repeat)
+ * bases break it if masking is on, as do positions outside the include
+ * regions (if any are given) or inside the exclude regions. Region
+ * coordinates are 1-based and inclusive. FASTA record names are matched to
+ * region chromosomes after dropping any "chr" prefix.
+ *
+ * Strand-collapsed models give each k-mer the sum of its own count and its
+ * reverse complement's count, as addKmerCountsFromSequence(seq, true) does.
+ */
+public class BackgroundModelEstimator {
+
+  private static final byte[] BASE_CODES = new byte[256];
+  static {
+    Arrays.fill(BASE_CODES, (byte)-1);
+    BASE_CODES['A'] = 0; BASE_CODES['C'] = 1; BASE_CODES['G'] = 2; BASE_CODES['T'] = 3;
+    BASE_CODES['a'] = 4; BASE_CODES['c'] = 5; BASE_CODES['g'] = 6; BASE_CODES['t'] = 7;
+  }
+
+  private int maxKmerLen;
+  private int numThreads = 1;
+  private boolean strandCollapsed = false;
+  private boolean maskLowercase = false;
+  private Map<String, List<int[]>> includeRegions = null;
+  private Map<String, List<int[]>> excludeRegions = null;
+
+
+  /**
+   * Construct an estimator for k-mers of length 1 to maxKmerLen (i.e. Markov
+   * orders 0 to maxKmerLen-1)
+   * @param maxKmerLen
+   */
+  public BackgroundModelEstimator(int maxKmerLen) {
+    if (maxKmerLen < 1 || maxKmerLen > 15) {
+      throw new IllegalArgumentException("Max kmer length must be between 1 and 15, but is: " + maxKmerLen);
+    }
+    this.maxKmerLen = maxKmerLen;
+  }
+
+  public void setNumThreads(int numThreads) { this.numThreads = Math.max(1, numThreads); }
+  public void setStrandCollapsed(boolean strandCollapsed) { this.strandCollapsed = strandCollapsed; }
+  public void setMaskLowercase(boolean maskLowercase) { this.maskLowercase = maskLowercase; }
+
+
+  /**
+   * Restrict counting to the specified regions (null to count whole records)
+   * @param regions
+   */
+  public void setIncludeRegions(Collection<? extends Region> regions) {
+    includeRegions = regions == null ? null : mergeByChrom(regions);
+  }
+
+
+  /**
+   * Exclude the specified regions from counting (null to exclude nothing)
+   * @param regions
+   */
+  public void setExcludeRegions(Collection<? extends Region> regions) {
+    excludeRegions = regions == null ? null : mergeByChrom(regions);
+  }
+
+
+  /**
+   * Estimate a counts model from the specified FASTA file. Frequency and
+   * Markov models can be derived from it with the FrequencyBackgroundModel and
+   * MarkovBackgroundModel constructors.
+   * @param fasta
+   * @param name
+   * @param gen the genome for the model (may be null)
+   * @return
+   * @throws IOException
+   */
+  public CountsBackgroundModel estimate(File fasta, String name, Genome gen) throws IOException {
+    return toCountsModel(countKmers(fasta), name, gen, strandCollapsed);
+  }
+
+
+  /**
+   * Count the k-mers in the specified FASTA file
+   * @param fasta
+   * @return counts[k][i] is the count of the k-mer packed as i (counts[0] is
+   * empty), strand-collapsed if this estimator is
+   * @throws IOException
+   */
+  public long[][] countKmers(final File fasta) throws IOException {
+    final List<FastaRecord> records = indexRecords(fasta);
+    //largest records first, so that the threads finish together
+    Collections.sort(records, new Comparator<FastaRecord>() {
+      public int compare(FastaRecord a, FastaRecord b) {
+        return Long.compare(b.end - b.start, a.end - a.start);
+      }
+    });
+
+    final AtomicInteger next = new AtomicInteger(0);
+    int threads = Math.min(numThreads, Math.max(1, records.size()));
+    ExecutorService exec = Executors.newFixedThreadPool(threads);
+    long[][] counts = newCountTables();
+    try {
+      List<Future<long[][]>> futures = new ArrayList<Future<long[][]>>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(exec.submit(new java.util.concurrent.Callable<long[][]>() {
+          public long[][] call() throws IOException {
+            long[][] local = newCountTables();
+            RandomAccessFile raf = new RandomAccessFile(fasta, "r");
+            try {
+              int r;
+              while ((r = next.getAndIncrement()) < records.size()) {
+                countRecord(raf.getChannel(), records.get(r), local);
+              }
+            }
+            finally {
+              raf.close();
+            }
+            return local;
+          }
+        }));
+      }
+      for (Future<long[][]> f : futures) {
+        long[][] local = f.get();
+        for (int k = 1; k <= maxKmerLen; k++) {
+          for (int i = 0; i < counts[k].length; i++) {
+            counts[k][i] += local[k][i];
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+    finally {
+      exec.shutdown();
+    }
+
+    if (strandCollapsed) {
+      collapseStrands(counts);
+    }
+    return counts;
+  }
+
+
+  /**
+   * Build a counts model from count tables such as those from countKmers
+   * @param counts
+   * @param name
+   * @param gen
+   * @param strandCollapsed whether the counts are strand-collapsed
+   * @return
+   */
+  public static CountsBackgroundModel toCountsModel(long[][] counts, String name, Genome gen, boolean strandCollapsed) {
+    int maxKmerLen = counts.length - 1;
+    CountsBackgroundModel cbg = new CountsBackgroundModel(name, gen, maxKmerLen);
+    for (int k = 1; k <= maxKmerLen; k++) {
+      for (int i = 0; i < counts[k].length; i++) {
+        cbg.setKmerCount(BackgroundModel.int2seq(i, k), counts[k][i]);
+      }
+    }
+    cbg.isStranded = !strandCollapsed;
+    return cbg;
+  }
+
+
+  private long[][] newCountTables() {
+    long[][] counts = new long[maxKmerLen + 1][];
+    counts[0] = new long[0];
+    for (int k = 1; k <= maxKmerLen; k++) {
+      counts[k] = new long[1 << (2 * k)];
+    }
+    return counts;
+  }
+
+
+  /**
+   * Count one record, streaming its bytes and rolling the k-mer index
+   */
+  private void countRecord(FileChannel channel, FastaRecord rec, long[][] counts) throws IOException {
+    int[] allowed = allowedIntervals(rec.chrom);
+    if (allowed != null && allowed.length == 0) {
+      return;
+    }
+    int kmerMask = (1 << (2 * maxKmerLen)) - 1;
+    int caseMask = maskLowercase ? 7 : 3;
+    int kmer = 0, run = 0;
+    int pos = 0;     //1-based coordinate of the current base
+    int interval = 0;
+
+    channel.position(rec.start);
+    InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+    byte[] buf = new byte[1 << 16];
+    long remaining = rec.end - rec.start;
+    while (remaining > 0) {
+      int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+      if (n < 0) {
+        break;
+      }
+      remaining -= n;
+      for (int j = 0; j < n; j++) {
+        int c = buf[j] & 0xff;
+        if (c <= ' ') {
+          continue; //line breaks & other whitespace are not positions
+        }
+        pos++;
+        int b = BASE_CODES[c] & caseMask;
+        if (b > 3 || BASE_CODES[c] < 0) {
+          run = 0;
+          continue;
+        }
+        if (allowed != null) {
+          while (interval < allowed.length && allowed[interval + 1] < pos) {
+            interval += 2;
+          }
+          if (interval >= allowed.length || allowed[interval] > pos) {
+            run = 0;
+            continue;
+          }
+        }
+        kmer = ((kmer << 2) | b) & kmerMask;
+        if (run < maxKmerLen) {
+          run++;
+        }
+        for (int k = 1; k <= run; k++) {
+          counts[k][kmer & ((1 << (2 * k)) - 1)]++;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * The sorted, disjoint allowed intervals of a chromosome as a flat
+   * {start,end,start,end,...} array, or null if every position is allowed
+   */
+  private int[] allowedIntervals(String chrom) {
+    List<int[]> allowed;
+    if (includeRegions != null) {
+      allowed = includeRegions.get(chrom);
+      if (allowed == null) {
+        return new int[0];
+      }
+    }
+    else {
+      if (excludeRegions == null || !excludeRegions.containsKey(chrom)) {
+        return null;
+      }
+      allowed = new ArrayList<int[]>();
+      allowed.add(new int[] { 1, Integer.MAX_VALUE });
+    }
+    List<int[]> excluded = excludeRegions == null ? null : excludeRegions.get(chrom);
+    List<int[]> result = new ArrayList<int[]>();
+    int e = 0;
+    for (int[] iv : allowed) {
+      int start = iv[0];
+      while (excluded != null && e < excluded.size() && excluded.get(e)[1] < start) {
+        e++;
+      }
+      int x = e;
+      while (excluded != null && x < excluded.size() && excluded.get(x)[0] <= iv[1]) {
+        if (excluded.get(x)[0] > start) {
+          result.add(new int[] { start, excluded.get(x)[0] - 1 });
+        }
+        start = Math.max(start, excluded.get(x)[1] + 1);
+        x++;
+      }
+      if (start <= iv[1] && start > 0) {
+        result.add(new int[] { start, iv[1] });
+      }
+    }
+    int[] flat = new int[result.size() * 2];
+    for (int i = 0; i < result.size(); i++) {
+      flat[2 * i] = result.get(i)[0];
+      flat[2 * i + 1] = result.get(i)[1];
+    }
+    return flat;
+  }
+
+
+  /**
+   * Sorted, merged intervals for each chromosome
+   */
+  private static Map<String, List<int[]>> mergeByChrom(Collection<? extends Region> regions) {
+    Map<String, List<int[]>> byChrom = new HashMap<String, List<int[]>>();
+    for (Region r : regions) {
+      String chrom = stripChr(r.getChrom());
+      if (!byChrom.containsKey(chrom)) {
+        byChrom.put(chrom, new ArrayList<int[]>());
+      }
+      byChrom.get(chrom).add(new int[] { r.getStart(), r.getEnd() });
+    }
+    for (String chrom : byChrom.keySet()) {
+      List<int[]> ivs = byChrom.get(chrom);
+      Collections.sort(ivs, new Comparator<int[]>() {
+        public int compare(int[] a, int[] b) { return Integer.compare(a[0], b[0]); }
+      });
+      List<int[]> merged = new ArrayList<int[]>();
+      for (int[] iv : ivs) {
+        int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+        if (last != null && iv[0] <= last[1] + 1) {
+          last[1] = Math.max(last[1], iv[1]);
+        }
+        else {
+          merged.add(new int[] { iv[0], iv[1] });
+        }
+      }
+      byChrom.put(chrom, merged);
+    }
+    return byChrom;
+  }
+
+
+  /**
+   * Replace each count with the sum of its own and its reverse complement's
+   */
+  private static void collapseStrands(long[][] counts) {
+    for (int k = 1; k < counts.length; k++) {
+      long[] c = counts[k];
+      long[] collapsed = new long[c.length];
+      for (int i = 0; i < c.length; i++) {
+        collapsed[i] = c[i] + c[reverseComplement(i, k)];
+      }
+      counts[k] = collapsed;
+    }
+  }
+
+
+  /**
+   * Reverse complement of a packed k-mer (A=0,C=1,G=2,T=3, so the complement
+   * of b is 3-b)
+   */
+  static int reverseComplement(int kmer, int k) {
+    int rc = 0;
+    for (int i = 0; i < k; i++) {
+      rc = (rc << 2) | (3 - (kmer & 3));
+      kmer >>= 2;
+    }
+    return rc;
+  }
+
+
+  private static String stripChr(String name) {
+    return name.startsWith("chr") ? name.substring(3) : name;
+  }
+
+
+  /**
+   * A FASTA record: its chromosome name and the byte range of its sequence
+   * lines
+   */
+  private static class FastaRecord {
+    String chrom;
+    long start, end;
+  }
+
+
+  /**
+   * Find the records of a FASTA file with one sequential scan of its bytes
+   */
+  private static List<FastaRecord> indexRecords(File fasta) throws IOException {
+    List<FastaRecord> records = new ArrayList<FastaRecord>();
+    InputStream in = new BufferedInputStream(new FileInputStream(fasta), 1 << 16);
+    try {
+      byte[] buf = new byte[1 << 16];
+      long offset = 0;
+      boolean lineStart = true, inHeader = false;
+      StringBuilder header = new StringBuilder();
+      FastaRecord current = null;
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        for (int j = 0; j < n; j++, offset++) {
+          byte c = buf[j];
+          if (inHeader) {
+            if (c == '\n') {
+              inHeader = false;
+              current = new FastaRecord();
+              String name = header.toString().trim();
+              int ws = name.indexOf(' ');
+              if (ws < 0) {
+                ws = name.indexOf('\t');
+              }
+              current.chrom = stripChr(ws < 0 ? name : name.substring(0, ws));
+              current.start = offset + 1;
+              records.add(current);
+              header.setLength(0);
+            }
+            else if (c != '\r') {
+              header.append((char)(c & 0xff));
+            }
+          }
+          else if (lineStart && c == '>') {
+            if (current != null) {
+              current.end = offset;
+            }
+            inHeader = true;
+          }
+          lineStart = c == '\n';
+        }
+      }
+      if (inHeader) {
+        throw new IOException("Truncated FASTA header at the end of " + fasta);
+      }
+      if (current != null) {
+        current.end = offset;
+      }
+    }
+    finally {
+      in.close();
+    }
+    return records;
+  }
+
+
+  public static void main(String[] args) throws IOException {
+    ArgParser ap = new ArgParser(args);
+    if (!ap.hasKey("fasta") || !ap.hasKey("out")) {
+      System.err.println("Usage:\n" +
+                         "BackgroundModelEstimator\n" +
+                         "\t--fasta <genome or sequence FASTA file>\n" +
+                         "\t--out <output file>\n" +
+                         "\t--k <max kmer length (default=" + BackgroundModel.DEFAULT_MAX_KMER_LEN + ")>\n" +
+                         "\t--type <counts/freq/markov (default=markov)>\n" +
+                         "\t--binary [write the binary format instead of text]\n" +
+                         "\t--collapse [collapse strands]\n" +
+                         "\t--masklower [mask lowercase (repeat) bases]\n" +
+                         "\t--include <regions file to count within>\n" +
+                         "\t--exclude <regions file to skip>\n" +
+                         "\t--threads <number of threads (default=1)>\n" +
+                         "\t--species <organism;genome> or --geninfo <chrom sizes file> (needed for region files)\n");
+      return;
+    }
+    File fasta = new File(ap.getKeyValue("fasta"));
+    String out = ap.getKeyValue("out");
+    int k = Args.parseInteger(args, "k", BackgroundModel.DEFAULT_MAX_KMER_LEN);
+    String type = Args.parseString(args, "type", "markov");
+    boolean binary = Args.parseFlags(args).contains("binary");
+
+    BackgroundModelEstimator estimator = new BackgroundModelEstimator(k);
+    estimator.setNumThreads(Args.parseInteger(args, "threads", 1));
+    estimator.setStrandCollapsed(Args.parseFlags(args).contains("collapse"));
+    estimator.setMaskLowercase(Args.parseFlags(args).contains("masklower"));
+    Genome gen = null;
+    if (ap.hasKey("include") || ap.hasKey("exclude")) {
+      gen = new GenomeConfig(args).getGenome();
+      if (ap.hasKey("include")) {
+        estimator.setIncludeRegions(RegionFileUtilities.loadRegionsFromFile(ap.getKeyValue("include"), gen, -1));
+      }
+      if (ap.hasKey("exclude")) {
+        estimator.setExcludeRegions(RegionFileUtilities.loadRegionsFromFile(ap.getKeyValue("exclude"), gen, -1));
+      }
+    }
+
+    CountsBackgroundModel cbg = estimator.estimate(fasta, fasta.getName(), gen);
+    BackgroundModel model = cbg;
+    if (type.equals("freq")) {
+      model = new FrequencyBackgroundModel(cbg);
+    }
+    else if (type.equals("markov")) {
+      model = new MarkovBackgroundModel(cbg);
+    }
+    if (binary) {
+      BackgroundModelIO.writeBinary(model, out);
+    }
+    else {
+      BackgroundModelIO.printProbsToFile(model, out);
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package org.seqcode.data.motifdb;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.seqcode.genome.Genome;
@@ -18,9 +21,39 @@ import cern.jet.math.Functions;
  * @author rca This class represents a background model where the values are
  *         conditional probabilities. For dinucleotides, for example, p(A|A) +
  *         p(C|A) + p(G|A) + p(T|A) = 1.
+ *
+ * Probabilities are held in flat tables, one per kmer length. Each table is
+ * indexed by the 2-bit packed kmer (see BackgroundModel.seq2int), so the four
+ * outcomes for a given context are adjacent. The String methods are adapters
+ * over the int-indexed lookups. Sequence scoring and sampling roll the context
+ * index along one base at a time and never build substrings.
  */
 public class MarkovBackgroundModel extends BackgroundModel {
   
+  /**
+   * 2-bit code for each ASCII character (either case); -1 for non-ACGT
+   */
+  private static final byte[] BASE_CODES = new byte[128];
+  static {
+    Arrays.fill(BASE_CODES, (byte)-1);
+    BASE_CODES['A'] = BASE_CODES['a'] = 0;
+    BASE_CODES['C'] = BASE_CODES['c'] = 1;
+    BASE_CODES['G'] = BASE_CODES['g'] = 2;
+    BASE_CODES['T'] = BASE_CODES['t'] = 3;
+  }
+
+  /**
+   * condProbs[k][i] is the probability of the last base of the k-mer packed
+   * as i, conditioned on its first k-1 bases. logProbs holds the natural logs
+   * and cumProbs the running sums over each block of four outcomes (for
+   * sampling). defined[k][i] is true for kmers that have been set, so that the
+   * model stays sparse.
+   */
+  protected double[][] condProbs;
+  protected double[][] logProbs;
+  protected double[][] cumProbs;
+  protected boolean[][] defined;
+
   
   /**
    * Construct a new MarkovBackgroundModel from the supplied metadata object
@@ -81,10 +114,11 @@ public class MarkovBackgroundModel extends BackgroundModel {
         //if the total is 0 skip these kmers and keep the model sparse
         if (total > 0) {
         	//iterate over the 4 outcomes normalizing 
+        	double[] probs = new double[4];
         	for (int b = 0; b < 4; b++) {
-        		String currKmer = int2seq(k + b, i);
-        		modelProbs[i].put(currKmer, fbg.getFrequency(currKmer) / total);
+        		probs[b] = fbg.getFrequency(int2seq(k + b, i)) / total;
         	}
+        	this.setRow(i, k, probs[0], probs[1], probs[2], probs[3]);
         }
       }
     }    
@@ -92,10 +126,23 @@ public class MarkovBackgroundModel extends BackgroundModel {
   
   
   /**
-   * set the hasCounts fields of the metadata
+   * set the hasCounts fields of the metadata and allocate the probability
+   * tables
    */
   protected void init() {
     this.hasCounts = false;
+    condProbs = new double[maxKmerLen + 1][];
+    logProbs = new double[maxKmerLen + 1][];
+    cumProbs = new double[maxKmerLen + 1][];
+    defined = new boolean[maxKmerLen + 1][];
+    for (int k = 1; k <= maxKmerLen; k++) {
+      int numKmers = 1 << (2 * k);
+      condProbs[k] = new double[numKmers];
+      logProbs[k] = new double[numKmers];
+      Arrays.fill(logProbs[k], Double.NEGATIVE_INFINITY);
+      cumProbs[k] = new double[numKmers];
+      defined[k] = new boolean[numKmers];
+    }
   }
   
   
@@ -103,7 +150,13 @@ public class MarkovBackgroundModel extends BackgroundModel {
    * @see BackgroundModel
    */
   public Set<String> getKmers(int kmerLen) {
-  	return modelProbs[kmerLen].keySet();
+    Set<String> kmers = new LinkedHashSet<String>();
+    for (int i = 0; i < defined[kmerLen].length; i++) {
+      if (defined[kmerLen][i]) {
+        kmers.add(int2seq(i, kmerLen));
+      }
+    }
+    return kmers;
   }
 
   
@@ -122,11 +175,64 @@ public class MarkovBackgroundModel extends BackgroundModel {
    * conditioned upon the preceding bases.
    */
 	public double getMarkovProb(String kmer) {
-		if (modelProbs[kmer.length()].containsKey(kmer)) {
-			return modelProbs[kmer.length()].get(kmer);
+		int index = packKmer(kmer);
+		return index < 0 ? 0.0 : condProbs[kmer.length()][index];
+	}
+
+
+	/**
+	 * Return the markov probability for the last base of the kmer represented by
+	 * the specified int, conditioned upon the preceding bases.
+	 */
+	public double getMarkovProb(int intVal, int kmerLen) {
+		checkKmerLen(kmerLen);
+		return condProbs[kmerLen][intVal];
+	}
+
+
+	/**
+	 * Return the natural log of the markov probability for the last base of the
+	 * kmer represented by the specified int (negative infinity for unset kmers)
+	 */
+	public double getLogMarkovProb(int intVal, int kmerLen) {
+		checkKmerLen(kmerLen);
+		return logProbs[kmerLen][intVal];
+	}
+
+
+	/**
+	 * Return the natural log of the markov probability for the last base of the
+	 * specified kmer
+	 */
+	public double getLogMarkovProb(String kmer) {
+		int index = packKmer(kmer);
+		return index < 0 ? Double.NEGATIVE_INFINITY : logProbs[kmer.length()][index];
+	}
+
+
+	/**
+	 * Packs a kmer (either case) into its 2-bit index, or returns -1 if it has
+	 * a non-ACGT character
+	 */
+	private int packKmer(String kmer) {
+		int len = kmer.length();
+		checkKmerLen(len);
+		int index = 0;
+		for (int i = 0; i < len; i++) {
+			char c = kmer.charAt(i);
+			int b = c < 128 ? BASE_CODES[c] : -1;
+			if (b < 0) {
+				return -1;
+			}
+			index = (index << 2) | b;
 		}
-		else {
-			return 0.0;
+		return index;
+	}
+
+
+	private void checkKmerLen(int kmerLen) {
+		if (kmerLen < 1 || kmerLen > maxKmerLen) {
+			throw new IllegalArgumentException("Kmer length " + kmerLen + " is outside 1.." + maxKmerLen);
 		}
 	}
 
@@ -149,10 +255,8 @@ public class MarkovBackgroundModel extends BackgroundModel {
 	    //    && (Fmath.isEqualWithinLimits(total, 1.0, BackgroundModel.EPSILON)
 	    //        || (total == 0))) {
 	      int kmerLen = prevBases.length() + 1;
-	      modelProbs[kmerLen].put(prevBases + "A", aProb/total);
-	      modelProbs[kmerLen].put(prevBases + "C", cProb/total);
-	      modelProbs[kmerLen].put(prevBases + "G", gProb/total);
-	      modelProbs[kmerLen].put(prevBases + "T", tProb/total);
+	      checkKmerLen(kmerLen);
+	      this.setRow(kmerLen, BackgroundModel.seq2int(prevBases) << 2, aProb/total, cProb/total, gProb/total, tProb/total);
 	    //}
 	    //else {
 	    //  throw new IllegalArgumentException("Probabilities must sum to 1 or must all be 0, but instead sum to " + total + " for prevBases " + prevBases);
@@ -166,6 +270,193 @@ public class MarkovBackgroundModel extends BackgroundModel {
 	  }
 	}
 
+
+	/**
+	 * Sets the 4 markov probabilities that are conditioned on the specified
+	 * string of previous bases as given, without renormalizing them, so that
+	 * probabilities read back from a model file are exactly those written.
+	 * @see setMarkovProb
+	 */
+	public void setNormalizedMarkovProb(String prevBases, double aProb, double cProb, double gProb, double tProb) {
+	  prevBases = prevBases.toUpperCase();
+	  if (BackgroundModel.isKmerValid(prevBases)) {
+	    int kmerLen = prevBases.length() + 1;
+	    checkKmerLen(kmerLen);
+	    this.setRow(kmerLen, BackgroundModel.seq2int(prevBases) << 2, aProb, cProb, gProb, tProb);
+	    isStranded = null;
+	  }
+	  else {
+	    throw new IllegalArgumentException("Previous Bases must consist of zero or more DNA bases, but is: " + prevBases);
+	  }
+	}
+
+
+	/**
+	 * Sets the (already normalized) block of four probabilities starting at the
+	 * specified kmer index
+	 */
+	private void setRow(int kmerLen, int firstIndex, double aProb, double cProb, double gProb, double tProb) {
+	  double[] probs = condProbs[kmerLen];
+	  probs[firstIndex] = aProb;
+	  probs[firstIndex + 1] = cProb;
+	  probs[firstIndex + 2] = gProb;
+	  probs[firstIndex + 3] = tProb;
+	  double cum = 0;
+	  for (int b = 0; b < 4; b++) {
+	    logProbs[kmerLen][firstIndex + b] = Math.log(probs[firstIndex + b]);
+	    cum += probs[firstIndex + b];
+	    cumProbs[kmerLen][firstIndex + b] = cum;
+	    defined[kmerLen][firstIndex + b] = true;
+	  }
+	}
+
+
+	/**
+	 * Natural log probability of a sequence under this model. Each base is
+	 * conditioned on up to getMaxKmerLen()-1 preceding bases. Characters other
+	 * than ACGT (either case) contribute nothing and restart the context.
+	 * @param seq
+	 * @return
+	 */
+	public double logProbability(CharSequence seq) {
+	  int order = maxKmerLen - 1;
+	  int orderMask = (1 << (2 * order)) - 1;
+	  int ctx = 0, ctxLen = 0;
+	  double logProb = 0;
+	  for (int i = 0; i < seq.length(); i++) {
+	    char c = seq.charAt(i);
+	    int b = c < 128 ? BASE_CODES[c] : -1;
+	    if (b < 0) {
+	      ctxLen = 0;
+	      continue;
+	    }
+	    int kmer = ((ctx & ((1 << (2 * ctxLen)) - 1)) << 2) | b;
+	    logProb += logProbs[ctxLen + 1][kmer];
+	    ctx = ((ctx << 2) | b) & orderMask;
+	    if (ctxLen < order) {
+	      ctxLen++;
+	    }
+	  }
+	  return logProb;
+	}
+
+
+	/**
+	 * Natural log probabilities of every window of the specified width, each
+	 * scored on its own (i.e. the first bases of a window are conditioned only
+	 * on the bases inside it). Element i scores the window starting at i; 
+	 * windows that contain a non-ACGT character are NaN, and windows that
+	 * contain a zero-probability transition are negative infinity.
+	 * @param seq
+	 * @param width
+	 * @return
+	 */
+	public double[] windowLogProbabilities(CharSequence seq, int width) {
+	  int n = seq.length();
+	  if (width < 1 || width > n) {
+	    return new double[0];
+	  }
+	  int order = maxKmerLen - 1;
+	  int orderMask = (1 << (2 * order)) - 1;
+	  byte[] codes = new byte[n];
+	  //prefix sums of finite full-context terms, of zero-probability terms
+	  //(kept out of termSums, where -Infinity would poison every later window),
+	  //and of invalid characters
+	  double[] termSums = new double[n + 1];
+	  int[] zeroTerms = new int[n + 1];
+	  int[] invalid = new int[n + 1];
+	  int ctx = 0, ctxLen = 0;
+	  for (int i = 0; i < n; i++) {
+	    char c = seq.charAt(i);
+	    int b = c < 128 ? BASE_CODES[c] : -1;
+	    codes[i] = (byte)b;
+	    invalid[i + 1] = invalid[i];
+	    termSums[i + 1] = termSums[i];
+	    zeroTerms[i + 1] = zeroTerms[i];
+	    if (b < 0) {
+	      invalid[i + 1]++;
+	      ctxLen = 0;
+	      continue;
+	    }
+	    int kmer = ((ctx & ((1 << (2 * ctxLen)) - 1)) << 2) | b;
+	    double term = logProbs[ctxLen + 1][kmer];
+	    if (term == Double.NEGATIVE_INFINITY) {
+	      zeroTerms[i + 1]++;
+	    } else {
+	      termSums[i + 1] += term;
+	    }
+	    ctx = ((ctx << 2) | b) & orderMask;
+	    if (ctxLen < order) {
+	      ctxLen++;
+	    }
+	  }
+
+	  int head = Math.min(order, width);
+	  double[] scores = new double[n - width + 1];
+	  for (int s = 0; s < scores.length; s++) {
+	    if (invalid[s + width] - invalid[s] > 0) {
+	      scores[s] = Double.NaN;
+	      continue;
+	    }
+	    if (zeroTerms[s + width] - zeroTerms[s + head] > 0) {
+	      scores[s] = Double.NEGATIVE_INFINITY;
+	      continue;
+	    }
+	    //the first bases see a truncated context; the rest match the full-sequence terms
+	    double score = termSums[s + width] - termSums[s + head];
+	    int kmer = 0;
+	    for (int k = 0; k < head; k++) {
+	      kmer = (kmer << 2) | codes[s + k];
+	      score += logProbs[k + 1][kmer];
+	    }
+	    scores[s] = score;
+	  }
+	  return scores;
+	}
+
+
+	/**
+	 * Samples a sequence from this model. The i-th base is conditioned on the
+	 * min(i, getMaxKmerLen()-1) preceding bases; a context whose probabilities
+	 * are unset falls back to its shorter suffixes.
+	 * @param len
+	 * @param rand
+	 * @return
+	 */
+	public char[] sample(int len, Random rand) {
+	  int order = maxKmerLen - 1;
+	  int orderMask = (1 << (2 * order)) - 1;
+	  char[] seq = new char[len];
+	  int ctx = 0, ctxLen = 0;
+	  for (int i = 0; i < len; i++) {
+	    double u = rand.nextDouble();
+	    int useLen = ctxLen;
+	    int row = (ctx & ((1 << (2 * useLen)) - 1)) << 2;
+	    while (useLen > 0 && !(cumProbs[useLen + 1][row + 3] > 0)) {
+	      useLen--;
+	      row = (ctx & ((1 << (2 * useLen)) - 1)) << 2;
+	    }
+	    double[] cum = cumProbs[useLen + 1];
+	    if (!(cum[row + 3] > 0)) {
+	      throw new IllegalStateException("No base probabilities are set for kmer length 1");
+	    }
+	    int b = 0;
+	    while (b < 3 && cum[row + b] < u) {
+	      b++;
+	    }
+	    //rounding can leave u above the last running sum; take the last base with probability
+	    while (condProbs[useLen + 1][row + b] <= 0) {
+	      b--;
+	    }
+	    seq[i] = BASE_ORDER[b];
+	    ctx = ((ctx << 2) | b) & orderMask;
+	    if (ctxLen < order) {
+	      ctxLen++;
+	    }
+	  }
+	  return seq;
+	}
+
 	
   /**
    * Check if this model is normalized properly.
@@ -0,0 +1,561 @@
+package org.seqcode.data.motifdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.seqcode.data.connections.DatabaseConnectionManager;
+import org.seqcode.data.connections.DatabaseException;
+import org.seqcode.data.io.BackgroundModelIO;
+import org.seqcode.genome.Genome;
+
+/**
+ * A read-only, in-memory repository of the weight matrices and background
+ * models for one genome.
+ *
+ * BackgroundModelLoader and WeightMatrixLoader issue a query (or several) per
+ * model. The repository instead bulk-loads everything for a genome over a
+ * single connection: one query for the background model metadata, one for
+ * each type of background model and one for the species' weight matrices.
+ * Lookups are then served from immutable indices.
+ *
+ * A repository can be saved as a versioned binary snapshot and reloaded
+ * without a database connection, so analyses can run off a local cache.
+ * Pass a null genome to readSnapshot to load the models without looking up
+ * the genome in the database; the models' genome IDs are still set from the
+ * snapshot.
+ */
+public class MotifRepository {
+
+  public static final int SNAPSHOT_MAGIC = 0x53514d52;
+  public static final int SNAPSHOT_VERSION = 1;
+
+  /**
+   * kinds of background models in a snapshot
+   */
+  private static final byte KIND_FREQUENCY = 0;
+  private static final byte KIND_MARKOV = 1;
+  private static final byte KIND_COUNTS = 2;
+
+  protected Genome gen;
+  protected String genomeName;
+  protected int genomeID;
+  protected int speciesID;
+  protected long created;
+
+  protected List<WeightMatrix> matrices;
+  protected Map<Integer, WeightMatrix> matricesByID;
+  protected Map<String, WeightMatrix> matricesByNameVersion;
+  protected Map<String, List<WeightMatrix>> matricesByName;
+  protected Map<String, List<WeightMatrix>> matricesByType;
+
+  protected List<BackgroundModelMetadata> metadata;
+  protected Map<Integer, FrequencyBackgroundModel> frequencyByMapID;
+  protected Map<Integer, MarkovBackgroundModel> markovByMapID;
+  protected Map<Integer, CountsBackgroundModel> countsByMapID;
+  protected Map<String, FrequencyBackgroundModel> frequencyByName;
+  protected Map<String, MarkovBackgroundModel> markovByName;
+  protected Map<String, CountsBackgroundModel> countsByName;
+
+
+  private MotifRepository(Genome gen, String genomeName, int genomeID, int speciesID, long created,
+      Collection<WeightMatrix> matrices, List<BackgroundModelMetadata> metadata, List<FrequencyBackgroundModel> frequencyModels,
+      List<MarkovBackgroundModel> markovModels, List<CountsBackgroundModel> countsModels) {
+    this.gen = gen;
+    this.genomeName = genomeName;
+    this.genomeID = genomeID;
+    this.speciesID = speciesID;
+    this.created = created;
+
+    List<WeightMatrix> wms = new ArrayList<WeightMatrix>(matrices);
+    Collections.sort(wms, new Comparator<WeightMatrix>() {
+      public int compare(WeightMatrix a, WeightMatrix b) {
+        return Integer.compare(a.dbid, b.dbid);
+      }
+    });
+    Map<Integer, WeightMatrix> byID = new HashMap<Integer, WeightMatrix>();
+    Map<String, WeightMatrix> byNameVersion = new HashMap<String, WeightMatrix>();
+    Map<String, List<WeightMatrix>> byName = new HashMap<String, List<WeightMatrix>>();
+    Map<String, List<WeightMatrix>> byType = new HashMap<String, List<WeightMatrix>>();
+    for (WeightMatrix wm : wms) {
+      byID.put(wm.dbid, wm);
+      byNameVersion.put(MotifRepository.key(wm.name, wm.version), wm);
+      MotifRepository.addToIndex(byName, wm.name, wm);
+      MotifRepository.addToIndex(byType, wm.type, wm);
+    }
+    this.matrices = Collections.unmodifiableList(wms);
+    this.matricesByID = Collections.unmodifiableMap(byID);
+    this.matricesByNameVersion = Collections.unmodifiableMap(byNameVersion);
+    this.matricesByName = MotifRepository.freeze(byName);
+    this.matricesByType = MotifRepository.freeze(byType);
+
+    this.metadata = Collections.unmodifiableList(new ArrayList<BackgroundModelMetadata>(metadata));
+    this.frequencyByMapID = MotifRepository.indexByMapID(frequencyModels);
+    this.markovByMapID = MotifRepository.indexByMapID(markovModels);
+    this.countsByMapID = MotifRepository.indexByMapID(countsModels);
+    this.frequencyByName = MotifRepository.indexByName(frequencyModels);
+    this.markovByName = MotifRepository.indexByName(markovModels);
+    this.countsByName = MotifRepository.indexByName(countsModels);
+  }
+
+
+  /**
+   * Load all the weight matrices for the genome's species and all the
+   * background models for the genome from the database, using a single
+   * connection
+   * @param gen
+   * @return
+   * @throws SQLException
+   */
+  public static MotifRepository loadFromDatabase(Genome gen) throws SQLException {
+    java.sql.Connection cxn = null;
+    try {
+      cxn = DatabaseConnectionManager.getConnection("annotations");
+      return MotifRepository.loadFromDatabase(gen, cxn);
+    }
+    finally {
+      if(cxn!=null) try {cxn.close();}catch (Exception ex) {throw new DatabaseException("Couldn't close connection with role annotations", ex); }
+    }
+  }
+
+
+  /**
+   * @see loadFromDatabase(Genome gen)
+   * @param cxn an open db connection to the annotations schema
+   */
+  public static MotifRepository loadFromDatabase(Genome gen, Connection cxn) throws SQLException {
+    int genomeID = gen.getDBID();
+    List<BackgroundModelMetadata> metadata = BackgroundModelLoader.getBackgroundModelsForGenome(genomeID, cxn);
+    List<FrequencyBackgroundModel> frequencyModels = BackgroundModelLoader.getFrequencyModelsByGenome(genomeID, cxn);
+    List<MarkovBackgroundModel> markovModels = BackgroundModelLoader.getMarkovModelsByGenome(genomeID, cxn);
+    List<CountsBackgroundModel> countsModels = BackgroundModelLoader.getCountsModelsByGenome(genomeID, cxn);
+    Collection<WeightMatrix> matrices = new WeightMatrixLoader().loadMatrices(gen.getSpeciesDBID(), cxn);
+
+    List<BackgroundModel> models = new ArrayList<BackgroundModel>();
+    models.addAll(frequencyModels);
+    models.addAll(markovModels);
+    models.addAll(countsModels);
+    for (BackgroundModel model : models) {
+      model.setGenomeID(genomeID);
+    }
+
+    return new MotifRepository(gen, gen.getVersion(), genomeID, gen.getSpeciesDBID(), System.currentTimeMillis(),
+        matrices, metadata, frequencyModels, markovModels, countsModels);
+  }
+
+
+  /**
+   * Load the repository for a genome from a snapshot file, or if the file
+   * doesn't exist, has an older snapshot version, or is for another genome, load it from the
+   * database and write a new snapshot.
+   * @param gen
+   * @param snapshot
+   * @return
+   * @throws SQLException
+   * @throws IOException
+   */
+  public static MotifRepository load(Genome gen, File snapshot) throws SQLException, IOException {
+    if (snapshot.exists()) {
+      try {
+        MotifRepository repo = MotifRepository.readSnapshot(snapshot, gen);
+        if (repo.getGenomeID() == gen.getDBID()) {
+          return repo;
+        }
+        System.err.println("Snapshot " + snapshot + " is for genome " + repo.getGenomeName() + "; reloading from the database");
+      }
+      catch (ParseException pex) {
+        System.err.println("Can't use snapshot " + snapshot + ": " + pex.getMessage() + "; reloading from the database");
+      }
+    }
+    MotifRepository repo = MotifRepository.loadFromDatabase(gen);
+    repo.writeSnapshot(snapshot);
+    return repo;
+  }
+
+
+  /**
+   * Write this repository to a binary snapshot file. The file is written
+   * to a temporary file and then renamed, so a partly written snapshot is
+   * never left in place.
+   * @param snapshot
+   * @throws IOException
+   */
+  public void writeSnapshot(File snapshot) throws IOException {
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    try {
+      dos.writeInt(SNAPSHOT_MAGIC);
+      dos.writeInt(SNAPSHOT_VERSION);
+      MotifRepository.writeString(dos, genomeName);
+      dos.writeInt(genomeID);
+      dos.writeInt(speciesID);
+      dos.writeLong(created);
+
+      dos.writeInt(metadata.size());
+      for (BackgroundModelMetadata md : metadata) {
+        dos.writeInt(md.getMapID());
+        dos.writeInt(md.getGenomeID());
+        dos.writeInt(md.getModelID());
+        MotifRepository.writeString(dos, md.getName());
+        dos.writeInt(md.getMaxKmerLen());
+        MotifRepository.writeString(dos, md.getDBModelType());
+        dos.writeBoolean(md.hasCounts());
+      }
+
+      dos.writeInt(frequencyByMapID.size() + markovByMapID.size() + countsByMapID.size());
+      MotifRepository.writeModels(dos, KIND_FREQUENCY, frequencyByMapID.values());
+      MotifRepository.writeModels(dos, KIND_MARKOV, markovByMapID.values());
+      MotifRepository.writeModels(dos, KIND_COUNTS, countsByMapID.values());
+
+      dos.writeInt(matrices.size());
+      for (WeightMatrix wm : matrices) {
+        dos.writeInt(wm.dbid);
+        dos.writeBoolean(wm.hasdbid);
+        dos.writeInt(wm.speciesid);
+        dos.writeBoolean(wm.hasspeciesid);
+        MotifRepository.writeString(dos, wm.name);
+        MotifRepository.writeString(dos, wm.version);
+        MotifRepository.writeString(dos, wm.type);
+        dos.writeInt(wm.bgMapID);
+        dos.writeBoolean(wm.islogodds);
+        dos.writeInt(wm.length());
+        for (int i = 0; i < wm.length(); i++) {
+          for (char letter : WeightMatrix.letters) {
+            dos.writeFloat(wm.matrix[i][letter]);
+          }
+        }
+      }
+    }
+    catch (IOException ioex) {
+      dos.close();
+      tmp.delete();
+      throw ioex;
+    }
+    dos.close();
+    if ((snapshot.exists() && !snapshot.delete()) || !tmp.renameTo(snapshot)) {
+      throw new IOException("Couldn't move " + tmp + " to " + snapshot);
+    }
+  }
+
+
+  /**
+   * Read a repository from a binary snapshot file, without a database
+   * connection
+   * @param snapshot
+   * @param gen the genome to attach to the background models; may be null
+   * @return
+   * @throws IOException
+   * @throws ParseException if the file isn't a snapshot of this version, or is
+   * truncated
+   */
+  public static MotifRepository readSnapshot(File snapshot, Genome gen) throws IOException, ParseException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16));
+    try {
+      if (dis.readInt() != SNAPSHOT_MAGIC) {
+        throw new ParseException(snapshot + " is not a motif repository snapshot", 0);
+      }
+      int version = dis.readInt();
+      if (version != SNAPSHOT_VERSION) {
+        throw new ParseException("Unsupported motif repository snapshot version " + version + " in " + snapshot, 4);
+      }
+      String genomeName = MotifRepository.readString(dis);
+      int genomeID = dis.readInt();
+      int speciesID = dis.readInt();
+      long created = dis.readLong();
+
+      int numMetadata = dis.readInt();
+      List<BackgroundModelMetadata> metadata = new ArrayList<BackgroundModelMetadata>(numMetadata);
+      for (int i = 0; i < numMetadata; i++) {
+        int mapID = dis.readInt();
+        int mdGenomeID = dis.readInt();
+        int modelID = dis.readInt();
+        String name = MotifRepository.readString(dis);
+        int maxKmerLen = dis.readInt();
+        String modelType = MotifRepository.readString(dis);
+        metadata.add(new BackgroundModelMetadata(mapID, mdGenomeID, modelID, name, maxKmerLen, modelType, dis.readBoolean()));
+      }
+
+      List<FrequencyBackgroundModel> frequencyModels = new ArrayList<FrequencyBackgroundModel>();
+      List<MarkovBackgroundModel> markovModels = new ArrayList<MarkovBackgroundModel>();
+      List<CountsBackgroundModel> countsModels = new ArrayList<CountsBackgroundModel>();
+      int numModels = dis.readInt();
+      for (int i = 0; i < numModels; i++) {
+        byte kind = dis.readByte();
+        int mapID = dis.readInt();
+        int modelID = dis.readInt();
+        BackgroundModel model = BackgroundModelIO.readBinaryModel(dis, gen, snapshot.getPath());
+        model.setMapID(mapID);
+        model.setModelID(modelID);
+        model.setGenomeID(genomeID);
+        if (kind == KIND_FREQUENCY && model instanceof FrequencyBackgroundModel) {
+          frequencyModels.add((FrequencyBackgroundModel)model);
+        }
+        else if (kind == KIND_MARKOV && model instanceof MarkovBackgroundModel) {
+          markovModels.add((MarkovBackgroundModel)model);
+        }
+        else if (kind == KIND_COUNTS && model instanceof CountsBackgroundModel) {
+          countsModels.add((CountsBackgroundModel)model);
+        }
+        else {
+          throw new ParseException("Background model " + model.getName() + " in " + snapshot + " doesn't match its kind " + kind, 0);
+        }
+      }
+
+      int numMatrices = dis.readInt();
+      List<WeightMatrix> matrices = new ArrayList<WeightMatrix>(numMatrices);
+      for (int i = 0; i < numMatrices; i++) {
+        int dbid = dis.readInt();
+        boolean hasdbid = dis.readBoolean();
+        int wmSpeciesID = dis.readInt();
+        boolean hasspeciesid = dis.readBoolean();
+        String name = MotifRepository.readString(dis);
+        String wmVersion = MotifRepository.readString(dis);
+        String type = MotifRepository.readString(dis);
+        int bgMapID = dis.readInt();
+        boolean islogodds = dis.readBoolean();
+        WeightMatrix wm = new WeightMatrix(dis.readInt());
+        wm.dbid = dbid;
+        wm.hasdbid = hasdbid;
+        wm.speciesid = wmSpeciesID;
+        wm.hasspeciesid = hasspeciesid;
+        wm.name = name;
+        wm.version = wmVersion;
+        wm.type = type;
+        wm.bgMapID = bgMapID;
+        wm.islogodds = islogodds;
+        for (int j = 0; j < wm.length(); j++) {
+          for (char letter : WeightMatrix.letters) {
+            float weight = dis.readFloat();
+            wm.matrix[j][letter] = weight;
+            wm.matrix[j][Character.toLowerCase(letter)] = weight;
+          }
+        }
+        matrices.add(wm);
+      }
+
+      return new MotifRepository(gen, genomeName, genomeID, speciesID, created,
+          matrices, metadata, frequencyModels, markovModels, countsModels);
+    }
+    catch (EOFException eofex) {
+      throw new ParseException(snapshot + " is truncated", 0);
+    }
+    finally {
+      dis.close();
+    }
+  }
+
+
+  /**
+   * Accessors for the genome the repository was loaded for
+   */
+  public Genome getGenome() {
+    return gen;
+  }
+
+  public String getGenomeName() {
+    return genomeName;
+  }
+
+  public int getGenomeID() {
+    return genomeID;
+  }
+
+  public int getSpeciesID() {
+    return speciesID;
+  }
+
+
+  /**
+   * Returns the time the repository was loaded from the database, in ms
+   * since the epoch
+   */
+  public long getCreated() {
+    return created;
+  }
+
+
+  /**
+   * Returns all the weight matrices, ordered by database ID
+   */
+  public List<WeightMatrix> getMatrices() {
+    return matrices;
+  }
+
+
+  /**
+   * Returns the weight matrix with the specified database ID, or null
+   */
+  public WeightMatrix getMatrix(int dbid) {
+    return matricesByID.get(dbid);
+  }
+
+
+  /**
+   * Returns the weight matrix with the specified name and version, or null
+   */
+  public WeightMatrix getMatrix(String name, String version) {
+    return matricesByNameVersion.get(MotifRepository.key(name, version));
+  }
+
+
+  /**
+   * Returns all versions of the weight matrices with the specified name
+   */
+  public List<WeightMatrix> getMatricesByName(String name) {
+    List<WeightMatrix> wms = matricesByName.get(name);
+    return wms == null ? Collections.<WeightMatrix>emptyList() : wms;
+  }
+
+
+  /**
+   * Returns the weight matrices of the specified type
+   */
+  public List<WeightMatrix> getMatricesByType(String type) {
+    List<WeightMatrix> wms = matricesByType.get(type);
+    return wms == null ? Collections.<WeightMatrix>emptyList() : wms;
+  }
+
+
+  /**
+   * Returns the metadata for all the genome's background models
+   */
+  public List<BackgroundModelMetadata> getMetadata() {
+    return metadata;
+  }
+
+
+  /**
+   * Background model lookups by background genome map ID, or by model name
+   * and max kmer length. Each returns null if there's no such model.
+   */
+  public FrequencyBackgroundModel getFrequencyModel(int mapID) {
+    return frequencyByMapID.get(mapID);
+  }
+
+  public FrequencyBackgroundModel getFrequencyModel(String name, int maxKmerLen) {
+    return frequencyByName.get(MotifRepository.key(name, maxKmerLen));
+  }
+
+  public MarkovBackgroundModel getMarkovModel(int mapID) {
+    return markovByMapID.get(mapID);
+  }
+
+  public MarkovBackgroundModel getMarkovModel(String name, int maxKmerLen) {
+    return markovByName.get(MotifRepository.key(name, maxKmerLen));
+  }
+
+  public CountsBackgroundModel getCountsModel(int mapID) {
+    return countsByMapID.get(mapID);
+  }
+
+  public CountsBackgroundModel getCountsModel(String name, int maxKmerLen) {
+    return countsByName.get(MotifRepository.key(name, maxKmerLen));
+  }
+
+
+  /**
+   * Returns the background model a weight matrix was built against, if any,
+   * preferring the Markov model for its map ID
+   */
+  public BackgroundModel getBackgroundModel(WeightMatrix wm) {
+    if (wm.bgMapID == -1) {
+      return null;
+    }
+    BackgroundModel model = markovByMapID.get(wm.bgMapID);
+    if (model == null) {
+      model = frequencyByMapID.get(wm.bgMapID);
+    }
+    if (model == null) {
+      model = countsByMapID.get(wm.bgMapID);
+    }
+    return model;
+  }
+
+
+  private static void writeModels(DataOutputStream dos, byte kind, Collection<? extends BackgroundModel> models) throws IOException {
+    for (BackgroundModel model : models) {
+      dos.writeByte(kind);
+      dos.writeInt(model.getMapID());
+      dos.writeInt(model.getModelID());
+      BackgroundModelIO.writeBinaryModel(model, dos);
+    }
+  }
+
+
+  /**
+   * Strings may be null, so each is preceded by a flag
+   */
+  private static void writeString(DataOutputStream dos, String s) throws IOException {
+    dos.writeBoolean(s != null);
+    if (s != null) {
+      dos.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream dis) throws IOException {
+    return dis.readBoolean() ? dis.readUTF() : null;
+  }
+
+
+  private static String key(String name, Object qualifier) {
+    return name + "\t" + qualifier;
+  }
+
+
+  private static <T> void addToIndex(Map<String, List<T>> index, String key, T value) {
+    List<T> values = index.get(key);
+    if (values == null) {
+      values = new ArrayList<T>();
+      index.put(key, values);
+    }
+    values.add(value);
+  }
+
+
+  private static <T> Map<String, List<T>> freeze(Map<String, List<T>> index) {
+    Map<String, List<T>> frozen = new HashMap<String, List<T>>();
+    for (Map.Entry<String, List<T>> entry : index.entrySet()) {
+      frozen.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+    }
+    return Collections.unmodifiableMap(frozen);
+  }
+
+
+  /**
+   * Index models by map ID, keeping the load order so that snapshots are
+   * written deterministically
+   */
+  private static <T extends BackgroundModel> Map<Integer, T> indexByMapID(List<T> models) {
+    Map<Integer, T> index = new LinkedHashMap<Integer, T>();
+    for (T model : models) {
+      index.put(model.getMapID(), model);
+    }
+    return Collections.unmodifiableMap(index);
+  }
+
+
+  private static <T extends BackgroundModel> Map<String, T> indexByName(List<T> models) {
+    Map<String, T> index = new HashMap<String, T>();
+    for (T model : models) {
+      index.put(MotifRepository.key(model.getName(), model.getMaxKmerLen()), model);
+    }
+    return Collections.unmodifiableMap(index);
+  }
+}
@@ -91,12 +91,20 @@ public class WeightMatrixLoader implements org.seqcode.gseutils.Closeable {
     }
     
     public Collection<WeightMatrix> loadMatrices(Species species) throws SQLException { 
-    	int speciesID = species.getDBID();
+        java.sql.Connection cxn = 
+            DatabaseConnectionManager.getConnection("annotations");
+        try {
+            return loadMatrices(species.getDBID(), cxn);
+        } finally {
+            if(cxn!=null) try {cxn.close();}catch (Exception ex) {throw new DatabaseException("Couldn't close connection with role annotations", ex); }
+        }
+    }
+
+    /* loads all matrices for a species in a single query on an open connection to the annotations schema */
+    public Collection<WeightMatrix> loadMatrices(int speciesID, java.sql.Connection cxn) throws SQLException { 
         String query = "select m.id, m.species, m.name, m.version, m.type, m.bg_model_map_id, c.position, c.letter, c.weight from weightmatrix m, " +
             " weightmatrixcols c where m.id = c.weightmatrix and m.species = ? order by c.weightmatrix, c.position desc";
 
-        java.sql.Connection cxn = 
-            DatabaseConnectionManager.getConnection("annotations");
     	PreparedStatement wmStatement = cxn.prepareStatement(query);
     	
     	wmStatement.setInt(1, speciesID);
@@ -104,7 +112,6 @@ public class WeightMatrixLoader implements org.seqcode.gseutils.Closeable {
         Collection<WeightMatrix> matrices = WeightMatrix.getWeightMatrices(wmResults);
     	wmResults.close();
     	wmStatement.close();
-    	if(cxn!=null) try {cxn.close();}catch (Exception ex) {throw new DatabaseException("Couldn't close connection with role annotations", ex); }
     	
     	return matrices;
     }
@@ -0,0 +1,274 @@
+package org.seqcode.data.motifdb.unittests;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+import org.junit.*;
+import org.seqcode.data.io.BackgroundModelIO;
+import org.seqcode.data.motifdb.BackgroundModel;
+import org.seqcode.data.motifdb.BackgroundModelEstimator;
+import org.seqcode.data.motifdb.CountsBackgroundModel;
+import org.seqcode.data.motifdb.FrequencyBackgroundModel;
+import org.seqcode.data.motifdb.MarkovBackgroundModel;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks BackgroundModelEstimator against CountsBackgroundModel.addKmerCountsFromSequence, and that the binary
+ * background model format reads back exactly what was written and agrees with the text format.
+ */
+public class TestBackgroundModelIO {
+
+    private static final String BASES = "ACGT";
+    private static final int K = 4;
+
+    private List<File> tempFiles = new ArrayList<File>();
+
+    @After public void tearDown() {
+        for (File f : tempFiles) {
+            f.delete();
+        }
+    }
+
+    private File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("bgmodel", suffix);
+        tempFiles.add(f);
+        return f;
+    }
+
+    /* random bases with runs of N and, if lower is set, lowercase stretches */
+    private static String randomSequence(Random rand, int len, boolean lower) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < len) {
+            double r = rand.nextDouble();
+            int run = 1 + rand.nextInt(200);
+            for (int i = 0; i < run && sb.length() < len; i++) {
+                char c = BASES.charAt(rand.nextInt(4));
+                if (r < 0.05) {
+                    c = 'N';
+                }
+                else if (lower && r < 0.3) {
+                    c = Character.toLowerCase(c);
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /* writes the records as FASTA with 60 base lines */
+    private File writeFasta(Map<String, String> records) throws IOException {
+        File f = tempFile(".fa");
+        PrintWriter pw = new PrintWriter(new FileWriter(f));
+        for (Map.Entry<String, String> rec : records.entrySet()) {
+            pw.println(">" + rec.getKey() + " test record");
+            String seq = rec.getValue();
+            for (int i = 0; i < seq.length(); i += 60) {
+                pw.println(seq.substring(i, Math.min(seq.length(), i + 60)));
+            }
+        }
+        pw.close();
+        return f;
+    }
+
+    /* the counts of the old string-based path over the pieces */
+    private static CountsBackgroundModel oldCounts(Collection<String> pieces, boolean collapse) {
+        CountsBackgroundModel cbg = new CountsBackgroundModel("old", null, K);
+        for (String piece : pieces) {
+            cbg.addKmerCountsFromSequence(piece, collapse);
+        }
+        return cbg;
+    }
+
+    private static void assertSameCounts(CountsBackgroundModel expected, CountsBackgroundModel actual) {
+        assertEquals(expected.getMaxKmerLen(), actual.getMaxKmerLen());
+        for (int k = 1; k <= K; k++) {
+            for (int i = 0; i < (1 << (2 * k)); i++) {
+                assertEquals(BackgroundModel.int2seq(i, k), expected.getKmerCount(i, k), actual.getKmerCount(i, k));
+            }
+        }
+    }
+
+    private static Map<String, String> records(Random rand, boolean lower) {
+        Map<String, String> records = new LinkedHashMap<String, String>();
+        records.put("chr1", randomSequence(rand, 5000, lower));
+        records.put("chr2", randomSequence(rand, 2000, lower));
+        records.put("chrM", randomSequence(rand, 137, lower));
+        records.put("chr3", "GTTAC");
+        return records;
+    }
+
+    @Test public void testCountsMatchOldPath() throws IOException {
+        Map<String, String> records = records(new Random(3), false);
+        File fasta = writeFasta(records);
+        for (boolean collapse : new boolean[] { false, true }) {
+            CountsBackgroundModel expected = oldCounts(records.values(), collapse);
+            for (int threads : new int[] { 1, 3 }) {
+                BackgroundModelEstimator est = new BackgroundModelEstimator(K);
+                est.setNumThreads(threads);
+                est.setStrandCollapsed(collapse);
+                CountsBackgroundModel actual = est.estimate(fasta, "test", null);
+                assertSameCounts(expected, actual);
+                assertEquals(!collapse, actual.isStranded());
+            }
+        }
+    }
+
+    @Test public void testMaskingMatchesOldPath() throws IOException {
+        Map<String, String> records = records(new Random(5), true);
+        File fasta = writeFasta(records);
+        List<String> masked = new ArrayList<String>(), unmasked = new ArrayList<String>();
+        for (String seq : records.values()) {
+            masked.add(seq.replaceAll("[acgt]", "N"));
+            unmasked.add(seq.toUpperCase());
+        }
+        BackgroundModelEstimator est = new BackgroundModelEstimator(K);
+        assertSameCounts(oldCounts(unmasked, false), est.estimate(fasta, "test", null));
+        est.setMaskLowercase(true);
+        est.setNumThreads(2);
+        assertSameCounts(oldCounts(masked, false), est.estimate(fasta, "test", null));
+    }
+
+    @Test public void testRegionsMatchOldPath() throws IOException {
+        Map<String, String> records = records(new Random(7), false);
+        File fasta = writeFasta(records);
+        Map<String, Integer> lengths = new HashMap<String, Integer>();
+        for (Map.Entry<String, String> rec : records.entrySet()) {
+            lengths.put(rec.getKey().substring(3), rec.getValue().length());
+        }
+        Genome gen = new Genome("test", lengths);
+        String chr1 = records.get("chr1"), chr2 = records.get("chr2");
+
+        //overlapping and adjacent include regions merge; chr3 has none, so isn't counted
+        List<Region> include = new ArrayList<Region>();
+        include.add(new Region(gen, "1", 101, 900));
+        include.add(new Region(gen, "1", 1500, 2200));
+        include.add(new Region(gen, "1", 2201, 2600));
+        include.add(new Region(gen, "1", 2000, 2300));
+        include.add(new Region(gen, "2", 1, 2000));
+        List<Region> exclude = new ArrayList<Region>();
+        exclude.add(new Region(gen, "1", 2000, 2100));
+        exclude.add(new Region(gen, "1", 850, 1600));
+        exclude.add(new Region(gen, "2", 1990, 2500));
+
+        BackgroundModelEstimator est = new BackgroundModelEstimator(K);
+        est.setIncludeRegions(include);
+        List<String> pieces = Arrays.asList(chr1.substring(100, 900), chr1.substring(1499, 2600), chr2);
+        assertSameCounts(oldCounts(pieces, false), est.estimate(fasta, "test", gen));
+
+        est.setExcludeRegions(exclude);
+        pieces = Arrays.asList(chr1.substring(100, 849), chr1.substring(1600, 1999), chr1.substring(2100, 2600),
+                               chr2.substring(0, 1989));
+        assertSameCounts(oldCounts(pieces, false), est.estimate(fasta, "test", gen));
+
+        //exclusion alone leaves the other records whole
+        est.setIncludeRegions(null);
+        pieces = Arrays.asList(chr1.substring(0, 849), chr1.substring(1600, 1999), chr1.substring(2100),
+                               chr2.substring(0, 1989), records.get("chrM"), records.get("chr3"));
+        assertSameCounts(oldCounts(pieces, false), est.estimate(fasta, "test", gen));
+    }
+
+    /* a counts model, and the frequency and Markov models derived from it */
+    private List<BackgroundModel> estimatedModels() throws IOException {
+        BackgroundModelEstimator est = new BackgroundModelEstimator(K);
+        CountsBackgroundModel cbg = est.estimate(writeFasta(records(new Random(11), false)), "estimated", null);
+        List<BackgroundModel> models = new ArrayList<BackgroundModel>();
+        models.add(cbg);
+        models.add(new FrequencyBackgroundModel(cbg));
+        models.add(new MarkovBackgroundModel(cbg));
+        return models;
+    }
+
+    /* asserts that two models of the same class have the same value for every kmer */
+    private static void assertSameValues(BackgroundModel expected, BackgroundModel actual, double delta) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getMaxKmerLen(), actual.getMaxKmerLen());
+        for (int k = 1; k <= expected.getMaxKmerLen(); k++) {
+            for (int i = 0; i < (1 << (2 * k)); i++) {
+                String kmer = BackgroundModel.int2seq(i, k);
+                if (expected instanceof CountsBackgroundModel) {
+                    assertEquals(kmer, ((CountsBackgroundModel)expected).getKmerCount(i, k),
+                                 ((CountsBackgroundModel)actual).getKmerCount(i, k));
+                }
+                else if (expected instanceof FrequencyBackgroundModel) {
+                    assertEquals(kmer, ((FrequencyBackgroundModel)expected).getFrequency(i, k),
+                                 ((FrequencyBackgroundModel)actual).getFrequency(i, k), delta);
+                }
+                else {
+                    assertEquals(kmer, expected.getMarkovProb(i, k), actual.getMarkovProb(i, k), delta);
+                }
+            }
+        }
+    }
+
+    @Test public void testBinaryRoundTrip() throws IOException, ParseException {
+        for (BackgroundModel model : estimatedModels()) {
+            File bin = tempFile(".bin"), txt = tempFile(".txt");
+            BackgroundModelIO.writeBinary(model, bin.getPath());
+            BackgroundModel read = BackgroundModelIO.parseBinaryBackgroundModel(bin.getPath(), null);
+            assertEquals(model.getName(), read.getName());
+            assertSameValues(model, read, 0.0);
+
+            //the text format holds the same values, up to printing
+            BackgroundModelIO.printProbsToFile(model, txt.getPath());
+            BackgroundModel text;
+            if (model instanceof CountsBackgroundModel) {
+                text = BackgroundModelIO.parseCountsBackgroundModel(txt.getPath(), null);
+            }
+            else if (model instanceof FrequencyBackgroundModel) {
+                text = BackgroundModelIO.parseFrequencyBackgroundModel(txt.getPath(), null);
+            }
+            else {
+                text = BackgroundModelIO.parseMarkovBackgroundModel(txt.getPath(), null);
+            }
+            assertSameValues(text, read, 1e-12);
+        }
+    }
+
+    @Test public void testSparseMarkovRoundTrip() throws IOException, ParseException {
+        //only some contexts are set; the rest must stay unset rather than read back as zeros
+        MarkovBackgroundModel model = new MarkovBackgroundModel("sparse", null, 3);
+        model.setMarkovProb("", .1, .2, .3, .4);
+        model.setMarkovProb("A", .5, .25, .25, 0);
+        model.setMarkovProb("GT", .25, .25, .25, .25);
+        File bin = tempFile(".bin");
+        BackgroundModelIO.writeBinary(model, bin.getPath());
+        MarkovBackgroundModel read = (MarkovBackgroundModel)BackgroundModelIO.parseBinaryBackgroundModel(bin.getPath(), null);
+        assertSameValues(model, read, 0.0);
+        for (int k = 1; k <= 3; k++) {
+            assertEquals(model.getKmers(k), read.getKmers(k));
+        }
+    }
+
+    @Test public void testStreamRoundTrip() throws IOException, ParseException {
+        //several models back to back, as in a motif repository snapshot
+        List<BackgroundModel> models = estimatedModels();
+        models.get(1).setName("");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        for (BackgroundModel model : models) {
+            BackgroundModelIO.writeBinaryModel(model, dos);
+        }
+        dos.writeInt(42);
+        dos.close();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (BackgroundModel model : models) {
+            BackgroundModel read = BackgroundModelIO.readBinaryModel(dis, null, "stream");
+            assertEquals(model.getName().length() == 0 ? "stream" : model.getName(), read.getName());
+            assertSameValues(model, read, 0.0);
+        }
+        assertEquals(42, dis.readInt());
+    }
+
+    @Test(expected = ParseException.class) public void testNotBinary() throws IOException, ParseException {
+        File txt = tempFile(".txt");
+        BackgroundModelIO.printProbsToFile(estimatedModels().get(0), txt.getPath());
+        BackgroundModelIO.parseBinaryBackgroundModel(txt.getPath(), null);
+    }
+
+    public static void main(String args[]) {
+        org.junit.runner.JUnitCore.main("org.seqcode.data.motifdb.unittests.TestBackgroundModelIO");
+    }
+}
@@ -0,0 +1,102 @@
+package org.seqcode.data.motifdb.unittests;
+
+import java.util.*;
+import org.junit.*;
+import org.seqcode.data.motifdb.MarkovBackgroundModel;
+
+import static org.junit.Assert.*;
+
+public class TestMarkovBackgroundModel {
+
+    private static final String BASES = "ACGT";
+
+    /* first order model: uniform, except that T never follows A */
+    private static MarkovBackgroundModel noAT() {
+        MarkovBackgroundModel m = new MarkovBackgroundModel("test", null, 2);
+        m.setMarkovProb("", .25, .25, .25, .25);
+        m.setMarkovProb("A", .5, .25, .25, 0);
+        m.setMarkovProb("C", .25, .25, .25, .25);
+        m.setMarkovProb("G", .25, .25, .25, .25);
+        m.setMarkovProb("T", .25, .25, .25, .25);
+        return m;
+    }
+
+    /* second order model with random (all non-zero) probabilities */
+    private static MarkovBackgroundModel randomModel(Random rand) {
+        MarkovBackgroundModel m = new MarkovBackgroundModel("test", null, 3);
+        List<String> contexts = new ArrayList<String>();
+        contexts.add("");
+        for (int k = 1; k < 3; k++) {
+            List<String> longer = new ArrayList<String>();
+            for (String c : contexts) {
+                if (c.length() == k - 1) {
+                    for (int b = 0; b < 4; b++) {
+                        longer.add(c + BASES.charAt(b));
+                    }
+                }
+            }
+            contexts.addAll(longer);
+        }
+        for (String c : contexts) {
+            m.setMarkovProb(c, .1 + rand.nextDouble(), .1 + rand.nextDouble(), .1 + rand.nextDouble(), .1 + rand.nextDouble());
+        }
+        return m;
+    }
+
+    @Test public void testZeroProbabilityWindow() {
+        double[] scores = noAT().windowLogProbabilities("ATCCCCGGGG", 4);
+        assertEquals(7, scores.length);
+        assertEquals(Double.NEGATIVE_INFINITY, scores[0], 0);
+        for (int s = 1; s < scores.length; s++) {
+            assertEquals("window " + s, 4 * Math.log(.25), scores[s], 1e-12);
+        }
+        assertEquals(Double.NEGATIVE_INFINITY, noAT().logProbability("ATCCCCGGGG"), 0);
+    }
+
+    @Test public void testZeroProbabilityInsideWindow() {
+        /* the A->T transition is past the truncated head of the windows that contain it */
+        double[] scores = noAT().windowLogProbabilities("CCCATCCC", 3);
+        double[] expected = {3 * Math.log(.25), 3 * Math.log(.25), Double.NEGATIVE_INFINITY,
+                             Double.NEGATIVE_INFINITY, 3 * Math.log(.25), 3 * Math.log(.25)};
+        assertEquals(expected.length, scores.length);
+        for (int s = 0; s < scores.length; s++) {
+            assertEquals("window " + s, expected[s], scores[s], 1e-12);
+        }
+    }
+
+    @Test public void testWindowsMatchSubsequences() {
+        Random rand = new Random(11);
+        MarkovBackgroundModel m = randomModel(rand);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append(BASES.charAt(rand.nextInt(4)));
+        }
+        sb.setCharAt(120, 'N');
+        String seq = sb.toString();
+        for (int width : new int[]{1, 2, 5, 17}) {
+            double[] scores = m.windowLogProbabilities(seq, width);
+            assertEquals(seq.length() - width + 1, scores.length);
+            for (int s = 0; s < scores.length; s++) {
+                if (s <= 120 && 120 < s + width) {
+                    assertTrue(Double.isNaN(scores[s]));
+                } else {
+                    assertEquals(m.logProbability(seq.substring(s, s + width)), scores[s], 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test public void testLowerCase() {
+        MarkovBackgroundModel m = noAT();
+        assertEquals(m.getMarkovProb("AA"), m.getMarkovProb("aa"), 0);
+        assertEquals(m.getMarkovProb("AC"), m.getMarkovProb("aC"), 0);
+        assertEquals(0, m.getMarkovProb("at"), 0);
+        assertEquals(m.getLogMarkovProb("CG"), m.getLogMarkovProb("cg"), 0);
+        assertEquals(m.logProbability("ACGT"), m.logProbability("acgt"), 0);
+    }
+
+    public static void main(String args[]) {
+        org.junit.runner.JUnitCore.main("org.seqcode.data.motifdb.unittests.TestMarkovBackgroundModel");
+    }
+
+}
@@ -0,0 +1,237 @@
+package org.seqcode.data.motifdb.unittests;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.*;
+import org.junit.*;
+import org.seqcode.data.io.BackgroundModelIO;
+import org.seqcode.data.motifdb.BackgroundModel;
+import org.seqcode.data.motifdb.CountsBackgroundModel;
+import org.seqcode.data.motifdb.FrequencyBackgroundModel;
+import org.seqcode.data.motifdb.MarkovBackgroundModel;
+import org.seqcode.data.motifdb.MotifRepository;
+import org.seqcode.data.motifdb.WeightMatrix;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks MotifRepository snapshots without a database: a snapshot written field by field in the documented
+ * layout must read back into the same models and matrices, serve the same lookups, and be written out again
+ * byte for byte.
+ */
+public class TestMotifRepository {
+
+    private static final String BASES = "ACGT";
+
+    private List<File> tempFiles = new ArrayList<File>();
+    private CountsBackgroundModel counts;
+    private FrequencyBackgroundModel frequency;
+    private MarkovBackgroundModel markov;
+
+    @Before public void setUp() {
+        Random rand = new Random(17);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append(BASES.charAt(rand.nextInt(4)));
+        }
+        counts = new CountsBackgroundModel("whole genome", null, 3);
+        counts.addKmerCountsFromSequence(sb.toString());
+        frequency = new FrequencyBackgroundModel(counts);
+        markov = new MarkovBackgroundModel(counts);
+    }
+
+    @After public void tearDown() {
+        for (File f : tempFiles) {
+            f.delete();
+        }
+    }
+
+    private File tempFile() throws IOException {
+        File f = File.createTempFile("motifrepo", ".snapshot");
+        tempFiles.add(f);
+        return f;
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        dos.writeBoolean(s != null);
+        if (s != null) {
+            dos.writeUTF(s);
+        }
+    }
+
+    private static void writeModel(DataOutputStream dos, int kind, int mapID, int modelID, BackgroundModel model) throws IOException {
+        dos.writeByte(kind);
+        dos.writeInt(mapID);
+        dos.writeInt(modelID);
+        BackgroundModelIO.writeBinaryModel(model, dos);
+    }
+
+    private static void writeMatrix(DataOutputStream dos, int dbid, String name, String version, String type, int bgMapID,
+                                    float[][] weights) throws IOException {
+        dos.writeInt(dbid);
+        dos.writeBoolean(true);
+        dos.writeInt(5);
+        dos.writeBoolean(true);
+        writeString(dos, name);
+        writeString(dos, version);
+        writeString(dos, type);
+        dos.writeInt(bgMapID);
+        dos.writeBoolean(false);
+        dos.writeInt(weights.length);
+        for (float[] column : weights) {
+            for (float w : column) {
+                dos.writeFloat(w);
+            }
+        }
+    }
+
+    /* weights[position][letter], with letters in WeightMatrix.letters order */
+    private static float[][] randomWeights(Random rand, int len) {
+        float[][] weights = new float[len][WeightMatrix.letters.length];
+        for (float[] column : weights) {
+            for (int l = 0; l < column.length; l++) {
+                column[l] = rand.nextFloat();
+            }
+        }
+        return weights;
+    }
+
+    /* a snapshot for genome 7 of species 5 with the three models and three matrices, two of one name */
+    private File writeSnapshot(float[][][] weights) throws IOException {
+        File f = tempFile();
+        DataOutputStream dos = new DataOutputStream(new FileOutputStream(f));
+        dos.writeInt(MotifRepository.SNAPSHOT_MAGIC);
+        dos.writeInt(MotifRepository.SNAPSHOT_VERSION);
+        writeString(dos, "testgenome");
+        dos.writeInt(7);
+        dos.writeInt(5);
+        dos.writeLong(123456789L);
+
+        dos.writeInt(3);
+        int[] mapIDs = { 11, 12, 13 };
+        String[] types = { "FREQUENCY", "MARKOV", "FREQUENCY" };
+        for (int m = 0; m < 3; m++) {
+            dos.writeInt(mapIDs[m]);
+            dos.writeInt(7);
+            dos.writeInt(20 + m);
+            writeString(dos, "whole genome");
+            dos.writeInt(3);
+            writeString(dos, types[m]);
+            dos.writeBoolean(m == 2);
+        }
+
+        //frequency, Markov then counts models, as the repository writes them
+        dos.writeInt(3);
+        writeModel(dos, 0, 11, 20, frequency);
+        writeModel(dos, 1, 12, 21, markov);
+        writeModel(dos, 2, 13, 22, counts);
+
+        dos.writeInt(3);
+        writeMatrix(dos, 100, "CTCF", "v1", "TRANSFAC", 12, weights[0]);
+        writeMatrix(dos, 101, "CTCF", "v2", "JASPAR", -1, weights[1]);
+        writeMatrix(dos, 102, "Oct4", null, "JASPAR", 11, weights[2]);
+        dos.close();
+        return f;
+    }
+
+    private static void assertSameValues(BackgroundModel expected, BackgroundModel actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getMaxKmerLen(), actual.getMaxKmerLen());
+        for (int k = 1; k <= expected.getMaxKmerLen(); k++) {
+            for (int i = 0; i < (1 << (2 * k)); i++) {
+                if (expected instanceof CountsBackgroundModel) {
+                    assertEquals(((CountsBackgroundModel)expected).getKmerCount(i, k), ((CountsBackgroundModel)actual).getKmerCount(i, k));
+                }
+                else if (expected instanceof FrequencyBackgroundModel) {
+                    assertEquals(((FrequencyBackgroundModel)expected).getFrequency(i, k),
+                                 ((FrequencyBackgroundModel)actual).getFrequency(i, k), 0.0);
+                }
+                else {
+                    assertEquals(expected.getMarkovProb(i, k), actual.getMarkovProb(i, k), 0.0);
+                }
+            }
+        }
+    }
+
+    @Test public void testReadSnapshot() throws IOException, ParseException {
+        Random rand = new Random(19);
+        float[][][] weights = { randomWeights(rand, 12), randomWeights(rand, 8), randomWeights(rand, 10) };
+        MotifRepository repo = MotifRepository.readSnapshot(writeSnapshot(weights), null);
+
+        assertEquals("testgenome", repo.getGenomeName());
+        assertEquals(7, repo.getGenomeID());
+        assertEquals(5, repo.getSpeciesID());
+        assertEquals(123456789L, repo.getCreated());
+        assertEquals(3, repo.getMetadata().size());
+        assertEquals(13, repo.getMetadata().get(2).getMapID());
+        assertEquals(22, repo.getMetadata().get(2).getModelID());
+        assertTrue(repo.getMetadata().get(2).hasCounts());
+        assertEquals("MARKOV", repo.getMetadata().get(1).getDBModelType());
+
+        assertSameValues(frequency, repo.getFrequencyModel(11));
+        assertSameValues(markov, repo.getMarkovModel(12));
+        assertSameValues(counts, repo.getCountsModel(13));
+        assertSame(repo.getMarkovModel(12), repo.getMarkovModel("whole genome", 3));
+        assertSame(repo.getCountsModel(13), repo.getCountsModel("whole genome", 3));
+        assertNull(repo.getMarkovModel(11));
+        assertNull(repo.getFrequencyModel("whole genome", 4));
+        assertEquals(7, repo.getMarkovModel(12).getGenomeID());
+        assertEquals(21, repo.getMarkovModel(12).getModelID());
+
+        assertEquals(3, repo.getMatrices().size());
+        assertEquals(2, repo.getMatricesByName("CTCF").size());
+        assertEquals(2, repo.getMatricesByType("JASPAR").size());
+        assertTrue(repo.getMatricesByName("Sox2").isEmpty());
+        WeightMatrix v1 = repo.getMatrix("CTCF", "v1");
+        assertSame(v1, repo.getMatrix(100));
+        assertSame(repo.getMatrix(102), repo.getMatrix("Oct4", null));
+        assertSame(repo.getMarkovModel(12), repo.getBackgroundModel(v1));
+        assertSame(repo.getFrequencyModel(11), repo.getBackgroundModel(repo.getMatrix(102)));
+        assertNull(repo.getBackgroundModel(repo.getMatrix(101)));
+        for (int m = 0; m < 3; m++) {
+            WeightMatrix wm = repo.getMatrix(100 + m);
+            assertEquals(weights[m].length, wm.length());
+            for (int p = 0; p < wm.length(); p++) {
+                for (int l = 0; l < WeightMatrix.letters.length; l++) {
+                    char letter = WeightMatrix.letters[l];
+                    assertEquals(weights[m][p][l], wm.matrix[p][letter], 0.0f);
+                    assertEquals(weights[m][p][l], wm.matrix[p][Character.toLowerCase(letter)], 0.0f);
+                }
+            }
+        }
+    }
+
+    @Test public void testWriteSnapshot() throws IOException, ParseException {
+        Random rand = new Random(23);
+        File original = writeSnapshot(new float[][][] { randomWeights(rand, 6), randomWeights(rand, 9), randomWeights(rand, 7) });
+        File rewritten = tempFile();
+        MotifRepository.readSnapshot(original, null).writeSnapshot(rewritten);
+        assertArrayEquals(Files.readAllBytes(original.toPath()), Files.readAllBytes(rewritten.toPath()));
+        assertFalse(new File(rewritten.getPath() + ".tmp").exists());
+    }
+
+    @Test public void testBadSnapshots() throws IOException {
+        Random rand = new Random(29);
+        byte[] bytes = Files.readAllBytes(writeSnapshot(new float[][][] { randomWeights(rand, 4), randomWeights(rand, 4),
+                                                                           randomWeights(rand, 4) }).toPath());
+        //truncated, another version, not a snapshot
+        byte[][] bad = { Arrays.copyOf(bytes, bytes.length - 3), bytes.clone(), Arrays.copyOfRange(bytes, 4, bytes.length) };
+        bad[1][7]++;
+        for (byte[] b : bad) {
+            File f = tempFile();
+            Files.write(f.toPath(), b);
+            try {
+                MotifRepository.readSnapshot(f, null);
+                fail("read a bad snapshot");
+            }
+            catch (ParseException pex) {
+                //expected
+            }
+        }
+    }
+
+    public static void main(String args[]) {
+        org.junit.runner.JUnitCore.main("org.seqcode.data.motifdb.unittests.TestMotifRepository");
+    }
+}
@@ -15,7 +15,11 @@ import javax.security.auth.callback.*;
  *
  *  <p>Client generally assumes that the hit positions are the 5' end of the hit. 
  *
- * <p>Client IS NOT REENTRANT.  Do not overlap calls to a single Client object.
+ * <p>Client IS NOT REENTRANT.  Do not overlap calls to a single Client object.  Multi-threaded callers
+ * should share a ClientPool instead.
+ *
+ * <p>Histogram queries over several alignments are pipelined: all of the requests are written before
+ * the responses are read.
  *
  * <p>The current version of Client keeps a separate thread that would close the connection if it is idle too long. 
  * 
@@ -49,6 +53,7 @@ public class Client implements ReadOnlyClient {
     Thread closeTimerThread=null; //checks time of last activity - closes connection if idle for too long
     byte[] buffer; //temporary space for receiving data; contents not persistent between method calls
     private static final int BUFFERLEN = 8192*20;
+    private static final int MAX_PIPELINE = 32; //most requests written ahead of their responses; keeps requests within the socket buffers
     private final int socketLoadDataReadTimeout = 1000*60*8; //socket timeout in ms: set to 8 minutes because we should only be relying on the timeout to detect server shutdowns, and some uses of Client (e.g. loading a lot of reads to ReadDB) can take a long time on the Server.
     private final int socketQueryReadTimeout = 60000; //socket timeout in ms for queries
     private final int threadSleepTime = 30000; //check time of last activity thread sleep time in ms
@@ -57,6 +62,7 @@ public class Client implements ReadOnlyClient {
     private boolean connectionOpen=false;
     private Request request;
     private boolean printErrors;
+    private Set<String> serverCapabilities; //request types the server advertises beyond the original set; null until asked on this connection
     private String hostname, username, password;
     private int portnum;
     
@@ -126,6 +132,7 @@ public class Client implements ReadOnlyClient {
     		closeTimerThread.interrupt();
     	
     	synchronized(this){
+	    	serverCapabilities = null; //ask again: a reconnect may reach a different server version
 	    	socket = new Socket(hostname,portnum);
 	        socket.setTcpNoDelay(true);
 	        socket.setSendBufferSize(BUFFERLEN);
@@ -194,6 +201,32 @@ public class Client implements ReadOnlyClient {
         	return false;
         }
     }
+    /**
+     * Returns true if the server handles the given request type (eg "mergedhistogram").  Only request types
+     * added after the original protocol are listed.  The server is asked once, with a ping that carries a 
+     * capabilities flag: older servers ignore the flag and answer a plain "pong", so they list nothing and never
+     * see a request type they don't know (which they would treat as a request for an alignment).
+     */
+    public boolean serverSupports(String requestType) throws IOException {
+        synchronized(this) {
+            if (serverCapabilities == null) {
+                if(!connectionOpen)
+                    reConnect();
+                request.clear();
+                request.type="ping";
+                request.map.put("capabilities","true");
+                sendString(request.toString());
+                String response = readLine();
+                Set<String> caps = new HashSet<String>();
+                String[] pieces = response.trim().split("\\s+");
+                for (int i = 1; i < pieces.length; i++) {
+                    caps.add(pieces[i]);
+                }
+                serverCapabilities = caps;
+            }
+            return serverCapabilities.contains(requestType);
+        }
+    }
     /**
      * Return some basic information about the server
      * @return string
@@ -296,6 +329,38 @@ public class Client implements ReadOnlyClient {
 	        sendString(request.toString());
     	}
     }
+    /**
+     * Returns the server's metrics report: per-request counts and latencies, lock
+     * waits, cache hit rates and bytes per alignment.  If reset is true, the server
+     * clears its metrics after making the report.
+     * @throws ClientException if the user isn't a server admin
+     */
+    public String getServerMetrics(boolean reset) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+	        request.clear();
+	        request.type = "metrics";
+	        if (reset) {
+	            request.map.put("reset","true");
+	        }
+	        sendString(request.toString());
+	        String response = readLine();
+	        if (!response.equals("OK")) {
+	            if (printErrors) {
+	                System.err.println("not-OK response to request: " + response);
+	                System.err.println("request was " + request);
+	            }
+	            throw new ClientException(response);
+	        }
+	        int numlines = Integer.parseInt(readLine());
+	        StringBuilder output = new StringBuilder();
+	        while (numlines-- > 0) {
+	            output.append(readLine()).append("\n");
+	        }
+	        return output.toString();
+    	}
+    }
     /** this was to fix a bug in the server.  You shouldn't need it for general use.
      * Regenerate the index for this alignment and chromosome
      */
@@ -317,6 +382,28 @@ public class Client implements ReadOnlyClient {
 	        }
     	}
     }
+    /**
+     * Turns the strand-split layout on or off for an alignment's single-ended hits.  With the layout
+     * on, the server also keeps the plus and minus strand hits in separate files so that 
+     * strand-specific queries (plusStrand != null) only read the hits on that strand.
+     * Requires admin permission on the alignment.
+     */
+    public void setStrandSplit(String align, boolean split) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+	    	request.clear();
+	        request.type = "setlayout";
+	        request.alignid = align;
+	        request.map.put("strandsplit", Boolean.toString(split));
+	        sendString(request.toString());
+	        outstream.flush();
+	        String response = readLine();
+	        if (!response.equals("OK")) {
+	            throw new ClientException(response);
+	        }
+    	}
+    }
     /** This was to fix a bug in the server.  You shouldn't need it for general use.
      * Resort the hits for a single-ended alignment and regenerate the index.
      */
@@ -786,96 +873,160 @@ public class Client implements ReadOnlyClient {
 	        request.isLeft = isLeft;
 	        request.isType2 = false;
 	        request.isPaired = true;
-	        request.map.put("wantpositions","1");
-	        request.map.put("wantweights","1");
-	        request.map.put("wantpaircodes","1");
-	        request.map.put("wantlengthsandstrands","1");
-	        request.map.put("wantotherchroms","1");
-	        request.map.put("wantotherpositions","1");
-	        sendString(request.toString());        
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(String.format("align %s chrom %d: %s", alignid, chromid, response));
-	        }
-	        List<PairedHit> output = new ArrayList<PairedHit>();
-	        int numhits = Integer.parseInt(readLine());
-	        for (int i = 0; i < numhits; i++) {
-	            output.add(new PairedHit(chromid,0,false,(short)0,
-	                                     chromid,0,false,(short)0,(float)0,0));
-	        }
-	        IntBP ints = new IntBP(numhits);
-	        ReadableByteChannel rbc = Channels.newChannel(instream);
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).leftPos = ints.get(i);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).rightPos = ints.get(i);
-	            }
-	        }
-	        FloatBP floats = new FloatBP(numhits);
-	        Bits.readBytes(floats.bb, rbc);
-	        for (int i = 0; i < numhits; i++) {
-	            output.get(i).weight = floats.get(i);
-	        }
-	
-	        Bits.readBytes(ints.bb, rbc);
-	        for (int i = 0; i < numhits; i++) {
-	            output.get(i).pairCode = ints.get(i);
-	        }
-	        
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                int j = ints.get(i);
-	                PairedHit h = output.get(i);                
-	                h.leftLength = Hits.getLengthOne(j);
-	                h.leftStrand = Hits.getStrandOne(j);
-	                h.rightLength = Hits.getLengthTwo(j);
-	                h.rightStrand = Hits.getStrandTwo(j);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                int j = ints.get(i);
-	                PairedHit h = output.get(i);                
-	                h.leftLength = Hits.getLengthTwo(j);
-	                h.leftStrand = Hits.getStrandTwo(j);
-	                h.rightLength = Hits.getLengthOne(j);
-	                h.rightStrand = Hits.getStrandOne(j);
-	            }
-	        }
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).rightChrom = ints.get(i);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).leftChrom = ints.get(i);
-	            }
+	        return readPairedHits(alignid, chromid, isLeft);
+    	}
+    }
+    /**
+     * Returns the same-chromosome pairs whose midpoint, (leftPos + rightPos) / 2,
+     * lies between start and stop.  minFragment and maxFragment, if non-null, limit
+     * the fragment size and exclude pairs whose reads don't face each other.
+     * The server answers this from its midpoint index rather than by scanning the left reads.
+     */
+    public List<PairedHit> getPairedHitsByMidpoint(String alignid, int chromid, Integer start, Integer stop, Float minWeight, Integer minFragment, Integer maxFragment) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+    		request.clear();
+	        request.type="getmidpointhits";
+	        request.alignid=alignid;
+	        request.chromid=chromid;
+	        request.start = start;
+	        request.end = stop;
+	        request.minWeight = minWeight;
+	        request.isLeft = true;
+	        request.isType2 = false;
+	        request.isPaired = true;
+	        putFragmentLimits(minFragment, maxFragment);
+	        return readPairedHits(alignid, chromid, true);
+    	}
+    }
+    /**
+     * Returns the pairs whose read on the isLeft side is on chromid between start and stop
+     * and whose other read is on mateChromid between mateStart and mateStop.  Null
+     * bounds are open.  The server answers this from its mate index, so inter-chromosomal
+     * lookups don't need to scan every pair in the region.
+     */
+    public List<PairedHit> getPairedHitsByMate(String alignid, int chromid, boolean isLeft, Integer start, Integer stop, int mateChromid, Integer mateStart, Integer mateStop, Float minWeight) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+    		request.clear();
+	        request.type="getmatehits";
+	        request.alignid=alignid;
+	        request.chromid=chromid;
+	        request.start = start;
+	        request.end = stop;
+	        request.minWeight = minWeight;
+	        request.isLeft = isLeft;
+	        request.isType2 = false;
+	        request.isPaired = true;
+	        request.map.put("matechromid",Integer.toString(mateChromid));
+	        if (mateStart != null) {
+	            request.map.put("matestart",Integer.toString(mateStart));
 	        }
-	
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).rightPos = ints.get(i);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).leftPos = ints.get(i);
-	            }
+	        if (mateStop != null) {
+	            request.map.put("mateend",Integer.toString(mateStop));
 	        }
-	
-	
-	        return output;
+	        return readPairedHits(alignid, chromid, isLeft);
     	}
     }
+    private void putFragmentLimits(Integer minFragment, Integer maxFragment) {
+        if (minFragment != null) {
+            request.map.put("minfrag",Integer.toString(minFragment));
+        }
+        if (maxFragment != null) {
+            request.map.put("maxfrag",Integer.toString(maxFragment));
+        }
+    }
+    /* asks for every column of the paired hits described by the current request and decodes the response */
+    private List<PairedHit> readPairedHits(String alignid, int chromid, boolean isLeft) throws IOException, ClientException {
+        request.map.put("wantpositions","1");
+        request.map.put("wantweights","1");
+        request.map.put("wantpaircodes","1");
+        request.map.put("wantlengthsandstrands","1");
+        request.map.put("wantotherchroms","1");
+        request.map.put("wantotherpositions","1");
+        sendString(request.toString());        
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(String.format("align %s chrom %d: %s", alignid, chromid, response));
+        }
+        List<PairedHit> output = new ArrayList<PairedHit>();
+        int numhits = Integer.parseInt(readLine());
+        for (int i = 0; i < numhits; i++) {
+            output.add(new PairedHit(chromid,0,false,(short)0,
+                                     chromid,0,false,(short)0,(float)0,0));
+        }
+        IntBP ints = new IntBP(numhits);
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).leftPos = ints.get(i);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).rightPos = ints.get(i);
+            }
+        }
+        FloatBP floats = new FloatBP(numhits);
+        Bits.readBytes(floats.bb, rbc);
+        for (int i = 0; i < numhits; i++) {
+            output.get(i).weight = floats.get(i);
+        }
+
+        Bits.readBytes(ints.bb, rbc);
+        for (int i = 0; i < numhits; i++) {
+            output.get(i).pairCode = ints.get(i);
+        }
+        
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                int j = ints.get(i);
+                PairedHit h = output.get(i);                
+                h.leftLength = Hits.getLengthOne(j);
+                h.leftStrand = Hits.getStrandOne(j);
+                h.rightLength = Hits.getLengthTwo(j);
+                h.rightStrand = Hits.getStrandTwo(j);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                int j = ints.get(i);
+                PairedHit h = output.get(i);                
+                h.leftLength = Hits.getLengthTwo(j);
+                h.leftStrand = Hits.getStrandTwo(j);
+                h.rightLength = Hits.getLengthOne(j);
+                h.rightStrand = Hits.getStrandOne(j);
+            }
+        }
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).rightChrom = ints.get(i);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).leftChrom = ints.get(i);
+            }
+        }
+
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).rightPos = ints.get(i);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).leftPos = ints.get(i);
+            }
+        }
+        return output;
+    }
 
 
     /**
@@ -946,6 +1097,79 @@ public class Client implements ReadOnlyClient {
 	        return output;
     	}
     }
+    /**
+     * returns a TreeMap from positions to counts representing a histogram of the midpoints
+     * of the same-chromosome pairs in a range, as getHistogram does for read positions.
+     * minFragment and maxFragment, if non-null, limit the fragment size and exclude pairs
+     * whose reads don't face each other.
+     */
+    public TreeMap<Integer,Integer> getMidpointHistogram(String alignid, int chromid, int binsize, Integer start, Integer stop, Float minWeight, Integer minFragment, Integer maxFragment) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+    		request.clear();
+	        request.type="midpointhistogram";
+	        request.alignid=alignid;
+	        request.chromid=chromid;
+	        request.start = start;
+	        request.end = stop;
+	        request.isLeft = true;
+	        request.minWeight = minWeight;
+	        request.isType2 = false;
+	        request.isPaired = true;
+	        request.map.put("binsize",Integer.toString(binsize));
+	        putFragmentLimits(minFragment, maxFragment);
+	        sendString(request.toString());        
+	        String response = readLine();
+	        if (!response.equals("OK")) {
+	            if (printErrors) {
+	                System.err.println("not-OK response to request: " + response);
+	                System.err.println("request was " + request);
+	            }
+	            throw new ClientException(response);
+	        }
+	        int numints = Integer.parseInt(readLine());
+	        int out[] = Bits.readInts(numints, instream, buffer);
+	        TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
+	        for (int i = 0; i < out.length; i += 2) {
+	            output.put(out[i], out[i+1]);
+	        }
+	        return output;
+    	}
+    }
+    /**
+     * returns the fragment size distribution of the proper same-chromosome pairs whose
+     * midpoint lies in a range.  Element b counts fragments of
+     * b*PairedIndex.FRAG_BIN_SIZE to (b+1)*PairedIndex.FRAG_BIN_SIZE-1 bases and the last
+     * element counts all the longer fragments.  The result is empty if the chromosome has no pairs.
+     */
+    public int[] getFragmentSizeHistogram(String alignid, int chromid, Integer start, Integer stop, Float minWeight) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+    		request.clear();
+	        request.type="fragmentsizes";
+	        request.alignid=alignid;
+	        request.chromid=chromid;
+	        request.start = start;
+	        request.end = stop;
+	        request.isLeft = true;
+	        request.minWeight = minWeight;
+	        request.isType2 = false;
+	        request.isPaired = true;
+	        sendString(request.toString());        
+	        String response = readLine();
+	        if (!response.equals("OK")) {
+	            if (printErrors) {
+	                System.err.println("not-OK response to request: " + response);
+	                System.err.println("request was " + request);
+	            }
+	            throw new ClientException(response);
+	        }
+	        int numints = Integer.parseInt(readLine());
+	        return Bits.readInts(numints, instream, buffer);
+    	}
+    }
     public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
         return getWeightHistogram(alignid, chromid, isType2, paired, extension, binsize, 0, start,stop,minWeight,plusStrand, true);
     }
@@ -994,11 +1218,36 @@ public class Client implements ReadOnlyClient {
         return getHistogram(alignids,chromid,isType2, paired,extension,binsize,0,start,stop,minWeight,plusStrand);
     }
     public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (start != null && stop != null) {
+            DenseHistogram merged = getMergedHistogram(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+            if (merged != null) {
+                return merged.toTreeMap();
+            }
+        }
+        List<String> ids = new ArrayList<String>(alignids);
+        List<TreeMap<Integer,Integer>> hists = new ArrayList<TreeMap<Integer,Integer>>();
+        for (Object[] r : pipelineHistograms(histogramRequests("histogram", ids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand))) {
+            int[] out = (int[])r[0];
+            TreeMap<Integer,Integer> o = new TreeMap<Integer,Integer>();
+            for (int i = 0; i < out.length; i += 2) {
+                o.put(out[i], out[i+1]);
+            }
+            hists.add(o);
+        }
         TreeMap<Integer,Integer> output = null;
-        for (String alignid : alignids) {
-            TreeMap<Integer,Integer> o = getHistogram(alignid,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand,true);
-            if(paired) //run for isLeft =true & false
-            	o.putAll(getHistogram(alignid,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand,false));
+        int h = 0;
+        for (String alignid : ids) {
+            TreeMap<Integer,Integer> o = hists.get(h++);
+            if(paired) { //run for isLeft =true & false; the two sides are summed, as the server does when merging
+                TreeMap<Integer,Integer> right = hists.get(h++);
+                for (int k : right.keySet()) {
+                    if (o.containsKey(k)) {
+                        o.put(k, o.get(k) + right.get(k));
+                    } else {
+                        o.put(k, right.get(k));
+                    }
+                }
+            }
             for (int k : o.keySet()) { 
                 if ((k - start - binsize / 2) % binsize != 0 ) {
                     System.err.println(String.format("Bad key %d for binsize %d and start %d in %s,%d",
@@ -1024,11 +1273,37 @@ public class Client implements ReadOnlyClient {
         return getWeightHistogram(alignids,chromid,isType2, paired,extension,binsize,0,start,stop,minWeight,plusStrand);
     }
     public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (start != null && stop != null) {
+            DenseWeightHistogram merged = getMergedWeightHistogram(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+            if (merged != null) {
+                return merged.toTreeMap();
+            }
+        }
+        List<String> ids = new ArrayList<String>(alignids);
+        List<TreeMap<Integer,Float>> hists = new ArrayList<TreeMap<Integer,Float>>();
+        for (Object[] r : pipelineHistograms(histogramRequests("weighthistogram", ids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand))) {
+            int[] out = (int[])r[0];
+            float[] weight = (float[])r[1];
+            TreeMap<Integer,Float> o = new TreeMap<Integer,Float>();
+            for (int i = 0; i < out.length; i++) {
+                o.put(out[i], weight[i]);
+            }
+            hists.add(o);
+        }
         TreeMap<Integer,Float> output = null;
-        for (String alignid : alignids) {
-            TreeMap<Integer,Float> o = getWeightHistogram(alignid,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand, true);
-            if(paired) //run for isLeft =true & false
-            	o.putAll(getWeightHistogram(alignid,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand, false));
+        int h = 0;
+        for (int a = 0; a < ids.size(); a++) {
+            TreeMap<Integer,Float> o = hists.get(h++);
+            if(paired) { //run for isLeft =true & false; the two sides are summed, as the server does when merging
+                TreeMap<Integer,Float> right = hists.get(h++);
+                for (int k : right.keySet()) {
+                    if (o.containsKey(k)) {
+                        o.put(k, o.get(k) + right.get(k));
+                    } else {
+                        o.put(k, right.get(k));
+                    }
+                }
+            }
             if (output == null) {
                 output = o;
             } else {
@@ -1043,6 +1318,154 @@ public class Client implements ReadOnlyClient {
         }
         return output;
     }
+    /**
+     * Returns the histogram of reads summed over a set of alignments as one count per bin from start to stop
+     * (see DenseHistogram).  The server does the summing, so only one array crosses the network
+     * regardless of the number of alignments.  For paired alignments, both sides are counted.  
+     * Returns null if the server doesn't support merged histograms.
+     */
+    public DenseHistogram getMergedHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, int start, int stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+    	synchronized(this){
+    		if (!sendMergedHistogramRequest("mergedhistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand)) {
+    			return null;
+    		}
+    		int numbins = Integer.parseInt(readLine());
+    		return new DenseHistogram(start, binsize, Bits.readInts(numbins, instream, buffer));
+    	}
+    }
+    /**
+     * Returns the histogram of read weights summed over a set of alignments as one weight per bin
+     * from start to stop (see DenseWeightHistogram and getMergedHistogram).
+     * Returns null if the server doesn't support merged histograms.
+     */
+    public DenseWeightHistogram getMergedWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, int start, int stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+    	synchronized(this){
+    		if (!sendMergedHistogramRequest("mergedweighthistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand)) {
+    			return null;
+    		}
+    		int numbins = Integer.parseInt(readLine());
+    		return new DenseWeightHistogram(start, binsize, Bits.readFloats(numbins, instream, buffer));
+    	}
+    }
+    /* sends a merged histogram request and reads the response status.  Returns false, without sending 
+       anything, if the server doesn't advertise the request type (see serverSupports); throws 
+       ClientException for other errors.
+    */
+    private boolean sendMergedHistogramRequest(String type, Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, int start, int stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+    	if (!serverSupports(type)) {
+    		return false;
+    	}
+    	if(!connectionOpen)
+    		reConnect();
+    	request.clear();
+    	request.type = type;
+    	request.chromid = chromid;
+    	request.start = start;
+    	request.end = stop;
+    	request.minWeight = minWeight;
+    	request.isType2 = isType2;
+    	request.isPlusStrand = plusStrand;
+    	request.isPaired = paired;
+    	if (paired) {
+    		request.isLeft = true; //required by the request format; both sides are merged
+    	}
+    	request.map.put("binsize",Integer.toString(binsize));
+    	if (dedup > 0) {
+    		request.map.put("dedup",Integer.toString(dedup));
+    	}
+    	if (extension != 0) {
+    		request.map.put("extension",Integer.toString(extension));
+    	}
+    	request.list.addAll(alignids);
+    	sendString(request.toString());
+    	String response = readLine();
+    	if (!response.equals("OK")) {
+    		if (printErrors) {
+    			System.err.println("not-OK response to request: " + response);
+    			System.err.println("request was " + request);
+    		}
+    		throw new ClientException(response);
+    	}
+    	return true;
+    }
+    /**
+     * Builds one histogram request per alignment (two for paired alignments: left then right reads)
+     */
+    private List<Request> histogramRequests(String type, List<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) {
+        List<Request> requests = new ArrayList<Request>();
+        for (String alignid : alignids) {
+            for (int side = 0; side < (paired ? 2 : 1); side++) {
+                Request r = new Request();
+                r.type = type;
+                r.alignid = alignid;
+                r.chromid = chromid;
+                r.start = start;
+                r.end = stop;
+                r.isLeft = side == 0;
+                r.minWeight = minWeight;
+                r.isType2 = isType2;
+                r.isPlusStrand = plusStrand;
+                r.isPaired = paired;
+                r.map.put("binsize",Integer.toString(binsize));
+                if (dedup > 0) {
+                    r.map.put("dedup",Integer.toString(dedup));
+                }
+                if (extension != 0) {
+                    r.map.put("extension",Integer.toString(extension));
+                }
+                requests.add(r);
+            }
+        }
+        return requests;
+    }
+    /**
+     * Sends histogram requests in batches without waiting for each response, then reads the responses
+     * in order.  The server handles requests on a connection in the order they arrive, so this saves one
+     * round trip per request.  Each result is {int[] ints} for "histogram" and {int[] positions, float[] weights}
+     * for "weighthistogram".  If any request fails, the remaining responses are still consumed
+     * (keeping the connection usable) and the first error is thrown.
+     */
+    private List<Object[]> pipelineHistograms(List<Request> requests) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+    		List<Object[]> results = new ArrayList<Object[]>();
+    		String error = null;
+    		for (int b = 0; b < requests.size(); b += MAX_PIPELINE) {
+    			List<Request> batch = requests.subList(b, Math.min(requests.size(), b + MAX_PIPELINE));
+    			StringBuilder sb = new StringBuilder();
+    			for (Request r : batch) {
+    				sb.append(r.toString());
+    			}
+    			sendString(sb.toString());
+    			for (Request r : batch) {
+    				String response = readLine();
+    				if (!response.equals("OK")) {
+    					if (printErrors) {
+    						System.err.println("not-OK response to request: " + response);
+    						System.err.println("request was " + r);
+    					}
+    					if (error == null) {
+    						error = response;
+    					}
+    					results.add(null);
+    					continue;
+    				}
+    				int numints = Integer.parseInt(readLine());
+    				int out[] = Bits.readInts(numints, instream, buffer);
+    				if (r.type.equals("weighthistogram")) {
+    					results.add(new Object[]{out, Bits.readFloats(numints, instream, buffer)});
+    				} else {
+    					results.add(new Object[]{out});
+    				}
+    			}
+    		}
+    		if (error != null) {
+    			throw new ClientException(error);
+    		}
+    		return results;
+    	}
+    }
 
     /**
      * Returns a Map from READ, WRITE, and ADMIN to lists of principals that have those privileges on the specified alignment.
@@ -0,0 +1,85 @@
+package org.seqcode.data.readdb;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-request-type latency statistics for ReadDB client calls.
+ *
+ * Latencies are kept in power-of-two microsecond buckets, so percentiles are reported as the upper bound
+ * of the bucket they fall in (i.e. to within a factor of two). Recording is thread-safe.
+ */
+public class ClientMetrics {
+
+	private static final int NUMBUCKETS = 40;
+	private Map<String, Stats> stats = new TreeMap<String, Stats>();
+
+	/**
+	 * Statistics for one request type
+	 */
+	public static class Stats {
+		private long count=0, errors=0, totalNanos=0, maxNanos=0;
+		private long[] buckets = new long[NUMBUCKETS]; //bucket b holds latencies < 2^b microseconds
+
+		synchronized void record(long nanos, boolean ok){
+			count++;
+			if(!ok) errors++;
+			totalNanos += nanos;
+			if(nanos>maxNanos) maxNanos=nanos;
+			long micros = nanos/1000;
+			int b = 64-Long.numberOfLeadingZeros(micros);
+			buckets[Math.min(b, NUMBUCKETS-1)]++;
+		}
+		public synchronized long getCount(){return count;}
+		public synchronized long getErrors(){return errors;}
+		public synchronized double getMeanMillis(){return count==0 ? 0 : totalNanos/1e6/count;}
+		public synchronized double getMaxMillis(){return maxNanos/1e6;}
+		/** Upper bound (ms) of the latency bucket containing the given percentile (0-100) */
+		public synchronized double getPercentileMillis(double pct){
+			if(count==0) return 0;
+			long target = (long)Math.ceil(count*pct/100.0), seen=0;
+			for(int b=0; b<NUMBUCKETS; b++){
+				seen += buckets[b];
+				if(seen>=Math.max(1, target))
+					return Math.min((1L<<b)/1000.0, getMaxMillis());
+			}
+			return getMaxMillis();
+		}
+	}
+
+	public void record(String type, long nanos, boolean ok){
+		Stats s;
+		synchronized(stats){
+			s = stats.get(type);
+			if(s==null)
+				stats.put(type, s = new Stats());
+		}
+		s.record(nanos, ok);
+	}
+
+	/** Statistics for a request type, or null if none were recorded */
+	public Stats getStats(String type){
+		synchronized(stats){
+			return stats.get(type);
+		}
+	}
+
+	public void clear(){
+		synchronized(stats){
+			stats.clear();
+		}
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-20s %10s %8s %10s %10s %10s %10s %10s\n", "request", "count", "errors", "mean(ms)", "p50(ms)", "p95(ms)", "p99(ms)", "max(ms)"));
+		synchronized(stats){
+			for(String type : stats.keySet()){
+				Stats s = stats.get(type);
+				sb.append(String.format("%-20s %10d %8d %10.2f %10.2f %10.2f %10.2f %10.2f\n", type, s.getCount(), s.getErrors(),
+						s.getMeanMillis(), s.getPercentileMillis(50), s.getPercentileMillis(95), s.getPercentileMillis(99), s.getMaxMillis()));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,255 @@
+package org.seqcode.data.readdb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Thread-safe access to a ReadDB server through a pool of Client connections.
+ *
+ * <p>Each call borrows a connection (opening a new one if fewer than maxConnections exist, otherwise
+ * waiting for one to be returned), runs the request and returns the connection to the pool, so threads
+ * sharing a ClientPool run their requests concurrently rather than queueing behind a single socket,
+ * and the SASL handshake is paid once per connection rather than once per caller.
+ * Connections that fail with an IOException are discarded rather than returned.
+ *
+ * <p>The latency of every call is recorded by request type (see getMetrics()).
+ *
+ * <p>Most callers should use the shared pool for the default connection settings (getShared()),
+ * which stays open for the life of the JVM; idle connections are closed and reopened on demand by Client.
+ * Calls not wrapped here can be made through execute().
+ */
+public class ClientPool implements ReadOnlyClient {
+
+	/** A request to run on a pooled connection */
+	public interface ClientCall<T> {
+		public T call(Client c) throws IOException, ClientException;
+	}
+
+	private static ClientPool shared=null;
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+	private String hostname=null, username=null, password=null;
+	private int portnum;
+	private int maxConnections, numConnections=0;
+	private boolean closed=false;
+	private LinkedBlockingQueue<Client> idle = new LinkedBlockingQueue<Client>();
+	private ClientMetrics metrics = new ClientMetrics();
+
+	/**
+	 * The pool for the default connection settings (~/.readdb_passwd or readdb_passwd in the classpath).
+	 * The pool size can be set with the READDB_POOLSIZE environment variable.
+	 */
+	public static synchronized ClientPool getShared() throws IOException, ClientException {
+		if(shared==null || shared.closed){
+			int size = DEFAULT_MAX_CONNECTIONS;
+			if(System.getenv("READDB_POOLSIZE")!=null)
+				size = Integer.parseInt(System.getenv("READDB_POOLSIZE"));
+			shared = new ClientPool(size);
+		}
+		return shared;
+	}
+
+	/**
+	 * Pool using the default connection settings.  Opens one connection immediately so that
+	 * configuration and authentication errors surface here.
+	 */
+	public ClientPool(int maxConnections) throws IOException, ClientException {
+		this.maxConnections = Math.max(1, maxConnections);
+		numConnections = 1;
+		release(open(), true);
+	}
+
+	public ClientPool(String hostname, int portnum, String username, String password, int maxConnections) throws IOException, ClientException {
+		this.hostname = hostname;
+		this.portnum = portnum;
+		this.username = username;
+		this.password = password;
+		this.maxConnections = Math.max(1, maxConnections);
+		numConnections = 1;
+		release(open(), true);
+	}
+
+	public int getMaxConnections(){return maxConnections;}
+	public synchronized int getNumConnections(){return numConnections;}
+	public ClientMetrics getMetrics(){return metrics;}
+
+	/* opens a connection; the caller has already counted it in numConnections */
+	private Client open() throws IOException, ClientException {
+		try{
+			return hostname==null ? new Client() : new Client(hostname, portnum, username, password);
+		}catch(IOException e){
+			synchronized(this){ numConnections--; }
+			throw e;
+		}catch(ClientException e){
+			synchronized(this){ numConnections--; }
+			throw e;
+		}
+	}
+
+	private Client borrow() throws IOException, ClientException {
+		try{
+			while(true){
+				Client c = idle.poll();
+				if(c!=null)
+					return c;
+				boolean canOpen;
+				synchronized(this){
+					if(closed)
+						throw new ClientException("ClientPool is closed");
+					canOpen = numConnections<maxConnections;
+					if(canOpen)
+						numConnections++;
+				}
+				if(canOpen)
+					return open();
+				//wait for a connection to be returned (re-checking in case one was discarded instead)
+				c = idle.poll(100, TimeUnit.MILLISECONDS);
+				if(c!=null)
+					return c;
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a ReadDB connection");
+		}
+	}
+
+	private void release(Client c, boolean reusable){
+		boolean keep;
+		synchronized(this){
+			keep = reusable && !closed;
+			if(!keep)
+				numConnections--;
+		}
+		if(keep)
+			idle.offer(c);
+		else
+			c.close();
+	}
+
+	/**
+	 * Runs a call on a pooled connection and records its latency under the given request type
+	 */
+	public <T> T execute(String type, ClientCall<T> call) throws IOException, ClientException {
+		long start = System.nanoTime();
+		Client c = borrow();
+		boolean reusable=false, ok=false;
+		try{
+			T result = call.call(c);
+			reusable = ok = true;
+			return result;
+		}catch(ClientException e){
+			reusable = true; //the server refused the request; the connection is fine
+			throw e;
+		}finally{
+			release(c, reusable);
+			metrics.record(type, System.nanoTime()-start, ok);
+		}
+	}
+
+	public boolean exists(final String alignid) throws IOException {
+		try{
+			return execute("exists", new ClientCall<Boolean>(){
+				public Boolean call(Client c) throws IOException { return c.exists(alignid); }
+			});
+		}catch(ClientException e){ //only from opening a connection
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+	public Set<Integer> getChroms(final String alignid, final boolean isType2, final boolean isPaired, final Boolean isLeft) throws IOException, ClientException {
+		return execute("getchroms", new ClientCall<Set<Integer>>(){
+			public Set<Integer> call(Client c) throws IOException, ClientException { return c.getChroms(alignid, isType2, isPaired, isLeft); }
+		});
+	}
+	public int getCount(final String alignid, final int chromid, final boolean isType2, final boolean paired, final Integer start, final Integer stop, final Float minWeight, final Boolean isLeft, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("count", new ClientCall<Integer>(){
+			public Integer call(Client c) throws IOException, ClientException { return c.getCount(alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand); }
+		});
+	}
+	public double getWeight(final String alignid, final int chromid, final boolean isType2, final boolean paired, final Integer start, final Integer stop, final Float minWeight, final Boolean isLeft, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("weight", new ClientCall<Double>(){
+			public Double call(Client c) throws IOException, ClientException { return c.getWeight(alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand); }
+		});
+	}
+	public List<SingleHit> getSingleHits(final String alignid, final int chromid, final boolean isType2, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("singlehits", new ClientCall<List<SingleHit>>(){
+			public List<SingleHit> call(Client c) throws IOException, ClientException { return c.getSingleHits(alignid, chromid, isType2, start, stop, minWeight, plusStrand); }
+		});
+	}
+	public List<PairedHit> getPairedHits(final String alignid, final int chromid, final boolean isLeft, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("pairedhits", new ClientCall<List<PairedHit>>(){
+			public List<PairedHit> call(Client c) throws IOException, ClientException { return c.getPairedHits(alignid, chromid, isLeft, start, stop, minWeight, plusStrand); }
+		});
+	}
+	public List<PairedHit> getPairedHitsByMidpoint(final String alignid, final int chromid, final Integer start, final Integer stop, final Float minWeight, final Integer minFragment, final Integer maxFragment) throws IOException, ClientException {
+		return execute("midpointhits", new ClientCall<List<PairedHit>>(){
+			public List<PairedHit> call(Client c) throws IOException, ClientException { return c.getPairedHitsByMidpoint(alignid, chromid, start, stop, minWeight, minFragment, maxFragment); }
+		});
+	}
+	public List<PairedHit> getPairedHitsByMate(final String alignid, final int chromid, final boolean isLeft, final Integer start, final Integer stop, final int mateChromid, final Integer mateStart, final Integer mateStop, final Float minWeight) throws IOException, ClientException {
+		return execute("matehits", new ClientCall<List<PairedHit>>(){
+			public List<PairedHit> call(Client c) throws IOException, ClientException { return c.getPairedHitsByMate(alignid, chromid, isLeft, start, stop, mateChromid, mateStart, mateStop, minWeight); }
+		});
+	}
+	public TreeMap<Integer,Integer> getMidpointHistogram(final String alignid, final int chromid, final int binsize, final Integer start, final Integer stop, final Float minWeight, final Integer minFragment, final Integer maxFragment) throws IOException, ClientException {
+		return execute("midpointhistogram", new ClientCall<TreeMap<Integer,Integer>>(){
+			public TreeMap<Integer,Integer> call(Client c) throws IOException, ClientException { return c.getMidpointHistogram(alignid, chromid, binsize, start, stop, minWeight, minFragment, maxFragment); }
+		});
+	}
+	public int[] getFragmentSizeHistogram(final String alignid, final int chromid, final Integer start, final Integer stop, final Float minWeight) throws IOException, ClientException {
+		return execute("fragmentsizes", new ClientCall<int[]>(){
+			public int[] call(Client c) throws IOException, ClientException { return c.getFragmentSizeHistogram(alignid, chromid, start, stop, minWeight); }
+		});
+	}
+	public TreeMap<Integer,Integer> getHistogram(final String alignid, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("histogram", new ClientCall<TreeMap<Integer,Integer>>(){
+			public TreeMap<Integer,Integer> call(Client c) throws IOException, ClientException { return c.getHistogram(alignid, chromid, isType2, paired, extension, binsize, start, stop, minWeight, plusStrand); }
+		});
+	}
+	public TreeMap<Integer,Float> getWeightHistogram(final String alignid, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("weighthistogram", new ClientCall<TreeMap<Integer,Float>>(){
+			public TreeMap<Integer,Float> call(Client c) throws IOException, ClientException { return c.getWeightHistogram(alignid, chromid, isType2, paired, extension, binsize, start, stop, minWeight, plusStrand); }
+		});
+	}
+	public TreeMap<Integer,Integer> getHistogram(final Collection<String> alignids, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final int dedup, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("histogram", new ClientCall<TreeMap<Integer,Integer>>(){
+			public TreeMap<Integer,Integer> call(Client c) throws IOException, ClientException { return c.getHistogram(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand); }
+		});
+	}
+	public TreeMap<Integer,Float> getWeightHistogram(final Collection<String> alignids, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final int dedup, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("weighthistogram", new ClientCall<TreeMap<Integer,Float>>(){
+			public TreeMap<Integer,Float> call(Client c) throws IOException, ClientException { return c.getWeightHistogram(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand); }
+		});
+	}
+	public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+		return getHistogram(alignids, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand);
+	}
+	public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+		return getWeightHistogram(alignids, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand);
+	}
+	public DenseHistogram getMergedHistogram(final Collection<String> alignids, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final int dedup, final int start, final int stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("mergedhistogram", new ClientCall<DenseHistogram>(){
+			public DenseHistogram call(Client c) throws IOException, ClientException { return c.getMergedHistogram(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand); }
+		});
+	}
+	public DenseWeightHistogram getMergedWeightHistogram(final Collection<String> alignids, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final int dedup, final int start, final int stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
+		return execute("mergedweighthistogram", new ClientCall<DenseWeightHistogram>(){
+			public DenseWeightHistogram call(Client c) throws IOException, ClientException { return c.getMergedWeightHistogram(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand); }
+		});
+	}
+
+	/**
+	 * Closes all connections.  Calls made after closing fail; connections in use are closed when returned.
+	 */
+	public void close(){
+		synchronized(this){
+			closed = true;
+		}
+		Client c;
+		while((c = idle.poll())!=null){
+			synchronized(this){ numConnections--; }
+			c.close();
+		}
+	}
+}
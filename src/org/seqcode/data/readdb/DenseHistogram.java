@@ -0,0 +1,88 @@
+package org.seqcode.data.readdb;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A histogram of read counts over equal-sized bins.  Bin i covers positions 
+ * start + i*binsize to start + (i+1)*binsize - 1 (the last bin ends at or after stop).
+ * In the TreeMap form used by the older Client methods, bin i is keyed by its center,
+ * start + i*binsize + binsize/2, and empty bins are left out.
+ */
+public class DenseHistogram {
+
+    private int start, binsize;
+    private int[] counts;
+
+    public DenseHistogram(int start, int stop, int binsize) {
+        this(start, binsize, new int[numBins(start, stop, binsize)]);
+    }
+    public DenseHistogram(int start, int binsize, int[] counts) {
+        this.start = start;
+        this.binsize = binsize;
+        this.counts = counts;
+    }
+    /** the number of bins used for a histogram from start to stop, as in Hits.histogram */
+    public static int numBins(int start, int stop, int binsize) {
+        return (stop - start) / binsize + 1;
+    }
+
+    public int getStart() {return start;}
+    public int getBinSize() {return binsize;}
+    public int getNumBins() {return counts.length;}
+    /** the underlying array; changes to it change the histogram */
+    public int[] getCounts() {return counts;}
+    public int getCount(int bin) {return counts[bin];}
+    public int getBinCenter(int bin) {return start + binsize * bin + binsize / 2;}
+    /** returns the bin containing position, or -1 if it's outside the histogram */
+    public int getBin(int position) {
+        if (position < start) {
+            return -1;
+        }
+        int bin = (position - start) / binsize;
+        return bin < counts.length ? bin : -1;
+    }
+    public long getTotal() {
+        long total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        return total;
+    }
+
+    /** adds the counts of another histogram over the same bins to this one */
+    public void add(DenseHistogram other) {
+        checkBins(other.start, other.binsize, other.counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+    void checkBins(int ostart, int obinsize, int onumbins) {
+        if (ostart != start || obinsize != binsize || onumbins != counts.length) {
+            throw new IllegalArgumentException(String.format("Histogram bins differ: start %d binsize %d bins %d vs start %d binsize %d bins %d",
+                                                             start, binsize, counts.length, ostart, obinsize, onumbins));
+        }
+    }
+
+    /** the non-empty bins keyed by bin center */
+    public TreeMap<Integer,Integer> toTreeMap() {
+        TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                output.put(getBinCenter(i), counts[i]);
+            }
+        }
+        return output;
+    }
+    /** builds a dense histogram from a map keyed by bin center.  Keys outside start..stop are ignored */
+    public static DenseHistogram fromTreeMap(int start, int stop, int binsize, Map<Integer,Integer> map) {
+        DenseHistogram output = new DenseHistogram(start, stop, binsize);
+        for (Map.Entry<Integer,Integer> e : map.entrySet()) {
+            int bin = output.getBin(e.getKey());
+            if (bin >= 0) {
+                output.counts[bin] += e.getValue();
+            }
+        }
+        return output;
+    }
+}
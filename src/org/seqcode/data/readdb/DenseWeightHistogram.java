@@ -0,0 +1,90 @@
+package org.seqcode.data.readdb;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A histogram of summed read weights over equal-sized bins.  Bins are laid out as in
+ * DenseHistogram.
+ */
+public class DenseWeightHistogram {
+
+    private int start, binsize;
+    private float[] weights;
+
+    public DenseWeightHistogram(int start, int stop, int binsize) {
+        this(start, binsize, new float[DenseHistogram.numBins(start, stop, binsize)]);
+    }
+    public DenseWeightHistogram(int start, int binsize, float[] weights) {
+        this.start = start;
+        this.binsize = binsize;
+        this.weights = weights;
+    }
+
+    public int getStart() {return start;}
+    public int getBinSize() {return binsize;}
+    public int getNumBins() {return weights.length;}
+    /** the underlying array; changes to it change the histogram */
+    public float[] getWeights() {return weights;}
+    public float getWeight(int bin) {return weights[bin];}
+    public int getBinCenter(int bin) {return start + binsize * bin + binsize / 2;}
+    /** returns the bin containing position, or -1 if it's outside the histogram */
+    public int getBin(int position) {
+        if (position < start) {
+            return -1;
+        }
+        int bin = (position - start) / binsize;
+        return bin < weights.length ? bin : -1;
+    }
+    public double getTotal() {
+        double total = 0;
+        for (float w : weights) {
+            total += w;
+        }
+        return total;
+    }
+
+    /** adds the weights of another histogram over the same bins to this one */
+    public void add(DenseWeightHistogram other) {
+        checkBins(other.start, other.binsize, other.weights.length);
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] += other.weights[i];
+        }
+    }
+    /** adds read counts over the same bins to this histogram, each read weighing one */
+    public void add(DenseHistogram other) {
+        checkBins(other.getStart(), other.getBinSize(), other.getNumBins());
+        int[] counts = other.getCounts();
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] += counts[i];
+        }
+    }
+    private void checkBins(int ostart, int obinsize, int onumbins) {
+        if (ostart != start || obinsize != binsize || onumbins != weights.length) {
+            throw new IllegalArgumentException(String.format("Histogram bins differ: start %d binsize %d bins %d vs start %d binsize %d bins %d",
+                                                             start, binsize, weights.length, ostart, obinsize, onumbins));
+        }
+    }
+
+    /** the bins with positive weight keyed by bin center, as returned by the server's weighthistogram */
+    public TreeMap<Integer,Float> toTreeMap() {
+        TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] > 0) {
+                output.put(getBinCenter(i), weights[i]);
+            }
+        }
+        return output;
+    }
+    /** builds a dense histogram from a map keyed by bin center.  Keys outside start..stop are ignored */
+    public static DenseWeightHistogram fromTreeMap(int start, int stop, int binsize, Map<Integer,Float> map) {
+        DenseWeightHistogram output = new DenseWeightHistogram(start, stop, binsize);
+        for (Map.Entry<Integer,Float> e : map.entrySet()) {
+            int bin = output.getBin(e.getKey());
+            if (bin >= 0) {
+                output.weights[bin] += e.getValue();
+            }
+        }
+        return output;
+    }
+}
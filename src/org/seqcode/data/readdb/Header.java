@@ -17,6 +17,14 @@ public class Header implements Closeable {
        indexPositions may not contain duplicate values.
     */
     private int[] indexPositions, indexPointers;
+    /* optional per-page summaries.  Page k covers hits indexPointers[k] (inclusive) to 
+       indexPointers[k+1] (or numHits) exclusive.  pagePlusCounts and pagePlusWeights cover 
+       the hits whose first strand is plus.  pageLastPositions is the position of the last
+       hit in the page.  These are null for index files written without summaries.
+    */
+    private int[] pagePlusCounts, pageLastPositions;
+    private double[] pageWeights, pagePlusWeights;
+    private float[] pageMinWeights, pageMaxWeights;
 
     public int getNumHits() {return numHits;}
     /* returns the first element in the file of hits
@@ -77,6 +85,17 @@ public class Header implements Closeable {
     public Header(IntBuffer hits, int pagesize) {
         init(hits, pagesize);
     }
+    /**
+     * Creates a header to index the provided set of hits, including the per-page
+     * count and weight summaries used to answer queries that cover whole pages.
+     */
+    public Header(Hits hits) {
+        this(hits, 16*1024);
+    }
+    public Header(Hits hits, int pagesize) {
+        init(hits.getPositionsBuffer().getib(), pagesize);
+        summarize(hits.getPositionsBuffer(), hits.getWeightsBuffer(), hits.getLASBuffer());
+    }
     private void init(IntBuffer hits, int pagesize) {   
         indexPositions = new int[0];
         indexPointers = new int[0];
@@ -102,6 +121,89 @@ public class Header implements Closeable {
             indexPointers[i] = pointers.get(i);
         }
     }
+    private void summarize(IntBP positions, FloatBP weights, IntBP las) {
+        int n = indexPointers.length;
+        pagePlusCounts = new int[n];
+        pageLastPositions = new int[n];
+        pageWeights = new double[n];
+        pagePlusWeights = new double[n];
+        pageMinWeights = new float[n];
+        pageMaxWeights = new float[n];
+        for (int k = 0; k < n; k++) {
+            int end = getPageEnd(k);
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for (int i = indexPointers[k]; i < end; i++) {
+                float w = weights.get(i);
+                pageWeights[k] += w;
+                if (Hits.getStrandOne(las.get(i))) {
+                    pagePlusCounts[k]++;
+                    pagePlusWeights[k] += w;
+                }
+                if (w < min) { min = w; }
+                if (w > max) { max = w; }
+            }
+            pageMinWeights[k] = min;
+            pageMaxWeights[k] = max;
+            pageLastPositions[k] = positions.get(end - 1);
+        }
+    }
+
+    /** true if this header carries per-page summaries */
+    public boolean hasSummaries() {return pageWeights != null;}
+    public int getNumPages() {return indexPointers.length;}
+    /** index of the first hit in page k */
+    public int getPageStart(int k) {return indexPointers[k];}
+    /** one past the index of the last hit in page k */
+    public int getPageEnd(int k) {
+        return k + 1 < indexPointers.length ? indexPointers[k+1] : numHits;
+    }
+    public int getPageFirstPosition(int k) {return indexPositions[k];}
+    public int getPageLastPosition(int k) {return pageLastPositions[k];}
+    /** returns the first page that starts at or after the hit index i */
+    public int getPageAtOrAfter(int i) {
+        int p = Arrays.binarySearch(indexPointers, i);
+        return p >= 0 ? p : (p+1)*-1;
+    }
+    /* returns 1 if every hit in page k passes the weight filter, 0 if none do, and -1 if 
+       the page has to be scanned.  If strict, hits must be > minweight rather than >=
+    */
+    private int weightFilter(int k, Float minweight, boolean strict) {
+        if (minweight == null ||
+            (strict ? pageMinWeights[k] > minweight : pageMinWeights[k] >= minweight)) {
+            return 1;
+        }
+        if (strict ? pageMaxWeights[k] <= minweight : pageMaxWeights[k] < minweight) {
+            return 0;
+        }
+        return -1;
+    }
+    /**
+     * Returns the number of hits in page k that pass the weight and strand filters, or -1
+     * if that can't be answered from the summaries alone.  
+     */
+    public int getPageCount(int k, Float minweight, Boolean isPlus, boolean strict) {
+        int w = weightFilter(k, minweight, strict);
+        if (w <= 0) {
+            return w;
+        }
+        int count = getPageEnd(k) - indexPointers[k];
+        return isPlus == null ? count : (isPlus ? pagePlusCounts[k] : count - pagePlusCounts[k]);
+    }
+    /**
+     * Returns the total weight of the hits in page k that pass the weight and strand filters, 
+     * or NaN if that can't be answered from the summaries alone.  
+     */
+    public double getPageWeight(int k, Float minweight, Boolean isPlus, boolean strict) {
+        int w = weightFilter(k, minweight, strict);
+        if (w < 0) {
+            return Double.NaN;
+        }
+        if (w == 0) {
+            return 0;
+        }
+        return isPlus == null ? pageWeights[k] : (isPlus ? pagePlusWeights[k] : pageWeights[k] - pagePlusWeights[k]);
+    }
+
     public void writeIndexFile(String fname) throws IOException {
         OutputStream stream = new FileOutputStream(fname);
         byte[] buffer = new byte[8192];
@@ -111,6 +213,65 @@ public class Header implements Closeable {
         Bits.sendInts(indexPositions, stream, buffer);
         Bits.sendInts(indexPointers, stream, buffer);
         stream.close();
+        writeSummaryFile(fname);
+    }
+    /* the summaries go in a separate file so that index files keep their old format */
+    public static String getSummaryFname(String indexfname) {
+        return indexfname + ".summary";
+    }
+    private void writeSummaryFile(String fname) throws IOException {
+        File f = new File(getSummaryFname(fname));
+        if (!hasSummaries()) {
+            f.delete();
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        out.writeInt(numHits);
+        out.writeInt(indexPointers.length);
+        for (int k = 0; k < indexPointers.length; k++) {
+            out.writeInt(pagePlusCounts[k]);
+            out.writeInt(pageLastPositions[k]);
+            out.writeDouble(pageWeights[k]);
+            out.writeDouble(pagePlusWeights[k]);
+            out.writeFloat(pageMinWeights[k]);
+            out.writeFloat(pageMaxWeights[k]);
+        }
+        out.close();
+    }
+    /* reads the summaries for this index if a matching summary file exists */
+    private void readSummaryFile(String fname) throws IOException {
+        File f = new File(getSummaryFname(fname));
+        if (!f.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            int n = indexPointers.length;
+            if (in.readInt() != numHits || in.readInt() != n) {
+                return;
+            }
+            int[] plusCounts = new int[n], lastPositions = new int[n];
+            double[] weights = new double[n], plusWeights = new double[n];
+            float[] minWeights = new float[n], maxWeights = new float[n];
+            for (int k = 0; k < n; k++) {
+                plusCounts[k] = in.readInt();
+                lastPositions[k] = in.readInt();
+                weights[k] = in.readDouble();
+                plusWeights[k] = in.readDouble();
+                minWeights[k] = in.readFloat();
+                maxWeights[k] = in.readFloat();
+            }
+            pagePlusCounts = plusCounts;
+            pageLastPositions = lastPositions;
+            pageWeights = weights;
+            pagePlusWeights = plusWeights;
+            pageMinWeights = minWeights;
+            pageMaxWeights = maxWeights;
+        } catch (EOFException e) {
+            // truncated summary file; fall back to scanning hits
+        } finally {
+            in.close();
+        }
     }
     public static Header readIndexFile(String fname) throws IOException {
         File f = new File(fname);
@@ -124,6 +285,7 @@ public class Header implements Closeable {
         h.indexPositions = Bits.readInts((int)size/8, stream, buffer);
         h.indexPointers = Bits.readInts((int)size/8, stream, buffer);
         stream.close();
+        h.readSummaryFile(fname);
 
         return h;
     }
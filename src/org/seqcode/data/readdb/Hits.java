@@ -266,6 +266,72 @@ public abstract class Hits implements Closeable {
         }
         return sum;
     }
+    /**
+     * Returns the number of hits between start and stop that pass the weight and strand filters.
+     * Index pages of the header that lie entirely inside the range are answered from the 
+     * page summaries where possible rather than by scanning their hits.
+     */
+    public int getCountBetween(Header header,
+                               int start,
+                               int stop,
+                               Float minweight,
+                               Boolean isPlus) throws IOException {
+        int[] p = getIndices(header.getFirstIndex(start), header.getLastIndex(stop), start, stop);
+        if ((minweight == null && isPlus == null) || !header.hasSummaries()) {
+            return countRange(p[0], p[1], minweight, isPlus);
+        }
+        int count = 0, i = p[0];
+        for (int k = header.getPageAtOrAfter(p[0]); k < header.getNumPages() && header.getPageEnd(k) <= p[1]; k++) {
+            count += countRange(i, header.getPageStart(k), minweight, isPlus);
+            int c = header.getPageCount(k, minweight, isPlus, false);
+            count += c >= 0 ? c : countRange(header.getPageStart(k), header.getPageEnd(k), minweight, isPlus);
+            i = header.getPageEnd(k);
+        }
+        return count + countRange(i, p[1], minweight, isPlus);
+    }
+    /**
+     * Returns the total weight of the hits between start and stop that pass the weight and strand filters,
+     * using the header's page summaries for pages entirely inside the range.
+     */
+    public double getWeightBetween(Header header,
+                                   int start,
+                                   int stop,
+                                   Float minweight,
+                                   Boolean isPlus) throws IOException {
+        int[] p = getIndices(header.getFirstIndex(start), header.getLastIndex(stop), start, stop);
+        if (!header.hasSummaries()) {
+            return weightRange(p[0], p[1], minweight, isPlus);
+        }
+        double sum = 0;
+        int i = p[0];
+        for (int k = header.getPageAtOrAfter(p[0]); k < header.getNumPages() && header.getPageEnd(k) <= p[1]; k++) {
+            sum += weightRange(i, header.getPageStart(k), minweight, isPlus);
+            double w = header.getPageWeight(k, minweight, isPlus, false);
+            sum += !Double.isNaN(w) ? w : weightRange(header.getPageStart(k), header.getPageEnd(k), minweight, isPlus);
+            i = header.getPageEnd(k);
+        }
+        return sum + weightRange(i, p[1], minweight, isPlus);
+    }
+    private int countRange(int from, int to, Float minweight, Boolean isPlus) {
+        if (minweight == null && isPlus == null) {
+            return Math.max(0, to - from);
+        }
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            count += ((minweight == null || (weights.get(i) >= minweight)) &&
+                      (isPlus == null || (getStrandOne(lenAndStrand.get(i)) == isPlus))) ? 1 : 0;
+        }
+        return count;
+    }
+    private double weightRange(int from, int to, Float minweight, Boolean isPlus) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            float f = weights.get(i);
+            sum += ((minweight == null || (f >= minweight)) &&
+                    (isPlus == null || (getStrandOne(lenAndStrand.get(i)) == isPlus))) ? f : 0;
+        }
+        return sum;
+    }
     public IntBP getIntsBetween(IntBP buffer,
                                 int firstindex,
                                 int lastindex,
@@ -386,6 +452,33 @@ public abstract class Hits implements Closeable {
                            Float minweight,
                            Boolean isPlus,
                            int extension) throws IOException {
+        return histogram(null, firstindex, lastindex, start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+    /** as histogram(firstindex, lastindex, ...) but takes the index bounds from the header.  
+     *  Without dedup or extension, index pages that lie entirely inside one bin are counted
+     *  from the header's page summaries where possible.
+     */
+    public int[] histogram(Header header,
+                           int start,
+                           int stop,
+                           int stepsize,
+                           int dedup,
+                           Float minweight,
+                           Boolean isPlus,
+                           int extension) throws IOException {
+        return histogram(header.hasSummaries() ? header : null, header.getFirstIndex(start), header.getLastIndex(stop),
+                         start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+    private int[] histogram(Header header,
+                            int firstindex,
+                            int lastindex,
+                            int start,
+                            int stop,
+                            int stepsize,
+                            int dedup,
+                            Float minweight,
+                            Boolean isPlus,
+                            int extension) throws IOException {
         int output[] = new int[(stop - start) / stepsize + 1];
         for (int j = 0; j < output.length; j++) {
             output[j] = 0;
@@ -394,7 +487,22 @@ public abstract class Hits implements Closeable {
         int[] p = getIndices(firstindex, lastindex, start,stop);        
         int lastpos = -1, lastposcount = 0;
         if (extension==0) {
+            int page = (header == null || dedup != 0) ? Integer.MAX_VALUE : header.getPageAtOrAfter(p[0]);
             for (int i = p[0]; i < p[1]; i++) {
+                if (header != null && page < header.getNumPages() && i == header.getPageStart(page)) {
+                    int end = header.getPageEnd(page);
+                    int bin = (header.getPageFirstPosition(page) - start) / stepsize;
+                    int c = -1;
+                    if (end <= p[1] && bin == (header.getPageLastPosition(page) - start) / stepsize) {
+                        c = header.getPageCount(page, minweight, isPlus, true);
+                    }
+                    page++;
+                    if (c >= 0) {
+                        output[bin] += c;
+                        i = end - 1;
+                        continue;
+                    }
+                }
                 int pos = positions.get(i);
                 if (pos < start || pos > stop) {
                     System.err.println(String.format("firstindex %d lastindex %d start %d stop %d p[0] %d p[1] %d positions[p[0]] %d i %d pos %d",
@@ -469,6 +577,32 @@ public abstract class Hits implements Closeable {
                                    Float minweight,
                                    Boolean isPlus,
                                    int extension) throws IOException {
+        return weightHistogram(null, firstindex, lastindex, start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+    /** as weightHistogram(firstindex, lastindex, ...) but takes the index bounds from the header
+     *  and uses its page summaries as in histogram(Header, ...)
+     */
+    public float[] weightHistogram(Header header,
+                                   int start,
+                                   int stop,
+                                   int stepsize,
+                                   int dedup,
+                                   Float minweight,
+                                   Boolean isPlus,
+                                   int extension) throws IOException {
+        return weightHistogram(header.hasSummaries() ? header : null, header.getFirstIndex(start), header.getLastIndex(stop),
+                               start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+    private float[] weightHistogram(Header header,
+                                    int firstindex,
+                                    int lastindex,
+                                    int start,
+                                    int stop,
+                                    int stepsize,
+                                    int dedup,
+                                    Float minweight,
+                                    Boolean isPlus,
+                                    int extension) throws IOException {
         float output[] = new float[(stop - start) / stepsize + 1];
         for (int j = 0; j < output.length; j++) {
             output[j] = 0;
@@ -477,7 +611,22 @@ public abstract class Hits implements Closeable {
         int[] p = getIndices(firstindex, lastindex, start,stop);        
         int lastpos = -1, lastposcount = 0;
         if (extension==0) {
+            int page = (header == null || dedup != 0) ? Integer.MAX_VALUE : header.getPageAtOrAfter(p[0]);
             for (int i = p[0]; i < p[1]; i++) {
+                if (header != null && page < header.getNumPages() && i == header.getPageStart(page)) {
+                    int end = header.getPageEnd(page);
+                    int bin = (header.getPageFirstPosition(page) - start) / stepsize;
+                    double w = Double.NaN;
+                    if (end <= p[1] && bin == (header.getPageLastPosition(page) - start) / stepsize) {
+                        w = header.getPageWeight(page, minweight, isPlus, true);
+                    }
+                    page++;
+                    if (!Double.isNaN(w)) {
+                        output[bin] += w;
+                        i = end - 1;
+                        continue;
+                    }
+                }
                 int pos = positions.get(i);
                 assert(pos >= start);
                 assert(pos <= stop);
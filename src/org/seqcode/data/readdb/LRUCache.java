@@ -15,6 +15,8 @@ public class LRUCache<X extends Closeable> {
     private List<String> ordered;
     private Map<String,X> map;
     private int size;
+    /* lookups that found and didn't find their key, and entries pushed out by add() */
+    private long hits, misses, evictions;
 
     public LRUCache(int size) {
         ordered = Collections.synchronizedList(new ArrayList<String>());
@@ -34,8 +36,10 @@ public class LRUCache<X extends Closeable> {
                 //                System.err.println("GETTING " +k);
                 ordered.remove(k);
                 ordered.add(k);
+                hits++;
                 return map.get(k);                
             } else {
+                misses++;
                 return null;
             }
         }
@@ -49,6 +53,7 @@ public class LRUCache<X extends Closeable> {
             if (ordered.size() >= size) {
                 String toRemove = ordered.get(0);
                 remove(toRemove);
+                evictions++;
             }
             ordered.add(k);
             map.put(k,o);
@@ -64,6 +69,17 @@ public class LRUCache<X extends Closeable> {
             }
         }
     }
+    public int size() {return map.size();}
+    public long getHits() {synchronized(map) {return hits;}}
+    public long getMisses() {synchronized(map) {return misses;}}
+    public long getEvictions() {synchronized(map) {return evictions;}}
+    public void resetCounts() {
+        synchronized(map) {
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+        }
+    }
     public static int removed() {return removed;}
     public static void resetRemoved() {removed = 0;}
 
@@ -14,6 +14,10 @@ public class Lock {
     private static Map<String,ReentrantReadWriteLock> locks = Collections.synchronizedMap(new HashMap<String,ReentrantReadWriteLock>());
     private static Map<Thread,Set<java.util.concurrent.locks.Lock>> threadlocks = Collections.synchronizedMap(new HashMap<Thread,Set<java.util.concurrent.locks.Lock>>());
     private static int rlcount = 0;
+    /* if set, time spent waiting for locks is recorded here */
+    private static ServerMetrics metrics = null;
+
+    protected static void setMetrics(ServerMetrics m) {metrics = m;}
 
     /**
      * blocks to acquire a shared lock to the specified file.
@@ -29,6 +33,7 @@ public class Lock {
             }
         }
         java.util.concurrent.locks.Lock lock = null;
+        long start = System.nanoTime();
         synchronized(locks) {
             if (!locks.containsKey(fname)) {
                 locks.put(fname, new ReentrantReadWriteLock());
@@ -36,6 +41,9 @@ public class Lock {
             lock = locks.get(fname).readLock();
             lock.lock();
         }
+        if (metrics != null) {
+            metrics.recordPhase("lockwait.read", System.nanoTime() - start);
+        }
         threadlocks.get(t).add(lock);
         //        System.err.println("READLOCK by " + t + " of " + fname + " as " + lock);
         return lock;
@@ -48,6 +56,7 @@ public class Lock {
             }
         }
         java.util.concurrent.locks.Lock rl = null, lock = null;
+        long start = System.nanoTime();
         synchronized(locks) {
             if (!locks.containsKey(fname)) {
                 locks.put(fname, new ReentrantReadWriteLock());
@@ -58,6 +67,9 @@ public class Lock {
             lock = locks.get(fname).writeLock();
             lock.lock();
         }
+        if (metrics != null) {
+            metrics.recordPhase("lockwait.write", System.nanoTime() - start);
+        }
         threadlocks.get(t).add(lock);
         //        System.err.println("WRITELOCK by " + t + " of " + fname + " as " + lock);
         return lock;
@@ -0,0 +1,417 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Secondary index over one side of the PairedHits for a chromosome.  PairedHits are
+ * sorted only by this side's position, so this adds
+ *  - for the left side, the same-chromosome pairs sorted by fragment midpoint,
+ *    with a fragment-size histogram for each page of PAGE_SIZE midpoints
+ *  - for either side, all pairs sorted by the mate's chromosome and position
+ * so that midpoint histograms, fragment-size distributions and mate lookups
+ * don't need to scan every pair.
+ *
+ * The index is written next to the hits as <chrom>.prleft.midpoints, .midorder, .midpages
+ * and <chrom>.prleft.mateorder (or <chrom>.prright.mateorder).  If those files are missing or were
+ * written for a different number of hits, open() builds the index in memory instead.
+ */
+public class PairedIndex implements Closeable {
+
+    /* number of midpoints summarized by each page */
+    public static final int PAGE_SIZE = 4096;
+    /* fragment size histograms have NUM_FRAG_BINS bins of FRAG_BIN_SIZE bases plus one
+       more bin for anything longer */
+    public static final int FRAG_BIN_SIZE = 10;
+    public static final int NUM_FRAG_BINS = 200;
+
+    private PairedHits hits;
+    private int chrom, numHits;
+    /* midpoints of the same-chromosome pairs in sorted order and, for each, the index of
+       the pair in the hits.  null for the right side */
+    private IntBP midpoints, midOrder;
+    /* per-page fragment size histograms (proper pairs only) and minimum weights */
+    private int[][] pageFragments;
+    private float[] pageMinWeights;
+    /* hit indices sorted by (other chrom, other position) */
+    private IntBP mateOrder;
+
+    private PairedIndex(PairedHits hits, int chrom) {
+        this.hits = hits;
+        this.chrom = chrom;
+        numHits = hits.getPositionsBuffer().limit();
+    }
+
+    /**
+     * Opens the index files for these hits or, if they're missing or stale, builds the index in memory.
+     */
+    public static PairedIndex open(PairedHits hits, String prefix, int chrom) throws IOException {
+        PairedIndex index = new PairedIndex(hits, chrom);
+        if (!index.read(prefix)) {
+            index.build();
+        }
+        return index;
+    }
+    /**
+     * Builds the index for these hits and writes it out.  Call whenever the hits files are rewritten.
+     */
+    public static void writeIndex(PairedHits hits, String prefix, int chrom) throws IOException {
+        PairedIndex index = new PairedIndex(hits, chrom);
+        index.build();
+        index.write(prefix);
+    }
+
+    public static int midpoint(int pos, int otherPos) {
+        return (int)(((long)pos + otherPos) / 2);
+    }
+    /**
+     * Returns the fragment size for a pair with this las, or -1 if the
+     * reads don't face each other (as StrandedPair.getFragmentSize)
+     */
+    public static int fragmentSize(int pos, int otherPos, int las) {
+        boolean plus = Hits.getStrandOne(las), otherPlus = Hits.getStrandTwo(las);
+        if ((pos < otherPos && plus && !otherPlus) ||
+            (otherPos < pos && otherPlus && !plus)) {
+            return Math.abs(otherPos - pos);
+        }
+        return -1;
+    }
+    public static int fragmentBin(int size) {
+        return Math.min(size / FRAG_BIN_SIZE, NUM_FRAG_BINS);
+    }
+
+    public boolean isLeft() {return hits.isLeft();}
+    public PairedHits getHits() {return hits;}
+    public int getNumMidpoints() {return midpoints == null ? 0 : midpoints.limit();}
+    /* the i'th smallest midpoint */
+    public int getMidpoint(int i) {return midpoints.get(i);}
+    public int getNumPages() {return pageFragments == null ? 0 : pageFragments.length;}
+
+    private void build() {
+        IntBP positions = hits.getPositionsBuffer();
+        IntBP chroms = hits.getChromsBuffer();
+        IntBP otherpos = hits.getOtherPosBuffer();
+        long[] keys = new long[numHits];
+        for (int i = 0; i < numHits; i++) {
+            keys[i] = ((long)chroms.get(i) << 32) | i;
+        }
+        Arrays.sort(keys);
+        /* within each mate chromosome, sort by mate position */
+        int i = 0;
+        while (i < numHits) {
+            int c = (int)(keys[i] >> 32);
+            int j = i;
+            while (j < numHits && (int)(keys[j] >> 32) == c) {
+                int h = (int)keys[j];
+                keys[j] = ((long)otherpos.get(h) << 32) | h;
+                j++;
+            }
+            Arrays.sort(keys, i, j);
+            i = j;
+        }
+        mateOrder = new IntBP(numHits);
+        for (i = 0; i < numHits; i++) {
+            mateOrder.put(i, (int)keys[i]);
+        }
+        if (!isLeft()) {
+            return;
+        }
+
+        int n = 0;
+        for (i = 0; i < numHits; i++) {
+            if (chroms.get(i) == chrom) {
+                keys[n++] = ((long)midpoint(positions.get(i), otherpos.get(i)) << 32) | i;
+            }
+        }
+        Arrays.sort(keys, 0, n);
+        midpoints = new IntBP(n);
+        midOrder = new IntBP(n);
+        for (i = 0; i < n; i++) {
+            midpoints.put(i, (int)(keys[i] >> 32));
+            midOrder.put(i, (int)keys[i]);
+        }
+        keys = null;
+        summarize();
+    }
+    private void summarize() {
+        IntBP positions = hits.getPositionsBuffer();
+        IntBP otherpos = hits.getOtherPosBuffer();
+        IntBP las = hits.getLASBuffer();
+        FloatBP weights = hits.getWeightsBuffer();
+        int n = midpoints.limit();
+        int pages = (n + PAGE_SIZE - 1) / PAGE_SIZE;
+        pageFragments = new int[pages][NUM_FRAG_BINS + 1];
+        pageMinWeights = new float[pages];
+        for (int k = 0; k < pages; k++) {
+            float min = Float.MAX_VALUE;
+            for (int j = k * PAGE_SIZE; j < Math.min(n, (k+1) * PAGE_SIZE); j++) {
+                int h = midOrder.get(j);
+                int size = fragmentSize(positions.get(h), otherpos.get(h), las.get(h));
+                if (size >= 0) {
+                    pageFragments[k][fragmentBin(size)]++;
+                }
+                min = Math.min(min, weights.get(h));
+            }
+            pageMinWeights[k] = min;
+        }
+    }
+
+    private static String getFname(String prefix, int chrom, boolean isLeft, String suffix) {
+        return prefix + chrom + (isLeft ? ".prleft" : ".prright") + suffix;
+    }
+    private static void writeInts(IntBP ints, String fname) throws IOException {
+        String tmp = fname + ".tmp";
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel fc = out.getChannel();
+            ByteBuffer b = ints.bb.duplicate();
+            b.clear();
+            while (b.remaining() > 0) {
+                fc.write(b);
+            }
+        } finally {
+            out.close();
+        }
+        (new File(tmp)).renameTo(new File(fname));
+    }
+    private void write(String prefix) throws IOException {
+        writeInts(mateOrder, getFname(prefix, chrom, isLeft(), ".mateorder"));
+        if (!isLeft()) {
+            return;
+        }
+        writeInts(midpoints, getFname(prefix, chrom, true, ".midpoints"));
+        writeInts(midOrder, getFname(prefix, chrom, true, ".midorder"));
+        String fname = getFname(prefix, chrom, true, ".midpages");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname + ".tmp")));
+        out.writeInt(numHits);
+        out.writeInt(midpoints.limit());
+        out.writeInt(PAGE_SIZE);
+        out.writeInt(FRAG_BIN_SIZE);
+        out.writeInt(NUM_FRAG_BINS);
+        for (int k = 0; k < pageFragments.length; k++) {
+            out.writeFloat(pageMinWeights[k]);
+            for (int b = 0; b <= NUM_FRAG_BINS; b++) {
+                out.writeInt(pageFragments[k][b]);
+            }
+        }
+        out.close();
+        (new File(fname + ".tmp")).renameTo(new File(fname));
+    }
+    /* maps the index files.  Returns false if any are missing or don't match the hits */
+    private boolean read(String prefix) throws IOException {
+        File mate = new File(getFname(prefix, chrom, isLeft(), ".mateorder"));
+        if (!mate.exists() || mate.length() != 4L * numHits) {
+            return false;
+        }
+        if (isLeft()) {
+            File pages = new File(getFname(prefix, chrom, true, ".midpages"));
+            File mids = new File(getFname(prefix, chrom, true, ".midpoints"));
+            File order = new File(getFname(prefix, chrom, true, ".midorder"));
+            if (!pages.exists() || !mids.exists() || !order.exists()) {
+                return false;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pages)));
+            try {
+                int n = 0;
+                if (in.readInt() != numHits || (n = in.readInt()) < 0 || in.readInt() != PAGE_SIZE ||
+                    in.readInt() != FRAG_BIN_SIZE || in.readInt() != NUM_FRAG_BINS ||
+                    mids.length() != 4L * n || order.length() != 4L * n) {
+                    return false;
+                }
+                int numpages = (n + PAGE_SIZE - 1) / PAGE_SIZE;
+                int[][] fragments = new int[numpages][NUM_FRAG_BINS + 1];
+                float[] minweights = new float[numpages];
+                for (int k = 0; k < numpages; k++) {
+                    minweights[k] = in.readFloat();
+                    for (int b = 0; b <= NUM_FRAG_BINS; b++) {
+                        fragments[k][b] = in.readInt();
+                    }
+                }
+                pageFragments = fragments;
+                pageMinWeights = minweights;
+            } catch (EOFException e) {
+                // truncated page file; rebuild
+                return false;
+            } finally {
+                in.close();
+            }
+            midpoints = Hits.openIntBP(mids.getPath());
+            midOrder = Hits.openIntBP(order.getPath());
+        }
+        mateOrder = Hits.openIntBP(mate.getPath());
+        return true;
+    }
+
+    /* first index in the midpoints at or after position */
+    private int midpointLowerBound(int position) {
+        int lo = 0, hi = midpoints.limit();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (midpoints.get(mid) < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    /**
+     * Returns the range [first, last) of indices into the sorted midpoints
+     * whose midpoint lies in [start, end]
+     */
+    public int[] getMidpointRange(int start, int end) {
+        if (midpoints == null || end < start) {
+            return new int[]{0,0};
+        }
+        int first = midpointLowerBound(start);
+        int last = end == Integer.MAX_VALUE ? midpoints.limit() : midpointLowerBound(end + 1);
+        return new int[]{first, Math.max(first, last)};
+    }
+    /* true if the pair at hit index h passes the weight and fragment size filters */
+    private boolean accept(int h, Float minweight, Integer minfrag, Integer maxfrag) {
+        if (minweight != null && hits.getWeightsBuffer().get(h) < minweight) {
+            return false;
+        }
+        if (minfrag != null || maxfrag != null) {
+            int size = fragmentSize(hits.getPositionsBuffer().get(h), hits.getOtherPosBuffer().get(h), hits.getLASBuffer().get(h));
+            if (size < 0 ||
+                (minfrag != null && size < minfrag) ||
+                (maxfrag != null && size > maxfrag)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * Histogram of the midpoints of same-chromosome pairs in [start, end] with
+     * bins of stepsize bases, laid out as Hits.histogram.  Pages that lie within a single
+     * bin are counted without looking at the hits when there are no filters.
+     */
+    public int[] midpointHistogram(int start, int end, int stepsize, Float minweight, Integer minfrag, Integer maxfrag) {
+        int[] output = new int[(end - start) / stepsize + 1];
+        int[] range = getMidpointRange(start, end);
+        boolean filtered = minweight != null || minfrag != null || maxfrag != null;
+        int j = range[0];
+        while (j < range[1]) {
+            int bin = (midpoints.get(j) - start) / stepsize;
+            if (!filtered && j % PAGE_SIZE == 0) {
+                int pageend = Math.min(j + PAGE_SIZE, midpoints.limit());
+                if (pageend <= range[1] && bin == (midpoints.get(pageend - 1) - start) / stepsize) {
+                    output[bin] += pageend - j;
+                    j = pageend;
+                    continue;
+                }
+            }
+            if (!filtered || accept(midOrder.get(j), minweight, minfrag, maxfrag)) {
+                output[bin]++;
+            }
+            j++;
+        }
+        return output;
+    }
+    /**
+     * Fragment size distribution of the proper same-chromosome pairs whose midpoint
+     * lies in [start, end].  Bin b counts sizes in [b*FRAG_BIN_SIZE, (b+1)*FRAG_BIN_SIZE)
+     * and the last bin counts everything from NUM_FRAG_BINS*FRAG_BIN_SIZE up.  Whole pages
+     * come from the precomputed page histograms.
+     */
+    public int[] fragmentSizeHistogram(int start, int end, Float minweight) {
+        int[] output = new int[NUM_FRAG_BINS + 1];
+        int[] range = getMidpointRange(start, end);
+        IntBP positions = hits.getPositionsBuffer();
+        IntBP otherpos = hits.getOtherPosBuffer();
+        IntBP las = hits.getLASBuffer();
+        int j = range[0];
+        while (j < range[1]) {
+            if (j % PAGE_SIZE == 0) {
+                int k = j / PAGE_SIZE;
+                int pageend = Math.min(j + PAGE_SIZE, midpoints.limit());
+                if (pageend <= range[1] && (minweight == null || minweight <= pageMinWeights[k])) {
+                    for (int b = 0; b <= NUM_FRAG_BINS; b++) {
+                        output[b] += pageFragments[k][b];
+                    }
+                    j = pageend;
+                    continue;
+                }
+            }
+            int h = midOrder.get(j++);
+            if (accept(h, minweight, null, null)) {
+                int size = fragmentSize(positions.get(h), otherpos.get(h), las.get(h));
+                if (size >= 0) {
+                    output[fragmentBin(size)]++;
+                }
+            }
+        }
+        return output;
+    }
+    /**
+     * Returns the sorted indices of the hits for same-chromosome pairs whose midpoint lies
+     * in [start, end] and that pass the filters.
+     */
+    public int[] getMidpointHits(int start, int end, Float minweight, Integer minfrag, Integer maxfrag) {
+        int[] range = getMidpointRange(start, end);
+        int[] output = new int[range[1] - range[0]];
+        int n = 0;
+        for (int j = range[0]; j < range[1]; j++) {
+            int h = midOrder.get(j);
+            if (accept(h, minweight, minfrag, maxfrag)) {
+                output[n++] = h;
+            }
+        }
+        output = Arrays.copyOf(output, n);
+        Arrays.sort(output);
+        return output;
+    }
+    /* first index into the mate order whose (other chrom, other position) is at or after (c, position) */
+    private int mateLowerBound(int c, long position) {
+        IntBP chroms = hits.getChromsBuffer();
+        IntBP otherpos = hits.getOtherPosBuffer();
+        int lo = 0, hi = mateOrder.limit();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int h = mateOrder.get(mid);
+            int hc = chroms.get(h);
+            if (hc < c || (hc == c && otherpos.get(h) < position)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    /**
+     * Returns the sorted indices of the hits at [start, end] on this side whose mate is on
+     * matechrom in [matestart, mateend].
+     */
+    public int[] getMateHits(int start, int end, int matechrom, int matestart, int mateend, Float minweight) {
+        if (end < start || mateend < matestart) {
+            return new int[0];
+        }
+        int first = mateLowerBound(matechrom, matestart);
+        int last = mateLowerBound(matechrom, (long)mateend + 1);
+        IntBP positions = hits.getPositionsBuffer();
+        int[] output = new int[Math.max(0, last - first)];
+        int n = 0;
+        for (int j = first; j < last; j++) {
+            int h = mateOrder.get(j);
+            int p = positions.get(h);
+            if (p >= start && p <= end && accept(h, minweight, null, null)) {
+                output[n++] = h;
+            }
+        }
+        output = Arrays.copyOf(output, n);
+        Arrays.sort(output);
+        return output;
+    }
+
+    public void close() throws IOException {
+        hits = null;
+        midpoints = null;
+        midOrder = null;
+        mateOrder = null;
+        pageFragments = null;
+        pageMinWeights = null;
+    }
+}
@@ -19,6 +19,7 @@ import java.io.*;
  *  <li>getcount alignname chromname (eg, chromname = 1+)
  *  <li>addtogroup username groupname
  *  <li>reindex alignname chromname
+ *  <li>strandsplit alignname true|false
  * 
  * <p>The --paired flag can be provided to make getweight, getcount, and getchroms work on paired-end rather than
  * single-end alignments
@@ -99,6 +100,7 @@ public class ReadDB {
         System.out.println("  isalive");
         System.out.println("  shutdown");
         System.out.println("  serverinfo");
+        System.out.println("  metrics [reset]");
         System.out.println("  exists alignname");
         System.out.println("  getchroms alignname");
         System.out.println("  getacl alignname");
@@ -122,6 +124,8 @@ public class ReadDB {
         		System.out.println("FALSE");
         } else if (cmd.equals("serverinfo")) {
         	System.out.println(client.getServerInfo());
+        } else if (cmd.equals("metrics")) {
+            System.out.print(client.getServerMetrics(otherargs.length > 1 && otherargs[1].equals("reset")));
         }  else if (cmd.equals("addtogroup")) {
             // username, groupname
             client.addToGroup(otherargs[1], otherargs[2]);
@@ -145,6 +149,8 @@ public class ReadDB {
                     }
                 } else if (cmd.equals("reindex")) {
                     client.reIndex(otherargs[1], Integer.parseInt(otherargs[2]), isType2,false);
+                } else if (cmd.equals("strandsplit")) {
+                    client.setStrandSplit(align, Boolean.parseBoolean(otherargs[2]));
                 } else if (cmd.equals("checksort")) {
                     client.checksort(otherargs[1], Integer.parseInt(otherargs[2]));
                 } else if (cmd.equals("getacl")) {
@@ -19,6 +19,8 @@ import org.apache.commons.cli.*;
  * <li>--maxconn 1000    maximum number of client connections
  * <li>--sleepiness 2   how sleepy the server should be waiting for input.  Lower values use more CPU but improve responsiveness
  * <li>--idlelimit 24  number of hours after which idle task connections are closed 
+ * <li>--metricsinterval 15  minutes between writes of the metrics report to the metrics log.  0 turns the log off
+ * <li>--metricslog file  where to write the metrics report.  Defaults to metrics.log in the data directory
  * <li>--help           print the usage message and exit
  *
  */
@@ -29,27 +31,30 @@ public class Server {
 
 	private Logger logger;
     private int port;
-    private int numThreads, cacheSize, maxConnections, sleepiness, taskIdleLimit;
+    private int numThreads, cacheSize, maxConnections, sleepiness, taskIdleLimit, metricsInterval;
     private boolean debug;
     /* topdir is the top-level directory for our data files.
       pwfile is "${topdir}/users.txt" and groupfile is 
       "${topdir}/groups.txt"
     */
-    private String topdir, pwfile, groupfile;
+    private String topdir, pwfile, groupfile, metricsLog;
     private boolean keepRunning;
     private Dispatch dispatch;
     private Map<String,Set<String>> groups;
     // BUFFERLEN should be a multiple of 8 to avoid problems with partial ints, floats, or doubles
     // in buffers when the buffer is allocated in bytes.
     public static final int BUFFERLEN = 8192 * 16;
+    public static final String STRANDSPLIT_FILE = "strandsplit";
 
     private LRUCache<Header> singleHeaders;
     private LRUCache<Header> pairedHeaders;
     private LRUCache<SingleHits> singleHits;
     private LRUCache<PairedHits> pairedHits;
+    private LRUCache<PairedIndex> pairedIndexes;
     private LRUCache<AlignmentACL> acls;    
 
     private ServerSocket socket;
+    private ServerMetrics metrics;
 
     public Server () {
         port = 52000;
@@ -58,7 +63,10 @@ public class Server {
         cacheSize = numThreads * 20;
         maxConnections = 1000;
         taskIdleLimit = 24;
+        metricsInterval = 15;
         topdir = "/tmp";
+        metricsLog = topdir + System.getProperty("file.separator") + "metrics.log";
+        metrics = new ServerMetrics();
         keepRunning = true;
         logger = Logger.getLogger("org.seqcode.data.readdb.Server");
         logger.log(Level.INFO,"created Server");        
@@ -74,6 +82,8 @@ public class Server {
         options.addOption("M","maxconn",true,"how many connections are allowed");
         options.addOption("S","sleepiness",true,"how sleepy the server should be while waiting for input.  1-100");
         options.addOption("L","idlelimit",true,"number of hours after which to close idle connections. Negative sets no limit.");
+        options.addOption("I","metricsinterval",true,"minutes between writes of the metrics log.  0 turns the log off");
+        options.addOption("m","metricslog",true,"file for the metrics log (default metrics.log in the data directory)");
         options.addOption("h","help",false,"print help message");
         CommandLineParser parser = new GnuParser();
         CommandLine line = parser.parse( options, args, false );            
@@ -110,12 +120,24 @@ public class Server {
         if (line.hasOption("idlelimit")) {
             taskIdleLimit = Integer.parseInt(line.getOptionValue("idlelimit"));
         }
+        if (line.hasOption("metricsinterval")) {
+            metricsInterval = Integer.parseInt(line.getOptionValue("metricsinterval"));
+        }
+        metricsLog = line.hasOption("metricslog") ? line.getOptionValue("metricslog") : 
+            topdir + System.getProperty("file.separator") + "metrics.log";
 
         singleHits = new LRUCache<SingleHits>(cacheSize);
         pairedHits = new LRUCache<PairedHits>(cacheSize);
+        pairedIndexes = new LRUCache<PairedIndex>(cacheSize);
         singleHeaders = new LRUCache<Header>(cacheSize);
         pairedHeaders = new LRUCache<Header>(cacheSize);
         acls = new LRUCache<AlignmentACL>(cacheSize);
+        metrics.addCache("singleheaders", singleHeaders);
+        metrics.addCache("pairedheaders", pairedHeaders);
+        metrics.addCache("singlehits", singleHits);
+        metrics.addCache("pairedhits", pairedHits);
+        metrics.addCache("pairedindexes", pairedIndexes);
+        metrics.addCache("acls", acls);
         debug = line.hasOption("debug");
         logger.log(Level.INFO,String.format("Server parsed args: port %d, threads %d, directory %s",port,numThreads,topdir));
         pwfile = topdir + System.getProperty("file.separator") + "users.txt";
@@ -130,6 +152,8 @@ public class Server {
         System.out.println(" [--maxconn 250]   maximum number of open connections");
         System.out.println(" [--debug]  print debugging output");
         System.out.println(" [--sleepiness 4]  (1-100) higher values use less CPU when idle but may incur more delay in processing requests");
+        System.out.println(" [--metricsinterval 15]  minutes between writes of the metrics report to the metrics log.  0 turns the log off");
+        System.out.println(" [--metricslog datadir/metrics.log]  file for the metrics log.  It's rolled over once it reaches 10MB");
     }
     public static void main(String args[]) throws Exception {
         Server server = new Server();
@@ -154,9 +178,17 @@ public class Server {
     }
     public boolean debug() {return debug;}
     public int getSleepiness() {return sleepiness;}
+    public ServerMetrics getMetrics() {return metrics;}
     public void listen() throws IOException {
         Thread t = new Thread(new CacheGCHook(logger));
         t.start();
+        Lock.setMetrics(metrics);
+        if (metricsInterval > 0) {
+            t = new Thread(new ServerMetrics.MetricsLogger(metrics, logger, new File(metricsLog),
+                                                           metricsInterval * 60 * 1000L, 10L * 1024 * 1024, 5));
+            t.setDaemon(true);
+            t.start();
+        }
         dispatch = new Dispatch(this,numThreads, maxConnections);
         t = new Thread(dispatch);
         t.start();
@@ -208,6 +240,27 @@ public class Server {
                                           boolean isType2) {
         return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + (isType2 ? ".singlet2index" : ".singleindex");
     }    
+    /* header file for the plus or minus strand hits of an alignment with the strand-split layout */
+    public String getSingleStrandHeaderFileName(String alignID,
+                                                int chromID,
+                                                boolean isType2,
+                                                boolean plusStrand) {
+        return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + (isType2 ? ".singlet2" : ".single") + 
+            (plusStrand ? "plusindex" : "minusindex");
+    }
+    /* marker file present in the alignment directory when single-ended hits are also stored split by strand */
+    public String getStrandSplitFileName(String alignID) {
+        return getAlignmentDir(alignID) + System.getProperty("file.separator") + STRANDSPLIT_FILE;
+    }
+    /** true iff the alignment uses the strand-split layout for its single-ended hits */
+    public boolean isStrandSplit(String alignID) {
+        return new File(getStrandSplitFileName(alignID)).exists();
+    }
+    /** true iff strand files have been written for this alignment and chromosome */
+    public boolean hasSingleStrandHits(String alignID, int chromID, boolean isType2) {
+        return singleHeaders.contains(alignID + chromID + isType2 + "plus") || 
+            new File(getSingleStrandHeaderFileName(alignID, chromID, isType2, true)).exists();
+    }
     public String getPairedHeaderFileName(String alignID,
                                           int chromID,
                                           boolean isLeft) {
@@ -249,6 +302,23 @@ public class Server {
         }
         return output;
     }
+    /**
+     * Returns the Hits object for one strand of an alignment with the strand-split layout.
+     * Creates it or retrieves from cache.
+     */
+    public SingleHits getSingleStrandHits(String alignID,
+                                          int chrom,
+                                          boolean isType2,
+                                          boolean plusStrand) throws IOException, SecurityException, FileNotFoundException {
+        String key = alignID + chrom + isType2 + (plusStrand ? "plus" : "minus");
+        SingleHits output = singleHits.get(key);
+        if (output == null) {
+            String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
+            output = new SingleHits(prefix,chrom,isType2,plusStrand);
+            singleHits.add(key, output);
+        }
+        return output;
+    }
     public PairedHits getPairedHits(String alignID,
                                     int chrom,
                                     boolean isLeft) throws IOException, SecurityException, FileNotFoundException {
@@ -261,6 +331,22 @@ public class Server {
         }
         return output;
     }
+    /**
+     * Returns the midpoint and mate index for the paired hits.  Opens it (or builds
+     * it if the index files are missing) or retrieves from cache.
+     */
+    public PairedIndex getPairedIndex(String alignID,
+                                      int chrom,
+                                      boolean isLeft) throws IOException, SecurityException, FileNotFoundException {
+        String key = alignID + chrom + isLeft;
+        PairedIndex output = pairedIndexes.get(key);
+        if (output == null) {
+            String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
+            output = PairedIndex.open(getPairedHits(alignID, chrom, isLeft), prefix, chrom);
+            pairedIndexes.add(key, output);
+        }
+        return output;
+    }
     /**
      * Returns the requested Header object.  Creates it or retrieves from cache.
      * Client code is responsible for locking the file as necessary.
@@ -274,6 +360,15 @@ public class Server {
         }
         return output;
     }
+    public Header getSingleStrandHeader(String alignID, int chromID, boolean isType2, boolean plusStrand) throws IOException {
+        String key = alignID + chromID + isType2 + (plusStrand ? "plus" : "minus");
+        Header output = singleHeaders.get(key);
+        if (output == null) {
+            output = Header.readIndexFile(getSingleStrandHeaderFileName(alignID,chromID,isType2,plusStrand));
+            singleHeaders.add(key, output);
+        }
+        return output;
+    }
     public Header getPairedHeader(String alignID, int chromID, boolean isLeft) throws IOException {
         String key = alignID + chromID + isLeft;
         Header output = pairedHeaders.get(key);
@@ -297,12 +392,17 @@ public class Server {
     }
     public void removeSingleHits(String alignID, int chromID, boolean isType2) {
         singleHits.remove(alignID + chromID+ isType2);
+        singleHits.remove(alignID + chromID+ isType2 + "plus");
+        singleHits.remove(alignID + chromID+ isType2 + "minus");
     }
     public void removePairedHits(String alignID, int chromID, boolean isLeft) {
         pairedHits.remove(alignID + chromID + isLeft);
+        pairedIndexes.remove(alignID + chromID + isLeft);
     }
     public void removeSingleHeader(String alignID, int chromID, boolean isType2) {
         singleHeaders.remove(alignID + chromID + isType2);
+        singleHeaders.remove(alignID + chromID + isType2 + "plus");
+        singleHeaders.remove(alignID + chromID + isType2 + "minus");
     }
     public void removePairedHeader(String alignID, int chromID, boolean isLeft) {
         pairedHeaders.remove(alignID + chromID + isLeft);
@@ -313,6 +413,7 @@ public class Server {
         pairedHeaders.printKeys();
         singleHits.printKeys();
         pairedHits.printKeys();
+        pairedIndexes.printKeys();
         acls.printKeys();
     }
 
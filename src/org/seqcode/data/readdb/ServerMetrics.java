@@ -0,0 +1,320 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.*;
+
+/**
+ * Operational metrics for the ReadDB server:
+ * <ul>
+ * <li>count, errors and a latency histogram for each request type (and for SASL authentication)
+ * <li>latency histograms for phases of a request: waiting for locks, getting hits and headers
+ *     from the caches or disk, and writing to the socket
+ * <li>hit, miss and eviction counts for the server's LRUCaches
+ * <li>requests and bytes read and written for each alignment
+ * </ul>
+ * Recording only touches atomic counters, so it's cheap enough to leave on for every request.
+ * The report is returned by the "metrics" admin request and periodically appended to a log file
+ * by the MetricsLogger.
+ */
+public class ServerMetrics {
+
+    private final long startTime = System.currentTimeMillis();
+    private final ConcurrentMap<String,Command> commands = new ConcurrentHashMap<String,Command>();
+    private final ConcurrentMap<String,LatencyHistogram> phases = new ConcurrentHashMap<String,LatencyHistogram>();
+    private final ConcurrentMap<String,AlignmentIO> alignments = new ConcurrentHashMap<String,AlignmentIO>();
+    private final Map<String,LRUCache<?>> caches = Collections.synchronizedMap(new LinkedHashMap<String,LRUCache<?>>());
+
+    /**
+     * Log-linear latency histogram in the style of HdrHistogram: values (in microseconds)
+     * below 16 get their own bucket and each power of two above that is split into 8 buckets,
+     * so reported percentiles are within 12.5% of the true value.  Recording is lock free.
+     */
+    public static class LatencyHistogram {
+        private static final int SUBBITS = 3, SUBBUCKETS = 1 << SUBBITS, LINEAR = 2 * SUBBUCKETS;
+        private static final int NUMBUCKETS = LINEAR + (63 - SUBBITS - 1) * SUBBUCKETS;
+        private final AtomicLongArray buckets = new AtomicLongArray(NUMBUCKETS);
+        private final LongAdder count = new LongAdder(), totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        static int bucket(long micros) {
+            if (micros < LINEAR) {
+                return (int)Math.max(0, micros);
+            }
+            int e = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int)(micros >>> (e - SUBBITS)) & (SUBBUCKETS - 1);
+            return LINEAR + (e - SUBBITS - 1) * SUBBUCKETS + sub;
+        }
+        /* largest value (in microseconds) that falls in bucket b */
+        static long bucketMax(int b) {
+            if (b < LINEAR) {
+                return b;
+            }
+            int e = (b - LINEAR) / SUBBUCKETS + SUBBITS + 1;
+            int sub = (b - LINEAR) % SUBBUCKETS;
+            return ((long)(SUBBUCKETS + sub + 1) << (e - SUBBITS)) - 1;
+        }
+        public void record(long nanos) {
+            buckets.incrementAndGet(bucket(nanos / 1000));
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+        public long getCount() {return count.sum();}
+        public double getTotalMillis() {return totalNanos.sum() / 1e6;}
+        public double getMeanMillis() {
+            long c = getCount();
+            return c == 0 ? 0 : totalNanos.sum() / 1e6 / c;
+        }
+        public double getMaxMillis() {return maxNanos.get() / 1e6;}
+        /** upper bound (ms) of the bucket containing the given percentile (0-100) */
+        public double getPercentileMillis(double pct) {
+            long[] b = new long[NUMBUCKETS];
+            long total = 0;
+            for (int i = 0; i < NUMBUCKETS; i++) {
+                b[i] = buckets.get(i);
+                total += b[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(total * pct / 100.0)), seen = 0;
+            for (int i = 0; i < NUMBUCKETS; i++) {
+                seen += b[i];
+                if (seen >= target) {
+                    return Math.min((bucketMax(i) + 1) / 1000.0, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+
+    /**
+     * OutputStream that counts the bytes written through it and the time spent
+     * writing and flushing.  Not thread safe; each ServerTask has its own.
+     */
+    public static class MeteredOutputStream extends FilterOutputStream {
+        private long bytes = 0, nanos = 0;
+        public MeteredOutputStream(OutputStream out) {super(out);}
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            bytes++;
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            bytes += len;
+        }
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+        public long getBytes() {return bytes;}
+        public long getNanos() {return nanos;}
+    }
+    /**
+     * InputStream that counts the bytes read through it.  Not thread safe.
+     */
+    public static class CountingInputStream extends FilterInputStream {
+        private long bytes = 0;
+        public CountingInputStream(InputStream in) {super(in);}
+        public int read() throws IOException {
+            int r = in.read();
+            if (r != -1) {
+                bytes++;
+            }
+            return r;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = in.read(b, off, len);
+            if (r > 0) {
+                bytes += r;
+            }
+            return r;
+        }
+        public long skip(long n) throws IOException {
+            long r = in.skip(n);
+            bytes += r;
+            return r;
+        }
+        public long getBytes() {return bytes;}
+    }
+
+    /* counters for one request type */
+    private static class Command {
+        final LongAdder errors = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+    /* counters for one alignment */
+    private static class AlignmentIO {
+        final LongAdder requests = new LongAdder(), bytesRead = new LongAdder(), bytesWritten = new LongAdder();
+    }
+
+    /* computeIfAbsent, rather than putIfAbsent then get, so a concurrent clear() can't leave us with null */
+    private static final Function<String,Command> NEW_COMMAND = new Function<String,Command>() {
+            public Command apply(String type) { return new Command(); }
+        };
+    private static final Function<String,LatencyHistogram> NEW_HISTOGRAM = new Function<String,LatencyHistogram>() {
+            public LatencyHistogram apply(String phase) { return new LatencyHistogram(); }
+        };
+    private static final Function<String,AlignmentIO> NEW_ALIGNMENT_IO = new Function<String,AlignmentIO>() {
+            public AlignmentIO apply(String alignid) { return new AlignmentIO(); }
+        };
+
+    /** records a request of the given type that took nanos to process */
+    public void recordCommand(String type, long nanos, boolean ok) {
+        Command c = commands.computeIfAbsent(type, NEW_COMMAND);
+        c.latency.record(nanos);
+        if (!ok) {
+            c.errors.increment();
+        }
+    }
+    /** records the time spent in one phase of a request, eg "lockwait.read" or "socketwrite" */
+    public void recordPhase(String phase, long nanos) {
+        LatencyHistogram h = phases.computeIfAbsent(phase, NEW_HISTOGRAM);
+        h.record(nanos);
+    }
+    /** adds a request and the bytes read from and written to its client to an alignment's totals */
+    public void recordAlignmentIO(String alignid, long bytesRead, long bytesWritten) {
+        AlignmentIO a = alignments.computeIfAbsent(alignid, NEW_ALIGNMENT_IO);
+        a.requests.increment();
+        a.bytesRead.add(bytesRead);
+        a.bytesWritten.add(bytesWritten);
+    }
+    /** includes this cache's hit, miss and eviction counts in the report */
+    public void addCache(String name, LRUCache<?> cache) {
+        caches.put(name, cache);
+    }
+
+    public LatencyHistogram getCommandLatency(String type) {
+        Command c = commands.get(type);
+        return c == null ? null : c.latency;
+    }
+    public long getCommandErrors(String type) {
+        Command c = commands.get(type);
+        return c == null ? 0 : c.errors.sum();
+    }
+    public LatencyHistogram getPhaseLatency(String phase) {return phases.get(phase);}
+    public long getBytesWritten(String alignid) {
+        AlignmentIO a = alignments.get(alignid);
+        return a == null ? 0 : a.bytesWritten.sum();
+    }
+    public long getBytesRead(String alignid) {
+        AlignmentIO a = alignments.get(alignid);
+        return a == null ? 0 : a.bytesRead.sum();
+    }
+
+    /** forgets everything recorded so far.  Cache counters are reset too. */
+    public void clear() {
+        commands.clear();
+        phases.clear();
+        alignments.clear();
+        synchronized(caches) {
+            for (LRUCache<?> c : caches.values()) {
+                c.resetCounts();
+            }
+        }
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, long errors, LatencyHistogram h) {
+        sb.append(String.format("%-24s %10d %8d %10.3f %10.3f %10.3f %10.3f %10.3f %12.1f\n", name, h.getCount(), errors,
+                                h.getMeanMillis(), h.getPercentileMillis(50), h.getPercentileMillis(95),
+                                h.getPercentileMillis(99), h.getMaxMillis(), h.getTotalMillis()));
+    }
+    /** human readable report of all the metrics */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("metrics at %tF %<tT, uptime %ds\n", new Date(), (System.currentTimeMillis() - startTime) / 1000));
+        String header = String.format("%-24s %10s %8s %10s %10s %10s %10s %10s %12s\n", "%s", "count", "errors",
+                                      "mean(ms)", "p50(ms)", "p95(ms)", "p99(ms)", "max(ms)", "total(ms)");
+        sb.append(String.format(header, "request"));
+        for (String type : new TreeSet<String>(commands.keySet())) {
+            Command c = commands.get(type);
+            appendHistogram(sb, type, c.errors.sum(), c.latency);
+        }
+        sb.append(String.format(header, "phase"));
+        for (String phase : new TreeSet<String>(phases.keySet())) {
+            appendHistogram(sb, phase, 0, phases.get(phase));
+        }
+        sb.append(String.format("%-24s %10s %10s %10s %8s %8s\n", "cache", "hits", "misses", "evictions", "hitrate", "size"));
+        synchronized(caches) {
+            for (String name : caches.keySet()) {
+                LRUCache<?> c = caches.get(name);
+                long hits = c.getHits(), misses = c.getMisses();
+                sb.append(String.format("%-24s %10d %10d %10d %8.3f %8d\n", name, hits, misses, c.getEvictions(),
+                                        hits + misses == 0 ? 0.0 : hits / (double)(hits + misses), c.size()));
+            }
+        }
+        sb.append(String.format("%-24s %10s %14s %14s\n", "alignment", "requests", "bytesread", "byteswritten"));
+        for (String alignid : new TreeSet<String>(alignments.keySet())) {
+            AlignmentIO a = alignments.get(alignid);
+            sb.append(String.format("%-24s %10d %14d %14d\n", alignid, a.requests.sum(), a.bytesRead.sum(), a.bytesWritten.sum()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the metrics report to a log file every interval milliseconds.  When the
+     * file grows past maxBytes it's rolled to file.1, file.1 to file.2 and so on, keeping
+     * at most keep old files.
+     */
+    public static class MetricsLogger implements Runnable {
+        private ServerMetrics metrics;
+        private Logger logger;
+        private File file;
+        private long interval, maxBytes;
+        private int keep;
+
+        public MetricsLogger(ServerMetrics metrics, Logger logger, File file, long interval, long maxBytes, int keep) {
+            this.metrics = metrics;
+            this.logger = logger;
+            this.file = file;
+            this.interval = interval;
+            this.maxBytes = maxBytes;
+            this.keep = keep;
+        }
+        private File rolled(int i) {
+            return new File(file.getPath() + "." + i);
+        }
+        /* rolls the log over if it's too big, then appends the current report */
+        public void write() throws IOException {
+            if (file.length() > maxBytes) {
+                rolled(keep).delete();
+                for (int i = keep - 1; i >= 1; i--) {
+                    rolled(i).renameTo(rolled(i + 1));
+                }
+                file.renameTo(rolled(1));
+            }
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+            pw.println(metrics.report());
+            pw.close();
+        }
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    write();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "can't write metrics to " + file, e);
+                }
+            }
+        }
+    }
+}
@@ -19,6 +19,9 @@ import javax.security.auth.callback.*;
 
 public class ServerTask {
     
+    /* request types added since the original protocol, advertised in reply to a capabilities ping */
+    public static final String CAPABILITIES = "setlayout mergedhistogram mergedweighthistogram metrics " +
+        "midpointhistogram fragmentsizes getmidpointhits getmatehits";
     /* limit in milliseconds before a task connection is closed by server */
     private int taskInactivityLimit; 
     private boolean limitInactivity; 
@@ -39,6 +42,11 @@ public class ServerTask {
     private BufferedInputStream instream;
     private OutputStream outstream;
     private WritableByteChannel outchannel;
+    /* the socket's streams, which count the bytes and writing time for the metrics */
+    private ServerMetrics.CountingInputStream countedIn;
+    private ServerMetrics.MeteredOutputStream meteredOut;
+    /* byte counts when the last request was recorded and when authentication started */
+    private long lastBytesRead, lastBytesWritten, authStart;
     /* if authenticate was successful, this holds a username.  Null otherwise */
     private String username;
     /* buffer for readLine */
@@ -69,8 +77,10 @@ public class ServerTask {
         socket.setReceiveBufferSize(Server.BUFFERLEN);
         socket.setSendBufferSize(Server.BUFFERLEN);
         socket.setSoTimeout(1000000);
-        instream = new BufferedInputStream(socket.getInputStream());
-        outstream = socket.getOutputStream();
+        countedIn = new ServerMetrics.CountingInputStream(socket.getInputStream());
+        meteredOut = new ServerMetrics.MeteredOutputStream(socket.getOutputStream());
+        instream = new BufferedInputStream(countedIn);
+        outstream = meteredOut;
         outchannel = Channels.newChannel(outstream);
         bufferpos = 0;
         sasl = null;
@@ -240,7 +250,11 @@ public class ServerTask {
         try {
         	lastActivity = System.currentTimeMillis();
             if (username == null) {
+                if (authStart == 0) {
+                    authStart = System.nanoTime();
+                }
                 if (!authenticate()) {
+                    server.getMetrics().recordCommand("auth", System.nanoTime() - authStart, false);
                     server.getLogger().logp(Level.INFO,"serverTask","run " + toString(),"not authenticated in ");
                     printAuthError();
                     shouldClose = true;
@@ -251,6 +265,9 @@ public class ServerTask {
                 }
                 server.getLogger().logp(Level.INFO,"ServerTask","run " + toString(), " authenticated " + username + " from " + socket.getInetAddress() + ":" + socket.getPort());
                 printString("authenticated as " + username + "\n");
+                server.getMetrics().recordCommand("auth", System.nanoTime() - authStart, true);
+                lastBytesRead = countedIn.getBytes();
+                lastBytesWritten = meteredOut.getBytes();
             }
             while (true) {
                 String p = readLine();
@@ -368,6 +385,9 @@ public class ServerTask {
     /** reads and handles a request on the Socket.
      */
     public void processRequest () {
+        long start = System.nanoTime();
+        long writeNanos = meteredOut.getNanos();
+        boolean ok = false;
         try {
             if (request.alignid != null) {
                 Lock.readLock(request.alignid);
@@ -382,6 +402,10 @@ public class ServerTask {
                 processPairedStore();
             } else if (request.type.equals("reindex")) {
                 processReindex();
+            } else if (request.type.equals("setlayout")) {
+                processSetLayout();
+            } else if (request.type.equals("mergedhistogram") || request.type.equals("mergedweighthistogram")) {
+                processMergedHistogram();
             } else if (request.type.equals("bye")) {
                 shouldClose = true;
             } else if (request.type.equals("getchroms")) {
@@ -394,6 +418,8 @@ public class ServerTask {
                 processDeleteAlignment();
             } else if (request.type.equals("addtogroup")) {
                 processAddToGroup();
+            } else if (request.type.equals("metrics")) {
+                processMetrics();
             } else if (request.type.equals("shutdown")) {
                 server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Received shutdown from " + username);
                 if (server.isAdmin(username)) {
@@ -406,6 +432,7 @@ public class ServerTask {
             } else {
                 processFileRequest();
             }
+            ok = true;
         } catch (Exception e) {
             server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Error in request " + request.toString());
             server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Exception " + e.toString(),e);
@@ -429,7 +456,41 @@ public class ServerTask {
 
         } finally {
             Lock.releaseLocks();
+            recordRequest(start, writeNanos, ok);
+        }
+    }
+    /* adds the request that started at start to the server's metrics */
+    private void recordRequest(long start, long writeNanos, boolean ok) {
+        ServerMetrics metrics = server.getMetrics();
+        metrics.recordCommand(request.type, System.nanoTime() - start, ok);
+        metrics.recordPhase("socketwrite", meteredOut.getNanos() - writeNanos);
+        long read = countedIn.getBytes(), written = meteredOut.getBytes();
+        if (request.alignid != null) {
+            metrics.recordAlignmentIO(request.alignid, read - lastBytesRead, written - lastBytesWritten);
+        }
+        lastBytesRead = read;
+        lastBytesWritten = written;
+    }
+    /**
+     * Sends the server's metrics report: the number of lines and then the lines.  
+     * Only for admins.  If reset=true is set, the metrics are cleared afterwards.
+     */
+    public void processMetrics() throws IOException {
+        if (!server.isAdmin(username)) {
+            printAuthError();
+            return;
         }
+        String[] lines = server.getMetrics().report().split("\n");
+        if ("true".equals(request.map.get("reset"))) {
+            server.getMetrics().clear();
+        }
+        printOK();
+        StringBuilder sb = new StringBuilder();
+        sb.append(lines.length + "\n");
+        for (String l : lines) {
+            sb.append(l + "\n");
+        }
+        printString(sb.toString());
     }
     /**
      * Handles the subset of requests that deal with a particular
@@ -472,12 +533,27 @@ public class ServerTask {
             printAuthError();
             return;
         }
+        if (request.type.equals("midpointhistogram") || request.type.equals("fragmentsizes") ||
+            request.type.equals("getmidpointhits")) {
+            /* midpoints are only indexed on the left side */
+            request.isPaired = true;
+            request.isLeft = true;
+        }
         Header header=null;
         Hits hits=null;
+        long loadStart = System.nanoTime();
         try {
             if (request.isPaired) {
                 hits = server.getPairedHits(request.alignid, request.chromid, request.isLeft);
                 header = server.getPairedHeader(request.alignid, request.chromid, request.isLeft);
+            } else if (request.isPlusStrand != null && !request.type.equals("checksort") &&
+                       server.hasSingleStrandHits(request.alignid, request.chromid, request.isType2)) {
+                /* strand-split layout: only read the hits on the requested strand, 
+                   which makes the strand filter itself unnecessary */
+                header = server.getSingleStrandHeader(request.alignid, request.chromid, request.isType2, request.isPlusStrand);
+                hits = header.getNumHits() == 0 ? null : 
+                    server.getSingleStrandHits(request.alignid, request.chromid, request.isType2, request.isPlusStrand);
+                request.isPlusStrand = null;
             } else {
                 hits = server.getSingleHits(request.alignid, request.chromid, request.isType2);
                 header = server.getSingleHeader(request.alignid, request.chromid, request.isType2);
@@ -497,6 +573,7 @@ public class ServerTask {
             return;
             */
         }
+        server.getMetrics().recordPhase("load", System.nanoTime() - loadStart);
         if (request.type.equals("count")) {
             processCount(header,hits);
         } else if (request.type.equals("weight")) {
@@ -509,6 +586,14 @@ public class ServerTask {
             processGetHits(header,hits);
         } else if (request.type.equals("checksort")) {
             processCheckSort(header,hits);
+        } else if (request.type.equals("midpointhistogram")) {
+            processMidpointHistogram(hits);
+        } else if (request.type.equals("fragmentsizes")) {
+            processFragmentSizes(hits);
+        } else if (request.type.equals("getmidpointhits")) {
+            processGetMidpointHits(hits);
+        } else if (request.type.equals("getmatehits")) {
+            processGetMateHits(hits);
         } else {
             printInvalid("request type");
         }
@@ -631,7 +716,12 @@ public class ServerTask {
      */
     public void processPing() throws IOException {
         assert(request != null);
-        printString("pong\n");
+        if ("true".equals(request.map.get("capabilities"))) {
+            /* request types added since the original protocol; see Client.serverSupports */
+            printString("pong " + CAPABILITIES + "\n");
+        } else {
+            printString("pong\n");
+        }
     }
     /** reads two lines from socket: alignment id and chromosome id.
      * returns "exists" or "unknown" to indicate whether the 
@@ -739,6 +829,8 @@ public class ServerTask {
                     name.indexOf(".pairedrightindex") > 0 ||
                     name.indexOf(".paircode") > 0;  
                 boolean singlefile = name.indexOf("singleindex") > 0|| name.indexOf("singlet2index") > 0||
+                    name.indexOf("plusindex") > 0 || name.indexOf("minusindex") > 0 ||
+                    name.equals(Server.STRANDSPLIT_FILE) ||
                     name.indexOf("spositions") > 0 || name.indexOf("st2positions") > 0 ||
                     name.indexOf("sweights") > 0 || name.indexOf("st2weights") > 0 ||
                     name.indexOf("slas") > 0 ||name.indexOf("st2las") > 0;
@@ -894,10 +986,7 @@ public class ServerTask {
             SingleHits singlehits = new SingleHits(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
                                                    request.chromid,
                                                    request.isType2);
-            Header header = new Header(singlehits.getPositionsBuffer().getib());
-            header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
-                                                                 request.chromid,
-                                                                 request.isType2));
+            writeSingleIndex(singlehits);
         } catch (IOException e) {
             server.getLogger().logp(Level.INFO,"ServerTask","processSingleStore "+ toString(),"IOException trying to save files : " + e.toString(),e);
             return;
@@ -1041,10 +1130,11 @@ public class ServerTask {
             PairedHits pairedhits = new PairedHits(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
                                                    chromid, 
                                                    isLeft);
-            Header header = new Header(pairedhits.getPositionsBuffer().getib());
+            Header header = new Header(pairedhits);
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  chromid,
                                                                  isLeft));
+            PairedIndex.writeIndex(pairedhits, server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"), chromid);
             server.removePairedHits(request.alignid, chromid, isLeft);
             server.removePairedHeader(request.alignid, chromid, isLeft);
         }
@@ -1057,29 +1147,98 @@ public class ServerTask {
         Lock.writeLock(request.alignid);
         if (request.isPaired) {
             PairedHits hits = server.getPairedHits(request.alignid, request.chromid, true);
-            Header header = new Header(hits.getPositionsBuffer().getib());
+            Header header = new Header(hits);
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  request.chromid,
                                                                  true));            
             server.removePairedHeader(request.alignid, request.chromid,true);
+            PairedIndex.writeIndex(hits, server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"), request.chromid);
+            server.removePairedHits(request.alignid, request.chromid, true);
 
             hits = server.getPairedHits(request.alignid, request.chromid, false);
-            header = new Header(hits.getPositionsBuffer().getib());
+            header = new Header(hits);
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  request.chromid,
                                                                  false));            
             server.removePairedHeader(request.alignid, request.chromid,false);
+            PairedIndex.writeIndex(hits, server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"), request.chromid);
+            server.removePairedHits(request.alignid, request.chromid, false);
 
         } else {
             SingleHits hits = server.getSingleHits(request.alignid, request.chromid, request.isType2);
-            Header header = new Header(hits.getPositionsBuffer().getib());
-            header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
-                                                                 request.chromid,
-                                                                 request.isType2));
+            writeSingleIndex(hits);
             server.removeSingleHeader(request.alignid, request.chromid, request.isType2);       
         }
         printOK();
     }
+    /* writes the index for a chromosome's single-ended hits and, if the alignment uses the
+       strand-split layout, the per-strand hits and their indexes.  If it doesn't, stale
+       strand files are removed.
+    */
+    private void writeSingleIndex(SingleHits hits) throws IOException {
+        Header header = new Header(hits);
+        header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
+                                                             request.chromid,
+                                                             request.isType2));
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+        server.removeSingleHits(request.alignid, request.chromid, request.isType2);
+        if (server.isStrandSplit(request.alignid)) {
+            hits.writeStrandHits(prefix, request.chromid, request.isType2);
+            for (boolean plus : new boolean[]{true, false}) {
+                SingleHits strandhits = new SingleHits(prefix, request.chromid, request.isType2, plus);
+                new Header(strandhits).writeIndexFile(server.getSingleStrandHeaderFileName(request.alignid,
+                                                                                          request.chromid,
+                                                                                          request.isType2,
+                                                                                          plus));
+                strandhits.close();
+            }
+        } else if (server.hasSingleStrandHits(request.alignid, request.chromid, request.isType2)) {
+            SingleHits.deleteStrandHits(prefix, request.chromid, request.isType2);
+            for (boolean plus : new boolean[]{true, false}) {
+                String fname = server.getSingleStrandHeaderFileName(request.alignid, request.chromid, request.isType2, plus);
+                (new File(fname)).delete();
+                (new File(Header.getSummaryFname(fname))).delete();
+            }
+        }
+        server.removeSingleHeader(request.alignid, request.chromid, request.isType2);
+    }
+    /**
+     * Turns the strand-split layout for an alignment's single-ended hits on or off
+     * (request key strandsplit=true|false) and rewrites the strand files of every chromosome
+     * to match.
+     */
+    public void processSetLayout() throws IOException {
+        assert(request != null);
+        assert(request.alignid != null);
+        AlignmentACL acl = server.getACL(request.alignid);
+        if (!authorizeAdmin(acl)) {
+            printAuthError();
+            return;
+        }
+        if (!request.map.containsKey("strandsplit")) {
+            printString("missing strandsplit\n");
+            return;
+        }
+        Lock.writeLock(request.alignid);
+        File marker = new File(server.getStrandSplitFileName(request.alignid));
+        if (Boolean.parseBoolean(request.map.get("strandsplit"))) {
+            marker.createNewFile();
+        } else {
+            marker.delete();
+        }
+        for (boolean type2 : new boolean[]{false, true}) {
+            Set<Integer> chroms = server.getChroms(request.alignid, type2, false, false);
+            if (chroms == null) {
+                continue;
+            }
+            request.isType2 = type2;
+            for (int c : chroms) {
+                request.chromid = c;
+                writeSingleIndex(server.getSingleHits(request.alignid, c, type2));
+            }
+        }
+        printOK();
+    }
 
     public void processCount(Header header, Hits hits) throws IOException {
     	if(header==null || hits==null){
@@ -1097,9 +1256,7 @@ public class ServerTask {
 	        if (request.end == null) {
 	            request.end = Integer.MAX_VALUE;
 	        }
-	        int first = header.getFirstIndex(request.start == null ? 0 : request.start);
-	        int last = header.getLastIndex(request.end == null ? Integer.MAX_VALUE : request.end);
-	        printString(Integer.toString(hits.getCountBetween(first,last,request.start,request.end,request.minWeight, request.isPlusStrand)) + "\n");
+	        printString(Integer.toString(hits.getCountBetween(header,request.start,request.end,request.minWeight, request.isPlusStrand)) + "\n");
     	}
     }
     public void processWeight(Header header, Hits hits) throws IOException {
@@ -1114,9 +1271,7 @@ public class ServerTask {
 	        if (request.end == null) {
 	            request.end = Integer.MAX_VALUE;
 	        }
-	        int first = header.getFirstIndex(request.start);
-	        int last = header.getLastIndex(request.end);
-	        printString(Double.toString(hits.getWeightBetween(first,last,request.start,request.end,request.minWeight, request.isPlusStrand)) + "\n");
+	        printString(Double.toString(hits.getWeightBetween(header,request.start,request.end,request.minWeight, request.isPlusStrand)) + "\n");
     	}
     }
     public void processGetHits(Header header, Hits hits) throws IOException {
@@ -1144,7 +1299,7 @@ public class ServerTask {
 	        if (request.start == 0 && request.end == Integer.MAX_VALUE && request.minWeight == null && request.isPlusStrand == null) {
 	            count = header.getNumHits();
 	        } else {
-	            count = hits.getCountBetween(first,last,request.start,request.end,request.minWeight, request.isPlusStrand);
+	            count = hits.getCountBetween(header,request.start,request.end,request.minWeight, request.isPlusStrand);
 	        }
 	        printOK();
 	        printString(Integer.toString(count) + "\n");
@@ -1174,6 +1329,175 @@ public class ServerTask {
 	        }
     	}
     }
+    /* returns the index for paired hits, or null if there are no (paired) hits */
+    private PairedIndex getPairedIndex(Hits hits) throws IOException {
+        if (!(hits instanceof PairedHits)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        PairedIndex index = server.getPairedIndex(request.alignid, request.chromid, request.isLeft);
+        server.getMetrics().recordPhase("load.index", System.nanoTime() - start);
+        return index;
+    }
+    private Integer getIntParam(String key) {
+        return request.map.containsKey(key) ? Integer.valueOf(request.map.get(key)) : null;
+    }
+    /* sends the requested columns for the hits at the given indices, in the
+       same format as processGetHits */
+    private void sendPairedHits(PairedHits hits, int[] indices) throws IOException {
+        printOK();
+        printString(Integer.toString(indices.length) + "\n");
+        if (request.map.containsKey("wantpositions")) {
+            sendColumn(hits.getPositionsBuffer(), indices);
+        }
+        if (request.map.containsKey("wantweights")) {
+            FloatBP p = new FloatBP(indices.length);
+            FloatBP weights = hits.getWeightsBuffer();
+            for (int i = 0; i < indices.length; i++) {
+                p.put(i, weights.get(indices[i]));
+            }
+            Bits.sendBytes(p.bb, outchannel);
+        }
+        if (request.map.containsKey("wantpaircodes")) {
+            sendColumn(hits.getPairCodeBuffer(), indices);
+        }
+        if (request.map.containsKey("wantlengthsandstrands")) {
+            sendColumn(hits.getLASBuffer(), indices);
+        }
+        if (request.map.containsKey("wantotherchroms")) {
+            sendColumn(hits.getChromsBuffer(), indices);
+        }
+        if (request.map.containsKey("wantotherpositions")) {
+            sendColumn(hits.getOtherPosBuffer(), indices);
+        }
+    }
+    private void sendColumn(IntBP column, int[] indices) throws IOException {
+        IntBP p = new IntBP(indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            p.put(i, column.get(indices[i]));
+        }
+        Bits.sendBytes(p.bb, outchannel);
+    }
+    /* returns a histogram of the midpoints of same-chromosome pairs.  Inputs
+     * startposition, stopposition, binsize and optionally minfrag and maxfrag
+     * to limit the fragment sizes.  Output is as for processHistogram.
+     */
+    public void processMidpointHistogram(Hits hits) throws IOException {
+        PairedIndex index = getPairedIndex(hits);
+        if (index == null || index.getNumMidpoints() == 0) {
+            printOK();
+            printString("0\n");
+            return;
+        }
+        int binsize;
+        Integer minfrag, maxfrag;
+        try {
+            binsize = Integer.parseInt(request.map.get("binsize"));
+            minfrag = getIntParam("minfrag");
+            maxfrag = getIntParam("maxfrag");
+        } catch (NumberFormatException e) {
+            printString("missing or invalid bin size or fragment size\n");
+            return;
+        }
+        if (request.start == null) {
+            request.start = index.getMidpoint(0);
+        }
+        if (request.end == null) {
+            request.end = index.getMidpoint(index.getNumMidpoints() - 1);
+        }
+        int[] raw = request.end < request.start ? new int[0] :
+            index.midpointHistogram(request.start, request.end, binsize, request.minWeight, minfrag, maxfrag);
+        int n = 0;
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] > 0) {
+                n++;
+            }
+        }
+        int[] hist = new int[n*2];
+        int pos = 0;
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] > 0) {
+                hist[pos*2] = request.start + binsize * i + binsize / 2;
+                hist[pos*2+1] = raw[i];
+                pos++;
+            }
+        }
+        printOK();
+        printString(Integer.toString(hist.length) + "\n");
+        Bits.sendInts(hist, outstream, buffer);
+    }
+    /* returns the fragment size distribution of the proper pairs with midpoints
+     * between startposition and stopposition.  The output is the number
+     * of bins and then the bin counts as in PairedIndex.fragmentSizeHistogram.
+     */
+    public void processFragmentSizes(Hits hits) throws IOException {
+        PairedIndex index = getPairedIndex(hits);
+        int[] hist = index == null ? new int[0] :
+            index.fragmentSizeHistogram(request.start == null ? Integer.MIN_VALUE : request.start,
+                                        request.end == null ? Integer.MAX_VALUE : request.end,
+                                        request.minWeight);
+        printOK();
+        printString(Integer.toString(hist.length) + "\n");
+        Bits.sendInts(hist, outstream, buffer);
+    }
+    /* returns the same-chromosome pairs whose midpoint is between startposition and
+     * stopposition, with optional minfrag and maxfrag.  Output is as for processGetHits.
+     */
+    public void processGetMidpointHits(Hits hits) throws IOException {
+        PairedIndex index = getPairedIndex(hits);
+        if (index == null) {
+            printOK();
+            printString("0\n");
+            return;
+        }
+        Integer minfrag, maxfrag;
+        try {
+            minfrag = getIntParam("minfrag");
+            maxfrag = getIntParam("maxfrag");
+        } catch (NumberFormatException e) {
+            printString("invalid fragment size\n");
+            return;
+        }
+        int[] indices = index.getMidpointHits(request.start == null ? Integer.MIN_VALUE : request.start,
+                                              request.end == null ? Integer.MAX_VALUE : request.end,
+                                              request.minWeight, minfrag, maxfrag);
+        sendPairedHits((PairedHits)hits, indices);
+    }
+    /* returns the pairs with this side between startposition and stopposition whose
+     * other side is on matechromid between matestart and mateend.  Output is as for processGetHits.
+     */
+    public void processGetMateHits(Hits hits) throws IOException {
+        if (!request.isPaired) {
+            printString("mate lookups need paired hits\n");
+            return;
+        }
+        PairedIndex index = getPairedIndex(hits);
+        if (index == null) {
+            printOK();
+            printString("0\n");
+            return;
+        }
+        Integer matechrom, matestart, mateend;
+        try {
+            matechrom = getIntParam("matechromid");
+            matestart = getIntParam("matestart");
+            mateend = getIntParam("mateend");
+        } catch (NumberFormatException e) {
+            printString("invalid mate chromosome or position\n");
+            return;
+        }
+        if (matechrom == null) {
+            printString("missing mate chromosome\n");
+            return;
+        }
+        int[] indices = index.getMateHits(request.start == null ? Integer.MIN_VALUE : request.start,
+                                          request.end == null ? Integer.MAX_VALUE : request.end,
+                                          matechrom,
+                                          matestart == null ? Integer.MIN_VALUE : matestart,
+                                          mateend == null ? Integer.MAX_VALUE : mateend,
+                                          request.minWeight);
+        sendPairedHits((PairedHits)hits, indices);
+    }
     public void processHistogram(Header header, Hits hits) throws IOException {
     	if(header==null || hits==null){
     		printOK();
@@ -1202,10 +1526,7 @@ public class ServerTask {
 	        if(request.map.containsKey("extension")) {
 	        	extension = Integer.parseInt(request.map.get("extension"));
 	        }
-	        int first = header.getFirstIndex(request.start);
-	        int last = header.getLastIndex(request.end);
-	        int[] raw = hits.histogram(first,
-	                                   last,
+	        int[] raw = hits.histogram(header,
 	                                   request.start,
 	                                   request.end,
 	                                   binsize,
@@ -1268,10 +1589,7 @@ public class ServerTask {
 	        if(request.map.containsKey("extension")) {
 	        	extension = Integer.parseInt(request.map.get("extension"));
 	        }
-	        int first = header.getFirstIndex(request.start);
-	        int last = header.getLastIndex(request.end);
-	        float[] raw = hits.weightHistogram(first,
-	                                           last,
+	        float[] raw = hits.weightHistogram(header,
 	                                           request.start,
 	                                           request.end,
 	                                           binsize,
@@ -1301,6 +1619,115 @@ public class ServerTask {
 	        Bits.sendFloats(farray, outstream, buffer);
     	}
     }
+    /* returns a histogram summed over several alignments, listed one per line in the request.
+     * The request needs chromid, start, end and binsize and takes the same optional fields as
+     * histogram and weighthistogram.  The response is the number of bins followed by one 
+     * count (int) or weight (float) for every bin from start to end, including empty ones.
+     * For paired alignments both sides are included.
+     */
+    public void processMergedHistogram() throws IOException {
+        boolean weighted = request.type.equals("mergedweighthistogram");
+        if (request.chromid == null || request.start == null || request.end == null || request.end < request.start) {
+            printString("merged histograms need chromid, start, and end\n");
+            return;
+        }
+        int binsize = 10, dedup = 0, extension = 0;
+        try {
+            binsize = Integer.parseInt(request.map.get("binsize"));
+            if (request.map.containsKey("dedup")) {
+                dedup = Integer.parseInt(request.map.get("dedup"));
+            }
+            if (request.map.containsKey("extension")) {
+                extension = Integer.parseInt(request.map.get("extension"));
+            }
+        } catch (Exception e) {
+            server.getLogger().logp(Level.INFO,"ServerTask","processMergedHistogram "+toString(), "Exception parsing binsize : " + request.map.get("binsize"),e);
+            printString("missing or invalid bin size : " + request.map.get("binsize") + "\n");
+            return;
+        }
+        if (binsize <= 0) {
+            printString("missing or invalid bin size : " + binsize + "\n");
+            return;
+        }
+        for (String alignid : request.list) {
+            if (!(new File(server.getAlignmentDir(alignid))).exists()) {
+                printString("No Such Alignment " + alignid + "\n");
+                return;
+            }
+            AlignmentACL acl = null;
+            try {
+                acl = server.getACL(alignid);
+            } catch (IOException e) {
+                server.getLogger().logp(Level.INFO,"ServerTask","processMergedHistogram "+ toString(),
+                                       String.format("read error on acl for %s : %s", alignid, e.toString()));
+                printInvalid(e.toString());
+                return;
+            }
+            if (!authorizeRead(acl)) {
+                printAuthError();
+                return;
+            }
+            Lock.readLock(alignid);
+        }
+        int numbins = DenseHistogram.numBins(request.start, request.end, binsize);
+        int[] counts = weighted ? null : new int[numbins];
+        float[] weights = weighted ? new float[numbins] : null;
+        for (String alignid : request.list) {
+            if (request.isPaired) {
+                addHistogram(alignid, true, binsize, dedup, extension, counts, weights);
+                addHistogram(alignid, false, binsize, dedup, extension, counts, weights);
+            } else {
+                addHistogram(alignid, false, binsize, dedup, extension, counts, weights);
+            }
+        }
+        printOK();
+        printString(Integer.toString(numbins) + "\n");
+        if (weighted) {
+            Bits.sendFloats(weights, outstream, buffer);
+        } else {
+            Bits.sendInts(counts, outstream, buffer);
+        }
+    }
+    /* adds one alignment's histogram (with the request's chromosome, range and filters) into 
+       counts or weights.  As in processFileRequest, a chromosome without hits files adds nothing.
+    */
+    private void addHistogram(String alignid, boolean isLeft, int binsize, int dedup, int extension,
+                              int[] counts, float[] weights) throws IOException {
+        Header header = null;
+        Hits hits = null;
+        Boolean isPlus = request.isPlusStrand;
+        try {
+            if (request.isPaired) {
+                header = server.getPairedHeader(alignid, request.chromid, isLeft);
+                hits = server.getPairedHits(alignid, request.chromid, isLeft);
+            } else if (isPlus != null && server.hasSingleStrandHits(alignid, request.chromid, request.isType2)) {
+                header = server.getSingleStrandHeader(alignid, request.chromid, request.isType2, isPlus);
+                if (header.getNumHits() > 0) {
+                    hits = server.getSingleStrandHits(alignid, request.chromid, request.isType2, isPlus);
+                }
+                isPlus = null;
+            } else {
+                header = server.getSingleHeader(alignid, request.chromid, request.isType2);
+                hits = server.getSingleHits(alignid, request.chromid, request.isType2);
+            }
+        } catch (IOException e) {
+            return;
+        }
+        if (hits == null || header.getNumHits() == 0) {
+            return;
+        }
+        if (counts != null) {
+            int[] raw = hits.histogram(header, request.start, request.end, binsize, dedup, request.minWeight, isPlus, extension);
+            for (int i = 0; i < raw.length; i++) {
+                counts[i] += raw[i];
+            }
+        } else {
+            float[] raw = hits.weightHistogram(header, request.start, request.end, binsize, dedup, request.minWeight, isPlus, extension);
+            for (int i = 0; i < raw.length; i++) {
+                weights[i] += raw[i];
+            }
+        }
+    }
     public void processCheckSort(Header header, Hits hits) throws IOException {
     	if(header==null || hits==null){
             printString("File does not exist for this chromosome");
@@ -1325,10 +1752,7 @@ public class ServerTask {
 	                server.removeSingleHeader(request.alignid, request.chromid, request.isType2);       
 	                hits = server.getSingleHits(request.alignid, request.chromid, request.isType2);
 	                
-	                header = new Header(hits.getPositionsBuffer().getib());
-	                header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
-	                                                                     request.chromid,
-	                                                                     request.isType2));
+	                writeSingleIndex((SingleHits)hits);
 	
 	            } else {
 	                printString("Can't resort paired hits");
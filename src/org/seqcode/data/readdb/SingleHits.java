@@ -20,15 +20,79 @@ public class SingleHits extends Hits {
               getWeightsFname(prefix,chrom, type2), 
               getLaSFname(prefix,chrom, type2));
     }
+    /**
+     * Initializes a Hits object from the plus or minus strand files of an alignment 
+     * that uses the strand-split layout (see writeStrandHits)
+     */
+    public SingleHits (String prefix, int chrom, boolean type2, boolean plusStrand) throws FileNotFoundException, SecurityException, IOException {
+        super(chrom,
+              getPositionsFname(prefix + chrom + strandName(plusStrand), type2),
+              getWeightsFname(prefix + chrom + strandName(plusStrand), type2), 
+              getLaSFname(prefix + chrom + strandName(plusStrand), type2));
+    }
     public static void writeSingleHits(IntBP positions,
                                        FloatBP weights,
                                        IntBP las,
                                        String prefix,
                                        int chrom,
                                        boolean type2 ) throws IOException {
-        String postmp = getPositionsFname(prefix,chrom, type2) + ".tmp";
-        String weightstmp = getWeightsFname(prefix,chrom, type2) + ".tmp";
-        String lastmp = getLaSFname(prefix,chrom, type2) + ".tmp";
+        writeFiles(positions, weights, las, prefix + chrom, type2);
+    }
+    /**
+     * Writes the hits of this object into separate plus and minus strand files, each sorted by position,
+     * so that strand-specific queries only read the hits on the requested strand.
+     * The strand files are a copy of the hits and need to be rewritten whenever the hits change.
+     */
+    public void writeStrandHits(String prefix,
+                                int chrom,
+                                boolean type2) throws IOException {
+        IntBP positions = getPositionsBuffer();
+        FloatBP weights = getWeightsBuffer();
+        IntBP las = getLASBuffer();
+        int n = positions.limit(), nplus = 0;
+        for (int i = 0; i < n; i++) {
+            if (Hits.getStrandOne(las.get(i))) {
+                nplus++;
+            }
+        }
+        IntBP pluspos = new IntBP(nplus), minuspos = new IntBP(n - nplus);
+        FloatBP plusweights = new FloatBP(nplus), minusweights = new FloatBP(n - nplus);
+        IntBP pluslas = new IntBP(nplus), minuslas = new IntBP(n - nplus);
+        int p = 0, m = 0;
+        for (int i = 0; i < n; i++) {
+            int l = las.get(i);
+            if (Hits.getStrandOne(l)) {
+                pluspos.put(p, positions.get(i));
+                plusweights.put(p, weights.get(i));
+                pluslas.put(p++, l);
+            } else {
+                minuspos.put(m, positions.get(i));
+                minusweights.put(m, weights.get(i));
+                minuslas.put(m++, l);
+            }
+        }
+        writeFiles(pluspos, plusweights, pluslas, prefix + chrom + strandName(true), type2);
+        writeFiles(minuspos, minusweights, minuslas, prefix + chrom + strandName(false), type2);
+    }
+    /** removes the strand files written by writeStrandHits, if any */
+    public static void deleteStrandHits(String prefix,
+                                        int chrom,
+                                        boolean type2) {
+        for (boolean plus : new boolean[]{true, false}) {
+            String base = prefix + chrom + strandName(plus);
+            (new File(getPositionsFname(base, type2))).delete();
+            (new File(getWeightsFname(base, type2))).delete();
+            (new File(getLaSFname(base, type2))).delete();
+        }
+    }
+    private static void writeFiles(IntBP positions,
+                                   FloatBP weights,
+                                   IntBP las,
+                                   String base,
+                                   boolean type2) throws IOException {
+        String postmp = getPositionsFname(base, type2) + ".tmp";
+        String weightstmp = getWeightsFname(base, type2) + ".tmp";
+        String lastmp = getLaSFname(base, type2) + ".tmp";
         RandomAccessFile positionsRAF = new RandomAccessFile(postmp,"rw");
         RandomAccessFile weightsRAF = new RandomAccessFile(weightstmp,"rw");
         RandomAccessFile lasRAF = new RandomAccessFile(lastmp,"rw");
@@ -41,9 +105,9 @@ public class SingleHits extends Hits {
         lasRAF.close();
 
         /* ideally this part with the renames would atomic... */
-        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom, type2)));
-        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom, type2)));
-        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom, type2)));
+        (new File(postmp)).renameTo(new File(getPositionsFname(base, type2)));
+        (new File(weightstmp)).renameTo(new File(getWeightsFname(base, type2)));
+        (new File(lastmp)).renameTo(new File(getLaSFname(base, type2)));
     }
     public static void writeSingleHits(SingleHit[] hits,
                                        String prefix, 
@@ -207,22 +271,34 @@ public class SingleHits extends Hits {
 
     }
     private static String getPositionsFname(String prefix, int chrom, boolean type2) {
+        return getPositionsFname(prefix + chrom, type2);
+    }
+    private static String getWeightsFname(String prefix, int chrom, boolean type2) {
+        return getWeightsFname(prefix + chrom, type2);
+    }
+    private static String getLaSFname(String prefix, int chrom, boolean type2) {
+        return getLaSFname(prefix + chrom, type2);
+    }
+    private static String getPositionsFname(String base, boolean type2) {
         if(!type2)
-        	return prefix + chrom + ".spositions";
+        	return base + ".spositions";
         else
-        	return prefix + chrom + ".st2positions";
+        	return base + ".st2positions";
     }
-    private static String getWeightsFname(String prefix, int chrom, boolean type2) {
+    private static String getWeightsFname(String base, boolean type2) {
         if(!type2)
-        	return prefix + chrom + ".sweights";
+        	return base + ".sweights";
         else
-        	return prefix + chrom + ".st2weights";
+        	return base + ".st2weights";
     }
-    private static String getLaSFname(String prefix, int chrom, boolean type2) {
+    private static String getLaSFname(String base, boolean type2) {
         if(!type2)
-        	return prefix + chrom + ".slas";
+        	return base + ".slas";
         else
-        	return prefix + chrom + ".st2las";
+        	return base + ".st2las";
+    }
+    private static String strandName(boolean plusStrand) {
+        return plusStrand ? ".plus" : ".minus";
     }
 
 }
\ No newline at end of file
@@ -361,6 +361,71 @@ public class TestHits {
         }                
     }
 
+    @Test public void testSummaryCountAndWeight() throws IOException {
+        Header summarized = new Header(hitsfile);
+        summarized.writeIndexFile(prefix + chrom + ".sindex");
+        summarized = Header.readIndexFile(prefix + chrom + ".sindex");
+        assertTrue(summarized.hasSummaries());
+        Boolean[] strands = {null, true, false};
+        for (int q = 0; q < 300; q++) {
+            int start = (int)Math.round(Math.random() * (MAXVALUE - 10));
+            int end = start + (int)(Math.round(Math.random() * MAXVALUE) % (MAXVALUE - start));
+            Float minweight = q % 3 == 0 ? null : (q % 3 == 1 ? 0f : (float)Math.random() * MAXWEIGHT);
+            Boolean isPlus = strands[(q / 3) % 3];
+            int count = hitsfile.getCountBetween(header.getFirstIndex(start), header.getLastIndex(end),
+                                                 start, end, minweight, isPlus);
+            double weight = hitsfile.getWeightBetween(header.getFirstIndex(start), header.getLastIndex(end),
+                                                      start, end, minweight, isPlus);
+            assertEquals(count, hitsfile.getCountBetween(summarized, start, end, minweight, isPlus));
+            assertEquals(weight, hitsfile.getWeightBetween(summarized, start, end, minweight, isPlus), 1e-6 * Math.max(1, weight));
+        }
+    }
+
+    @Test public void testSummaryHistogram() throws IOException {
+        Header summarized = new Header(hitsfile);
+        for (int q = 0; q < 100; q++) {
+            int start = (int)Math.round(Math.random() * (MAXVALUE - 10));
+            int end = start + (int)(Math.round(Math.random() * MAXVALUE) % (MAXVALUE - start));
+            int binsize = 100 + (int)Math.round(Math.random() * 1000);
+            Float minweight = q % 2 == 0 ? null : (float)Math.random() * MAXWEIGHT;
+            Boolean isPlus = q % 3 == 0 ? null : q % 3 == 1;
+            int[] histogram = hitsfile.histogram(header.getFirstIndex(start), header.getLastIndex(end),
+                                                 start,end,binsize,0,minweight,isPlus,0);
+            assertTrue(Arrays.equals(histogram, hitsfile.histogram(summarized,start,end,binsize,0,minweight,isPlus,0)));
+            float[] whistogram = hitsfile.weightHistogram(header.getFirstIndex(start), header.getLastIndex(end),
+                                                          start,end,binsize,0,minweight,isPlus,0);
+            float[] wsummarized = hitsfile.weightHistogram(summarized,start,end,binsize,0,minweight,isPlus,0);
+            for (int i = 0; i < whistogram.length; i++) {
+                assertEquals(whistogram[i], wsummarized[i], 1e-3 * Math.max(1, whistogram[i]));
+            }
+        }
+    }
+
+    @Test public void testStrandHits() throws IOException {
+        hitsfile.writeStrandHits(prefix, chrom, false);
+        int total = 0;
+        for (boolean plus : new boolean[]{true, false}) {
+            SingleHits strandhits = new SingleHits(prefix, chrom, false, plus);
+            IntBP positions = strandhits.getPositionsBuffer();
+            IntBP l = strandhits.getLASBuffer();
+            for (int i = 0; i < positions.limit(); i++) {
+                assertTrue(Hits.getStrandOne(l.get(i)) == plus);
+                assertTrue(i == 0 || positions.get(i-1) <= positions.get(i));
+            }
+            Header strandheader = new Header(strandhits);
+            for (int q = 0; q < 100; q++) {
+                int start = (int)Math.round(Math.random() * (MAXVALUE - 10));
+                int end = start + (int)(Math.round(Math.random() * MAXVALUE) % (MAXVALUE - start));
+                assertEquals(hitsfile.getCountBetween(header.getFirstIndex(start), header.getLastIndex(end),
+                                                      start, end, null, plus),
+                             strandhits.getCountBetween(strandheader, start, end, null, null));
+            }
+            total += positions.limit();
+        }
+        assertEquals(hits.size(), total);
+        SingleHits.deleteStrandHits(prefix, chrom, false);
+    }
+
 
     public static void main(String args[]) {
         prefix = args[0];
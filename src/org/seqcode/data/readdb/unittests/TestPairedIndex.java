@@ -0,0 +1,228 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.Files;
+import org.junit.*;
+import org.seqcode.data.readdb.Hits;
+import org.seqcode.data.readdb.IntBP;
+import org.seqcode.data.readdb.PairedHit;
+import org.seqcode.data.readdb.PairedHitLeftComparator;
+import org.seqcode.data.readdb.PairedHitRightComparator;
+import org.seqcode.data.readdb.PairedHits;
+import org.seqcode.data.readdb.PairedIndex;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the answers from PairedIndex against scanning all the hits
+ */
+public class TestPairedIndex {
+
+    private static String basedir = System.getProperty("java.io.tmpdir");
+    private File dir;
+    private String prefix;
+    private int chrom, otherchrom;
+    private List<PairedHit> hits;
+    private PairedHits left, right;
+    private PairedIndex leftindex, rightindex;
+    private Random rand = new Random();
+
+    @Before public void setUp() throws IOException {
+        dir = Files.createTempDirectory(new File(basedir).toPath(), "TestPairedIndex").toFile();
+        prefix = dir.getPath() + System.getProperty("file.separator");
+        int len = 20000;
+        chrom = rand.nextInt(10000);
+        otherchrom = chrom + 1;
+        hits = new ArrayList<PairedHit>();
+        for (int i = 0; i < len; i++) {
+            int leftpos = rand.nextInt(1000000);
+            boolean samechrom = rand.nextInt(5) != 0;
+            hits.add(new PairedHit(chrom,
+                                   leftpos,
+                                   rand.nextBoolean(),
+                                   (short)(rand.nextInt(100)+1),
+                                   samechrom ? chrom : otherchrom,
+                                   samechrom ? Math.max(0, leftpos + rand.nextInt(3000) - 1000) : rand.nextInt(1000000),
+                                   rand.nextBoolean(),
+                                   (short)(rand.nextInt(100)+1),
+                                   rand.nextFloat(),
+                                   i % 3));
+        }
+        Collections.sort(hits, new PairedHitLeftComparator());
+        PairedHits.writePairedHits(hits, prefix, chrom, true);
+        List<PairedHit> other = new ArrayList<PairedHit>(hits);
+        Collections.sort(other, new PairedHitRightComparator());
+        PairedHits.writePairedHits(other, prefix, otherchrom, false);
+        left = new PairedHits(prefix, chrom, true);
+        right = new PairedHits(prefix, otherchrom, false);
+        PairedIndex.writeIndex(left, prefix, chrom);
+        leftindex = PairedIndex.open(left, prefix, chrom);
+        rightindex = PairedIndex.open(right, prefix + "notwritten", otherchrom);
+    }
+
+    @After public void tearDown() throws IOException {
+        leftindex.close();
+        rightindex.close();
+        left.close();
+        right.close();
+        delete(dir);
+    }
+
+    private static void delete(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        Files.deleteIfExists(f.toPath());
+    }
+
+    private int fragmentSize(int i) {
+        return PairedIndex.fragmentSize(left.getPositionsBuffer().get(i),
+                                        left.getOtherPosBuffer().get(i),
+                                        left.getLASBuffer().get(i));
+    }
+    private int midpoint(int i) {
+        return PairedIndex.midpoint(left.getPositionsBuffer().get(i), left.getOtherPosBuffer().get(i));
+    }
+    private boolean sameChrom(int i) {
+        return left.getChromsBuffer().get(i) == chrom;
+    }
+
+    @Test public void testFragmentSize() {
+        PairedHit h = new PairedHit(chrom, 100, true, (short)10, chrom, 300, false, (short)10, 1, 0);
+        int las = Hits.makeLAS(h.leftLength, h.leftStrand, h.rightLength, h.rightStrand);
+        assertEquals(200, PairedIndex.fragmentSize(h.leftPos, h.rightPos, las));
+        las = Hits.makeLAS(h.leftLength, false, h.rightLength, true);
+        assertEquals(-1, PairedIndex.fragmentSize(h.leftPos, h.rightPos, las));
+        las = Hits.makeLAS(h.rightLength, false, h.leftLength, true);
+        assertEquals(200, PairedIndex.fragmentSize(h.rightPos, h.leftPos, las));
+    }
+
+    @Test public void testMidpointHits() {
+        for (int t = 0; t < 50; t++) {
+            int start = rand.nextInt(1000000);
+            int end = start + rand.nextInt(50000);
+            Integer minfrag = t % 2 == 0 ? null : 100;
+            Integer maxfrag = t % 3 == 0 ? null : 500;
+            Float minweight = t % 5 == 0 ? .5f : null;
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < hits.size(); i++) {
+                int size = fragmentSize(i);
+                if (sameChrom(i) && midpoint(i) >= start && midpoint(i) <= end &&
+                    (minweight == null || left.getWeightsBuffer().get(i) >= minweight) &&
+                    (minfrag == null || (size >= 0 && size >= minfrag)) &&
+                    (maxfrag == null || (size >= 0 && size <= maxfrag))) {
+                    expected.add(i);
+                }
+            }
+            int[] actual = leftindex.getMidpointHits(start, end, minweight, minfrag, maxfrag);
+            assertEquals(expected.size(), actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals((int)expected.get(i), actual[i]);
+            }
+        }
+    }
+
+    @Test public void testMidpointHistogram() {
+        for (int t = 0; t < 20; t++) {
+            int start = rand.nextInt(500000);
+            int end = start + rand.nextInt(500000);
+            int binsize = t % 2 == 0 ? 10 : 100000;
+            Integer maxfrag = t % 4 == 1 ? 300 : null;
+            int[] expected = new int[(end - start) / binsize + 1];
+            for (int i = 0; i < hits.size(); i++) {
+                int m = midpoint(i), size = fragmentSize(i);
+                if (sameChrom(i) && m >= start && m <= end &&
+                    (maxfrag == null || (size >= 0 && size <= maxfrag))) {
+                    expected[(m - start) / binsize]++;
+                }
+            }
+            assertArrayEquals(expected, leftindex.midpointHistogram(start, end, binsize, null, null, maxfrag));
+        }
+    }
+
+    @Test public void testFragmentSizes() {
+        assertTrue(leftindex.getNumPages() > 2);
+        for (int t = 0; t < 20; t++) {
+            int start = t == 0 ? Integer.MIN_VALUE : rand.nextInt(1000000);
+            int end = t == 0 ? Integer.MAX_VALUE : start + rand.nextInt(1000000);
+            Float minweight = t % 3 == 2 ? .25f : null;
+            int[] expected = new int[PairedIndex.NUM_FRAG_BINS + 1];
+            for (int i = 0; i < hits.size(); i++) {
+                int m = midpoint(i), size = fragmentSize(i);
+                if (sameChrom(i) && m >= start && m <= end && size >= 0 &&
+                    (minweight == null || left.getWeightsBuffer().get(i) >= minweight)) {
+                    expected[PairedIndex.fragmentBin(size)]++;
+                }
+            }
+            assertArrayEquals(expected, leftindex.fragmentSizeHistogram(start, end, minweight));
+        }
+    }
+
+    @Test public void testMateHits() {
+        for (int t = 0; t < 50; t++) {
+            int start = t % 2 == 0 ? Integer.MIN_VALUE : rand.nextInt(1000000);
+            int end = t % 2 == 0 ? Integer.MAX_VALUE : start + rand.nextInt(200000);
+            int matechrom = t % 3 == 0 ? chrom : otherchrom;
+            int matestart = rand.nextInt(1000000);
+            int mateend = matestart + rand.nextInt(100000);
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < hits.size(); i++) {
+                int p = left.getPositionsBuffer().get(i), op = left.getOtherPosBuffer().get(i);
+                if (p >= start && p <= end && left.getChromsBuffer().get(i) == matechrom &&
+                    op >= matestart && op <= mateend) {
+                    expected.add(i);
+                }
+            }
+            int[] actual = leftindex.getMateHits(start, end, matechrom, matestart, mateend, null);
+            assertEquals(expected.size(), actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals((int)expected.get(i), actual[i]);
+            }
+        }
+    }
+
+    @Test public void testRightSide() {
+        /* every right read on otherchrom has its mate on chrom */
+        IntBP positions = right.getPositionsBuffer();
+        int[] all = rightindex.getMateHits(Integer.MIN_VALUE, Integer.MAX_VALUE, chrom, Integer.MIN_VALUE, Integer.MAX_VALUE, null);
+        assertEquals(positions.limit(), all.length);
+        assertEquals(0, rightindex.getNumMidpoints());
+        int[] some = rightindex.getMateHits(0, 500000, chrom, 250000, 750000, null);
+        int n = 0;
+        for (int i = 0; i < positions.limit(); i++) {
+            int op = right.getOtherPosBuffer().get(i);
+            if (positions.get(i) <= 500000 && op >= 250000 && op <= 750000) {
+                assertEquals(i, some[n++]);
+            }
+        }
+        assertEquals(n, some.length);
+    }
+
+    @Test public void testStale() throws IOException {
+        /* rewrite the hits without rewriting the index; open() must notice */
+        List<PairedHit> fewer = new ArrayList<PairedHit>(hits.subList(0, hits.size() / 2));
+        PairedHits.writePairedHits(fewer, prefix, chrom, true);
+        PairedHits rewritten = new PairedHits(prefix, chrom, true);
+        PairedIndex index = PairedIndex.open(rewritten, prefix, chrom);
+        int[] all = index.getMateHits(Integer.MIN_VALUE, Integer.MAX_VALUE, chrom, Integer.MIN_VALUE, Integer.MAX_VALUE, null);
+        int expected = 0;
+        for (PairedHit h : fewer) {
+            if (h.rightChrom == chrom) {
+                expected++;
+            }
+        }
+        assertEquals(expected, all.length);
+        assertEquals(expected, index.getNumMidpoints());
+        index.close();
+        rewritten.close();
+    }
+
+    public static void main(String args[]) {
+        basedir = args[0];
+        org.junit.runner.JUnitCore.main("org.seqcode.data.readdb.unittests.TestPairedIndex");
+    }
+}
@@ -1,11 +1,14 @@
 package org.seqcode.data.readdb.unittests;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.IOException;
 import org.junit.*;
 import org.seqcode.data.readdb.ACLChangeEntry;
 import org.seqcode.data.readdb.Client;
 import org.seqcode.data.readdb.ClientException;
+import org.seqcode.data.readdb.ClientMetrics;
+import org.seqcode.data.readdb.ClientPool;
 import org.seqcode.data.readdb.PairedHit;
 import org.seqcode.data.readdb.PairedHitLeftComparator;
 import org.seqcode.data.readdb.PairedHitRightComparator;
@@ -748,6 +751,52 @@ public class TestReadDB {
         c.close();
     }
 
+    @Test public void testPairedHistogram() throws IOException, ClientException {
+        int chrom = 70;
+        List<PairedHit> hits = new ArrayList<PairedHit>();
+        for (int i = 0; i < 500; i++) {
+            int left = (int)(Math.random() * 1000);
+            hits.add(new PairedHit(chrom, left, true, (short)30,
+                                   chrom, left + (int)(Math.random() * 300), false, (short)30,
+                                   1.0F, 0));
+        }
+        String name = "testPairedHistogram";
+        Client c = new Client(hostname, portnum, user, passwd);
+        c.storePaired(name, hits);
+        assertTrue(c.serverSupports("mergedhistogram"));
+        assertFalse(c.serverSupports("nosuchrequest"));
+
+        /* both sides of each pair are counted, whether the server merges the alignments or the client does */
+        TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        for (boolean isLeft : new boolean[]{true, false}) {
+            for (Map.Entry<Integer,Integer> e : c.getHistogram(name,chrom,false,true,0,10,0,0,1500,null,null,isLeft).entrySet()) {
+                Integer old = expected.get(e.getKey());
+                expected.put(e.getKey(), old == null ? e.getValue() : old + e.getValue());
+            }
+        }
+        List<String> ids = Collections.singletonList(name);
+        TreeMap<Integer,Integer> merged = c.getHistogram(ids,chrom,false,true,0,10,0,1500,null,null);
+        Client old = new Client(hostname, portnum, user, passwd) {
+                public boolean serverSupports(String requestType) { return false; }
+            };
+        TreeMap<Integer,Integer> fallback = old.getHistogram(ids,chrom,false,true,0,10,0,1500,null,null);
+        int total = 0;
+        for (int v : expected.values()) {
+            total += v;
+        }
+        assertEquals(2 * hits.size(), total);
+        for (int k : expected.keySet()) {
+            assertEquals("merged " + k, expected.get(k), merged.get(k));
+            assertEquals("fallback " + k, expected.get(k), fallback.get(k));
+        }
+        for (int k : merged.keySet()) {
+            assertTrue(merged.get(k) == 0 || expected.containsKey(k));
+        }
+        assertEquals(expected.size(), fallback.size());
+        old.close();
+        c.close();
+    }
+
     @Test public void testSecondStorePairedReads() throws IOException, ClientException {
         List<PairedHit> hits = new ArrayList<PairedHit>();
         for (int i = 0; i < 1000; i++) {
@@ -963,6 +1012,98 @@ public class TestReadDB {
     }
 
 
+    /* pooled, pipelined multi-alignment histograms from concurrent callers match the per-alignment sums
+       that Client used to compute with one request at a time */
+    @Test public void testClientPool() throws Exception {
+        int MAXVALUE = 10000;
+        Client c = new Client(hostname, portnum, user, passwd);
+        final List<String> names = new ArrayList<String>();
+        for (int a = 0; a < 3; a++) {
+            String name = "testClientPool" + a;
+            names.add(name);
+            ArrayList<SingleHit> hits = new ArrayList<SingleHit>();
+            for (int i = 0; i < MAXVALUE; i++) {
+                hits.add(new SingleHit(1 + i % 2, (int)Math.round(Math.random() * MAXVALUE), (float)(Math.random() * 4), Math.random() < .5, 10));
+            }
+            c.storeSingle(name,hits,false);
+        }
+        final int queries = 60;
+        final int[][] windows = new int[queries][];
+        List<TreeMap<Integer,Integer>> expected = new ArrayList<TreeMap<Integer,Integer>>();
+        List<TreeMap<Integer,Float>> expectedWeights = new ArrayList<TreeMap<Integer,Float>>();
+        for (int q = 0; q < queries; q++) {
+            int start = (int)Math.round(Math.random() * MAXVALUE / 2);
+            windows[q] = new int[]{1 + q % 2, start, start + (int)Math.round(Math.random() * MAXVALUE / 2), 10 + q % 40};
+            TreeMap<Integer,Integer> hist = new TreeMap<Integer,Integer>();
+            TreeMap<Integer,Float> whist = new TreeMap<Integer,Float>();
+            for (String name : names) {
+                Map<Integer,Integer> h = c.getHistogram(name,windows[q][0],false,false,0,windows[q][3],windows[q][1],windows[q][2],null,null);
+                for (int k : h.keySet()) {
+                    hist.put(k, h.get(k) + (hist.containsKey(k) ? hist.get(k) : 0));
+                }
+                Map<Integer,Float> w = c.getWeightHistogram(name,windows[q][0],false,false,0,windows[q][3],windows[q][1],windows[q][2],null,null);
+                for (int k : w.keySet()) {
+                    whist.put(k, w.get(k) + (whist.containsKey(k) ? whist.get(k) : 0));
+                }
+            }
+            expected.add(hist);
+            expectedWeights.add(whist);
+        }
+        c.close();
+
+        final ClientPool pool = new ClientPool(hostname, portnum, user, passwd, 3);
+        ExecutorService service = Executors.newFixedThreadPool(6);
+        List<Future<TreeMap<Integer,Integer>>> hists = new ArrayList<Future<TreeMap<Integer,Integer>>>();
+        List<Future<TreeMap<Integer,Float>>> whists = new ArrayList<Future<TreeMap<Integer,Float>>>();
+        for (int q = 0; q < queries; q++) {
+            final int[] w = windows[q];
+            hists.add(service.submit(new Callable<TreeMap<Integer,Integer>>() {
+                public TreeMap<Integer,Integer> call() throws Exception {
+                    return pool.getHistogram(names,w[0],false,false,0,w[3],w[1],w[2],null,null);
+                }
+            }));
+            whists.add(service.submit(new Callable<TreeMap<Integer,Float>>() {
+                public TreeMap<Integer,Float> call() throws Exception {
+                    return pool.getWeightHistogram(names,w[0],false,false,0,w[3],w[1],w[2],null,null);
+                }
+            }));
+        }
+        for (int q = 0; q < queries; q++) {
+            assertEquals(expected.get(q), hists.get(q).get());
+            TreeMap<Integer,Float> w = whists.get(q).get();
+            assertEquals(expectedWeights.get(q).keySet(), w.keySet());
+            for (int k : w.keySet()) {
+                assertEquals(expectedWeights.get(q).get(k), w.get(k), .001);
+            }
+        }
+        service.shutdown();
+        int open = pool.getNumConnections();
+        assertTrue(open >= 1 && open <= 3);
+
+        /* a refused request is counted as an error and leaves its connection in the pool */
+        boolean ex = false;
+        try {
+            pool.getCount("testClientPoolMissing",1,false,false,null,null,null,null,null);
+        } catch (ClientException e) {
+            ex = true;
+        }
+        assertTrue(ex);
+        assertEquals(open, pool.getNumConnections());
+        ClientMetrics metrics = pool.getMetrics();
+        assertEquals(queries, metrics.getStats("histogram").getCount());
+        assertEquals(queries, metrics.getStats("weighthistogram").getCount());
+        assertEquals(0, metrics.getStats("histogram").getErrors());
+        assertEquals(1, metrics.getStats("count").getErrors());
+        pool.close();
+        assertEquals(0, pool.getNumConnections());
+
+        c = new Client(hostname, portnum, user, passwd);
+        for (String name : names) {
+            c.deleteAlignment(name,false);
+        }
+        c.close();
+    }
+
     public static void main(String args[]) {
         hostname = args[0];
         portnum = Integer.parseInt(args[1]);
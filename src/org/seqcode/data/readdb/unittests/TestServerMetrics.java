@@ -0,0 +1,67 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import java.util.logging.Logger;
+import org.junit.*;
+import org.seqcode.data.readdb.ServerMetrics;
+
+import static org.junit.Assert.*;
+
+public class TestServerMetrics {
+
+    @Test public void testPercentiles() {
+        ServerMetrics.LatencyHistogram h = new ServerMetrics.LatencyHistogram();
+        long[] values = new long[10000];
+        Random rand = new Random();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long)(Math.exp(rand.nextDouble() * 20) * 1000);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, h.getCount());
+        assertEquals(values[values.length - 1] / 1e6, h.getMaxMillis(), 1e-9);
+        for (double pct : new double[]{1, 50, 90, 99, 99.9}) {
+            double actual = values[(int)Math.ceil(values.length * pct / 100.0) - 1] / 1e6;
+            double reported = h.getPercentileMillis(pct);
+            /* the reported value is the top of the bucket, which is at most 1/8 above the true value */
+            assertTrue(pct + " : " + reported + " vs " + actual, reported >= actual - .001);
+            assertTrue(pct + " : " + reported + " vs " + actual, reported <= actual * 1.125 + .001);
+        }
+    }
+
+    @Test public void testCounts() {
+        ServerMetrics m = new ServerMetrics();
+        m.recordCommand("gethits", 1000000, true);
+        m.recordCommand("gethits", 3000000, false);
+        m.recordAlignmentIO("a", 10, 100);
+        m.recordAlignmentIO("a", 5, 50);
+        assertEquals(2, m.getCommandLatency("gethits").getCount());
+        assertEquals(1, m.getCommandErrors("gethits"));
+        assertEquals(2.0, m.getCommandLatency("gethits").getMeanMillis(), 1e-9);
+        assertEquals(15, m.getBytesRead("a"));
+        assertEquals(150, m.getBytesWritten("a"));
+        assertTrue(m.report().contains("gethits"));
+        m.clear();
+        assertNull(m.getCommandLatency("gethits"));
+        assertEquals(0, m.getBytesWritten("a"));
+    }
+
+    @Test public void testRolling() throws IOException {
+        File f = File.createTempFile("metrics", ".log");
+        ServerMetrics m = new ServerMetrics();
+        m.recordCommand("count", 1000, true);
+        ServerMetrics.MetricsLogger l = new ServerMetrics.MetricsLogger(m, Logger.getLogger("TestServerMetrics"), f, 1000, 10, 2);
+        for (int i = 0; i < 4; i++) {
+            l.write();
+        }
+        File one = new File(f.getPath() + ".1"), two = new File(f.getPath() + ".2"), three = new File(f.getPath() + ".3");
+        assertTrue(one.exists());
+        assertTrue(two.exists());
+        assertFalse(three.exists());
+        assertEquals(one.length(), f.length());
+        f.delete();
+        one.delete();
+        two.delete();
+    }
+}
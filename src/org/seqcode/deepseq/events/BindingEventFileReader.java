@@ -9,8 +9,6 @@ import java.util.HashMap;
 
 import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
-import org.seqcode.genome.location.Point;
-import org.seqcode.gsebricks.verbs.location.PointParser;
 
 
 /**
@@ -23,6 +21,7 @@ public class BindingEventFileReader {
 	protected ExperimentManager experiments=null;
 	protected EventsConfig config=null;
 	ArrayList<BindingEvent> features = new ArrayList<BindingEvent>();
+	BindingEventTable table=null;
 	
 	public BindingEventFileReader(String fileName,  ExperimentManager ex, EventsConfig con){
 		experiments = ex;
@@ -46,62 +45,165 @@ public class BindingEventFileReader {
 		return(execute(f));		
 	}
 	public ArrayList<BindingEvent> execute(File f){
-		features = new ArrayList<BindingEvent>();
+		table = readTable(f);
+		features = table==null ? new ArrayList<BindingEvent>() : table.getEvents(null, config.getGenome());
+		return(features);
+	}
+	
+	/**
+	 * Read a multi-condition GPS file into a columnar event table, without making BindingEvent objects.
+	 * Lines are scanned by tab position rather than split, and numeric fields are parsed in place.
+	 * 
+	 * Files with a log2-scaled header (_log2Fold/_log2P columns, as written by BindingEvent.toString() 
+	 * and BindingEventTable.write()) are decoded accordingly; older files are read as -log10 P-values 
+	 * and unscaled folds. 
+	 * @param f
+	 * @return the table, or null if the file could not be read
+	 */
+	public BindingEventTable readTable(File f){
+		int numC = experiments.getConditions().size();
+		int numR = experiments.getReplicates().size();
+		BindingEventTable t = new BindingEventTable(numC, numR);
+		HashMap<Integer, String> fileCondIndex = new HashMap<Integer, String>();
+		int[] condMap=null; //file condition index -> experiment condition index
+		boolean log2Scaled=false;
+		BufferedReader reader=null;
 		try {
-			int numC = experiments.getConditions().size();
-			HashMap<Integer, String> fileCondIndex = new HashMap<Integer, String>();
-			
-			BufferedReader reader = new BufferedReader(new FileReader(f));
+			reader = new BufferedReader(new FileReader(f), 1<<16);
 			String line;
 			while ((line = reader.readLine()) != null) {
-	        	line = line.trim();
-	            String[] words = line.split("\\t");
-	            
-	            if(words[0].startsWith("#")){  //Header
-	            	//Read Condition indices
-	            	if(words[0].startsWith("#Condition") && !words[1].equals("Name")){
-	            		fileCondIndex.put(new Integer(words[2]), words[1]);
-	            	}
-	            }else{ //Events
-	            	PointParser pparser = new PointParser(config.getGenome());
-	            	Point p = pparser.execute(words[0]);
-	            	BindingEvent ev = new BindingEvent(p,null);
-	            	
-	            	int baseline = 1;
-	            	
-	            	//Load single condition stuff
-	            	for(int currIndex=0; currIndex<numC; currIndex++){
-	            		ExperimentCondition currCond = experiments.getNamedCondition(fileCondIndex.get(currIndex));
-	            		
-	            		ev.setCondSigHits(currCond, new Double(words[baseline+0]));
-	            		ev.setCondCtrlHits(currCond, new Double(words[baseline+1]));
-	            		ev.setCondSigVCtrlFold(currCond, new Double(words[baseline+2]));
-	            		ev.setCondSigVCtrlP(currCond, Math.pow(10,-1*new Double(words[baseline+3])));
-	            		baseline += BindingEvent.getNumSingleCondCols();
-	            	}
-	            	
-	            	//Load inter-condition stuff
-	            	for(int currIndexA=0; currIndexA<numC; currIndexA++){
-	            		for(int currIndexB=0; currIndexB<numC; currIndexB++){
-	            			if(currIndexA!=currIndexB){
-	            				ExperimentCondition currCondA = experiments.getNamedCondition(fileCondIndex.get(currIndexA));
-	            				ExperimentCondition currCondB = experiments.getNamedCondition(fileCondIndex.get(currIndexB));
-	            				
-	            				ev.setInterCondScMean(currCondA, currCondB, new Double(words[baseline+0]));
-	            				ev.setInterCondFold(currCondA, currCondB, new Double(words[baseline+1]));
-	            				ev.setInterCondP(currCondA, currCondB, Math.pow(10,-1*new Double(words[baseline+2])));
-	            				baseline += BindingEvent.getNumInterCondCols();		
-	            			}
-	            		}
-	            	}
-	            	
-	            	features.add(ev);
-	            }	            
-	            
-			}reader.close();
+				int len = line.length();
+				int pos = 0;
+				while(pos<len && Character.isWhitespace(line.charAt(pos))) pos++;
+				while(len>pos && Character.isWhitespace(line.charAt(len-1))) len--;
+				if(pos==len)
+					continue;
+				
+				if(line.charAt(pos)=='#'){  //Header
+					if(line.startsWith("#Condition\t", pos)){
+						//Read Condition indices
+						String[] words = line.substring(pos, len).split("\\t");
+						if(!words[1].equals("Name"))
+							fileCondIndex.put(Integer.valueOf(words[2]), words[1]);
+					}else if(line.startsWith("#Point", pos)){
+						log2Scaled = line.indexOf("_log2P", pos)>=0;
+					}
+					continue;
+				}
+				
+				//Events
+				if(condMap==null)
+					condMap = mapConditions(fileCondIndex, numC);
+				int tab = nextTab(line, pos, len);
+				int colon = line.lastIndexOf(':', tab-1);
+				if(colon<pos){
+					System.err.println("Line \"" + line + "\" doesn't start with a chr:position point");
+					continue;
+				}
+				int chrStart = line.startsWith("chr", pos) ? pos+3 : pos;
+				int i = t.add(line.substring(chrStart, colon), (int)parseNumber(line, colon+1, tab));
+				
+				//Load single condition stuff
+				for(int currIndex=0; currIndex<numC; currIndex++){
+					int c = condMap[currIndex];
+					pos = tab+1; tab = nextTab(line, pos, len);
+					t.setCondSigHits(c, i, parseNumber(line, pos, tab));
+					pos = tab+1; tab = nextTab(line, pos, len);
+					t.setCondCtrlHits(c, i, parseNumber(line, pos, tab));
+					pos = tab+1; tab = nextTab(line, pos, len);
+					double fold = parseNumber(line, pos, tab);
+					t.setCondSigVCtrlFold(c, i, log2Scaled ? Math.pow(2, fold) : fold);
+					pos = tab+1; tab = nextTab(line, pos, len);
+					double p = parseNumber(line, pos, tab);
+					t.setCondSigVCtrlP(c, i, log2Scaled ? Math.pow(2, p) : Math.pow(10,-1*p));
+				}
+				
+				//Load inter-condition stuff
+				for(int currIndexA=0; currIndexA<numC; currIndexA++){
+					for(int currIndexB=0; currIndexB<numC; currIndexB++){
+						if(currIndexA!=currIndexB){
+							int a = condMap[currIndexA], b = condMap[currIndexB];
+							pos = tab+1; tab = nextTab(line, pos, len);
+							t.setInterCondScMean(a, b, i, parseNumber(line, pos, tab));
+							pos = tab+1; tab = nextTab(line, pos, len);
+							t.setInterCondFold(a, b, i, parseNumber(line, pos, tab));
+							pos = tab+1; tab = nextTab(line, pos, len);
+							double p = parseNumber(line, pos, tab);
+							t.setInterCondP(a, b, i, log2Scaled ? Math.pow(2, p) : Math.pow(10,-1*p));
+						}
+					}
+				}
+				
+				//Active conditions (e.g. "1,0,1"), if present
+				if(tab<len){
+					pos = tab+1; tab = nextTab(line, pos, len);
+					for(int currIndex=0, k=pos; currIndex<numC && k<tab; currIndex++, k+=2)
+						t.setIsFoundInCondition(condMap[currIndex], i, line.charAt(k)=='1');
+				}
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
+		} finally {
+			if(reader!=null)
+				try { reader.close(); } catch (IOException e) { e.printStackTrace(); }
 		}
-		return(features);
+		return(t);
+	}
+	
+	//Accessor for the table made by the last execute()
+	public BindingEventTable getTable(){return table;}
+	
+	private int[] mapConditions(HashMap<Integer, String> fileCondIndex, int numC){
+		int[] map = new int[numC];
+		for(int currIndex=0; currIndex<numC; currIndex++){
+			ExperimentCondition currCond = experiments.getNamedCondition(fileCondIndex.get(currIndex));
+			if(currCond==null)
+				throw new IllegalArgumentException("Condition "+currIndex+" in the events file does not match a loaded condition");
+			map[currIndex] = currCond.getIndex();
+		}
+		return map;
+	}
+	
+	private static int nextTab(String line, int from, int len){
+		int tab = line.indexOf('\t', from);
+		return (tab<0 || tab>len) ? len : tab;
+	}
+	
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	
+	/**
+	 * Parse a decimal number in line[start,end). Plain decimals with up to 15 significant digits 
+	 * are parsed directly (exactly, as both the mantissa and the power of ten are exact doubles); 
+	 * anything else (exponents, NaN, Infinity, long mantissas) goes through Double.parseDouble.
+	 */
+	static double parseNumber(String line, int start, int end){
+		if(start>=end)
+			throw new NumberFormatException("Empty field");
+		int k = start;
+		boolean neg = false;
+		char ch = line.charAt(k);
+		if(ch=='-' || ch=='+'){ neg = ch=='-'; k++; }
+		long mant=0;
+		int digits=0, decimals=-1;
+		boolean any=false;
+		for(; k<end; k++){
+			ch = line.charAt(k);
+			if(ch>='0' && ch<='9'){
+				any=true;
+				if(digits>0 || ch!='0')
+					digits++;
+				mant = mant*10 + (ch-'0');
+				if(decimals>=0) decimals++;
+			}else if(ch=='.' && decimals<0){
+				decimals=0;
+			}else
+				break;
+		}
+		if(k<end || !any || digits>15 || decimals>22)
+			return Double.parseDouble(line.substring(start, end));
+		double v = decimals>0 ? mant/POW10[decimals] : mant;
+		return neg ? -v : v;
 	}
 }
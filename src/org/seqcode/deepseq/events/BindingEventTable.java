@@ -0,0 +1,413 @@
+package org.seqcode.deepseq.events;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.seqcode.deepseq.experiments.ControlledExperiment;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Point;
+
+
+/**
+ * BindingEventTable: a columnar store of binding events. Positions, per-condition and per-replicate counts,
+ * folds and P-values, and inter-condition statistics are held in primitive arrays indexed by event, so that
+ * millions of candidate events can be sorted, filtered and written without per-event objects.
+ *
+ * Sorting and filtering work on int[] orders of event indices; the sorts are stable, so successive sorts
+ * compose exactly as Collections.sort does on a list of BindingEvents. BindingEvent objects are only built
+ * on demand (getEvent), unless the table was made from existing events (fromEvents), in which case those
+ * events are returned.
+ *
+ * Condition and replicate indices are those of the ExperimentManager (ExperimentCondition.getIndex(),
+ * ControlledExperiment.getIndex()).
+ */
+public class BindingEventTable {
+
+	protected int numConds, numReps;
+	protected int size=0;
+	protected List<String> chromNames = new ArrayList<String>();
+	protected Map<String,Integer> chromIndex = new HashMap<String,Integer>();
+	protected int [] chrom;					//[event]
+	protected int [] position;				//[event]
+	protected boolean [][] foundInCond;		//[condition][event]
+	protected double [][] condSigHits;		//[condition][event]
+	protected double [][] condCtrlHits;		//[condition][event]
+	protected double [][] condSigVCtrlFold;	//[condition][event]
+	protected double [][] condSigVCtrlP;	//[condition][event]
+	protected double [][] repSigHits;		//[replicate][event]
+	protected double [][] repCtrlHits;		//[replicate][event]
+	protected double [][][] interCondScMean;//[condition][condition][event] (null on the diagonal)
+	protected double [][][] interCondFold;	//[condition][condition][event] (null on the diagonal)
+	protected double [][][] interCondP;		//[condition][condition][event] (null on the diagonal)
+	protected BindingEvent [] sourceEvents=null; //Set if the table was made from existing events
+
+	public BindingEventTable(int numConds, int numReps){this(numConds, numReps, 1024);}
+	public BindingEventTable(int numConds, int numReps, int initialCapacity){
+		this.numConds = numConds;
+		this.numReps = numReps;
+		int cap = Math.max(initialCapacity, 16);
+		chrom = new int[cap];
+		position = new int[cap];
+		foundInCond = new boolean[numConds][cap];
+		condSigHits = new double[numConds][cap];
+		condCtrlHits = new double[numConds][cap];
+		condSigVCtrlFold = new double[numConds][cap];
+		condSigVCtrlP = new double[numConds][cap];
+		repSigHits = new double[numReps][cap];
+		repCtrlHits = new double[numReps][cap];
+		interCondScMean = new double[numConds][numConds][];
+		interCondFold = new double[numConds][numConds][];
+		interCondP = new double[numConds][numConds][];
+		for(int c=0; c<numConds; c++)
+			for(int d=0; d<numConds; d++)
+				if(c!=d){
+					interCondScMean[c][d] = new double[cap];
+					interCondFold[c][d] = new double[cap];
+					interCondP[c][d] = new double[cap];
+				}
+	}
+
+	/**
+	 * Build a table over existing events. getEvent() returns the original objects.
+	 */
+	public static BindingEventTable fromEvents(ExperimentManager manager, List<BindingEvent> events){
+		int numC = manager.getConditions().size(), numR = manager.getReplicates().size();
+		BindingEventTable table = new BindingEventTable(numC, numR, events.size());
+		table.sourceEvents = new BindingEvent[events.size()];
+		for(BindingEvent ev : events){
+			int i = table.add(ev.getPoint().getChrom(), ev.getPoint().getLocation());
+			table.sourceEvents[i] = ev;
+			for(int c=0; c<numC; c++){
+				table.foundInCond[c][i] = ev.foundInCond[c];
+				table.condSigHits[c][i] = ev.condSigHits[c];
+				table.condCtrlHits[c][i] = ev.condCtrlHits[c];
+				table.condSigVCtrlFold[c][i] = ev.condSigVCtrlFold[c];
+				table.condSigVCtrlP[c][i] = ev.condSigVCtrlP[c];
+				for(int d=0; d<numC; d++)
+					if(c!=d){
+						table.interCondScMean[c][d][i] = ev.interCondScMean[c][d];
+						table.interCondFold[c][d][i] = ev.interCondFold[c][d];
+						table.interCondP[c][d][i] = ev.interCondP[c][d];
+					}
+			}
+			for(int r=0; r<numR; r++){
+				table.repSigHits[r][i] = ev.repSigHits[r];
+				table.repCtrlHits[r][i] = ev.repCtrlHits[r];
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Append an event with BindingEvent's defaults (P-values & folds of 1, zero counts, not found)
+	 * @return the index of the new event
+	 */
+	public int add(String chromName, int pos){
+		if(size==chrom.length)
+			grow();
+		Integer ci = chromIndex.get(chromName);
+		if(ci==null){
+			ci = chromNames.size();
+			chromNames.add(chromName);
+			chromIndex.put(chromName, ci);
+		}
+		int i = size++;
+		chrom[i] = ci;
+		position[i] = pos;
+		for(int c=0; c<numConds; c++){
+			condSigVCtrlP[c][i]=1; condSigVCtrlFold[c][i]=1;
+			for(int d=0; d<numConds; d++)
+				if(c!=d){
+					interCondFold[c][d][i]=1; interCondP[c][d][i]=1;
+				}
+		}
+		return i;
+	}
+
+	private void grow(){
+		int cap = chrom.length*2;
+		chrom = Arrays.copyOf(chrom, cap);
+		position = Arrays.copyOf(position, cap);
+		for(int c=0; c<numConds; c++){
+			foundInCond[c] = Arrays.copyOf(foundInCond[c], cap);
+			condSigHits[c] = Arrays.copyOf(condSigHits[c], cap);
+			condCtrlHits[c] = Arrays.copyOf(condCtrlHits[c], cap);
+			condSigVCtrlFold[c] = Arrays.copyOf(condSigVCtrlFold[c], cap);
+			condSigVCtrlP[c] = Arrays.copyOf(condSigVCtrlP[c], cap);
+			for(int d=0; d<numConds; d++)
+				if(c!=d){
+					interCondScMean[c][d] = Arrays.copyOf(interCondScMean[c][d], cap);
+					interCondFold[c][d] = Arrays.copyOf(interCondFold[c][d], cap);
+					interCondP[c][d] = Arrays.copyOf(interCondP[c][d], cap);
+				}
+		}
+		for(int r=0; r<numReps; r++){
+			repSigHits[r] = Arrays.copyOf(repSigHits[r], cap);
+			repCtrlHits[r] = Arrays.copyOf(repCtrlHits[r], cap);
+		}
+	}
+
+	//Accessors
+	public int size(){return size;}
+	public int getNumConditions(){return numConds;}
+	public int getNumReplicates(){return numReps;}
+	public String getChrom(int i){return chromNames.get(chrom[i]);}
+	public int getPosition(int i){return position[i];}
+	public boolean isFoundInCondition(int c, int i){return foundInCond[c][i];}
+	public double getCondSigHits(int c, int i){return condSigHits[c][i];}
+	public double getCondCtrlHits(int c, int i){return condCtrlHits[c][i];}
+	public double getCondSigVCtrlFold(int c, int i){return condSigVCtrlFold[c][i];}
+	public double getCondSigVCtrlP(int c, int i){return condSigVCtrlP[c][i];}
+	public double getRepSigHits(int r, int i){return repSigHits[r][i];}
+	public double getRepCtrlHits(int r, int i){return repCtrlHits[r][i];}
+	public double getInterCondScMean(int c, int d, int i){return interCondScMean[c][d][i];}
+	public double getInterCondFold(int c, int d, int i){return interCondFold[c][d][i];}
+	public double getInterCondP(int c, int d, int i){return interCondP[c][d][i];}
+
+	public void setIsFoundInCondition(int c, int i, boolean found){foundInCond[c][i]=found;}
+	public void setCondSigHits(int c, int i, double x){condSigHits[c][i]=x;}
+	public void setCondCtrlHits(int c, int i, double x){condCtrlHits[c][i]=x;}
+	public void setCondSigVCtrlFold(int c, int i, double x){condSigVCtrlFold[c][i]=x;}
+	public void setCondSigVCtrlP(int c, int i, double x){condSigVCtrlP[c][i]=x;}
+	public void setRepSigHits(int r, int i, double x){repSigHits[r][i]=x;}
+	public void setRepCtrlHits(int r, int i, double x){repCtrlHits[r][i]=x;}
+	public void setInterCondScMean(int c, int d, int i, double x){interCondScMean[c][d][i]=x;}
+	public void setInterCondFold(int c, int d, int i, double x){interCondFold[c][d][i]=x;}
+	public void setInterCondP(int c, int d, int i, double x){interCondP[c][d][i]=x;}
+
+	/**
+	 * Return event i as a BindingEvent: the original object if the table was built from events,
+	 * otherwise a new object (BindingEvent's experiment manager must have been set).
+	 */
+	public BindingEvent getEvent(int i, Genome genome){
+		if(sourceEvents!=null)
+			return sourceEvents[i];
+		BindingEvent ev = new BindingEvent(new Point(genome, getChrom(i), position[i]), null);
+		for(int c=0; c<numConds; c++){
+			ev.foundInCond[c] = foundInCond[c][i];
+			ev.condSigHits[c] = condSigHits[c][i];
+			ev.condCtrlHits[c] = condCtrlHits[c][i];
+			ev.condSigVCtrlFold[c] = condSigVCtrlFold[c][i];
+			ev.condSigVCtrlP[c] = condSigVCtrlP[c][i];
+			for(int d=0; d<numConds; d++)
+				if(c!=d){
+					ev.interCondScMean[c][d] = interCondScMean[c][d][i];
+					ev.interCondFold[c][d] = interCondFold[c][d][i];
+					ev.interCondP[c][d] = interCondP[c][d][i];
+				}
+		}
+		for(int r=0; r<numReps; r++){
+			ev.repSigHits[r] = repSigHits[r][i];
+			ev.repCtrlHits[r] = repCtrlHits[r][i];
+		}
+		return ev;
+	}
+
+	/**
+	 * Materialize the events in the given order (all events in table order if null)
+	 */
+	public ArrayList<BindingEvent> getEvents(int[] order, Genome genome){
+		int n = order==null ? size : order.length;
+		ArrayList<BindingEvent> events = new ArrayList<BindingEvent>(n);
+		for(int j=0; j<n; j++)
+			events.add(getEvent(order==null ? j : order[j], genome));
+		return events;
+	}
+
+	/**
+	 * The identity order (0..size-1)
+	 */
+	public int[] tableOrder(){
+		int[] order = new int[size];
+		for(int i=0; i<size; i++)
+			order[i]=i;
+		return order;
+	}
+
+	/**
+	 * Stable sort of an order by increasing signal vs control P-value for the condition,
+	 * then by decreasing signal count (as BindingEvent.compareBySigCtrlPvalue)
+	 */
+	public int[] sortBySigCtrlPvalue(int[] order, final int c){
+		final double[] p = condSigVCtrlP[c], hits = condSigHits[c];
+		return sortIndices(order, new IndexComparator(){
+			public int compare(int a, int b){
+				if(p[a]<p[b]){return(-1);}
+				else if(p[a]>p[b]){return(1);}
+				else{
+					if(hits[a]>hits[b]){return(-1);}
+					else if(hits[a]<hits[b]){return(1);}
+				}return(0);
+			}
+		});
+	}
+
+	/**
+	 * Stable sort of an order by increasing inter-condition P-value for the pair of conditions,
+	 * then by decreasing signal count in the first (as BindingEvent.compareByInterCondPvalue)
+	 */
+	public int[] sortByInterCondPvalue(int[] order, final int c, final int d){
+		final double[] p = interCondP[c][d], hits = condSigHits[c];
+		return sortIndices(order, new IndexComparator(){
+			public int compare(int a, int b){
+				if(p[a]<p[b]){return(-1);}
+				else if(p[a]>p[b]){return(1);}
+				else{
+					if(hits[a]>hits[b]){return(-1);}
+					else if(hits[a]<hits[b]){return(1);}
+				}return(0);
+			}
+		});
+	}
+
+	/**
+	 * Events in the order that are found in the condition with signal vs control P-value <= qMinThres
+	 */
+	public int[] selectSignificant(int[] order, int c, double qMinThres){
+		int[] sel = new int[order.length];
+		int n=0;
+		for(int i : order)
+			if(foundInCond[c][i] && condSigVCtrlP[c][i]<=qMinThres)
+				sel[n++]=i;
+		return Arrays.copyOf(sel, n);
+	}
+
+	/**
+	 * Events in the order that are significant in condition c (see selectSignificant) and significantly
+	 * higher in c than in the other condition
+	 */
+	public int[] selectDifferential(int[] order, int c, int other, double qMinThres, double diffPMinThres){
+		int[] sel = new int[order.length];
+		int n=0;
+		double[] p = interCondP[c][other], fold = interCondFold[c][other];
+		for(int i : order)
+			if(foundInCond[c][i] && condSigVCtrlP[c][i]<=qMinThres && p[i]<=diffPMinThres && fold[i]>0)
+				sel[n++]=i;
+		return Arrays.copyOf(sel, n);
+	}
+
+	/**
+	 * Write events in the full multi-condition format (as BindingEvent.toString(), without annotations).
+	 * The header is not written.
+	 */
+	public void write(Writer out, int[] order) throws IOException{
+		double log2 = Math.log(2);
+		StringBuilder sb = new StringBuilder(256);
+		for(int j=0; j<order.length; j++){
+			int i = order[j];
+			sb.setLength(0);
+			sb.append("chr").append(chromNames.get(chrom[i])).append(':').append(position[i]);
+			for(int c=0; c<numConds; c++){
+				sb.append('\t'); appendFixed(sb, condSigHits[c][i], 1);
+				sb.append('\t'); appendFixed(sb, condCtrlHits[c][i], 1);
+				sb.append('\t'); appendFixed(sb, Math.log(condSigVCtrlFold[c][i])/log2, 3);
+				sb.append('\t'); appendFixed(sb, Math.log(condSigVCtrlP[c][i])/log2, 3);
+			}
+			for(int c=0; c<numConds; c++)
+				for(int d=0; d<numConds; d++)
+					if(c!=d){
+						sb.append('\t'); appendFixed(sb, interCondScMean[c][d][i], 2);
+						sb.append('\t'); appendFixed(sb, interCondFold[c][d][i], 3);
+						sb.append('\t'); appendFixed(sb, Math.log(interCondP[c][d][i])/log2, 3);
+					}
+			sb.append('\t');
+			for(int c=0; c<numConds; c++){
+				if(c>0) sb.append(',');
+				sb.append(foundInCond[c][i] ? '1' : '0');
+			}
+			sb.append('\n');
+			out.append(sb);
+		}
+	}
+
+	/**
+	 * Write the replicate signal counts of events (as BindingEvent.getRepCountString())
+	 */
+	public void writeReplicateCounts(Writer out, int[] order, List<ControlledExperiment> reps) throws IOException{
+		StringBuilder sb = new StringBuilder(128);
+		for(int j=0; j<order.length; j++){
+			int i = order[j];
+			sb.setLength(0);
+			sb.append("chr").append(chromNames.get(chrom[i])).append(':').append(position[i]);
+			for(ControlledExperiment r : reps){
+				sb.append('\t'); appendFixed(sb, repSigHits[r.getIndex()][i], 0);
+			}
+			sb.append('\n');
+			out.append(sb);
+		}
+	}
+
+	private static final double[] POW10 = {1, 10, 100, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+	/**
+	 * Append a value with a fixed number of decimals, giving the same text as String.format("%.nf", v)
+	 */
+	public static void appendFixed(StringBuilder sb, double v, int decimals){
+		if(Double.isNaN(v)){ sb.append("NaN"); return; }
+		if(Double.isInfinite(v)){ sb.append(v>0 ? "Infinity" : "-Infinity"); return; }
+		double abs = Math.abs(v);
+		double scaled = abs*POW10[decimals];
+		if(scaled>=1e15){
+			sb.append(String.format("%."+decimals+"f", v));
+			return;
+		}
+		if(Double.doubleToRawLongBits(v)<0)
+			sb.append('-');
+		long whole = (long)scaled;
+		double frac = scaled-whole;
+		//The shortest decimal representation and the product above may each be off by up to an ulp
+		double tieWindow = Math.max(1e-6, 2*(Math.ulp(abs)*POW10[decimals]+Math.ulp(scaled)));
+		if(Math.abs(frac-0.5)<tieWindow){
+			//Near a tie: Formatter rounds the shortest decimal representation half-up
+			sb.append(new BigDecimal(Double.toString(abs)).setScale(decimals, RoundingMode.HALF_UP).toPlainString());
+			return;
+		}
+		long units = frac>0.5 ? whole+1 : whole;
+		long intPart = units/(long)POW10[decimals];
+		sb.append(intPart);
+		if(decimals>0){
+			sb.append('.');
+			long fracPart = units-intPart*(long)POW10[decimals];
+			String digits = Long.toString(fracPart);
+			for(int k=digits.length(); k<decimals; k++)
+				sb.append('0');
+			sb.append(digits);
+		}
+	}
+
+	/**
+	 * Compares two event indices
+	 */
+	protected interface IndexComparator{
+		int compare(int a, int b);
+	}
+
+	/**
+	 * Stable merge sort of an index order (a sorted copy is returned)
+	 */
+	protected static int[] sortIndices(int[] order, IndexComparator cmp){
+		int[] a = order.clone(), tmp = new int[order.length];
+		for(int width=1; width<a.length; width*=2){
+			for(int lo=0; lo<a.length-width; lo+=2*width){
+				int mid = lo+width, hi = Math.min(lo+2*width, a.length);
+				if(cmp.compare(a[mid-1], a[mid])<=0)
+					continue; //already in order
+				int i=lo, j=mid, k=lo;
+				while(i<mid && j<hi)
+					tmp[k++] = cmp.compare(a[j], a[i])<0 ? a[j++] : a[i++];
+				while(i<mid) tmp[k++]=a[i++];
+				while(j<hi) tmp[k++]=a[j++];
+				System.arraycopy(tmp, lo, a, lo, hi-lo);
+			}
+		}
+		return a;
+	}
+}
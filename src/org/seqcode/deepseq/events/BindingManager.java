@@ -1,10 +1,10 @@
 package org.seqcode.deepseq.events;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -169,51 +169,47 @@ public class BindingManager {
      */
     public void writeBindingEventFiles(String filePrefix, double qMinThres, boolean runDiffTests, double diffPMinThres){
     	if(events.size()>0){
-    		
+	    	//Columnar view of the events: sorting & filtering below work on index orders
+	    	BindingEventTable table = BindingEventTable.fromEvents(manager, events);
+	    	int[] current = table.tableOrder();
 	    	try {
 	    		//Full output table (all non-zero components)
 	    		String filename = filePrefix+".all.events.table";
 	    		if(config.getEventsFileTXTExtension())
     				filename = filename+".txt";
-	    		FileWriter fout = new FileWriter(filename);
+	    		Writer fout = new BufferedWriter(new FileWriter(filename));
 	    		fout.write(BindingEvent.fullHeadString()+"\n");
-	    		for(BindingEvent e : events)
-	    			fout.write(e.toString()+"\n");
+	    		if(config.isAddingAnnotations()){
+	    			for(BindingEvent e : events)
+	    				fout.write(e.toString()+"\n");
+	    		}else
+	    			table.write(fout, current);
 				fout.close();
 	    		
 	    		//Per-condition event files
 	    		for(ExperimentCondition cond : manager.getConditions()){
 	    			//Sort on the current condition
-	    			BindingEvent.setSortingCond(cond);
-	    			Collections.sort(events, new Comparator<BindingEvent>(){
-	    	            public int compare(BindingEvent o1, BindingEvent o2) {return o1.compareBySigCtrlPvalue(o2);}
-	    	        });
+	    			current = table.sortBySigCtrlPvalue(current, cond.getIndex());
+	    			//Because of the ML step and component sharing, I think that an event could be assigned a significant number of reads without being "present" in the condition's EM model.
+	    			int[] sig = table.selectSignificant(current, cond.getIndex(), qMinThres);
 	    			String condName = cond.getName(); 
 	    			condName = condName.replaceAll("/", "-");
 	    			//Print events in MultiGPS format
 	    			filename = filePrefix+"_"+condName+".events";
 	    			if(config.getEventsFileTXTExtension())
 	    				filename = filename+".txt";
-					fout = new FileWriter(filename);
+					fout = new BufferedWriter(new FileWriter(filename));
 					fout.write(BindingEvent.conditionHeadString(cond)+"\n");
-			    	for(BindingEvent e : events){
-			    		double Q = e.getCondSigVCtrlP(cond);
-			    		//Because of the ML step and component sharing, I think that an event could be assigned a significant number of reads without being "present" in the condition's EM model.
-			    		if(e.isFoundInCondition(cond) && Q <=qMinThres)
-			    			fout.write(e.getConditionString(cond)+"\n");
-			    	}
+			    	for(int i : sig)
+			    		fout.write(table.getEvent(i, null).getConditionString(cond)+"\n");
 					fout.close();
 					//Print events in BED
 					if(config.getPrintBED()){
 						String bedfilename = filePrefix+"_"+condName+".bed";
-		    			fout = new FileWriter(bedfilename);
+		    			fout = new BufferedWriter(new FileWriter(bedfilename));
 						fout.write(BindingEvent.conditionBEDHeadString(cond)+"\n");
-				    	for(BindingEvent e : events){
-				    		double Q = e.getCondSigVCtrlP(cond);
-				    		//Because of the ML step and component sharing, I think that an event could be assigned a significant number of reads without being "present" in the condition's EM model.
-				    		if(e.isFoundInCondition(cond) && Q <=qMinThres)
-				    			fout.write(e.getConditionBED(cond)+"\n");
-				    	}
+				    	for(int i : sig)
+				    		fout.write(table.getEvent(i, null).getConditionBED(cond)+"\n");
 						fout.close();
 					}
 	    		}
@@ -222,13 +218,11 @@ public class BindingManager {
 	    		if(manager.getNumConditions()>1 && runDiffTests){
 	    			for(ExperimentCondition cond : manager.getConditions()){
 		    			//Sort on the current condition
-		    			BindingEvent.setSortingCond(cond);
-		    			Collections.sort(events, new Comparator<BindingEvent>(){
-		    	            public int compare(BindingEvent o1, BindingEvent o2) {return o1.compareBySigCtrlPvalue(o2);}
-		    	        });
+		    			current = table.sortBySigCtrlPvalue(current, cond.getIndex());
 		    			
 		    			for(ExperimentCondition othercond : manager.getConditions()){
 		    				if(!cond.equals(othercond)){
+		    					int[] diff = table.selectDifferential(current, cond.getIndex(), othercond.getIndex(), qMinThres, diffPMinThres);
 				    			//Print diff events
 				    			String condName = cond.getName(); 
 				    			String othercondName = othercond.getName(); 
@@ -239,33 +233,19 @@ public class BindingManager {
 				    			filename = filePrefix+"_"+condName+"_gt_"+othercondName+".diff.events";
 				    			if(config.getEventsFileTXTExtension())
 				    				filename = filename+".txt";
-								fout = new FileWriter(filename);
+								fout = new BufferedWriter(new FileWriter(filename));
 								fout.write(BindingEvent.conditionShortHeadString(cond)+"\n");
-						    	for(BindingEvent e : events){
-						    		double Q = e.getCondSigVCtrlP(cond);
-						    		//Because of the ML step and component sharing, I think that an event could be assigned a significant number of reads without being "present" in the condition's EM model.
-						    		if(e.isFoundInCondition(cond) && Q <=qMinThres){
-						    			if(e.getInterCondP(cond, othercond)<=diffPMinThres && e.getInterCondFold(cond, othercond)>0){
-						    				fout.write(e.getConditionString(cond)+"\n");
-						    			}
-						    		}
-						    	}
+						    	for(int i : diff)
+						    		fout.write(table.getEvent(i, null).getConditionString(cond)+"\n");
 								fout.close();
 								
 								//Print events in BED
 								if(config.getPrintBED()){
 									filename = filePrefix+"_"+condName+"_gt_"+othercondName+".diff.bed";
-									fout = new FileWriter(filename);
+									fout = new BufferedWriter(new FileWriter(filename));
 									fout.write(BindingEvent.diffConditionBEDHeadString(cond, othercond)+"\n");
-							    	for(BindingEvent e : events){
-							    		double Q = e.getCondSigVCtrlP(cond);
-							    		//Because of the ML step and component sharing, I think that an event could be assigned a significant number of reads without being "present" in the condition's EM model.
-							    		if(e.isFoundInCondition(cond) && Q <=qMinThres){
-							    			if(e.getInterCondP(cond, othercond)<=diffPMinThres && e.getInterCondFold(cond, othercond)>0){
-							    				fout.write(e.getConditionBED(cond)+"\n");
-							    			}
-							    		}
-							    	}
+							    	for(int i : diff)
+							    		fout.write(table.getEvent(i, null).getConditionBED(cond)+"\n");
 									fout.close();
 								}
 		    				}
@@ -282,34 +262,32 @@ public class BindingManager {
 			    			repName = repName.replaceAll("/", "-");
 			    			repName = repName.replaceAll(":", "-");
 			    			filename = filePrefix+"_"+repName+".eventsbasecomps.txt";
-							fout = new FileWriter(filename);
+							fout = new BufferedWriter(new FileWriter(filename));
 							fout.write("#Position\tEventRegA\tEventRegC\tEventRegG\tEventRegT\tEventTagA\tEventTagC\tEventTagG\tEventTagT\tBubbleRegA\tBubbleRegC\tBubbleRegG\tBubbleRegT\tBubbleTagA\tBubbleTagC\tBubbleTagG\tBubbleTagT\tBubbleIndex\n");
-					    	for(BindingEvent e : events){
-					    		double Q = e.getCondSigVCtrlP(cond);
-					    		if(e.isFoundInCondition(cond) && Q <=qMinThres){
-					    			float[] eventTagBases = e.getRepEventTagBases(rep);
-					    			float[] bubbleTagBases = e.getRepBubbleTagBases(rep);
-					    			float[] eventBases = e.getEventBases();
-					    			float[] bubbleBases = e.getBubbleBases();
-					    			float bubbleIndex = -1;
-					    			float expectedT=0, expectedACG=0;
-					    			if(bubbleBases[3]>0){
-					    				expectedT = bubbleTagBases[3] / bubbleBases[3];
-					    				float baseACG = bubbleBases[0]+bubbleBases[1]+bubbleBases[2];
-					    				if(baseACG>0)
-					    					expectedACG = (bubbleTagBases[0]+bubbleTagBases[1]+bubbleTagBases[2])/baseACG;
-					    				if(expectedACG>0)
-					    					bubbleIndex = expectedT/expectedACG;
-					    			}
-					    			fout.write(e.getPoint()+"\t"+
-					    					eventBases[0]+"\t"+eventBases[1]+"\t"+eventBases[2]+"\t"+eventBases[3]+"\t"+
-					    					eventTagBases[0]+"\t"+eventTagBases[1]+"\t"+eventTagBases[2]+"\t"+eventTagBases[3]+"\t"+
-					    					bubbleBases[0]+"\t"+bubbleBases[1]+"\t"+bubbleBases[2]+"\t"+bubbleBases[3]+"\t"+
-					    					bubbleTagBases[0]+"\t"+bubbleTagBases[1]+"\t"+bubbleTagBases[2]+"\t"+bubbleTagBases[3]+"\t"+
-					    					bubbleIndex+
-					    					"\n");
-					    			
+					    	for(int i : table.selectSignificant(current, cond.getIndex(), qMinThres)){
+					    		BindingEvent e = table.getEvent(i, null);
+					    		float[] eventTagBases = e.getRepEventTagBases(rep);
+					    		float[] bubbleTagBases = e.getRepBubbleTagBases(rep);
+					    		float[] eventBases = e.getEventBases();
+					    		float[] bubbleBases = e.getBubbleBases();
+					    		float bubbleIndex = -1;
+					    		float expectedT=0, expectedACG=0;
+					    		if(bubbleBases[3]>0){
+					    			expectedT = bubbleTagBases[3] / bubbleBases[3];
+					    			float baseACG = bubbleBases[0]+bubbleBases[1]+bubbleBases[2];
+					    			if(baseACG>0)
+					    				expectedACG = (bubbleTagBases[0]+bubbleTagBases[1]+bubbleTagBases[2])/baseACG;
+					    			if(expectedACG>0)
+					    				bubbleIndex = expectedT/expectedACG;
 					    		}
+					    		fout.write(e.getPoint()+"\t"+
+					    				eventBases[0]+"\t"+eventBases[1]+"\t"+eventBases[2]+"\t"+eventBases[3]+"\t"+
+					    				eventTagBases[0]+"\t"+eventTagBases[1]+"\t"+eventTagBases[2]+"\t"+eventTagBases[3]+"\t"+
+					    				bubbleBases[0]+"\t"+bubbleBases[1]+"\t"+bubbleBases[2]+"\t"+bubbleBases[3]+"\t"+
+					    				bubbleTagBases[0]+"\t"+bubbleTagBases[1]+"\t"+bubbleTagBases[2]+"\t"+bubbleTagBases[3]+"\t"+
+					    				bubbleIndex+
+					    				"\n");
+					    		
 					    	}
 							fout.close();
 	    				}
@@ -318,6 +296,8 @@ public class BindingManager {
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+	    	//Leave the event list in the final sorted order, as before
+	    	events = table.getEvents(current, null);
 		}
     }
  
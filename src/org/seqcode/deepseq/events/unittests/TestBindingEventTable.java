@@ -0,0 +1,225 @@
+package org.seqcode.deepseq.events.unittests;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+import org.seqcode.deepseq.events.BindingEventFileReader;
+import org.seqcode.deepseq.events.BindingEventTable;
+import org.seqcode.deepseq.experiments.ControlledExperiment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks BindingEventTable against the BindingEvent code paths that BindingManager used before it: the
+ * String.format output of BindingEvent.toString() and getRepCountString(), Collections.sort with
+ * compareBySigCtrlPvalue, and the q-value and differential filter loops. Also checks that the reader's
+ * in-place number parsing agrees with Double.parseDouble.
+ */
+public class TestBindingEventTable {
+
+	private static final int NUMCONDS=3, NUMREPS=4;
+	private static final double LOG2 = Math.log(2);
+	private BindingEventTable table;
+
+	@Before public void setUp() {
+		Random rand = new Random(31);
+		table = new BindingEventTable(NUMCONDS, NUMREPS, 4);
+		//few distinct P-values and counts, so that the sorts have many ties
+		double[] ps = {0, 1e-300, 1e-12, 0.001, 0.01, 0.01, 0.05, 0.5, 1};
+		for(int e=0; e<3000; e++){
+			int i = table.add(rand.nextInt(3)==0 ? "X" : Integer.toString(1+rand.nextInt(19)), 1+rand.nextInt(200000000));
+			for(int c=0; c<NUMCONDS; c++){
+				table.setIsFoundInCondition(c, i, rand.nextDouble()<0.7);
+				table.setCondSigHits(c, i, rand.nextInt(400)*0.05);
+				table.setCondCtrlHits(c, i, rand.nextDouble()*50);
+				table.setCondSigVCtrlFold(c, i, rand.nextInt(10)==0 ? 0 : rand.nextDouble()*20);
+				table.setCondSigVCtrlP(c, i, ps[rand.nextInt(ps.length)]);
+				for(int d=0; d<NUMCONDS; d++)
+					if(c!=d){
+						table.setInterCondScMean(c, d, i, rand.nextGaussian()*5);
+						table.setInterCondFold(c, d, i, rand.nextInt(4)==0 ? rand.nextInt(200)*0.0025-0.25 : rand.nextGaussian()*3);
+						table.setInterCondP(c, d, i, ps[rand.nextInt(ps.length)]);
+					}
+			}
+			for(int r=0; r<NUMREPS; r++){
+				table.setRepSigHits(r, i, rand.nextInt(100)*0.5);
+				table.setRepCtrlHits(r, i, rand.nextDouble()*10);
+			}
+		}
+	}
+
+	/* BindingEvent.toString() without annotations */
+	private String oldString(int i){
+		String out = "chr"+table.getChrom(i)+":"+table.getPosition(i);
+		for(int c=0; c<NUMCONDS; c++){
+			double logP = Math.log(table.getCondSigVCtrlP(c, i))/LOG2;
+			double logF = Math.log(table.getCondSigVCtrlFold(c, i))/LOG2;
+			out = out+"\t"+String.format("%.1f", table.getCondSigHits(c, i))+"\t"+String.format("%.1f", table.getCondCtrlHits(c, i))+"\t"+String.format("%.3f", logF)+"\t"+String.format("%.3f", logP);
+		}for(int c=0; c<NUMCONDS; c++)
+			for(int c2=0; c2<NUMCONDS; c2++){
+				if(c!=c2){
+					double logP = Math.log(table.getInterCondP(c, c2, i))/LOG2;
+					out = out+"\t"+String.format("%.2f", table.getInterCondScMean(c, c2, i))+"\t"+String.format("%.3f", table.getInterCondFold(c, c2, i))+"\t"+String.format("%.3f",logP);
+				}
+			}
+		String foundStr="";
+		for(int c=0; c<NUMCONDS; c++){
+			String found = table.isFoundInCondition(c, i) ? "1" : "0";
+			foundStr = foundStr.length()>0 ? foundStr+","+found : found;
+		}
+		return out+"\t"+foundStr;
+	}
+
+	@Test public void testWriteMatchesToString() throws IOException {
+		int[] order = table.tableOrder();
+		StringWriter out = new StringWriter();
+		table.write(out, order);
+		String[] lines = out.toString().split("\n", -1);
+		assertEquals(order.length+1, lines.length);
+		assertEquals("", lines[order.length]);
+		for(int j=0; j<order.length; j++)
+			assertEquals(oldString(order[j]), lines[j]);
+	}
+
+	@Test public void testWriteReplicateCounts() throws IOException {
+		List<ControlledExperiment> reps = new ArrayList<ControlledExperiment>();
+		for(int r=NUMREPS-1; r>=0; r--)
+			reps.add(new ControlledExperiment(null, r, "cond", "rep"+r, null, null));
+		int[] order = table.sortBySigCtrlPvalue(table.tableOrder(), 1);
+		StringWriter out = new StringWriter();
+		table.writeReplicateCounts(out, order, reps);
+		String[] lines = out.toString().split("\n");
+		for(int j=0; j<order.length; j++){
+			int i = order[j];
+			//BindingEvent.getRepCountString()
+			String expected = "chr"+table.getChrom(i)+":"+table.getPosition(i);
+			for(ControlledExperiment r : reps)
+				expected = expected+"\t"+String.format("%.0f", table.getRepSigHits(r.getIndex(), i));
+			assertEquals(expected, lines[j]);
+		}
+	}
+
+	@Test public void testAppendFixed() {
+		Random rand = new Random(37);
+		List<Double> values = new ArrayList<Double>();
+		double[] special = {0, -0.0, 0.5, 1.5, 2.5, -2.5, 0.05, 0.15, 0.25, 0.35, 0.125, 0.0125, 1.005, 2.675, 1e-7, -1e-7,
+			-0.0004, -0.0005, 0.9995, 99.95, 1e14, 1e15+0.5, 1e16, 1e300, Double.MIN_VALUE, Double.MAX_VALUE,
+			Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for(double v : special)
+			values.add(v);
+		for(int k=0; k<20000; k++){
+			//short decimals, including exact ties one digit past each precision, and wide-ranging magnitudes
+			values.add((rand.nextInt(2000000)-1000000)/Math.pow(10, rand.nextInt(6)));
+			values.add(rand.nextGaussian()*Math.pow(10, rand.nextInt(30)-10));
+			values.add(Math.log(rand.nextDouble())/LOG2);
+		}
+		StringBuilder sb = new StringBuilder();
+		for(double v : values)
+			for(int d=0; d<=3; d++){
+				sb.setLength(0);
+				BindingEventTable.appendFixed(sb, v, d);
+				assertEquals(v+" to "+d+" decimals", String.format("%."+d+"f", v), sb.toString());
+			}
+	}
+
+	/* Collections.sort of the events with compareBySigCtrlPvalue for the condition */
+	private List<Integer> oldSort(List<Integer> events, final int c){
+		List<Integer> sorted = new ArrayList<Integer>(events);
+		Collections.sort(sorted, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b) {
+				if(table.getCondSigVCtrlP(c, a)<table.getCondSigVCtrlP(c, b)){return(-1);}
+				else if(table.getCondSigVCtrlP(c, a)>table.getCondSigVCtrlP(c, b)){return(1);}
+				else{
+					if(table.getCondSigHits(c, a)>table.getCondSigHits(c, b)){return(-1);}
+					else if(table.getCondSigHits(c, a)<table.getCondSigHits(c, b)){return(1);}
+				}return(0);
+			}
+		});
+		return sorted;
+	}
+
+	private static void assertSameOrder(List<Integer> expected, int[] actual){
+		assertEquals(expected.size(), actual.length);
+		for(int j=0; j<actual.length; j++)
+			assertEquals("position "+j, (int)expected.get(j), actual[j]);
+	}
+
+	@Test public void testSortsAndFilters() {
+		//successive sorts, as in BindingManager.writeBindingEventFiles, compose the same way
+		List<Integer> events = new ArrayList<Integer>();
+		for(int i=0; i<table.size(); i++)
+			events.add(i);
+		int[] current = table.tableOrder();
+		double qMinThres=0.01, diffPMinThres=0.05;
+		for(int pass=0; pass<2; pass++)
+			for(int c=0; c<NUMCONDS; c++){
+				events = oldSort(events, c);
+				current = table.sortBySigCtrlPvalue(current, c);
+				assertSameOrder(events, current);
+
+				List<Integer> sig = new ArrayList<Integer>();
+				for(int i : events)
+					if(table.isFoundInCondition(c, i) && table.getCondSigVCtrlP(c, i)<=qMinThres)
+						sig.add(i);
+				assertSameOrder(sig, table.selectSignificant(current, c, qMinThres));
+
+				for(int other=0; other<NUMCONDS; other++)
+					if(other!=c){
+						List<Integer> diff = new ArrayList<Integer>();
+						for(int i : sig)
+							if(table.getInterCondP(c, other, i)<=diffPMinThres && table.getInterCondFold(c, other, i)>0)
+								diff.add(i);
+						assertSameOrder(diff, table.selectDifferential(current, c, other, qMinThres, diffPMinThres));
+					}
+			}
+
+		//the inter-condition sort against compareByInterCondPvalue
+		final int a=2, b=0;
+		List<Integer> byInter = new ArrayList<Integer>(events);
+		Collections.sort(byInter, new Comparator<Integer>(){
+			public int compare(Integer x, Integer y) {
+				if(table.getInterCondP(a, b, x) < table.getInterCondP(a, b, y)){return(-1);}
+				else if(table.getInterCondP(a, b, x) > table.getInterCondP(a, b, y)){return(1);}
+				else{
+					if(table.getCondSigHits(a, x)>table.getCondSigHits(a, y)){return(-1);}
+					else if(table.getCondSigHits(a, x)<table.getCondSigHits(a, y)){return(1);}
+				}return(0);
+			}
+		});
+		assertSameOrder(byInter, table.sortByInterCondPvalue(current, a, b));
+	}
+
+	@Test public void testParseNumber() throws Exception {
+		Method parse = BindingEventFileReader.class.getDeclaredMethod("parseNumber", String.class, int.class, int.class);
+		parse.setAccessible(true);
+		//every field the table writes, plus numbers in other notations
+		StringWriter out = new StringWriter();
+		table.write(out, table.tableOrder());
+		List<String> fields = new ArrayList<String>();
+		for(String line : out.toString().split("\n")){
+			String[] words = line.split("\t");
+			for(int w=1; w<words.length-1; w++)
+				fields.add(words[w]);
+		}
+		String[] other = {"0", "-0", "+12", "007.50", "1e-5", "-2.5E10", "12345678901234567890", "0.1234567890123456789",
+			"3.", ".5", "-.25", "NaN", "-Infinity", "1.7976931348623157E308"};
+		for(String s : other)
+			fields.add(s);
+		for(String s : fields){
+			double expected = Double.parseDouble(s);
+			double actual = (Double)parse.invoke(null, "x\t"+s+"\ty", 2, 2+s.length());
+			assertEquals(s, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+		}
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.deepseq.events.unittests.TestBindingEventTable");
+	}
+}
@@ -16,7 +16,7 @@ import org.seqcode.genome.Genome;
 import org.seqcode.genome.GenomeConfig;
 import org.seqcode.genome.location.Region;
 import org.seqcode.gseutils.models.Model;
-import org.seqcode.ml.regression.DataFrame;
+import org.seqcode.ml.regression.ColumnDataFrame;
 import org.seqcode.ml.regression.DataRegression;
 import org.seqcode.projects.seed.DomainFinder;
 import org.seqcode.projects.seed.SEEDConfig;
@@ -49,16 +49,18 @@ public class ExperimentScaler {
 			System.exit(1);
 		}
 			
-		List<PairedCounts> scalingData = new ArrayList<PairedCounts>();
-		for(int x=0; x<setA.size(); x++)
-			scalingData.add(new PairedCounts(setA.get(x), setB.get(x)));                
+		double[] x = new double[setA.size()], y = new double[setB.size()];
+		for(int i=0; i<x.length; i++){
+			x[i] = setA.get(i);
+			y[i] = setB.get(i);
+		}
 
-		//Scaling ratio via Tim's regression                                                                                                                               
-        DataFrame df = new DataFrame(PairedCounts.class, scalingData.iterator());                                                                      
-        DataRegression r = new DataRegression(df, "x~y - 1");                                                                                                               
-        r.calculate();                                                                                                                                                      
-        Map<String, Double> map = r.collectCoefficients();                                                                                                                  
-        scalingRatio = map.get("y");                                                                                                                                        
+		//Scaling ratio via Tim's regression
+		ColumnDataFrame df = new ColumnDataFrame(x.length).addColumn("x", x).addColumn("y", y);
+		DataRegression<Model> r = new DataRegression<Model>(df, "x~y - 1");
+		r.calculate();
+		Map<String, Double> map = r.collectCoefficients();
+		scalingRatio = map.get("y");
         return(scalingRatio);
 	}
 	
@@ -31,6 +31,7 @@ import org.seqcode.deepseq.stats.BackgroundCollection;
 import org.seqcode.deepseq.stats.PoissonBackgroundModel;
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.location.Region;
+import org.seqcode.gseutils.Pair;
 import org.seqcode.math.probability.NormalDistribution;
 import org.seqcode.math.stats.StatUtil;
 
@@ -503,7 +504,35 @@ public class HitCache {
 	    return count;
     }
     
-    
+    /**
+     * All 5' positions and their summed weights on one strand of a chromosome. If the chromosome is in the memory cache,
+     * these are the cache's own sorted arrays; otherwise (local file caching) they are read from the chromosome's cache
+     * files without touching the memory cache, so that callers processing several chromosomes concurrently don't evict
+     * each other's data. Either way, the arrays must not be modified.  
+     * @param chrom chromosome name
+     * @param strand '+' or '-'
+     * @return Pair of positions and weights (empty arrays if there are no hits)
+     */
+    public Pair<int[],float[]> getChromHitArrays(String chrom, char strand){
+    	int j = (strand=='+') ? 0 : 1;
+    	synchronized(this){
+	    	Region r = new Region(gen, chrom, 1, gen.getChromLength(chrom));
+	    	if(regionIsCached(r)){
+	    		if(chrom2ID.containsKey(chrom)){
+	    			int chrID = chrom2ID.get(chrom);
+	    			if(fivePrimePos[chrID][j] != null)
+	    				return new Pair<int[],float[]>(fivePrimePos[chrID][j], fivePrimeCounts[chrID][j]);
+	    		}
+	    		return new Pair<int[],float[]>(new int[0], new float[0]);
+	    	}
+	    	if(!cacheInLocalFiles){
+				System.err.println("HitCache: Queried region "+r.getLocationString()+" is not in cache and local file caching not available!");
+				System.exit(1);
+	    	}
+    	}
+    	Pair<int[],float[]> arrays = chrom2ID.containsKey(chrom) ? readCachedHitArrays(chrom, j) : null;
+    	return arrays!=null ? arrays : new Pair<int[],float[]>(new int[0], new float[0]);
+    }
     
     public List<ExtReadHit> exportExtReadHits(Region r, int readLen, int startShift, int fivePrimeExt, int threePrimeExt){
     	List<ReadHit> readHits = exportReadHits(r,readLen);
@@ -929,6 +958,48 @@ public class HitCache {
 		}
 	}
 	
+	/**
+	 * Reads the single-end positions and counts of one strand of a chromosome from the local file cache.
+	 * Doesn't touch the memory cache, so it needs no lock.
+	 * @param chrom
+	 * @param strand 0 for '+', 1 for '-'
+	 * @return Pair of positions and counts, or null if there are no cache files for that strand
+	 */
+	private Pair<int[],float[]> readCachedHitArrays(String chrom, int strand){
+		Path ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".pos.cache");
+        Path cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".counts.cache");
+        if(!Files.exists(ppath, LinkOption.NOFOLLOW_LINKS) || !Files.exists(cpath, LinkOption.NOFOLLOW_LINKS))
+        	return null;
+        try {
+			FileChannel posInChannel = FileChannel.open(ppath, StandardOpenOption.READ);
+			FileChannel countsInChannel = FileChannel.open(cpath, StandardOpenOption.READ);
+			int[] pResult = new int[((int)posInChannel.size())/4];
+			float[] cResult = new float[((int)countsInChannel.size())/4];
+			ByteBuffer pbuf = ByteBuffer.allocate((int)posInChannel.size());
+			ByteBuffer cbuf = ByteBuffer.allocate((int)countsInChannel.size());
+			// Fill in the buffers
+			while(pbuf.hasRemaining( ))
+				posInChannel.read(pbuf);
+			while(cbuf.hasRemaining( ))
+				countsInChannel.read(cbuf);
+			posInChannel.close();
+			countsInChannel.close();
+
+			pbuf.flip( );
+			cbuf.flip( );
+			// Create buffer views
+			IntBuffer posIntBuffer = pbuf.asIntBuffer( );
+			FloatBuffer countsFloatBuffer = cbuf.asFloatBuffer( );
+			//Results will now contain all ints/floats read from file
+			posIntBuffer.get(pResult);
+			countsFloatBuffer.get(cResult);
+			return new Pair<int[],float[]>(pResult, cResult);
+        } catch (IOException e) {
+			e.printStackTrace();
+			return null;
+        }
+	}
+	
 	/**
 	 * Load the data from one chromosome from the local cache into the array data structure.
 	 * Be careful calling this outside of this class - ensure that operations are thread-safe
@@ -945,37 +1016,10 @@ public class HitCache {
 			int chrID = chrom2ID.get(chrom);
 			for(int strand=0; strand<=1; strand++){
 				//Read single-end files
-				Path ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".pos.cache");
-		        Path cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".counts.cache");
-		        if(Files.exists(ppath, LinkOption.NOFOLLOW_LINKS) && Files.exists(cpath, LinkOption.NOFOLLOW_LINKS)){
-			        try {
-						FileChannel posInChannel = FileChannel.open(ppath, StandardOpenOption.READ);
-						FileChannel countsInChannel = FileChannel.open(cpath, StandardOpenOption.READ);
-						int[] pResult = new int[((int)posInChannel.size())/4];
-						float[] cResult = new float[((int)countsInChannel.size())/4];
-						ByteBuffer pbuf = ByteBuffer.allocate((int)posInChannel.size());
-						ByteBuffer cbuf = ByteBuffer.allocate((int)countsInChannel.size());
-						// Fill in the buffers
-						while(pbuf.hasRemaining( ))
-							posInChannel.read(pbuf);
-						while(cbuf.hasRemaining( ))
-							countsInChannel.read(cbuf);
-	
-						pbuf.flip( );
-						cbuf.flip( );
-						// Create buffer views
-						IntBuffer posIntBuffer = pbuf.asIntBuffer( );
-						FloatBuffer countsFloatBuffer = cbuf.asFloatBuffer( );
-						//Results will now contain all ints/floats read from file
-						posIntBuffer.get(pResult);
-						countsFloatBuffer.get(cResult);
-						
-						//Assign to arrays
-						fivePrimePos[chrID][strand] = pResult;
-						fivePrimeCounts[chrID][strand] = cResult;
-			        } catch (IOException e) {
-						e.printStackTrace();
-			        }
+				Pair<int[],float[]> arrays = readCachedHitArrays(chrom, strand);
+				if(arrays!=null){
+					fivePrimePos[chrID][strand] = arrays.car();
+					fivePrimeCounts[chrID][strand] = arrays.cdr();
 				}
 		        
 		        //Load pairs
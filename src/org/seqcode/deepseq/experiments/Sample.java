@@ -11,6 +11,7 @@ import org.seqcode.deepseq.StrandedPair;
 import org.seqcode.deepseq.hitloaders.*;
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.location.Region;
+import org.seqcode.gseutils.Pair;
 
 
 /**
@@ -111,6 +112,16 @@ public class Sample {
 	public List<StrandedBaseCount> getStrandedBases(Region r, char strand) {
 		return cache.getStrandedBases(r, strand);
 	}
+	/**
+	 * Sorted 5' positions and summed weights for one strand of a whole chromosome (see HitCache.getChromHitArrays). 
+	 * Safe to call from several threads at once.
+	 * @param chrom chromosome name
+	 * @param strand '+' or '-'
+	 * @return Pair of positions and weights
+	 */
+	public Pair<int[],float[]> getChromHitArrays(String chrom, char strand){
+		return cache.getChromHitArrays(chrom, strand);
+	}
 	
 	/**
 	 * Load all paired hits that have an R1 read in a region.
@@ -1,32 +1,33 @@
 package org.seqcode.deepseq.utils;
 
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.SQLException;
-import java.util.List;
 
-import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.experiments.ControlledExperiment;
 import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
 import org.seqcode.genome.GenomeConfig;
-import org.seqcode.genome.location.NamedRegion;
-import org.seqcode.genome.location.Region;
-import org.seqcode.gsebricks.verbs.location.ChromRegionIterator;
 import org.seqcode.gseutils.Args;
 import org.seqcode.gseutils.NotFoundException;
 
 
+/**
+ * Outputs a BED file of reads (one line per read, at the given read length) for each replicate of a deep-seq experiment.
+ * Hits are streamed from the hit cache by CoverageStreamer, with chromosomes processed in parallel.
+ */
 public class BEDExporter {
 	protected GenomeConfig gconfig;
 	protected ExptConfig econfig;
 	protected ExperimentManager manager;
-	protected int [] stackedHitCountsPos;
-	protected int [] stackedHitCountsNeg;
-	final int MAXSECTION=50000000;
 	private int readLength=1;
 	private String outName="out";
+	private int numThreads=1;
 	
 	public static void main(String[] args) throws SQLException, NotFoundException {
 		GenomeConfig gconfig = new GenomeConfig(args);
@@ -37,6 +38,7 @@ public class BEDExporter {
 					ExptConfig.getArgsList()+"n"+
 					"BEDExporter:\n"+
 					"\t--readlen <read length>\n" +
+					"\t--threads <number of chromosomes to process at once>\n" +
 					"\t--out <output file name>");
 			System.exit(1);
 		}else{
@@ -44,6 +46,7 @@ public class BEDExporter {
 			int readLen = Args.parseInteger(args,"readlen",40);
 			
 			BEDExporter exporter = new BEDExporter(gconfig, econfig, outName, readLen);
+			exporter.setNumThreads(Args.parseInteger(args,"threads",1));
 			exporter.execute();
 			exporter.close();
 		}
@@ -55,60 +58,38 @@ public class BEDExporter {
 		econfig = econ;
 		manager = new ExperimentManager(econfig);
 		
+		outName = out;
 		readLength = rL;
 	}
 	
 	public void execute(){
+		CoverageStreamer streamer = new CoverageStreamer(gconfig.getGenome(), readLength, 0, 0, 1, -1, numThreads);
 		for(ExperimentCondition c : manager.getConditions()){
-			for(ControlledExperiment rep : c.getReplicates()){
+			for(final ControlledExperiment rep : c.getReplicates()){
 				System.err.println("Condition "+c.getName()+":\tRep "+rep.getName());
 				try {
-					FileWriter fw = new FileWriter(outName+"."+c.getName()+"."+rep.getName()+".bed");
-					//fw.write("chrom\tindex\tforward\treverse\tvalue\n");
-					
-					double basesDone=0, printStep=10000000,  numPrint=0;
-								       			
-					ChromRegionIterator chroms = new ChromRegionIterator(gconfig.getGenome());
-					while(chroms.hasNext()){
-						NamedRegion currentRegion = chroms.next();
-						
-						//Split the job up into chunks of 100Mbp
-						for(int x=currentRegion.getStart(); x<=currentRegion.getEnd(); x+=100000000){
-							int y = x+100000000; 
-							if(y>currentRegion.getEnd()){y=currentRegion.getEnd();}
-							Region currSubRegion = new Region(gconfig.getGenome(), currentRegion.getChrom(), x, y);
-							
-							List<StrandedBaseCount> hits = rep.getSignal().getBases(currSubRegion);
-		                    double stackedHitCountsPos[] = make5PrimeLandscape(hits, currSubRegion, '+');
-		                    double stackedHitCountsNeg[] = make5PrimeLandscape(hits, currSubRegion, '-');
-		                    
-		                    //Scan regions
-							for(int i=currSubRegion.getStart(); i<currSubRegion.getEnd(); i++){
-								int offset = i-currSubRegion.getStart();
-								double posHits=stackedHitCountsPos[offset];
-								double negHits=stackedHitCountsNeg[offset];
-								
-								if(posHits>0 || negHits>0){
-									for(int hitc=0; hitc<(int)posHits; hitc++){
-										fw.write("chr"+currSubRegion.getChrom()+"\t"+i+"\t"+(i+readLength)+"\t"+"+"+"\n");
+					OutputStream os = new BufferedOutputStream(new FileOutputStream(outName+"."+c.getName()+"."+rep.getName()+".bed"), 1<<16);
+					try{
+						final CoverageStreamer cs = streamer;
+						streamer.forEachChrom(new CoverageStreamer.ChromTask(){
+							public void run(String chrom, int chromLen, OutputStream[] sections) throws IOException {
+								final Writer w = new OutputStreamWriter(sections[0]);
+								final String plusEnd = "\t+\n", minusEnd = "\t-\n", chr = "chr"+chrom+"\t";
+								CoverageStreamer.forEachPosition(cs.getHits(rep.getSignal(), chrom, '+'), cs.getHits(rep.getSignal(), chrom, '-'), 
+										new CoverageStreamer.PositionHandler(){
+									public void position(int i, float posHits, float negHits) throws IOException {
+										for(int hitc=0; hitc<(int)posHits; hitc++)
+											w.write(chr+i+"\t"+(i+readLength)+plusEnd);
+										for(int hitc=0; hitc<(int)negHits; hitc++)
+											w.write(chr+(i+1-readLength)+"\t"+(i+1)+minusEnd);
 									}
-									for(int hitc=0; hitc<(int)negHits; hitc++){
-										fw.write("chr"+currSubRegion.getChrom()+"\t"+(i+1-readLength)+"\t"+(i+1)+"\t"+"-"+"\n");
-									}
-								}
-								//Print out progress
-								basesDone++;
-								if(basesDone > numPrint*printStep){
-									if(numPrint%10==0){System.out.print(String.format("(%.0f)", (numPrint*printStep)));}
-									else{System.out.print(".");}
-									if(numPrint%50==0 && numPrint!=0){System.out.print("\n");}
-									numPrint++;
-								}
+								});
+								w.flush();
 							}
-						}
+						}, new OutputStream[]{os});
+					}finally{
+						os.close();
 					}
-					System.out.print("\n");
-					fw.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -116,33 +97,10 @@ public class BEDExporter {
 		}
 	}
 	
+	public void setNumThreads(int t){numThreads=Math.max(1, t);}
+	
 	public void close(){
 		manager.close();
 	}
-	
-	protected double[] make5PrimeLandscape(List<StrandedBaseCount> hits, Region currReg, char strand){
-		double[] startcounts = new double[(int)currReg.getWidth()+1];
-        for(int i=0; i<=currReg.getWidth(); i++){startcounts[i]=0;}
-        for(StrandedBaseCount r : hits){
-            if(strand=='.' || r.getStrand()==strand){
-            	if(r.getCoordinate()>=currReg.getStart() && r.getCoordinate()<=currReg.getEnd()){
-	                int offset5=inBounds(r.getCoordinate()-currReg.getStart(),0,currReg.getWidth());
-	                startcounts[offset5]+=r.getCount();
-            	}
-            }
-        }
-        return(startcounts);
-    }
-	//keep the number in bounds
-	protected final double inBounds(double x, double min, double max){
-		if(x<min){return min;}
-		if(x>max){return max;}
-		return x;
-	}
-	protected final int inBounds(int x, int min, int max){
-		if(x<min){return min;}
-		if(x>max){return max;}
-		return x;
-	}
 
 }
@@ -0,0 +1,309 @@
+package org.seqcode.deepseq.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.seqcode.deepseq.experiments.Sample;
+import org.seqcode.gseutils.Pair;
+
+
+/**
+ * Indexed binary coverage file, written by WIGExporter (--format cov) and readable without a genome or database.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int MAGIC, int VERSION
+ *   per chromosome, in genome order:
+ *     base level: runs of equal non-zero window values           (int start, int end, float value)
+ *     zoom level z (z=0..NUMZOOMS-1), bins of winSize*4^(z+1):     (int start, int end, int coveredBases, float min, float max, double sum)
+ *   footer: int winSize, int NUMZOOMS, int numChroms, then per chromosome:
+ *     UTF name, int length, and per level: long offset, int numRecords
+ *   long footer offset
+ * </pre>
+ * Intervals are zero-based and half-open, as in bedGraph. Records in each level are fixed-size and sorted by start,
+ * so a query is a binary search over the mapped level.
+ */
+public class CoverageIndexFile {
+	public static final int MAGIC=0x53434f56; //"SCOV"
+	public static final int VERSION=1;
+	public static final int NUMZOOMS=8;
+	public static final int ZOOMFACTOR=4;
+	static final int BASERECORD=12, ZOOMRECORD=28;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private int winSize;
+	private int[] zoomSizes;
+	private Map<String, ChromEntry> chroms = new LinkedHashMap<String, ChromEntry>();
+
+	private static class ChromEntry {
+		int length;
+		long[] offsets = new long[NUMZOOMS+1];
+		int[] counts = new int[NUMZOOMS+1];
+		ByteBuffer[] levels = new ByteBuffer[NUMZOOMS+1];
+	}
+
+	/**
+	 * Writes the extended-read coverage of a sample.
+	 * @param streamer coverage settings (window size, extension, threads)
+	 * @param strand '+', '-', or '.' for both
+	 */
+	public static void write(File out, final CoverageStreamer streamer, final Sample sample, final char strand) throws IOException{
+		final int winSize = streamer.getWinSize();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1<<16));
+		try{
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			OutputStream[] sections = new OutputStream[NUMZOOMS+1];
+			for(int s=0; s<sections.length; s++)
+				sections[s]=dos;
+			long[][] lengths = streamer.forEachChrom(new CoverageStreamer.ChromTask(){
+				public void run(String chrom, int chromLen, OutputStream[] parts) throws IOException {
+					LevelWriter w = new LevelWriter(winSize, chromLen, parts);
+					streamer.streamCoverage(sample, chrom, chromLen, strand, w);
+					w.finish();
+				}
+			}, sections);
+
+			List<Pair<String,Integer>> chromList = streamer.getChroms();
+			dos.writeInt(winSize);
+			dos.writeInt(NUMZOOMS);
+			dos.writeInt(chromList.size());
+			long offset=8;
+			for(int c=0; c<chromList.size(); c++){
+				dos.writeUTF(chromList.get(c).car());
+				dos.writeInt(chromList.get(c).cdr());
+				for(int s=0; s<=NUMZOOMS; s++){
+					dos.writeLong(offset);
+					dos.writeInt((int)(lengths[c][s]/(s==0 ? BASERECORD : ZOOMRECORD)));
+					offset+=lengths[c][s];
+				}
+			}
+			dos.writeLong(offset); //all sections precede the footer
+		}finally{
+			dos.close();
+		}
+	}
+
+	/* Writes the base-level runs and zoom summaries of one chromosome as its windows stream past */
+	private static class LevelWriter implements CoverageStreamer.CoverageHandler {
+		int winSize, chromLen;
+		DataOutputStream[] outs;
+		//Current base-level run
+		int runStart=-1, runEnd=-1;
+		float runValue=0;
+		//Current zoom bin per level
+		int[] zoomSize = new int[NUMZOOMS], zoomBin = new int[NUMZOOMS], covered = new int[NUMZOOMS];
+		float[] min = new float[NUMZOOMS], max = new float[NUMZOOMS];
+		double[] sum = new double[NUMZOOMS];
+
+		LevelWriter(int winSize, int chromLen, OutputStream[] parts){
+			this.winSize = winSize;
+			this.chromLen = chromLen;
+			outs = new DataOutputStream[parts.length];
+			for(int s=0; s<parts.length; s++)
+				outs[s] = new DataOutputStream(parts[s]);
+			long size=winSize;
+			for(int z=0; z<NUMZOOMS; z++){
+				size*=ZOOMFACTOR;
+				zoomSize[z] = (int)Math.min(Integer.MAX_VALUE, size);
+				zoomBin[z]=-1;
+			}
+		}
+
+		public void bins(int firstBin, double[] values, int numBins) throws IOException {
+			for(int i=0; i<numBins; i++){
+				if(values[i]==0)
+					continue;
+				float v = (float)values[i];
+				int start = (firstBin+i)*winSize, end = Math.min(chromLen, start+winSize);
+				if(runStart>=0 && runEnd==start && runValue==v){
+					runEnd=end;
+				}else{
+					flushRun();
+					runStart=start; runEnd=end; runValue=v;
+				}
+				for(int z=0; z<NUMZOOMS; z++){
+					int zb = start/zoomSize[z];
+					if(zb!=zoomBin[z]){
+						flushZoom(z);
+						zoomBin[z]=zb; covered[z]=0; sum[z]=0;
+						min[z]=v; max[z]=v;
+					}
+					covered[z]+=end-start;
+					sum[z]+=v*(double)(end-start);
+					if(v<min[z]) min[z]=v;
+					if(v>max[z]) max[z]=v;
+				}
+			}
+		}
+
+		private void flushRun() throws IOException{
+			if(runStart<0)
+				return;
+			outs[0].writeInt(runStart);
+			outs[0].writeInt(runEnd);
+			outs[0].writeFloat(runValue);
+			runStart=-1;
+		}
+
+		private void flushZoom(int z) throws IOException{
+			if(zoomBin[z]<0)
+				return;
+			long start = (long)zoomBin[z]*zoomSize[z];
+			DataOutputStream o = outs[z+1];
+			o.writeInt((int)start);
+			o.writeInt((int)Math.min(chromLen, start+zoomSize[z]));
+			o.writeInt(covered[z]);
+			o.writeFloat(min[z]);
+			o.writeFloat(max[z]);
+			o.writeDouble(sum[z]);
+		}
+
+		void finish() throws IOException{
+			flushRun();
+			for(int z=0; z<NUMZOOMS; z++)
+				flushZoom(z);
+			for(DataOutputStream o : outs)
+				o.flush();
+		}
+	}
+
+	/**
+	 * Opens a coverage file for reading
+	 */
+	public CoverageIndexFile(File f) throws IOException{
+		raf = new RandomAccessFile(f, "r");
+		channel = raf.getChannel();
+		if(raf.length()<16 || raf.readInt()!=MAGIC)
+			throw new IOException(f.getName()+" is not a coverage file");
+		int version = raf.readInt();
+		if(version!=VERSION)
+			throw new IOException(f.getName()+" has unsupported coverage file version "+version);
+		raf.seek(raf.length()-8);
+		raf.seek(raf.readLong());
+		winSize = raf.readInt();
+		int numZooms = raf.readInt();
+		if(numZooms!=NUMZOOMS)
+			throw new IOException(f.getName()+" has "+numZooms+" zoom levels; expected "+NUMZOOMS);
+		zoomSizes = new int[NUMZOOMS];
+		long size=winSize;
+		for(int z=0; z<NUMZOOMS; z++){
+			size*=ZOOMFACTOR;
+			zoomSizes[z] = (int)Math.min(Integer.MAX_VALUE, size);
+		}
+		int numChroms = raf.readInt();
+		for(int c=0; c<numChroms; c++){
+			ChromEntry e = new ChromEntry();
+			String name = raf.readUTF();
+			e.length = raf.readInt();
+			for(int s=0; s<=NUMZOOMS; s++){
+				e.offsets[s] = raf.readLong();
+				e.counts[s] = raf.readInt();
+			}
+			chroms.put(name, e);
+		}
+	}
+
+	public int getWinSize(){return winSize;}
+	public int[] getZoomSizes(){return zoomSizes.clone();}
+	public List<String> getChroms(){return new ArrayList<String>(chroms.keySet());}
+	public int getChromLength(String chrom){return chroms.containsKey(chrom) ? chroms.get(chrom).length : 0;}
+
+	/**
+	 * Mean coverage over numBins equal bins spanning [start,end) (zero-based, half-open). Uses the coarsest level
+	 * whose bins are no larger than the requested bins; uncovered bases count as zero.
+	 */
+	public synchronized double[] getSummary(String chrom, int start, int end, int numBins) throws IOException{
+		double[] out = new double[numBins];
+		ChromEntry e = chroms.get(chrom);
+		if(e==null || numBins<=0 || end<=start)
+			return out;
+		double binWidth = (double)(end-start)/numBins;
+		int level=0;
+		for(int z=0; z<NUMZOOMS; z++)
+			if(zoomSizes[z]<=binWidth)
+				level=z+1;
+		ByteBuffer buf = getLevel(e, level);
+		int recSize = level==0 ? BASERECORD : ZOOMRECORD;
+		int n = e.counts[level];
+		//First record ending after start
+		int lo=0, hi=n;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(buf.getInt(mid*recSize+4)<=start) lo=mid+1;
+			else hi=mid;
+		}
+		for(int r=lo; r<n; r++){
+			int p = r*recSize;
+			int rs = buf.getInt(p), re = buf.getInt(p+4);
+			if(rs>=end)
+				break;
+			double density = level==0 ? buf.getFloat(p+8) : buf.getDouble(p+20)/(re-rs);
+			int from = Math.max(rs, start), to = Math.min(re, end);
+			//Spread the record over the bins it overlaps
+			int b = (int)((from-start)/binWidth);
+			while(from<to && b<numBins){
+				double binEnd = start+(b+1)*binWidth;
+				int segEnd = (int)Math.min(to, Math.ceil(binEnd));
+				out[b] += density*(segEnd-from);
+				from = segEnd;
+				b++;
+			}
+		}
+		for(int b=0; b<numBins; b++)
+			out[b]/=binWidth;
+		return out;
+	}
+
+	/**
+	 * Base-level runs overlapping [start,end) as {starts, ends} and values
+	 */
+	public synchronized Pair<int[][],float[]> getRuns(String chrom, int start, int end) throws IOException{
+		ChromEntry e = chroms.get(chrom);
+		if(e==null)
+			return new Pair<int[][],float[]>(new int[][]{new int[0], new int[0]}, new float[0]);
+		ByteBuffer buf = getLevel(e, 0);
+		int n = e.counts[0];
+		int lo=0, hi=n;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(buf.getInt(mid*BASERECORD+4)<=start) lo=mid+1;
+			else hi=mid;
+		}
+		int last=lo;
+		while(last<n && buf.getInt(last*BASERECORD)<end)
+			last++;
+		int[] starts = new int[last-lo], ends = new int[last-lo];
+		float[] values = new float[last-lo];
+		for(int r=lo; r<last; r++){
+			starts[r-lo] = buf.getInt(r*BASERECORD);
+			ends[r-lo] = buf.getInt(r*BASERECORD+4);
+			values[r-lo] = buf.getFloat(r*BASERECORD+8);
+		}
+		return new Pair<int[][],float[]>(new int[][]{starts, ends}, values);
+	}
+
+	private ByteBuffer getLevel(ChromEntry e, int level) throws IOException{
+		if(e.levels[level]==null){
+			long len = (long)e.counts[level]*(level==0 ? BASERECORD : ZOOMRECORD);
+			e.levels[level] = channel.map(FileChannel.MapMode.READ_ONLY, e.offsets[level], len);
+		}
+		return e.levels[level];
+	}
+
+	public void close() throws IOException{
+		raf.close();
+	}
+}
@@ -0,0 +1,363 @@
+package org.seqcode.deepseq.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.seqcode.deepseq.experiments.Sample;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.NamedRegion;
+import org.seqcode.gsebricks.verbs.location.ChromRegionIterator;
+import org.seqcode.gseutils.Pair;
+
+
+/**
+ * Streaming core shared by the coverage exporters (WIGExporter, BEDExporter, IDXExporter).
+ *
+ * Hits are taken one chromosome at a time straight from the HitCache's sorted primitive arrays (Sample.getChromHitArrays)
+ * rather than as ReadHit or StrandedBaseCount objects. Extended-read coverage is built over fixed windows with a
+ * difference array, one chunk of the chromosome at a time, so memory depends on the chunk size rather than on the
+ * chromosome length or the number of reads.
+ *
+ * Chromosomes are processed in parallel. Each writes its output to temporary part files, which are appended to the
+ * real output in genome order as they complete, so the output is identical for any number of threads.
+ *
+ * Coordinates follow the rest of the package: chromosomes span 1..length, and window b covers bases
+ * b*winSize+1 .. (b+1)*winSize.
+ */
+public class CoverageStreamer {
+	public static final int CHUNKSIZE=4000000; //Bases per difference-array chunk
+
+	protected Genome gen;
+	protected int numThreads=1;
+	protected int readLength=1, read5PrimeExt=0, read3PrimeExt=0;
+	protected int winSize=1;
+	protected float perBaseMax=-1;
+
+	/**
+	 * Output for one chromosome. Called from worker threads, so implementations must not share mutable state across calls.
+	 */
+	public interface ChromTask {
+		/**
+		 * @param chrom chromosome name
+		 * @param chromLen chromosome length
+		 * @param sections one stream per output section, each buffered and private to this call
+		 */
+		public void run(String chrom, int chromLen, OutputStream[] sections) throws IOException;
+	}
+
+	/**
+	 * Receives consecutive chunks of window values for one chromosome, in order
+	 */
+	public interface CoverageHandler {
+		/**
+		 * @param firstBin index of the window that values[0] describes
+		 * @param values coverage per window (only the first numBins entries are valid; the array is reused)
+		 * @param numBins number of windows in this chunk
+		 */
+		public void bins(int firstBin, double[] values, int numBins) throws IOException;
+	}
+
+	/**
+	 * Receives the 5' positions of one chromosome in order
+	 */
+	public interface PositionHandler {
+		/**
+		 * @param pos 5' position
+		 * @param plus weight of '+' strand hits at this position
+		 * @param minus weight of '-' strand hits at this position
+		 */
+		public void position(int pos, float plus, float minus) throws IOException;
+	}
+
+	/**
+	 * @param g genome
+	 * @param readLen read length
+	 * @param read5ext extension on the 5' end
+	 * @param read3ext extension beyond the 3' end of the read
+	 * @param winSize window size (and step)
+	 * @param perBaseMax maximum weight counted at a single 5' position per strand (-1 for no limit)
+	 * @param numThreads number of chromosomes processed at once
+	 */
+	public CoverageStreamer(Genome g, int readLen, int read5ext, int read3ext, int winSize, float perBaseMax, int numThreads){
+		gen = g;
+		readLength = Math.max(1, readLen);
+		read5PrimeExt = Math.max(0, read5ext);
+		read3PrimeExt = Math.max(0, read3ext);
+		this.winSize = Math.max(1, winSize);
+		this.perBaseMax = perBaseMax;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	public Genome getGenome(){return gen;}
+	public int getWinSize(){return winSize;}
+	public int getNumThreads(){return numThreads;}
+
+	/**
+	 * 5' positions and weights on one strand of a chromosome, with the per-base limit applied.
+	 * The arrays are the cache's own unless the limit changes a weight, so they must not be modified.
+	 */
+	public Pair<int[],float[]> getHits(Sample sample, String chrom, char strand){
+		Pair<int[],float[]> hits = sample.getChromHitArrays(chrom, strand);
+		if(perBaseMax>0){
+			float[] w = hits.cdr();
+			float[] capped=null;
+			for(int i=0; i<w.length; i++){
+				if(w[i]>perBaseMax){
+					if(capped==null)
+						capped = w.clone();
+					capped[i]=perBaseMax;
+				}
+			}
+			if(capped!=null)
+				return new Pair<int[],float[]>(hits.car(), capped);
+		}
+		return hits;
+	}
+
+	/**
+	 * Streams the extended-read coverage of one chromosome to the handler, chunk by chunk.
+	 * Each window's value is the total weight of the extended reads overlapping it.
+	 * @param strand '+', '-', or '.' for both
+	 */
+	public void streamCoverage(Sample sample, String chrom, int chromLen, char strand, CoverageHandler handler) throws IOException{
+		Pair<int[],float[]> plus = strand=='-' ? null : getHits(sample, chrom, '+');
+		Pair<int[],float[]> minus = strand=='+' ? null : getHits(sample, chrom, '-');
+		int numBins = (chromLen+winSize-1)/winSize;
+		int chunkBins = Math.max(1, CHUNKSIZE/winSize);
+		double[] diff = new double[Math.min(chunkBins, numBins)+1];
+		//Reads extend this far beyond their 5' position (downstream, upstream)
+		int down = readLength-1+read3PrimeExt, up = read5PrimeExt;
+		for(int b0=0; b0<numBins; b0+=chunkBins){
+			int b1 = Math.min(numBins, b0+chunkBins);
+			int lo = b0*winSize+1, hi = Math.min(chromLen, b1*winSize);
+			for(int i=0; i<=b1-b0; i++)
+				diff[i]=0;
+			if(plus!=null)
+				addReads(plus, '+', lo-down, hi+up, chromLen, b0, b1, diff);
+			if(minus!=null)
+				addReads(minus, '-', lo-up, hi+down, chromLen, b0, b1, diff);
+			//Prefix sum turns the differences into window values
+			double sum=0;
+			for(int i=0; i<b1-b0; i++){
+				sum+=diff[i];
+				diff[i] = sum>1e-9 ? sum : 0;
+			}
+			handler.bins(b0, diff, b1-b0);
+		}
+	}
+
+	/* Adds the reads with 5' positions in [from,to] to the difference array for windows [b0,b1) */
+	private void addReads(Pair<int[],float[]> hits, char strand, int from, int to, int chromLen, int b0, int b1, double[] diff){
+		int[] pos = hits.car();
+		float[] w = hits.cdr();
+		for(int k=lowerBound(pos, from); k<pos.length && pos[k]<=to; k++){
+			int s, e;
+			if(strand=='+'){
+				s = pos[k]-read5PrimeExt;
+				e = pos[k]+readLength-1+read3PrimeExt;
+			}else{
+				s = pos[k]-readLength+1-read3PrimeExt;
+				e = pos[k]+read5PrimeExt;
+			}
+			s = Math.max(1, s); e = Math.min(chromLen, e);
+			if(e<s)
+				continue;
+			int bs = Math.max(b0, (s-1)/winSize), be = Math.min(b1-1, (e-1)/winSize);
+			if(be<bs)
+				continue;
+			diff[bs-b0]+=w[k];
+			diff[be-b0+1]-=w[k];
+		}
+	}
+
+	/**
+	 * Walks the 5' positions of both strands together in position order
+	 */
+	public static void forEachPosition(Pair<int[],float[]> plus, Pair<int[],float[]> minus, PositionHandler handler) throws IOException{
+		int[] pp = plus.car(), mp = minus.car();
+		float[] pw = plus.cdr(), mw = minus.cdr();
+		int i=0, j=0;
+		while(i<pp.length || j<mp.length){
+			if(j>=mp.length || (i<pp.length && pp[i]<mp[j])){
+				handler.position(pp[i], pw[i], 0); i++;
+			}else if(i>=pp.length || mp[j]<pp[i]){
+				handler.position(mp[j], 0, mw[j]); j++;
+			}else{
+				handler.position(pp[i], pw[i], mw[j]); i++; j++;
+			}
+		}
+	}
+
+	/** Index of the first element >= x in a sorted array */
+	public static int lowerBound(int[] a, int x){
+		int lo=0, hi=a.length;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(a[mid]<x) lo=mid+1;
+			else hi=mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Chromosome names and lengths in genome order
+	 */
+	public List<Pair<String,Integer>> getChroms(){
+		List<Pair<String,Integer>> chroms = new ArrayList<Pair<String,Integer>>();
+		ChromRegionIterator it = new ChromRegionIterator(gen);
+		while(it.hasNext()){
+			NamedRegion r = it.next();
+			chroms.add(new Pair<String,Integer>(r.getChrom(), r.getEnd()));
+		}
+		return chroms;
+	}
+
+	/**
+	 * Runs the task on every chromosome. Section i of each chromosome's output is appended to outs[i], chromosome by
+	 * chromosome in genome order (the same stream may be passed for several sections).
+	 * @return bytes written for each chromosome and section, in genome order
+	 */
+	public long[][] forEachChrom(final ChromTask task, OutputStream[] outs) throws IOException{
+		final List<Pair<String,Integer>> chroms = getChroms();
+		final int numSections = outs.length;
+		long[][] lengths = new long[chroms.size()][numSections];
+		if(numThreads==1 || chroms.size()<2){
+			for(int c=0; c<chroms.size(); c++){
+				File[] parts = runTask(task, chroms.get(c), numSections);
+				lengths[c] = appendParts(parts, outs);
+			}
+			return lengths;
+		}
+		//Largest chromosomes first, for better load balance
+		List<Integer> order = new ArrayList<Integer>();
+		for(int c=0; c<chroms.size(); c++)
+			order.add(c);
+		Collections.sort(order, new Comparator<Integer>(){
+			public int compare(Integer x, Integer y) {
+				return Integer.compare(chroms.get(y).cdr(), chroms.get(x).cdr());
+			}
+		});
+		ExecutorService exec = Executors.newFixedThreadPool(Math.min(numThreads, chroms.size()));
+		List<Future<File[]>> futures = new ArrayList<Future<File[]>>(Collections.<Future<File[]>>nCopies(chroms.size(), null));
+		int done=0;
+		try{
+			for(final int c : order)
+				futures.set(c, exec.submit(new Callable<File[]>(){
+					public File[] call() throws IOException { return runTask(task, chroms.get(c), numSections); }
+				}));
+			for(; done<chroms.size(); done++)
+				lengths[done] = appendParts(futures.get(done).get(), outs);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}finally{
+			exec.shutdownNow();
+			//Remove the parts of chromosomes that were not appended
+			for(int c=done; c<chroms.size(); c++){
+				if(futures.get(c)!=null){
+					try{
+						deleteParts(futures.get(c).get());
+					}catch(Exception e){}
+				}
+			}
+		}
+		return lengths;
+	}
+
+	private File[] runTask(ChromTask task, Pair<String,Integer> chrom, int numSections) throws IOException{
+		File[] parts = new File[numSections];
+		OutputStream[] sections = new OutputStream[numSections];
+		try{
+			for(int s=0; s<numSections; s++){
+				parts[s] = File.createTempFile("coverage", ".part");
+				sections[s] = new BufferedOutputStream(new FileOutputStream(parts[s]), 1<<16);
+			}
+			task.run(chrom.car(), chrom.cdr(), sections);
+		}catch(IOException e){
+			closeAll(sections);
+			deleteParts(parts);
+			throw e;
+		}
+		closeAll(sections);
+		return parts;
+	}
+
+	private long[] appendParts(File[] parts, OutputStream[] outs) throws IOException{
+		long[] lengths = new long[parts.length];
+		byte[] buf = new byte[1<<16];
+		try{
+			for(int s=0; s<parts.length; s++){
+				InputStream in = new FileInputStream(parts[s]);
+				try{
+					int n;
+					while((n=in.read(buf))>0){
+						outs[s].write(buf, 0, n);
+						lengths[s]+=n;
+					}
+				}finally{
+					in.close();
+				}
+			}
+		}finally{
+			deleteParts(parts);
+		}
+		return lengths;
+	}
+
+	private static void closeAll(OutputStream[] streams) throws IOException{
+		IOException err=null;
+		for(OutputStream o : streams){
+			if(o==null)
+				continue;
+			try{ o.close(); }catch(IOException e){ err=e; }
+		}
+		if(err!=null)
+			throw err;
+	}
+
+	private static void deleteParts(File[] parts){
+		if(parts!=null)
+			for(File f : parts)
+				if(f!=null)
+					f.delete();
+	}
+
+	/**
+	 * Writes a non-negative value with a fixed number of decimal places, without going through String.format
+	 */
+	public static void writeDecimal(Writer w, double v, int decimals) throws IOException{
+		long scale=1;
+		for(int i=0; i<decimals; i++)
+			scale*=10;
+		long x = Math.round(Math.abs(v)*scale);
+		if(v<0 && x>0)
+			w.write('-');
+		w.write(Long.toString(x/scale));
+		if(decimals>0){
+			w.write('.');
+			String frac = Long.toString(x%scale);
+			for(int i=frac.length(); i<decimals; i++)
+				w.write('0');
+			w.write(frac);
+		}
+	}
+}
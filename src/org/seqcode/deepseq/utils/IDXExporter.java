@@ -1,8 +1,14 @@
 package org.seqcode.deepseq.utils;
 
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.seqcode.deepseq.StrandedBaseCount;
@@ -12,15 +18,15 @@ import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
 import org.seqcode.genome.GenomeConfig;
-import org.seqcode.genome.location.NamedRegion;
 import org.seqcode.genome.location.Region;
-import org.seqcode.gsebricks.verbs.location.ChromRegionIterator;
 import org.seqcode.gseutils.Args;
 import org.seqcode.gseutils.NotFoundException;
+import org.seqcode.gseutils.Pair;
 
 
 /**
  * Outputs a GeneTrack index format file for a deep-seq experiment.
+ * Hits are streamed from the hit cache by CoverageStreamer, with chromosomes processed in parallel.
  * 
  * @author Shaun Mahony
  * @version	%I%, %G%
@@ -29,13 +35,13 @@ public class IDXExporter {
 	protected ExperimentManager manager;
 	protected GenomeConfig gcon=null;
 	protected ExptConfig econ=null;
-	protected int [] stackedHitCountsPos;
-	protected int [] stackedHitCountsNeg;
 	protected String outName="out";
 	protected char baseLimit='.'; //Only use tags with this character at baseLimitRelPosition relative to 5' end (. = use all tags)
 	protected int baseLimitRelPosition=0;
 	protected StrandedBaseCountFilterByBase sbcFilter;
 	protected boolean filterByBase=false;
+	protected int numThreads=1;
+	protected final int FILTERCHUNK=10000000;
 	
 	
 	public static void main(String[] args) throws SQLException, NotFoundException {
@@ -54,6 +60,7 @@ public class IDXExporter {
 					ExptConfig.getArgsList()+"n"+
 					"IDXExporter:\n"+
 					"\t--out <output file name>\n"+
+					"\t--threads <number of chromosomes to process at once>\n"+
 					"\t--baselimit <./A/C/G/T: only use tags with this base at below position>\n" +
 					"\t--baselimitposition <only use tags with above base at this position>\n");
 			System.exit(1);
@@ -63,6 +70,7 @@ public class IDXExporter {
 			manager = new ExperimentManager(econ);
 			
 			outName = Args.parseString(args,"out",outName);
+			numThreads = Args.parseInteger(args,"threads",numThreads);
 			
 			baseLimit = Args.parseString(args, "baselimit", ".").charAt(0);
 			baseLimitRelPosition = Args.parseInteger(args, "baselimitposition", 0);
@@ -74,54 +82,42 @@ public class IDXExporter {
 	}
 	
 	public void execute(){
+		CoverageStreamer streamer = new CoverageStreamer(gcon.getGenome(), 1, 0, 0, 1, -1, numThreads);
 		for(ExperimentCondition c : manager.getConditions()){
-			for(ControlledExperiment rep : c.getReplicates()){
+			for(final ControlledExperiment rep : c.getReplicates()){
 				System.err.println("Condition "+c.getName()+":\tRep "+rep.getName());
 				try {
-					FileWriter fw = new FileWriter(outName+"."+c.getName()+"."+rep.getName()+".idx");
-					fw.write("chrom\tindex\tforward\treverse\tvalue\n");
-					
-					double basesDone=0, printStep=10000000,  numPrint=0;
-								       			
-					ChromRegionIterator chroms = new ChromRegionIterator(gcon.getGenome());
-					while(chroms.hasNext()){
-						NamedRegion currentRegion = chroms.next();
+					OutputStream os = new BufferedOutputStream(new FileOutputStream(outName+"."+c.getName()+"."+rep.getName()+".idx"), 1<<16);
+					try{
+						Writer header = new OutputStreamWriter(os);
+						header.write("chrom\tindex\tforward\treverse\tvalue\n");
+						header.flush();
 						
-						//Split the job up into chunks of 100Mbp
-						for(int x=currentRegion.getStart(); x<=currentRegion.getEnd(); x+=100000000){
-							int y = x+100000000; 
-							if(y>currentRegion.getEnd()){y=currentRegion.getEnd();}
-							Region currSubRegion = new Region(gcon.getGenome(), currentRegion.getChrom(), x, y);
-							
-							List<StrandedBaseCount> hits = rep.getSignal().getBases(currSubRegion);
-							if(filterByBase)
-								hits = sbcFilter.execute(currSubRegion, hits);
-		                    double stackedHitCountsPos[] = make5PrimeLandscape(hits, currSubRegion, '+');
-		                    double stackedHitCountsNeg[] = make5PrimeLandscape(hits, currSubRegion, '-');
-		                    
-		                    //Scan regions
-							for(int i=currSubRegion.getStart(); i<currSubRegion.getEnd(); i++){
-								int offset = i-currSubRegion.getStart();
-								double posHits=stackedHitCountsPos[offset];
-								double negHits=stackedHitCountsNeg[offset];
-								double sum = posHits+negHits;
-								
-								if(posHits>0 || negHits>0){
-									fw.write("chr"+currSubRegion.getChrom()+"\t"+i+"\t"+String.format("%.0f\t%.0f\t%.0f", posHits, negHits, sum) +"\n");
-								}
-								//Print out progress
-								basesDone++;
-								if(basesDone > numPrint*printStep){
-									if(numPrint%10==0){System.out.print(String.format("(%.0f)", (numPrint*printStep)));}
-									else{System.out.print(".");}
-									if(numPrint%50==0 && numPrint!=0){System.out.print("\n");}
-									numPrint++;
+						final CoverageStreamer cs = streamer;
+						streamer.forEachChrom(new CoverageStreamer.ChromTask(){
+							public void run(String chrom, int chromLen, OutputStream[] sections) throws IOException {
+								final Writer w = new OutputStreamWriter(sections[0]);
+								final String chr = "chr"+chrom+"\t";
+								Pair<int[],float[]> plus = cs.getHits(rep.getSignal(), chrom, '+');
+								Pair<int[],float[]> minus = cs.getHits(rep.getSignal(), chrom, '-');
+								if(filterByBase){
+									plus = filterHits(chrom, chromLen, plus, '+');
+									minus = filterHits(chrom, chromLen, minus, '-');
 								}
+								CoverageStreamer.forEachPosition(plus, minus, new CoverageStreamer.PositionHandler(){
+									public void position(int i, float posHits, float negHits) throws IOException {
+										w.write(chr); w.write(Integer.toString(i)); w.write('\t');
+										CoverageStreamer.writeDecimal(w, posHits, 0); w.write('\t');
+										CoverageStreamer.writeDecimal(w, negHits, 0); w.write('\t');
+										CoverageStreamer.writeDecimal(w, posHits+negHits, 0); w.write('\n');
+									}
+								});
+								w.flush();
 							}
-						}
+						}, new OutputStream[]{os});
+					}finally{
+						os.close();
 					}
-					System.out.print("\n");
-					fw.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -129,33 +125,37 @@ public class IDXExporter {
 		}
 	}
 	
+	/**
+	 * Applies the base filter to one strand of a chromosome, FILTERCHUNK bases at a time
+	 */
+	protected Pair<int[],float[]> filterHits(String chrom, int chromLen, Pair<int[],float[]> hits, char strand){
+		int[] pos = hits.car();
+		float[] w = hits.cdr();
+		int[] outPos = new int[pos.length];
+		float[] outW = new float[pos.length];
+		int n=0, k=0;
+		for(int x=1; x<=chromLen && k<pos.length; x+=FILTERCHUNK){
+			int y = Math.min(chromLen, x+FILTERCHUNK-1);
+			List<StrandedBaseCount> hitList = new ArrayList<StrandedBaseCount>();
+			for(; k<pos.length && pos[k]<=y; k++)
+				if(pos[k]>=x)
+					hitList.add(new StrandedBaseCount(strand, pos[k], w[k]));
+			if(hitList.size()==0)
+				continue;
+			//The sequence generator is shared between chromosomes
+			synchronized(sbcFilter){
+				hitList = sbcFilter.execute(new Region(gcon.getGenome(), chrom, x, y), hitList);
+			}
+			for(StrandedBaseCount sbc : hitList){
+				outPos[n] = sbc.getCoordinate();
+				outW[n++] = sbc.getCount();
+			}
+		}
+		return new Pair<int[],float[]>(Arrays.copyOf(outPos, n), Arrays.copyOf(outW, n));
+	}
+	
 	public void close(){
 		if(manager!=null)
 			manager.close();
 	}
-	
-	protected double[] make5PrimeLandscape(List<StrandedBaseCount> hits, Region currReg, char strand){
-		double[] startcounts = new double[(int)currReg.getWidth()+1];
-        for(int i=0; i<=currReg.getWidth(); i++){startcounts[i]=0;}
-        for(StrandedBaseCount r : hits){
-            if(strand=='.' || r.getStrand()==strand){
-            	if(r.getCoordinate()>=currReg.getStart() && r.getCoordinate()<=currReg.getEnd()){
-	                int offset5=inBounds(r.getCoordinate()-currReg.getStart(),0,currReg.getWidth());
-	                startcounts[offset5]+=r.getCount();
-            	}
-            }
-        }
-        return(startcounts);
-    }
-	//keep the number in bounds
-	protected final double inBounds(double x, double min, double max){
-		if(x<min){return min;}
-		if(x>max){return max;}
-		return x;
-	}
-	protected final int inBounds(int x, int min, int max){
-		if(x<min){return min;}
-		if(x>max){return max;}
-		return x;
-	}
 }
@@ -1,29 +1,28 @@
 package org.seqcode.deepseq.utils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.SQLException;
-import java.util.ArrayList;
 
-import org.seqcode.deepseq.ReadHit;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
 import org.seqcode.deepseq.experiments.Sample;
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.GenomeConfig;
 import org.seqcode.genome.Species;
-import org.seqcode.genome.location.NamedRegion;
-import org.seqcode.genome.location.Region;
-import org.seqcode.gsebricks.verbs.location.ChromRegionIterator;
 import org.seqcode.gseutils.ArgParser;
 import org.seqcode.gseutils.Args;
 import org.seqcode.gseutils.NotFoundException;
-import org.seqcode.gseutils.Pair;
 
 
 /**
- * Outputs a fixed-step WIG format file for a deep-seq experiment.
+ * Outputs a fixed-step WIG, bedGraph, or indexed binary coverage (CoverageIndexFile) file for a deep-seq experiment.
+ * Coverage is streamed from the hit cache by CoverageStreamer, with chromosomes processed in parallel.
  * 
  * @author Shaun Mahony
  * @version	%I%, %G%
@@ -32,7 +31,6 @@ public class WIGExporter {
 	private Species org;
 	private Genome gen;
 	private Sample sample;
-	protected int [] stackedHitCounts;
 	private int winSize=20, winStep=20;
 	private int readLength=1, read5PrimeExt=0, read3PrimeExt=200;
 	private String outName="out";
@@ -43,6 +41,9 @@ public class WIGExporter {
 	private int perBaseMax=-1;
 	private boolean needlefiltering=false;
 	private boolean cacheAllData;	
+	private String format="wig"; //wig, bedgraph, or cov
+	private char strand='.';
+	private int numThreads=1;
 	
 	public static void main(String[] args) throws SQLException, NotFoundException {
 		
@@ -67,6 +68,9 @@ public class WIGExporter {
 					"\t--description <string to use as track description>\n" +
 					"\t--ylimit <default track y max>\n" +
 					"\t--color <R,G,B>\n" +
+					"\t--format <wig/bedgraph/cov (indexed binary with zoom levels)>\n" +
+					"\t--strand <+/-: only count reads on this strand>\n" +
+					"\t--threads <number of chromosomes to process at once>\n" +
 					"\t--out <output file name>");
 			System.exit(1);
 		}
@@ -83,6 +87,13 @@ public class WIGExporter {
 		read3PrimeExt = Args.parseInteger(args,"read3ext",read3PrimeExt);
 		readLength = Args.parseInteger(args,"readlen",readLength);
 		winSize = Args.parseInteger(args,"winsize",winSize);
+		format = Args.parseString(args,"format",format).toLowerCase();
+		strand = Args.parseString(args,"strand",".").charAt(0);
+		numThreads = Args.parseInteger(args,"threads",numThreads);
+		if(!format.equals("wig") && !format.equals("bedgraph") && !format.equals("cov")){
+			System.err.println("WIGExporter: unknown format "+format);
+			System.exit(1);
+		}
 		
 		//General options processed directly by ExptConfig
 		
@@ -128,104 +139,99 @@ public class WIGExporter {
 	
 	public void execute(){
 		try {
-			FileWriter fw = new FileWriter(outName+".wig");
-			
-			double basesDone=0, printStep=10000000,  numPrint=0;
 			if(trackName.equals("out"))
 				trackName=outName;
 			if(trackDesc.equals("out"))
 				trackDesc=outName;
+			CoverageStreamer streamer = new CoverageStreamer(gen, readLength, read5PrimeExt, read3PrimeExt, winSize, needlefiltering ? perBaseMax : -1, numThreads);
 			
-			//Print the header
-			fw.write("track type=wiggle_0 name=\""+trackName+"\" description=\""+trackDesc+" summary\""+" visibility=full color="+trackColor+" ");
-			if(trackYMax >0)
-				fw.write("autoScale=off viewLimits=0:"+trackYMax+" ");
-			fw.write("\n");
-			       			
-			ChromRegionIterator chroms = new ChromRegionIterator(gen);
-			while(chroms.hasNext()){
-				NamedRegion currentRegion = chroms.next();
+			if(format.equals("cov")){
+				CoverageIndexFile.write(new File(outName+".cov"), streamer, sample, strand);
+				return;
+			}
+			final boolean bedGraph = format.equals("bedgraph");
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(outName+(bedGraph ? ".bedgraph" : ".wig")), 1<<16);
+			try{
+				//Print the header
+				Writer header = new OutputStreamWriter(os);
+				header.write("track type="+(bedGraph ? "bedGraph" : "wiggle_0")+" name=\""+trackName+"\" description=\""+trackDesc+" summary\""+" visibility=full color="+trackColor+" ");
+				if(trackYMax >0)
+					header.write("autoScale=off viewLimits=0:"+trackYMax+" ");
+				header.write("\n");
+				header.flush();
 				
-				//Split the job up into chunks of 100Mbp
-				for(int x=currentRegion.getStart(); x<=currentRegion.getEnd(); x+=100000000){
-					int y = x+100000000; 
-					if(y>currentRegion.getEnd()){y=currentRegion.getEnd();}
-					Region currSubRegion = new Region(gen, currentRegion.getChrom(), x, y);
-					
-					ArrayList<ReadHit> hits = new ArrayList<ReadHit>();
-                    hits.addAll(sample.exportExtReadHits(currSubRegion, readLength, 0, read5PrimeExt, read3PrimeExt));
-                    double stackedHitCounts[] = makeHitLandscape(hits, currSubRegion, perBaseMax, '.');
-                    
-                    boolean recording=false;
-	                //Scan regions
-					for(int i=currSubRegion.getStart(); i<currSubRegion.getEnd()-(int)winSize; i+=(int)winStep){
-						Region currWin = new Region(gen, currentRegion.getChrom(), i, (int)(i+winSize-1));
-						
-						int binid = (int)Math.max(0, ((double)(currWin.getStart()-currSubRegion.getStart())/winStep));
-						double winHits=(double)stackedHitCounts[binid];
-						
-						if(winHits>0){
-							if(!recording){
-								fw.write("fixedStep chrom=chr"+currSubRegion.getChrom()+" start="+(i+1)+" step="+winStep+" span="+winSize+"\n");
-								recording=true;
-							}
-							fw.write(String.format("%.1f\n", winHits));
-						}else{
-							recording=false;
-						}
-						
-						//Print out progress
-						basesDone+=winStep;
-						if(basesDone > numPrint*printStep){
-							if(numPrint%10==0){System.out.print(String.format("(%.0f)", (numPrint*printStep)));}
-							else{System.out.print(".");}
-							if(numPrint%50==0 && numPrint!=0){System.out.print("\n");}
-							numPrint++;
-						}
+				final CoverageStreamer cs = streamer;
+				streamer.forEachChrom(new CoverageStreamer.ChromTask(){
+					public void run(String chrom, int chromLen, OutputStream[] sections) throws IOException {
+						Writer w = new OutputStreamWriter(sections[0]);
+						if(bedGraph)
+							cs.streamCoverage(sample, chrom, chromLen, strand, new BedGraphWriter(w, chrom, chromLen));
+						else
+							cs.streamCoverage(sample, chrom, chromLen, strand, new FixedStepWriter(w, chrom));
+						w.flush();
 					}
-				}
+				}, new OutputStream[]{os});
+			}finally{
+				os.close();
 			}
-			System.out.print("\n");
-			fw.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
 	
-	protected double[] makeHitLandscape(ArrayList<ReadHit> hits, Region currReg, int perBaseMax, char strand){
-        int numBins = (int)(currReg.getWidth()/winStep);
-        double[] landscape = new double[numBins+1];
-        double[] startcounts = new double[(int)currReg.getWidth()+1];
-        for(int i=0; i<=numBins; i++){landscape[i]=0;}
-        for(int i=0; i<=currReg.getWidth(); i++){startcounts[i]=0;}
-        for(ReadHit r : hits){
-            if(strand=='.' || r.getStrand()==strand){
-                int offset5=inBounds(r.getFivePrime()-currReg.getStart(),0,currReg.getWidth());
-                if(!needlefiltering || (startcounts[offset5] <= perBaseMax)){
-                    int binstart = inBounds((int)((double)(r.getStart()-currReg.getStart())/winStep), 0, numBins);
-                    int binend =  inBounds((int)((double)(r.getEnd()-currReg.getStart())/winStep), 0, numBins);
-                    for(int i=binstart; i<=binend; i++){
-                        landscape[i]+=r.getWeight();
-                    }
-                    if(needlefiltering && (startcounts[offset5]+r.getWeight() > perBaseMax))
-                    	startcounts[offset5]=perBaseMax;
-                    else
-                    	startcounts[offset5]+=r.getWeight();
-                }
-            }
-        }
-        return(landscape);
-    }
-	//keep the number in bounds
-	protected final double inBounds(double x, double min, double max){
-		if(x<min){return min;}
-		if(x>max){return max;}
-		return x;
+	/**
+	 * fixedStep blocks covering each run of non-zero windows
+	 */
+	private class FixedStepWriter implements CoverageStreamer.CoverageHandler{
+		Writer w; String chrom;
+		boolean recording=false;
+		FixedStepWriter(Writer w, String chrom){this.w=w; this.chrom=chrom;}
+		public void bins(int firstBin, double[] values, int numBins) throws IOException {
+			for(int i=0; i<numBins; i++){
+				if(values[i]>0){
+					if(!recording){
+						w.write("fixedStep chrom=chr"+chrom+" start="+((firstBin+i)*winStep+1)+" step="+winStep+" span="+winSize+"\n");
+						recording=true;
+					}
+					CoverageStreamer.writeDecimal(w, values[i], 1);
+					w.write('\n');
+				}else{
+					recording=false;
+				}
+			}
+		}
 	}
-	protected final int inBounds(int x, int min, int max){
-		if(x<min){return min;}
-		if(x>max){return max;}
-		return x;
+	
+	/**
+	 * bedGraph lines for runs of equal non-zero windows (zero-based, half-open)
+	 */
+	private class BedGraphWriter implements CoverageStreamer.CoverageHandler{
+		Writer w; String chrom; int chromLen;
+		int runStart=-1, runEnd=-1; double runValue=0;
+		BedGraphWriter(Writer w, String chrom, int chromLen){this.w=w; this.chrom=chrom; this.chromLen=chromLen;}
+		public void bins(int firstBin, double[] values, int numBins) throws IOException {
+			for(int i=0; i<numBins; i++){
+				int start = (firstBin+i)*winSize;
+				if(values[i]>0 && runStart>=0 && runEnd==start && values[i]==runValue){
+					runEnd = Math.min(chromLen, start+winSize);
+				}else{
+					flush();
+					if(values[i]>0){
+						runStart=start; runEnd=Math.min(chromLen, start+winSize); runValue=values[i];
+					}
+				}
+			}
+			//Runs may continue into the next chunk; the last window of the chromosome ends the final one
+			if(numBins>0 && runEnd>=chromLen)
+				flush();
+		}
+		private void flush() throws IOException{
+			if(runStart<0)
+				return;
+			w.write("chr"+chrom+"\t"+runStart+"\t"+runEnd+"\t");
+			CoverageStreamer.writeDecimal(w, runValue, 2);
+			w.write('\n');
+			runStart=-1;
+		}
 	}
 }
@@ -0,0 +1,69 @@
+package org.seqcode.deepseq.utils.simulation;
+
+import java.util.SplittableRandom;
+
+/**
+ * Walker/Vose alias table: after O(n) setup, draws an index from a fixed discrete distribution
+ * in O(1) time using one random int and one random double. Read-only after construction, so a
+ * table can be shared by threads that each have their own SplittableRandom.
+ */
+public class AliasTable {
+	private double[] prob;
+	private int[] alias;
+
+	/**
+	 * @param weights non-negative, not necessarily normalized, weights; at least one must be positive
+	 */
+	public AliasTable(double[] weights){
+		int n = weights.length;
+		double total=0;
+		for(double w : weights){
+			if(w<0)
+				throw new IllegalArgumentException("Negative weight in alias table");
+			total+=w;
+		}
+		if(total<=0)
+			throw new IllegalArgumentException("Alias table needs at least one positive weight");
+		prob = new double[n];
+		alias = new int[n];
+		double[] scaled = new double[n];
+		int[] small = new int[n], large = new int[n];
+		int ns=0, nl=0;
+		for(int i=0; i<n; i++){
+			scaled[i] = weights[i]*n/total;
+			if(scaled[i]<1.0)
+				small[ns++]=i;
+			else
+				large[nl++]=i;
+		}
+		while(ns>0 && nl>0){
+			int s = small[--ns], l = large[--nl];
+			prob[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l]+scaled[s])-1.0;
+			if(scaled[l]<1.0)
+				small[ns++]=l;
+			else
+				large[nl++]=l;
+		}
+		//Whatever is left is (up to rounding) exactly full
+		while(nl>0){
+			int l = large[--nl];
+			prob[l]=1.0; alias[l]=l;
+		}
+		while(ns>0){
+			int s = small[--ns];
+			prob[s]=1.0; alias[s]=s;
+		}
+	}
+
+	public int size(){return prob.length;}
+
+	/**
+	 * Draw an index with probability proportional to its weight
+	 */
+	public int sample(SplittableRandom rand){
+		int i = rand.nextInt(prob.length);
+		return rand.nextDouble()<prob[i] ? i : alias[i];
+	}
+}
@@ -1,17 +1,24 @@
 package org.seqcode.deepseq.utils.simulation; 
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.math3.distribution.NormalDistribution;
-import org.seqcode.deepseq.ReadHit;
 import org.seqcode.deepseq.events.BindingModel;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
@@ -24,6 +31,11 @@ import org.seqcode.gseutils.ArgParser;
 import org.seqcode.gseutils.Args;
 import org.seqcode.gseutils.Pair;
 
+import cern.jet.random.Binomial;
+import cern.jet.random.HyperGeometric;
+import cern.jet.random.Normal;
+import cern.jet.random.engine.RandomEngine;
+
 
 /**
  * Simulates single or double condition fragments and reads using BindingModels. <br> 
@@ -34,6 +46,10 @@ import org.seqcode.gseutils.Pair;
  * read counts in each replicate. 
  * Noise reads are distributed uniformly across the genome or sampled from an input tag file.
  * 
+ * Reads are simulated one chromosome at a time on a thread pool and streamed to BED, SAM or 
+ * ReadDB import format files, so memory use is bounded by the largest chromosomes' fragment 
+ * libraries rather than the total number of reads. Given a seed, the output is the same whatever
+ * the number of threads. 
  * 
  * @author Shaun Mahony
  *
@@ -45,13 +61,14 @@ public class ChIPReadSimulator {
 	private int numConditions = 2;
 	private int numReplicates = 1;
 	private String outPath;
-	private FileWriter[][] writers;
+	private String outFormat = "BED"; //BED, SAM or READDB
+	private int numThreads = 1;
+	private SplittableRandom rand;
 	
 	private Genome fakeGen;
 	private long[] chromLens;
 	private HashMap<String, Long> chromOffsets = new HashMap<String, Long>();
 	private int rLen=32;
-	private long genomeLength=-1;
 	private double noiseProbabilities[][];
 	private int numSigFrags[][], numTotalFrags[][];
 	private int numReads =1000000;
@@ -65,19 +82,24 @@ public class ChIPReadSimulator {
 	private int fragLenStdDev = 40;
 	private List<Pair<Point, SimCounts>> events = new ArrayList<Pair<Point, SimCounts>>();
 	private HashMap<Point, Boolean> eventIsJoint = new HashMap<Point, Boolean>();
-	private List<ReadHit> noiseSource=null;
+	//Control reads used as noise fragments: per chromosome, 5' positions & strands packed as fragment keys, and copy numbers
+	private HashMap<String, long[]> noiseSource=null;
+	private HashMap<String, int[]> noiseSourceCopies=null;
 	private boolean subsampleControl=false;
 	private boolean paired=false;
 	
 	public ChIPReadSimulator(BindingModel m, Genome g, List<SimCounts> counts, int numCond, int numRep, double noiseProb, double jointRate, int jointSpacing, String outPath){
+		this(m, g, counts, numCond, numRep, noiseProb, jointRate, jointSpacing, outPath, System.nanoTime());
+	}
+	public ChIPReadSimulator(BindingModel m, Genome g, List<SimCounts> counts, int numCond, int numRep, double noiseProb, double jointRate, int jointSpacing, String outPath, long seed){
 		model=m;
+		rand = new SplittableRandom(seed);
 		numConditions = numCond;
 		numReplicates = numRep;
 		jointEventRate = jointRate;
 		jointEventSpacing = jointSpacing;
 		this.outPath = outPath;
 		fakeGen = g;
-		genomeLength = (long)fakeGen.getGenomeLength();
 		chromLens = new long[fakeGen.getChromList().size()];
 		
 		int c=0; long offset=0;
@@ -98,17 +120,6 @@ public class ChIPReadSimulator {
 				numTotalFrags[co][r]=0;
 			}
 		
-		try {
-			writers = new FileWriter[numConditions][numReplicates];
-			for(int co=0; co<numConditions; co++)
-				for(int r=0; r<numReplicates; r++){
-					FileWriter fout = new FileWriter(outPath+"_reads_C"+co+"_R"+r+".bed");
-					writers[co][r]=fout;
-				}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
 		if(noiseProb<1.0){
 			simCounts = counts;
 			setBindingPositions();
@@ -137,7 +148,7 @@ public class ChIPReadSimulator {
 	 * If there is no chrX (e.g. yeast), shared and diff events are interspersed along all chroms
 	 */
 	private void setBindingPositions(){
-		Random jointDice = new Random();
+		SplittableRandom jointDice = rand.split();
 		long sharedOffset=eventSpacing, diffOffset=eventSpacing/2;
 		if(chromOffsets.containsKey("X")){
 			sharedOffset=chromOffsets.get("1"); diffOffset=chromOffsets.get("X");
@@ -180,16 +191,18 @@ public class ChIPReadSimulator {
 	/**
 	 * Simulate a set of binding event reads for each replicate in each condition. 
 	 * Number of reads, number of events, and strengths of events are all pre-determined. 
+	 * 
+	 * For each replicate, noise fragments and reads are first split between chromosomes (multinomial 
+	 * splitting, or multivariate hypergeometric when sampling without replacement). Each chromosome is then
+	 * simulated by its own task: the fragment library is generated (binding model offsets come from alias
+	 * tables) and sorted, each fragment's read count is drawn by binomial splitting, and the reads are
+	 * written to a part file. Part files are appended to the replicate's output in chromosome order.
+	 * Each chromosome has its own SplittableRandom, split from the seeded root in a fixed order.
 	 */
-	private void simulateReads(){
+	public void simulateReads(){
 		//Initialize the probability landscape
 		int eventWidth=1000; int evoff = eventWidth/2;
 		double[] forProbLand=new double[eventWidth]; double[] revProbLand=new double[eventWidth];
-		double[] forProbCumul=new double[eventWidth]; double[] revProbCumul=new double[eventWidth];
-		for(int i=0; i<eventWidth; i++){
-			forProbLand[i]=0; revProbLand[i]=0;
-			forProbCumul[i]=0; revProbCumul[i]=0;
-		}
 		int modelRange = Math.max(Math.abs(model.getMin()), Math.abs(model.getMax()));
 		int winStart = Math.max(0, evoff-modelRange);
 		int winStop = Math.min(evoff+modelRange, eventWidth-1);
@@ -199,185 +212,344 @@ public class ChIPReadSimulator {
 			forProbLand[i]+=model.probability(forDist);
 			revProbLand[i]+=model.probability(revDist);
 		}
-		//Set the cumulative scores
-		double fTotal=0, rTotal=0;
-		for(int i=0; i<eventWidth; i++){
-			fTotal+=forProbLand[i];
-			rTotal+=revProbLand[i];
-			forProbCumul[i]=fTotal;
-			revProbCumul[i]=rTotal;
-		}
-		//Normalize
-		for(int i=0; i<eventWidth; i++){
-			forProbLand[i]=forProbLand[i]/fTotal;
-			revProbLand[i]=revProbLand[i]/rTotal;
-			forProbCumul[i]=forProbCumul[i]/fTotal;
-			revProbCumul[i]=revProbCumul[i]/rTotal;
-		}
+		AliasTable forOffsets = new AliasTable(forProbLand);
+		AliasTable revOffsets = new AliasTable(revProbLand);
 		
+		//Group events by chromosome
+		List<String> chroms = fakeGen.getChromList();
+		HashMap<String, List<Pair<Point, SimCounts>>> chromEvents = new HashMap<String, List<Pair<Point, SimCounts>>>();
+		for(String chr : chroms)
+			chromEvents.put(chr, new ArrayList<Pair<Point, SimCounts>>());
+		for(Pair<Point, SimCounts> ps : events)
+			chromEvents.get(ps.car().getChrom()).add(ps);
 		
-		//Generate the reads
-		Random sigGenerator = new Random();
-		Random noiseGenerator = new Random();
-		Random strandGenerator = new Random();
-		NormalDistribution fragLengthDistrib = new NormalDistribution(fragLenMean, fragLenStdDev);
-		for(int co=0; co<numConditions; co++)
-			for(int r=0; r<numReplicates; r++){
-				List<ReadHit> frags = new ArrayList<ReadHit>();
-				List<ReadHit> fragPairs = new ArrayList<ReadHit>();
-				
-				// Generate event reads
-				if(noiseProbabilities[co][r]<1){
-					for(Pair<Point, SimCounts> ps : events){
-						Point coord = ps.car();
-						String chr = coord.getChrom();
-						int chrLen = fakeGen.getChromLength(chr);
-						SimCounts sc = ps.cdr();
-						int sample = co*numReplicates+r;
-						double readCount = eventIsJoint.get(coord) ? sc.backup[sample] : sc.counts[sample];
-						
-						ReadHit rh = null; ReadHit rhp=null;
-						for(int x=0; x<readCount; x++){
-							boolean forwardStrand = strandGenerator.nextDouble()<0.5 ? true:false;
-							double rand = sigGenerator.nextDouble();
-							int fivePrimeEnd=coord.getLocation()-evoff;
-							//Find the probability interval
-							if(forwardStrand){
-								for(int j=0; j<eventWidth; j++){
-									if(forProbCumul[j] > rand){
-										fivePrimeEnd+=j;
-										break;
-									}
-								}
-								//Make the ReadHit
-								if((fivePrimeEnd+rLen-1)<chrLen){
-									rh = new ReadHit(chr, fivePrimeEnd, fivePrimeEnd+rLen-1, '+');
-									if(paired){
-										int len =Math.max(rLen, (int)fragLengthDistrib.sample()); 
-										rhp = new ReadHit(chr, fivePrimeEnd+len-rLen+1, fivePrimeEnd+len, '-');
-									}
-								}
-							}else{
-								for(int j=eventWidth-1; j>=0; j--){
-									if(revProbCumul[j] < rand){
-										fivePrimeEnd+=j+1;
-										break;
-									}
-								}
-								//Make the ReadHit
-								if(fivePrimeEnd<chrLen){
-									rh = new ReadHit(chr, Math.max(1, fivePrimeEnd-rLen+1), fivePrimeEnd, '-');
-									if(paired){
-										int len =Math.max(rLen, (int)fragLengthDistrib.sample()); 
-										rhp = new ReadHit(chr, Math.max(1, fivePrimeEnd-len), Math.max(1, fivePrimeEnd-len+rLen-1), '+');
-									}
-								}
-							}
-							if(rh!=null && (!paired || rhp!=null)){
-								frags.add(rh);
-								fragPairs.add(rhp);
-							}
-						}
-					}
-				}
-				
-				//Generate noise reads
-				Random readSampler = new Random();
-				int noiseFrags = (int)((double)numTotalFrags[co][r]*noiseProbabilities[co][r]);
-				if(noiseSource==null) //Poisson
-					for(int i=0; i<noiseFrags; i++){
-						ReadHit rh=null, rhp=null;
-						double noiserand = noiseGenerator.nextDouble();
-						double strandrand = strandGenerator.nextDouble();
-	
-						long pos = (long)(noiserand*(genomeLength));
-						
-						//Translate from pos to chromosome name and start
-						int c=0; long offset=0;
-						String chr = fakeGen.getChromList().get(0);
-						while(pos>(offset+chromLens[c]) && c<fakeGen.getChromList().size()-1){
-							c++;
-							chr = fakeGen.getChromList().get(c);
-							offset = chromOffsets.get(chr);
+		boolean withoutReplacement = noiseSource!=null && subsampleControl;
+		String suffix = outFormat.equals("SAM") ? ".sam" : outFormat.equals("READDB") ? ".readdb.txt" : ".bed";
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try{
+			for(int co=0; co<numConditions; co++)
+				for(int r=0; r<numReplicates; r++){
+					SplittableRandom repRand = rand.split();
+					SplittableEngine engine = new SplittableEngine(repRand);
+					int sample = co*numReplicates+r;
+					
+					//Signal fragments per chromosome are fixed by the simulated counts
+					long[] sigFrags = new long[chroms.size()];
+					if(noiseProbabilities[co][r]<1)
+						for(int c=0; c<chroms.size(); c++)
+							for(Pair<Point, SimCounts> ps : chromEvents.get(chroms.get(c)))
+								sigFrags[c] += (long)Math.ceil(eventReadCount(ps, sample));
+					
+					//Noise fragments: uniform over the genome, or a random subset of the control reads
+					int noiseFrags = (int)((double)numTotalFrags[co][r]*noiseProbabilities[co][r]);
+					int[] chromNoise;
+					if(noiseSource==null){
+						chromNoise = multinomial(noiseFrags, chromLens, new Binomial(1, 0.5, engine));
+					}else{
+						long[] sourceSizes = new long[chroms.size()];
+						long noiseSourceSize=0;
+						for(int c=0; c<chroms.size(); c++){
+							if(noiseSourceCopies.containsKey(chroms.get(c)))
+								for(int x : noiseSourceCopies.get(chroms.get(c)))
+									sourceSizes[c]+=x;
+							noiseSourceSize+=sourceSizes[c];
 						}
-						long start = pos-offset;
-						
-						//Add the ReadHit
-						if (strandrand<0.5){
-							rh = new ReadHit(chr, (int)start, (int)start+rLen-1, '+');
-							if(paired){
-								int len =Math.max(rLen, (int)fragLengthDistrib.sample()); 
-								rhp = new ReadHit(chr, (int)start+len-rLen+1, (int)start+len, '-');
-							}
-						}else{
-							rh = new ReadHit(chr, Math.max(1, (int)start-rLen+1), (int)start, '-');
-							if(paired){
-								int len =Math.max(rLen, (int)fragLengthDistrib.sample()); 
-								rhp = new ReadHit(chr, Math.max(1, (int)start-len), Math.max(1, (int)start-len+rLen-1), '+');
-							}
+						if(noiseSourceSize<noiseFrags){
+							System.err.println("Provided control has fewer reads than the requested noise fragments");
+							System.exit(1);
 						}
-						frags.add(rh);
-						if(paired)
-							fragPairs.add(rhp);
+						chromNoise = multiHypergeometric(noiseFrags, sourceSizes, new HyperGeometric(1, 1, 1, engine));
 					}
-				else{
-					//If the noise source is a control experiment, we shouldn't sample fragments with replacement.
-					//Rather, we treat each control experiment read as a distinct fragment in the initial library 
-					int noiseSourceSize = noiseSource.size();
-					if(noiseSourceSize<noiseFrags){
-						System.err.println("Provided control has fewer reads than the requested noise fragments");
+					
+					//Reads: sampled from the fragments with replacement, or subsampled without
+					long[] chromFrags = new long[chroms.size()];
+					long numFrags=0;
+					for(int c=0; c<chroms.size(); c++){
+						chromFrags[c] = sigFrags[c]+chromNoise[c];
+						numFrags+=chromFrags[c];
+					}
+					if(withoutReplacement && numFrags<numReads){
+						System.err.println("Can't subsample "+numReads+" reads from "+numFrags+" fragments");
 						System.exit(1);
 					}
-					//fragindex is a list of non-repeating random numbers
-					Integer[] fragindex = new Integer[noiseSourceSize];
-				    for (int i = 0; i < noiseSourceSize; i++)
-				    	fragindex[i] = i;
-				    Collections.shuffle(Arrays.asList(fragindex));
-					//Extract the fragments
-					for(int i=0; i<noiseFrags; i++){
-						ReadHit rh = noiseSource.get(fragindex[i]);
-						frags.add(rh);
+					int[] chromReads = withoutReplacement ? 
+							multiHypergeometric(numReads, chromFrags, new HyperGeometric(1, 1, 1, engine)) :
+							multinomial(numReads, chromFrags, new Binomial(1, 0.5, engine));
+					
+					//Simulate the chromosomes
+					String outName = outPath+"_reads_C"+co+"_R"+r+suffix;
+					List<File> parts = new ArrayList<File>();
+					List<Future<Long>> futures = new ArrayList<Future<Long>>();
+					for(int c=0; c<chroms.size(); c++){
+						File part = new File(outName+".part"+c);
+						parts.add(part);
+						futures.add(exec.submit(new ChromSimulator(chroms.get(c), sample, chromEvents.get(chroms.get(c)), (int)chromFrags[c], 
+								chromNoise[c], chromReads[c], withoutReplacement, forOffsets, revOffsets, evoff, repRand.split(), part, "C"+co+"_R"+r)));
+					}
+					
+					//Stitch the part files together in chromosome order as they finish
+					long uniqueFrags=0;
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(outName));
+					if(outFormat.equals("SAM")){
+						//Fragments are ordered by 5' end, not by leftmost position, so the reads are not coordinate sorted
+						StringBuilder header = new StringBuilder("@HD\tVN:1.0\tSO:unsorted\n");
+						for(String chr : chroms)
+							header.append("@SQ\tSN:"+chr+"\tLN:"+fakeGen.getChromLength(chr)+"\n");
+						header.append("@PG\tID:ChIPReadSimulator\tPN:ChIPReadSimulator\n");
+						out.write(header.toString().getBytes());
+					}
+					for(int c=0; c<chroms.size(); c++){
+						try{
+							uniqueFrags += futures.get(c).get();
+						}catch(InterruptedException e){
+							Thread.currentThread().interrupt();
+							throw new RuntimeException(e);
+						}catch(ExecutionException e){
+							throw new RuntimeException(e.getCause());
+						}
+						Files.copy(parts.get(c).toPath(), out);
+						parts.get(c).delete();
 					}
+					out.close();
+					System.out.println(uniqueFrags+" unique positions generated.");
 				}
-				
-				//Count unique fragments
-				HashMap<String, Integer> uniqueFragLabels = new HashMap<String, Integer>();
-				for(ReadHit hit : frags){
-					String label = hit.toString();
-					int count =0;
-					if(uniqueFragLabels.containsKey(label))
-						count = uniqueFragLabels.get(label);
-					uniqueFragLabels.put(label, count+1);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}finally{
+			exec.shutdown();
+		}
+	}
+	
+	private double eventReadCount(Pair<Point, SimCounts> ps, int sample){
+		return eventIsJoint.get(ps.car()) ? ps.cdr().backup[sample] : ps.cdr().counts[sample];
+	}
+	
+	/* Fragment keys pack the 5' position of the first read, its strand, and the fragment length, so that sorting the keys sorts fragments by position */
+	private static long fragmentKey(int fivePrime, boolean minus, int fragLen){
+		return ((long)fivePrime<<32) | (minus ? 1L<<31 : 0) | fragLen;
+	}
+	
+	/* Binomial draw that tolerates the p=0 and p=1 cases Colt rejects */
+	private static int binomial(Binomial binom, int n, double p){
+		if(n==0 || p<=0)
+			return 0;
+		if(p>=1)
+			return n;
+		return binom.nextInt(n, p);
+	}
+	
+	/**
+	 * Split n draws between categories in proportion to their weights (multinomial), by sequential conditional binomials
+	 */
+	private static int[] multinomial(int n, long[] weights, Binomial binom){
+		int[] x = new int[weights.length];
+		long remWeight=0;
+		for(long w : weights)
+			remWeight+=w;
+		int remN = n;
+		for(int i=0; i<weights.length && remN>0 && remWeight>0; i++){
+			x[i] = binomial(binom, remN, (double)weights[i]/remWeight);
+			remN-=x[i];
+			remWeight-=weights[i];
+		}
+		return x;
+	}
+	
+	/**
+	 * Split n draws without replacement between categories of the given sizes (multivariate hypergeometric), by sequential conditional hypergeometrics
+	 */
+	private static int[] multiHypergeometric(int n, long[] sizes, HyperGeometric hyper){
+		int[] x = new int[sizes.length];
+		long remSize=0;
+		for(long s : sizes)
+			remSize+=s;
+		int remN = n;
+		for(int i=0; i<sizes.length && remN>0; i++){
+			if(sizes[i]==0)
+				x[i]=0;
+			else if(sizes[i]>=remSize)
+				x[i]=remN;
+			else if(remN>=remSize)
+				x[i]=(int)sizes[i];
+			else
+				x[i] = hyper.nextInt((int)remSize, (int)sizes[i], remN);
+			remN-=x[i];
+			remSize-=sizes[i];
+		}
+		return x;
+	}
+	
+	/**
+	 * Colt RandomEngine backed by a SplittableRandom, so that Colt's distributions can share a task's random stream
+	 */
+	private static class SplittableEngine extends RandomEngine{
+		private static final long serialVersionUID = 1L;
+		private SplittableRandom rand;
+		public SplittableEngine(SplittableRandom r){rand=r;}
+		public int nextInt(){return rand.nextInt();}
+	}
+	
+	/**
+	 * Simulates the fragments and reads of one chromosome in one replicate, writing the reads to a part file.
+	 * Returns the number of unique fragment positions. 
+	 */
+	private class ChromSimulator implements Callable<Long>{
+		private String chr;
+		private int sample, numFrags, numNoise, numReads, evoff;
+		private List<Pair<Point, SimCounts>> chromEvents;
+		private boolean withoutReplacement;
+		private AliasTable forOffsets, revOffsets;
+		private SplittableRandom rand;
+		private File part;
+		private String namePrefix;
+		private int chrLen, chrID;
+		private long readName=0;
+		private StringBuilder line = new StringBuilder();
+		
+		public ChromSimulator(String chr, int sample, List<Pair<Point, SimCounts>> chromEvents, int numFrags, int numNoise, int numReads, 
+				boolean withoutReplacement, AliasTable forOffsets, AliasTable revOffsets, int evoff, SplittableRandom rand, File part, String namePrefix){
+			this.chr=chr; this.sample=sample; this.chromEvents=chromEvents;
+			this.numFrags=numFrags; this.numNoise=numNoise; this.numReads=numReads;
+			this.withoutReplacement=withoutReplacement;
+			this.forOffsets=forOffsets; this.revOffsets=revOffsets; this.evoff=evoff;
+			this.rand=rand; this.part=part; this.namePrefix=namePrefix;
+			chrLen = fakeGen.getChromLength(chr);
+			chrID = outFormat.equals("READDB") ? fakeGen.getChromID(chr) : 0;
+		}
+		
+		public Long call() throws IOException{
+			SplittableEngine engine = new SplittableEngine(rand);
+			Binomial binom = new Binomial(1, 0.5, engine);
+			Normal fragLengthDistrib = new Normal(fragLenMean, fragLenStdDev, engine);
+			long[] frags = new long[numFrags];
+			int f=0;
+			
+			// Generate event fragments
+			for(Pair<Point, SimCounts> ps : chromEvents){
+				int location = ps.car().getLocation();
+				int count = (int)Math.ceil(eventReadCount(ps, sample));
+				for(int x=0; x<count; x++){
+					boolean minus = rand.nextBoolean();
+					int fivePrimeEnd = location-evoff + (minus ? revOffsets.sample(rand) : forOffsets.sample(rand));
+					if(!minus)
+						fivePrimeEnd = Math.min(fivePrimeEnd, chrLen-rLen+1);
+					fivePrimeEnd = Math.max(1, Math.min(fivePrimeEnd, chrLen));
+					frags[f++] = fragmentKey(fivePrimeEnd, minus, paired ? fragLength(fragLengthDistrib) : 0);
 				}
-				int uniqueFrags = uniqueFragLabels.keySet().size();
-				System.out.println(uniqueFrags+" unique positions generated.");
-				
-				//Sample reads from the fragments & print
-				try {
-					int numFrags = frags.size();
-					for(int x=0; x<numReads; x++){
-						ReadHit rh=null, rhp=null;
-						if(noiseSource==null || !subsampleControl){
-							double rand = readSampler.nextDouble();
-							int index = (int)((double)numFrags*rand);
-							rh = frags.get(index);
-							if(paired)
-								rhp=fragPairs.get(index);
-						}else{
-							//Here, the options tell us to just *subsample* the control reads directly without replacement. 
-							//This is easy here, as frags should contain a randomly ordered subset of control reads already
-							rh = frags.get(x);
+			}
+			
+			// Generate noise fragments
+			if(noiseSource==null){ //Poisson
+				for(int i=0; i<numNoise; i++){
+					boolean minus = rand.nextBoolean();
+					int fivePrimeEnd = 1+rand.nextInt(minus ? chrLen : Math.max(1, chrLen-rLen+1));
+					frags[f++] = fragmentKey(fivePrimeEnd, minus, paired ? fragLength(fragLengthDistrib) : 0);
+				}
+			}else if(numNoise>0){
+				//Control reads are distinct fragments in the initial library, so choose numNoise of them without 
+				//replacement (selection sampling over every copy of every read)
+				long[] source = noiseSource.get(chr);
+				int[] copies = noiseSourceCopies.get(chr);
+				long remaining=0;
+				for(int x : copies)
+					remaining+=x;
+				int needed = numNoise;
+				for(int i=0; i<source.length && needed>0; i++)
+					for(int x=0; x<copies[i] && needed>0; x++, remaining--)
+						if(rand.nextDouble()*remaining < needed){
+							frags[f++] = source[i] | (paired ? fragLength(fragLengthDistrib) : 0);
+							needed--;
 						}
-						writers[co][r].write(rh.getChrom()+"\t"+rh.getStart()+"\t"+rh.getEnd()+"\tU\t0\t"+rh.getStrand()+"\n");
-						if(paired)
-							writers[co][r].write(rhp.getChrom()+"\t"+rhp.getStart()+"\t"+rhp.getEnd()+"\tU\t0\t"+rhp.getStrand()+"\n");
+			}
+			Arrays.sort(frags);
+			long unique=0;
+			for(int i=0; i<frags.length; i++)
+				if(i==0 || frags[i]!=frags[i-1])
+					unique++;
+			
+			//Sample reads from the fragments & print. Each fragment's read count is binomial given the reads left
+			//to place, which is the same as sampling fragments uniformly (with or without replacement) 
+			BufferedWriter writer = new BufferedWriter(new FileWriter(part), 1<<16);
+			int remReads = numReads;
+			long pendingKey=-1; int pendingCount=0;
+			for(int i=0; i<frags.length && remReads>0; i++){
+				int left = frags.length-i;
+				int count = withoutReplacement ? (rand.nextDouble()*left < remReads ? 1 : 0) : binomial(binom, remReads, 1.0/left);
+				remReads-=count;
+				if(count==0)
+					continue;
+				if(outFormat.equals("READDB")){
+					//ReadDB hits carry weights, so identical fragments are written once
+					if(frags[i]!=pendingKey && pendingCount>0){
+						writeReads(writer, pendingKey, pendingCount);
+						pendingCount=0;
 					}
-				} catch (IOException e) {
-					e.printStackTrace();
+					pendingKey=frags[i];
+					pendingCount+=count;
+				}else{
+					writeReads(writer, frags[i], count);
 				}
 			}
+			if(pendingCount>0)
+				writeReads(writer, pendingKey, pendingCount);
+			writer.close();
+			return unique;
+		}
 		
+		private int fragLength(Normal fragLengthDistrib){
+			return Math.max(rLen, (int)fragLengthDistrib.nextDouble());
+		}
 		
+		/* Writes count copies of the read (or read pair) for one fragment */
+		private void writeReads(BufferedWriter writer, long key, int count) throws IOException{
+			int fivePrimeEnd = (int)(key>>>32);
+			boolean minus = (key & (1L<<31))!=0;
+			int len = (int)(key & 0x7fffffff);
+			int start = minus ? Math.max(1, fivePrimeEnd-rLen+1) : fivePrimeEnd;
+			int end = minus ? fivePrimeEnd : fivePrimeEnd+rLen-1;
+			int mateStart=0, mateEnd=0, mateFivePrime=0;
+			if(paired){
+				if(minus){
+					mateStart = Math.max(1, fivePrimeEnd-len); mateEnd = Math.max(1, fivePrimeEnd-len+rLen-1); mateFivePrime = mateStart;
+				}else{
+					mateEnd = Math.min(chrLen, fivePrimeEnd+len); mateStart = Math.max(1, mateEnd-rLen+1); mateFivePrime = mateEnd;
+				}
+			}
+			char strand = minus ? '-' : '+', mateStrand = minus ? '+' : '-';
+			line.setLength(0);
+			if(outFormat.equals("READDB")){
+				if(paired)
+					line.append(chrID).append('\t').append(fivePrimeEnd).append('\t').append(strand).append('\t').append(rLen).append('\t')
+						.append(chrID).append('\t').append(mateFivePrime).append('\t').append(mateStrand).append('\t').append(rLen).append('\t')
+						.append(count).append("\t1\n");
+				else
+					line.append(chrID).append('\t').append(fivePrimeEnd).append('\t').append(strand).append('\t').append(rLen).append('\t').append(count).append('\n');
+				writer.write(line.toString());
+				return;
+			}
+			for(int x=0; x<count; x++){
+				if(outFormat.equals("SAM")){
+					String name = namePrefix+":"+chr+":"+(readName++);
+					if(paired){
+						int tlen = Math.max(end, mateEnd)-Math.min(start, mateStart)+1;
+						appendSAM(name, 1+2+64+(minus?16:0)+(minus?0:32), start, "=", mateStart, start<=mateStart ? tlen : -tlen);
+						appendSAM(name, 1+2+128+(minus?0:16)+(minus?32:0), mateStart, "=", start, start<=mateStart ? -tlen : tlen);
+					}else{
+						appendSAM(name, minus?16:0, start, "*", 0, 0);
+					}
+				}else{
+					line.append(chr).append('\t').append(start).append('\t').append(end).append("\tU\t0\t").append(strand).append('\n');
+					if(paired)
+						line.append(chr).append('\t').append(mateStart).append('\t').append(mateEnd).append("\tU\t0\t").append(mateStrand).append('\n');
+				}
+			}
+			writer.write(line.toString());
+		}
+		
+		private void appendSAM(String name, int flag, int pos, String rnext, int pnext, int tlen){
+			line.append(name).append('\t').append(flag).append('\t').append(chr).append('\t').append(pos).append("\t255\t").append(rLen).append("M\t")
+				.append(rnext).append('\t').append(pnext).append('\t').append(tlen).append("\t*\t*\n");
+		}
 	}
 		
 	//Accessors
@@ -400,32 +572,54 @@ public class ChIPReadSimulator {
 		this.rLen=r;
 	}
 	public void setPaired(boolean p){ this.paired=p;}
+	public void setThreads(int t){ this.numThreads=Math.max(1, t);}
+	public void setOutputFormat(String f){
+		outFormat = f.toUpperCase();
+		if(!outFormat.equals("BED") && !outFormat.equals("SAM") && !outFormat.equals("READDB")){
+			System.err.println("Unknown output format "+f+"; use BED, SAM or READDB");
+			System.exit(1);
+		}
+	}
 	public void setNoiseSource(List<Sample> controls, boolean subsample){
 		subsampleControl = subsample;
-		noiseSource = new ArrayList<ReadHit>();
-		for(Sample s : controls){
-			//Add each read hit as its own fragment
-			for(ReadHit rh : s.exportReadHits(rLen)){
-				for(float x=0; x<rh.getWeight(); x+=1.0){
-					ReadHit newRH = new ReadHit(rh.getChrom(), rh.getStart(), rh.getEnd(), rh.getStrand());
-					noiseSource.add(newRH);
+		noiseSource = new HashMap<String, long[]>();
+		noiseSourceCopies = new HashMap<String, int[]>();
+		long total=0;
+		for(String chr : fakeGen.getChromList()){
+			//Each read hit is its own fragment, repeated by its weight
+			List<Pair<int[],float[]>> hits = new ArrayList<Pair<int[],float[]>>();
+			List<Boolean> minus = new ArrayList<Boolean>();
+			int n=0;
+			for(Sample s : controls)
+				for(char strand : new char[]{'+','-'}){
+					Pair<int[],float[]> h = s.getChromHitArrays(chr, strand);
+					if(h!=null){
+						hits.add(h);
+						minus.add(strand=='-');
+						n+=h.car().length;
+					}
 				}
-			}
+			long[] keys = new long[n];
+			int[] copies = new int[n];
+			int i=0;
+			for(int x=0; x<hits.size(); x++)
+				for(int y=0; y<hits.get(x).car().length; y++){
+					keys[i] = fragmentKey(hits.get(x).car()[y], minus.get(x), 0);
+					copies[i] = (int)Math.ceil(hits.get(x).cdr()[y]);
+					total+=copies[i];
+					i++;
+				}
+			noiseSource.put(chr, keys);
+			noiseSourceCopies.put(chr, copies);
 		}
-		System.err.println(noiseSource.size()+" control reads sourced as distinct fragments");
+		System.err.println(total+" control reads sourced as distinct fragments");
 	}
 	
 
-	// clean up
+	// clean up: output files are closed as each replicate is finished, so there's nothing left to release
 	public void close(){
-		try {
-			for(int co=0; co<numConditions; co++)
-				for(int r=0; r<numReplicates; r++){
-					writers[co][r].close();
-				}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		noiseSource=null;
+		noiseSourceCopies=null;
 	}
 	
 	/**
@@ -495,6 +689,9 @@ public class ChIPReadSimulator {
 					"\t--noevents [flag to turn off making some files]\n" +
 					"\t--paired [flag to generate paired reads (not working for control-sampling yet)]\n" +
 					"\t--out <output file>\n" +
+					"\t--outformat <BED/SAM/READDB (ReadDB import format)> default=BED\n" +
+					"\t--threads <number of threads>\n" +
+					"\t--seed <random seed; output is the same for any number of threads>\n" +
 					"");
 		}else{
 			GenomeConfig gcon = new GenomeConfig(args);
@@ -569,6 +766,10 @@ public class ChIPReadSimulator {
 			
 			//////////////////////////////////////////////////
 			// Simulate counts 
+			//The seed fixes both the event counts and the reads
+			long seed = Args.parseLong(args, "seed", System.nanoTime());
+			System.err.println("Simulating with seed "+seed);
+			cdsim.setSeed(seed);
 			List<SimCounts> counts = null;
 			if(noiseProb<1.0){
 				counts = cdsim.simulate();
@@ -580,7 +781,7 @@ public class ChIPReadSimulator {
 			// Simulate reads according to counts and binding model
 			BindingModel bm = new BindingModel(mFile);
 	        //Initialize the MultiConditionReadSimulator
-			ChIPReadSimulator sim = new ChIPReadSimulator(bm, gcon.getGenome(), counts, c, r, noiseProb, jointRate, jointSpacing, outFile);
+			ChIPReadSimulator sim = new ChIPReadSimulator(bm, gcon.getGenome(), counts, c, r, noiseProb, jointRate, jointSpacing, outFile, seed);
 	        if(noiseProb==1.0)
 	        	sim.setTotalFrags((int) frags);
 
@@ -593,6 +794,8 @@ public class ChIPReadSimulator {
 	        sim.setTotalReads((int) reads);
 	        sim.setReadLength(rlen);
 	        sim.setPaired(isPaired);
+	        sim.setThreads(Args.parseInteger(args, "threads", 1));
+	        sim.setOutputFormat(Args.parseString(args, "outformat", "BED"));
 	        
 	        if(noiseProb<1 && printEvents)
 	        	sim.printEvents();	      
@@ -14,6 +14,8 @@ import java.util.Random;
 import org.seqcode.gseutils.ArgParser;
 import org.seqcode.math.stats.NegativeBinomialDistrib;
 
+import cern.jet.random.engine.DRand;
+
 
 /**
  * CountDataSimulator: generate a two-condition CountsDataset file given an empirically observed dataset and some parameters
@@ -32,6 +34,7 @@ public class CountDataSimulator {
 	private Double diffExpLevel =2.0; //Base fold-change of differentially regulated genes
 	private Double condATotalReads=10000000.0;
 	private Double condBTotalReads=20000000.0;
+	private Long seed=null; //null: a different simulation every run
 	
 	//Variables
 	private ArrayList<Double> empirical = new ArrayList<Double>();
@@ -56,6 +59,7 @@ public class CountDataSimulator {
 	public void setUpRegFrac(Double f){upRegFrac=f;}
 	public void setDownRegFrac(Double f){downRegFrac=f;}
 	public void setDiffExpLevel(Double d){diffExpLevel = d;}
+	public void setSeed(long s){seed=s;}
 	
 	/**
 	 * Load an empirical dataset from a file
@@ -93,8 +97,8 @@ public class CountDataSimulator {
 		double[] absolutes = new double[numDataPoints];
 		simResults = new ArrayList<SimCounts>();
 		boolean [] diffs = new boolean[numDataPoints]; 
-		Random rand = new Random();
-		NegativeBinomialDistrib nb = new NegativeBinomialDistrib(1,0.5);
+		Random rand = seed==null ? new Random() : new Random(seed);
+		NegativeBinomialDistrib nb = seed==null ? new NegativeBinomialDistrib(1,0.5) : new NegativeBinomialDistrib(1,0.5, new DRand(rand.nextInt()));
 		double [] condAMols = new double[numDataPoints];
 		double [] condBMols = new double[numDataPoints];
 		double [] condMolTotals = new double[numConditions];
@@ -0,0 +1,69 @@
+package org.seqcode.deepseq.utils.simulation.unittests;
+
+import java.util.SplittableRandom;
+
+import org.junit.*;
+import org.seqcode.deepseq.utils.simulation.AliasTable;
+
+import static org.junit.Assert.*;
+
+public class TestAliasTable {
+
+	/* Draws n samples and checks each index's frequency is within 5 standard errors (plus a couple of draws, for
+	   the tiny weights in the tails) of its weight */
+	private static void checkFrequencies(double[] weights, int n, long seed) {
+		AliasTable table = new AliasTable(weights);
+		assertEquals(weights.length, table.size());
+		double total=0;
+		for(double w : weights)
+			total+=w;
+		int[] hits = new int[weights.length];
+		SplittableRandom rand = new SplittableRandom(seed);
+		for(int i=0; i<n; i++)
+			hits[table.sample(rand)]++;
+		for(int i=0; i<weights.length; i++){
+			double p = weights[i]/total;
+			if(p==0){
+				assertEquals("index "+i, 0, hits[i]);
+			}else{
+				double se = Math.sqrt(p*(1-p)/n);
+				assertEquals("index "+i, p, hits[i]/(double)n, 5*se+2.0/n);
+			}
+		}
+	}
+
+	@Test public void testUniform() {
+		checkFrequencies(new double[]{1, 1, 1, 1, 1}, 200000, 1);
+	}
+
+	@Test public void testSkewedWithZeros() {
+		checkFrequencies(new double[]{0, 10, 0.5, 0, 3, 100, 0.01, 7}, 500000, 2);
+	}
+
+	@Test public void testBindingModelShape() {
+		double[] w = new double[1000];
+		for(int i=0; i<w.length; i++)
+			w[i] = Math.exp(-(i-500)*(i-500)/(2.0*60*60));
+		checkFrequencies(w, 1000000, 3);
+	}
+
+	@Test public void testSingle() {
+		AliasTable table = new AliasTable(new double[]{0, 0, 2.5});
+		SplittableRandom rand = new SplittableRandom(4);
+		for(int i=0; i<1000; i++)
+			assertEquals(2, table.sample(rand));
+	}
+
+	@Test(expected=IllegalArgumentException.class) public void testNegative() {
+		new AliasTable(new double[]{1, -1});
+	}
+
+	@Test(expected=IllegalArgumentException.class) public void testAllZero() {
+		new AliasTable(new double[]{0, 0});
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.deepseq.utils.simulation.unittests.TestAliasTable");
+	}
+
+}
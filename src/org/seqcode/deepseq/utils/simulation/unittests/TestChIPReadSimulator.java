@@ -0,0 +1,115 @@
+package org.seqcode.deepseq.utils.simulation.unittests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.*;
+import org.seqcode.deepseq.events.BindingModel;
+import org.seqcode.deepseq.utils.simulation.ChIPReadSimulator;
+import org.seqcode.deepseq.utils.simulation.CountDataSimulator;
+import org.seqcode.deepseq.utils.simulation.CountDataSimulator.SimCounts;
+import org.seqcode.genome.Genome;
+import org.seqcode.gseutils.Pair;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a seeded ChIPReadSimulator run (event counts and reads) gives the same files whatever the number of threads
+ */
+public class TestChIPReadSimulator {
+
+	private File dir;
+	private Genome genome;
+	private BindingModel model;
+	private String empFile;
+
+	@Before public void setUp() throws IOException {
+		dir = Files.createTempDirectory("TestChIPReadSimulator").toFile();
+		Map<String,Integer> lengths = new HashMap<String,Integer>();
+		lengths.put("1", 200000);
+		lengths.put("2", 150000);
+		lengths.put("3", 90000);
+		genome = new Genome("sim", lengths);
+		List<Pair<Integer,Double>> dist = new ArrayList<Pair<Integer,Double>>();
+		for(int x=-150; x<=150; x++)
+			dist.add(new Pair<Integer,Double>(x, 151.0-Math.abs(x)));
+		model = new BindingModel(dist);
+		empFile = dir.getPath()+File.separator+"emp.txt";
+		FileWriter fw = new FileWriter(empFile);
+		fw.write("Point\tCount\n");
+		for(int i=0; i<200; i++)
+			fw.write("p"+i+"\t"+(20+i*3)+"\n");
+		fw.close();
+	}
+
+	@After public void tearDown() throws IOException {
+		delete(dir);
+	}
+
+	private static void delete(File f) throws IOException {
+		File[] children = f.listFiles();
+		if(children!=null)
+			for(File c : children)
+				delete(c);
+		Files.deleteIfExists(f.toPath());
+	}
+
+	/* Runs the simulation as ChIPReadSimulator.main does, writing into its own directory */
+	private File simulate(String name, long seed, int threads, String format) throws IOException {
+		File out = new File(dir, name);
+		out.mkdirs();
+		CountDataSimulator cdsim = new CountDataSimulator();
+		cdsim.loadEmpiricalFromFile(empFile);
+		cdsim.setDataPoints(60);
+		cdsim.setConditions(2);
+		cdsim.setReplicates(2);
+		cdsim.setReads(20000.0);
+		cdsim.setSeed(seed);
+		List<SimCounts> counts = cdsim.simulate();
+		ChIPReadSimulator sim = new ChIPReadSimulator(model, genome, counts, 2, 2, 0.5, 0.2, 200, out.getPath()+File.separator+"out", seed);
+		sim.setTotalReads(30000);
+		sim.setReadLength(32);
+		sim.setThreads(threads);
+		sim.setOutputFormat(format);
+		sim.printEvents();
+		sim.simulateReads();
+		sim.close();
+		return out;
+	}
+
+	private static void assertSameFiles(File a, File b) throws IOException {
+		String[] names = a.list();
+		Arrays.sort(names);
+		String[] other = b.list();
+		Arrays.sort(other);
+		assertArrayEquals(names, other);
+		assertTrue(names.length > 1);
+		for(String n : names)
+			assertTrue(n, Arrays.equals(Files.readAllBytes(new File(a, n).toPath()), Files.readAllBytes(new File(b, n).toPath())));
+	}
+
+	@Test public void testThreadsBED() throws IOException {
+		assertSameFiles(simulate("t1", 17, 1, "BED"), simulate("t4", 17, 4, "BED"));
+	}
+
+	@Test public void testThreadsSAM() throws IOException {
+		assertSameFiles(simulate("t1", 23, 1, "SAM"), simulate("t4", 23, 4, "SAM"));
+	}
+
+	@Test public void testSeedMatters() throws IOException {
+		File a = simulate("s1", 1, 2, "BED"), b = simulate("s2", 2, 2, "BED");
+		assertFalse(Arrays.equals(Files.readAllBytes(new File(a, "out.events").toPath()), Files.readAllBytes(new File(b, "out.events").toPath())));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.deepseq.utils.simulation.unittests.TestChIPReadSimulator");
+	}
+
+}
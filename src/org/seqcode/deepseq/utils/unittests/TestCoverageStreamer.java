@@ -0,0 +1,126 @@
+package org.seqcode.deepseq.utils.unittests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+import org.seqcode.deepseq.experiments.ExptConfig;
+import org.seqcode.deepseq.experiments.Sample;
+import org.seqcode.deepseq.hitloaders.BEDFileHitLoader;
+import org.seqcode.deepseq.utils.CoverageStreamer;
+import org.seqcode.genome.Genome;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that CoverageStreamer gives the same output for any number of threads, 
+ * both from the in-memory hit cache and from the local file cache
+ */
+public class TestCoverageStreamer {
+
+	private File dir;
+	private Genome genome;
+	private File bed;
+
+	@Before public void setUp() throws IOException {
+		dir = Files.createTempDirectory("TestCoverageStreamer").toFile();
+		Map<String,Integer> lengths = new HashMap<String,Integer>();
+		lengths.put("1", 120000);
+		lengths.put("2", 90000);
+		lengths.put("3", 60000);
+		lengths.put("4", 30000);
+		lengths.put("5", 20000);
+		genome = new Genome("test", lengths);
+		bed = new File(dir, "reads.bed");
+		Random rand = new Random(5);
+		FileWriter fw = new FileWriter(bed);
+		for(String chr : lengths.keySet()){
+			int len = lengths.get(chr);
+			for(int i=0; i<len/50; i++){
+				int start = rand.nextInt(len-40);
+				fw.write("chr"+chr+"\t"+start+"\t"+(start+36)+"\tr\t0\t"+(rand.nextBoolean() ? '+' : '-')+"\n");
+			}
+		}
+		fw.close();
+	}
+
+	@After public void tearDown() throws IOException {
+		delete(dir);
+	}
+
+	private static void delete(File f) throws IOException {
+		File[] children = f.listFiles();
+		if(children!=null)
+			for(File c : children)
+				delete(c);
+		Files.deleteIfExists(f.toPath());
+	}
+
+	private Sample load(boolean cacheEntireGenome){
+		ExptConfig econfig = new ExptConfig(genome, new String[]{"--nocache"});
+		econfig.setFileCacheDirName(dir.getPath()+File.separator+"hitcache");
+		Sample s = new Sample(0, econfig, "s", -1, true);
+		s.addHitLoader(new BEDFileHitLoader(bed, true, true, false, false));
+		s.initializeCache(cacheEntireGenome, null);
+		return s;
+	}
+
+	/* Writes each chromosome's positions to section 0 and its windowed coverage to section 1 */
+	private static String[] export(final Sample s, int threads) throws IOException {
+		final CoverageStreamer cs = new CoverageStreamer(s.getGenome(), 36, 0, 100, 50, -1, threads);
+		ByteArrayOutputStream pos = new ByteArrayOutputStream(), cov = new ByteArrayOutputStream();
+		cs.forEachChrom(new CoverageStreamer.ChromTask(){
+			public void run(final String chrom, int chromLen, OutputStream[] sections) throws IOException {
+				final Writer pw = new OutputStreamWriter(sections[0]);
+				CoverageStreamer.forEachPosition(cs.getHits(s, chrom, '+'), cs.getHits(s, chrom, '-'), new CoverageStreamer.PositionHandler(){
+					public void position(int p, float plus, float minus) throws IOException {
+						pw.write(chrom+"\t"+p+"\t"+plus+"\t"+minus+"\n");
+					}
+				});
+				pw.flush();
+				final Writer cw = new OutputStreamWriter(sections[1]);
+				cs.streamCoverage(s, chrom, chromLen, '.', new CoverageStreamer.CoverageHandler(){
+					public void bins(int firstBin, double[] values, int numBins) throws IOException {
+						for(int i=0; i<numBins; i++)
+							cw.write(chrom+"\t"+(firstBin+i)+"\t"+values[i]+"\n");
+					}
+				});
+				cw.flush();
+			}
+		}, new OutputStream[]{pos, cov});
+		return new String[]{pos.toString(), cov.toString()};
+	}
+
+	@Test public void testThreadsMemoryCache() throws IOException {
+		Sample s = load(true);
+		String[] serial = export(s, 1);
+		assertTrue(serial[0].length()>0);
+		assertArrayEquals(serial, export(s, 4));
+		s.close();
+	}
+
+	@Test public void testThreadsFileCache() throws IOException {
+		Sample mem = load(true);
+		String[] serial = export(mem, 1);
+		mem.close();
+		Sample s = load(false);
+		assertArrayEquals(serial, export(s, 1));
+		for(int i=0; i<3; i++)
+			assertArrayEquals(serial, export(s, 5));
+		s.close();
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.deepseq.utils.unittests.TestCoverageStreamer");
+	}
+
+}
@@ -145,7 +145,7 @@ public class GenomeConfig {
 	
 	//Accessors
 	public Genome getGenome(){return gen;}
-	public SequenceGenerator getSequenceGenerator(){return seqgen;}
+	public SequenceGenerator<Region> getSequenceGenerator(){return seqgen;}
 	public String getGenomeSequencePath(){return genomeSequencePath;}
 	public boolean sequenceAvailable(){return sequenceAvailable;}
 	public boolean helpWanted(){return printHelp;}
@@ -0,0 +1,119 @@
+package org.seqcode.genome.location;
+
+import java.util.Arrays;
+
+/**
+ * IntervalIndex: a static overlap index over the closed integer intervals of a single chromosome.
+ *
+ * Implemented as an implicit augmented interval tree (after Heng Li's cgranges): intervals are sorted by start,
+ * the sorted array is treated as an in-order binary tree, and each node stores the maximum end coordinate
+ * in its subtree. Overlap queries cost O(log n + hits) and the whole index is a handful of primitive arrays.
+ *
+ * Intervals are identified by their position in the arrays passed to the constructor.
+ */
+public class IntervalIndex {
+
+	private int[] starts, ends, maxEnds; //sorted by start; ends are half-open internally
+	private int[] ids;
+	private int maxLevel;
+
+	/**
+	 * @param starts interval starts (inclusive)
+	 * @param ends interval ends (inclusive)
+	 */
+	public IntervalIndex(int[] starts, int[] ends){
+		int n = starts.length;
+		if(ends.length!=n)
+			throw new IllegalArgumentException("starts and ends must be the same length");
+		//Sort ids by start without boxing: pack start (high half, signed) & id (low half) into a long
+		long[] keys = new long[n];
+		for(int i=0; i<n; i++)
+			keys[i] = ((long)starts[i]<<32) | i;
+		Arrays.sort(keys);
+		this.starts = new int[n];
+		this.ends = new int[n];
+		this.maxEnds = new int[n];
+		this.ids = new int[n];
+		for(int x=0; x<n; x++){
+			int i = (int)(keys[x] & 0xffffffffL);
+			ids[x] = i;
+			this.starts[x] = starts[i];
+			this.ends[x] = ends[i]+1;
+		}
+		maxLevel = index();
+	}
+
+	public int size(){return ids.length;}
+
+	/**
+	 * Bottom-up computation of subtree max ends
+	 * @return the level of the root
+	 */
+	private int index(){
+		int n = ids.length;
+		if(n==0)
+			return -1;
+		int lastI=0, last=0, k;
+		for(int i=0; i<n; i+=2){
+			lastI=i;
+			last = maxEnds[i] = ends[i];
+		}
+		for(k=1; (1L<<k)<=n; k++){
+			int x = 1<<(k-1), i0 = (x<<1)-1, step = x<<2;
+			for(int i=i0; i<n; i+=step){
+				int el = maxEnds[i-x];
+				int er = i+x<n ? maxEnds[i+x] : last;
+				maxEnds[i] = Math.max(ends[i], Math.max(el, er));
+			}
+			lastI = ((lastI>>k)&1)!=0 ? lastI-x : lastI+x;
+			if(lastI<n && maxEnds[lastI]>last)
+				last = maxEnds[lastI];
+		}
+		return k-1;
+	}
+
+	/**
+	 * Ids of all intervals that overlap the closed interval [start, end], ordered by interval start
+	 */
+	public int[] overlapping(int start, int end){
+		int n = ids.length;
+		int[] hits = new int[16];
+		int numHits=0;
+		if(n==0)
+			return new int[0];
+		int qs = start, qe = end+1;
+		int[] stackK = new int[64], stackX = new int[64], stackW = new int[64];
+		int t=0;
+		stackK[t]=maxLevel; stackX[t]=(1<<maxLevel)-1; stackW[t++]=0;
+		while(t>0){
+			t--;
+			int zk = stackK[t], zx = stackX[t], zw = stackW[t];
+			if(zk<=3){ //small subtree: linear scan
+				int i0 = zx>>zk<<zk, i1 = Math.min(n, i0+(1<<(zk+1))-1);
+				for(int i=i0; i<i1 && starts[i]<qe; i++){
+					if(qs<ends[i]){
+						if(numHits==hits.length) hits = Arrays.copyOf(hits, hits.length*2);
+						hits[numHits++]=i;
+					}
+				}
+			}else if(zw==0){ //left child not yet processed
+				int y = zx-(1<<(zk-1));
+				stackK[t]=zk; stackX[t]=zx; stackW[t++]=1;
+				if(y>=n || maxEnds[y]>qs){
+					stackK[t]=zk-1; stackX[t]=y; stackW[t++]=0;
+				}
+			}else if(zx<n && starts[zx]<qe){
+				if(qs<ends[zx]){
+					if(numHits==hits.length) hits = Arrays.copyOf(hits, hits.length*2);
+					hits[numHits++]=zx;
+				}
+				stackK[t]=zk-1; stackX[t]=zx+(1<<(zk-1)); stackW[t++]=0;
+			}
+		}
+		//Traversal is in-order, so sorted positions map straight back to ids
+		int[] out = new int[numHits];
+		for(int h=0; h<numHits; h++)
+			out[h]=ids[hits[h]];
+		return out;
+	}
+}
@@ -0,0 +1,193 @@
+package org.seqcode.genome.location;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.seqcode.genome.Genome;
+
+/**
+ * PointSet: a compact, sorted collection of points, the single-base counterpart of RegionSet.
+ *
+ * Locations and (optionally) strands and scores are held in primitive arrays sorted by chromosome name and
+ * location. Point objects (StrandedPoint, ScoredPoint or ScoredStrandedPoint as appropriate) are only made as
+ * views. Because points are sorted, the points in any window are a contiguous range found by binary search.
+ *
+ * As in RegionSet, each point carries the id of the order in which it was added or read.
+ */
+public class PointSet implements Iterable<Point> {
+
+	protected RegionSet points; //start==end; the starts & ends are one array
+
+	protected PointSet(RegionSet points){
+		this.points = points;
+	}
+
+	/**
+	 * Collects points in any order; build() sorts them into a PointSet
+	 */
+	public static class Builder {
+		private RegionSet.Builder b;
+
+		public Builder(Genome g){this(g, 1024);}
+		public Builder(Genome g, int initialCapacity){
+			b = new RegionSet.Builder(g, initialCapacity);
+		}
+
+		public int size(){return b.size();}
+		public Builder add(String chr, int location){b.add(chr, location, location); return this;}
+		public Builder add(String chr, int location, char strand){b.add(chr, location, location, strand); return this;}
+		public Builder add(String chr, int location, char strand, double score){b.add(chr, location, location, strand, score); return this;}
+		public Builder add(Point p){
+			char strand = p instanceof Stranded ? ((Stranded)p).getStrand() : ' ';
+			if(p instanceof Scored)
+				b.add(p.getChrom(), p.getLocation(), p.getLocation(), strand, ((Scored)p).getScore());
+			else if(p instanceof Stranded)
+				b.add(p.getChrom(), p.getLocation(), p.getLocation(), strand);
+			else
+				b.add(p.getChrom(), p.getLocation(), p.getLocation());
+			return this;
+		}
+
+		public PointSet build(){
+			return new PointSet(b.build(true));
+		}
+	}
+
+	//Accessors, by sorted position
+	public int size(){return points.size();}
+	public Genome getGenome(){return points.getGenome();}
+	public List<String> getChroms(){return points.getChroms();}
+	public String getChrom(int i){return points.getChrom(i);}
+	public int getLocation(int i){return points.starts[i];}
+	public int getId(int i){return points.ids[i];}
+	public boolean isStranded(){return points.isStranded();}
+	public char getStrand(int i){return points.getStrand(i);}
+	public boolean hasScores(){return points.hasScores();}
+	public double getScore(int i){return points.getScore(i);}
+	public int[] inputOrder(){return points.inputOrder();}
+	public int[] chromRange(String chr){return points.chromRange(chr);}
+
+	/**
+	 * Point i as an object (StrandedPoint, ScoredPoint or ScoredStrandedPoint if the set has strands or scores)
+	 */
+	public Point getPoint(int i){
+		Genome g = points.genome;
+		String chr = getChrom(i);
+		int loc = points.starts[i];
+		if(points.strands!=null && points.scores!=null)
+			return new ScoredStrandedPoint(g, chr, loc, points.scores[i], points.strands[i]);
+		else if(points.strands!=null)
+			return new StrandedPoint(g, chr, loc, points.strands[i]);
+		else if(points.scores!=null)
+			return new ScoredPoint(g, chr, loc, points.scores[i]);
+		return new Point(g, chr, loc);
+	}
+
+	/**
+	 * A read-only list view in sorted order; Points are made as elements are accessed
+	 */
+	public List<Point> asList(){
+		return new AbstractList<Point>(){
+			public Point get(int i){return getPoint(i);}
+			public int size(){return points.size();}
+		};
+	}
+
+	public Iterator<Point> iterator(){return asList().iterator();}
+
+	/**
+	 * Sorted positions [first, last+1) of the points in [start, end] on a chromosome
+	 */
+	public int[] within(String chr, int start, int end){
+		int c = points.chromIndex(chr);
+		if(c<0)
+			return new int[]{0,0};
+		int from = points.chromOffsets[c], to = points.chromOffsets[c+1];
+		int first = RegionSet.lowerBound(points.starts, from, to, start);
+		return new int[]{first, Math.max(first, RegionSet.upperBound(points.starts, from, to, end))};
+	}
+
+	/**
+	 * Number of points in [start, end] on a chromosome
+	 */
+	public int countWithin(String chr, int start, int end){
+		int[] r = within(chr, start, end);
+		return r[1]-r[0];
+	}
+
+	/**
+	 * Position of the point closest to a location (the leftmost of ties), or -1
+	 */
+	public int nearest(String chr, int location){
+		int c = points.chromIndex(chr);
+		if(c<0)
+			return -1;
+		int from = points.chromOffsets[c], to = points.chromOffsets[c+1];
+		int right = RegionSet.lowerBound(points.starts, from, to, location);
+		if(right==to)
+			return to-1;
+		if(right==from)
+			return from;
+		return (long)location-points.starts[right-1] <= (long)points.starts[right]-location ? right-1 : right;
+	}
+
+	/**
+	 * Regions of distance bases either side of each point, clipped to the chromosome (as Point.expand).
+	 * Strands, scores and ids are kept.
+	 */
+	public RegionSet expand(int distance){
+		return points.expandAroundMidpoints(distance);
+	}
+
+	/**
+	 * Regions of upstream bases before and downstream bases after each point, taking '-' strand points
+	 * as reversed. Strands, scores and ids are kept.
+	 */
+	public RegionSet expand(int upstream, int downstream){
+		RegionSet.Builder b = new RegionSet.Builder(points.genome, size());
+		for(int i=0; i<size(); i++){
+			int len = points.chromLength(getChrom(i));
+			int loc = points.starts[i];
+			boolean minus = getStrand(i)=='-';
+			long s = Math.max(1, (long)loc-(minus ? downstream : upstream));
+			long e = Math.min(len, (long)loc+(minus ? upstream : downstream));
+			if(s<=e)
+				b.add(points, i, (int)s, (int)e);
+		}
+		return b.build();
+	}
+
+	/**
+	 * Load points from a peak file, as RegionFileUtilities.loadPeaksFromPeakFile does: a point in the third
+	 * column, or a point (or the midpoint of a region) in the first. Strands given as chr:pos:strand are kept.
+	 */
+	public static PointSet loadPoints(Genome g, String filename) throws IOException{
+		Builder b = new Builder(g);
+		BufferedReader reader = new BufferedReader(new FileReader(new File(filename)), 1<<16);
+		try{
+			String line;
+			int[] f = new int[2*3];
+			RegionSet.Location loc = new RegionSet.Location();
+			while((line = reader.readLine()) != null){
+				int n = RegionSet.splitFields(line, f, 3);
+				if(n==0 || RegionSet.skipLine(line, f))
+					continue;
+				if((n>=3 && loc.parse(line, f[4], f[5])) || loc.parse(line, f[0], f[1])){
+					int pos = loc.isRegion ? (loc.start+loc.end)/2 : loc.start;
+					if(loc.strand!=' ')
+						b.add(loc.chrom, pos, loc.strand);
+					else
+						b.add(loc.chrom, pos);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		return b.build();
+	}
+}
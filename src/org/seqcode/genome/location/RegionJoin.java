@@ -0,0 +1,323 @@
+package org.seqcode.genome.location;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.seqcode.genome.Genome;
+
+/**
+ * RegionJoin: overlap joins, closest-region queries and set operations between two collections of Regions.
+ *
+ * Both collections are split by chromosome into SortedIntervals and each chromosome is processed as an
+ * independent task on a fixed thread pool. Results are reported by index into the collections as given
+ * (in their iteration order), so callers can keep whatever Region subclass they started with.
+ *
+ * The static methods (merge, union, intersect, subtract, coverage) return new Regions sorted by chromosome and start.
+ */
+public class RegionJoin<A extends Region, B extends Region> {
+
+	private List<A> first;
+	private List<B> second;
+	private Map<String, SortedIntervals> firstByChrom, secondByChrom;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	public RegionJoin(Collection<? extends A> first, Collection<? extends B> second){
+		this.first = new ArrayList<A>(first);
+		this.second = new ArrayList<B>(second);
+		firstByChrom = byChrom(this.first);
+		secondByChrom = byChrom(this.second);
+	}
+
+	public List<A> getFirst(){return first;}
+	public List<B> getSecond(){return second;}
+	public void setNumThreads(int t){numThreads = Math.max(1, t);}
+
+	/**
+	 * Calls the handler with (first index, second index) for every pair of regions that overlap once
+	 * the first region is expanded by window on both sides. Calls for one chromosome are made from
+	 * one thread, but different chromosomes are joined concurrently.
+	 */
+	public void join(final int window, final SortedIntervals.OverlapHandler h){
+		forEachChrom(new ChromTask(){
+			public void run(SortedIntervals a, SortedIntervals b) {
+				a.join(b, window, h);
+			}
+		});
+	}
+
+	/**
+	 * For each region in the first collection, the number of regions in the second that it overlaps (after expanding by window)
+	 */
+	public int[] countOverlaps(final int window){
+		final int[] counts = new int[first.size()];
+		forEachChrom(new ChromTask(){
+			public void run(SortedIntervals a, SortedIntervals b) {
+				a.join(b, window, new SortedIntervals.OverlapHandler(){
+					public void overlap(int id, int otherId) { counts[id]++; }
+				});
+			}
+		});
+		return counts;
+	}
+
+	/**
+	 * For each region in the first collection, the index of the lowest-start region in the second that it overlaps
+	 * (after expanding by window), or -1
+	 */
+	public int[] firstOverlap(final int window){
+		final int[] hits = new int[first.size()];
+		Arrays.fill(hits, -1);
+		forEachChrom(new ChromTask(){
+			public void run(SortedIntervals a, SortedIntervals b) {
+				a.join(b, window, new SortedIntervals.OverlapHandler(){
+					public void overlap(int id, int otherId) {
+						if(hits[id]==-1) hits[id]=otherId;
+					}
+				});
+			}
+		});
+		return hits;
+	}
+
+	/**
+	 * For each region in the first collection, the indices of the k closest regions in the second
+	 * (on the same chromosome), nearest first
+	 */
+	public int[][] closest(final int k){
+		final int[][] hits = new int[first.size()][];
+		forEachChrom(new ChromTask(){
+			public void run(SortedIntervals a, SortedIntervals b) {
+				for(int i=0; i<a.size(); i++)
+					hits[a.getId(i)] = b.closest(a.getStart(i), a.getEnd(i), k);
+			}
+		});
+		for(int i=0; i<hits.length; i++)
+			if(hits[i]==null)
+				hits[i] = new int[0];
+		return hits;
+	}
+
+	/**
+	 * For each region in the first collection, the index of the closest region in the second, or -1
+	 */
+	public int[] nearest(){
+		int[][] hits = closest(1);
+		int[] nearest = new int[hits.length];
+		for(int i=0; i<hits.length; i++)
+			nearest[i] = hits[i].length>0 ? hits[i][0] : -1;
+		return nearest;
+	}
+
+	private interface ChromTask {
+		public void run(SortedIntervals a, SortedIntervals b);
+	}
+
+	/* runs the task on every chromosome present in both collections */
+	private void forEachChrom(final ChromTask task){
+		List<String> chroms = new ArrayList<String>();
+		for(String c : firstByChrom.keySet())
+			if(secondByChrom.containsKey(c))
+				chroms.add(c);
+		//Largest chromosomes first, for better load balance
+		Collections.sort(chroms, new Comparator<String>(){
+			public int compare(String x, String y) {
+				return Integer.compare(firstByChrom.get(y).size()+secondByChrom.get(y).size(), firstByChrom.get(x).size()+secondByChrom.get(x).size());
+			}
+		});
+		if(numThreads==1 || chroms.size()<2){
+			for(String c : chroms)
+				task.run(firstByChrom.get(c), secondByChrom.get(c));
+			return;
+		}
+		ExecutorService exec = Executors.newFixedThreadPool(Math.min(numThreads, chroms.size()));
+		try{
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(final String c : chroms)
+				futures.add(exec.submit(new Runnable(){
+					public void run() { task.run(firstByChrom.get(c), secondByChrom.get(c)); }
+				}));
+			for(Future<?> f : futures)
+				f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}catch(ExecutionException e){
+			throw new RuntimeException(e.getCause());
+		}finally{
+			exec.shutdown();
+		}
+	}
+
+	/**
+	 * Splits regions by chromosome; ids are indices into the list
+	 */
+	private static Map<String, SortedIntervals> byChrom(List<? extends Region> regions){
+		Map<String, int[]> counts = new HashMap<String, int[]>();
+		for(Region r : regions){
+			int[] c = counts.get(r.getChrom());
+			if(c==null) counts.put(r.getChrom(), c = new int[1]);
+			c[0]++;
+		}
+		Map<String, int[][]> arrays = new HashMap<String, int[][]>();
+		for(String c : counts.keySet()){
+			int n = counts.get(c)[0];
+			arrays.put(c, new int[][]{new int[n], new int[n], new int[n]});
+			counts.get(c)[0]=0;
+		}
+		for(int i=0; i<regions.size(); i++){
+			Region r = regions.get(i);
+			int[][] a = arrays.get(r.getChrom());
+			int x = counts.get(r.getChrom())[0]++;
+			a[0][x] = r.getStart();
+			a[1][x] = r.getEnd();
+			a[2][x] = i;
+		}
+		Map<String, SortedIntervals> out = new HashMap<String, SortedIntervals>();
+		for(String c : arrays.keySet()){
+			int[][] a = arrays.get(c);
+			out.put(c, new SortedIntervals(a[0], a[1], a[2]));
+		}
+		return out;
+	}
+
+	/* genome for each chromosome, taken from the input regions */
+	@SafeVarargs
+	private static Map<String, Genome> genomes(Collection<? extends Region>... sets){
+		Map<String, Genome> genomes = new HashMap<String, Genome>();
+		for(Collection<? extends Region> set : sets)
+			for(Region r : set)
+				if(!genomes.containsKey(r.getChrom()))
+					genomes.put(r.getChrom(), r.getGenome());
+		return genomes;
+	}
+
+	private static List<Region> toRegions(Map<String, SortedIntervals> byChrom, Map<String, Genome> genomes){
+		List<String> chroms = new ArrayList<String>(byChrom.keySet());
+		Collections.sort(chroms);
+		List<Region> out = new ArrayList<Region>();
+		for(String c : chroms){
+			SortedIntervals s = byChrom.get(c);
+			for(int i=0; i<s.size(); i++)
+				out.add(new Region(genomes.get(c), c, s.getStart(i), s.getEnd(i)));
+		}
+		return out;
+	}
+
+	private interface SetOperation {
+		public SortedIntervals apply(SortedIntervals a, SortedIntervals b);
+	}
+
+	private static List<Region> combine(Collection<? extends Region> a, Collection<? extends Region> b, SetOperation op, boolean keepUnmatchedSecond){
+		Map<String, SortedIntervals> aByChrom = byChrom(new ArrayList<Region>(a)), bByChrom = byChrom(new ArrayList<Region>(b));
+		Map<String, SortedIntervals> out = new HashMap<String, SortedIntervals>();
+		SortedIntervals empty = new SortedIntervals(new int[0], new int[0]);
+		for(String c : aByChrom.keySet())
+			out.put(c, op.apply(aByChrom.get(c), bByChrom.containsKey(c) ? bByChrom.get(c) : empty));
+		if(keepUnmatchedSecond)
+			for(String c : bByChrom.keySet())
+				if(!aByChrom.containsKey(c))
+					out.put(c, op.apply(empty, bByChrom.get(c)));
+		return toRegions(out, genomes(a, b));
+	}
+
+	/**
+	 * Merges overlapping regions
+	 */
+	public static List<Region> merge(Collection<? extends Region> regions){
+		return mergeWithin(regions, 0);
+	}
+
+	/**
+	 * Merges regions that overlap or are separated by fewer than distance bases
+	 */
+	public static List<Region> mergeWithin(Collection<? extends Region> regions, int distance){
+		Map<String, SortedIntervals> byChrom = byChrom(new ArrayList<Region>(regions));
+		for(String c : byChrom.keySet())
+			byChrom.put(c, byChrom.get(c).mergeWithin(distance));
+		return toRegions(byChrom, genomes(regions));
+	}
+
+	/**
+	 * Bases covered by either collection, as disjoint regions
+	 */
+	public static List<Region> union(Collection<? extends Region> a, Collection<? extends Region> b){
+		return combine(a, b, new SetOperation(){
+			public SortedIntervals apply(SortedIntervals x, SortedIntervals y) { return x.union(y); }
+		}, true);
+	}
+
+	/**
+	 * Bases covered by both collections, as disjoint regions
+	 */
+	public static List<Region> intersect(Collection<? extends Region> a, Collection<? extends Region> b){
+		return combine(a, b, new SetOperation(){
+			public SortedIntervals apply(SortedIntervals x, SortedIntervals y) { return x.intersect(y); }
+		}, false);
+	}
+
+	/**
+	 * Bases covered by the first collection but not the second, as disjoint regions
+	 */
+	public static List<Region> subtract(Collection<? extends Region> a, Collection<? extends Region> b){
+		return combine(a, b, new SetOperation(){
+			public SortedIntervals apply(SortedIntervals x, SortedIntervals y) { return x.subtract(y); }
+		}, false);
+	}
+
+	/**
+	 * Maximal stretches covered by at least threshold regions
+	 */
+	public static List<Region> coverage(Collection<? extends Region> regions, int threshold){
+		Map<String, SortedIntervals> byChrom = byChrom(new ArrayList<Region>(regions));
+		for(String c : byChrom.keySet())
+			byChrom.put(c, byChrom.get(c).depthAtLeast(threshold));
+		return toRegions(byChrom, genomes(regions));
+	}
+
+	/**
+	 * Benchmark: joins two random region sets of the given size.
+	 *
+	 * java org.seqcode.genome.location.RegionJoin [numRegions] [threads]
+	 */
+	public static void main(String[] args){
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 1000000;
+		int threads = args.length>1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		Random rand = new Random(42);
+		String[] chroms = new String[20];
+		Map<String, Integer> lengths = new HashMap<String, Integer>();
+		for(int c=0; c<chroms.length; c++){
+			chroms[c] = String.valueOf(c+1);
+			lengths.put(chroms[c], 100001000);
+		}
+		Genome g = new Genome("Benchmark", lengths);
+		List<Region> a = new ArrayList<Region>(n), b = new ArrayList<Region>(n);
+		for(int i=0; i<n; i++){
+			int s = rand.nextInt(100000000);
+			a.add(new Region(g, chroms[rand.nextInt(chroms.length)], s, s+rand.nextInt(1000)));
+			s = rand.nextInt(100000000);
+			b.add(new Region(g, chroms[rand.nextInt(chroms.length)], s, s+rand.nextInt(1000)));
+		}
+		long t0 = System.currentTimeMillis();
+		RegionJoin<Region,Region> join = new RegionJoin<Region,Region>(a, b);
+		join.setNumThreads(threads);
+		long t1 = System.currentTimeMillis();
+		int[] counts = join.countOverlaps(0);
+		long t2 = System.currentTimeMillis();
+		int[] nearest = join.nearest();
+		long t3 = System.currentTimeMillis();
+		List<Region> merged = merge(a);
+		long t4 = System.currentTimeMillis();
+		long pairs=0;
+		for(int c : counts) pairs+=c;
+		int found=0;
+		for(int x : nearest) if(x>=0) found++;
+		System.out.println(String.format("%d x %d regions, %d threads", n, n, threads));
+		System.out.println(String.format("index: %d ms", t1-t0));
+		System.out.println(String.format("overlap join: %d ms (%d pairs)", t2-t1, pairs));
+		System.out.println(String.format("nearest: %d ms (%d found)", t3-t2, found));
+		System.out.println(String.format("merge: %d ms (%d merged regions)", t4-t3, merged.size()));
+	}
+}
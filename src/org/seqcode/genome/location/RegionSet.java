@@ -0,0 +1,637 @@
+package org.seqcode.genome.location;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.seqcode.genome.Genome;
+
+/**
+ * RegionSet: a compact, sorted collection of regions.
+ *
+ * Starts, ends and (optionally) strands and scores are held in primitive arrays sorted as Region.compareTo sorts
+ * (chromosome name, then start, then end), each chromosome occupying a contiguous block. A million regions take
+ * 12-20MB here, against 60-80MB as a List<Region>. Region objects are only made as views (getRegion, asList,
+ * iterator); intervals(chrom) exposes a chromosome to the SortedIntervals joins and set operations.
+ *
+ * Each region carries an id: the order in which it was added to the Builder (or read from a file), so that
+ * the input order can be recovered (inputOrder). Sets made by expand/flanks keep the ids of their sources.
+ */
+public class RegionSet implements Iterable<Region> {
+
+	protected Genome genome;
+	protected String[] chroms;			//sorted chromosome names
+	protected int[] chromOffsets;		//regions on chroms[c] are at [chromOffsets[c], chromOffsets[c+1])
+	protected int[] maxLengths;			//[chromosome] greatest end-start, bounds the overlap searches
+	protected int[] starts, ends, ids;	//[region]
+	protected char[] strands=null;		//[region], null if unstranded
+	protected double[] scores=null;		//[region], null if unscored
+
+	protected RegionSet(Genome g, String[] chroms, int[] chromOffsets, int[] starts, int[] ends, int[] ids, char[] strands, double[] scores){
+		this.genome = g;
+		this.chroms = chroms;
+		this.chromOffsets = chromOffsets;
+		this.starts = starts;
+		this.ends = ends;
+		this.ids = ids;
+		this.strands = strands;
+		this.scores = scores;
+		maxLengths = new int[chroms.length];
+		if(ends!=starts)
+			for(int c=0; c<chroms.length; c++)
+				for(int i=chromOffsets[c]; i<chromOffsets[c+1]; i++)
+					maxLengths[c] = Math.max(maxLengths[c], ends[i]-starts[i]);
+	}
+
+	/**
+	 * Collects regions in any order; build() sorts them into a RegionSet
+	 */
+	public static class Builder {
+		private Genome genome;
+		private Map<String,Integer> chromIndex = new HashMap<String,Integer>();
+		private List<String> chromNames = new ArrayList<String>();
+		private int[] chrom, starts, ends, ids;
+		private char[] strands=null;
+		private double[] scores=null;
+		private int n=0;
+
+		public Builder(Genome g){this(g, 1024);}
+		public Builder(Genome g, int initialCapacity){
+			genome = g;
+			int cap = Math.max(initialCapacity, 16);
+			chrom = new int[cap];
+			starts = new int[cap];
+			ends = new int[cap];
+			ids = new int[cap];
+		}
+
+		public int size(){return n;}
+
+		public Builder add(String chr, int start, int end){
+			append(chr, start, end, n);
+			return this;
+		}
+		public Builder add(String chr, int start, int end, char strand){
+			setStrand(append(chr, start, end, n), strand);
+			return this;
+		}
+		public Builder add(String chr, int start, int end, char strand, double score){
+			int i = append(chr, start, end, n);
+			setStrand(i, strand);
+			setScore(i, score);
+			return this;
+		}
+		public Builder add(Region r){
+			int i = append(r.getChrom(), r.getStart(), r.getEnd(), n);
+			if(r instanceof Stranded)
+				setStrand(i, ((Stranded)r).getStrand());
+			if(r instanceof Scored)
+				setScore(i, ((Scored)r).getScore());
+			return this;
+		}
+
+		/* Add a region from another set, keeping its id, strand & score */
+		void add(RegionSet s, int i, int start, int end){
+			int j = append(s.getChrom(i), start, end, s.ids[i]);
+			if(s.strands!=null)
+				setStrand(j, s.strands[i]);
+			if(s.scores!=null)
+				setScore(j, s.scores[i]);
+		}
+
+		private int append(String chr, int start, int end, int id){
+			if(start>end)
+				throw new IllegalArgumentException(String.format("Start > End for this region : %d > %d", start, end));
+			if(n==starts.length)
+				grow();
+			Integer c = chromIndex.get(chr);
+			if(c==null){
+				c = chromNames.size();
+				chromNames.add(chr);
+				chromIndex.put(chr, c);
+			}
+			chrom[n] = c;
+			starts[n] = start;
+			ends[n] = end;
+			ids[n] = id;
+			return n++;
+		}
+		private void setStrand(int i, char strand){
+			if(strands==null){
+				strands = new char[starts.length];
+				Arrays.fill(strands, ' ');
+			}
+			strands[i] = strand;
+		}
+		private void setScore(int i, double score){
+			if(scores==null)
+				scores = new double[starts.length];
+			scores[i] = score;
+		}
+		private void grow(){
+			int cap = starts.length*2;
+			chrom = Arrays.copyOf(chrom, cap);
+			starts = Arrays.copyOf(starts, cap);
+			ends = Arrays.copyOf(ends, cap);
+			ids = Arrays.copyOf(ids, cap);
+			if(strands!=null){
+				int old = strands.length;
+				strands = Arrays.copyOf(strands, cap);
+				Arrays.fill(strands, old, cap, ' ');
+			}
+			if(scores!=null)
+				scores = Arrays.copyOf(scores, cap);
+		}
+
+		public RegionSet build(){
+			return build(false);
+		}
+
+		/* Sort by chromosome name, start & end. Sets of points (start==end) share one array for starts & ends */
+		RegionSet build(boolean points){
+			String[] names = chromNames.toArray(new String[chromNames.size()]);
+			Arrays.sort(names);
+			int numC = names.length;
+			int[] rank = new int[numC];
+			for(int c=0; c<numC; c++)
+				rank[chromIndex.get(names[c])] = c;
+			int[] offsets = new int[numC+1];
+			for(int i=0; i<n; i++)
+				offsets[rank[chrom[i]]+1]++;
+			for(int c=0; c<numC; c++)
+				offsets[c+1] += offsets[c];
+			//Bucket by chromosome, keeping insertion order within each
+			int[] byChrom = new int[n], fill = Arrays.copyOf(offsets, numC);
+			for(int i=0; i<n; i++)
+				byChrom[fill[rank[chrom[i]]]++] = i;
+
+			int[] s = new int[n], e = points ? s : new int[n], id = new int[n];
+			char[] st = strands==null ? null : new char[n];
+			double[] sc = scores==null ? null : new double[n];
+			for(int c=0; c<numC; c++){
+				int from = offsets[c], m = offsets[c+1]-from;
+				int[] cs = new int[m], ce = new int[m];
+				for(int x=0; x<m; x++){
+					cs[x] = starts[byChrom[from+x]];
+					ce[x] = ends[byChrom[from+x]];
+				}
+				int[] order = SortedIntervals.sortOrder(cs, ce, m);
+				for(int x=0; x<m; x++){
+					int i = byChrom[from+order[x]];
+					s[from+x] = starts[i];
+					e[from+x] = ends[i];
+					id[from+x] = ids[i];
+					if(st!=null) st[from+x] = strands[i];
+					if(sc!=null) sc[from+x] = scores[i];
+				}
+			}
+			return new RegionSet(genome, names, offsets, s, e, id, st, sc);
+		}
+	}
+
+	//Accessors, by sorted position
+	public int size(){return starts.length;}
+	public Genome getGenome(){return genome;}
+	public List<String> getChroms(){return Collections.unmodifiableList(Arrays.asList(chroms));}
+	public String getChrom(int i){return chroms[chromOf(i)];}
+	public int getStart(int i){return starts[i];}
+	public int getEnd(int i){return ends[i];}
+	public int getWidth(int i){return ends[i]-starts[i]+1;}
+	public int getId(int i){return ids[i];}
+	public boolean isStranded(){return strands!=null;}
+	public char getStrand(int i){return strands==null ? ' ' : strands[i];}
+	public boolean hasScores(){return scores!=null;}
+	public double getScore(int i){return scores==null ? 0 : scores[i];}
+
+	/**
+	 * Region i as an object (StrandedRegion, ScoredRegion or ScoredStrandedRegion if the set has strands or scores)
+	 */
+	public Region getRegion(int i){
+		String chr = getChrom(i);
+		if(strands!=null && scores!=null)
+			return new ScoredStrandedRegion(genome, chr, starts[i], ends[i], scores[i], strands[i]);
+		else if(strands!=null)
+			return new StrandedRegion(genome, chr, starts[i], ends[i], strands[i]);
+		else if(scores!=null)
+			return new ScoredRegion(genome, chr, starts[i], ends[i], scores[i]);
+		return new Region(genome, chr, starts[i], ends[i]);
+	}
+
+	/**
+	 * A read-only list view in sorted order; Regions are made as elements are accessed
+	 */
+	public List<Region> asList(){
+		return new AbstractList<Region>(){
+			public Region get(int i){return getRegion(i);}
+			public int size(){return starts.length;}
+		};
+	}
+
+	public Iterator<Region> iterator(){return asList().iterator();}
+
+	/**
+	 * Sorted positions ordered by id (i.e. the order in which regions were added or read)
+	 */
+	public int[] inputOrder(){
+		int n = starts.length;
+		long[] keys = new long[n];
+		for(int i=0; i<n; i++)
+			keys[i] = ((long)ids[i]<<32) | i;
+		Arrays.sort(keys);
+		int[] order = new int[n];
+		for(int x=0; x<n; x++)
+			order[x] = (int)(keys[x] & 0xffffffffL);
+		return order;
+	}
+
+	/**
+	 * Index of a chromosome in getChroms(), or -1 if the set has no regions on it
+	 */
+	public int chromIndex(String chr){
+		int c = Arrays.binarySearch(chroms, chr);
+		return c<0 ? -1 : c;
+	}
+
+	/**
+	 * Sorted positions [first, last+1) of the regions on a chromosome
+	 */
+	public int[] chromRange(String chr){
+		int c = chromIndex(chr);
+		return c<0 ? new int[]{0,0} : new int[]{chromOffsets[c], chromOffsets[c+1]};
+	}
+
+	/* chromosome of sorted position i */
+	protected int chromOf(int i){
+		int lo=0, hi=chroms.length-1;
+		while(lo<hi){
+			int mid = (lo+hi+1)>>>1;
+			if(chromOffsets[mid]<=i) lo=mid; else hi=mid-1;
+		}
+		return lo;
+	}
+
+	/**
+	 * The regions on a chromosome as SortedIntervals, with ids set to their positions in this set
+	 */
+	public SortedIntervals intervals(String chr){
+		int[] r = chromRange(chr);
+		int[] pos = new int[r[1]-r[0]];
+		for(int x=0; x<pos.length; x++)
+			pos[x] = r[0]+x;
+		return new SortedIntervals(Arrays.copyOfRange(starts, r[0], r[1]), Arrays.copyOfRange(ends, r[0], r[1]), pos);
+	}
+
+	/**
+	 * Positions of the regions overlapping [start, end] on a chromosome, in sorted order
+	 */
+	public int[] overlapping(String chr, int start, int end){
+		int c = chromIndex(chr);
+		if(c<0)
+			return new int[0];
+		int[] hits = new int[8];
+		int n=0;
+		for(int p=firstCandidate(c, start); p<chromOffsets[c+1] && starts[p]<=end; p++)
+			if(ends[p]>=start){
+				if(n==hits.length)
+					hits = Arrays.copyOf(hits, n*2);
+				hits[n++] = p;
+			}
+		return Arrays.copyOf(hits, n);
+	}
+
+	/**
+	 * True if any region overlaps [start, end] on a chromosome
+	 */
+	public boolean overlaps(String chr, int start, int end){
+		int c = chromIndex(chr);
+		if(c<0)
+			return false;
+		for(int p=firstCandidate(c, start); p<chromOffsets[c+1] && starts[p]<=end; p++)
+			if(ends[p]>=start)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Position of the region closest to a base (an overlapping region if there is one), or -1
+	 */
+	public int nearest(String chr, int pos){
+		int c = chromIndex(chr);
+		if(c<0)
+			return -1;
+		int from = chromOffsets[c], to = chromOffsets[c+1];
+		int right = upperBound(starts, from, to, pos);	//first start > pos
+		int best=-1;
+		long bestDist=Long.MAX_VALUE;
+		//Regions starting at or before pos: walk left until no region could reach further right
+		for(int p=right-1; p>=from; p--){
+			long d = ends[p]>=pos ? 0 : (long)pos-ends[p];
+			if(d<bestDist || (d==bestDist && p<best)){
+				best=p; bestDist=d;
+			}
+			if((long)starts[p]+maxLengths[c] < (long)pos-bestDist)
+				break;
+		}
+		if(right<to && (long)starts[right]-pos < bestDist)
+			best=right;
+		return best;
+	}
+
+	/* first position on chromosome c that could overlap a query starting at start */
+	private int firstCandidate(int c, int start){
+		return lowerBound(starts, chromOffsets[c], chromOffsets[c+1], (long)start-maxLengths[c]);
+	}
+
+	/* first position in [from,to) whose value is >= x */
+	static int lowerBound(int[] sorted, int from, int to, long x){
+		int lo=from, hi=to;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(sorted[mid]<x) lo=mid+1; else hi=mid;
+		}
+		return lo;
+	}
+
+	/* first position in [from,to) whose value is > x */
+	static int upperBound(int[] sorted, int from, int to, long x){
+		int lo=from, hi=to;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(sorted[mid]<=x) lo=mid+1; else hi=mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Union of overlapping regions on each chromosome (strands & scores are dropped)
+	 */
+	public RegionSet merge(){
+		return mergeWithin(0);
+	}
+
+	/**
+	 * Union of regions that overlap or are separated by fewer than distance bases (strands & scores are dropped)
+	 */
+	public RegionSet mergeWithin(int distance){
+		Builder b = new Builder(genome, starts.length);
+		for(int c=0; c<chroms.length; c++){
+			int from = chromOffsets[c], to = chromOffsets[c+1];
+			int s=0, e=0;
+			for(int i=from; i<to; i++){
+				if(i>from && (long)starts[i] <= (long)e+distance){
+					if(ends[i]>e)
+						e=ends[i];
+				}else{
+					if(i>from)
+						b.add(chroms[c], s, e);
+					s=starts[i];
+					e=ends[i];
+				}
+			}
+			if(to>from)
+				b.add(chroms[c], s, e);
+		}
+		return b.build();
+	}
+
+	/**
+	 * Each region extended by upstream bases before the start and downstream after the end (the other way
+	 * round for '-' strand regions, as StrandedRegion.expand), clipped to the chromosome as Region.expand clips
+	 */
+	public RegionSet expand(int upstream, int downstream){
+		Builder b = new Builder(genome, starts.length);
+		for(int c=0; c<chroms.length; c++){
+			int len = chromLength(chroms[c]);
+			for(int i=chromOffsets[c]; i<chromOffsets[c+1]; i++){
+				boolean minus = getStrand(i)=='-';
+				int ns = Math.max(1, starts[i]-(minus ? downstream : upstream));
+				int ne = ends[i]+(minus ? upstream : downstream);
+				if(ne>len){
+					ne = len;
+					if(ns>ne) ns=ne;
+				}
+				b.add(this, i, ns, ne);
+			}
+		}
+		return b.build();
+	}
+
+	/**
+	 * Regions of distance bases either side of each region's midpoint, clipped to the chromosome
+	 * (as getMidpoint().expand(distance); the midpoint of an even-width '-' strand region is the right of the two)
+	 */
+	public RegionSet expandAroundMidpoints(int distance){
+		Builder b = new Builder(genome, starts.length);
+		for(int c=0; c<chroms.length; c++){
+			int len = chromLength(chroms[c]);
+			for(int i=chromOffsets[c]; i<chromOffsets[c+1]; i++){
+				int mid = (starts[i]+ends[i])/2;
+				if(getStrand(i)=='-' && (ends[i]-starts[i]+1)%2==0)
+					mid++;
+				b.add(this, i, Math.max(1, mid-distance), Math.min(mid+distance, len));
+			}
+		}
+		return b.build();
+	}
+
+	/**
+	 * The width bases upstream of each region (before the start, or after the end of '-' strand regions),
+	 * clipped to the chromosome. Flanks that fall entirely off the chromosome are left out.
+	 */
+	public RegionSet upstreamFlanks(int width){
+		return flanks(width, true);
+	}
+
+	/**
+	 * The width bases downstream of each region (after the end, or before the start of '-' strand regions),
+	 * clipped to the chromosome. Flanks that fall entirely off the chromosome are left out.
+	 */
+	public RegionSet downstreamFlanks(int width){
+		return flanks(width, false);
+	}
+
+	private RegionSet flanks(int width, boolean upstream){
+		Builder b = new Builder(genome, starts.length);
+		for(int c=0; c<chroms.length; c++){
+			int len = chromLength(chroms[c]);
+			for(int i=chromOffsets[c]; i<chromOffsets[c+1]; i++){
+				boolean before = upstream != (getStrand(i)=='-');
+				long fs = before ? (long)starts[i]-width : (long)ends[i]+1;
+				long fe = before ? (long)starts[i]-1 : (long)ends[i]+width;
+				fs = Math.max(1, fs);
+				fe = Math.min(len, fe);
+				if(fs<=fe)
+					b.add(this, i, (int)fs, (int)fe);
+			}
+		}
+		return b.build();
+	}
+
+	protected int chromLength(String chr){
+		return genome!=null && genome.containsChromName(chr) ? genome.getChromLength(chr) : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Load regions from a BED file (0-based, half-open coordinates are converted to 1-based, closed).
+	 * Scores (column 5) and strands (column 6) are kept if present.
+	 */
+	public static RegionSet loadBED(Genome g, String filename) throws IOException{
+		Builder b = new Builder(g);
+		BufferedReader reader = new BufferedReader(new FileReader(new File(filename)), 1<<16);
+		try{
+			String line;
+			int[] f = new int[2*6];
+			while((line = reader.readLine()) != null){
+				int n = splitFields(line, f, 6);
+				if(n<3 || line.charAt(f[0])=='#' || line.startsWith("track", f[0]) || line.startsWith("browser", f[0]))
+					continue;
+				String chr = chromName(line, f[0], f[1]);
+				int start = parseInt(line, f[2], f[3])+1, end = parseInt(line, f[4], f[5]);
+				if(n>=6){
+					char strand = line.charAt(f[10]);
+					double score = line.charAt(f[8])=='.' ? 0 : Double.parseDouble(line.substring(f[8], f[9]));
+					b.add(chr, start, end, strand=='-' || strand=='+' ? strand : ' ', score);
+				}else if(n==5){
+					double score = line.charAt(f[8])=='.' ? 0 : Double.parseDouble(line.substring(f[8], f[9]));
+					b.add(chr, start, end, ' ', score);
+				}else
+					b.add(chr, start, end);
+			}
+		}finally{
+			reader.close();
+		}
+		return b.build();
+	}
+
+	/**
+	 * Load regions from a region or peak file, as RegionFileUtilities.loadRegionsFromFile does: a point in the
+	 * third column or a point or region in the first, with regions resized to win around their midpoints
+	 * (win of -1 keeps regions as they are). Strands given as chr:start-end:strand are kept.
+	 */
+	public static RegionSet loadRegions(Genome g, String filename, int win) throws IOException{
+		Builder b = new Builder(g);
+		BufferedReader reader = new BufferedReader(new FileReader(new File(filename)), 1<<16);
+		try{
+			String line;
+			int[] f = new int[2*3];
+			Location loc = new Location(), reg = new Location();
+			while((line = reader.readLine()) != null){
+				int n = splitFields(line, f, 3);
+				if(n==0 || skipLine(line, f))
+					continue;
+				if(n>=3 && loc.parse(line, f[4], f[5])){
+					if(win==-1 && reg.parse(line, f[0], f[1]) && reg.isRegion)
+						b.add(reg.chrom, reg.start, reg.end, reg.strand);
+					else
+						addWindow(b, g, loc.chrom, loc.start, win/2, loc.strand);
+				}else if(loc.parse(line, f[0], f[1])){
+					if(loc.isRegion && win==-1)
+						b.add(loc.chrom, loc.start, loc.end, loc.strand);
+					else
+						addWindow(b, g, loc.chrom, loc.isRegion ? (loc.start+loc.end)/2 : loc.start, win/2, loc.strand);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		return b.build();
+	}
+
+	private static void addWindow(Builder b, Genome g, String chr, int pos, int distance, char strand){
+		int len = g!=null && g.containsChromName(chr) ? g.getChromLength(chr) : Integer.MAX_VALUE;
+		b.add(chr, Math.max(1, pos-distance), Math.min(pos+distance, len), strand);
+	}
+
+	/* comment & header lines of region/peak files (as RegionFileUtilities) */
+	static boolean skipLine(String line, int[] f){
+		return line.lastIndexOf('#', f[1]-1)>=f[0] || line.startsWith("Region", f[0]) && f[1]-f[0]==6
+				|| line.startsWith("Position", f[0]) && f[1]-f[0]==8;
+	}
+
+	/**
+	 * Find up to max whitespace-separated fields: bounds[2k], bounds[2k+1] are the start & end of field k
+	 * @return the number of fields found
+	 */
+	static int splitFields(String line, int[] bounds, int max){
+		int len = line.length(), n=0, p=0;
+		while(n<max){
+			while(p<len && Character.isWhitespace(line.charAt(p))) p++;
+			if(p==len)
+				break;
+			bounds[2*n] = p;
+			while(p<len && !Character.isWhitespace(line.charAt(p))) p++;
+			bounds[2*n+1] = p;
+			n++;
+		}
+		return n;
+	}
+
+	static String chromName(String s, int from, int to){
+		return s.startsWith("chr", from) ? s.substring(from+3, to) : s.substring(from, to);
+	}
+
+	/* parse an integer, ignoring commas */
+	static int parseInt(String s, int from, int to){
+		if(from>=to)
+			throw new NumberFormatException("Empty field");
+		boolean neg = s.charAt(from)=='-';
+		long v=0;
+		for(int k = neg ? from+1 : from; k<to; k++){
+			char ch = s.charAt(k);
+			if(ch>='0' && ch<='9'){
+				v = v*10 + (ch-'0');
+				if(v>Integer.MAX_VALUE+1L)
+					throw new NumberFormatException(s.substring(from, to));
+			}else if(ch!=',')
+				throw new NumberFormatException(s.substring(from, to));
+		}
+		return (int)(neg ? -v : v);
+	}
+
+	/**
+	 * A location string, chr:pos[:strand] or chr:start-end[:strand], parsed without regular expressions
+	 */
+	static class Location {
+		String chrom;
+		int start, end;
+		char strand;
+		boolean isRegion;
+
+		boolean parse(String s, int from, int to){
+			int colon = s.indexOf(':', from);
+			if(colon<0 || colon>=to || colon==from)
+				return false;
+			strand = ' ';
+			int coordEnd = to;
+			if(to-colon>2 && s.charAt(to-2)==':'){
+				strand = s.charAt(to-1);
+				coordEnd = to-2;
+			}
+			int dash = s.indexOf('-', colon+2);
+			try{
+				if(dash>=0 && dash<coordEnd){
+					int a = parseInt(s, colon+1, dash), b = parseInt(s, dash+1, coordEnd);
+					start = Math.min(a, b);
+					end = Math.max(a, b);
+					isRegion = true;
+				}else{
+					start = end = parseInt(s, colon+1, coordEnd);
+					isRegion = false;
+				}
+			}catch(NumberFormatException e){
+				return false;
+			}
+			chrom = chromName(s, from, colon);
+			return true;
+		}
+	}
+}
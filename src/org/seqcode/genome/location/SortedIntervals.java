@@ -0,0 +1,402 @@
+package org.seqcode.genome.location;
+
+import java.util.Arrays;
+
+/**
+ * SortedIntervals: closed integer intervals on a single chromosome, held in primitive arrays sorted by start.
+ *
+ * This is the engine behind RegionJoin and the coverage utilities: overlap joins are a single sweep over both
+ * sorted sets, nearest/closest-k queries are binary searches, and the set operations (merge, union, intersect,
+ * subtract, depth thresholding) are linear merges. No per-interval objects are created.
+ *
+ * Each interval carries an integer id (by default its index in the arrays given to the constructor), which is
+ * what joins and queries report. Intervals produced by the set operations are numbered in order.
+ */
+public class SortedIntervals {
+
+	/** Receives the id pairs found by join() */
+	public interface OverlapHandler {
+		public void overlap(int id, int otherId);
+	}
+
+	private int[] starts, ends, ids;
+	private int size;
+	private int[] byEnd=null; //positions ordered by end, built on demand for closest()
+	private IntervalIndex index=null;
+
+	/**
+	 * @param starts interval starts (inclusive)
+	 * @param ends interval ends (inclusive)
+	 */
+	public SortedIntervals(int[] starts, int[] ends){
+		this(starts, ends, null);
+	}
+
+	/**
+	 * @param starts interval starts (inclusive)
+	 * @param ends interval ends (inclusive)
+	 * @param ids id reported for each interval (null for array indices)
+	 */
+	public SortedIntervals(int[] starts, int[] ends, int[] ids){
+		int n = starts.length;
+		if(ends.length!=n || (ids!=null && ids.length!=n))
+			throw new IllegalArgumentException("starts, ends and ids must be the same length");
+		int[] order = sortOrder(starts, ends, n);
+		this.starts = new int[n];
+		this.ends = new int[n];
+		this.ids = new int[n];
+		for(int x=0; x<n; x++){
+			int i = order[x];
+			this.starts[x] = starts[i];
+			this.ends[x] = ends[i];
+			this.ids[x] = ids==null ? i : ids[i];
+		}
+		size = n;
+	}
+
+	/* already sorted, numbered in order */
+	private SortedIntervals(int[] starts, int[] ends, int n){
+		this.starts = starts.length==n ? starts : Arrays.copyOf(starts, n);
+		this.ends = ends.length==n ? ends : Arrays.copyOf(ends, n);
+		this.size = n;
+		this.ids = new int[n];
+		for(int i=0; i<n; i++)
+			ids[i]=i;
+	}
+
+	/**
+	 * Indices of the intervals ordered by start, then end
+	 */
+	static int[] sortOrder(int[] starts, int[] ends, int n){
+		long[] keys = new long[n];
+		for(int i=0; i<n; i++)
+			keys[i] = ((long)starts[i]<<32) | i;
+		Arrays.sort(keys);
+		int[] order = new int[n];
+		for(int x=0; x<n; x++)
+			order[x] = (int)(keys[x] & 0xffffffffL);
+		//Break ties in start by end
+		for(int x=0; x<n; ){
+			int y=x+1;
+			while(y<n && starts[order[y]]==starts[order[x]])
+				y++;
+			if(y-x>1){
+				long[] run = new long[y-x];
+				for(int r=x; r<y; r++)
+					run[r-x] = ((long)ends[order[r]]<<32) | order[r];
+				Arrays.sort(run);
+				for(int r=x; r<y; r++)
+					order[r] = (int)(run[r-x] & 0xffffffffL);
+			}
+			x=y;
+		}
+		return order;
+	}
+
+	//Accessors, by sorted position
+	public int size(){return size;}
+	public int getStart(int i){return starts[i];}
+	public int getEnd(int i){return ends[i];}
+	public int getId(int i){return ids[i];}
+
+	/**
+	 * True if no two intervals overlap
+	 */
+	public boolean isDisjoint(){
+		for(int i=1; i<size; i++)
+			if(starts[i]<=ends[i-1])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Total number of bases covered by at least one interval
+	 */
+	public long coveredBases(){
+		SortedIntervals m = merge();
+		long total=0;
+		for(int i=0; i<m.size; i++)
+			total += (long)m.ends[i]-m.starts[i]+1;
+		return total;
+	}
+
+	/**
+	 * Union of overlapping intervals
+	 */
+	public SortedIntervals merge(){
+		return mergeWithin(0);
+	}
+
+	/**
+	 * Union of intervals that overlap or are separated by fewer than distance bases
+	 * (distance 1 also joins adjacent intervals)
+	 */
+	public SortedIntervals mergeWithin(int distance){
+		int[] s = new int[size], e = new int[size];
+		int n=0;
+		for(int i=0; i<size; i++){
+			if(n>0 && (long)starts[i] <= (long)e[n-1]+distance){
+				if(ends[i]>e[n-1])
+					e[n-1]=ends[i];
+			}else{
+				s[n]=starts[i];
+				e[n]=ends[i];
+				n++;
+			}
+		}
+		return new SortedIntervals(s, e, n);
+	}
+
+	/**
+	 * Union of this set and another (overlapping intervals are merged)
+	 */
+	public SortedIntervals union(SortedIntervals o){
+		SortedIntervals a = merge(), b = o.merge();
+		int[] s = new int[a.size+b.size], e = new int[a.size+b.size];
+		int n=0, i=0, j=0;
+		while(i<a.size || j<b.size){
+			int cs, ce;
+			if(j>=b.size || (i<a.size && a.starts[i]<=b.starts[j])){
+				cs = a.starts[i]; ce = a.ends[i]; i++;
+			}else{
+				cs = b.starts[j]; ce = b.ends[j]; j++;
+			}
+			if(n>0 && cs<=e[n-1]){
+				if(ce>e[n-1]) e[n-1]=ce;
+			}else{
+				s[n]=cs; e[n]=ce; n++;
+			}
+		}
+		return new SortedIntervals(s, e, n);
+	}
+
+	/**
+	 * Bases covered by both this set and another
+	 */
+	public SortedIntervals intersect(SortedIntervals o){
+		SortedIntervals a = merge(), b = o.merge();
+		int[] s = new int[a.size+b.size], e = new int[a.size+b.size];
+		int n=0, i=0, j=0;
+		while(i<a.size && j<b.size){
+			int cs = Math.max(a.starts[i], b.starts[j]), ce = Math.min(a.ends[i], b.ends[j]);
+			if(cs<=ce){
+				s[n]=cs; e[n]=ce; n++;
+			}
+			if(a.ends[i]<b.ends[j]) i++; else j++;
+		}
+		return new SortedIntervals(s, e, n);
+	}
+
+	/**
+	 * Bases covered by this set but not by another
+	 */
+	public SortedIntervals subtract(SortedIntervals o){
+		SortedIntervals a = merge(), b = o.merge();
+		//each piece either ends an interval of a or is cut by an interval of b
+		int[] s = new int[2*a.size+b.size], e = new int[2*a.size+b.size];
+		int n=0, j=0;
+		for(int i=0; i<a.size; i++){
+			int cs = a.starts[i], ce = a.ends[i];
+			while(j<b.size && b.ends[j]<cs)
+				j++;
+			int k=j;
+			while(k<b.size && b.starts[k]<=ce && cs<=ce){
+				if(b.starts[k]>cs){
+					s[n]=cs; e[n]=b.starts[k]-1; n++;
+				}
+				cs = b.ends[k]==Integer.MAX_VALUE ? ce+1 : Math.max(cs, b.ends[k]+1);
+				k++;
+			}
+			if(cs<=ce){
+				s[n]=cs; e[n]=ce; n++;
+			}
+		}
+		return new SortedIntervals(s, e, n);
+	}
+
+	/**
+	 * Maximal stretches covered by at least threshold intervals
+	 */
+	public SortedIntervals depthAtLeast(int threshold){
+		if(threshold<1)
+			throw new IllegalArgumentException(String.valueOf(threshold));
+		int[] endsAfter = sortedEndsPlusOne();
+		int[] s = new int[size], e = new int[size];
+		int n=0, depth=0, i=0, j=0;
+		while(i<size || j<size){
+			long x = Math.min(i<size ? starts[i] : Long.MAX_VALUE, j<size ? endsAfter[j] : Long.MAX_VALUE);
+			int before = depth;
+			while(i<size && starts[i]==x){ depth++; i++; }
+			while(j<size && endsAfter[j]==x){ depth--; j++; }
+			if(before<threshold && depth>=threshold){
+				s[n]=(int)x;
+			}else if(before>=threshold && depth<threshold){
+				e[n]=(int)(x-1);
+				n++;
+			}
+		}
+		return new SortedIntervals(s, e, n);
+	}
+
+	/**
+	 * Greatest number of intervals covering any one base
+	 */
+	public int maxDepth(){
+		int[] endsAfter = sortedEndsPlusOne();
+		int max=0, depth=0, j=0;
+		for(int i=0; i<size; i++){
+			while(endsAfter[j]<=starts[i]){ depth--; j++; }
+			depth++;
+			if(depth>max) max=depth;
+		}
+		return max;
+	}
+
+	private int[] sortedEndsPlusOne(){
+		int[] endsAfter = new int[size];
+		for(int i=0; i<size; i++)
+			endsAfter[i] = ends[i]+1;
+		Arrays.sort(endsAfter);
+		return endsAfter;
+	}
+
+	/**
+	 * Sweep join: reports every pair of intervals (one from this set, one from the other) that overlap once each
+	 * interval in this set is expanded by window on both sides. For each interval in this set, partners are
+	 * reported in start order. Runs in O(n + m + pairs) for sets without very long intervals.
+	 */
+	public void join(SortedIntervals o, int window, OverlapHandler h){
+		int[] active = new int[16];
+		int numActive=0, j=0;
+		for(int i=0; i<size; i++){
+			long qs = (long)starts[i]-window, qe = (long)ends[i]+window;
+			while(j<o.size && o.starts[j]<=qe){
+				if(numActive==active.length)
+					active = Arrays.copyOf(active, numActive*2);
+				active[numActive++] = j++;
+			}
+			//qs never decreases, so intervals that end before it can be dropped for good
+			int kept=0;
+			for(int x=0; x<numActive; x++){
+				int b = active[x];
+				if(o.ends[b]<qs)
+					continue;
+				active[kept++]=b;
+				if(o.starts[b]<=qe)
+					h.overlap(ids[i], o.ids[b]);
+			}
+			numActive=kept;
+		}
+	}
+
+	/**
+	 * Number of intervals in the other set overlapping each interval in this set (expanded by window), indexed by id
+	 */
+	public int[] countOverlaps(SortedIntervals o, int window){
+		final int[] counts = new int[maxId()+1];
+		join(o, window, new OverlapHandler(){
+			public void overlap(int id, int otherId) { counts[id]++; }
+		});
+		return counts;
+	}
+
+	/**
+	 * For each interval in this set (by id), the id of the first (lowest start) overlapping interval
+	 * in the other set after expanding by window, or -1
+	 */
+	public int[] firstOverlap(SortedIntervals o, int window){
+		final int[] first = new int[maxId()+1];
+		Arrays.fill(first, -1);
+		join(o, window, new OverlapHandler(){
+			public void overlap(int id, int otherId) {
+				if(first[id]==-1) first[id]=otherId;
+			}
+		});
+		return first;
+	}
+
+	/**
+	 * Ids of the k intervals in this set closest to [start, end], nearest first.
+	 * Overlapping intervals have distance 0, others the gap between the nearest ends.
+	 */
+	public int[] closest(int start, int end, int k){
+		if(k<=0 || size==0)
+			return new int[0];
+		synchronized(this){
+			if(index==null){
+				index = new IntervalIndex(starts, ends);
+				byEnd = new int[size];
+				long[] keys = new long[size];
+				for(int i=0; i<size; i++)
+					keys[i] = ((long)ends[i]<<32) | i;
+				Arrays.sort(keys);
+				for(int i=0; i<size; i++)
+					byEnd[i] = (int)(keys[i] & 0xffffffffL);
+			}
+		}
+		int[] out = new int[k];
+		int n=0;
+		for(int p : index.overlapping(start, end)){
+			if(n==k) break;
+			out[n++] = ids[p];
+		}
+		//Walk left through ends < start and right through starts > end
+		int l = lowerBound(byEnd, ends, start)-1;
+		int r = upperBound(starts, end);
+		while(n<k && (l>=0 || r<size)){
+			long dl = l>=0 ? (long)start-ends[byEnd[l]] : Long.MAX_VALUE;
+			long dr = r<size ? (long)starts[r]-end : Long.MAX_VALUE;
+			if(dl<=dr)
+				out[n++] = ids[byEnd[l--]];
+			else
+				out[n++] = ids[r++];
+		}
+		return n==k ? out : Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * For each interval in this set (by id), the ids of the k closest intervals in the other set
+	 */
+	public int[][] closest(SortedIntervals o, int k){
+		int[][] out = new int[maxId()+1][];
+		for(int i=0; i<size; i++)
+			out[ids[i]] = o.closest(starts[i], ends[i], k);
+		return out;
+	}
+
+	/**
+	 * Gap between two closed intervals (0 if they overlap, 1 if adjacent)
+	 */
+	public static int distance(int s1, int e1, int s2, int e2){
+		if(e1<s2) return s2-e1;
+		if(e2<s1) return s1-e2;
+		return 0;
+	}
+
+	private int maxId(){
+		int max=-1;
+		for(int i=0; i<size; i++)
+			if(ids[i]>max) max=ids[i];
+		return max;
+	}
+
+	/* first position in order whose value is >= x */
+	private static int lowerBound(int[] order, int[] values, int x){
+		int lo=0, hi=order.length;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(values[order[mid]]<x) lo=mid+1; else hi=mid;
+		}
+		return lo;
+	}
+
+	/* first position whose value is > x */
+	private int upperBound(int[] sorted, int x){
+		int lo=0, hi=size;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(sorted[mid]<=x) lo=mid+1; else hi=mid;
+		}
+		return lo;
+	}
+}
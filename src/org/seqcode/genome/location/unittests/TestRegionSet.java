@@ -0,0 +1,234 @@
+package org.seqcode.genome.location.unittests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.*;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Point;
+import org.seqcode.genome.location.PointSet;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.location.RegionSet;
+import org.seqcode.tools.location.RegionListOverlap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks RegionSet and PointSet against List<Region> and List<Point> computations: RegionListOverlap against
+ * the nested loop it used before, window and nearest lookups against brute force, and PointSet.expand
+ * against Point.expand as Points2RegionsConverter used it.
+ */
+public class TestRegionSet {
+
+	private static final String[] CHROMS = {"1", "2", "10", "X"};
+	private Genome genome;
+	private Random rand;
+
+	@Before public void setUp() {
+		Map<String,Integer> lengths = new HashMap<String,Integer>();
+		lengths.put("1", 100000);
+		lengths.put("2", 50000);
+		lengths.put("10", 20000);
+		lengths.put("X", 30000);
+		genome = new Genome("test", lengths);
+		rand = new Random(41);
+	}
+
+	/* Random regions on the chromosomes (some reaching the chromosome ends), with some duplicates */
+	private List<Region> randomRegions(int n, int maxLen, String[] chroms){
+		List<Region> regions = new ArrayList<Region>();
+		for(int i=0; i<n; i++){
+			if(i>0 && rand.nextInt(20)==0){
+				regions.add(regions.get(rand.nextInt(regions.size())));
+				continue;
+			}
+			String chr = chroms[rand.nextInt(chroms.length)];
+			int len = genome.getChromLength(chr);
+			int start = rand.nextInt(50)==0 ? 1 : 1+rand.nextInt(len);
+			int end = Math.min(len, start+rand.nextInt(maxLen));
+			regions.add(new Region(genome, chr, start, end));
+		}
+		return regions;
+	}
+
+	private RegionSet toSet(List<Region> regions){
+		RegionSet.Builder b = new RegionSet.Builder(genome);
+		for(Region r : regions)
+			b.add(r.getChrom(), r.getStart(), r.getEnd());
+		return b.build();
+	}
+
+	/* RegionListOverlap.main before RegionSets, with the chromosomes and FN regions visited in sorted order */
+	private List<String> oldOverlap(List<Region> lone, List<Region> ltwo, int window, boolean stats){
+		List<String> lines = new ArrayList<String>();
+		Map<String,List<Region>> one = new TreeMap<String,List<Region>>(), two = new TreeMap<String,List<Region>>();
+		for(Region r : lone){
+			if(!one.containsKey(r.getChrom())) one.put(r.getChrom(), new ArrayList<Region>());
+			one.get(r.getChrom()).add(r);
+		}
+		for(Region r : ltwo){
+			if(!two.containsKey(r.getChrom())) two.put(r.getChrom(), new ArrayList<Region>());
+			two.get(r.getChrom()).add(r);
+		}
+		int overlap = 0;
+		Map<Region, Boolean> foundTwo = new HashMap<Region,Boolean>();
+		for(Region r : ltwo)
+			foundTwo.put(r, Boolean.FALSE);
+		for(String chrom : one.keySet()){
+			if(!two.containsKey(chrom)) { continue;}
+			List<Region> cone = one.get(chrom), ctwo = two.get(chrom);
+			Collections.sort(cone);
+			Collections.sort(ctwo);
+			for(Region orig : cone){
+				Region r = orig.expand(window,window);
+				boolean found = false;
+				for(Region o : ctwo){
+					if(r.overlaps(o)){
+						foundTwo.put(o, Boolean.TRUE);
+						lines.add(stats ? "TP\t"+orig : orig.toString());
+						overlap++;
+						found = true;
+						break;
+					}
+				}
+				if(stats && !found)
+					lines.add("FP\t"+orig);
+			}
+		}
+		List<Region> fnRegions = new ArrayList<Region>(foundTwo.keySet());
+		Collections.sort(fnRegions);
+		int fn = 0;
+		for(Region r : fnRegions)
+			if(!foundTwo.get(r)){
+				lines.add("FN\t"+r);
+				fn++;
+			}
+		if(stats){
+			int tp = overlap, fp = lone.size()-overlap;
+			double tprate = ((double)tp)/lone.size();
+			double fnrate = 1-((double)overlap)/ltwo.size();
+			lines.add(String.format("n=%d  tp=%d  fp=%d  fn=%d   tpr=%.2f   fnr=%.2f", lone.size(), tp,fp,fn,tprate,fnrate));
+		}
+		return lines;
+	}
+
+	@Test public void testRegionListOverlap() {
+		for(int trial=0; trial<6; trial++){
+			//list one has regions on chromosome 10, which list two doesn't
+			List<Region> one = randomRegions(1500, 300, CHROMS);
+			List<Region> two = randomRegions(800, 1000, new String[]{"1", "2", "X"});
+			int window = new int[]{0, 1, 50, 2000}[trial%4];
+			boolean stats = trial%2==0;
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(bytes);
+			RegionListOverlap.overlap(toSet(one), toSet(two), window, stats, out);
+			out.close();
+			List<String> expected = oldOverlap(one, two, window, stats);
+			String[] actual = bytes.toString().split(System.getProperty("line.separator"));
+			assertEquals(expected.size(), actual.length);
+			for(int j=0; j<actual.length; j++)
+				assertEquals("line "+j, expected.get(j), actual[j]);
+		}
+	}
+
+	@Test public void testSortedViews() {
+		List<Region> regions = randomRegions(2000, 500, CHROMS);
+		RegionSet set = toSet(regions);
+		List<Region> sorted = new ArrayList<Region>(regions);
+		Collections.sort(sorted);
+		assertEquals(sorted, set.asList());
+		int[] input = set.inputOrder();
+		for(int j=0; j<regions.size(); j++)
+			assertEquals(regions.get(j), set.getRegion(input[j]));
+		//expand as Region.expand, clipped to the chromosome
+		RegionSet expanded = set.expand(300, 700);
+		List<Region> expected = new ArrayList<Region>();
+		for(Region r : regions)
+			expected.add(r.expand(300, 700));
+		Collections.sort(expected);
+		assertEquals(expected, expanded.asList());
+	}
+
+	@Test public void testLookups() {
+		List<Region> regions = randomRegions(2000, 2000, new String[]{"1", "2", "X"});
+		RegionSet set = toSet(regions);
+		List<Region> sorted = set.asList();
+		for(int q=0; q<3000; q++){
+			String chr = CHROMS[rand.nextInt(CHROMS.length)];
+			int start = 1+rand.nextInt(genome.getChromLength(chr)), end = start+rand.nextInt(500);
+			List<Integer> hits = new ArrayList<Integer>();
+			int best=-1;
+			long bestDist=Long.MAX_VALUE;
+			for(int p=0; p<sorted.size(); p++){
+				Region r = sorted.get(p);
+				if(!r.getChrom().equals(chr))
+					continue;
+				if(r.overlaps(start, end))
+					hits.add(p);
+				long d = r.getEnd()<start ? (long)start-r.getEnd() : (r.getStart()>start ? (long)r.getStart()-start : 0);
+				if(d<bestDist){
+					best=p; bestDist=d;
+				}
+			}
+			int[] actual = set.overlapping(chr, start, end);
+			assertEquals(hits.size(), actual.length);
+			for(int j=0; j<actual.length; j++)
+				assertEquals((int)hits.get(j), actual[j]);
+			assertEquals(!hits.isEmpty(), set.overlaps(chr, start, end));
+			int nearest = set.nearest(chr, start);
+			if(best<0)
+				assertEquals(-1, nearest);
+			else
+				//ties may be broken either way
+				assertEquals(bestDist, sorted.get(nearest).distance(new Region(genome, chr, start, start)));
+		}
+	}
+
+	@Test public void testPointSet() {
+		List<Point> points = new ArrayList<Point>();
+		PointSet.Builder b = new PointSet.Builder(genome);
+		for(int i=0; i<3000; i++){
+			String chr = CHROMS[rand.nextInt(CHROMS.length)];
+			Point p = new Point(genome, chr, 1+rand.nextInt(genome.getChromLength(chr)));
+			points.add(p);
+			b.add(p);
+		}
+		PointSet set = b.build();
+		//Points2RegionsConverter wrote point.expand(dist) in input order
+		for(int dist : new int[]{0, 100, 25000}){
+			RegionSet regions = set.expand(dist);
+			int[] input = regions.inputOrder();
+			for(int j=0; j<points.size(); j++)
+				assertEquals(points.get(j).expand(dist), regions.getRegion(input[j]));
+		}
+		for(int q=0; q<2000; q++){
+			String chr = CHROMS[rand.nextInt(CHROMS.length)];
+			int start = 1+rand.nextInt(genome.getChromLength(chr)), end = start+rand.nextInt(2000);
+			int count=0;
+			long bestDist=Long.MAX_VALUE;
+			for(Point p : points)
+				if(p.getChrom().equals(chr)){
+					if(p.getLocation()>=start && p.getLocation()<=end)
+						count++;
+					bestDist = Math.min(bestDist, Math.abs((long)p.getLocation()-start));
+				}
+			assertEquals(count, set.countWithin(chr, start, end));
+			int[] range = set.within(chr, start, end);
+			for(int i=range[0]; i<range[1]; i++)
+				assertTrue(set.getLocation(i)>=start && set.getLocation(i)<=end && set.getChrom(i).equals(chr));
+			assertEquals(bestDist, Math.abs((long)set.getLocation(set.nearest(chr, start))-start));
+		}
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.genome.location.unittests.TestRegionSet");
+	}
+}
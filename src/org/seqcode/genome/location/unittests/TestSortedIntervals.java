@@ -0,0 +1,427 @@
+package org.seqcode.genome.location.unittests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.*;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.location.RegionJoin;
+import org.seqcode.genome.location.SortedIntervals;
+import org.seqcode.gseutils.Interval;
+import org.seqcode.gseutils.OverlapSum;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the SortedIntervals sweeps against base-by-base and nested-loop computations, RegionJoin against
+ * pairwise Region.overlaps, and OverlapSum against the TreeMap change-point implementation it replaced.
+ */
+public class TestSortedIntervals {
+
+	private static final int LO=-600, HI=600;
+	private Random rand;
+
+	@Before public void setUp() {
+		rand = new Random(31);
+	}
+
+	/* Random intervals within [LO,HI], crossing zero */
+	private int[][] randomIntervals(int n, int maxLen){
+		int[] s = new int[n], e = new int[n];
+		for(int i=0; i<n; i++){
+			s[i] = LO+rand.nextInt(HI-LO-maxLen);
+			e[i] = s[i]+rand.nextInt(maxLen);
+		}
+		return new int[][]{s, e};
+	}
+
+	/* Number of intervals covering each base of [LO,HI] */
+	private static int[] depth(int[][] iv){
+		int[] d = new int[HI-LO+1];
+		for(int i=0; i<iv[0].length; i++)
+			for(int x=iv[0][i]; x<=iv[1][i]; x++)
+				d[x-LO]++;
+		return d;
+	}
+
+	/* Maximal runs of bases with depth at least threshold, as {start, end} pairs */
+	private static List<int[]> runs(int[] d, int threshold){
+		List<int[]> out = new ArrayList<int[]>();
+		for(int x=0; x<d.length; x++){
+			if(d[x]>=threshold && (x==0 || d[x-1]<threshold)){
+				int y=x;
+				while(y+1<d.length && d[y+1]>=threshold)
+					y++;
+				out.add(new int[]{x+LO, y+LO});
+			}
+		}
+		return out;
+	}
+
+	private static void assertIntervals(List<int[]> expected, SortedIntervals actual){
+		assertEquals(expected.size(), actual.size());
+		for(int i=0; i<actual.size(); i++){
+			assertEquals(expected.get(i)[0], actual.getStart(i));
+			assertEquals(expected.get(i)[1], actual.getEnd(i));
+		}
+	}
+
+	/* The intervals are sorted, disjoint and cover exactly the bases with mask>0 */
+	private static void assertCovers(int[] mask, SortedIntervals actual){
+		assertTrue(actual.isDisjoint());
+		int[] d = new int[mask.length];
+		for(int i=0; i<actual.size(); i++){
+			if(i>0)
+				assertTrue(actual.getStart(i-1)<actual.getStart(i));
+			for(int x=actual.getStart(i); x<=actual.getEnd(i); x++)
+				d[x-LO]++;
+		}
+		for(int x=0; x<mask.length; x++)
+			assertEquals(mask[x]>0 ? 1 : 0, d[x]);
+	}
+
+	@Test public void testSortOrder() {
+		int[][] iv = randomIntervals(500, 40);
+		//Large coordinates of both signs, where the packed sort keys need the sign bit
+		iv[0][0] = Integer.MIN_VALUE+5; iv[1][0] = Integer.MIN_VALUE+10;
+		iv[0][1] = 1<<30; iv[1][1] = (1<<30)+5;
+		iv[0][2] = -(1<<30); iv[1][2] = -(1<<30)+5;
+		SortedIntervals si = new SortedIntervals(iv[0], iv[1]);
+		assertEquals(iv[0].length, si.size());
+		for(int i=0; i<si.size(); i++){
+			int id = si.getId(i);
+			assertEquals(iv[0][id], si.getStart(i));
+			assertEquals(iv[1][id], si.getEnd(i));
+			if(i>0){
+				assertTrue(si.getStart(i-1)<si.getStart(i) ||
+						(si.getStart(i-1)==si.getStart(i) && si.getEnd(i-1)<=si.getEnd(i)));
+			}
+		}
+	}
+
+	@Test public void testSetOperations() {
+		for(int trial=0; trial<20; trial++){
+			int[][] a = randomIntervals(1+rand.nextInt(60), 1+rand.nextInt(80));
+			int[][] b = randomIntervals(1+rand.nextInt(60), 1+rand.nextInt(80));
+			SortedIntervals sa = new SortedIntervals(a[0], a[1]), sb = new SortedIntervals(b[0], b[1]);
+			int[] da = depth(a), db = depth(b);
+			int[] union = new int[da.length], inter = new int[da.length], minus = new int[da.length];
+			int max=0;
+			long covered=0;
+			for(int x=0; x<da.length; x++){
+				union[x] = da[x]>0 || db[x]>0 ? 1 : 0;
+				inter[x] = da[x]>0 && db[x]>0 ? 1 : 0;
+				minus[x] = da[x]>0 && db[x]==0 ? 1 : 0;
+				max = Math.max(max, da[x]);
+				if(da[x]>0) covered++;
+			}
+			//merge keeps adjacent intervals apart; mergeWithin(1) joins them into the covered runs
+			assertCovers(da, sa.merge());
+			assertIntervals(runs(da, 1), sa.mergeWithin(1));
+			assertCovers(union, sa.union(sb));
+			assertCovers(inter, sa.intersect(sb));
+			assertCovers(minus, sa.subtract(sb));
+			assertEquals(max, sa.maxDepth());
+			assertEquals(covered, sa.coveredBases());
+			for(int t=1; t<=4; t++)
+				assertIntervals(runs(da, t), sa.depthAtLeast(t));
+		}
+	}
+
+	@Test public void testMergeWithin() {
+		for(int trial=0; trial<20; trial++){
+			int[][] a = randomIntervals(1+rand.nextInt(40), 1+rand.nextInt(30));
+			int distance = rand.nextInt(20);
+			//Filling gaps shorter than distance and merging gives the same runs
+			int[] d = depth(a), filled = d.clone();
+			List<int[]> m = runs(d, 1);
+			for(int i=1; i<m.size(); i++)
+				if(m.get(i)[0]<=m.get(i-1)[1]+distance)
+					for(int x=m.get(i-1)[1]+1; x<m.get(i)[0]; x++)
+						filled[x-LO]=1;
+			assertIntervals(runs(filled, 1), new SortedIntervals(a[0], a[1]).mergeWithin(distance));
+		}
+	}
+
+	@Test public void testJoin() {
+		for(int trial=0; trial<20; trial++){
+			int[][] a = randomIntervals(1+rand.nextInt(100), 1+rand.nextInt(50));
+			int[][] b = randomIntervals(1+rand.nextInt(100), 1+rand.nextInt(50));
+			//a few intervals much longer than the rest
+			b[0][0] = LO; b[1][0] = HI;
+			int window = rand.nextInt(10);
+			SortedIntervals sa = new SortedIntervals(a[0], a[1]), sb = new SortedIntervals(b[0], b[1]);
+
+			final List<int[]> pairs = new ArrayList<int[]>();
+			sa.join(sb, window, new SortedIntervals.OverlapHandler(){
+				public void overlap(int id, int otherId) { pairs.add(new int[]{id, otherId}); }
+			});
+			int[] counts = sa.countOverlaps(sb, window), first = sa.firstOverlap(sb, window);
+
+			int expectedPairs=0;
+			for(int i=0; i<a[0].length; i++){
+				int c=0, f=-1;
+				for(int j=0; j<b[0].length; j++){
+					if(b[0][j]<=a[1][i]+window && a[0][i]-window<=b[1][j]){
+						c++;
+						if(f==-1 || b[0][j]<b[0][f] || (b[0][j]==b[0][f] && b[1][j]<b[1][f]))
+							f=j;
+					}
+				}
+				expectedPairs+=c;
+				assertEquals(c, counts[i]);
+				if(f==-1)
+					assertEquals(-1, first[i]);
+				else{
+					assertEquals(b[0][f], b[0][first[i]]);
+					assertEquals(b[1][f], b[1][first[i]]);
+				}
+			}
+			assertEquals(expectedPairs, pairs.size());
+			for(int[] p : pairs)
+				assertTrue(b[0][p[1]]<=a[1][p[0]]+window && a[0][p[0]]-window<=b[1][p[1]]);
+		}
+	}
+
+	@Test public void testClosest() {
+		for(int trial=0; trial<20; trial++){
+			int[][] b = randomIntervals(1+rand.nextInt(80), 1+rand.nextInt(30));
+			SortedIntervals sb = new SortedIntervals(b[0], b[1]);
+			for(int q=0; q<50; q++){
+				int s = LO+rand.nextInt(HI-LO-20), e = s+rand.nextInt(20);
+				int k = 1+rand.nextInt(6);
+				int[] hits = sb.closest(s, e, k);
+				int[] all = new int[b[0].length];
+				for(int j=0; j<all.length; j++)
+					all[j] = SortedIntervals.distance(s, e, b[0][j], b[1][j]);
+				Arrays.sort(all);
+				assertEquals(Math.min(k, all.length), hits.length);
+				boolean[] seen = new boolean[b[0].length];
+				int last=0;
+				for(int x=0; x<hits.length; x++){
+					assertFalse(seen[hits[x]]);
+					seen[hits[x]]=true;
+					int dist = SortedIntervals.distance(s, e, b[0][hits[x]], b[1][hits[x]]);
+					assertEquals(all[x], dist);
+					assertTrue(dist>=last);
+					last=dist;
+				}
+			}
+		}
+	}
+
+	@Test public void testRegionJoin() {
+		Map<String, Integer> lengths = new HashMap<String, Integer>();
+		String[] chroms = {"1", "2", "3", "X"};
+		for(String c : chroms)
+			lengths.put(c, 100000);
+		Genome g = new Genome("test", lengths);
+		List<Region> a = new ArrayList<Region>(), b = new ArrayList<Region>();
+		for(int i=0; i<1500; i++){
+			int s = 100+rand.nextInt(20000);
+			a.add(new Region(g, chroms[rand.nextInt(chroms.length)], s, s+rand.nextInt(300)));
+			s = 100+rand.nextInt(20000);
+			b.add(new Region(g, chroms[rand.nextInt(3)], s, s+rand.nextInt(300)));
+		}
+		for(int threads : new int[]{1, 4}){
+			RegionJoin<Region,Region> join = new RegionJoin<Region,Region>(a, b);
+			join.setNumThreads(threads);
+			int[] counts = join.countOverlaps(25);
+			int[] nearest = join.nearest();
+			for(int i=0; i<a.size(); i++){
+				Region r = a.get(i).expand(25, 25);
+				int c=0, best=Integer.MAX_VALUE;
+				for(Region o : b){
+					if(r.overlaps(o))
+						c++;
+					if(o.getChrom().equals(r.getChrom()))
+						best = Math.min(best, a.get(i).distance(o));
+				}
+				assertEquals(c, counts[i]);
+				if(best==Integer.MAX_VALUE)
+					assertEquals(-1, nearest[i]);
+				else
+					assertEquals(best, a.get(i).distance(b.get(nearest[i])));
+			}
+		}
+		//merge and intersect are the per-chromosome set operations
+		List<Region> merged = RegionJoin.merge(a), inter = RegionJoin.intersect(a, b);
+		for(String c : chroms){
+			int[] inA = new int[20500], both = new int[20500];
+			for(Region r : a)
+				if(r.getChrom().equals(c))
+					for(int x=r.getStart(); x<=r.getEnd(); x++)
+						inA[x]=1;
+			for(Region r : b)
+				if(r.getChrom().equals(c))
+					for(int x=r.getStart(); x<=r.getEnd(); x++)
+						both[x]=inA[x];
+			assertArrayEquals(inA, covered(merged, c, 20500));
+			assertArrayEquals(both, covered(inter, c, 20500));
+		}
+	}
+
+	/* 1 for each base of chrom covered by exactly one region, 2 where regions overlap */
+	private static int[] covered(List<Region> regions, String chrom, int length){
+		int[] d = new int[length];
+		for(Region r : regions)
+			if(r.getChrom().equals(chrom))
+				for(int x=r.getStart(); x<=r.getEnd(); x++)
+					d[x] = Math.min(2, d[x]+1);
+		return d;
+	}
+
+	@Test public void testOverlapSum() {
+		for(int trial=0; trial<20; trial++){
+			int[][] a = randomIntervals(1+rand.nextInt(60), 1+rand.nextInt(60));
+			int[][] b = randomIntervals(1+rand.nextInt(60), 1+rand.nextInt(60));
+			OverlapSum sum = new OverlapSum(), other = new OverlapSum();
+			TreeMapOverlapSum old = new TreeMapOverlapSum(), oldOther = new TreeMapOverlapSum();
+			for(int i=0; i<a[0].length; i++){
+				sum.addInterval(a[0][i], a[1][i]);
+				old.addInterval(a[0][i], a[1][i]);
+			}
+			for(int i=0; i<b[0].length; i++){
+				other.addInterval(b[0][i], b[1][i]);
+				oldOther.addInterval(b[0][i], b[1][i]);
+			}
+			assertEquals(old.changes, sum.getChangeMap());
+			assertEquals(old.getMaxOverlap(), sum.getMaxOverlap());
+			for(int q=0; q<20; q++){
+				int s = LO+rand.nextInt(HI-LO-100), e = s+rand.nextInt(100);
+				assertEquals(old.getMaxOverlap(s, e), sum.getMaxOverlap(s, e));
+				assertEquals(old.countOverlapping(s, e), sum.countOverlapping(s, e));
+			}
+			for(int t=1; t<=4; t++){
+				assertEquals(old.hasOverlap(oldOther, t), sum.hasOverlap(other, t));
+				List<Interval> expected = new ArrayList<Interval>(old.collect(t));
+				List<Interval<Object>> actual = new ArrayList<Interval<Object>>(sum.collect(t));
+				assertEquals(expected.size(), actual.size());
+				for(int i=0; i<expected.size(); i++){
+					assertEquals(expected.get(i).start, actual.get(i).start);
+					assertEquals(expected.get(i).end, actual.get(i).end);
+				}
+			}
+			sum.combineWith(other);
+			old.combineWith(oldOther);
+			assertEquals(old.changes, sum.getChangeMap());
+			assertEquals(old.getMaxOverlap(), sum.getMaxOverlap());
+		}
+	}
+
+	/**
+	 * The change-point map OverlapSum used before it was backed by SortedIntervals
+	 */
+	private static class TreeMapOverlapSum {
+		TreeMap<Integer,Integer> changes = new TreeMap<Integer,Integer>();
+
+		void combineWith(TreeMapOverlapSum s) {
+			for(Integer pt : s.changes.keySet()) {
+				if(!changes.containsKey(pt)) {
+					changes.put(pt, 0);
+				}
+				changes.put(pt, changes.get(pt) + s.changes.get(pt));
+			}
+		}
+
+		void addInterval(int start, int end) {
+			if(changes.containsKey(start)) {
+				changes.put(start, changes.get(start) + 1);
+			} else {
+				changes.put(start, 1);
+			}
+			if(changes.containsKey(end + 1)) {
+				changes.put(end + 1, changes.get(end + 1) - 1);
+			} else {
+				changes.put(end + 1, -1);
+			}
+		}
+
+		int getMaxOverlap() {
+			int max = 0;
+			int running = 0;
+			for(int pc : changes.keySet()) {
+				running += changes.get(pc);
+				max = Math.max(max, running);
+			}
+			return max;
+		}
+
+		int getMaxOverlap(int start, int end) {
+			int max = 0;
+			int running = 0;
+			Map<Integer,Integer> map = changes.headMap(end);
+			for(int pc : map.keySet()) {
+				running += map.get(pc);
+				if(pc >= start && pc <= end) {
+					max = Math.max(max, running);
+				}
+			}
+			return max;
+		}
+
+		int countOverlapping(int start, int end) {
+			int count = 0;
+			Map<Integer,Integer> map = changes.headMap(end);
+			int running = 0;
+			for(int pc : map.keySet()) {
+				int delta = map.get(pc);
+				running += delta;
+				if(pc >= start && delta == -1) {
+					count += 1;
+				}
+			}
+			count += running;
+			return count;
+		}
+
+		boolean hasOverlap(TreeMapOverlapSum sum, int thresh) {
+			TreeMap<Integer,Integer> all = new TreeMap<Integer,Integer>(changes);
+			all.putAll(sum.changes);
+			int thisCount = 0, thatCount = 0;
+			for(Iterator<Integer> chs = all.keySet().iterator(); chs.hasNext(); ) {
+				Integer change = chs.next();
+				if(changes.containsKey(change)) {
+					thisCount += changes.get(change);
+				}
+				if(sum.changes.containsKey(change)) {
+					thatCount += sum.changes.get(change);
+				}
+				if(thisCount >= thresh && thatCount >= thresh) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		Collection<Interval> collect(int threshold) {
+			LinkedList<Interval> regions = new LinkedList<Interval>();
+			int runningSum = 0;
+			int rstart = -1;
+			for(int pc : changes.keySet()) {
+				int delta = changes.get(pc);
+				if(runningSum < threshold && runningSum + delta >= threshold) {
+					rstart = pc;
+				}
+				if(runningSum >= threshold && runningSum + delta < threshold) {
+					regions.addLast(new Interval(rstart, pc - 1));
+				}
+				runningSum += delta;
+			}
+			return regions;
+		}
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.genome.location.unittests.TestSortedIntervals");
+	}
+}
@@ -17,7 +17,6 @@ import org.seqcode.gseutils.Pair;
 public class RandomSequenceGenerator {
 
 	private MarkovBackgroundModel markov;
-	private int modelLen;
 	private Random rand = new Random();
 	
 	
@@ -49,43 +48,10 @@ public class RandomSequenceGenerator {
 	
 	public RandomSequenceGenerator(MarkovBackgroundModel m){
 		markov=m;
-		modelLen = markov.getMaxKmerLen();
 	}
 	
 	public String execute(int len){
-		String seq = new String();
-		
-		//Preliminary bases
-		for(int i=1; i<modelLen && i<=len; i++){
-			double prob = rand.nextDouble();
-			double sum=0; int j=0;
-			while(sum<prob){
-				String test = seq.concat(int2base(j));
-				sum += markov.getMarkovProb(test);
-				if(sum>=prob){
-					seq = test;
-					break;
-				}
-				j++;
-			}
-		}
-		//Remaining bases
-		for(int i=modelLen; i<=len; i++){
-			String lmer = seq.substring(seq.length()-(modelLen-1));
-			double prob = rand.nextDouble();
-			double sum=0; int j=0;
-			while(sum<prob){
-				String test = lmer.concat(int2base(j));
-				sum += markov.getMarkovProb(test);
-				if(sum>=prob){
-					seq =seq.concat(int2base(j));
-					break;
-				}
-				j++;
-			}
-		}
-		
-		return seq;
+		return new String(markov.sample(len, rand));
 	}
 	
 	protected String int2base(int x){
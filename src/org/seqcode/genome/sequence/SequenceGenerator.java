@@ -8,7 +8,7 @@ import java.sql.*;
 import org.seqcode.data.connections.DatabaseConnectionManager;
 import org.seqcode.data.connections.DatabaseException;
 import org.seqcode.data.connections.UnknownRoleException;
-import org.seqcode.data.io.parsing.FASTAStream;
+import org.seqcode.data.io.parsing.IndexedFASTAFile;
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.location.Region;
 import org.seqcode.genome.location.StrandedRegion;
@@ -30,6 +30,7 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     private boolean useCache = false;
     private boolean useLocalFiles = false;
     private String genomePath = null;
+    private String indexCachePath = null;
     private boolean genomePathIsFullGenomeFile=false;
     private int maxQuery = -1;
 
@@ -71,6 +72,14 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     			genomePathIsFullGenomeFile=true;
     	}
     }
+    /**
+     * Directory in which to keep the indexes of local FASTA files. Without one, an index
+     * is read from next to a FASTA file if one is there, and otherwise kept in memory;
+     * nothing is written next to the genome.
+     */
+    public void setIndexCachePath(String indexCachePath){
+    	this.indexCachePath = indexCachePath;
+    }
     
     /** cache the whole chromosome of this region */
     private void cache(X region) throws SQLException, IOException {
@@ -106,16 +115,22 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
             }
             
             if (f.exists()) {
-                FASTAStream stream = new FASTAStream(f);
-                while (stream.hasNext()) {
-                    Pair<String,String> pair = stream.next();
-                    String pairchrom = pair.car().replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr","");
-                    if (pairchrom.equals(region.getChrom())) {
-                        chromseq = pair.cdr();
+                IndexedFASTAFile fasta;
+                if (indexCachePath != null) {
+                    //named by the path too, since genomes are often all called genome.fa
+                    File fai = new File(indexCachePath, f.getName() + "." + Integer.toHexString(f.getAbsolutePath().hashCode()) + ".fai");
+                    fasta = new IndexedFASTAFile(f, fai, true);
+                } else {
+                    fasta = new IndexedFASTAFile(f, false);
+                }
+                for (int i = 0; i < fasta.size(); i++) {
+                    String fastachrom = fasta.getHeader(i).replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr","");
+                    if (fastachrom.equals(region.getChrom())) {
+                        chromseq = fasta.getSequence(i).toString();
                         break;
                     }                    
                 }
-                stream.close();                
+                fasta.close();                
             }else{
             	System.out.print("FASTA file for chromosome "+region.getChrom() +" is not found at "+genomePath+". \n");
             	System.exit(-1);
@@ -0,0 +1,59 @@
+package org.seqcode.genome.sequence.kmers;
+
+/**
+ * DenseKmerCounts: k-mer counts stored in an int array indexed directly by k-mer code.
+ */
+public class DenseKmerCounts extends KmerCounts {
+
+	protected int[] counts;
+	
+	public DenseKmerCounts(int k){
+		super(k);
+		if(k>DENSE_MAX_K)
+			throw new IllegalArgumentException("Dense k-mer counts are limited to k<="+DENSE_MAX_K);
+		counts = new int[(int)KmerCodec.numKmers(k)];
+	}
+	
+	/** Direct access to the backing array (indexed by k-mer code) */
+	public int[] getArray(){return counts;}
+	
+	public void increment(long kmer){ counts[(int)kmer]++;}
+	
+	public void add(long kmer, int n){ counts[(int)kmer]+=n;}
+	
+	public int get(long kmer){ return counts[(int)kmer];}
+	
+	public int size(){
+		int s=0;
+		for(int c : counts)
+			if(c!=0)
+				s++;
+		return s;
+	}
+	
+	public long total(){
+		long t=0;
+		for(int c : counts)
+			t+=c;
+		return t;
+	}
+	
+	public long[] kmers(){
+		long[] out = new long[size()];
+		int x=0;
+		for(int i=0; i<counts.length; i++)
+			if(counts[i]!=0)
+				out[x++]=i;
+		return out;
+	}
+	
+	public void merge(KmerCounts other){
+		if(other instanceof DenseKmerCounts && other.k==k){
+			int[] o = ((DenseKmerCounts)other).counts;
+			for(int i=0; i<counts.length; i++)
+				counts[i]+=o[i];
+		}else{
+			super.merge(other);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.seqcode.genome.sequence.kmers;
+
+/**
+ * KmerCodec: static helpers for packing DNA k-mers into 2-bit codes (A=0, C=1, G=2, T=3).
+ * 
+ * Codes are stored with the first base in the most significant position, so the natural
+ * ordering of codes is the lexicographic ordering of k-mers. Anything that is not A/C/G/T 
+ * (including N and IUPAC ambiguity codes) maps to -1 and must break a k-mer.   
+ * 
+ * k-mers of up to 31 bases fit in a (non-negative) long.
+ */
+public class KmerCodec {
+
+	public static final int MAX_K = 31;
+	
+	private static final byte[] baseCodes = new byte[128];
+	private static final char[] codeBases = {'A','C','G','T'};
+	static{
+		for(int i=0; i<baseCodes.length; i++)
+			baseCodes[i]=-1;
+		baseCodes['A']=0; baseCodes['a']=0;
+		baseCodes['C']=1; baseCodes['c']=1;
+		baseCodes['G']=2; baseCodes['g']=2;
+		baseCodes['T']=3; baseCodes['t']=3;
+	}
+	
+	/**
+	 * 2-bit code for a base, or -1 if the base is not A/C/G/T
+	 */
+	public static int baseCode(char c){
+		return c<128 ? baseCodes[c] : -1;
+	}
+	
+	/**
+	 * 2-bit code for a base byte, or -1 if the base is not A/C/G/T
+	 */
+	public static int baseCode(byte b){
+		return b>=0 ? baseCodes[b] : -1;
+	}
+	
+	public static char codeBase(int code){ return codeBases[code & 3];}
+	
+	/**
+	 * Bitmask covering the 2k low bits used by a k-mer code
+	 */
+	public static long mask(int k){
+		return k>=32 ? -1L : (1L<<(2*k))-1;
+	}
+	
+	/**
+	 * Number of distinct k-mers of length k (4^k)
+	 */
+	public static long numKmers(int k){
+		return 1L<<(2*k);
+	}
+	
+	/**
+	 * Encode the k-mer starting at position start of seq.
+	 * @return the code, or -1 if the k-mer contains a non-ACGT character
+	 */
+	public static long encode(CharSequence seq, int start, int k){
+		long code=0;
+		for(int i=start; i<start+k; i++){
+			int c = baseCode(seq.charAt(i));
+			if(c<0)
+				return -1;
+			code = (code<<2) | c;
+		}
+		return code;
+	}
+	
+	/**
+	 * Encode a whole k-mer String.
+	 * @return the code, or -1 if the k-mer contains a non-ACGT character
+	 */
+	public static long encode(CharSequence kmer){
+		return encode(kmer, 0, kmer.length());
+	}
+	
+	/**
+	 * Decode a k-mer code back to its bases
+	 */
+	public static char[] decodeChars(long code, int k){
+		char[] out = new char[k];
+		for(int i=k-1; i>=0; i--){
+			out[i] = codeBases[(int)(code & 3)];
+			code >>>= 2;
+		}
+		return out;
+	}
+	
+	/**
+	 * Decode a k-mer code back to a String
+	 */
+	public static String decode(long code, int k){
+		return new String(decodeChars(code, k));
+	}
+	
+	/**
+	 * Reverse complement of a k-mer code
+	 */
+	public static long reverseComplement(long code, int k){
+		long out=0;
+		for(int i=0; i<k; i++){
+			out = (out<<2) | (3 - (code & 3));
+			code >>>= 2;
+		}
+		return out;
+	}
+	
+	/**
+	 * Canonical code: the smaller of the k-mer and its reverse complement
+	 */
+	public static long canonical(long code, int k){
+		return Math.min(code, reverseComplement(code, k));
+	}
+}
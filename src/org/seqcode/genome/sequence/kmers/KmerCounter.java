@@ -0,0 +1,246 @@
+package org.seqcode.genome.sequence.kmers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * KmerCounter: counts all k-mers of lengths mink..maxk in a single pass over a sequence.
+ * 
+ * Forward and reverse-complement codes for the longest k are rolled along the sequence base by base, 
+ * and the codes for shorter k-mers are derived from them by masking/shifting, so no k-mer is ever 
+ * re-encoded from scratch. Non-ACGT characters (e.g. N) reset the rolling codes, so no counted 
+ * k-mer ever spans an N. 
+ * 
+ * Strand modes:
+ *   FORWARD   : count the k-mers as read on the given strand
+ *   BOTH      : count the k-mers on both the given strand and its reverse complement
+ *   CANONICAL : count each k-mer once, under the smaller of its own and its reverse complement code
+ *   
+ * Counting can be split over several threads, either by sequence or by chunks of one long sequence.
+ * Each thread fills its own partial KmerCounts, which are merged at the end. 
+ */
+public class KmerCounter {
+
+	public enum Strand {FORWARD, BOTH, CANONICAL};
+	
+	private int mink, maxk;
+	private Strand strand;
+	private long[] masks;
+	
+	public KmerCounter(int mink, int maxk, Strand strand){
+		if(mink<1 || maxk<mink || maxk>KmerCodec.MAX_K)
+			throw new IllegalArgumentException("Invalid k range: "+mink+" to "+maxk);
+		this.mink = mink;
+		this.maxk = maxk;
+		this.strand = strand;
+		masks = new long[maxk+1];
+		for(int k=0; k<=maxk; k++)
+			masks[k] = KmerCodec.mask(k);
+	}
+	
+	public int getMinK(){return mink;}
+	public int getMaxK(){return maxk;}
+	public Strand getStrand(){return strand;}
+	
+	/**
+	 * Empty count stores, indexed by k (entries below mink are null)
+	 */
+	public KmerCounts[] newCounts(){
+		KmerCounts[] counts = new KmerCounts[maxk+1];
+		for(int k=mink; k<=maxk; k++)
+			counts[k] = KmerCounts.create(k);
+		return counts;
+	}
+	
+	/**
+	 * Add all k-mers in the sequence to the counts
+	 */
+	public void count(CharSequence seq, KmerCounts[] counts){
+		count(seq, 0, seq.length(), counts);
+	}
+	
+	/**
+	 * Add all k-mers in the sequence to counts for a single k (which must lie in mink..maxk)
+	 */
+	public void count(CharSequence seq, KmerCounts counts){
+		if(counts.getK()<mink || counts.getK()>maxk)
+			throw new IllegalArgumentException(counts.getK()+"-mer counts are outside the counted range "+mink+" to "+maxk);
+		KmerCounts[] byK = new KmerCounts[maxk+1];
+		byK[counts.getK()] = counts;
+		count(seq, 0, seq.length(), byK);
+	}
+	
+	/**
+	 * Add the k-mers that start at positions [from, to) of the sequence to the counts.
+	 * k-mers starting near "to" may read up to maxk-1 bases past it. 
+	 * Lengths whose entry in counts is null are skipped.  
+	 */
+	public void count(CharSequence seq, int from, int to, KmerCounts[] counts){
+		int end = Math.min(seq.length(), to+maxk-1);
+		int rcShift = 2*(maxk-1);
+		long fwd=0, rev=0;
+		int run=0;
+		for(int i=from; i<end; i++){
+			int c = KmerCodec.baseCode(seq.charAt(i));
+			if(c<0){
+				fwd=0; rev=0; run=0;
+				continue;
+			}
+			fwd = ((fwd<<2) | c) & masks[maxk];
+			rev = (rev>>>2) | ((long)(3-c) << rcShift);
+			run++;
+			
+			int kmax = Math.min(maxk, run);
+			for(int k=mink; k<=kmax; k++){
+				KmerCounts kc = counts[k];
+				if(kc==null || i-k+1 >= to)
+					continue;
+				long f = fwd & masks[k];
+				switch(strand){
+				case FORWARD:
+					kc.increment(f);
+					break;
+				case BOTH:
+					kc.increment(f);
+					kc.increment(rev>>>(2*(maxk-k)));
+					break;
+				case CANONICAL:
+					kc.increment(Math.min(f, rev>>>(2*(maxk-k))));
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Count k-mers in a collection of sequences, dividing the sequences between numThreads workers
+	 * @return counts indexed by k
+	 */
+	public KmerCounts[] count(List<? extends CharSequence> seqs, int numThreads){
+		numThreads = Math.max(1, Math.min(affordableThreads(numThreads), seqs.size()));
+		List<CountWorker> workers = new ArrayList<CountWorker>();
+		int chunk = (seqs.size()+numThreads-1)/numThreads;
+		for(int t=0; t<numThreads; t++){
+			int s = t*chunk, e = Math.min(seqs.size(), s+chunk);
+			if(s<e)
+				workers.add(new CountWorker(seqs.subList(s, e), null, 0, 0));
+		}
+		return runWorkers(workers);
+	}
+	
+	/**
+	 * Count k-mers in one long sequence (e.g. a chromosome), splitting it into numThreads chunks.
+	 * Chunks overlap by maxk-1 bases so that no k-mer is lost or counted twice at the boundaries. 
+	 * @return counts indexed by k
+	 */
+	public KmerCounts[] count(CharSequence seq, int numThreads){
+		numThreads = affordableThreads(numThreads);
+		List<CountWorker> workers = new ArrayList<CountWorker>();
+		int chunk = (seq.length()+numThreads-1)/numThreads;
+		for(int t=0; t<numThreads; t++){
+			int s = t*chunk, e = Math.min(seq.length(), s+chunk);
+			if(s<e)
+				workers.add(new CountWorker(null, seq, s, e));
+		}
+		return runWorkers(workers);
+	}
+	
+	/**
+	 * Merge partial counts (indexed by k) into the first set
+	 */
+	public static void merge(KmerCounts[] into, KmerCounts[] from){
+		for(int k=0; k<into.length && k<from.length; k++)
+			if(into[k]!=null && from[k]!=null)
+				into[k].merge(from[k]);
+	}
+	
+	/**
+	 * Rolling forward codes for every k-mer start position in the sequence.
+	 * Positions whose k-mer contains a non-ACGT character are set to -1.
+	 */
+	public static long[] encodeAll(CharSequence seq, int k){
+		int n = Math.max(0, seq.length()-k+1);
+		long[] codes = new long[n];
+		long mask = KmerCodec.mask(k), code=0;
+		int run=0;
+		for(int i=0; i<seq.length(); i++){
+			int c = KmerCodec.baseCode(seq.charAt(i));
+			if(c<0){
+				code=0; run=0;
+			}else{
+				code = ((code<<2) | c) & mask;
+				run++;
+			}
+			if(i>=k-1)
+				codes[i-k+1] = run>=k ? code : -1;
+		}
+		return codes;
+	}
+	
+	/**
+	 * Each worker holds its own dense count arrays, so cap the number of workers 
+	 * at what half of the available heap can hold.
+	 */
+	private int affordableThreads(int numThreads){
+		long bytesPerWorker=0;
+		for(int k=mink; k<=Math.min(maxk, KmerCounts.DENSE_MAX_K); k++)
+			bytesPerWorker += 4*KmerCodec.numKmers(k);
+		Runtime rt = Runtime.getRuntime();
+		long free = rt.maxMemory() - (rt.totalMemory()-rt.freeMemory());
+		long affordable = bytesPerWorker==0 ? numThreads : (free/2)/bytesPerWorker;
+		return (int)Math.max(1, Math.min(numThreads, affordable));
+	}
+	
+	private KmerCounts[] runWorkers(List<CountWorker> workers){
+		if(workers.size()==0)
+			return newCounts();
+		if(workers.size()==1){
+			workers.get(0).run();
+		}else{
+			List<Thread> threads = new ArrayList<Thread>();
+			for(CountWorker w : workers){
+				Thread t = new Thread(w);
+				t.start();
+				threads.add(t);
+			}
+			for(Thread t : threads){
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while counting k-mers", e);
+				}
+			}
+		}
+		KmerCounts[] total = workers.get(0).counts;
+		for(int w=1; w<workers.size(); w++)
+			merge(total, workers.get(w).counts);
+		return total;
+	}
+	
+	/**
+	 * Counts either a list of sequences or a [from,to) chunk of one sequence into its own partial counts
+	 */
+	private class CountWorker implements Runnable{
+		List<? extends CharSequence> seqs;
+		CharSequence seq;
+		int from, to;
+		KmerCounts[] counts;
+		
+		public CountWorker(List<? extends CharSequence> seqs, CharSequence seq, int from, int to){
+			this.seqs = seqs;
+			this.seq = seq;
+			this.from = from;
+			this.to = to;
+			counts = newCounts();
+		}
+		public void run(){
+			if(seqs!=null){
+				for(CharSequence s : seqs)
+					count(s, counts);
+			}else{
+				count(seq, from, to, counts);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.seqcode.genome.sequence.kmers;
+
+/**
+ * KmerCounts: counts of k-mer codes (see KmerCodec) for a single k.
+ * 
+ * Use create(k) to get the appropriate backing store: a dense int[4^k] for small k, 
+ * or an open-addressing hash table for larger k. 
+ * Partial counts (e.g. from different threads) can be combined with merge().  
+ */
+public abstract class KmerCounts {
+
+	/** Largest k that is counted in a dense array (4^13 ints = 256MB) */
+	public static final int DENSE_MAX_K = 13;
+	
+	protected int k;
+	
+	protected KmerCounts(int k){
+		if(k<1 || k>KmerCodec.MAX_K)
+			throw new IllegalArgumentException("k must be between 1 and "+KmerCodec.MAX_K+": "+k);
+		this.k = k;
+	}
+	
+	/**
+	 * Make an empty count store that suits this k
+	 */
+	public static KmerCounts create(int k){
+		if(k<=DENSE_MAX_K)
+			return new DenseKmerCounts(k);
+		else
+			return new SparseKmerCounts(k);
+	}
+	
+	public int getK(){return k;}
+	
+	/** Increment the count for the k-mer code by one */
+	public void increment(long kmer){ add(kmer, 1);}
+	
+	/** Add n to the count for the k-mer code */
+	public abstract void add(long kmer, int n);
+	
+	/** Count for the k-mer code (zero if never seen) */
+	public abstract int get(long kmer);
+	
+	/** Number of distinct k-mers with non-zero counts */
+	public abstract int size();
+	
+	/** Sum of all counts */
+	public abstract long total();
+	
+	/** Codes of all k-mers with non-zero counts, in ascending order */
+	public abstract long[] kmers();
+	
+	/**
+	 * Count for a k-mer given as a String.
+	 * @throws NumberFormatException if the k-mer contains a non-ACGT character or has the wrong length 
+	 */
+	public int get(String kmer) throws NumberFormatException{
+		long code = kmer.length()==k ? KmerCodec.encode(kmer) : -1;
+		if(code<0)
+			throw new NumberFormatException("Invalid "+k+"-mer: "+kmer);
+		return get(code);
+	}
+	
+	/**
+	 * Add all counts from another store with the same k into this one
+	 */
+	public void merge(KmerCounts other){
+		if(other.k != k)
+			throw new IllegalArgumentException("Cannot merge "+other.k+"-mer counts into "+k+"-mer counts");
+		for(long kmer : other.kmers())
+			add(kmer, other.get(kmer));
+	}
+}
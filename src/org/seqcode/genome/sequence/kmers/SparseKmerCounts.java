@@ -0,0 +1,113 @@
+package org.seqcode.genome.sequence.kmers;
+
+import java.util.Arrays;
+
+/**
+ * SparseKmerCounts: k-mer counts stored in an open-addressing (linear probing) long-to-int hash table.
+ * Used for k too large to count in a dense array. 
+ */
+public class SparseKmerCounts extends KmerCounts {
+
+	private static final long EMPTY = -1L; //Valid codes are never negative
+	private static final double MAX_LOAD = 0.6;
+	
+	private long[] keys;
+	private int[] values;
+	private int size=0;
+	private int resizeAt;
+	
+	public SparseKmerCounts(int k){
+		this(k, 1024);
+	}
+	
+	public SparseKmerCounts(int k, int expectedSize){
+		super(k);
+		int cap = 16;
+		while(cap*MAX_LOAD < expectedSize)
+			cap<<=1;
+		allocate(cap);
+	}
+	
+	private void allocate(int capacity){
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int[capacity];
+		resizeAt = (int)(capacity*MAX_LOAD);
+	}
+	
+	/** Mix the bits of the code so that neighbouring k-mers spread over the table */
+	private static int hash(long kmer){
+		long h = kmer * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h>>>32));
+	}
+	
+	private int slot(long kmer){
+		int m = keys.length-1;
+		int i = hash(kmer) & m;
+		while(keys[i]!=EMPTY && keys[i]!=kmer)
+			i = (i+1) & m;
+		return i;
+	}
+	
+	public void add(long kmer, int n){
+		int i = slot(kmer);
+		if(keys[i]==EMPTY){
+			keys[i]=kmer;
+			values[i]=n;
+			if(++size>resizeAt)
+				rehash();
+		}else{
+			values[i]+=n;
+		}
+	}
+	
+	public int get(long kmer){
+		int i = slot(kmer);
+		return keys[i]==EMPTY ? 0 : values[i];
+	}
+	
+	public int size(){return size;}
+	
+	public long total(){
+		long t=0;
+		for(int i=0; i<keys.length; i++)
+			if(keys[i]!=EMPTY)
+				t+=values[i];
+		return t;
+	}
+	
+	public long[] kmers(){
+		long[] out = new long[size];
+		int x=0;
+		for(int i=0; i<keys.length; i++)
+			if(keys[i]!=EMPTY && values[i]!=0)
+				out[x++]=keys[i];
+		out = x==size ? out : Arrays.copyOf(out, x);
+		Arrays.sort(out);
+		return out;
+	}
+	
+	private void rehash(){
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length*2);
+		for(int i=0; i<oldKeys.length; i++){
+			if(oldKeys[i]!=EMPTY){
+				int s = slot(oldKeys[i]);
+				keys[s]=oldKeys[i];
+				values[s]=oldValues[i];
+			}
+		}
+	}
+	
+	public void merge(KmerCounts other){
+		if(other instanceof SparseKmerCounts && other.k==k){
+			SparseKmerCounts o = (SparseKmerCounts)other;
+			for(int i=0; i<o.keys.length; i++)
+				if(o.keys[i]!=EMPTY)
+					add(o.keys[i], o.values[i]);
+		}else{
+			super.merge(other);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.seqcode.genome.sequence.kmers.unittests;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+import org.seqcode.genome.sequence.kmers.KmerCodec;
+import org.seqcode.genome.sequence.kmers.KmerCounter;
+import org.seqcode.genome.sequence.kmers.KmerCounts;
+import org.seqcode.motifs.CountKmers;
+import org.seqcode.motifs.DiscriminativeKmers;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks KmerCounter (and the CountKmers and DiscriminativeKmers counting built on it) against naive substring counts
+ */
+public class TestKmerCounter {
+
+	private List<String> seqs;
+
+	@Before public void setUp() {
+		Random rand = new Random(13);
+		String alphabet = "ACGTACGTACGTacgtN";
+		seqs = new ArrayList<String>();
+		for(int i=0; i<40; i++){
+			StringBuilder sb = new StringBuilder();
+			int len = rand.nextInt(300);
+			for(int j=0; j<len; j++)
+				sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+			seqs.add(sb.toString());
+		}
+	}
+
+	private static String revComp(String s){
+		StringBuilder sb = new StringBuilder();
+		for(int i=s.length()-1; i>=0; i--)
+			sb.append("TGCA".charAt("ACGT".indexOf(s.charAt(i))));
+		return sb.toString();
+	}
+
+	private static void add(Map<String,Integer> m, String kmer){
+		Integer c = m.get(kmer);
+		m.put(kmer, c==null ? 1 : c+1);
+	}
+
+	/* Counts every k-mer that has no non-ACGT character, by substring */
+	private static Map<String,Integer> naive(List<String> seqs, int k, KmerCounter.Strand strand){
+		Map<String,Integer> m = new HashMap<String,Integer>();
+		for(String s : seqs){
+			String u = s.toUpperCase();
+			for(int i=0; i+k<=u.length(); i++){
+				String kmer = u.substring(i, i+k);
+				if(!kmer.matches("[ACGT]+"))
+					continue;
+				String rc = revComp(kmer);
+				switch(strand){
+				case FORWARD: add(m, kmer); break;
+				case BOTH: add(m, kmer); add(m, rc); break;
+				case CANONICAL: add(m, kmer.compareTo(rc)<=0 ? kmer : rc); break;
+				}
+			}
+		}
+		return m;
+	}
+
+	private static Map<String,Integer> asMap(KmerCounts counts){
+		Map<String,Integer> m = new HashMap<String,Integer>();
+		for(long kmer : counts.kmers())
+			if(counts.get(kmer)>0)
+				m.put(KmerCodec.decode(kmer, counts.getK()), counts.get(kmer));
+		return m;
+	}
+
+	//Dense (array) and sparse (hash) count stores; dense stores above k=10 are too big to make several of
+	private static final int[][] K_RANGES = {{1, 9}, {14, 16}};
+
+	@Test public void testNaive() {
+		for(KmerCounter.Strand strand : KmerCounter.Strand.values()){
+			for(int[] range : K_RANGES){
+				KmerCounter counter = new KmerCounter(range[0], range[1], strand);
+				KmerCounts[] counts = counter.newCounts();
+				for(String s : seqs)
+					counter.count(s, counts);
+				for(int k=range[0]; k<=range[1]; k++)
+					assertEquals(strand+" k="+k, naive(seqs, k, strand), asMap(counts[k]));
+			}
+		}
+	}
+
+	@Test public void testThreads() {
+		StringBuilder all = new StringBuilder();
+		for(String s : seqs)
+			all.append(s);
+		List<String> one = new ArrayList<String>();
+		one.add(all.toString());
+		for(int[] range : K_RANGES){
+			KmerCounter counter = new KmerCounter(range[0], range[1], KmerCounter.Strand.BOTH);
+			KmerCounts[] serial = counter.count(seqs, 1);
+			KmerCounts[] parallel = counter.count(seqs, 4);
+			KmerCounts[] whole = counter.count(all, 1), chunked = counter.count(all, 5);
+			for(int k=range[0]; k<=range[1]; k++){
+				assertEquals(asMap(serial[k]), asMap(parallel[k]));
+				assertEquals(asMap(whole[k]), asMap(chunked[k]));
+				assertEquals(naive(one, k, KmerCounter.Strand.BOTH), asMap(whole[k]));
+			}
+		}
+	}
+
+	@Test public void testCountKmers() {
+		CountKmers serial = new CountKmers(), parallel = new CountKmers();
+		serial.init(2, 6);
+		parallel.init(2, 6);
+		for(String s : seqs)
+			serial.addToCounts(s);
+		parallel.addToCounts(seqs, 3);
+		for(int k=2; k<=6; k++){
+			Map<String,Integer> expected = naive(seqs, k, KmerCounter.Strand.FORWARD);
+			assertEquals(expected, asMap(serial.getKmerCounts(k)));
+			assertEquals(expected, asMap(parallel.getKmerCounts(k)));
+			for(String kmer : expected.keySet())
+				assertEquals(expected.get(kmer).intValue(), parallel.getCount(kmer, k));
+		}
+	}
+
+	@Test public void testDiscriminativeKmers() {
+		for(int k : new int[]{4, 8, 14}){
+			KmerCounts counts = null;
+			for(String s : seqs)
+				counts = DiscriminativeKmers.count(s.toCharArray(), k, counts);
+			assertEquals(naive(seqs, k, KmerCounter.Strand.FORWARD), asMap(counts));
+			//The per-k counter is shared between calls and must carry nothing over
+			KmerCounts again = DiscriminativeKmers.count(seqs.get(0).toCharArray(), k, null);
+			KmerCounts fresh = KmerCounts.create(k);
+			new KmerCounter(k, k, KmerCounter.Strand.FORWARD).count(CharBuffer.wrap(seqs.get(0)), fresh);
+			assertEquals(asMap(fresh), asMap(again));
+		}
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.genome.sequence.kmers.unittests.TestKmerCounter");
+	}
+
+}
@@ -103,45 +103,53 @@ public class CompositeSeqFunction<F extends SeqFunction> {
 	 */
 	public void populate(){
 		try{
-			int numSeqs = 0;
-			double normTotal=0;
-			
-			//Weighted mean
-			for(ScoredSequence s : scoredSeqs){
-				if(s.getSeq().length()==width){
-					numSeqs++;
-		        	normTotal+=s.getScore();
-		        	
-		        	double[][] tmpScores = function.score(s.getSeq());
+			//Score each full-width sequence once (in parallel for the shape functions)
+			List<String> seqs = new ArrayList<String>();
+			for(ScoredSequence s : scoredSeqs)
+				if(s.getSeq().length()==width)
+					seqs.add(s.getSeq());
+			int numSeqs = seqs.size();
+			double[] weights = new double[numSeqs];
+			int wx=0;
+			for(ScoredSequence s : scoredSeqs)
+				if(s.getSeq().length()==width)
+					weights[wx++]=s.getScore();
+			rawScores = new double[function.scoreDimension()][width][numSeqs];
+			if(function instanceof ShapeStructureFunction){
+				double[][][] batch = ((ShapeStructureFunction)function).score(seqs);
+				for(int i=0; i<function.scoreDimension(); i++)
+					for(int sx=0; sx<numSeqs; sx++)
+						for(int j=0; j<width; j++)
+							rawScores[i][j][sx]=batch[i][sx][j];
+			}else{
+				for(int sx=0; sx<numSeqs; sx++){
+					double[][] tmpScores = function.score(seqs.get(sx));
 					for(int i=0; i<function.scoreDimension(); i++)
-		    			for(int j=0; j<width; j++)
-		    				means[i][j]+=(tmpScores[i][j]*s.getScore());
+						for(int j=0; j<width; j++)
+							rawScores[i][j][sx]=tmpScores[i][j];
 				}
 			}
+			
+			//Weighted mean
+			double normTotal=0;
+			for(int sx=0; sx<numSeqs; sx++)
+				normTotal+=weights[sx];
 			for(int i=0; i<function.scoreDimension(); i++)
-				for(int j=0; j<width; j++)
+				for(int j=0; j<width; j++){
+					double[] col = rawScores[i][j];
+					for(int sx=0; sx<numSeqs; sx++)
+						means[i][j]+=col[sx]*weights[sx];
 					means[i][j] = means[i][j]/normTotal;
-			
-			//Init the raw scores
-			rawScores = new double[function.scoreDimension()][width][numSeqs];
-			
-			//Weighted variance & raw scores
-			int sx=0;
-			for(ScoredSequence s : scoredSeqs){
-				if(s.getSeq().length()==width){
-		        	double[][] tmpScores = function.score(s.getSeq());
-					for(int i=0; i<function.scoreDimension(); i++)
-		    			for(int j=0; j<width; j++){
-		    				variances[i][j]+=s.getScore()*(tmpScores[i][j]-means[i][j])*(tmpScores[i][j]-means[i][j]);
-		    				rawScores[i][j][sx]=tmpScores[i][j];
-		    			}
-					sx++;
 				}
-			}
+			
+			//Weighted variance
 			for(int i=0; i<function.scoreDimension(); i++)
-				for(int j=0; j<width; j++)
+				for(int j=0; j<width; j++){
+					double[] col = rawScores[i][j];
+					for(int sx=0; sx<numSeqs; sx++)
+						variances[i][j]+=weights[sx]*(col[sx]-means[i][j])*(col[sx]-means[i][j]);
 					variances[i][j] = variances[i][j]/normTotal;
-			
+				}
 			
 		} catch (SeqFunctionException e) {
 			e.printStackTrace();
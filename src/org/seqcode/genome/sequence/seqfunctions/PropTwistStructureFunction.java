@@ -14,7 +14,7 @@ import java.util.Map;
  * @author mahony
  *
  */
-public class PropTwistStructureFunction implements SeqFunction{
+public class PropTwistStructureFunction extends ShapeStructureFunction{
 
 	//Variables
 	final int scoreDimension = 1;
@@ -24,30 +24,18 @@ public class PropTwistStructureFunction implements SeqFunction{
 	final String[] labels = {"PropT"};
 	final String description = "Propeller Twist (Rohs)";
 	
-	Map<String, Double> structure = new HashMap<String, Double>();
-	
+	//Pentamer table, indexed by 10-bit pentamer code & shared by all instances
+	private static final double[] structure;
+	static{
+		Map<String, Double> m = new HashMap<String, Double>();
+		loadStructureValues(m);
+		structure = toTable(m);
+	}
 	
 	public PropTwistStructureFunction(){
-		loadStructureValues();
+		super(structure, null);
 	}
 	
-	public double[][] score(String seq) throws SeqFunctionException {
-		if(seq.length()<scoreWindowSize)
-			throw new SeqFunctionException("Sequence too short for PropTwistStructureFunction");
-		
-		double [][] scores = new double[scoreDimension][seq.length()]; 
-		String seqU = seq.toUpperCase();
-		for(int i=0; i<seqU.length(); i++)
-			scores[0][i]=0;
-		for(int i=0; i<seqU.length()-scoreWindowSize+1; i++){
-			String kmer = seqU.substring(i, i+scoreWindowSize);
-			
-			scores[0][i+scoringOffset]=structure.get(kmer);
-		}
-		
-		return scores;
-	}
-
 	public int scoreDimension() {
 		return scoreDimension;
 	}
@@ -76,7 +64,7 @@ public class PropTwistStructureFunction implements SeqFunction{
 	public double getMaxScore(){return -0.03;}
 	public double getMinScore(){return -16.51;}
 	
-	private void loadStructureValues(){
+	private static void loadStructureValues(Map<String, Double> structure){
 		structure.put("AAAAA",  -16.51);
 		structure.put("AAAAT",  -14.89);
 		structure.put("AAAAG",  -14.68);
@@ -14,7 +14,7 @@ import java.util.Map;
  * @author mahony
  *
  */
-public class RollStructureFunction implements SeqFunction{
+public class RollStructureFunction extends ShapeStructureFunction{
 
 	//Variables
 	final int scoreDimension = 1;
@@ -24,38 +24,20 @@ public class RollStructureFunction implements SeqFunction{
 	final String[] labels = {"Roll"};
 	final String description = "Roll (Rohs)";
 	
-	Map<String, Double> structureA = new HashMap<String, Double>();
-	Map<String, Double> structureB = new HashMap<String, Double>();
-	
+	//Pentamer tables, indexed by 10-bit pentamer code & shared by all instances
+	private static final double[] structureA, structureB;
+	static{
+		Map<String, Double> a = new HashMap<String, Double>();
+		Map<String, Double> b = new HashMap<String, Double>();
+		loadStructureValues(a, b);
+		structureA = toTable(a);
+		structureB = toTable(b);
+	}
 	
 	public RollStructureFunction(){
-		loadStructureValues();
+		super(structureA, structureB);
 	}
 	
-	public double[][] score(String seq) throws SeqFunctionException {
-		if(seq.length()<scoreWindowSize)
-			throw new SeqFunctionException("Sequence too short for RollStructureFunction");
-		
-		double [][] scores = new double[scoreDimension][seq.length()]; 
-		String seqU = seq.toUpperCase();
-		for(int i=0; i<seqU.length(); i++)
-			scores[0][i]=0;
-		Double lastBscore =0.0;
-		for(int i=0; i<seqU.length()-scoreWindowSize+1; i++){
-			String kmer = seqU.substring(i, i+scoreWindowSize);
-			
-			if(i==0){
-				scores[0][i+scoringOffset]=structureA.get(kmer);
-			}else{
-				scores[0][i+scoringOffset]=(structureA.get(kmer)+lastBscore)/2;
-			}
-			scores[0][i+scoringOffset+1]=structureB.get(kmer);
-			lastBscore = structureB.get(kmer);
-		}
-		
-		return scores;
-	}
-
 	public int scoreDimension() {
 		return scoreDimension;
 	}
@@ -83,7 +65,7 @@ public class RollStructureFunction implements SeqFunction{
 
 	public double getMaxScore(){return 8.64;}
 	public double getMinScore(){return -8.57;}
-	private void loadStructureValues(){
+	private static void loadStructureValues(Map<String, Double> structureA, Map<String, Double> structureB){
 		structureA.put("AAAAA",  -5.05);
 		structureA.put("AAAAT",  -3.56);
 		structureA.put("AAAAG",  -4.23);
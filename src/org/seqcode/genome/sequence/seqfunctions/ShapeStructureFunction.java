@@ -0,0 +1,162 @@
+package org.seqcode.genome.sequence.seqfunctions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.seqcode.genome.sequence.kmers.KmerCodec;
+
+/**
+ * Base class for the pentamer-based DNA shape functions (Rohs lab DNAshape tables).
+ * 
+ * Pentamers are rolled along the sequence as 10-bit codes (2 bits per base), which index directly into 
+ * primitive double[1024] tables. The tables are built once per function type and shared by all instances,
+ * so scoring allocates nothing per base. Batches of sequences are scored on a shared (or caller-supplied) thread pool.
+ * 
+ * Functions defined between nucleotides (Roll, HelT) have two tables (A & B values for the two central 
+ * base steps of the pentamer); others (MGW, ProT) have a single table. Windows that contain a non-ACGT base are 
+ * left with a score of zero. 
+ * 
+ * @author mahony
+ *
+ */
+public abstract class ShapeStructureFunction implements SeqFunction{
+
+	public static final int PENTAMER = 5;
+	public static final int NUM_PENTAMERS = 1024;
+	private static final int PENTAMER_MASK = NUM_PENTAMERS-1;
+	private static ExecutorService sharedPool=null;
+	
+	protected double[] tableA;
+	protected double[] tableB;
+	
+	protected ShapeStructureFunction(double[] tableA, double[] tableB){
+		this.tableA = tableA;
+		this.tableB = tableB;
+	}
+	
+	/**
+	 * Convert a pentamer->value map to a table indexed by 10-bit pentamer code
+	 */
+	protected static double[] toTable(Map<String, Double> values){
+		double[] table = new double[NUM_PENTAMERS];
+		for(String kmer : values.keySet()){
+			long code = KmerCodec.encode(kmer);
+			if(kmer.length()==PENTAMER && code>=0)
+				table[(int)code] = values.get(kmer);
+		}
+		return table;
+	}
+	
+	public double[][] score(String seq) throws SeqFunctionException {
+		if(seq.length()<scoreWindowSize())
+			throw new SeqFunctionException("Sequence too short for "+getClass().getSimpleName());
+		double [][] scores = new double[scoreDimension()][seq.length()];
+		scoreInto(seq, scores[0]);
+		return scores;
+	}
+	
+	/**
+	 * Score a batch of sequences on a pool shared by all shape functions (one thread per available processor).
+	 * @param seqs
+	 * @return scores indexed by [dimension][sequence][position] 
+	 * @throws SeqFunctionException if any sequence is too short
+	 */
+	public double[][][] score(List<String> seqs) throws SeqFunctionException {
+		return score(seqs, getSharedPool());
+	}
+	
+	/**
+	 * Score a batch of sequences on the given executor, which is not shut down. 
+	 * @param seqs
+	 * @param exec
+	 * @return scores indexed by [dimension][sequence][position] 
+	 * @throws SeqFunctionException if any sequence is too short
+	 */
+	public double[][][] score(final List<String> seqs, ExecutorService exec) throws SeqFunctionException {
+		final double[][][] scores = new double[scoreDimension()][seqs.size()][];
+		for(int s=0; s<seqs.size(); s++){
+			if(seqs.get(s).length()<scoreWindowSize())
+				throw new SeqFunctionException("Sequence too short for "+getClass().getSimpleName());
+			scores[0][s] = new double[seqs.get(s).length()];
+		}
+		final int tasks = Math.min(seqs.size(), Runtime.getRuntime().availableProcessors());
+		if(tasks<=1){
+			for(int s=0; s<seqs.size(); s++)
+				scoreInto(seqs.get(s), scores[0][s]);
+			return scores;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int t=0; t<tasks; t++){
+			final int first = t;
+			futures.add(exec.submit(new Runnable(){
+				public void run(){
+					for(int s=first; s<seqs.size(); s+=tasks)
+						scoreInto(seqs.get(s), scores[0][s]);
+				}
+			}));
+		}
+		try {
+			for(Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			for(Future<?> f : futures)
+				f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new SeqFunctionException("Interrupted while scoring sequences");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return scores;
+	}
+	
+	private static synchronized ExecutorService getSharedPool(){
+		if(sharedPool==null){
+			sharedPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ShapeStructureFunction worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sharedPool;
+	}
+	
+	/**
+	 * Fill the score array for one sequence. 
+	 * out must be the same length as seq, and is assumed to be zeroed.  
+	 */
+	protected void scoreInto(CharSequence seq, double[] out){
+		int offset = scoringOffset();
+		int code=0, run=0;
+		boolean havePrev=false;
+		double lastB=0;
+		for(int i=0; i<seq.length(); i++){
+			int c = KmerCodec.baseCode(seq.charAt(i));
+			if(c<0){
+				run=0;
+				havePrev=false;
+				continue;
+			}
+			code = ((code<<2) | c) & PENTAMER_MASK;
+			if(++run < PENTAMER)
+				continue;
+			
+			int w = i-PENTAMER+1;
+			if(tableB==null){
+				out[w+offset] = tableA[code];
+			}else{
+				out[w+offset] = havePrev ? (tableA[code]+lastB)/2 : tableA[code];
+				lastB = tableB[code];
+				out[w+offset+1] = lastB;
+				havePrev=true;
+			}
+		}
+	}
+}
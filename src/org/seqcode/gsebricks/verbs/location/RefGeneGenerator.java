@@ -38,6 +38,10 @@ import org.seqcode.gsebricks.verbs.Expander;
  *	 2) The execute method prepends "chr" to the chromosome names by default. 
  *		There are genomes where this is not what we want, so I'm adding constructors in here to handle this case.  
  *	
+ *   If a RefGeneSnapshot is set (or registered for the genome & table), queries are answered from the snapshot's
+ *   in-memory interval index instead of the database. Results are the same Genes the SQL queries return
+ *   (ties in closestN mode may be ordered differently).
+ *
  *
  * @author Alex Rolfe
  */
@@ -53,6 +57,7 @@ public class RefGeneGenerator<X extends Region>
     private static final int TOSTART = 1, TOEND = 2, TOWHOLE = 3;
     private int upstream, downstream, closestN, toBoundary;
     private boolean prependChr=true;
+    private RefGeneSnapshot snapshot=null;
 
     /**
      * Creates a <code>RefGeneGenerator</code> for the default gene type/table
@@ -193,6 +198,17 @@ public class RefGeneGenerator<X extends Region>
     }
     public Genome getGenome() {return genome;}
     public String getTable() {return tablename;}
+    public String getSymbolTable() {return symboltable;}
+    public String getNameColumn() {return namecolumn;}
+    public String getSymbolColumn() {return symbolcolumn;}
+    /** query a local snapshot rather than the database */
+    public void setSnapshot(RefGeneSnapshot s) {snapshot = s;}
+    /** the snapshot set on this generator or, failing that, the one registered for the genome & table (may be null) */
+    public RefGeneSnapshot getSnapshot() {
+        if (snapshot != null) {return snapshot;}
+        if (genome == null || tablename == null) {return null;}
+        return RefGeneSnapshot.getRegistered(genome.getVersion(), tablename);
+    }
     /* retrieve aliases with Genes */
     public boolean getWantAlias() {return wantalias;}
     public void setWantAlias(boolean b) {
@@ -358,14 +374,35 @@ public class RefGeneGenerator<X extends Region>
         if (!region.getGenome().equals(genome)) {
             setGenome(region.getGenome(), tablename);
         }
+        String chr = region.getChrom();
+        if (prependChr && !chr.matches("^(chr|scaffold).*")) {
+            chr = "chr" + chr;
+        }
+        RefGeneSnapshot snap = getSnapshot();
+        if (snap != null) {
+            List<RefGeneSnapshot.Transcript> hits;
+            if (upstream != 0 || downstream != 0) {
+                hits = snap.upstreamOverlapping(chr, region.getStart(), region.getEnd(), upstream, downstream, wantCoding);
+            } else if (closestN == 0) {
+                hits = snap.overlapping(chr, region.getStart(), region.getEnd(), wantCoding);
+            } else {
+                hits = null;
+            }
+            if (closestN != 0) {
+                RefGeneSnapshot.Boundary b = toBoundary == TOSTART ? RefGeneSnapshot.Boundary.START :
+                    (toBoundary == TOEND ? RefGeneSnapshot.Boundary.END : RefGeneSnapshot.Boundary.WHOLE);
+                if (hits == null) {
+                    hits = snap.closest(chr, region.getStart(), region.getEnd(), closestN, b, wantCoding);
+                } else {
+                    hits = closestOf(hits, region, b);
+                }
+            }
+            return toGenes(hits, snap);
+        }
         int offset = 1;
         try {
         	Connection cxn = genome.getAnnotationDBConnection();
         	prepareStatements(cxn);
-            String chr = region.getChrom();
-            if (prependChr && !chr.matches("^(chr|scaffold).*")) {
-                chr = "chr" + chr;
-            }
             ps.setString(offset++, chr);
             if (upstream != 0 || downstream != 0) {
                 offset = bindUpstreamOverlap(ps, offset, region);
@@ -386,6 +423,10 @@ public class RefGeneGenerator<X extends Region>
         }
     }
     public synchronized Iterator<Gene> getAll() throws SQLException {
+    		RefGeneSnapshot snap = getSnapshot();
+    		if (snap != null) {
+    			return toGenes(snap.all(), snap);
+    		}
     		Connection cxn = genome.getAnnotationDBConnection();
     		prepareStatements(cxn);
     		Iterator<Gene> results = parseResults(getallps);
@@ -394,6 +435,10 @@ public class RefGeneGenerator<X extends Region>
             return results;
         }
     public synchronized Iterator<Gene> byName(String name) {
+        RefGeneSnapshot snap = getSnapshot();
+        if (snap != null) {
+            return toGenes(snap.byName(name), snap);
+        }
         try {
         	Connection cxn = genome.getAnnotationDBConnection();
     		prepareStatements(cxn);
@@ -515,6 +560,69 @@ public class RefGeneGenerator<X extends Region>
         return results.iterator();
     }
 
+    /* counterpart of parseResults() for snapshot queries */
+    protected synchronized Iterator<Gene> toGenes(List<RefGeneSnapshot.Transcript> transcripts, RefGeneSnapshot snap) {
+        ArrayList<Gene> results = new ArrayList<Gene>();
+        for (RefGeneSnapshot.Transcript t : transcripts) {
+            String chr = t.chrom.replaceFirst("^chr","");
+            char strand = t.strand;
+            if (flipstrand) {
+                strand = strand == '+' ? '-' : '+';
+            }
+            Gene g = null;
+            if (wantsExons) {
+                ExonicGene exonicGene = new ExonicGene(genome, chr, t.getStart(wantCoding)+1, t.getEnd(wantCoding),
+                                                       t.name, t.name, strand, "RefGene");
+                for (int i = 0; i < t.exonStarts.length; i++) {
+                    try {
+                        exonicGene.addExon(t.exonStarts[i]+1, t.exonEnds[i]); //Correction for 0-based starts in UCSC tables
+                    } catch(IllegalArgumentException iae) {
+                        System.err.println("Gene is " + exonicGene.toString());
+                        iae.printStackTrace(System.err);
+                    }
+                }
+                g = exonicGene;
+            } else {
+                g = new Gene(genome, chr, t.getStart(wantCoding)+1, t.getEnd(wantCoding), t.name, t.name, strand, "RefGene");
+            }
+            String[] syms = snap.getSymbols(t.name);
+            if (wantsymbol && syms != null) {
+                g.setName(syms[0]);
+                for (int i = 1; i < syms.length; i++) {
+                    g.addAlias(syms[i]);
+                }
+            }
+            String[] aliases = snap.getAliases(t.name);
+            if (wantalias && aliases != null) {
+                for (String a : aliases) {
+                    g.addAlias(a);
+                }
+            }
+            results.add(g);
+        }
+        return results.iterator();
+    }
+
+    /* the closestN of a candidate list, for closestN queries restricted to an upstream window */
+    private List<RefGeneSnapshot.Transcript> closestOf(List<RefGeneSnapshot.Transcript> hits, final X region, final RefGeneSnapshot.Boundary b) {
+        List<RefGeneSnapshot.Transcript> sorted = new ArrayList<RefGeneSnapshot.Transcript>(hits);
+        Collections.sort(sorted, new Comparator<RefGeneSnapshot.Transcript>() {
+            public int compare(RefGeneSnapshot.Transcript x, RefGeneSnapshot.Transcript y) {
+                return Long.compare(distance(x), distance(y));
+            }
+            private long distance(RefGeneSnapshot.Transcript t) {
+                long s = t.getStart(wantCoding), e = t.getEnd(wantCoding);
+                if (b == RefGeneSnapshot.Boundary.WHOLE) {
+                    return Math.min(Math.min(Math.abs(s - region.getEnd()), Math.abs(region.getEnd() - e)),
+                                    Math.min(Math.abs(s - region.getStart()), Math.abs(region.getStart() - e)));
+                }
+                long p = (b == RefGeneSnapshot.Boundary.START) == (t.strand == '+') ? s : e;
+                return Math.min(Math.abs(region.getEnd() - p), Math.abs(region.getStart() - p));
+            }
+        });
+        return sorted.subList(0, Math.min(closestN, sorted.size()));
+    }
+
     /* 
      * below here are private methods use to generate the SQL
      */
@@ -632,13 +740,19 @@ public class RefGeneGenerator<X extends Region>
     }
     /* command line driver for retrieving genes */
     public static void main(String args[]) throws Exception {
-        String specname = null, genomename = null;
+        String specname = null, genomename = null, snapshotfile = null, exportfile = null;
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("--species")) {
                 String pieces[] = args[++i].split(";");
                 specname = pieces[0];
                 genomename = pieces[1];
             }
+            if (args[i].equals("--snapshot")) {
+                snapshotfile = args[++i];
+            }
+            if (args[i].equals("--exportsnapshot")) {
+                exportfile = args[++i];
+            }
         }        
         if (specname == null || genomename == null) {
             throw new RuntimeException("Must supply --species 'species;genome'");
@@ -649,6 +763,12 @@ public class RefGeneGenerator<X extends Region>
         org = new Species(specname);
         genome = new Genome(org, genomename);
         RefGeneGenerator gen = new RefGeneGenerator(genome);
+        if (exportfile != null) {
+            RefGeneSnapshot.fromDatabase(genome, gen.getTable()).save(new File(exportfile));
+        }
+        if (snapshotfile != null) {
+            gen.setSnapshot(RefGeneSnapshot.load(new File(snapshotfile)));
+        }
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("--up")) {
                 gen.setUpstream(Integer.parseInt(args[++i]));
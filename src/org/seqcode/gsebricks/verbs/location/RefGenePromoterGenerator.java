@@ -13,10 +13,11 @@ import org.seqcode.genome.location.Region;
  * table with a similar structure, eg sgdGene) in a UCSC annotation
  * database.  The size parameter determines the size of the upstream
  * promoter region to use.  Any gene whose promoter region overlaps
- * the input region is returned
+ * the input region is returned.  Uses the RefGeneSnapshot for the
+ * genome & table when one is available.
 */
 
-public class RefGenePromoterGenerator extends RefGeneGenerator {
+public class RefGenePromoterGenerator extends RefGeneGenerator<Region> {
     private int up, down;
 
     public RefGenePromoterGenerator(Genome g, int size) {
@@ -40,6 +41,20 @@ public class RefGenePromoterGenerator extends RefGeneGenerator {
         this.down = down;
     }
     public Iterator<Gene> execute(Region region) {
+        RefGeneSnapshot snap = getSnapshot();
+        if (snap != null) {
+            String chr = region.getChrom();
+            if (!chr.matches("^(chr|scaffold).*")) {
+                chr = "chr" + chr;
+            }
+            List<RefGeneSnapshot.Transcript> hits = snap.promoterOverlapping(chr, region.getStart(), region.getEnd(), up, down);
+            Collections.sort(hits, new Comparator<RefGeneSnapshot.Transcript>() {
+                public int compare(RefGeneSnapshot.Transcript a, RefGeneSnapshot.Transcript b) {
+                    return Integer.compare(a.txStart, b.txStart);
+                }
+            });
+            return toGenes(hits, snap);
+        }
         try {
             java.sql.Connection cxn =
                 getGenome().getAnnotationDBConnection();
@@ -0,0 +1,490 @@
+package org.seqcode.gsebricks.verbs.location;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.seqcode.data.connections.DatabaseException;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.IntervalIndex;
+
+
+/**
+ * RefGeneSnapshot: a local copy of a refGene-style UCSC annotation table (and its gene symbol / alias tables)
+ * with a per-chromosome interval index.
+ *
+ * A snapshot is exported from the annotation database once (fromDatabase + save) and can then be loaded from
+ * a compact binary file on machines with no database access. RefGeneGenerator and RefGenePromoterGenerator answer
+ * their queries from a snapshot when one is set on them or registered for their genome & table, which turns one
+ * SQL round trip per query region into an in-memory index lookup.
+ *
+ * Coordinates are stored as they appear in the UCSC tables (0-based starts, 1-based ends); the corrections are
+ * applied by RefGeneGenerator when Genes are made, exactly as for database results.
+ *
+ * Usage: java org.seqcode.gsebricks.verbs.location.RefGeneSnapshot --species "species;genome" [--table refGene] --out file
+ */
+public class RefGeneSnapshot {
+
+	private static final String MAGIC = "SEQCODE_REFGENE_SNAPSHOT";
+	private static final int FORMAT_VERSION = 1;
+
+	/** Boundaries used by closest-gene queries (see RefGeneGenerator.setToStart etc.) */
+	public enum Boundary {START, END, WHOLE};
+
+	private static Map<String, RefGeneSnapshot> registered = new HashMap<String, RefGeneSnapshot>();
+
+	private String genomeVersion, table;
+	private Map<String, ChromTranscripts> chroms = new HashMap<String, ChromTranscripts>();
+	private Map<String, String[]> symbols = new HashMap<String, String[]>();
+	private Map<String, String[]> aliases = new HashMap<String, String[]>();
+	private Map<String, List<Transcript>> byName=null;
+
+
+	/**
+	 * One row of the gene table
+	 */
+	public static class Transcript {
+		public final String name, chrom;
+		public final char strand;
+		public final int txStart, txEnd, cdsStart, cdsEnd;
+		public final int[] exonStarts, exonEnds;
+
+		public Transcript(String name, String chrom, char strand, int txStart, int txEnd, int cdsStart, int cdsEnd, int[] exonStarts, int[] exonEnds){
+			this.name = name;
+			this.chrom = chrom;
+			this.strand = strand;
+			this.txStart = txStart;
+			this.txEnd = txEnd;
+			this.cdsStart = cdsStart;
+			this.cdsEnd = cdsEnd;
+			this.exonStarts = exonStarts;
+			this.exonEnds = exonEnds;
+		}
+		public int getStart(boolean coding){ return coding ? cdsStart : txStart;}
+		public int getEnd(boolean coding){ return coding ? cdsEnd : txEnd;}
+	}
+
+	/**
+	 * Transcripts on one chromosome, with lazily built indices for transcribed and coding coordinates
+	 */
+	private static class ChromTranscripts {
+		List<Transcript> transcripts = new ArrayList<Transcript>();
+		IntervalIndex[] indices = new IntervalIndex[2];
+		int[][][] anchors = new int[2*Boundary.values().length][][];
+
+		synchronized IntervalIndex getIndex(boolean coding){
+			int x = coding ? 1 : 0;
+			if(indices[x]==null){
+				int[] s = new int[transcripts.size()], e = new int[transcripts.size()];
+				for(int i=0; i<s.length; i++){
+					s[i] = transcripts.get(i).getStart(coding);
+					e[i] = transcripts.get(i).getEnd(coding);
+				}
+				indices[x] = new IntervalIndex(s, e);
+			}
+			return indices[x];
+		}
+
+		/**
+		 * Sorted boundary positions for closest-gene queries: {positions, transcript ids}
+		 */
+		synchronized int[][] getAnchors(Boundary b, boolean coding){
+			int x = b.ordinal()*2 + (coding ? 1 : 0);
+			if(anchors[x]==null){
+				int n = transcripts.size();
+				long[] keys = new long[b==Boundary.WHOLE ? 2*n : n];
+				int k=0;
+				for(int i=0; i<n; i++){
+					Transcript t = transcripts.get(i);
+					int s = t.getStart(coding), e = t.getEnd(coding);
+					if(b==Boundary.START)
+						keys[k++] = pack(t.strand=='-' ? e : s, i);
+					else if(b==Boundary.END)
+						keys[k++] = pack(t.strand=='-' ? s : e, i);
+					else{
+						keys[k++] = pack(s, i);
+						keys[k++] = pack(e, i);
+					}
+				}
+				Arrays.sort(keys);
+				int[] pos = new int[keys.length], ids = new int[keys.length];
+				for(int i=0; i<keys.length; i++){
+					pos[i] = (int)(keys[i]>>32);
+					ids[i] = (int)(keys[i] & 0xffffffffL);
+				}
+				anchors[x] = new int[][]{pos, ids};
+			}
+			return anchors[x];
+		}
+		private static long pack(int pos, int id){ return ((long)pos<<32) | id;}
+	}
+
+	private RefGeneSnapshot(String genomeVersion, String table){
+		this.genomeVersion = genomeVersion;
+		this.table = table;
+	}
+
+	//Accessors
+	public String getGenomeVersion(){return genomeVersion;}
+	public String getTable(){return table;}
+	public boolean hasSymbols(){return symbols.size()>0;}
+	public boolean hasAliases(){return aliases.size()>0;}
+	public Set<String> getChroms(){return chroms.keySet();}
+
+	/** Gene symbols for a transcript name (first is the primary symbol), or null */
+	public String[] getSymbols(String name){ return symbols.get(name);}
+	/** Extra (kgAlias) aliases for a transcript name, or null */
+	public String[] getAliases(String name){ return aliases.get(name);}
+
+	private void addTranscript(Transcript t){
+		if(!chroms.containsKey(t.chrom))
+			chroms.put(t.chrom, new ChromTranscripts());
+		chroms.get(t.chrom).transcripts.add(t);
+	}
+
+	/**
+	 * Make this snapshot the one used by all RefGeneGenerators for its genome & table
+	 */
+	public static synchronized void register(RefGeneSnapshot s){
+		registered.put(s.genomeVersion+","+s.table, s);
+	}
+
+	/**
+	 * The registered snapshot for the genome & table, or null
+	 */
+	public static synchronized RefGeneSnapshot getRegistered(String genomeVersion, String table){
+		return registered.get(genomeVersion+","+table);
+	}
+
+	/**
+	 * Transcripts whose [start,end] overlaps [start,end], ordered by start
+	 */
+	public List<Transcript> overlapping(String chrom, int start, int end, boolean coding){
+		List<Transcript> results = new ArrayList<Transcript>();
+		ChromTranscripts ct = chroms.get(chrom);
+		if(ct!=null)
+			for(int id : ct.getIndex(coding).overlapping(start, end))
+				results.add(ct.transcripts.get(id));
+		return results;
+	}
+
+	/**
+	 * Transcripts whose start (plus strand) or end (minus strand) lies in the window around the region start
+	 * given by upstream/downstream (same semantics as RefGeneGenerator.setUpstreamDownstream), ordered by start
+	 */
+	public List<Transcript> upstreamOverlapping(String chrom, int start, int end, int upstream, int downstream, boolean coding){
+		int pad = Math.abs(upstream)+Math.abs(downstream);
+		List<Transcript> results = new ArrayList<Transcript>();
+		for(Transcript t : overlapping(chrom, start-pad, end+pad, coding)){
+			int s = t.getStart(coding), e = t.getEnd(coding);
+			if(t.strand=='+'){
+				if((s <= start+upstream && s >= start-downstream) || (s >= start+upstream && s <= end+upstream))
+					results.add(t);
+			}else if(t.strand=='-'){
+				if((e <= start+downstream && e >= start-upstream) || (e >= start+downstream && e <= end+downstream))
+					results.add(t);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Transcripts whose promoter (TSS - up to TSS + down, strand-aware) overlaps the region, ordered by txStart
+	 * (same semantics as RefGenePromoterGenerator)
+	 */
+	public List<Transcript> promoterOverlapping(String chrom, int start, int end, int up, int down){
+		int pad = Math.abs(up)+Math.abs(down);
+		List<Transcript> results = new ArrayList<Transcript>();
+		for(Transcript t : overlapping(chrom, start-pad, end+pad, false)){
+			if(t.strand=='+'){
+				if((t.txStart-up <= start && t.txStart+down >= start) || (t.txStart-up >= start && t.txStart-up <= end))
+					results.add(t);
+			}else if(t.strand=='-'){
+				if((t.txEnd-down <= start && t.txEnd+up >= start) || (t.txEnd-down >= start && t.txEnd-down <= end))
+					results.add(t);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * The n transcripts with boundaries closest to either end of the region, ordered by distance
+	 */
+	public List<Transcript> closest(String chrom, int start, int end, int n, Boundary boundary, boolean coding){
+		List<Transcript> results = new ArrayList<Transcript>();
+		ChromTranscripts ct = chroms.get(chrom);
+		if(ct==null || n<=0)
+			return results;
+		int[][] anchors = ct.getAnchors(boundary, coding);
+		int[] pos = anchors[0], ids = anchors[1];
+
+		//Walk outwards from both query points, always taking the nearest remaining boundary
+		int[] query = {start, end};
+		int[] left = new int[2], right = new int[2];
+		for(int q=0; q<2; q++){
+			int ins = Arrays.binarySearch(pos, query[q]);
+			if(ins<0) ins = -ins-1;
+			left[q] = ins-1;
+			right[q] = ins;
+		}
+		int[] chosen = new int[n];
+		int numChosen=0;
+		while(numChosen<n){
+			long bestDist = Long.MAX_VALUE;
+			int bestQ=-1; boolean bestRight=false;
+			for(int q=0; q<2; q++){
+				if(left[q]>=0 && (long)query[q]-pos[left[q]] < bestDist){
+					bestDist = (long)query[q]-pos[left[q]]; bestQ=q; bestRight=false;
+				}
+				if(right[q]<pos.length && (long)pos[right[q]]-query[q] < bestDist){
+					bestDist = (long)pos[right[q]]-query[q]; bestQ=q; bestRight=true;
+				}
+			}
+			if(bestQ<0)
+				break;
+			int id = bestRight ? ids[right[bestQ]++] : ids[left[bestQ]--];
+			boolean seen=false;
+			for(int c=0; c<numChosen && !seen; c++)
+				seen = chosen[c]==id;
+			if(!seen){
+				chosen[numChosen++]=id;
+				results.add(ct.transcripts.get(id));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Transcripts with the given name, or with a gene symbol equal to it
+	 */
+	public synchronized List<Transcript> byName(String name){
+		if(byName==null){
+			byName = new HashMap<String, List<Transcript>>();
+			for(ChromTranscripts ct : chroms.values())
+				for(Transcript t : ct.transcripts){
+					addByName(t.name, t);
+					if(symbols.containsKey(t.name))
+						for(String s : symbols.get(t.name))
+							if(!s.equals(t.name))
+								addByName(s, t);
+				}
+		}
+		return byName.containsKey(name) ? byName.get(name) : new ArrayList<Transcript>();
+	}
+	private void addByName(String n, Transcript t){
+		if(!byName.containsKey(n))
+			byName.put(n, new ArrayList<Transcript>());
+		byName.get(n).add(t);
+	}
+
+	/**
+	 * All transcripts
+	 */
+	public List<Transcript> all(){
+		List<Transcript> results = new ArrayList<Transcript>();
+		for(ChromTranscripts ct : chroms.values())
+			results.addAll(ct.transcripts);
+		return results;
+	}
+
+	/**
+	 * Export a gene table (and its symbol/alias tables, as configured in gene_names.properties)
+	 * from the genome's annotation database, using one bulk query per table.
+	 */
+	public static RefGeneSnapshot fromDatabase(Genome g, String table) throws SQLException {
+		RefGeneGenerator<?> config = table==null ? new RefGeneGenerator<>(g) : new RefGeneGenerator<>(g, table);
+		table = config.getTable();
+		String symboltable = config.getSymbolTable(), namecolumn = config.getNameColumn(), symbolcolumn = config.getSymbolColumn();
+		RefGeneSnapshot snap = new RefGeneSnapshot(g.getVersion(), table);
+
+		Connection cxn = g.getAnnotationDBConnection();
+		try{
+			Statement stmt = cxn.createStatement();
+			ResultSet rs = stmt.executeQuery("select name, chrom, strand, txStart, txEnd, cdsStart, cdsEnd, exonCount, exonStarts, exonEnds from "+table);
+			while(rs.next()){
+				int[] exonStarts = new int[0], exonEnds = new int[0];
+				if(rs.getInt(8)>=1){
+					exonStarts = parseCoordList(rs.getBlob(9));
+					exonEnds = parseCoordList(rs.getBlob(10));
+				}
+				snap.addTranscript(new Transcript(rs.getString(1), rs.getString(2), rs.getString(3).charAt(0),
+						rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getInt(7), exonStarts, exonEnds));
+			}
+			rs.close();
+
+			if(symboltable != null && namecolumn != null && symbolcolumn != null){
+				rs = stmt.executeQuery(String.format("select %s, %s from %s", namecolumn, symbolcolumn, symboltable));
+				snap.symbols = collectPairs(rs);
+				rs.close();
+				if(symboltable.equals("kgXref")){
+					try{
+						rs = stmt.executeQuery("select distinct kgXref."+namecolumn+", kgAlias.alias from kgAlias, kgXref where kgXref.kgID = kgAlias.kgID");
+						snap.aliases = collectPairs(rs);
+						rs.close();
+					}catch(SQLException ex){
+						ex.printStackTrace();
+					}
+				}
+			}
+			stmt.close();
+		}finally{
+			cxn.close();
+		}
+		return snap;
+	}
+
+	private static int[] parseCoordList(Blob blob) throws SQLException {
+		try{
+			BufferedReader br = new BufferedReader(new InputStreamReader(blob.getBinaryStream()));
+			String line = br.readLine();
+			br.close();
+			List<Integer> coords = new ArrayList<Integer>();
+			if(line!=null)
+				for(String c : line.split("\\D+"))
+					if(c.length()>0)
+						coords.add(Integer.parseInt(c));
+			int[] out = new int[coords.size()];
+			for(int i=0; i<out.length; i++)
+				out[i]=coords.get(i);
+			return out;
+		}catch(IOException e){
+			throw new DatabaseException("Couldn't read exon coordinates", e);
+		}
+	}
+
+	private static Map<String, String[]> collectPairs(ResultSet rs) throws SQLException {
+		Map<String, List<String>> lists = new HashMap<String, List<String>>();
+		while(rs.next()){
+			String k = rs.getString(1), v = rs.getString(2);
+			if(k==null || v==null) continue;
+			if(!lists.containsKey(k))
+				lists.put(k, new ArrayList<String>());
+			lists.get(k).add(v);
+		}
+		Map<String, String[]> out = new HashMap<String, String[]>();
+		for(String k : lists.keySet())
+			out.put(k, lists.get(k).toArray(new String[0]));
+		return out;
+	}
+
+	/**
+	 * Write the snapshot to a gzipped binary file
+	 */
+	public void save(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f))));
+		try{
+			out.writeUTF(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(genomeVersion);
+			out.writeUTF(table);
+			out.writeInt(chroms.size());
+			for(String chrom : chroms.keySet()){
+				List<Transcript> ts = chroms.get(chrom).transcripts;
+				out.writeUTF(chrom);
+				out.writeInt(ts.size());
+				for(Transcript t : ts){
+					out.writeUTF(t.name);
+					out.writeChar(t.strand);
+					out.writeInt(t.txStart);
+					out.writeInt(t.txEnd);
+					out.writeInt(t.cdsStart);
+					out.writeInt(t.cdsEnd);
+					out.writeInt(t.exonStarts.length);
+					for(int i=0; i<t.exonStarts.length; i++){
+						out.writeInt(t.exonStarts[i]);
+						out.writeInt(i<t.exonEnds.length ? t.exonEnds[i] : t.exonStarts[i]);
+					}
+				}
+			}
+			writePairs(out, symbols);
+			writePairs(out, aliases);
+		}finally{
+			out.close();
+		}
+	}
+
+	private static void writePairs(DataOutputStream out, Map<String, String[]> pairs) throws IOException {
+		out.writeInt(pairs.size());
+		for(String k : pairs.keySet()){
+			out.writeUTF(k);
+			out.writeInt(pairs.get(k).length);
+			for(String v : pairs.get(k))
+				out.writeUTF(v);
+		}
+	}
+
+	/**
+	 * Read a snapshot written by save()
+	 */
+	public static RefGeneSnapshot load(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f))));
+		try{
+			if(!in.readUTF().equals(MAGIC))
+				throw new IOException(f.getName()+" is not a RefGene snapshot");
+			int version = in.readInt();
+			if(version!=FORMAT_VERSION)
+				throw new IOException("Unsupported RefGene snapshot format version: "+version);
+			RefGeneSnapshot snap = new RefGeneSnapshot(in.readUTF(), in.readUTF());
+			int numChroms = in.readInt();
+			for(int c=0; c<numChroms; c++){
+				String chrom = in.readUTF();
+				int numTranscripts = in.readInt();
+				for(int x=0; x<numTranscripts; x++){
+					String name = in.readUTF();
+					char strand = in.readChar();
+					int txStart=in.readInt(), txEnd=in.readInt(), cdsStart=in.readInt(), cdsEnd=in.readInt();
+					int numExons = in.readInt();
+					int[] exonStarts = new int[numExons], exonEnds = new int[numExons];
+					for(int i=0; i<numExons; i++){
+						exonStarts[i]=in.readInt();
+						exonEnds[i]=in.readInt();
+					}
+					snap.addTranscript(new Transcript(name, chrom, strand, txStart, txEnd, cdsStart, cdsEnd, exonStarts, exonEnds));
+				}
+			}
+			snap.symbols = readPairs(in);
+			snap.aliases = readPairs(in);
+			return snap;
+		}finally{
+			in.close();
+		}
+	}
+
+	private static Map<String, String[]> readPairs(DataInputStream in) throws IOException {
+		Map<String, String[]> pairs = new HashMap<String, String[]>();
+		int n = in.readInt();
+		for(int i=0; i<n; i++){
+			String k = in.readUTF();
+			String[] vs = new String[in.readInt()];
+			for(int j=0; j<vs.length; j++)
+				vs[j] = in.readUTF();
+			pairs.put(k, vs);
+		}
+		return pairs;
+	}
+
+	/* command line driver for exporting snapshots */
+	public static void main(String args[]) throws Exception {
+		String specname = null, genomename = null, tablename = null, outname = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--species")) {
+				String pieces[] = args[++i].split(";");
+				specname = pieces[0];
+				genomename = pieces[1];
+			}
+			if (args[i].equals("--table"))
+				tablename = args[++i];
+			if (args[i].equals("--out"))
+				outname = args[++i];
+		}
+		if (specname == null || genomename == null || outname == null) {
+			throw new RuntimeException("Usage: RefGeneSnapshot --species 'species;genome' [--table refGene] --out file");
+		}
+		Genome genome = new Genome(new org.seqcode.genome.Species(specname), genomename);
+		RefGeneSnapshot snap = fromDatabase(genome, tablename);
+		snap.save(new File(outname));
+		System.err.println("Wrote "+snap.all().size()+" "+snap.getTable()+" transcripts to "+outname);
+	}
+}
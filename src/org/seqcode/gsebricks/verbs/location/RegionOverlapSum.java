@@ -26,10 +26,10 @@ public class RegionOverlapSum extends OverlapSum {
 	}
 	
 	public Collection<Region> collectRegions(int threshold) { 
-		Collection<Interval> intvs = super.collect(threshold);
+		Collection<Interval<Object>> intvs = super.collect(threshold);
 		
 		ArrayList<Region> rs = new ArrayList<Region>();
-		for(Interval intv : intvs) { 
+		for(Interval<Object> intv : intvs) { 
 			rs.add(new Region(totalRegion.getGenome(), totalRegion.getChrom(),
 					intv.start, intv.end));
 		}
@@ -50,4 +50,10 @@ public class RegionOverlapSum extends OverlapSum {
         int end = Math.min(totalRegion.getEnd(), r.getEnd());
         addInterval(start, end);
     }
+    
+    public void addRegions(Collection<? extends Region> rs) { 
+    	for(Region r : rs) { 
+    		addRegion(r);
+    	}
+    }
 }
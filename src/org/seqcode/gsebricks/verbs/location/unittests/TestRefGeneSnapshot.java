@@ -0,0 +1,247 @@
+package org.seqcode.gsebricks.verbs.location.unittests;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.*;
+import org.seqcode.genome.location.IntervalIndex;
+import org.seqcode.gsebricks.verbs.location.RefGeneSnapshot;
+import org.seqcode.gsebricks.verbs.location.RefGeneSnapshot.Boundary;
+import org.seqcode.gsebricks.verbs.location.RefGeneSnapshot.Transcript;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks RefGeneSnapshot queries (and the IntervalIndex behind them) against the conditions of the SQL queries
+ * that RefGeneGenerator and RefGenePromoterGenerator used to run, evaluated by brute force.
+ */
+public class TestRefGeneSnapshot {
+
+	private File dir;
+	private List<Transcript> transcripts;
+	private RefGeneSnapshot snap;
+
+	@Before public void setUp() throws IOException {
+		dir = Files.createTempDirectory("TestRefGeneSnapshot").toFile();
+		Random rand = new Random(17);
+		transcripts = new ArrayList<Transcript>();
+		for(String chrom : new String[]{"1", "2"}){
+			for(int i=0; i<400; i++){
+				int s = 1+rand.nextInt(200000);
+				int e = s+rand.nextInt(i%10==0 ? 20000 : 3000);
+				int cs = Math.min(e, s+rand.nextInt(200)), ce = Math.max(cs, e-rand.nextInt(200));
+				transcripts.add(new Transcript("NM_"+chrom+"_"+i, chrom, rand.nextBoolean() ? '+' : '-', s, e, cs, ce, new int[]{s, ce}, new int[]{cs, e}));
+			}
+		}
+		snap = RefGeneSnapshot.load(write(new File(dir, "snap.gz")));
+	}
+
+	@After public void tearDown() throws IOException {
+		for(File f : dir.listFiles())
+			Files.delete(f.toPath());
+		Files.delete(dir.toPath());
+	}
+
+	/* Writes the transcripts in the snapshot file format (no symbols or aliases) */
+	private File write(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f))));
+		out.writeUTF("SEQCODE_REFGENE_SNAPSHOT");
+		out.writeInt(1);
+		out.writeUTF("test");
+		out.writeUTF("refGene");
+		out.writeInt(2);
+		for(String chrom : new String[]{"1", "2"}){
+			List<Transcript> ts = new ArrayList<Transcript>();
+			for(Transcript t : transcripts)
+				if(t.chrom.equals(chrom))
+					ts.add(t);
+			out.writeUTF(chrom);
+			out.writeInt(ts.size());
+			for(Transcript t : ts){
+				out.writeUTF(t.name);
+				out.writeChar(t.strand);
+				out.writeInt(t.txStart); out.writeInt(t.txEnd); out.writeInt(t.cdsStart); out.writeInt(t.cdsEnd);
+				out.writeInt(t.exonStarts.length);
+				for(int i=0; i<t.exonStarts.length; i++){
+					out.writeInt(t.exonStarts[i]);
+					out.writeInt(t.exonEnds[i]);
+				}
+			}
+		}
+		out.writeInt(0);
+		out.writeInt(0);
+		out.close();
+		return f;
+	}
+
+	private static List<String> names(List<Transcript> ts){
+		List<String> n = new ArrayList<String>();
+		for(Transcript t : ts)
+			n.add(t.name);
+		return n;
+	}
+
+	/* Compares results ordered by start (as "order by start" returns them): same transcripts, non-decreasing starts */
+	private static void assertSameByStart(List<Transcript> expected, List<Transcript> actual, boolean coding){
+		for(int i=1; i<actual.size(); i++)
+			assertTrue(actual.get(i-1).getStart(coding)<=actual.get(i).getStart(coding));
+		List<String> e = names(expected), a = names(actual);
+		Collections.sort(e);
+		Collections.sort(a);
+		assertEquals(e, a);
+	}
+
+	@Test public void testIntervalIndex() {
+		Random rand = new Random(2);
+		for(int n : new int[]{0, 1, 7, 16, 100, 1000}){
+			int[] s = new int[n], e = new int[n];
+			for(int i=0; i<n; i++){
+				s[i] = rand.nextInt(10000)-500;
+				e[i] = s[i]+rand.nextInt(i%5==0 ? 2000 : 50);
+			}
+			IntervalIndex index = new IntervalIndex(s, e);
+			for(int q=0; q<300; q++){
+				int qs = rand.nextInt(11000)-1000, qe = qs+rand.nextInt(300);
+				List<Integer> expected = new ArrayList<Integer>();
+				for(int i=0; i<n; i++)
+					if(s[i]<=qe && e[i]>=qs)
+						expected.add(i);
+				int[] hits = index.overlapping(qs, qe);
+				List<Integer> actual = new ArrayList<Integer>();
+				for(int h=0; h<hits.length; h++){
+					actual.add(hits[h]);
+					if(h>0)
+						assertTrue(s[hits[h-1]]<=s[hits[h]]);
+				}
+				Collections.sort(actual);
+				assertEquals(expected, actual);
+			}
+		}
+	}
+
+	@Test public void testOverlapping() {
+		Random rand = new Random(3);
+		for(boolean coding : new boolean[]{false, true}){
+			for(int q=0; q<300; q++){
+				String chrom = rand.nextBoolean() ? "1" : "2";
+				int start = rand.nextInt(210000), end = start+rand.nextInt(5000);
+				//RefGeneGenerator.getOrfOverlap
+				List<Transcript> expected = new ArrayList<Transcript>();
+				for(Transcript t : transcripts){
+					int s = t.getStart(coding), e = t.getEnd(coding);
+					if(t.chrom.equals(chrom) && ((s<=start && e>=start) || (s>=start && s<=end)))
+						expected.add(t);
+				}
+				assertSameByStart(expected, snap.overlapping(chrom, start, end, coding), coding);
+			}
+		}
+		assertEquals(0, snap.overlapping("3", 1, 100000, false).size());
+	}
+
+	@Test public void testUpstreamAndPromoter() {
+		Random rand = new Random(4);
+		for(int q=0; q<300; q++){
+			String chrom = rand.nextBoolean() ? "1" : "2";
+			int start = rand.nextInt(210000), end = start+rand.nextInt(2000);
+			int up = rand.nextInt(5000), down = rand.nextInt(3000);
+			boolean coding = q%2==0;
+			//RefGeneGenerator.getUpstreamOverlap
+			List<Transcript> expected = new ArrayList<Transcript>();
+			for(Transcript t : transcripts){
+				int s = t.getStart(coding), e = t.getEnd(coding);
+				if(!t.chrom.equals(chrom))
+					continue;
+				if((t.strand=='+' && ((s<=start+up && s>=start-down) || (s>=start+up && s<=end+up))) ||
+						(t.strand=='-' && ((e<=start+down && e>=start-up) || (e>=start+down && e<=end+down))))
+					expected.add(t);
+			}
+			assertSameByStart(expected, snap.upstreamOverlapping(chrom, start, end, up, down, coding), coding);
+			//RefGenePromoterGenerator
+			expected.clear();
+			for(Transcript t : transcripts){
+				if(!t.chrom.equals(chrom))
+					continue;
+				if((t.strand=='+' && ((t.txStart-up<=start && t.txStart+down>=start) || (t.txStart-up>=start && t.txStart-up<=end))) ||
+						(t.strand=='-' && ((t.txEnd-down<=start && t.txEnd+up>=start) || (t.txEnd-down>=start && t.txEnd-down<=end))))
+					expected.add(t);
+			}
+			assertSameByStart(expected, snap.promoterOverlapping(chrom, start, end, up, down), false);
+		}
+	}
+
+	/* RefGeneGenerator.getClosestOrder's sort key */
+	private static long closestKey(Transcript t, Boundary b, boolean coding, int start, int end){
+		int s = t.getStart(coding), e = t.getEnd(coding);
+		switch(b){
+		case START: return Math.min(Math.abs((long)end-(t.strand=='+' ? s : e)), Math.abs((long)start-(t.strand=='+' ? s : e)));
+		case END: return Math.min(Math.abs((long)end-(t.strand=='-' ? s : e)), Math.abs((long)start-(t.strand=='-' ? s : e)));
+		default: return Math.min(Math.min(Math.abs((long)s-end), Math.abs((long)end-e)), Math.min(Math.abs((long)s-start), Math.abs((long)start-e)));
+		}
+	}
+
+	@Test public void testClosest() {
+		Random rand = new Random(5);
+		for(int q=0; q<200; q++){
+			final String chrom = rand.nextBoolean() ? "1" : "2";
+			final int start = rand.nextInt(210000), end = start+rand.nextInt(2000);
+			final Boundary b = Boundary.values()[q%3];
+			final boolean coding = q%2==0;
+			int n = 1+rand.nextInt(10);
+			List<Transcript> all = new ArrayList<Transcript>();
+			for(Transcript t : transcripts)
+				if(t.chrom.equals(chrom))
+					all.add(t);
+			Collections.sort(all, new Comparator<Transcript>(){
+				public int compare(Transcript x, Transcript y){
+					return Long.compare(closestKey(x, b, coding, start, end), closestKey(y, b, coding, start, end));
+				}
+			});
+			List<Transcript> actual = snap.closest(chrom, start, end, n, b, coding);
+			assertEquals(n, actual.size());
+			//"limit n" after ordering by distance: ties may be broken either way, so compare the distances
+			long[] expectedKeys = new long[n], actualKeys = new long[n];
+			for(int i=0; i<n; i++){
+				expectedKeys[i] = closestKey(all.get(i), b, coding, start, end);
+				actualKeys[i] = closestKey(actual.get(i), b, coding, start, end);
+			}
+			assertArrayEquals(b+" "+coding, expectedKeys, actualKeys);
+		}
+	}
+
+	@Test public void testSaveLoad() throws IOException {
+		File f = new File(dir, "copy.gz");
+		snap.save(f);
+		RefGeneSnapshot copy = RefGeneSnapshot.load(f);
+		assertEquals("test", copy.getGenomeVersion());
+		assertEquals("refGene", copy.getTable());
+		assertEquals(transcripts.size(), copy.all().size());
+		for(Transcript t : transcripts){
+			List<Transcript> byName = copy.byName(t.name);
+			assertEquals(1, byName.size());
+			Transcript c = byName.get(0);
+			assertEquals(t.chrom, c.chrom);
+			assertEquals(t.strand, c.strand);
+			assertEquals(t.txStart, c.txStart);
+			assertEquals(t.txEnd, c.txEnd);
+			assertEquals(t.cdsStart, c.cdsStart);
+			assertEquals(t.cdsEnd, c.cdsEnd);
+			assertTrue(Arrays.equals(t.exonStarts, c.exonStarts) && Arrays.equals(t.exonEnds, c.exonEnds));
+		}
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.gsebricks.verbs.location.unittests.TestRefGeneSnapshot");
+	}
+
+}
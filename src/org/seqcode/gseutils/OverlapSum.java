@@ -6,6 +6,7 @@ package org.seqcode.gseutils;
 
 import java.util.*;
 
+import org.seqcode.genome.location.SortedIntervals;
 import org.seqcode.gseutils.Interval;
 
 
@@ -23,116 +24,123 @@ import org.seqcode.gseutils.Interval;
  * The method .collectRegions(int) is the most-used interface -- it collects 
  * a series of (disjoint) regions that are each continuously covered by 
  * *at least* 'int' intervals.  
+ * 
+ * Intervals are kept in growable primitive arrays; change points and the 
+ * SortedIntervals used for threshold queries are built on demand, so adding 
+ * intervals is O(1) and collecting is a single sort and sweep.
  *  
  * @author Tim &amp; Alex
  */
 public class OverlapSum {
 
-    private TreeMap<Integer,Integer> changes;
+    private int[] starts, ends;
+    private int size;
+    private int[] points, deltas; //change points, built on demand
+    private SortedIntervals sorted;
     
     public OverlapSum() {
-        changes = new TreeMap<Integer,Integer>();
+        starts = new int[16];
+        ends = new int[16];
+        size = 0;
     }
     
-    public OverlapSum(Collection<Interval> rs) {
-        changes = new TreeMap<Integer,Integer>();
+    public OverlapSum(Collection<? extends Interval<?>> rs) {
+        this();
     	 if(rs.isEmpty()) { throw new IllegalArgumentException(); }
-    	 for(Interval r : rs) { 
+    	 for(Interval<?> r : rs) { 
     		 addInterval(r.start, r.end);
     	 }
     }
     
     public void clear() { 
-        changes.clear();
+        size = 0;
+        invalidate();
     }
     
     public void combineWith(OverlapSum s) { 
-    	for(Integer pt : s.changes.keySet()) { 
-    		if(!changes.containsKey(pt)) { 
-    			changes.put(pt, 0);
-    		}
-    		changes.put(pt, changes.get(pt) + s.changes.get(pt));
+    	for(int i = 0; i < s.size; i++) { 
+    		addInterval(s.starts[i], s.ends[i]);
     	}
     }
 
+    /**
+     * I'm assuming that intervals, like regions, are inclusive of their
+     * end points...
+     * This needs to put the changepoint at one past the position where the
+     * interval ends to account for intervals being inclusive. -Bob
+     */
     public void addInterval(int start, int end) {
-        if(changes.containsKey(start)) { 
-            changes.put(start, changes.get(start) + 1);
-        } else { 
-            changes.put(start, 1);
-        }
-        
-        /**
-         * I'm assuming that intervals, like regions, are inclusive of their
-         * end points...
-         * This needs to put the changepoint at one past the position where the
-         * interval ends to account for intervals being inclusive. -Bob
-         */
-        if(changes.containsKey(end + 1)) { 
-            changes.put(end + 1, changes.get(end + 1) - 1);
-        } else {
-            changes.put(end + 1, -1);
+        if(size == starts.length) { 
+            starts = Arrays.copyOf(starts, size*2);
+            ends = Arrays.copyOf(ends, size*2);
         }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+        invalidate();
     }
     
-    public void addInterval(Interval intv) { 
+    public void addInterval(Interval<?> intv) { 
     	addInterval(intv.start, intv.end);
     }
     
-    public int[][] getChangePoints() { 
-        int[][] array = new int[changes.size()][];
-        int i = 0;
-        for(int change : changes.keySet()) {
-            int[] pair = new int[2];
-            pair[0] = change;
-            pair[1] = changes.get(change);
-            array[i++] = pair;
+    private void invalidate() { 
+        points = deltas = null;
+        sorted = null;
+    }
+    
+    private SortedIntervals sorted() { 
+        if(sorted == null) { 
+            sorted = new SortedIntervals(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size));
         }
-        return array;
+        return sorted;
     }
-
+    
     /*
-    public void addRegion(Region r) {
-        if(!genome.equals(r.getGenome())) { throw new IllegalArgumentException(r.getGenome().toString()); }
-        if(!chrom.equals(r.getChrom())) { throw new IllegalArgumentException(r.getChrom()); }
-        
-        int start = r.getStart();
-        int end = r.getEnd();
-        if(changes.containsKey(start)) { 
-            changes.put(start, changes.get(start) + 1);
-        } else { 
-            changes.put(start, 1);
-        }
-        
-         // This needs to put the changepoint at one past the position where the
-         // region ends to account for regions being inclusive. -Bob
-        if(changes.containsKey(end + 1)) { 
-            changes.put(end + 1, changes.get(end + 1) - 1);
-        } else {
-            changes.put(end + 1, -1);
+     * Merges the sorted starts (+1) and sorted end+1 points (-1) into change points.  
+     * Coincident starts and ends are summed into one change point, which may be 0.
+     */
+    private void buildChangePoints() { 
+        if(points != null) { return; }
+        int[] ss = Arrays.copyOf(starts, size), es = new int[size];
+        for(int i = 0; i < size; i++) { es[i] = ends[i] + 1; }
+        Arrays.sort(ss);
+        Arrays.sort(es);
+        int[] p = new int[2*size], d = new int[2*size];
+        int n = 0, i = 0, j = 0;
+        while(i < size || j < size) { 
+            int pc = (j >= size || (i < size && ss[i] <= es[j])) ? ss[i] : es[j];
+            int delta = 0;
+            while(i < size && ss[i] == pc) { delta++; i++; }
+            while(j < size && es[j] == pc) { delta--; j++; }
+            p[n] = pc;
+            d[n] = delta;
+            n++;
         }
+        points = Arrays.copyOf(p, n);
+        deltas = Arrays.copyOf(d, n);
     }
-	*/
     
-    public int getMaxOverlap() {
-        int max = 0;
-        int running = 0;
-        for(int pc : changes.keySet()) { 
-            int delta = changes.get(pc);
-            running += delta;
-            max = Math.max(max, running);
+    public int[][] getChangePoints() { 
+        buildChangePoints();
+        int[][] array = new int[points.length][];
+        for(int i = 0; i < points.length; i++) {
+            array[i] = new int[] { points[i], deltas[i] };
         }
-        return max;
+        return array;
+    }
+
+    public int getMaxOverlap() {
+        return sorted().maxDepth();
     }
     
     public int getMaxOverlap(int start, int end) { 
+        buildChangePoints();
         int max = 0;
         int running = 0;
-        Map<Integer,Integer> map = changes.headMap(end);
-        for(int pc : map.keySet()) { 
-            int delta = map.get(pc);
-            running += delta;
-            if(pc >= start && pc <= end) { 
+        for(int i = 0; i < points.length && points[i] < end; i++) { 
+            running += deltas[i];
+            if(points[i] >= start) { 
             	max = Math.max(max, running);
             }
         }
@@ -140,13 +148,12 @@ public class OverlapSum {
     }
     
     public int countOverlapping(int start, int end) { 
+    	buildChangePoints();
     	int count = 0;
-    	Map<Integer,Integer> map = changes.headMap(end);
     	int running = 0;
-    	for(int pc : map.keySet()) { 
-    		int delta = map.get(pc);
-    		running += delta;
-    		if(pc >= start && delta == -1) { 
+    	for(int i = 0; i < points.length && points[i] < end; i++) { 
+    		running += deltas[i];
+    		if(points[i] >= start && deltas[i] == -1) { 
     			count += 1;
     		}
     	}
@@ -155,17 +162,18 @@ public class OverlapSum {
     }
 
     public boolean hasOverlap(OverlapSum sum, int thresh) { 
-    	Iterator<Integer> chs = 
-    		new MergingIterator<Integer>(changes.keySet().iterator(),
-    				sum.changes.keySet().iterator());
+    	buildChangePoints();
+    	sum.buildChangePoints();
     	int thisCount = 0, thatCount = 0;
-    	while(chs.hasNext()) { 
-    		Integer change = chs.next();
-    		if(changes.containsKey(change)) { 
-    			thisCount += changes.get(change);
+    	int i = 0, j = 0;
+    	while(i < points.length || j < sum.points.length) { 
+    		int change = (j >= sum.points.length || (i < points.length && points[i] <= sum.points[j])) ? 
+    				points[i] : sum.points[j];
+    		if(i < points.length && points[i] == change) { 
+    			thisCount += deltas[i++];
     		}
-    		if(sum.changes.containsKey(change)) { 
-    			thatCount += sum.changes.get(change);
+    		if(j < sum.points.length && sum.points[j] == change) { 
+    			thatCount += sum.deltas[j++];
     		}
     		
     		if(thisCount >= thresh && thatCount >= thresh) { 
@@ -175,40 +183,26 @@ public class OverlapSum {
     	return false;
     }
     
-    public Collection<Interval> collect(int threshold) {
+    public Collection<Interval<Object>> collect(int threshold) {
         if(threshold < 1) { throw new IllegalArgumentException(String.valueOf(threshold)); }
         
-        LinkedList<Interval> regions = new LinkedList<Interval>();
-        int runningSum = 0;
-        
-        int rstart = -1, rend = -1;
-        
-        for(int pc : changes.keySet()) {
-            int delta = changes.get(pc);
-            if(runningSum < threshold && runningSum + delta >= threshold) { 
-                rstart = pc;
-            }
-            
-            if(runningSum >= threshold && runningSum + delta < threshold) { 
-                //subtract 1 from the endpoint because regions are inclusive
-            	rend = pc - 1;
-            	Interval intv = new Interval(rstart, rend);
-                regions.addLast(intv);
-                rstart = rend = -1;
-            }
-            
-            runningSum += delta;
-            if(runningSum < 0) { throw new IllegalStateException(String.valueOf(runningSum)); }
+        LinkedList<Interval<Object>> regions = new LinkedList<Interval<Object>>();
+        SortedIntervals covered = sorted().depthAtLeast(threshold);
+        for(int i = 0; i < covered.size(); i++) { 
+            regions.addLast(new Interval<Object>(covered.getStart(i), covered.getEnd(i)));
         }
-        
-        if(runningSum > 0) { throw new IllegalStateException(String.valueOf(runningSum)); }
         return regions;
     }
     
     
+    /* a copy of the change points; modifying it does not affect this sum */
     public TreeMap<Integer, Integer> getChangeMap() {
+    	buildChangePoints();
+    	TreeMap<Integer, Integer> changes = new TreeMap<Integer, Integer>();
+    	for(int i = 0; i < points.length; i++) { 
+    		changes.put(points[i], deltas[i]);
+    	}
     	return changes;
     }
 }
 
-
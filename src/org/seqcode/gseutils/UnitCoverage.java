@@ -9,15 +9,16 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.TreeSet;
 
-import org.seqcode.gsebricks.iterators.BacktrackingIterator;
+import org.seqcode.genome.location.SortedIntervals;
 import org.seqcode.gseutils.models.Model;
 
 
 /*
  * UnitCoverage provides an interface to a set of disjoint intervals, 
- * by maintaining an array of their bounds sorted by the start-coordinate. 
+ * by maintaining primitive arrays of their bounds sorted by the start-coordinate. 
+ * Lookups are binary searches and the set operations are linear merges 
+ * (see SortedIntervals).
  *
  */
 public class UnitCoverage { 
@@ -42,17 +43,20 @@ public class UnitCoverage {
 		System.out.println("A&B: " + a.intersection(b).toString());
 	}
 
-	private ArrayList<Integer[]> units;
+	private int[] starts, ends;
+	private int size;
 	
 	public UnitCoverage() { 
-		units = new ArrayList<Integer[]>();
+		starts = new int[8];
+		ends = new int[8];
+		size = 0;
 	}
 	
 	public UnitCoverage(UnitCoverageModel m) { 
 		this();
 		
 		for(int i = 0; i < m.unitpairs.length; i+=2) { 
-			units.add(new Integer[] { m.unitpairs[i], m.unitpairs[i+1] });
+			append(m.unitpairs[i], m.unitpairs[i+1]);
 		}
 		signalErrorOnUnsort();
 	}
@@ -62,15 +66,11 @@ public class UnitCoverage {
 			System.err.flush();
 			System.out.flush();
 			System.err.println(String.format("ERROR! not sorted!"));
-			for(int i = 0; i < units.size(); i++) {
+			for(int i = 0; i < size; i++) {
 				System.err.print(String.format("%d \t", i));
-				if(i < units.size()) { 
-					Integer[] u = units.get(i);
-					Integer[] v = i > 0 ? units.get(i-1) : null;
-					boolean err = i > 0 && v[1] >= u[0];
-					String errstr = err ? "*" : " ";
-					System.err.print(String.format(" %s %d,%d", errstr, u[0], u[1]));
-				}
+				boolean err = i > 0 && ends[i-1] >= starts[i];
+				String errstr = err ? "*" : " ";
+				System.err.print(String.format(" %s %d,%d", errstr, starts[i], ends[i]));
 				System.err.println();
 			}
 			System.err.println();
@@ -79,260 +79,152 @@ public class UnitCoverage {
 	}
 	
 	UnitCoverage(Collection<Integer[]> us) { 
-		units = new ArrayList<Integer[]>(us);
+		this();
+		for(Integer[] u : us) { 
+			append(u[0], u[1]);
+		}
 		signalErrorOnUnsort();
 	}
 	
 	public UnitCoverage(UnitCoverage c) { 
-		units = new ArrayList<Integer[]>();
-		for(int i = 0; i < c.units.size(); i++) { 
-			units.add(c.units.get(i).clone());
+		starts = Arrays.copyOf(c.starts, Math.max(8, c.size));
+		ends = Arrays.copyOf(c.ends, Math.max(8, c.size));
+		size = c.size;
+		signalErrorOnUnsort();
+	}
+	
+	private UnitCoverage(SortedIntervals intvs) { 
+		this();
+		for(int i = 0; i < intvs.size(); i++) { 
+			append(intvs.getStart(i), intvs.getEnd(i));
 		}
 		signalErrorOnUnsort();
 	}
 	
-	public Collection<Interval> compareToOverlapSum(OverlapSum s, int thresh) { 
-		Collection<Interval> intvs = s.collect(thresh);
-		ArrayList<Interval> failing = new ArrayList<Interval>();
-		TreeSet<Integer> matched = new TreeSet<Integer>();
+	private void append(int start, int end) { 
+		if(size == starts.length) { 
+			starts = Arrays.copyOf(starts, size*2);
+			ends = Arrays.copyOf(ends, size*2);
+		}
+		starts[size] = start;
+		ends[size] = end;
+		size++;
+	}
+	
+	private Integer[] unit(int i) { 
+		return new Integer[] { starts[i], ends[i] };
+	}
+	
+	private SortedIntervals asIntervals() { 
+		return new SortedIntervals(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size));
+	}
+	
+	public Collection<Interval<Object>> compareToOverlapSum(OverlapSum s, int thresh) { 
+		Collection<Interval<Object>> intvs = s.collect(thresh);
+		ArrayList<Interval<Object>> failing = new ArrayList<Interval<Object>>();
+		boolean[] matched = new boolean[size];
 		
-		for(Interval intv : intvs) { 
+		for(Interval<Object> intv : intvs) { 
 			int istart = intv.start, iend = intv.end;
-			Integer[] rquery = range(istart, iend);
+			int[] rquery = range(istart, iend);
 			
 			if(rquery == null || rquery[0] < rquery[1] || 
-				units.get(rquery[0])[0] != istart || 
-				units.get(rquery[1])[1] != iend) { 
+				starts[rquery[0]] != istart || 
+				ends[rquery[1]] != iend) { 
 			
 				failing.add(intv);
 			} else { 
-				matched.add(rquery[0]);
+				matched[rquery[0]] = true;
 			}
 		}
 		
-		for(int i = 0; i < units.size(); i++) { 
-			if(!matched.contains(i)) { 
-				failing.add(new Interval(units.get(i)[0], units.get(i)[1]));
+		for(int i = 0; i < size; i++) { 
+			if(!matched[i]) { 
+				failing.add(new Interval<Object>(starts[i], ends[i]));
 			}
 		}
 		
 		return failing;
 	}
 	
-	public int size() { return units.size(); }
+	public int size() { return size; }
 	
-	public Iterator<Integer[]> units() { return units.iterator(); }
+	public Iterator<Integer[]> units() { 
+		ArrayList<Integer[]> us = new ArrayList<Integer[]>(size);
+		for(int i = 0; i < size; i++) { 
+			us.add(unit(i));
+		}
+		return us.iterator();
+	}
 	
 	public UnitCoverage subtract(UnitCoverage c) { 
-		ArrayList<Integer[]> newUnits = new ArrayList<Integer[]>();
-		
-		BacktrackingIterator<Integer[]> these = 
-			new BacktrackingIterator<Integer[]>(units.iterator());
-		BacktrackingIterator<Integer[]> those = 
-			new BacktrackingIterator<Integer[]>(c.units.iterator());
-
-		while(these.hasNext()) { 
-			if (!those.hasNext()) { 
-				newUnits.add(these.next());
-			} else { 
-				Integer[] u1 = these.next(), u2 = those.next();
-				
-				if(overlaps(u1, u2)) {
-					Integer[] lft = new Integer[] { u1[0], u2[0]-1 };
-					Integer[] rgt = new Integer[] { u2[1]+1, u1[1] };
-					
-					if(rgt[1] >= rgt[0]) { these.addNext(rgt); }
-					if(lft[1] >= lft[0]) { these.addNext(lft); }
-
-					if(u2[1] > u1[1]) { 
-						those.addNext(u2);
-					}
-					
-				} else { 
-					if(u1[1] < u2[0]) {
-						newUnits.add(u1);
-						those.addNext(u2);
-					} else { 
-						these.addNext(u1);
-					}
-				}
-			}
-		}
-		
-		return new UnitCoverage(newUnits);		
+		return new UnitCoverage(asIntervals().subtract(c.asIntervals()));
 	}
 	
 	public UnitCoverage union(UnitCoverage c) { 
-		ArrayList<Integer[]> newUnits = new ArrayList<Integer[]>();
-		
-		BacktrackingIterator<Integer[]> these = 
-			new BacktrackingIterator<Integer[]>(units.iterator());
-		BacktrackingIterator<Integer[]> those = 
-			new BacktrackingIterator<Integer[]>(c.units.iterator());
-			
-		while(these.hasNext() || those.hasNext()) { 
-			if(!these.hasNext()) { 
-				newUnits.add(those.next()); 
-			} else if (!those.hasNext()) { 
-				newUnits.add(these.next());
-			} else { 
-				Integer[] u1 = these.next(), u2 = those.next();
-				
-				if(overlaps(u1, u2)) { 
-					if(u1[1] <= u2[1]) { 
-						those.addNext(union(u1, u2));
-					} else { 
-						these.addNext(union(u1, u2));
-					}
-				} else { 
-					if(u1[1] < u2[0]) { 
-						newUnits.add(u1);
-						those.addNext(u2);
-					} else { 
-						newUnits.add(u2);
-						these.addNext(u1);
-					}
-				}
-			}
-		}
-		
-		return new UnitCoverage(newUnits);		
+		return new UnitCoverage(asIntervals().union(c.asIntervals()));
 	}
 
 	public UnitCoverage intersection(UnitCoverage c) { 
-		ArrayList<Integer[]> newUnits = new ArrayList<Integer[]>();
-		
-		BacktrackingIterator<Integer[]> these = 
-			new BacktrackingIterator<Integer[]>(units.iterator());
-		BacktrackingIterator<Integer[]> those = 
-			new BacktrackingIterator<Integer[]>(c.units.iterator());
-
-		while(these.hasNext() && those.hasNext()) { 
-			Integer[] u1 = these.next(), u2 = those.next();
-			if(overlaps(u1, u2)) {
-				Integer[] inter = intersection(u1, u2);
-				newUnits.add(inter);
-				
-				if (u1[1] >= u2[1]) {
-					these.addNext(u1);
-				} else { 
-					those.addNext(u2);
-				}
-			} else if (u1[1] < u2[0]) { 
-				those.addNext(u2);
-			} else { 
-				these.addNext(u1);
-			}
-		}
-		
-		return new UnitCoverage(newUnits);		
+		return new UnitCoverage(asIntervals().intersect(c.asIntervals()));
 	}
 	
 	public String toString() { 
 		StringBuilder sb = new StringBuilder();
 		sb.append("[ ");
-		for(Integer[] u : units) { 
-			sb.append(String.format("%d,%d ", u[0], u[1]));
+		for(int i = 0; i < size; i++) { 
+			sb.append(String.format("%d,%d ", starts[i], ends[i]));
 		}
 		sb.append("]");
 		return sb.toString();
 	}
 	
 	public int addInterval(int start, int end) {
-		Integer[] r = range(start, end);
-		//System.out.println(String.format("%d,%d -> %s", start, end, toString()));
+		int lo = firstEndingAtOrAfter(start);
+		int hi = lastStartingAtOrBefore(end);
 
-		if(r == null) { 
-			//System.out.println("\tNo overlap");
-			insertInterval(start, end);
-		} else { 
-			//System.out.println(String.format("\nelmt: %d,%d", start, end));
-			//System.out.println(String.format("\tover: r[0]=%d, r[1]=%d", r[0], r[1]));
-			Integer[] nunit = new Integer[] { start, end };
-			for(int i = r[1]; i > r[0]; i--) {
-				if(overlaps(nunit, units.get(i))) { 
-					Integer[] u = units.get(i);
-					//System.out.println(String.format("\t\t%d - u: %d-%d", i, u[0], u[1]));
-					nunit = union(u, nunit);
-					units.remove(i);
-					//System.out.println(String.format("\t\tnunit: %d-%d", nunit[0], nunit[1]));
-				}
+		if(lo > hi) { 
+			//no overlap: insert at lo
+			if(size == starts.length) { 
+				starts = Arrays.copyOf(starts, size*2);
+				ends = Arrays.copyOf(ends, size*2);
 			}
-			//System.out.println(String.format("\t\t%d - u: %d-%d", r[0], units.get(r[0])[0], units.get(r[0])[1]));
-			nunit = union(units.get(r[0]), nunit);
-			//System.out.println(String.format("\t\tnunit: %d-%d", nunit[0], nunit[1]));
-			units.set(r[0], nunit);
+			System.arraycopy(starts, lo, starts, lo+1, size-lo);
+			System.arraycopy(ends, lo, ends, lo+1, size-lo);
+			starts[lo] = start;
+			ends[lo] = end;
+			size++;
+		} else { 
+			//units lo..hi all overlap the new interval: replace them with their union
+			starts[lo] = Math.min(start, starts[lo]);
+			ends[lo] = Math.max(end, ends[hi]);
+			int removed = hi - lo;
+			System.arraycopy(starts, hi+1, starts, lo+1, size-hi-1);
+			System.arraycopy(ends, hi+1, ends, lo+1, size-hi-1);
+			size -= removed;
 		}
 
-		signalErrorOnUnsort();
 		return 1;
 	}
 	
-	private void insertInterval(int start, int end) { 
-		Integer left = leftBinarySearch(start);
-		if(left == null) { 
-			//System.out.println(String.format("\t%d,%d -> ?", start, end));
-			units.add(0, new Integer[] { start, end });
-		} else { 
-			//System.out.println(String.format("\t%d,%d -> %d", start, end, left));
-			units.add(left+1, new Integer[] { start, end });
+	/* index of the first unit whose end is >= loc (size if none) */
+	private int firstEndingAtOrAfter(int loc) { 
+		int lo = 0, hi = size;
+		while(lo < hi) { 
+			int mid = (lo+hi) >>> 1;
+			if(ends[mid] < loc) { lo = mid+1; } else { hi = mid; }
 		}
-		signalErrorOnUnsort();
+		return lo;
 	}
 	
-	/*
-	 * Finds either the interval that contains the given location, or the 
-	 * interval that occurs immediately to that location's *left*.  (Or null, 
-	 * if no such interval exists.)  
-	 */
-	private Integer leftBinarySearch(int loc) { 
-		if(units.isEmpty()) { return null; }
-		int lower = 0, upper = units.size()-1;
-		if(units.get(upper)[1] < loc) { return upper; }
-		if(units.get(lower)[0] > loc) { return null; }
-		if(contains(units.get(lower), loc)) { return lower; }
-		if(contains(units.get(upper), loc)) { return upper; }
-		
-		while(upper-lower > 1) { 
-			//System.out.println(String.format("<(%d %d) [%d-%d / %d-%d]", lower, upper, units.get(lower)[0], units.get(lower)[1], units.get(upper)[0], units.get(upper)[1]));
-			int middle = (upper+lower)/2;
-			if(contains(units.get(middle), loc)) { 
-				return middle;
-			} else if(units.get(middle)[0] < loc) { 
-				lower = middle;
-			} else { 
-				upper = middle;
-			}
-		}
-		
-		//System.out.println(String.format("left: %d -> %d", loc, lower));
-		
-		return lower;
-	}
-
-	private Integer rightBinarySearch(int loc) { 
-		if(units.isEmpty()) { return null; }
-		int lower = 0, upper = units.size()-1;
-		if(units.get(lower)[0] > loc) { return lower; }
-		if(units.get(upper)[1] < loc) { return null; }
-		if(contains(units.get(lower), loc)) { return lower; }
-		if(contains(units.get(upper), loc)) { return upper; }
-		
-		while(upper-lower > 1) {
-			//System.out.println(String.format(">(%d %d) [%d-%d / %d-%d]", lower, upper, units.get(lower)[0], units.get(lower)[1], units.get(upper)[0], units.get(upper)[1]));
-			int middle = (upper+lower)/2;
-			if(contains(units.get(middle), loc)) { 
-				return middle;
-			} else if(units.get(middle)[1] > loc) { 
-				upper = middle;
-			} else { 
-				lower = middle;
-			}
+	/* index of the last unit whose start is <= loc (-1 if none) */
+	private int lastStartingAtOrBefore(int loc) { 
+		int lo = 0, hi = size;
+		while(lo < hi) { 
+			int mid = (lo+hi) >>> 1;
+			if(starts[mid] <= loc) { lo = mid+1; } else { hi = mid; }
 		}
-
-		//System.out.println(String.format("right: %d -> %d", loc, upper));
-
-		return upper;
+		return lo-1;
 	}
 	
 	/*
@@ -342,34 +234,29 @@ public class UnitCoverage {
 	 *  
 	 *  If no intervals are overlapped, a 'null' is returned.   
 	 */
-	private Integer[] range(int start, int end) {
-		if(units.isEmpty() || start > units.get(units.size()-1)[1] || end < units.get(0)[0]) {
-			System.out.println("Returning from range() early.");
+	private int[] range(int start, int end) {
+		int lower = firstEndingAtOrAfter(start);
+		int upper = lastStartingAtOrBefore(end);
+		if(lower > upper) { 
 			return null;
 		}
-		
-		Integer lower = rightBinarySearch(start);
-		Integer upper = lower;
-		while(upper < units.size() && units.get(upper)[0] <= end) { 
-			upper += 1;
-		}
-		System.out.println(String.format("%d,%d -> [%d,%d]", start, end, lower, upper));
-		
-		if(lower >= upper) { 
-			return null;
-		}
-		
-		return new Integer[] { lower, upper-1 };
+		return new int[] { lower, upper };
 	}
 	
+	/*
+	 * The unit that contains the given location, or the nearest unit to its right (null if none)
+	 */
 	public Integer[] rightNearest(Integer pos) { 
-		Integer upper = rightBinarySearch(pos);
-		return upper != null ? units.get(upper) : null;
+		int i = firstEndingAtOrAfter(pos);
+		return i < size ? unit(i) : null;
 	}
 	
+	/*
+	 * The unit that contains the given location, or the nearest unit to its left (null if none)
+	 */
 	public Integer[] leftNearest(Integer pos) { 
-		Integer lower = leftBinarySearch(pos);
-		return lower != null ? units.get(lower) : null;
+		int i = lastStartingAtOrBefore(pos);
+		return i >= 0 ? unit(i) : null;
 	}
 	
 	/**
@@ -377,8 +264,8 @@ public class UnitCoverage {
 	 */
 	public int area() { 
 		int a = 0;
-		for(Integer[] unit : units) { 
-			a += (unit[1] - unit[0] + 1);
+		for(int i = 0; i < size; i++) { 
+			a += (ends[i] - starts[i] + 1);
 		}
 		return a;
 	}
@@ -391,22 +278,13 @@ public class UnitCoverage {
 	 */
 	public int coverage(int start, int end) { 
 		int coverage = 0;
-		Integer[] query = new Integer[] { start, end };
-		Integer[] range = range(start, end);
+		int[] range = range(start, end);
 		if(range != null) { 
 			for(int i = range[0]; i<= range[1]; i++) { 
-				Integer[] unit = units.get(i);
-				if(!overlaps(query, unit)) {
-					if(!checkSorted()) { 
-						System.err.println(String.format("ERROR! units not sorted."));
-					}
-					System.err.println(String.format("ERROR: %d,%d not in %d,%d", unit[0], unit[1], query[0], query[1]));
-				}
-				int s = Math.max(unit[0], start);
-				int e = Math.min(unit[1], end);
+				int s = Math.max(starts[i], start);
+				int e = Math.min(ends[i], end);
 				if(e >= s) { 
-					int w = e - s + 1;
-					coverage += w;
+					coverage += e - s + 1;
 				}
 			}
 		}
@@ -414,9 +292,8 @@ public class UnitCoverage {
 	}
 	
 	public boolean checkSorted() { 
-		for(int i = 1; i < units.size(); i++) { 
-			Integer[] u = units.get(i-1), v = units.get(i);
-			if(u[1] >= v[0]) { 
+		for(int i = 1; i < size; i++) { 
+			if(ends[i-1] >= starts[i]) { 
 				return false;
 			}
 		}
@@ -433,18 +310,17 @@ public class UnitCoverage {
 	 */
 	public Collection<Integer[]> covered(int start, int end) { 
 		ArrayList<Integer[]> lst = new ArrayList<Integer[]>();
-		Integer[] query = new Integer[] { start, end };
-		Integer[] range = range(start, end);
+		int[] range = range(start, end);
 		if(range != null) { 
 			for(int i = range[0]; i<= range[1]; i++) { 
-				lst.add(intersection(units.get(i), query));
+				lst.add(new Integer[] { Math.max(starts[i], start), Math.min(ends[i], end) });
 			}
 		}
 		return lst;
 	}
 	
 	public Iterator<Integer[]> covered() { 
-		return units.iterator();
+		return units();
 	}
 	
 	/**
@@ -459,60 +335,11 @@ public class UnitCoverage {
 	}
 
 	public boolean isContained(int start, int end) {
-		Integer[] r = range(start, end);
+		int[] r = range(start, end);
 		return r != null && r[0] == r[1] && 
-			contains(units.get(r[0]), new Integer[] { start, end });
+			starts[r[0]] <= start && ends[r[0]] >= end;
 	}
 
-	private static Integer[] intersection(Integer[] r1, Integer[] r2) { 
-		return new Integer[] { Math.max(r1[0], r2[0]), Math.min(r1[1], r2[1]) };		
-	}
-	
-	private static Integer[] union(Integer[] r1, Integer[] r2) { 
-		return new Integer[] { Math.min(r1[0], r2[0]), Math.max(r1[1], r2[1]) };
-	}
-	
-	private static boolean equal(Integer[] r1, Integer[] r2) { 
-		return r1[0].equals(r2[0]) && r1[1].equals(r2[1]);
-	}
-	
-	private static String string(Integer[] r) { 
-		return String.format("%d,%d", r[0], r[1]);
-	}
-	
-	private static Integer[] subtract(Integer[] r1, Integer[] r2) {
-		if(equal(r1, r2)) { 
-			return null; 
-		} else if(!overlaps(r1, r2)) {
-			return r1; 
-		} else { 
-			if(r1[0] < r2[0]) { 
-				return new Integer[] { r1[0], Math.min(r1[1], r2[1])-1 };				
-			} else { 
-				return new Integer[] { Math.max(r1[0], r2[0])+1, r1[1] };								
-			}
-		}
-	}
-	
-	private static Integer[] union(Integer[]... rs) { 
-		if(rs.length == 0) { 
-			throw new IllegalArgumentException();
-		} else if (rs.length == 1) { 
-			return rs[0];
-		} else { 
-			return union(rs[0], union(ArrayUtils.tail(rs)));
-		}
-	}
-	
-	private static boolean overlaps(Integer[] r1, Integer[] r2) { 
-		return contains(r1, r2[0]) || 
-			contains(r2, r1[0]);
-	}
-	
-	private static boolean contains(Integer[] r1, Integer[] r2) { 
-		return r1[0] <= r2[0] && r1[1] >= r2[1];
-	}
-	
 	private static boolean contains(Integer[] r, Integer l) { 
 		return r[0] <= l && r[1] >= l;
 	}
@@ -536,12 +363,17 @@ public class UnitCoverage {
 	
 	public UnitCoverageModel asModel() { 
 		signalErrorOnUnsort();
-		return new UnitCoverageModel(units);
+		ArrayList<Integer[]> us = new ArrayList<Integer[]>(size);
+		for(int i = 0; i < size; i++) { 
+			us.add(unit(i));
+		}
+		return new UnitCoverageModel(us);
 	}
 
 	public Collection<Pair<Integer[], Integer[]>> findLeftPairs(int maxDist, UnitCoverage coverage) {
 		ArrayList<Pair<Integer[],Integer[]>> pairs = new ArrayList<Pair<Integer[],Integer[]>>();
-		for(Integer[] right : units) { 
+		for(int i = 0; i < size; i++) { 
+			Integer[] right = unit(i);
 			Integer[] left = coverage.leftNearest(right[0]-1);
 			if(left != null && (contains(left, right[0]) || 
 					(!hasOverlap(left[1]+1, right[0]-1) && right[0] - left[1] <= maxDist))) { 
@@ -553,7 +385,8 @@ public class UnitCoverage {
 
 	public Collection<Pair<Integer[], Integer[]>> findRightPairs(int maxDist, UnitCoverage coverage) {
 		ArrayList<Pair<Integer[],Integer[]>> pairs = new ArrayList<Pair<Integer[],Integer[]>>();
-		for(Integer[] left : units) { 
+		for(int i = 0; i < size; i++) { 
+			Integer[] left = unit(i);
 			Integer[] right = coverage.rightNearest(left[1]+1);
 			if(right != null && (contains(right, left[1]) || 
 					(!hasOverlap(left[1]+1, right[0]-1) && right[0] - left[1] <= maxDist))) { 
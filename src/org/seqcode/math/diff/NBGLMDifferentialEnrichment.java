@@ -0,0 +1,648 @@
+package org.seqcode.math.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cern.jet.stat.Gamma;
+import cern.jet.stat.Probability;
+
+
+/**
+ * NBGLMDifferentialEnrichment: pure-Java negative binomial GLM test of differential enrichment, in the style of
+ * DESeq2 (Love, Huber & Anders, Genome Biology 2014). It needs neither R nor edgeR.
+ *
+ * Each unit is fit with log(mu_us) = log(s_s) + beta_0 + beta_c(s): an intercept for the focal condition plus one
+ * coefficient per other condition. The steps are:
+ *  - size factors s_s from the given Normalization, or from median ratios to the geometric mean
+ *  - gene-wise dispersions that maximise the Cox-Reid adjusted profile likelihood
+ *  - a parametric trend, alpha(mu) = a0 + a1/mu, fit by gamma-family regression
+ *  - dispersions shrunk towards the trend (log-normal prior, MAP); gene-wise estimates far above the trend are kept
+ *  - a Wald or likelihood ratio test for each condition against the focal condition
+ *
+ * Units are processed in fixed blocks on a thread pool, over primitive arrays. For each condition x, results are
+ * written to the CountsDataset: DEpval(u,x) holds the p-value (Benjamini-Hochberg adjusted, if requested),
+ * condFold(u,x) the log2 fold change of x over the focal condition, condMean(u,x) the mean normalized count over
+ * the two conditions, and condRawVar(u,x) the fitted variance of the normalized counts in condition x.
+ *
+ * @version	%I%, %G%
+ */
+public class NBGLMDifferentialEnrichment extends DifferentialEnrichment{
+
+	public enum Test {WALD, LRT};
+
+	protected static final int BLOCKSIZE=1024;
+	protected static final double MIN_DISP=1e-8;
+	protected static final double MAX_BETA=30;		//natural-log scale bound on coefficients
+	protected static final double RIDGE=1e-6;		//ridge penalty keeping IRLS well-posed for all-zero conditions
+	protected static final double LOG_2 = Math.log(2.0);
+
+	protected Normalization normalizer; //optional; median ratios of log geometric means are used otherwise
+	protected Test test = Test.WALD;
+	protected boolean adjustPValues = false;
+	protected int numThreads=1;
+
+	//Per-execute state
+	protected int numUnits, numSamples, numCoefs;
+	protected double[] counts;		//row-major by unit
+	protected double[] logSize;		//log size factor per sample
+	protected double[] X;			//design, row-major by sample
+	protected int[] coefIndex;		//design column of each condition (-1 for the focal condition)
+	protected double maxDisp;
+	protected double[] baseMean, geneDisp, trendDisp, disp;
+	protected double trendA0, trendA1, priorVar;
+
+	public NBGLMDifferentialEnrichment(){this(null);}
+	public NBGLMDifferentialEnrichment(Normalization norm){
+		super();
+		normalizer = norm;
+	}
+
+	public void setTest(Test t){test=t;}
+	public void setAdjustPValues(boolean a){adjustPValues=a;}
+	public void setNumThreads(int t){numThreads = Math.max(1, t);}
+
+	public double[] getBaseMeans(){return baseMean;}
+	public double[] getGeneWiseDispersions(){return geneDisp;}
+	public double[] getTrendDispersions(){return trendDisp;}
+	public double[] getDispersions(){return disp;}
+	public double getPriorVariance(){return priorVar;}
+	/** Coefficients (a0, a1) of the dispersion trend a0 + a1/mean */
+	public double[] getTrendCoefficients(){return new double[]{trendA0, trendA1};}
+
+	@Override
+	public CountsDataset execute(CountsDataset data) {
+		numUnits = data.getNumUnits();
+		numSamples = data.getNumSamples();
+		int numConds = data.getNumConditions();
+		int ref = data.getFocalCondition();
+		int[] design = data.getDesignArray();
+
+		double[][] k = data.getCounts().getArray();
+		counts = new double[numUnits*numSamples];
+		for(int u=0; u<numUnits; u++)
+			System.arraycopy(k[u], 0, counts, u*numSamples, numSamples);
+
+		//Size factors
+		double[] sizeFactors;
+		if(normalizer!=null){
+			normalizer.normalize(data);
+			sizeFactors = data.getScalingFactors().clone();
+		}else{
+			sizeFactors = medianRatioSizeFactors();
+			data.setScalingFactors(sizeFactors);
+		}
+		logSize = new double[numSamples];
+		for(int s=0; s<numSamples; s++)
+			logSize[s] = Math.log(sizeFactors[s]);
+
+		//Design: intercept (focal condition) + one indicator per other condition
+		coefIndex = new int[numConds];
+		numCoefs=1;
+		for(int c=0; c<numConds; c++)
+			coefIndex[c] = c==ref ? -1 : numCoefs++;
+		X = new double[numSamples*numCoefs];
+		for(int s=0; s<numSamples; s++){
+			X[s*numCoefs]=1;
+			if(coefIndex[design[s]]>0)
+				X[s*numCoefs+coefIndex[design[s]]]=1;
+		}
+		int[] groupSize = new int[numConds];
+		for(int s=0; s<numSamples; s++)
+			groupSize[design[s]]++;
+		for(int c=0; c<numConds; c++)
+			if(groupSize[c]==0)
+				throw new IllegalArgumentException("Condition "+data.getCondName(c)+" has no samples");
+		maxDisp = Math.max(10, numSamples);
+
+		//Dispersions need residual degrees of freedom; without replicates, estimate them blind to the design
+		int df = numSamples-numCoefs;
+		double[] dispX=X;
+		int dispCoefs=numCoefs;
+		if(df<1){
+			System.err.println("NBGLMDifferentialEnrichment: no residual degrees of freedom; estimating dispersions as if all samples were replicates");
+			dispX = new double[numSamples];
+			Arrays.fill(dispX, 1.0);
+			dispCoefs=1;
+			df = numSamples-1;
+			if(df<1)
+				throw new IllegalArgumentException("At least two samples are required");
+		}
+
+		baseMean = new double[numUnits];
+		geneDisp = new double[numUnits];
+		trendDisp = new double[numUnits];
+		disp = new double[numUnits];
+		final double[] fdispX = dispX;
+		final int fdispCoefs = dispCoefs;
+
+		//Gene-wise dispersions
+		runBlocks(new BlockTask(){
+			public void run(int from, int to, Workspace ws){
+				for(int u=from; u<to; u++){
+					double mean=0;
+					for(int s=0; s<numSamples; s++)
+						mean += counts[u*numSamples+s]/Math.exp(logSize[s]);
+					baseMean[u] = mean/numSamples;
+					geneDisp[u] = baseMean[u]>0 ? geneWiseDispersion(u, fdispX, fdispCoefs, ws) : Double.NaN;
+				}
+			}
+		});
+
+		//Dispersion trend & prior
+		fitTrend();
+		for(int u=0; u<numUnits; u++)
+			trendDisp[u] = baseMean[u]>0 ? trendA0 + trendA1/baseMean[u] : Double.NaN;
+		double[] resid = new double[numUnits];
+		int nr=0;
+		for(int u=0; u<numUnits; u++)
+			if(baseMean[u]>0 && geneDisp[u]>=100*MIN_DISP)
+				resid[nr++] = Math.log(geneDisp[u])-Math.log(trendDisp[u]);
+		double residSD = nr>0 ? mad(Arrays.copyOf(resid, nr)) : 0;
+		priorVar = Math.max(residSD*residSD - trigamma(df/2.0), 0.25);
+		final double outlierSD = residSD;
+
+		//MAP dispersions, final fits, and tests
+		final double[][] pvals = new double[numConds][numUnits];
+		final double[][] folds = new double[numConds][numUnits];
+		final double[][] means = new double[numConds][numUnits];
+		final double[][] vars = new double[numConds][numUnits];
+		final int fref = ref;
+		final int[] fdesign = design;
+		runBlocks(new BlockTask(){
+			public void run(int from, int to, Workspace ws){
+				for(int u=from; u<to; u++){
+					if(!(baseMean[u]>0)){
+						for(int c=0; c<coefIndex.length; c++){
+							pvals[c][u]=1; folds[c][u]=0; means[c][u]=0; vars[c][u]=0;
+						}
+						continue;
+					}
+					double logTrend = Math.log(trendDisp[u]);
+					if(Math.log(geneDisp[u]) > logTrend + 2*outlierSD)
+						disp[u] = geneDisp[u]; //dispersion outlier: not shrunk
+					else
+						disp[u] = mapDispersion(u, fdispX, fdispCoefs, logTrend, ws);
+					testUnit(u, fref, fdesign, ws, pvals, folds, means, vars);
+				}
+			}
+		});
+
+		for(int c=0; c<numConds; c++){
+			if(c==ref)
+				continue;
+			double[] p = adjustPValues ? benjaminiHochberg(pvals[c]) : pvals[c];
+			for(int u=0; u<numUnits; u++){
+				data.setDEpval(u, c, p[u]);
+				data.setCondFold(u, c, folds[c][u]);
+				data.setCondMean(u, c, means[c][u]);
+				data.setCondRawVar(u, c, vars[c][u]);
+			}
+		}
+		for(int u=0; u<numUnits; u++){
+			data.setCondMean(u, ref, means[ref][u]);
+			data.setCondRawVar(u, ref, vars[ref][u]);
+		}
+		return data;
+	}
+
+	/**
+	 * Fits the full model with the final dispersion and tests each condition against the focal condition
+	 */
+	private void testUnit(int u, int ref, int[] design, Workspace ws,
+			double[][] pvals, double[][] folds, double[][] means, double[][] vars){
+		double alpha = disp[u];
+		double[] beta = new double[numCoefs];
+		double[] mu = new double[numSamples];
+		fitGLM(u, X, numCoefs, alpha, beta, mu, ws);
+		double llFull = test==Test.LRT ? logLikelihood(u, mu, alpha) : 0;
+		//(X'WX)^-1 for the Wald standard errors
+		double[] cov = null;
+		if(test==Test.WALD){
+			weightedCrossProduct(X, numCoefs, mu, alpha, ws.xtwx);
+			cov = invert(ws.xtwx, numCoefs);
+		}
+		double refMean = Math.exp(beta[0]);
+		for(int c=0; c<coefIndex.length; c++){
+			int j = coefIndex[c];
+			double q = j<0 ? refMean : Math.exp(beta[0]+beta[j]);
+			vars[c][u] = q + alpha*q*q;
+			//Mean normalized count over this condition and the focal condition
+			double sum=0; int n=0;
+			for(int s=0; s<numSamples; s++)
+				if(design[s]==c || design[s]==ref){
+					sum += counts[u*numSamples+s]/Math.exp(logSize[s]);
+					n++;
+				}
+			means[c][u] = sum/n;
+			if(j<0)
+				continue;
+			folds[c][u] = beta[j]/LOG_2;
+			if(test==Test.WALD){
+				double se = Math.sqrt(Math.max(cov[j*numCoefs+j], 0));
+				pvals[c][u] = se>0 ? 2*Probability.normal(-Math.abs(beta[j])/se) : 1.0;
+			}else{
+				//Reduced model: condition c merged into the focal condition
+				double[] Xr = reducedDesign(j);
+				double[] br = new double[numCoefs-1];
+				double[] mur = new double[numSamples];
+				fitGLM(u, Xr, numCoefs-1, alpha, br, mur, ws);
+				double stat = Math.max(0, 2*(llFull - logLikelihood(u, mur, alpha)));
+				pvals[c][u] = Probability.chiSquareComplemented(1, stat);
+			}
+		}
+	}
+
+	/* The design without column j */
+	private double[] reducedDesign(int j){
+		double[] Xr = new double[numSamples*(numCoefs-1)];
+		for(int s=0; s<numSamples; s++)
+			for(int a=0, b=0; a<numCoefs; a++)
+				if(a!=j)
+					Xr[s*(numCoefs-1)+(b++)] = X[s*numCoefs+a];
+		return Xr;
+	}
+
+	/**
+	 * IRLS fit of the NB GLM with log link and size-factor offsets. Fills beta and the fitted means.
+	 */
+	protected void fitGLM(int u, double[] design, int p, double alpha, double[] beta, double[] mu, Workspace ws){
+		int off = u*numSamples;
+		double[] xtwx = ws.xtwx, xtwz = ws.xtwz;
+		//Start from least squares on log normalized counts
+		Arrays.fill(xtwx, 0, p*p, 0);
+		Arrays.fill(xtwz, 0, p, 0);
+		for(int s=0; s<numSamples; s++){
+			double z = Math.log(counts[off+s]/Math.exp(logSize[s]) + 0.1);
+			for(int a=0; a<p; a++){
+				double xa = design[s*p+a];
+				if(xa==0) continue;
+				xtwz[a] += xa*z;
+				for(int b=0; b<p; b++)
+					xtwx[a*p+b] += xa*design[s*p+b];
+			}
+		}
+		for(int a=0; a<p; a++)
+			xtwx[a*p+a] += RIDGE;
+		solve(xtwx, xtwz, p, beta);
+
+		double prevDev = Double.MAX_VALUE;
+		for(int iter=0; iter<100; iter++){
+			Arrays.fill(xtwx, 0, p*p, 0);
+			Arrays.fill(xtwz, 0, p, 0);
+			for(int s=0; s<numSamples; s++){
+				double eta=0;
+				for(int a=0; a<p; a++)
+					eta += design[s*p+a]*beta[a];
+				double m = Math.exp(eta+logSize[s]);
+				double w = m/(1+alpha*m);
+				double z = eta + (counts[off+s]-m)/m;
+				for(int a=0; a<p; a++){
+					double xa = design[s*p+a];
+					if(xa==0) continue;
+					xtwz[a] += xa*w*z;
+					for(int b=0; b<p; b++)
+						xtwx[a*p+b] += xa*w*design[s*p+b];
+				}
+			}
+			for(int a=0; a<p; a++)
+				xtwx[a*p+a] += RIDGE;
+			solve(xtwx, xtwz, p, beta);
+			for(int a=0; a<p; a++)
+				beta[a] = Math.max(-MAX_BETA, Math.min(MAX_BETA, beta[a]));
+			double dev=0;
+			for(int s=0; s<numSamples; s++){
+				double eta=0;
+				for(int a=0; a<p; a++)
+					eta += design[s*p+a]*beta[a];
+				mu[s] = Math.exp(eta+logSize[s]);
+				dev += unitDeviance(counts[off+s], mu[s], alpha);
+			}
+			if(Math.abs(dev-prevDev)/(Math.abs(dev)+0.1) < 1e-8)
+				break;
+			prevDev = dev;
+		}
+	}
+
+	/* Gene-wise estimate: maximises the Cox-Reid adjusted profile likelihood over log(alpha) */
+	private double geneWiseDispersion(int u, double[] design, int p, Workspace ws){
+		double[] beta = ws.beta, mu = ws.mu;
+		//Rough moments estimate to start, then two rounds of fit-means / optimise-dispersion
+		double alpha = roughDispersion(u);
+		for(int round=0; round<2; round++){
+			fitGLM(u, design, p, alpha, beta, mu, ws);
+			alpha = maximizeLogDisp(u, design, p, mu, Double.NaN, ws);
+		}
+		return alpha;
+	}
+
+	/* MAP estimate under the log-normal prior centred on the trend */
+	private double mapDispersion(int u, double[] design, int p, double logTrend, Workspace ws){
+		double[] beta = ws.beta, mu = ws.mu;
+		fitGLM(u, design, p, Math.exp(logTrend), beta, mu, ws);
+		return maximizeLogDisp(u, design, p, mu, logTrend, ws);
+	}
+
+	/* Golden-section search on log(alpha); a NaN prior mean means no prior */
+	private double maximizeLogDisp(int u, double[] design, int p, double[] mu, double priorMean, Workspace ws){
+		final double g = (Math.sqrt(5)-1)/2;
+		double lo = Math.log(MIN_DISP), hi = Math.log(maxDisp);
+		double x1 = hi-g*(hi-lo), x2 = lo+g*(hi-lo);
+		double f1 = dispObjective(u, design, p, mu, x1, priorMean, ws), f2 = dispObjective(u, design, p, mu, x2, priorMean, ws);
+		while(hi-lo > 1e-4){
+			if(f1>f2){
+				hi=x2; x2=x1; f2=f1;
+				x1 = hi-g*(hi-lo);
+				f1 = dispObjective(u, design, p, mu, x1, priorMean, ws);
+			}else{
+				lo=x1; x1=x2; f1=f2;
+				x2 = lo+g*(hi-lo);
+				f2 = dispObjective(u, design, p, mu, x2, priorMean, ws);
+			}
+		}
+		return Math.exp((lo+hi)/2);
+	}
+
+	private double dispObjective(int u, double[] design, int p, double[] mu, double logAlpha, double priorMean, Workspace ws){
+		double alpha = Math.exp(logAlpha);
+		double ll = logLikelihood(u, mu, alpha);
+		weightedCrossProduct(design, p, mu, alpha, ws.xtwx);
+		ll -= 0.5*logDet(ws.xtwx, p);
+		if(!Double.isNaN(priorMean))
+			ll -= (logAlpha-priorMean)*(logAlpha-priorMean)/(2*priorVar);
+		return ll;
+	}
+
+	private double roughDispersion(int u){
+		double mean=0, var=0, invSize=0;
+		for(int s=0; s<numSamples; s++){
+			mean += counts[u*numSamples+s]/Math.exp(logSize[s]);
+			invSize += 1/Math.exp(logSize[s]);
+		}
+		mean/=numSamples;
+		invSize/=numSamples;
+		for(int s=0; s<numSamples; s++){
+			double d = counts[u*numSamples+s]/Math.exp(logSize[s])-mean;
+			var += d*d;
+		}
+		var/=(numSamples-1);
+		double a = (var - mean*invSize)/(mean*mean);
+		return Math.min(maxDisp, Math.max(a, 0.1));
+	}
+
+	/* NB log-likelihood of a unit's counts */
+	protected double logLikelihood(int u, double[] mu, double alpha){
+		double r = 1/alpha, ll=0, lgr = Gamma.logGamma(r);
+		for(int s=0; s<numSamples; s++){
+			double k = counts[u*numSamples+s], m = mu[s];
+			ll += Gamma.logGamma(k+r) - lgr - Gamma.logGamma(k+1)
+				+ r*Math.log(r/(r+m)) + (k>0 ? k*Math.log(m/(r+m)) : 0);
+		}
+		return ll;
+	}
+
+	private static double unitDeviance(double k, double m, double alpha){
+		double r = 1/alpha;
+		double d = (k>0 ? k*Math.log(k/m) : 0) - (k+r)*Math.log((k+r)/(m+r));
+		return 2*d;
+	}
+
+	/* X'WX with NB working weights */
+	private void weightedCrossProduct(double[] design, int p, double[] mu, double alpha, double[] out){
+		Arrays.fill(out, 0, p*p, 0);
+		for(int s=0; s<numSamples; s++){
+			double w = mu[s]/(1+alpha*mu[s]);
+			for(int a=0; a<p; a++){
+				double xa = design[s*p+a];
+				if(xa==0) continue;
+				for(int b=0; b<p; b++)
+					out[a*p+b] += xa*w*design[s*p+b];
+			}
+		}
+	}
+
+	/* Median-of-ratios size factors over units with no zero counts */
+	protected double[] medianRatioSizeFactors(){
+		double[] logGeo = new double[numUnits];
+		int usable=0;
+		for(int u=0; u<numUnits; u++){
+			double sum=0;
+			boolean zero=false;
+			for(int s=0; s<numSamples && !zero; s++){
+				double k = counts[u*numSamples+s];
+				if(k<=0) zero=true;
+				else sum += Math.log(k);
+			}
+			logGeo[u] = zero ? Double.NEGATIVE_INFINITY : sum/numSamples;
+			if(!zero) usable++;
+		}
+		if(usable==0)
+			throw new IllegalArgumentException("Every unit has a zero count; cannot estimate size factors");
+		double[] sf = new double[numSamples];
+		double[] ratios = new double[usable];
+		for(int s=0; s<numSamples; s++){
+			int n=0;
+			for(int u=0; u<numUnits; u++)
+				if(logGeo[u]>Double.NEGATIVE_INFINITY)
+					ratios[n++] = Math.log(counts[u*numSamples+s])-logGeo[u];
+			sf[s] = Math.exp(median(ratios, n));
+		}
+		return sf;
+	}
+
+	/**
+	 * Fits alpha = a0 + a1/mean by gamma-family regression (identity link), iteratively dropping units whose
+	 * dispersion ratio to the fit is outside [1e-4, 15]. Falls back to a constant trend if the fit fails.
+	 */
+	protected void fitTrend(){
+		int n=0;
+		int[] use = new int[numUnits];
+		for(int u=0; u<numUnits; u++)
+			if(baseMean[u]>0 && geneDisp[u]>=100*MIN_DISP)
+				use[n++]=u;
+		double a0=0.1, a1=1;
+		boolean ok = n>=3;
+		for(int iter=0; ok && iter<10; iter++){
+			double[] coef = {a0, a1};
+			//Inner IRLS with the current unit set
+			for(int inner=0; inner<25; inner++){
+				double sw=0, swx=0, swxx=0, swy=0, swxy=0;
+				for(int i=0; i<n; i++){
+					int u = use[i];
+					double x = 1/baseMean[u], y = geneDisp[u];
+					double fit = coef[0]+coef[1]*x;
+					double w = 1/(fit*fit);
+					sw+=w; swx+=w*x; swxx+=w*x*x; swy+=w*y; swxy+=w*x*y;
+				}
+				double det = sw*swxx-swx*swx;
+				if(det<=0){ ok=false; break; }
+				double b0 = (swxx*swy-swx*swxy)/det, b1 = (sw*swxy-swx*swy)/det;
+				if(b0<=0 || b1<=0){ ok=false; break; }
+				boolean conv = Math.abs(Math.log(b0/coef[0]))+Math.abs(Math.log(b1/coef[1])) < 1e-6;
+				coef[0]=b0; coef[1]=b1;
+				if(conv) break;
+			}
+			if(!ok) break;
+			boolean changed = Math.abs(Math.log(coef[0]/a0))+Math.abs(Math.log(coef[1]/a1)) > 1e-6;
+			a0=coef[0]; a1=coef[1];
+			//Drop outliers relative to the current fit
+			int m=0;
+			for(int i=0; i<n; i++){
+				int u = use[i];
+				double ratio = geneDisp[u]/(a0+a1/baseMean[u]);
+				if(ratio>1e-4 && ratio<15)
+					use[m++]=u;
+			}
+			if(m<3){ ok=false; break; }
+			if(!changed && m==n) break;
+			n=m;
+		}
+		if(ok){
+			trendA0=a0;
+			trendA1=a1;
+		}else{
+			//Constant trend at the median gene-wise dispersion
+			double[] d = new double[numUnits];
+			int m=0;
+			for(int u=0; u<numUnits; u++)
+				if(baseMean[u]>0 && !Double.isNaN(geneDisp[u]))
+					d[m++]=geneDisp[u];
+			System.err.println("NBGLMDifferentialEnrichment: parametric dispersion trend did not converge; using a constant trend");
+			trendA0 = m>0 ? Math.max(median(d, m), MIN_DISP) : 0.1;
+			trendA1 = 0;
+		}
+	}
+
+	/** Benjamini-Hochberg adjusted p-values */
+	public static double[] benjaminiHochberg(double[] p){
+		int n = p.length;
+		Integer[] order = new Integer[n];
+		for(int i=0; i<n; i++) order[i]=i;
+		final double[] fp = p;
+		Arrays.sort(order, new java.util.Comparator<Integer>(){
+			public int compare(Integer a, Integer b){return Double.compare(fp[b], fp[a]);}
+		});
+		double[] q = new double[n];
+		double min=1;
+		for(int r=0; r<n; r++){
+			int i = order[r];
+			min = Math.min(min, p[i]*n/(n-r));
+			q[i]=min;
+		}
+		return q;
+	}
+
+	/* Median absolute deviation, scaled to the normal SD */
+	private static double mad(double[] x){
+		double med = median(x, x.length);
+		double[] d = new double[x.length];
+		for(int i=0; i<x.length; i++)
+			d[i] = Math.abs(x[i]-med);
+		return 1.4826*median(d, d.length);
+	}
+
+	private static double median(double[] x, int n){
+		double[] y = Arrays.copyOf(x, n);
+		Arrays.sort(y);
+		return n%2==1 ? y[n/2] : (y[n/2-1]+y[n/2])/2;
+	}
+
+	/** Trigamma function (recurrence, then the asymptotic series) */
+	protected static double trigamma(double x){
+		double r=0;
+		while(x<6){
+			r += 1/(x*x);
+			x += 1;
+		}
+		double x2 = 1/(x*x);
+		return r + 1/x + x2/2 + (1/x)*x2*(1.0/6 - x2*(1.0/30 - x2*(1.0/42 - x2/30)));
+	}
+
+	/* Solves the symmetric positive definite system A x = b (A is p x p, row-major) by Cholesky */
+	private static void solve(double[] A, double[] b, int p, double[] x){
+		double[] L = cholesky(A, p);
+		for(int i=0; i<p; i++){
+			double s=b[i];
+			for(int j=0; j<i; j++) s -= L[i*p+j]*x[j];
+			x[i] = s/L[i*p+i];
+		}
+		for(int i=p-1; i>=0; i--){
+			double s=x[i];
+			for(int j=i+1; j<p; j++) s -= L[j*p+i]*x[j];
+			x[i] = s/L[i*p+i];
+		}
+	}
+
+	private static double[] cholesky(double[] A, int p){
+		double[] L = new double[p*p];
+		for(int i=0; i<p; i++)
+			for(int j=0; j<=i; j++){
+				double s = A[i*p+j];
+				for(int k=0; k<j; k++) s -= L[i*p+k]*L[j*p+k];
+				if(i==j) L[i*p+i] = Math.sqrt(Math.max(s, 1e-300));
+				else L[i*p+j] = s/L[j*p+j];
+			}
+		return L;
+	}
+
+	private static double logDet(double[] A, int p){
+		double[] L = cholesky(A, p);
+		double d=0;
+		for(int i=0; i<p; i++)
+			d += 2*Math.log(L[i*p+i]);
+		return d;
+	}
+
+	private static double[] invert(double[] A, int p){
+		double[] inv = new double[p*p], e = new double[p], col = new double[p];
+		for(int j=0; j<p; j++){
+			Arrays.fill(e, 0);
+			e[j]=1;
+			solve(A, e, p, col);
+			for(int i=0; i<p; i++)
+				inv[i*p+j]=col[i];
+		}
+		return inv;
+	}
+
+	/* Scratch arrays owned by one worker */
+	protected class Workspace {
+		double[] xtwx = new double[numCoefs*numCoefs], xtwz = new double[numCoefs];
+		double[] beta = new double[numCoefs], mu = new double[numSamples];
+	}
+
+	protected interface BlockTask {
+		void run(int from, int to, Workspace ws);
+	}
+
+	/* Runs a task over fixed blocks of units; each block gets its own workspace */
+	protected void runBlocks(final BlockTask task){
+		if(numThreads==1 || numUnits<=BLOCKSIZE){
+			task.run(0, numUnits, new Workspace());
+			return;
+		}
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try{
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int from=0; from<numUnits; from+=BLOCKSIZE){
+				final int f=from, t=Math.min(numUnits, from+BLOCKSIZE);
+				futures.add(exec.submit(new Runnable(){
+					public void run(){ task.run(f, t, new Workspace()); }
+				}));
+			}
+			for(Future<?> f : futures)
+				f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}catch(ExecutionException e){
+			throw new RuntimeException(e.getCause());
+		}finally{
+			exec.shutdown();
+		}
+	}
+}
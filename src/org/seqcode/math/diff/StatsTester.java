@@ -24,6 +24,8 @@ public class StatsTester {
 	private int focalCondition=0;
 	protected String outName="test", outBase="test";
 	protected File outDir=null;
+	protected NBGLMDifferentialEnrichment.Test glmTest = NBGLMDifferentialEnrichment.Test.WALD;
+	protected int numThreads=1;
 	
 	
 	/**
@@ -35,6 +37,8 @@ public class StatsTester {
 		String norm = "TMM";
 		String diff = "EDGER";
 		int focal=0;
+		String test = "WALD";
+		int threads=1;
 		ArgParser ap = new ArgParser(args);
 		if(args.length==0 || ap.hasKey("h") || !ap.hasKey("data")){
 			System.err.println("StatsTester:\n" +
@@ -42,9 +46,11 @@ public class StatsTester {
 					"\t--rpath <path to the R bin dir (default: R is in $PATH). Note that you need to install edgeR separately>\n" +
 					"\t--edgerod <EdgeR overdispersion (default=0.15)>\n" +
 					"\t--data <counts data file>\n" +
-					"\t--norm <TMM/MR>\n" +
+					"\t--norm <TMM/MR/GM (default=TMM; GM: GLM-internal geometric-mean ratios, GLM only)>\n" +
 					"\t--focal <focal condition>\n" +
-					"\t--diff <DE/EDGER>\n" +
+					"\t--diff <DE/EDGER/GLM>\n" +
+					"\t--test <WALD/LRT (GLM test; default=WALD)>\n" +
+					"\t--threads <number of threads (GLM; default=1)>\n" +
 					"\t--out <out name>\n");
 		}else{
 			GenomeConfig gcon = new GenomeConfig(args);
@@ -61,8 +67,15 @@ public class StatsTester {
 			if(ap.hasKey("norm"))
 				norm = ap.getKeyValue("norm");
 			if(ap.hasKey("focal"))
-				focal = new Integer(ap.getKeyValue("focal"));
-			StatsTester tester = new StatsTester(config, dataFile, norm, diff, focal, outDir, outBase);
+				focal = Integer.parseInt(ap.getKeyValue("focal"));
+			if(ap.hasKey("diff"))
+				diff = ap.getKeyValue("diff");
+			if(ap.hasKey("test"))
+				test = ap.getKeyValue("test");
+			if(ap.hasKey("threads"))
+				threads = Integer.parseInt(ap.getKeyValue("threads"));
+			StatsTester tester = new StatsTester(config, dataFile, norm, diff, focal, outDir, outBase,
+					NBGLMDifferentialEnrichment.Test.valueOf(test.toUpperCase()), threads);
 		}
 	}
 	
@@ -73,7 +86,17 @@ public class StatsTester {
 	 * @param focalCond
 	 */
 	public StatsTester(EventsConfig econ, String dataFile, String normMethod, String diffMethod, int focalCond, File outDir, String outBase){
+		this(econ, dataFile, normMethod, diffMethod, focalCond, outDir, outBase, NBGLMDifferentialEnrichment.Test.WALD, 1);
+	}
+	
+	/**
+	 * Constructor: initialize a statistics tester, with the test and thread count used by the GLM method.
+	 */
+	public StatsTester(EventsConfig econ, String dataFile, String normMethod, String diffMethod, int focalCond, File outDir, String outBase,
+			NBGLMDifferentialEnrichment.Test glmTest, int numThreads){
 		config = econ;
+		this.glmTest = glmTest;
+		this.numThreads = numThreads;
 		focalCondition = focalCond;
 		data = CountsDatasetLoader.loadCountsDataFile(dataFile);
 		data.setFocalCondition(focalCondition);
@@ -86,16 +109,30 @@ public class StatsTester {
 			
 			EdgeR.execute(data);
 		}else if(diffMethod.equals("DE")){
-			
+			//DESeq needs a separate Normalization; there is no GM option here
 			if(normMethod.equals("MR"))
 				normalizer = new MedianRatiosNormalization(data.getNumSamples());
-			else
+			else if(normMethod.equals("TMM"))
 				normalizer = new TMMNormalization(data.getNumSamples(), 0.3, 0.05);
+			else
+				throw new IllegalArgumentException("Normalization "+normMethod+" is not available with --diff DE (use TMM or MR)");
 			//normalizer.normalize(data);
 			//normalizer.printPairwiseMAData(data);
 			//normalizer.savePairwiseMAPlots(data, true);
 			DifferentialEnrichment DESeq = new DESeqDifferentialEnrichment(normalizer);
 			DESeq.execute(data);
+		}else if(diffMethod.equals("GLM")){
+			//GM leaves the normalizer null, so the GLM uses its own median ratios to the geometric mean
+			if(normMethod.equals("MR"))
+				normalizer = new MedianRatiosNormalization(data.getNumSamples());
+			else if(normMethod.equals("TMM"))
+				normalizer = new TMMNormalization(data.getNumSamples(), 0.3, 0.05);
+			else if(!normMethod.equals("GM"))
+				throw new IllegalArgumentException("Unknown normalization: "+normMethod+" (use TMM, MR or GM)");
+			NBGLMDifferentialEnrichment glm = new NBGLMDifferentialEnrichment(normalizer);
+			glm.setTest(glmTest);
+			glm.setNumThreads(numThreads);
+			glm.execute(data);
 		}
 		
 	}
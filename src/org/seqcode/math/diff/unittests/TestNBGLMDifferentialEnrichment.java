@@ -0,0 +1,162 @@
+package org.seqcode.math.diff.unittests;
+
+import java.util.HashMap;
+
+import org.junit.*;
+import org.seqcode.gseutils.Pair;
+import org.seqcode.math.diff.CountsDataset;
+import org.seqcode.math.diff.DESeqDifferentialEnrichment;
+import org.seqcode.math.diff.MedianRatiosNormalization;
+import org.seqcode.math.diff.NBGLMDifferentialEnrichment;
+import org.seqcode.math.diff.Normalization;
+
+import Jama.Matrix;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks NBGLMDifferentialEnrichment against DESeqDifferentialEnrichment on a shared count matrix.
+ */
+public class TestNBGLMDifferentialEnrichment {
+
+	/**
+	 * 40 units x 6 samples (conditions A and B, three replicates each), drawn from negative binomials
+	 * with dispersion 0.04 and size factors 1.0, 0.8, 1.2, 0.9, 1.1, 1.3. Every tenth unit (0, 10, 20, 30)
+	 * is four-fold up in B and units 5, 15, 25, 35 are four-fold down; the rest are unchanged.
+	 */
+	private static final double[][] COUNTS = {
+		{98, 72, 166, 586, 661, 449},
+		{111, 107, 107, 130, 135, 136},
+		{89, 56, 97, 33, 91, 72},
+		{2088, 2003, 2829, 1688, 1979, 2669},
+		{471, 299, 647, 353, 379, 465},
+		{529, 265, 572, 102, 162, 125},
+		{859, 631, 954, 644, 943, 1200},
+		{227, 260, 235, 240, 205, 418},
+		{105, 96, 134, 107, 167, 111},
+		{596, 367, 478, 766, 917, 673},
+		{51, 58, 73, 247, 278, 373},
+		{2609, 2766, 2461, 2994, 3148, 3740},
+		{968, 843, 1177, 965, 1602, 1575},
+		{2046, 994, 1829, 2390, 1638, 2050},
+		{198, 111, 174, 126, 211, 174},
+		{1664, 2097, 2556, 379, 472, 748},
+		{314, 260, 392, 296, 346, 238},
+		{714, 698, 905, 539, 808, 1033},
+		{962, 714, 1245, 1027, 624, 1151},
+		{677, 397, 567, 528, 428, 643},
+		{99, 148, 197, 362, 511, 774},
+		{50, 64, 92, 59, 54, 39},
+		{301, 154, 203, 125, 173, 294},
+		{2200, 1932, 3216, 2444, 2757, 3332},
+		{87, 60, 61, 52, 89, 115},
+		{342, 309, 472, 95, 125, 124},
+		{602, 442, 410, 325, 301, 573},
+		{689, 324, 612, 429, 502, 541},
+		{43, 47, 82, 53, 71, 68},
+		{546, 353, 446, 506, 471, 511},
+		{724, 555, 627, 3569, 3107, 3579},
+		{42, 30, 50, 28, 49, 46},
+		{52, 43, 63, 24, 69, 58},
+		{51, 49, 38, 30, 41, 72},
+		{339, 227, 273, 220, 276, 370},
+		{401, 288, 437, 85, 96, 161},
+		{88, 96, 119, 81, 76, 150},
+		{1380, 1263, 1507, 1161, 1215, 910},
+		{187, 177, 185, 239, 233, 285},
+		{214, 208, 318, 209, 280, 198},
+	};
+	private static final int[] DESIGN = {0, 0, 0, 1, 1, 1};
+	private static final double ALPHA = 0.001, STRONG = 1e-6;
+
+	private CountsDataset deseq, nbglm;
+
+	private static CountsDataset load(){
+		String[] units = new String[COUNTS.length];
+		for(int u=0; u<units.length; u++)
+			units[u] = "unit"+u;
+		HashMap<Integer, Pair<String,String>> sampleNames = new HashMap<Integer, Pair<String,String>>();
+		for(int s=0; s<DESIGN.length; s++)
+			sampleNames.put(s, new Pair<String,String>(DESIGN[s]==0 ? "A" : "B", "rep"+(s%3+1)));
+		HashMap<Integer,String> condNames = new HashMap<Integer,String>();
+		condNames.put(0, "A");
+		condNames.put(1, "B");
+		return new CountsDataset(new Matrix(COUNTS).copy(), units, DESIGN.clone(), sampleNames, condNames, 0);
+	}
+
+	/* Median ratios normalization that doesn't write MA plots */
+	private static Normalization quietNormalization(){
+		return new MedianRatiosNormalization(DESIGN.length){
+			public void savePairwiseMAPlots(CountsDataset data, boolean rasterImage){}
+		};
+	}
+
+	@Before public void runBoth() {
+		//DESeq writes mean-variance plots and tables to the working directory; skip those here
+		DESeqDifferentialEnrichment de = new DESeqDifferentialEnrichment(quietNormalization()){
+			public void saveMeanVarPlot(Matrix xy, double[] yfit, String conditionName, boolean rasterImage){}
+			public void printMeanVarData(Matrix xy, String conditionName){}
+		};
+		deseq = de.execute(load());
+		NBGLMDifferentialEnrichment nb = new NBGLMDifferentialEnrichment(quietNormalization());
+		nbglm = nb.execute(load());
+	}
+
+	@Test public void testScalingFactors() {
+		double[] a = deseq.getScalingFactors(), b = nbglm.getScalingFactors();
+		for(int s=0; s<a.length; s++)
+			assertEquals(a[s], b[s], 1e-12);
+	}
+
+	@Test public void testMeans() {
+		/* both report the mean normalized count over the two conditions */
+		for(int u=0; u<COUNTS.length; u++)
+			assertEquals("unit"+u, deseq.getCondMean(u, 1), nbglm.getCondMean(u, 1), 1e-6*deseq.getCondMean(u, 1));
+	}
+
+	@Test public void testFolds() {
+		/* DESeq stores the focal/other ratio of normalized means, the GLM the log2 fold of other over focal */
+		for(int u=0; u<COUNTS.length; u++){
+			double deseqLog2 = -Math.log(deseq.getCondFold(u, 1))/Math.log(2);
+			assertEquals("unit"+u, deseqLog2, nbglm.getCondFold(u, 1), 0.05);
+		}
+	}
+
+	@Test public void testCalls() {
+		/* every planted unit is called by both methods; the GLM calls nothing else. DESeq's lowess fit of the
+		   sample variances is anti-conservative on three replicates, so its null units are only checked by rank below */
+		for(int u=0; u<COUNTS.length; u++){
+			if(isPlanted(u)){
+				assertTrue("unit"+u+" DESeq p="+deseq.getDEpval(u, 1), deseq.getDEpval(u, 1) < STRONG);
+				assertTrue("unit"+u+" NB GLM p="+nbglm.getDEpval(u, 1), nbglm.getDEpval(u, 1) < STRONG);
+			}else{
+				assertTrue("unit"+u+" NB GLM p="+nbglm.getDEpval(u, 1), nbglm.getDEpval(u, 1) >= ALPHA);
+			}
+		}
+	}
+
+	@Test public void testRanks() {
+		/* the tests differ (exact conditional test vs Wald on a shrunken dispersion), but both should rank the
+		   planted units ahead of every unchanged one */
+		double deseqWorstPlanted=0, nbglmWorstPlanted=0;
+		double deseqBestNull=1, nbglmBestNull=1;
+		for(int u=0; u<COUNTS.length; u++){
+			if(isPlanted(u)){
+				deseqWorstPlanted = Math.max(deseqWorstPlanted, deseq.getDEpval(u, 1));
+				nbglmWorstPlanted = Math.max(nbglmWorstPlanted, nbglm.getDEpval(u, 1));
+			}else{
+				deseqBestNull = Math.min(deseqBestNull, deseq.getDEpval(u, 1));
+				nbglmBestNull = Math.min(nbglmBestNull, nbglm.getDEpval(u, 1));
+			}
+		}
+		assertTrue(deseqWorstPlanted < deseqBestNull);
+		assertTrue(nbglmWorstPlanted < nbglmBestNull);
+	}
+
+	private static boolean isPlanted(int u){return u%5==0;}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.math.diff.unittests.TestNBGLMDifferentialEnrichment");
+	}
+
+}
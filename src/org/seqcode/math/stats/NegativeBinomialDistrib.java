@@ -4,6 +4,7 @@ import umontreal.ssj.probdist.NegativeBinomialDist;
 import cern.jet.random.Gamma;
 import cern.jet.random.Poisson;
 import cern.jet.random.engine.DRand;
+import cern.jet.random.engine.RandomEngine;
 
 /**
  * NegativeBinomial: distribution of the number of failures (X) before the rth success in independent trials, with success 
@@ -32,10 +33,24 @@ public class NegativeBinomialDistrib {
 	 * @param p : Probability of success in each trial
 	 */
 	public NegativeBinomialDistrib(double r, double p){
+		this(r, p, new DRand(), new DRand());
+	}
+	
+	/**
+	 * NegativeBinomial (r p parameterization), sampling from the given random engine
+	 * @param r : Number of successes 
+	 * @param p : Probability of success in each trial
+	 * @param engine : source of random numbers for nextInt()
+	 */
+	public NegativeBinomialDistrib(double r, double p, RandomEngine engine){
+		this(r, p, engine, engine);
+	}
+	
+	private NegativeBinomialDistrib(double r, double p, RandomEngine gammaEngine, RandomEngine poissonEngine){
 		this.r = r;
 		this.p = p;
-		gamma = new Gamma(1, 1.0, new DRand());
-		poisson = new Poisson(10, new DRand());
+		gamma = new Gamma(1, 1.0, gammaEngine);
+		poisson = new Poisson(10, poissonEngine);
 		nb = new NegativeBinomialDist(r, p);
 	}
 	
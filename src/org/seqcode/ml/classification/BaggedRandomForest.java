@@ -83,6 +83,9 @@ import weka.core.SerializationHelper;
  *  Number of execution slots.
  *  (default 1 - i.e. no parallelism)</pre>
  * 
+ * <pre> -columnar
+ *  Train on presorted attribute columns, building trees concurrently.</pre>
+ * 
  * <pre> -output-debug-info
  *  If set, classifier is run in debug mode and
  *  may output additional info to the console</pre>
@@ -103,6 +106,15 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
 	
 	public double[] getAttributeWeights()
 	{
+		if (m_columnarForest != null)
+		{
+			// expand to all attributes; the class attribute gets no weight
+			double[] w = m_columnarForest.getAttributeWeights();
+			double[] sum = new double[m_attributeNames.length];
+			for (int j = 0; j < w.length; j++)
+				sum[m_columnIndex[j]] = w[j];
+			return sum;
+		}
 		if (m_bagger == null)
 			throw new Error("Random forest not built yet");
 
@@ -131,6 +143,8 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
 	
 	public String[] getAttributes()
 	{
+		if (m_columnarForest != null)
+			return m_attributeNames.clone();
 		return ((AttributeRandomTree) m_bagger.getClassifier(0)).getAttributes();
 	}
 
@@ -173,6 +187,18 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
   /** Don't calculate the out of bag error */
   protected boolean m_dontCalculateOutOfBagError;
 
+  /** Train on a presorted columnar copy of the data, building trees concurrently */
+  protected boolean m_columnar = false;
+
+  /** The forest built in columnar mode */
+  protected ColumnarRandomForest m_columnarForest = null;
+
+  /** Attribute index of each column of the columnar forest */
+  protected int[] m_columnIndex = null;
+
+  /** Names of all attributes of the training data (columnar mode) */
+  protected String[] m_attributeNames = null;
+
   /**
    * Returns a string describing classifier
    * 
@@ -391,13 +417,45 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
    */
   public double measureOutOfBagError() {
 
-    if (m_bagger != null && !m_dontCalculateOutOfBagError) {
+    if (m_columnarForest != null && !m_dontCalculateOutOfBagError) {
+      return m_columnarForest.getOutOfBagError();
+    } else if (m_bagger != null && !m_dontCalculateOutOfBagError) {
       return m_bagger.measureOutOfBagError();
     } else {
       return Double.NaN;
     }
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String columnarTipText() {
+    return "If true, the data is copied once into presorted attribute columns "
+      + "and trees are built concurrently on them (nominal attributes are "
+      + "split on their value indices).";
+  }
+
+  /**
+   * Set whether to train on a presorted columnar copy of the data
+   * 
+   * @param b true to use columnar training
+   */
+  public void setColumnar(boolean b) {
+    m_columnar = b;
+  }
+
+  /**
+   * Get whether to train on a presorted columnar copy of the data
+   * 
+   * @return true if columnar training is used
+   */
+  public boolean getColumnar() {
+    return m_columnar;
+  }
+
   /**
    * Set the number of execution slots (threads) to use for building the members
    * of the ensemble.
@@ -494,6 +552,10 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
       + "\t(default 1 - i.e. no parallelism)", "num-slots", 1,
       "-num-slots <num>"));
 
+    newVector.addElement(new Option(
+      "\tTrain on presorted attribute columns, building trees concurrently.",
+      "columnar", 0, "-columnar"));
+
     newVector.addAll(Collections.list(super.listOptions()));
 
     return newVector.elements();
@@ -533,6 +595,10 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
     result.add("-num-slots");
     result.add("" + getNumExecutionSlots());
 
+    if (getColumnar()) {
+      result.add("-columnar");
+    }
+
     Collections.addAll(result, super.getOptions());
 
     return result.toArray(new String[result.size()]);
@@ -571,6 +637,9 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
    *  Number of execution slots.
    *  (default 1 - i.e. no parallelism)</pre>
    * 
+   * <pre> -columnar
+   *  Train on presorted attribute columns, building trees concurrently.</pre>
+   * 
    * <pre> -output-debug-info
    *  If set, classifier is run in debug mode and
    *  may output additional info to the console</pre>
@@ -636,6 +705,8 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
       setNumExecutionSlots(1);
     }
 
+    setColumnar(Utils.getFlag("columnar", options));
+
     super.setOptions(options);
 
     Utils.checkForRemainingOptions(options);
@@ -667,6 +738,13 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
     data = new Instances(data);
     data.deleteWithMissingClass();
 
+    m_bagger = null;
+    m_columnarForest = null;
+    if (m_columnar) {
+      buildColumnar(data);
+      return;
+    }
+
     m_bagger = new AttributeBagging();
 
     // RandomTree implements WeightedInstancesHandler, so we can
@@ -694,6 +772,52 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
     m_bagger.buildClassifier(data);
   }
 
+  /**
+   * Builds the forest on a presorted columnar copy of the data.
+   * 
+   * @param data the instances to train the classifier with (no missing classes)
+   * @throws Exception if the class is not nominal
+   */
+  protected void buildColumnar(Instances data) throws Exception {
+
+    if (!data.classAttribute().isNominal()) {
+      throw new Exception("Columnar training requires a nominal class");
+    }
+    int numInstances = data.numInstances();
+    m_attributeNames = new String[data.numAttributes()];
+    m_columnIndex = new int[data.numAttributes() - 1];
+    for (int a = 0, c = 0; a < data.numAttributes(); a++) {
+      m_attributeNames[a] = data.attribute(a).name();
+      if (a != data.classIndex()) {
+        m_columnIndex[c++] = a;
+      }
+    }
+    double[][] columns = new double[m_columnIndex.length][numInstances];
+    int[] labels = new int[numInstances];
+    double[] weights = new double[numInstances];
+    for (int i = 0; i < numInstances; i++) {
+      Instance inst = data.instance(i);
+      for (int c = 0; c < m_columnIndex.length; c++) {
+        columns[c][i] = inst.value(m_columnIndex[c]); // NaN if missing
+      }
+      labels[i] = (int) inst.classValue();
+      weights[i] = inst.weight();
+    }
+
+    m_columnarForest = new ColumnarRandomForest(columns, labels,
+      data.numClasses());
+    m_columnarForest.setInstanceWeights(weights);
+    m_columnarForest.setNumTrees(m_numTrees);
+    m_columnarForest.setNumFeatures(m_numFeatures);
+    m_columnarForest.setMaxDepth(getMaxDepth());
+    m_columnarForest.setBagSizePercent(m_BagSizePercent);
+    m_columnarForest.setSeed(m_randomSeed);
+    m_columnarForest.setNumThreads(m_numExecutionSlots);
+    m_columnarForest.setCalcOutOfBag(!m_dontCalculateOutOfBagError);
+    m_columnarForest.train();
+    m_KValue = m_columnarForest.getKValue();
+  }
+
   /**
    * Returns the class probability distribution for an instance.
    * 
@@ -704,6 +828,13 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
   @Override
   public double[] distributionForInstance(Instance instance) throws Exception {
 
+    if (m_columnarForest != null) {
+      double[] x = new double[m_columnIndex.length];
+      for (int c = 0; c < x.length; c++) {
+        x[c] = instance.value(m_columnIndex[c]);
+      }
+      return m_columnarForest.distributionForInstance(x);
+    }
     return m_bagger.distributionForInstance(instance);
   }
 
@@ -715,6 +846,16 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
   @Override
   public String toString() {
 
+    if (m_columnarForest != null) {
+      return "Random forest of " + m_numTrees
+        + " trees (columnar), each constructed while considering " + m_KValue
+        + " random feature" + (m_KValue == 1 ? "" : "s") + ".\n"
+        + (!getDontCalculateOutOfBagError() ? "Out of bag error: "
+          + Utils.doubleToString(m_columnarForest.getOutOfBagError(), 4) : "")
+        + "\n"
+        + (getMaxDepth() > 0 ? ("Max. depth of trees: " + getMaxDepth() + "\n")
+          : ("")) + "\n";
+    }
     if (m_bagger == null) {
       return "Random forest not built yet";
     } else {
@@ -753,6 +894,9 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
   @Override
   public double[] getMembershipValues(Instance inst) throws Exception {
 
+    if (m_columnarForest != null) {
+      throw new Exception("Partitions are not available in columnar mode");
+    }
     return m_bagger.getMembershipValues(inst);
   }
 
@@ -762,6 +906,9 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
   @Override
   public int numElements() throws Exception {
 
+    if (m_columnarForest != null) {
+      throw new Exception("Partitions are not available in columnar mode");
+    }
     return m_bagger.numElements();
   }
 
@@ -786,12 +933,17 @@ public class BaggedRandomForest extends AbstractClassifier implements OptionHand
 
   @Override
   public BaggedRandomForest aggregate(BaggedRandomForest toAggregate) throws Exception {
+    if (m_columnarForest != null || toAggregate.m_columnarForest != null) {
+      throw new Exception("Columnar forests cannot be aggregated");
+    }
     m_bagger.aggregate(toAggregate.m_bagger);
     return this;
   }
 
   @Override
   public void finalizeAggregation() throws Exception {
-    m_bagger.finalizeAggregation();
+    if (m_bagger != null) {
+      m_bagger.finalizeAggregation();
+    }
   }
 }
@@ -0,0 +1,589 @@
+package org.seqcode.ml.classification;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Random forest over a column-oriented feature matrix, trained concurrently on a fork-join pool.
+ *
+ * Every attribute column is sorted once, and that order is shared by all trees. At each node, a sorted view of
+ * the node's samples comes from one of two sources: for large nodes, a walk of the shared order; for small
+ * nodes, a sort of the node's own values. Neither re-sorts Instance objects. Bootstrap samples are drawn by
+ * index, as integer weights over the shared matrix.
+ *
+ * Tree construction follows AttributeRandomTree: binary splits on numeric thresholds, chosen by information gain
+ * among K randomly ordered attributes (more are tried if none of the first K gives a positive gain). Missing
+ * values (NaN) are ignored when choosing a split and are then sent down the heavier branch.
+ *
+ * Each fork-join task returns its trees' attribute weights and out-of-bag votes, and these are summed when the
+ * tasks join, so training uses no locks. Per-tree seeds are drawn up front from the forest seed, so the forest
+ * does not depend on the number of threads.
+ */
+public class ColumnarRandomForest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** smallest information gain accepted for a split (as weka.core.Utils.SMALL) */
+	private static final double SMALL=1e-6;
+
+	/** columns[attribute][instance]; NaN marks a missing value. Training data is not serialized. */
+	private transient double[][] columns;
+	private transient int[] labels;
+	private transient double[] instanceWeights;
+	private int numClasses, numInstances, numAttributes;
+	/** instance indices per attribute, sorted by value with missing values last */
+	private transient int[][] order;
+	private transient int[] numPresent;
+
+	private int numTrees=100;
+	private int numFeatures=0;
+	private int maxDepth=0;
+	private double minNum=1.0;
+	private int bagSizePercent=100;
+	private long seed=1;
+	private int numThreads=1;
+	private boolean calcOutOfBag=true;
+
+	private Tree[] trees=null;
+	private double[] attributeWeights=null;
+	private double outOfBagError=Double.NaN;
+
+	/**
+	 * @param columns		feature matrix by attribute: columns[a][i] is attribute a of instance i (NaN if missing)
+	 * @param labels		class index of each instance
+	 * @param numClasses	number of class values
+	 */
+	public ColumnarRandomForest(double[][] columns, int[] labels, int numClasses){
+		this.columns = columns;
+		this.labels = labels;
+		this.numClasses = numClasses;
+		numAttributes = columns.length;
+		numInstances = labels.length;
+		for(double[] c : columns)
+			if(c.length!=numInstances)
+				throw new IllegalArgumentException("Column length "+c.length+" does not match "+numInstances+" labels");
+		for(int l : labels)
+			if(l<0 || l>=numClasses)
+				throw new IllegalArgumentException("Class index "+l+" out of range");
+	}
+
+	/** Instance weights (default 1) */
+	public void setInstanceWeights(double[] w){
+		if(w!=null && w.length!=numInstances)
+			throw new IllegalArgumentException("Expected "+numInstances+" instance weights");
+		instanceWeights = w;
+	}
+	public void setNumTrees(int n){numTrees=n;}
+	/** Attributes considered per node; less than 1 uses int(log2(numAttributes)+1) */
+	public void setNumFeatures(int k){numFeatures=k;}
+	/** Maximum tree depth; 0 for unlimited */
+	public void setMaxDepth(int d){maxDepth=d;}
+	/** Minimum total weight in each branch of a split */
+	public void setMinNum(double m){minNum=m;}
+	public void setBagSizePercent(int p){bagSizePercent=p;}
+	public void setSeed(long s){seed=s;}
+	public void setNumThreads(int t){numThreads=Math.max(1, t);}
+	public void setCalcOutOfBag(boolean b){calcOutOfBag=b;}
+
+	public int getNumTrees(){return numTrees;}
+	public int getNumAttributes(){return numAttributes;}
+	/** Out-of-bag error of the last training run (NaN if not calculated) */
+	public double getOutOfBagError(){return outOfBagError;}
+	/** Number of attributes considered per node in the last training run */
+	public int getKValue(){
+		return numFeatures<1 ? (int)(Math.log(numAttributes)/Math.log(2))+1 : Math.min(numFeatures, numAttributes);
+	}
+
+	/**
+	 * Per-attribute sum over all trees of the training weight below each node split on the attribute, scaled so
+	 * that the largest is 1 (as BaggedRandomForest.getAttributeWeights)
+	 */
+	public double[] getAttributeWeights(){
+		if(attributeWeights==null)
+			throw new IllegalStateException("Random forest not built yet");
+		double max=0;
+		for(double w : attributeWeights)
+			max = Math.max(max, w);
+		double[] out = new double[numAttributes];
+		for(int a=0; a<numAttributes; a++)
+			out[a] = max>0 ? attributeWeights[a]/max : 0;
+		return out;
+	}
+
+	/**
+	 * Trains the forest. The presorted column order is kept, so the forest can be retrained with other settings
+	 * without sorting again.
+	 */
+	public void train(){
+		if(columns==null)
+			throw new IllegalStateException("Training data is not available (deserialized forest)");
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try{
+			if(order==null){
+				order = new int[numAttributes][];
+				numPresent = new int[numAttributes];
+				pool.invoke(new Presort(0, numAttributes));
+			}
+			long[] seeds = new long[numTrees];
+			Random rand = new Random(seed);
+			for(int t=0; t<numTrees; t++)
+				seeds[t] = rand.nextLong();
+			trees = new Tree[numTrees];
+			Partial p = numTrees>0 ? pool.invoke(new Grow(0, numTrees, seeds, getKValue())) : new Partial(numAttributes, 0);
+			attributeWeights = p.weights;
+			outOfBagError = calcOutOfBag ? outOfBagError(p.votes) : Double.NaN;
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Class distribution for one instance, as the mean of the trees' leaf distributions
+	 * @param x attribute values, in column order (NaN if missing)
+	 */
+	public double[] distributionForInstance(double[] x){
+		if(trees==null)
+			throw new IllegalStateException("Random forest not built yet");
+		double[] dist = new double[numClasses];
+		for(Tree t : trees){
+			int leaf = t.leaf(x);
+			for(int c=0; c<numClasses; c++)
+				dist[c] += t.dist[leaf*numClasses+c];
+		}
+		for(int c=0; c<numClasses; c++)
+			dist[c] /= trees.length;
+		return dist;
+	}
+
+	private double outOfBagError(double[] votes){
+		double err=0, total=0;
+		for(int i=0; i<numInstances; i++){
+			int best=-1;
+			double bestVote=0;
+			for(int c=0; c<numClasses; c++)
+				if(votes[i*numClasses+c]>bestVote){
+					bestVote = votes[i*numClasses+c];
+					best = c;
+				}
+			if(best<0)
+				continue;
+			double w = instanceWeights==null ? 1 : instanceWeights[i];
+			total += w;
+			if(best!=labels[i])
+				err += w;
+		}
+		return total>0 ? err/total : Double.NaN;
+	}
+
+	/* Sorts a block of columns */
+	private class Presort extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		int lo, hi;
+		Presort(int lo, int hi){this.lo=lo; this.hi=hi;}
+		protected void compute(){
+			if(hi-lo>16){
+				int mid = (lo+hi)>>>1;
+				invokeAll(new Presort(lo, mid), new Presort(mid, hi));
+				return;
+			}
+			double[] keys = new double[numInstances];
+			for(int a=lo; a<hi; a++){
+				int[] idx = new int[numInstances];
+				int p=0, q=numInstances;
+				for(int i=0; i<numInstances; i++){
+					double v = columns[a][i];
+					if(Double.isNaN(v)){
+						idx[--q]=i;
+					}else{
+						keys[p]=v;
+						idx[p++]=i;
+					}
+				}
+				//missing values were added from the end; restore their index order
+				for(int i=q, j=numInstances-1; i<j; i++, j--){
+					int tmp=idx[i]; idx[i]=idx[j]; idx[j]=tmp;
+				}
+				sortPairs(keys, idx, 0, p);
+				order[a]=idx;
+				numPresent[a]=p;
+			}
+		}
+	}
+
+	/* Attribute weights and out-of-bag votes from a range of trees */
+	private static class Partial {
+		double[] weights, votes;
+		Partial(int numAttributes, int numVotes){
+			weights = new double[numAttributes];
+			votes = new double[numVotes];
+		}
+		void add(Partial p){
+			for(int a=0; a<weights.length; a++)
+				weights[a]+=p.weights[a];
+			for(int k=0; k<votes.length; k++)
+				votes[k]+=p.votes[k];
+		}
+	}
+
+	/* Grows a range of trees */
+	private class Grow extends RecursiveTask<Partial> {
+		private static final long serialVersionUID = 1L;
+		int lo, hi, k;
+		long[] seeds;
+		Grow(int lo, int hi, long[] seeds, int k){this.lo=lo; this.hi=hi; this.seeds=seeds; this.k=k;}
+		protected Partial compute(){
+			if(hi-lo==1){
+				Partial p = new Partial(numAttributes, calcOutOfBag ? numInstances*numClasses : 0);
+				trees[lo] = new TreeBuilder(seeds[lo], k).build(p);
+				return p;
+			}
+			int mid = (lo+hi)>>>1;
+			Grow left = new Grow(lo, mid, seeds, k);
+			left.fork();
+			Partial right = new Grow(mid, hi, seeds, k).compute();
+			Partial p = left.join();
+			p.add(right);
+			return p;
+		}
+	}
+
+	/* A trained tree, as flat node arrays */
+	private class Tree implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int[] attr, left, right;
+		double[] split;
+		boolean[] missingLeft;
+		/** normalized class distribution of each node */
+		double[] dist;
+
+		int leaf(double[] x){
+			int n=0;
+			while(attr[n]>=0){
+				double v = x[attr[n]];
+				if(Double.isNaN(v))
+					n = missingLeft[n] ? left[n] : right[n];
+				else
+					n = v<split[n] ? left[n] : right[n];
+			}
+			return n;
+		}
+		int leaf(int instance){
+			int n=0;
+			while(attr[n]>=0){
+				double v = columns[attr[n]][instance];
+				if(Double.isNaN(v))
+					n = missingLeft[n] ? left[n] : right[n];
+				else
+					n = v<split[n] ? left[n] : right[n];
+			}
+			return n;
+		}
+	}
+
+	/* Builds one tree; all scratch space is private to the builder */
+	private class TreeBuilder {
+		Random rand;
+		int k;
+		double[] w;
+		int[] mark;
+		int stamp=0;
+		int[] perm;
+		double[] keys;
+		int[] idx;
+		double[] leftDist = new double[numClasses], presentDist = new double[numClasses];
+		//growable node arrays
+		int numNodes=0;
+		int[] attr=new int[64], left=new int[64], right=new int[64], parent=new int[64], depth=new int[64];
+		double[] split=new double[64];
+		boolean[] missingLeft=new boolean[64];
+		double[] dist=new double[64*numClasses];
+		//best split of the current node
+		int bestAttr;
+		double bestGain, bestSplit;
+
+		TreeBuilder(long treeSeed, int k){
+			rand = new Random(treeSeed);
+			this.k = k;
+			w = new double[numInstances];
+			mark = new int[numInstances];
+			perm = new int[numAttributes];
+			for(int a=0; a<numAttributes; a++)
+				perm[a]=a;
+			keys = new double[numInstances];
+			idx = new int[numInstances];
+		}
+
+		Tree build(Partial out){
+			int draws = (int)((long)numInstances*bagSizePercent/100);
+			int[] counts = new int[numInstances];
+			for(int d=0; d<draws; d++)
+				counts[rand.nextInt(numInstances)]++;
+			int numBagged=0;
+			for(int i=0; i<numInstances; i++)
+				if(counts[i]>0)
+					numBagged++;
+			int[] samples = new int[numBagged];
+			numBagged=0;
+			for(int i=0; i<numInstances; i++)
+				if(counts[i]>0){
+					w[i] = counts[i]*(instanceWeights==null ? 1 : instanceWeights[i]);
+					samples[numBagged++]=i;
+				}
+
+			ArrayDeque<int[]> pendingSamples = new ArrayDeque<int[]>();
+			ArrayDeque<Integer> pendingNodes = new ArrayDeque<Integer>();
+			newNode(-1, 0);
+			pendingSamples.push(samples);
+			pendingNodes.push(0);
+			while(!pendingNodes.isEmpty()){
+				int node = pendingNodes.pop();
+				int[] s = pendingSamples.pop();
+				int[][] children = split(node, s, out.weights);
+				if(children!=null){
+					//push right first so the left subtree is grown first
+					pendingNodes.push(right[node]); pendingSamples.push(children[1]);
+					pendingNodes.push(left[node]); pendingSamples.push(children[0]);
+				}
+			}
+
+			Tree t = new Tree();
+			t.attr = Arrays.copyOf(attr, numNodes);
+			t.left = Arrays.copyOf(left, numNodes);
+			t.right = Arrays.copyOf(right, numNodes);
+			t.split = Arrays.copyOf(split, numNodes);
+			t.missingLeft = Arrays.copyOf(missingLeft, numNodes);
+			t.dist = Arrays.copyOf(dist, numNodes*numClasses);
+			if(out.votes.length>0){
+				for(int i=0; i<numInstances; i++)
+					if(counts[i]==0){
+						int leaf = t.leaf(i);
+						for(int c=0; c<numClasses; c++)
+							out.votes[i*numClasses+c] += t.dist[leaf*numClasses+c];
+					}
+			}
+			return t;
+		}
+
+		int newNode(int par, int d){
+			if(numNodes==attr.length){
+				int cap = numNodes*2;
+				attr=Arrays.copyOf(attr, cap); left=Arrays.copyOf(left, cap); right=Arrays.copyOf(right, cap);
+				parent=Arrays.copyOf(parent, cap); depth=Arrays.copyOf(depth, cap);
+				split=Arrays.copyOf(split, cap); missingLeft=Arrays.copyOf(missingLeft, cap);
+				dist=Arrays.copyOf(dist, cap*numClasses);
+			}
+			int n = numNodes++;
+			attr[n]=-1;
+			parent[n]=par;
+			depth[n]=d;
+			return n;
+		}
+
+		/* Sets the node's distribution and either makes it a leaf (returning null) or splits it */
+		int[][] split(int node, int[] s, double[] attrWeights){
+			int off = node*numClasses;
+			double total=0;
+			for(int i : s){
+				dist[off+labels[i]] += w[i];
+				total += w[i];
+			}
+			int nonZero=0;
+			for(int c=0; c<numClasses; c++)
+				if(dist[off+c]>0)
+					nonZero++;
+			if(total<=0){
+				if(parent[node]>=0)
+					System.arraycopy(dist, parent[node]*numClasses, dist, off, numClasses);
+				return null;
+			}
+			boolean leaf = nonZero<=1 || total<2*minNum || (maxDepth>0 && depth[node]>=maxDepth);
+			if(!leaf){
+				stamp++;
+				for(int i : s)
+					mark[i]=stamp;
+				bestAttr=-1;
+				bestGain=0;
+				for(int i=0; i<numAttributes; i++){
+					if(i>=k && bestAttr>=0)
+						break;
+					int j = i+rand.nextInt(numAttributes-i);
+					int tmp=perm[i]; perm[i]=perm[j]; perm[j]=tmp;
+					evaluate(perm[i], s, total);
+				}
+				leaf = bestAttr<0;
+			}
+			double norm = 1.0/total;
+			if(leaf){
+				for(int c=0; c<numClasses; c++)
+					dist[off+c]*=norm;
+				return null;
+			}
+
+			//partition on the best split; missing values go to the heavier side
+			int a = bestAttr;
+			double sp = bestSplit;
+			double lw=0, rw=0;
+			int nl=0, nr=0, nm=0;
+			for(int i : s){
+				double v = columns[a][i];
+				if(Double.isNaN(v)) nm++;
+				else if(v<sp){ lw+=w[i]; nl++; }
+				else{ rw+=w[i]; nr++; }
+			}
+			boolean ml = lw>=rw;
+			int[] ls = new int[nl+(ml ? nm : 0)], rs = new int[nr+(ml ? 0 : nm)];
+			int pl=0, pr=0;
+			for(int i : s){
+				double v = columns[a][i];
+				if(Double.isNaN(v) ? ml : v<sp) ls[pl++]=i;
+				else rs[pr++]=i;
+			}
+			for(int c=0; c<numClasses; c++)
+				dist[off+c]*=norm;
+			attr[node]=a;
+			split[node]=sp;
+			missingLeft[node]=ml;
+			int l = newNode(node, depth[node]+1);
+			int r = newNode(node, depth[node]+1);
+			left[node]=l;
+			right[node]=r;
+			attrWeights[a] += total;
+			return new int[][]{ls, rs};
+		}
+
+		/* Best threshold on one attribute; updates bestAttr/bestGain/bestSplit if it beats the current best */
+		void evaluate(int a, int[] s, double total){
+			int m = s.length, p=0;
+			double[] col = columns[a];
+			if((double)m*(32-Integer.numberOfLeadingZeros(m)) > numPresent[a]){
+				//walk the shared order, keeping this node's samples
+				int[] ord = order[a];
+				for(int q=0; q<numPresent[a]; q++){
+					int i = ord[q];
+					if(mark[i]==stamp){
+						idx[p]=i;
+						keys[p++]=col[i];
+					}
+				}
+			}else{
+				for(int i : s){
+					double v = col[i];
+					if(!Double.isNaN(v)){
+						idx[p]=i;
+						keys[p++]=v;
+					}
+				}
+				sortPairs(keys, idx, 0, p);
+			}
+			if(p<2 || keys[0]==keys[p-1])
+				return;
+			Arrays.fill(presentDist, 0);
+			double present=0;
+			for(int q=0; q<p; q++){
+				presentDist[labels[idx[q]]] += w[idx[q]];
+				present += w[idx[q]];
+			}
+			double presentInfo = info(presentDist, 0, present);
+			Arrays.fill(leftDist, 0);
+			double lw=0, bestChildInfo=Double.MAX_VALUE, bestLeft=0;
+			int bestPos=-1;
+			for(int q=0; q<p-1; q++){
+				int i = idx[q];
+				leftDist[labels[i]] += w[i];
+				lw += w[i];
+				if(keys[q]==keys[q+1] || lw<minNum || present-lw<minNum)
+					continue;
+				double childInfo = lw*info(leftDist, 0, lw) + rightInfo(present-lw);
+				if(childInfo<bestChildInfo){
+					bestChildInfo=childInfo;
+					bestPos=q;
+					bestLeft=lw;
+				}
+			}
+			if(bestPos<0)
+				return;
+			//gain on the non-missing samples, scaled by their share of the node
+			double gain = (presentInfo - bestChildInfo/present)*present/total;
+			if(gain>SMALL && gain>bestGain){
+				bestGain=gain;
+				bestAttr=a;
+				double lo=keys[bestPos], hi=keys[bestPos+1], mid=lo+(hi-lo)/2;
+				bestSplit = mid>lo ? mid : hi;
+			}
+		}
+
+		/* weight*entropy of the samples right of the sweep position */
+		double rightInfo(double rw){
+			double sum=0;
+			for(int c=0; c<numClasses; c++){
+				double r = presentDist[c]-leftDist[c];
+				if(r>1e-12)
+					sum -= r*Math.log(r/rw);
+			}
+			return sum;
+		}
+	}
+
+	/* Entropy (nats) of the class distribution d[off,off+numClasses) */
+	private double info(double[] d, int off, double total){
+		if(total<=0)
+			return 0;
+		double h=0;
+		for(int c=0; c<numClasses; c++){
+			double x=d[off+c];
+			if(x>0)
+				h -= (x/total)*Math.log(x/total);
+		}
+		return h;
+	}
+
+	/* Sorts keys[from,to) ascending, permuting idx alongside */
+	static void sortPairs(double[] keys, int[] idx, int from, int to){
+		while(to-from>16){
+			int mid = (from+to)>>>1;
+			//median of three as pivot
+			if(keys[mid]<keys[from]) swap(keys, idx, mid, from);
+			if(keys[to-1]<keys[from]) swap(keys, idx, to-1, from);
+			if(keys[to-1]<keys[mid]) swap(keys, idx, to-1, mid);
+			double pivot = keys[mid];
+			int i=from, j=to-1;
+			while(i<=j){
+				while(keys[i]<pivot) i++;
+				while(keys[j]>pivot) j--;
+				if(i<=j){
+					swap(keys, idx, i, j);
+					i++; j--;
+				}
+			}
+			//recurse into the smaller part
+			if(j+1-from < to-i){
+				sortPairs(keys, idx, from, j+1);
+				from=i;
+			}else{
+				sortPairs(keys, idx, i, to);
+				to=j+1;
+			}
+		}
+		for(int i=from+1; i<to; i++){
+			double k=keys[i];
+			int v=idx[i], j=i-1;
+			while(j>=from && keys[j]>k){
+				keys[j+1]=keys[j];
+				idx[j+1]=idx[j];
+				j--;
+			}
+			keys[j+1]=k;
+			idx[j+1]=v;
+		}
+	}
+
+	private static void swap(double[] keys, int[] idx, int i, int j){
+		double k=keys[i]; keys[i]=keys[j]; keys[j]=k;
+		int v=idx[i]; idx[i]=idx[j]; idx[j]=v;
+	}
+}
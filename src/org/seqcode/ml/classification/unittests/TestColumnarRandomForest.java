@@ -0,0 +1,204 @@
+package org.seqcode.ml.classification.unittests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+import org.seqcode.ml.classification.ColumnarRandomForest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ColumnarRandomForest trees against the numeric split search of AttributeRandomTree (ported here without
+ * Weka: a sweep over the sorted instances, information gain, midpoint thresholds), grown on the same bootstrap.
+ * Depths are kept small enough that nodes hold many instances, so no two attributes tie on gain and the order
+ * in which attributes are tried does not matter.
+ */
+public class TestColumnarRandomForest {
+
+	private static final int NUMATTR=6, NUMCLASSES=3;
+	private double[][] columns;
+	private int[] labels;
+
+	@Before public void setUp() {
+		Random rand = new Random(23);
+		int n=2000;
+		columns = new double[NUMATTR][n];
+		labels = new int[n];
+		for(int i=0; i<n; i++){
+			for(int a=0; a<NUMATTR; a++)
+				columns[a][i] = rand.nextDouble();
+			labels[i] = columns[0][i]<0.3 ? 0 : (columns[1][i]+0.3*columns[2][i]<0.6 ? 1 : 2);
+			if(rand.nextDouble()<0.1)
+				labels[i] = rand.nextInt(NUMCLASSES);
+		}
+	}
+
+	private double[] row(int i){
+		double[] x = new double[NUMATTR];
+		for(int a=0; a<NUMATTR; a++)
+			x[a] = columns[a][i];
+		return x;
+	}
+
+	@Test public void testAgainstAttributeRandomTree() {
+		Random probes = new Random(29);
+		for(int maxDepth=1; maxDepth<=3; maxDepth++){
+			for(long seed=1; seed<=3; seed++){
+				ColumnarRandomForest forest = new ColumnarRandomForest(columns, labels, NUMCLASSES);
+				forest.setNumTrees(1);
+				forest.setNumFeatures(NUMATTR);
+				forest.setMaxDepth(maxDepth);
+				forest.setSeed(seed);
+				forest.train();
+
+				//the forest draws each tree's seed from its own seed, then the tree's bootstrap from that
+				Random treeRand = new Random(new Random(seed).nextLong());
+				double[] w = new double[labels.length];
+				for(int d=0; d<labels.length; d++)
+					w[treeRand.nextInt(labels.length)]++;
+				List<Integer> bagged = new ArrayList<Integer>();
+				for(int i=0; i<labels.length; i++)
+					if(w[i]>0)
+						bagged.add(i);
+				RefNode ref = build(bagged, w, 0, maxDepth);
+
+				for(int p=0; p<200; p++){
+					double[] x = new double[NUMATTR];
+					for(int a=0; a<NUMATTR; a++)
+						x[a] = probes.nextDouble();
+					assertArrayEquals(ref.distribution(x), forest.distributionForInstance(x), 1e-9);
+				}
+				for(int i=0; i<labels.length; i+=7)
+					assertArrayEquals(ref.distribution(row(i)), forest.distributionForInstance(row(i)), 1e-9);
+			}
+		}
+	}
+
+	@Test public void testThreadInvariance() {
+		ColumnarRandomForest one = new ColumnarRandomForest(columns, labels, NUMCLASSES);
+		one.setNumTrees(40);
+		one.setSeed(5);
+		one.train();
+		ColumnarRandomForest four = new ColumnarRandomForest(columns, labels, NUMCLASSES);
+		four.setNumTrees(40);
+		four.setSeed(5);
+		four.setNumThreads(4);
+		four.train();
+		assertEquals(one.getOutOfBagError(), four.getOutOfBagError(), 0.0);
+		assertArrayEquals(one.getAttributeWeights(), four.getAttributeWeights(), 1e-12);
+		for(int i=0; i<labels.length; i+=13)
+			assertArrayEquals(one.distributionForInstance(row(i)), four.distributionForInstance(row(i)), 0.0);
+
+		//the label depends on attributes 0-2 only
+		double[] weights = one.getAttributeWeights();
+		for(int a=3; a<NUMATTR; a++)
+			assertTrue(weights[a]<weights[0] && weights[a]<weights[1]);
+		//10% of labels are random, a third of those by chance correct
+		assertTrue(one.getOutOfBagError()>0.04 && one.getOutOfBagError()<0.15);
+	}
+
+	/* A node of the reference tree */
+	private static class RefNode {
+		int attr=-1;
+		double split;
+		RefNode left, right;
+		double[] dist;
+
+		double[] distribution(double[] x){
+			if(attr<0)
+				return dist;
+			return x[attr]<split ? left.distribution(x) : right.distribution(x);
+		}
+	}
+
+	/* AttributeRandomTree.buildTree for numeric attributes without missing values, trying every attribute */
+	private RefNode build(List<Integer> s, double[] w, int depth, int maxDepth){
+		RefNode node = new RefNode();
+		double[] classProbs = new double[NUMCLASSES];
+		double total=0;
+		for(int i : s){
+			classProbs[labels[i]] += w[i];
+			total += w[i];
+		}
+		double max=0;
+		for(double c : classProbs)
+			max = Math.max(max, c);
+		node.dist = new double[NUMCLASSES];
+		for(int c=0; c<NUMCLASSES; c++)
+			node.dist[c] = classProbs[c]/total;
+		if(total<2 || max==total || depth>=maxDepth)
+			return node;
+
+		double val=-Double.MAX_VALUE, split=0;
+		int bestIndex=0;
+		for(final int a : new int[]{0, 1, 2, 3, 4, 5}){
+			//numericDistribution: sweep the sorted instances, keeping the first best split point
+			List<Integer> sorted = new ArrayList<Integer>(s);
+			Collections.sort(sorted, new Comparator<Integer>(){
+				public int compare(Integer x, Integer y) { return Double.compare(columns[a][x], columns[a][y]); }
+			});
+			double[][] curr = new double[2][NUMCLASSES];
+			for(int i : sorted)
+				curr[1][labels[i]] += w[i];
+			double prior = entropy(classProbs, total);
+			double currSplit = columns[a][sorted.get(0)], bestVal=-Double.MAX_VALUE, splitPoint=Double.NaN;
+			for(int i : sorted){
+				double v = columns[a][i];
+				if(v>currSplit){
+					double gain = prior - conditionalEntropy(curr, total);
+					if(gain>bestVal){
+						bestVal = gain;
+						splitPoint = (v+currSplit)/2.0;
+						if(splitPoint<=currSplit)
+							splitPoint = v;
+					}
+					currSplit = v;
+				}
+				curr[0][labels[i]] += w[i];
+				curr[1][labels[i]] -= w[i];
+			}
+			if(bestVal>val || (bestVal==val && a<bestIndex)){
+				val = bestVal;
+				bestIndex = a;
+				split = splitPoint;
+			}
+		}
+		if(!(val>1e-6))
+			return node;
+		node.attr = bestIndex;
+		node.split = split;
+		List<Integer> ls = new ArrayList<Integer>(), rs = new ArrayList<Integer>();
+		for(int i : s)
+			(columns[bestIndex][i]<split ? ls : rs).add(i);
+		node.left = build(ls, w, depth+1, maxDepth);
+		node.right = build(rs, w, depth+1, maxDepth);
+		return node;
+	}
+
+	private static double entropy(double[] d, double total){
+		double h=0;
+		for(double x : d)
+			if(x>0)
+				h -= (x/total)*Math.log(x/total);
+		return h;
+	}
+
+	private static double conditionalEntropy(double[][] rows, double total){
+		double h=0;
+		for(double[] r : rows){
+			double rt=0;
+			for(double x : r) rt+=x;
+			if(rt>0)
+				h += rt/total*entropy(r, rt);
+		}
+		return h;
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.ml.classification.unittests.TestColumnarRandomForest");
+	}
+}
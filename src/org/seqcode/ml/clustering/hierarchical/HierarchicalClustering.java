@@ -1,7 +1,15 @@
 package org.seqcode.ml.clustering.hierarchical;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.seqcode.ml.clustering.Cluster;
 import org.seqcode.ml.clustering.ClusterRepresentative;
@@ -11,16 +19,30 @@ import org.seqcode.ml.clustering.SingletonCluster;
 
 
 /**
+ * Agglomerative clustering. Distances are held in a condensed primitive upper-triangle array (n(n-1)/2 doubles).
+ *
+ * With the default REPRESENTATIVE linkage, merged clusters are compared through their ClusterRepresentative,
+ * as before; each row caches its nearest neighbour so that a merge only rescans the rows it affects.
+ * The other linkages update distances with the Lance-Williams formula and find merges with the
+ * nearest-neighbour chain algorithm in O(n^2) time; their ClusterNode weights are the merge distances.
+ *
+ * Initial distances can be computed on several threads (setNumThreads), in which case the metric must be
+ * thread-safe.
+ *
  * @author Timothy Danford
  *
  */
 public class HierarchicalClustering<X> implements ClusteringMethod<X> {
-    
+
+    public enum Linkage { REPRESENTATIVE, SINGLE, COMPLETE, AVERAGE, WEIGHTED, WARD }
+
     private ClusterRepresentative<X> repr;
     private PairwiseElementMetric<X> metric;
     private double maxDistanceToAccept;
-	
-    public HierarchicalClustering(ClusterRepresentative<X> rep, PairwiseElementMetric<X> m) { 
+    private Linkage linkage = Linkage.REPRESENTATIVE;
+    private int numThreads = 1;
+
+    public HierarchicalClustering(ClusterRepresentative<X> rep, PairwiseElementMetric<X> m) {
         repr = rep;
         metric = m;
         maxDistanceToAccept = Double.MAX_VALUE;
@@ -30,52 +52,109 @@ public class HierarchicalClustering<X> implements ClusteringMethod<X> {
         maxDistanceToAccept = d;
     }
 
+    /**
+     * WARD expects the metric to be Euclidean distance.
+     */
+    public void setLinkage(Linkage l) { linkage = l; }
+    public void setNumThreads(int t) { numThreads = Math.max(1, t); }
+
     /* (non-Javadoc)
      * @see org.seqcode.gse.clustering.ClusteringMethod#clusterElements(java.util.Collection)
      */
     public Collection<Cluster<X>> clusterElements(Collection<X> elmts) {
         Vector<Cluster<X>> clusters = new Vector<Cluster<X>>();
         Vector<X> reps = new Vector<X>();
-        Double distances[][] = new Double[elmts.size()][elmts.size()];
-        for(X ce : elmts) { 
+        for(X ce : elmts) {
             Cluster<X> c= new SingletonCluster<X>(ce);
             clusters.add(c);
             X repMember = repr.getRepresentative(c);
             reps.add(repMember);
         }
-        for (int i = 0; i < elmts.size(); i++) {
-            for (int j = 0; j < elmts.size(); j++) {
-                X r1 = reps.get(i);
-                X r2 = reps.get(j);
-                distances[i][j] = metric.evaluate(r1,r2);
+        int n = clusters.size();
+        if((long)n*(n-1)/2 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many elements for a condensed distance matrix: " + n);
+        }
+        double[] distances = computeDistances(reps);
+        if(linkage == Linkage.REPRESENTATIVE) {
+            clusterByRepresentative(clusters, reps, distances);
+        } else {
+            clusterByLinkage(clusters, distances);
+        }
+        Vector<Cluster<X>> output = new Vector<Cluster<X>>();
+        for (int i = 0; i < clusters.size(); i++) {
+            if (clusters.get(i) != null) {
+                output.add(clusters.get(i));
             }
         }
-        
-        int nclusters = clusters.size();
-        while(nclusters > 1) { 
-            int mini = -1, minj = -1;
-            double mindist = Double.MAX_VALUE;
+        return output;
+    }
 
-            for(int i = 0; i < clusters.size() - 1; i++) { 
-                if (clusters.get(i) == null) {continue;}
-                for(int j = i + 1; j < clusters.size(); j++) {
-                    if (clusters.get(j) == null) {continue;}
-                    double d;
-                    if (Double.isNaN(distances[i][j])) {
-                        X r1 = reps.get(i);
-                        X r2 = reps.get(j);
-                        d = metric.evaluate(r1, r2);
-                        distances[i][j] = d;
-                    } else {
-                        d = distances[i][j];
-                    }
-                    if(!Double.isNaN(d) && d < mindist) { 
-                        mindist = d;
-                        mini = i; minj = j;
+    /* index of (i,j), i<j, in the condensed matrix */
+    private static int index(int n, int i, int j) {
+        return (int)((long)i*n - (long)i*(i+1)/2 + (j-i-1));
+    }
+
+    private double[] computeDistances(final Vector<X> reps) {
+        final int n = reps.size();
+        final double[] distances = new double[Math.max(0, n*(n-1)/2)];
+        if(numThreads == 1 || n < 64) {
+            for(int i = 0; i < n; i++) { fillRow(reps, distances, i); }
+            return distances;
+        }
+        //Pair long rows with short ones so each task does about the same work
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for(int i = 0; i <= (n-1)/2; i++) {
+                final int a = i, b = n-1-i;
+                futures.add(exec.submit(new Runnable() {
+                    public void run() {
+                        fillRow(reps, distances, a);
+                        if(b != a) { fillRow(reps, distances, b); }
                     }
+                }));
+            }
+            for(Future<?> f : futures) { f.get(); }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            exec.shutdown();
+        }
+        return distances;
+    }
+
+    private void fillRow(Vector<X> reps, double[] distances, int i) {
+        int n = reps.size();
+        X r1 = reps.get(i);
+        int base = index(n, i, i+1);
+        for(int j = i + 1; j < n; j++) {
+            distances[base + j-i-1] = metric.evaluate(r1, reps.get(j));
+        }
+    }
+
+    /*
+     * Merges the closest pair (lowest i, then lowest j on ties), replacing the pair by a node whose distances are
+     * taken between representatives. nn[i]/nnDist[i] cache the nearest active j>i of each row.
+     */
+    private void clusterByRepresentative(Vector<Cluster<X>> clusters, Vector<X> reps, double[] distances) {
+        int n = clusters.size();
+        int[] nn = new int[n];
+        double[] nnDist = new double[n];
+        for(int i = 0; i < n; i++) { updateNearest(clusters, distances, nn, nnDist, i); }
+
+        int nclusters = n;
+        while(nclusters > 1) {
+            int mini = -1, minj = -1;
+            double mindist = Double.MAX_VALUE;
+            for(int i = 0; i < n - 1; i++) {
+                if(clusters.get(i) != null && nn[i] >= 0 && nnDist[i] < mindist) {
+                    mindist = nnDist[i];
+                    mini = i; minj = nn[i];
                 }
             }
-		
             if (mini == -1) {
                 break;
             }
@@ -83,31 +162,153 @@ public class HierarchicalClustering<X> implements ClusteringMethod<X> {
                 break;
             }
             Cluster<X> left = clusters.get(mini), right = clusters.get(minj);
-            if (left == null || right == null) {
-                throw new NullPointerException("left is " + left + " + from " + mini +".  right is " + right
-                                               + " from " + minj);
-            }
             ClusterNode<X> node = new ClusterNode<X>(left, right);
             clusters.set(minj,null);
             reps.set(minj,null);
-            for (int i = 0; i < elmts.size(); i++) {
-                distances[i][minj] = Double.NaN;
-                distances[minj][i] = Double.NaN;
-                distances[i][mini] = Double.NaN;
-                distances[mini][i] = Double.NaN;
-            }
             clusters.set(mini,node);
-            reps.set(mini,repr.getRepresentative(node));
+            X rep = repr.getRepresentative(node);
+            reps.set(mini,rep);
             nclusters--;
-            //System.out.println("# Clusters: " + nclusters + "(" + mindist + ")");
+
+            //Distances from the new node
+            for(int k = 0; k < n; k++) {
+                if(k == mini || clusters.get(k) == null) { continue; }
+                double d = k < mini ? metric.evaluate(reps.get(k), rep) : metric.evaluate(rep, reps.get(k));
+                distances[k < mini ? index(n, k, mini) : index(n, mini, k)] = d;
+            }
+            updateNearest(clusters, distances, nn, nnDist, mini);
+            for(int k = 0; k < mini; k++) {
+                if(clusters.get(k) == null) { continue; }
+                if(nn[k] == mini || nn[k] == minj) {
+                    updateNearest(clusters, distances, nn, nnDist, k);
+                } else {
+                    double d = distances[index(n, k, mini)];
+                    if(!Double.isNaN(d) && (nn[k] < 0 || d < nnDist[k] || (d == nnDist[k] && mini < nn[k]))) {
+                        nn[k] = mini; nnDist[k] = d;
+                    }
+                }
+            }
+            for(int k = mini + 1; k < minj; k++) {
+                if(clusters.get(k) != null && nn[k] == minj) { updateNearest(clusters, distances, nn, nnDist, k); }
+            }
         }
-        Vector<Cluster<X>> output = new Vector<Cluster<X>>();
-        for (int i = 0; i < clusters.size(); i++) {
-            if (clusters.get(i) != null) {
-                output.add(clusters.get(i));
+    }
+
+    private void updateNearest(Vector<Cluster<X>> clusters, double[] distances, int[] nn, double[] nnDist, int i) {
+        int n = clusters.size();
+        nn[i] = -1;
+        nnDist[i] = Double.MAX_VALUE;
+        int base = index(n, i, i+1);
+        for(int j = i + 1; j < n; j++) {
+            if(clusters.get(j) == null) { continue; }
+            double d = distances[base + j-i-1];
+            if(!Double.isNaN(d) && (nn[i] < 0 || d < nnDist[i])) {
+                nnDist[i] = d;
+                nn[i] = j;
             }
         }
-        return output;
     }
 
+    /*
+     * Nearest-neighbour chain with Lance-Williams updates. Merges are found out of order, so they are recorded
+     * (as the lowest-index element of each side) and replayed by increasing distance to build the tree.
+     */
+    private void clusterByLinkage(Vector<Cluster<X>> clusters, double[] distances) {
+        int n = clusters.size();
+        for(int i = 0; i < distances.length; i++) {
+            if(Double.isNaN(distances[i])) { distances[i] = Double.POSITIVE_INFINITY; }
+        }
+        boolean[] active = new boolean[n];
+        Arrays.fill(active, true);
+        int[] size = new int[n];
+        Arrays.fill(size, 1);
+        final int[] mergeA = new int[Math.max(0, n-1)], mergeB = new int[Math.max(0, n-1)];
+        final double[] mergeDist = new double[Math.max(0, n-1)];
+        int numMerges = 0;
+
+        int[] chain = new int[n];
+        int chainLen = 0;
+        int numActive = n;
+        while(numActive > 1) {
+            if(chainLen == 0) {
+                for(int i = 0; i < n; i++) {
+                    if(active[i]) { chain[chainLen++] = i; break; }
+                }
+            }
+            while(true) {
+                int a = chain[chainLen-1];
+                int prev = chainLen > 1 ? chain[chainLen-2] : -1;
+                //Nearest active neighbour of a, preferring the previous chain element on ties
+                int c = prev;
+                double best = prev >= 0 ? distances[a < prev ? index(n, a, prev) : index(n, prev, a)] : Double.POSITIVE_INFINITY;
+                for(int x = 0; x < n; x++) {
+                    if(x == a || !active[x]) { continue; }
+                    double d = distances[a < x ? index(n, a, x) : index(n, x, a)];
+                    if(d < best || c < 0) { best = d; c = x; }
+                }
+                if(c == prev) {
+                    chainLen -= 2;
+                    int i = Math.min(a, c), j = Math.max(a, c);
+                    mergeA[numMerges] = i; mergeB[numMerges] = j; mergeDist[numMerges] = best;
+                    numMerges++;
+                    lanceWilliams(distances, active, size, n, i, j, best);
+                    active[j] = false;
+                    size[i] += size[j];
+                    numActive--;
+                    break;
+                }
+                chain[chainLen++] = c;
+            }
+        }
+
+        //Replay merges by distance
+        Integer[] order = new Integer[numMerges];
+        for(int m = 0; m < numMerges; m++) { order[m] = m; }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) { return Double.compare(mergeDist[x], mergeDist[y]); }
+        });
+        int[] parent = new int[n];
+        for(int i = 0; i < n; i++) { parent[i] = i; }
+        for(int m : order) {
+            if(mergeDist[m] > maxDistanceToAccept || Double.isInfinite(mergeDist[m])) { break; }
+            int ra = find(parent, mergeA[m]), rb = find(parent, mergeB[m]);
+            //Roots are the lowest element index of their cluster
+            int lo = Math.min(ra, rb), hi = Math.max(ra, rb);
+            clusters.set(lo, new ClusterNode<X>(mergeDist[m], clusters.get(lo), clusters.get(hi)));
+            clusters.set(hi, null);
+            parent[hi] = lo;
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while(parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /* Distances from the union of clusters i and j (stored in row i) to every other active cluster */
+    private void lanceWilliams(double[] distances, boolean[] active, int[] size, int n, int i, int j, double dij) {
+        int ni = size[i], nj = size[j];
+        for(int k = 0; k < n; k++) {
+            if(!active[k] || k == i || k == j) { continue; }
+            int ik = k < i ? index(n, k, i) : index(n, i, k);
+            int jk = k < j ? index(n, k, j) : index(n, j, k);
+            double dik = distances[ik], djk = distances[jk];
+            double d;
+            switch(linkage) {
+            case SINGLE: d = Math.min(dik, djk); break;
+            case COMPLETE: d = Math.max(dik, djk); break;
+            case AVERAGE: d = (ni*dik + nj*djk) / (ni + nj); break;
+            case WEIGHTED: d = (dik + djk) / 2; break;
+            case WARD:
+                int nk = size[k];
+                d = Math.sqrt(Math.max(0, ((ni+nk)*dik*dik + (nj+nk)*djk*djk - nk*dij*dij) / (ni + nj + nk)));
+                break;
+            default: throw new IllegalStateException("Not a Lance-Williams linkage: " + linkage);
+            }
+            distances[ik] = d;
+        }
+    }
 }
@@ -0,0 +1,320 @@
+package org.seqcode.ml.clustering.hierarchical.unittests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+
+import org.junit.*;
+import org.seqcode.ml.clustering.Cluster;
+import org.seqcode.ml.clustering.ClusterRepresentative;
+import org.seqcode.ml.clustering.PairwiseElementMetric;
+import org.seqcode.ml.clustering.SingletonCluster;
+import org.seqcode.ml.clustering.hierarchical.ClusterNode;
+import org.seqcode.ml.clustering.hierarchical.HierarchicalClustering;
+import org.seqcode.ml.clustering.hierarchical.HierarchicalClustering.Linkage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares HierarchicalClustering against naive agglomerative clustering, on data with and without tied distances.
+ */
+public class TestHierarchicalClustering {
+
+    /* A point, named by its index so that trees can be compared as strings */
+    private static class Pt {
+        double[] x;
+        String name;
+        Pt(String n, double[] c) { name = n; x = c; }
+        public String toString() { return name; }
+    }
+
+    private static final PairwiseElementMetric<Pt> euclidean = new PairwiseElementMetric<Pt>() {
+        public double evaluate(Pt a, Pt b) {
+            double ss = 0;
+            for(int i = 0; i < a.x.length; i++) { ss += (a.x[i]-b.x[i])*(a.x[i]-b.x[i]); }
+            return Math.sqrt(ss);
+        }
+    };
+
+    private static final ClusterRepresentative<Pt> centroid = new ClusterRepresentative<Pt>() {
+        public Pt getRepresentative(Cluster<Pt> c) {
+            Set<Pt> elmts = c.getElements();
+            if(elmts.size() == 1) { return elmts.iterator().next(); }
+            double[] m = new double[elmts.iterator().next().x.length];
+            for(Pt p : elmts) {
+                for(int i = 0; i < m.length; i++) { m[i] += p.x[i]/elmts.size(); }
+            }
+            return new Pt("c", m);
+        }
+    };
+
+    /* Points on a small integer grid (many tied distances), or uniform in the unit square */
+    private static List<Pt> points(Random rand, int n, boolean grid) {
+        List<Pt> pts = new ArrayList<Pt>();
+        for(int i = 0; i < n; i++) {
+            double[] c = grid ? new double[]{rand.nextInt(6), rand.nextInt(6)} : new double[]{rand.nextDouble(), rand.nextDouble()};
+            pts.add(new Pt("p"+i, c));
+        }
+        return pts;
+    }
+
+    /* The previous implementation: full rescans for the closest pair (lowest i, then lowest j), distances between representatives */
+    private static List<Cluster<Pt>> naiveRepresentative(List<Pt> pts, double maxDist) {
+        Vector<Cluster<Pt>> clusters = new Vector<Cluster<Pt>>();
+        Vector<Pt> reps = new Vector<Pt>();
+        for(Pt p : pts) {
+            Cluster<Pt> c = new SingletonCluster<Pt>(p);
+            clusters.add(c);
+            reps.add(centroid.getRepresentative(c));
+        }
+        while(true) {
+            int mini = -1, minj = -1;
+            double mindist = Double.MAX_VALUE;
+            for(int i = 0; i < clusters.size()-1; i++) {
+                if(clusters.get(i) == null) { continue; }
+                for(int j = i+1; j < clusters.size(); j++) {
+                    if(clusters.get(j) == null) { continue; }
+                    double d = euclidean.evaluate(reps.get(i), reps.get(j));
+                    if(d < mindist) { mindist = d; mini = i; minj = j; }
+                }
+            }
+            if(mini == -1 || mindist > maxDist) { break; }
+            ClusterNode<Pt> node = new ClusterNode<Pt>(clusters.get(mini), clusters.get(minj));
+            clusters.set(minj, null);
+            reps.set(minj, null);
+            clusters.set(mini, node);
+            reps.set(mini, centroid.getRepresentative(node));
+        }
+        List<Cluster<Pt>> out = new ArrayList<Cluster<Pt>>();
+        for(Cluster<Pt> c : clusters) {
+            if(c != null) { out.add(c); }
+        }
+        return out;
+    }
+
+    /* Linkage distance between two clusters, from its definition (WEIGHTED has none, so it's looked up in a table) */
+    private static double naiveDistance(Linkage l, Set<Pt> a, Set<Pt> b, Map<Set<Set<Pt>>,Double> weighted) {
+        if(l == Linkage.WEIGHTED) {
+            Set<Set<Pt>> key = new HashSet<Set<Pt>>();
+            key.add(a); key.add(b);
+            if(weighted.containsKey(key)) { return weighted.get(key); }
+        }
+        double min = Double.MAX_VALUE, max = 0, sum = 0;
+        for(Pt p : a) {
+            for(Pt q : b) {
+                double d = euclidean.evaluate(p, q);
+                min = Math.min(min, d); max = Math.max(max, d); sum += d;
+            }
+        }
+        switch(l) {
+        case SINGLE: return min;
+        case COMPLETE: return max;
+        case AVERAGE: return sum/(a.size()*b.size());
+        case WEIGHTED: return min; //singletons only
+        case WARD:
+            return Math.sqrt(2.0*a.size()*b.size()/(a.size()+b.size())) * euclidean.evaluate(mean(a), mean(b));
+        default: throw new IllegalArgumentException();
+        }
+    }
+
+    private static Pt mean(Set<Pt> s) {
+        double[] m = new double[2];
+        for(Pt p : s) {
+            for(int i = 0; i < m.length; i++) { m[i] += p.x[i]/s.size(); }
+        }
+        return new Pt("c", m);
+    }
+
+    /* Merges in a tree: the two sides and the height, children before parents */
+    private static void merges(Cluster<Pt> c, List<Object[]> out) {
+        if(c instanceof ClusterNode) {
+            ClusterNode<Pt> node = (ClusterNode<Pt>)c;
+            merges(node.getLeft(), out);
+            merges(node.getRight(), out);
+            out.add(new Object[]{node.getLeft().getElements(), node.getRight().getElements(), node.getWeight()});
+        }
+    }
+
+    /*
+     * Replays the merges of the clustering by height, checking that each one joins two current clusters at their
+     * linkage distance, and that no other pair of clusters was closer, i.e. that it's a valid naive agglomerative
+     * sequence (whichever way ties were broken). Returns the heights.
+     */
+    private static List<Double> checkMerges(Linkage l, List<Pt> pts, Collection<Cluster<Pt>> result) {
+        List<Object[]> merges = new ArrayList<Object[]>();
+        for(Cluster<Pt> c : result) { merges(c, merges); }
+        Collections.sort(merges, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                int c = Double.compare((Double)a[2], (Double)b[2]);
+                return c != 0 ? c : Integer.compare(((Set<?>)a[0]).size()+((Set<?>)a[1]).size(), ((Set<?>)b[0]).size()+((Set<?>)b[1]).size());
+            }
+        });
+        List<Set<Pt>> current = new ArrayList<Set<Pt>>();
+        for(Pt p : pts) {
+            Set<Pt> s = new HashSet<Pt>();
+            s.add(p);
+            current.add(s);
+        }
+        Map<Set<Set<Pt>>,Double> weighted = new HashMap<Set<Set<Pt>>,Double>();
+        List<Double> heights = new ArrayList<Double>();
+        for(Object[] m : merges) {
+            @SuppressWarnings("unchecked")
+            Set<Pt> a = (Set<Pt>)m[0], b = (Set<Pt>)m[1];
+            double h = (Double)m[2];
+            assertTrue(current.contains(a) && current.contains(b));
+            double min = Double.MAX_VALUE;
+            for(int i = 0; i < current.size(); i++) {
+                for(int j = i+1; j < current.size(); j++) { min = Math.min(min, naiveDistance(l, current.get(i), current.get(j), weighted)); }
+            }
+            assertEquals(l+" merge height", naiveDistance(l, a, b, weighted), h, 1e-9);
+            assertEquals(l+" closest pair", min, h, 1e-9);
+            current.remove(a);
+            current.remove(b);
+            Set<Pt> ab = new HashSet<Pt>(a);
+            ab.addAll(b);
+            if(l == Linkage.WEIGHTED) {
+                for(Set<Pt> k : current) {
+                    Set<Set<Pt>> key = new HashSet<Set<Pt>>();
+                    key.add(ab); key.add(k);
+                    weighted.put(key, (naiveDistance(l, a, k, weighted)+naiveDistance(l, b, k, weighted))/2);
+                }
+            }
+            current.add(ab);
+            heights.add(h);
+        }
+        return heights;
+    }
+
+    /* Naive greedy clustering by the linkage definition, returning the sorted merge heights */
+    private static List<Double> naiveHeights(Linkage l, List<Pt> pts) {
+        List<Set<Pt>> current = new ArrayList<Set<Pt>>();
+        for(Pt p : pts) {
+            Set<Pt> s = new HashSet<Pt>();
+            s.add(p);
+            current.add(s);
+        }
+        Map<Set<Set<Pt>>,Double> weighted = new HashMap<Set<Set<Pt>>,Double>();
+        List<Double> heights = new ArrayList<Double>();
+        while(current.size() > 1) {
+            int bi = -1, bj = -1;
+            double min = Double.MAX_VALUE;
+            for(int i = 0; i < current.size(); i++) {
+                for(int j = i+1; j < current.size(); j++) {
+                    double d = naiveDistance(l, current.get(i), current.get(j), weighted);
+                    if(d < min) { min = d; bi = i; bj = j; }
+                }
+            }
+            Set<Pt> a = current.get(bi), b = current.get(bj);
+            current.remove(bj);
+            current.remove(bi);
+            Set<Pt> ab = new HashSet<Pt>(a);
+            ab.addAll(b);
+            if(l == Linkage.WEIGHTED) {
+                for(Set<Pt> k : current) {
+                    Set<Set<Pt>> key = new HashSet<Set<Pt>>();
+                    key.add(ab); key.add(k);
+                    weighted.put(key, (naiveDistance(l, a, k, weighted)+naiveDistance(l, b, k, weighted))/2);
+                }
+            }
+            current.add(ab);
+            heights.add(min);
+        }
+        Collections.sort(heights);
+        return heights;
+    }
+
+    private static HierarchicalClustering<Pt> clustering(Linkage l, int threads) {
+        HierarchicalClustering<Pt> hc = new HierarchicalClustering<Pt>(centroid, euclidean);
+        hc.setLinkage(l);
+        hc.setNumThreads(threads);
+        return hc;
+    }
+
+    private static Set<Set<Pt>> partition(Collection<Cluster<Pt>> clusters) {
+        Set<Set<Pt>> p = new HashSet<Set<Pt>>();
+        for(Cluster<Pt> c : clusters) { p.add(c.getElements()); }
+        return p;
+    }
+
+    @Test public void testRepresentative() {
+        Random rand = new Random(21);
+        for(boolean grid : new boolean[]{true, false}) {
+            for(int trial = 0; trial < 5; trial++) {
+                List<Pt> pts = points(rand, 40 + 20*trial, grid);
+                //setNumThreads only takes effect from 64 elements
+                Collection<Cluster<Pt>> result = clustering(Linkage.REPRESENTATIVE, 3).clusterElements(pts);
+                assertEquals(naiveRepresentative(pts, Double.MAX_VALUE).toString(), new ArrayList<Cluster<Pt>>(result).toString());
+                HierarchicalClustering<Pt> cut = clustering(Linkage.REPRESENTATIVE, 1);
+                cut.setMaxDistanceToAccept(grid ? 1.5 : 0.15);
+                assertEquals(naiveRepresentative(pts, grid ? 1.5 : 0.15).toString(), new ArrayList<Cluster<Pt>>(cut.clusterElements(pts)).toString());
+            }
+        }
+    }
+
+    @Test public void testLinkagesWithTies() {
+        Random rand = new Random(8);
+        for(Linkage l : Linkage.values()) {
+            if(l == Linkage.REPRESENTATIVE) { continue; }
+            for(int trial = 0; trial < 4; trial++) {
+                List<Pt> pts = points(rand, 30 + 15*trial, true);
+                Collection<Cluster<Pt>> result = clustering(l, 2).clusterElements(pts);
+                assertEquals(1, result.size());
+                List<Double> heights = checkMerges(l, pts, result);
+                assertEquals(pts.size()-1, heights.size());
+                if(l == Linkage.SINGLE) {
+                    //Single linkage heights don't depend on how ties are broken
+                    List<Double> naive = naiveHeights(l, pts);
+                    for(int i = 0; i < naive.size(); i++) { assertEquals(naive.get(i), heights.get(i), 1e-9); }
+                }
+            }
+        }
+    }
+
+    @Test public void testLinkagesNoTies() {
+        Random rand = new Random(34);
+        for(Linkage l : Linkage.values()) {
+            if(l == Linkage.REPRESENTATIVE) { continue; }
+            List<Pt> pts = points(rand, 70, false);
+            Collection<Cluster<Pt>> result = clustering(l, 4).clusterElements(pts);
+            List<Double> heights = checkMerges(l, pts, result);
+            List<Double> naive = naiveHeights(l, pts);
+            assertEquals(naive.size(), heights.size());
+            for(int i = 0; i < naive.size(); i++) { assertEquals(l.toString(), naive.get(i), heights.get(i), 1e-9); }
+            //Cutting the tree gives the clusters of the naive merges below the cut
+            double cutAt = heights.get(heights.size()-6);
+            HierarchicalClustering<Pt> cut = clustering(l, 1);
+            cut.setMaxDistanceToAccept(cutAt);
+            Collection<Cluster<Pt>> cutResult = cut.clusterElements(pts);
+            assertEquals(6, cutResult.size());
+            for(Cluster<Pt> c : cutResult) {
+                if(c instanceof ClusterNode) { assertTrue(((ClusterNode<Pt>)c).getWeight() <= cutAt); }
+            }
+            Set<Set<Pt>> sub = new HashSet<Set<Pt>>();
+            for(Cluster<Pt> c : result) { collectBelow(c, cutAt, sub); }
+            assertEquals(sub, partition(cutResult));
+        }
+    }
+
+    /* Clusters of the full tree whose height is at most h, and whose parent is above it */
+    private static void collectBelow(Cluster<Pt> c, double h, Set<Set<Pt>> out) {
+        if(c instanceof ClusterNode && ((ClusterNode<Pt>)c).getWeight() > h) {
+            collectBelow(((ClusterNode<Pt>)c).getLeft(), h, out);
+            collectBelow(((ClusterNode<Pt>)c).getRight(), h, out);
+        } else {
+            out.add(c.getElements());
+        }
+    }
+
+    public static void main(String args[]) {
+        org.junit.runner.JUnitCore.main("org.seqcode.ml.clustering.hierarchical.unittests.TestHierarchicalClustering");
+    }
+
+}
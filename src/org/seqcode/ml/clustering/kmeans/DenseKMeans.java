@@ -0,0 +1,360 @@
+package org.seqcode.ml.clustering.kmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * K-means on a dense matrix of points (one row per point), using squared Euclidean distance.
+ *
+ * Centroids are seeded by k-means++ (or supplied by the caller). Iterations use Hamerly's algorithm: each point
+ * keeps an upper bound on the distance to its centroid and a lower bound on the distance to any other centroid,
+ * and the triangle inequality lets most points skip the distance computations entirely once the clustering
+ * starts to settle. Points are processed in fixed-size blocks on a thread pool, and the per-block partial
+ * sums are reduced in block order, so results do not depend on the number of threads.
+ *
+ * The silhouette can be computed exactly or on a random sample of points.
+ */
+public class DenseKMeans {
+
+    private static final int BLOCKSIZE = 1024;
+    private static final int SILHOUETTEBLOCK = 16; //sampled points per task; each is compared with every point
+
+    private double[][] data;
+    private int n, dim, k;
+    private int maxIterations = 100;
+    private double tolerance = 0.0;
+    private int numThreads = 1;
+    private long seed = 0;
+
+    private double[][] centroids;
+    private int[] assignment;
+    private int iterations = 0;
+    private ExecutorService exec = null;
+
+    /**
+     * @param data points, one row each (not copied; must not be modified while clustering)
+     * @param k number of clusters
+     */
+    public DenseKMeans(double[][] data, int k) {
+        if(k < 1 || k > data.length) { throw new IllegalArgumentException("k must be between 1 and the number of points"); }
+        this.data = data;
+        this.k = k;
+        n = data.length;
+        dim = data[0].length;
+        for(int i = 0; i < n; i++) {
+            if(data[i].length != dim) { throw new IllegalArgumentException("Row " + i + " has dimension " + data[i].length + ", expected " + dim); }
+        }
+    }
+
+    public void setMaxIterations(int i) { maxIterations = i; }
+    /** Stop when the total centroid movement (Euclidean) is at most this value */
+    public void setTolerance(double t) { tolerance = t; }
+    public void setNumThreads(int t) { numThreads = Math.max(1, t); }
+    /** Seed for k-means++ and silhouette sampling */
+    public void setSeed(long s) { seed = s; }
+    /** Starting centroids (copied); if not set, k-means++ is used */
+    public void setCentroids(double[][] starts) {
+        if(starts.length != k) { throw new IllegalArgumentException("Expected " + k + " starting centroids"); }
+        centroids = new double[k][];
+        for(int j = 0; j < k; j++) {
+            if(starts[j].length != dim) { throw new IllegalArgumentException("Centroid " + j + " has the wrong dimension"); }
+            centroids[j] = starts[j].clone();
+        }
+    }
+
+    public int getK() { return k; }
+    public double[][] getCentroids() { return centroids; }
+    /** Cluster index of each point */
+    public int[] getAssignments() { return assignment; }
+    /** Number of iterations run by the last call to run() */
+    public int getIterations() { return iterations; }
+
+    /**
+     * Runs k-means to convergence or maxIterations
+     * @return cluster index of each point
+     */
+    public int[] run() {
+        exec = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            if(centroids == null) { initPlusPlus(); }
+            hamerly();
+        } finally {
+            if(exec != null) { exec.shutdown(); }
+            exec = null;
+        }
+        return assignment;
+    }
+
+    /**
+     * k-means++ seeding: each new centroid is a point drawn with probability proportional to its squared
+     * distance from the nearest centroid chosen so far
+     */
+    private void initPlusPlus() {
+        Random rand = new Random(seed);
+        centroids = new double[k][];
+        centroids[0] = data[rand.nextInt(n)].clone();
+        final double[] minDist = new double[n];
+        Arrays.fill(minDist, Double.MAX_VALUE);
+        for(int j = 1; j < k; j++) {
+            final double[] last = centroids[j-1];
+            double[] blockTotals = forEachBlock(new BlockTask() {
+                public double run(int lo, int hi, int block) {
+                    double t = 0;
+                    for(int i = lo; i < hi; i++) {
+                        double d = squaredDistance(data[i], last);
+                        if(d < minDist[i]) { minDist[i] = d; }
+                        t += minDist[i];
+                    }
+                    return t;
+                }
+            });
+            double total = 0;
+            for(double t : blockTotals) { total += t; }
+            int chosen;
+            if(total <= 0) {
+                chosen = rand.nextInt(n); //all points coincide with a centroid
+            } else {
+                double r = rand.nextDouble() * total;
+                chosen = n - 1;
+                for(int i = 0; i < n; i++) {
+                    r -= minDist[i];
+                    if(r <= 0 && minDist[i] > 0) { chosen = i; break; }
+                }
+            }
+            centroids[j] = data[chosen].clone();
+        }
+    }
+
+    private void hamerly() {
+        assignment = new int[n];
+        final double[] upper = new double[n];
+        final double[] lower = new double[n];
+        final double[] half = new double[k];
+        final int numBlocks = (n + BLOCKSIZE - 1) / BLOCKSIZE;
+        final double[][][] blockSums = new double[numBlocks][k][dim];
+        final int[][] blockCounts = new int[numBlocks][k];
+
+        //Initial assignment with exact bounds
+        forEachBlock(new BlockTask() {
+            public double run(int lo, int hi, int block) {
+                for(int i = lo; i < hi; i++) { assignFully(i, upper, lower); }
+                return 0;
+            }
+        });
+
+        iterations = 0;
+        boolean changed = true;
+        while(true) {
+            //New centroids from per-block partial sums
+            forEachBlock(new BlockTask() {
+                public double run(int lo, int hi, int block) {
+                    double[][] sums = blockSums[block];
+                    int[] counts = blockCounts[block];
+                    for(int j = 0; j < k; j++) { Arrays.fill(sums[j], 0); counts[j] = 0; }
+                    for(int i = lo; i < hi; i++) {
+                        double[] s = sums[assignment[i]];
+                        double[] x = data[i];
+                        for(int d = 0; d < dim; d++) { s[d] += x[d]; }
+                        counts[assignment[i]]++;
+                    }
+                    return 0;
+                }
+            });
+            double[] moved = new double[k];
+            double totalMoved = 0;
+            for(int j = 0; j < k; j++) {
+                double[] mean = new double[dim];
+                int count = 0;
+                for(int b = 0; b < numBlocks; b++) {
+                    count += blockCounts[b][j];
+                    double[] s = blockSums[b][j];
+                    for(int d = 0; d < dim; d++) { mean[d] += s[d]; }
+                }
+                if(count == 0) { continue; } //empty cluster keeps its centroid
+                for(int d = 0; d < dim; d++) { mean[d] /= count; }
+                moved[j] = Math.sqrt(squaredDistance(mean, centroids[j]));
+                totalMoved += moved[j];
+                centroids[j] = mean;
+            }
+            if(!changed || totalMoved <= tolerance || iterations >= maxIterations) { break; }
+            iterations++;
+
+            //Move the bounds by the centroid shifts
+            int far = 0, second = -1;
+            for(int j = 1; j < k; j++) {
+                if(moved[j] > moved[far]) { second = far; far = j; }
+                else if(second == -1 || moved[j] > moved[second]) { second = j; }
+            }
+            final double[] shift = moved;
+            final int farthest = far;
+            final double maxOther = second == -1 ? 0 : moved[second];
+            for(int j = 0; j < k; j++) {
+                double min = Double.MAX_VALUE;
+                for(int j2 = 0; j2 < k; j2++) {
+                    if(j2 != j) { min = Math.min(min, squaredDistance(centroids[j], centroids[j2])); }
+                }
+                half[j] = k == 1 ? Double.MAX_VALUE : Math.sqrt(min) / 2;
+            }
+
+            //Reassign, skipping points whose bounds prove their centroid is still the nearest
+            double[] blockChanges = forEachBlock(new BlockTask() {
+                public double run(int lo, int hi, int block) {
+                    int c = 0;
+                    for(int i = lo; i < hi; i++) {
+                        int a = assignment[i];
+                        upper[i] += shift[a];
+                        lower[i] -= a == farthest ? maxOther : shift[farthest];
+                        double m = Math.max(half[a], lower[i]);
+                        if(upper[i] <= m) { continue; }
+                        upper[i] = Math.sqrt(squaredDistance(data[i], centroids[a]));
+                        if(upper[i] <= m) { continue; }
+                        assignFully(i, upper, lower);
+                        if(assignment[i] != a) { c++; }
+                    }
+                    return c;
+                }
+            });
+            int numChanged = 0;
+            for(double c : blockChanges) { numChanged += (int)c; }
+            changed = numChanged > 0;
+        }
+    }
+
+    /* Finds the nearest and second-nearest centroids of point i */
+    private void assignFully(int i, double[] upper, double[] lower) {
+        double best = Double.MAX_VALUE, next = Double.MAX_VALUE;
+        int bestJ = 0;
+        for(int j = 0; j < k; j++) {
+            double d = squaredDistance(data[i], centroids[j]);
+            if(d < best) { next = best; best = d; bestJ = j; }
+            else if(d < next) { next = d; }
+        }
+        assignment[i] = bestJ;
+        upper[i] = Math.sqrt(best);
+        lower[i] = next == Double.MAX_VALUE ? Double.MAX_VALUE : Math.sqrt(next);
+    }
+
+    /**
+     * Sum of squared distances from each point to its centroid
+     */
+    public double sumOfSquaredDistance() {
+        if(assignment == null) { throw new IllegalStateException("run() has not been called"); }
+        double total = 0;
+        for(int i = 0; i < n; i++) { total += squaredDistance(data[i], centroids[assignment[i]]); }
+        return total;
+    }
+
+    /**
+     * Exact mean silhouette over all points (O(n^2) distances, spread over the threads)
+     */
+    public double silhouette() { return silhouette(n); }
+
+    /**
+     * Mean silhouette over a random sample of points (each compared against all points), using Euclidean distance.
+     * Points in singleton clusters score 0.
+     * @param sampleSize number of points to score; all points if sampleSize >= n
+     */
+    public double silhouette(int sampleSize) {
+        if(assignment == null) { throw new IllegalStateException("run() has not been called"); }
+        final int[] sample;
+        if(sampleSize >= n) {
+            sample = new int[n];
+            for(int i = 0; i < n; i++) { sample[i] = i; }
+        } else {
+            //Partial Fisher-Yates shuffle
+            int[] idx = new int[n];
+            for(int i = 0; i < n; i++) { idx[i] = i; }
+            Random rand = new Random(seed + 1);
+            for(int i = 0; i < sampleSize; i++) {
+                int r = i + rand.nextInt(n - i);
+                int t = idx[i]; idx[i] = idx[r]; idx[r] = t;
+            }
+            sample = Arrays.copyOf(idx, Math.max(1, sampleSize));
+        }
+        final int[] sizes = new int[k];
+        for(int i = 0; i < n; i++) { sizes[assignment[i]]++; }
+
+        boolean ownPool = exec == null && numThreads > 1;
+        if(ownPool) { exec = Executors.newFixedThreadPool(numThreads); }
+        try {
+            double[] totals = forEachBlock(sample.length, SILHOUETTEBLOCK, new BlockTask() {
+                public double run(int lo, int hi, int block) {
+                    double t = 0;
+                    double[] sums = new double[k];
+                    for(int s = lo; s < hi; s++) {
+                        int i = sample[s];
+                        Arrays.fill(sums, 0);
+                        for(int i2 = 0; i2 < n; i2++) {
+                            if(i2 != i) { sums[assignment[i2]] += Math.sqrt(squaredDistance(data[i], data[i2])); }
+                        }
+                        int a = assignment[i];
+                        if(sizes[a] <= 1) { continue; }
+                        double own = sums[a] / (sizes[a] - 1);
+                        double neighbour = Double.MAX_VALUE;
+                        for(int j = 0; j < k; j++) {
+                            if(j != a && sizes[j] > 0) { neighbour = Math.min(neighbour, sums[j] / sizes[j]); }
+                        }
+                        if(neighbour == Double.MAX_VALUE) { continue; }
+                        double denom = Math.max(own, neighbour);
+                        if(denom > 0) { t += (neighbour - own) / denom; }
+                    }
+                    return t;
+                }
+            });
+            double sh = 0;
+            for(double t : totals) { sh += t; }
+            return sh / sample.length;
+        } finally {
+            if(ownPool) { exec.shutdown(); exec = null; }
+        }
+    }
+
+    public static double squaredDistance(double[] a, double[] b) {
+        double s = 0;
+        for(int d = 0; d < a.length; d++) {
+            double x = a[d] - b[d];
+            s += x * x;
+        }
+        return s;
+    }
+
+    private interface BlockTask {
+        /** Processes items [lo,hi), the block'th block */
+        public double run(int lo, int hi, int block);
+    }
+
+    private double[] forEachBlock(BlockTask task) { return forEachBlock(n, BLOCKSIZE, task); }
+
+    /* Runs the task on consecutive blocks of [0,size), in parallel if there is a pool; returns each block's result */
+    private double[] forEachBlock(int size, int blockSize, final BlockTask task) {
+        int numBlocks = (size + blockSize - 1) / blockSize;
+        double[] results = new double[numBlocks];
+        if(exec == null || numBlocks < 2) {
+            for(int b = 0; b < numBlocks; b++) { results[b] = task.run(b * blockSize, Math.min(size, (b + 1) * blockSize), b); }
+            return results;
+        }
+        List<Future<Double>> futures = new ArrayList<Future<Double>>();
+        for(int b = 0; b < numBlocks; b++) {
+            final int block = b, lo = b * blockSize, hi = Math.min(size, (b + 1) * blockSize);
+            futures.add(exec.submit(new Callable<Double>() {
+                public Double call() { return task.run(lo, hi, block); }
+            }));
+        }
+        try {
+            for(int b = 0; b < numBlocks; b++) { results[b] = futures.get(b).get(); }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,90 @@
+package org.seqcode.ml.clustering.kmeans;
+
+import java.util.Collection;
+import java.util.Vector;
+
+import org.seqcode.ml.clustering.Cluster;
+import org.seqcode.ml.clustering.ClusteringMethod;
+import org.seqcode.ml.clustering.DefaultCluster;
+import org.seqcode.ml.clustering.vectorcluster.VectorClusterElement;
+
+/**
+ * Euclidean k-means for VectorClusterElements (e.g. ProfileClusterable), as a thin wrapper around DenseKMeans.
+ *
+ * Unlike KMeansClustering, which works through generic metric and representative objects, the elements are
+ * copied once into a dense matrix, so this scales to very large element sets. Missing values are treated as 0.0,
+ * as in the Mean representative.
+ */
+public class VectorKMeansClustering<X extends VectorClusterElement> implements ClusteringMethod<X> {
+
+    private int numClusters;
+    private int iterations = 100;
+    private double convergenceDifference = 0.0;
+    private int numThreads = 1;
+    private long seed = 0;
+    private double[][] startMeans = null;
+    private Vector<X> elmts;
+    private DenseKMeans kmeans;
+
+    /**
+     * Clusters seeded by k-means++
+     */
+    public VectorKMeansClustering(int k) {
+        numClusters = k;
+    }
+
+    /**
+     * Clusters seeded with the given elements
+     */
+    public VectorKMeansClustering(Collection<? extends VectorClusterElement> starts) {
+        numClusters = starts.size();
+        startMeans = toMatrix(starts);
+    }
+
+    public void setIterations(int i) { iterations = i; }
+    public void setConvergenceDifference(double d) { convergenceDifference = d; }
+    public void setNumThreads(int t) { numThreads = t; }
+    public void setSeed(long s) { seed = s; }
+
+    public Collection<Cluster<X>> clusterElements(Collection<X> e) {
+        elmts = new Vector<X>(e);
+        kmeans = new DenseKMeans(toMatrix(elmts), numClusters);
+        kmeans.setMaxIterations(iterations);
+        kmeans.setTolerance(convergenceDifference);
+        kmeans.setNumThreads(numThreads);
+        kmeans.setSeed(seed);
+        if(startMeans != null) { kmeans.setCentroids(startMeans); }
+        int[] assignment = kmeans.run();
+
+        Vector<DefaultCluster<X>> clusters = new Vector<DefaultCluster<X>>();
+        for(int c = 0; c < numClusters; c++) { clusters.add(new DefaultCluster<X>()); }
+        for(int i = 0; i < assignment.length; i++) { clusters.get(assignment[i]).addElement(elmts.get(i)); }
+        return new Vector<Cluster<X>>(clusters);
+    }
+
+    /** Cluster index of each element, in the order the elements were given */
+    public int[] getAssignments() { return backend().getAssignments(); }
+    public double[][] getClusterMeans() { return backend().getCentroids(); }
+    public double sumOfSquaredDistance() { return backend().sumOfSquaredDistance(); }
+    public double silhouette() { return backend().silhouette(); }
+    /** Silhouette estimated from a random sample of elements */
+    public double silhouette(int sampleSize) { return backend().silhouette(sampleSize); }
+
+    private DenseKMeans backend() {
+        if(kmeans == null) { throw new IllegalStateException("clusterElements() has not been called"); }
+        return kmeans;
+    }
+
+    private static double[][] toMatrix(Collection<? extends VectorClusterElement> e) {
+        double[][] m = new double[e.size()][];
+        int i = 0;
+        for(VectorClusterElement v : e) {
+            double[] row = new double[v.dimension()];
+            for(int d = 0; d < row.length; d++) {
+                row[d] = v.isMissingValue(d) ? 0.0 : v.getValue(d);
+            }
+            m[i++] = row;
+        }
+        return m;
+    }
+}
@@ -0,0 +1,134 @@
+package org.seqcode.ml.clustering.kmeans.unittests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.*;
+import org.seqcode.ml.clustering.Cluster;
+import org.seqcode.ml.clustering.kmeans.DenseKMeans;
+import org.seqcode.ml.clustering.kmeans.KMeansClustering;
+import org.seqcode.ml.clustering.vectorcluster.DefaultVectorClusterElement;
+import org.seqcode.ml.clustering.vectorcluster.EuclideanDistance;
+import org.seqcode.ml.clustering.vectorcluster.Mean;
+import org.seqcode.ml.clustering.vectorcluster.VectorClusterElement;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks DenseKMeans against the generic KMeansClustering (Euclidean metric, Mean representative) from the same
+ * starting centroids, and its silhouette against a direct computation.
+ */
+public class TestDenseKMeans {
+
+    /* n points in dim dimensions around k centres; point i is drawn around centre i%k */
+    private static double[][] blobs(int n, int dim, int k, double spread, long seed) {
+        Random rand = new Random(seed);
+        double[][] centres = new double[k][dim];
+        for(int j = 0; j < k; j++) {
+            for(int d = 0; d < dim; d++) { centres[j][d] = rand.nextDouble() * 10; }
+        }
+        double[][] data = new double[n][dim];
+        for(int i = 0; i < n; i++) {
+            for(int d = 0; d < dim; d++) { data[i][d] = centres[i % k][d] + rand.nextGaussian() * spread; }
+        }
+        return data;
+    }
+
+    /* Runs KMeansClustering from the first k points; returns the cluster index of each point */
+    private static int[] oldKMeans(double[][] data, int k, double[][] meansOut) {
+        List<VectorClusterElement> elmts = new ArrayList<VectorClusterElement>();
+        for(double[] row : data) { elmts.add(new DefaultVectorClusterElement(row)); }
+        KMeansClustering<VectorClusterElement> km = new KMeansClustering<VectorClusterElement>(
+                new EuclideanDistance<VectorClusterElement>(), new Mean(), new ArrayList<VectorClusterElement>(elmts.subList(0, k)));
+        km.setIterations(100);
+        List<Cluster<VectorClusterElement>> clusters = new ArrayList<Cluster<VectorClusterElement>>(km.clusterElements(elmts));
+        int[] assignment = new int[data.length];
+        for(int i = 0; i < data.length; i++) {
+            assignment[i] = -1;
+            for(int j = 0; j < k; j++) {
+                if(clusters.get(j).getElements().contains(elmts.get(i))) { assignment[i] = j; }
+            }
+        }
+        Vector<VectorClusterElement> means = km.getClusterMeans();
+        for(int j = 0; j < k; j++) {
+            for(int d = 0; d < data[0].length; d++) { meansOut[j][d] = means.get(j).getValue(d); }
+        }
+        return assignment;
+    }
+
+    private static void checkAgainstOld(double[][] data, int k, int threads) {
+        double[][] oldMeans = new double[k][data[0].length];
+        int[] expected = oldKMeans(data, k, oldMeans);
+
+        DenseKMeans km = new DenseKMeans(data, k);
+        double[][] starts = new double[k][];
+        for(int j = 0; j < k; j++) { starts[j] = data[j]; }
+        km.setCentroids(starts);
+        km.setNumThreads(threads);
+        assertArrayEquals(expected, km.run());
+        for(int j = 0; j < k; j++) {
+            assertArrayEquals(oldMeans[j], km.getCentroids()[j], 1e-9);
+        }
+        double ssd = 0;
+        for(int i = 0; i < data.length; i++) { ssd += DenseKMeans.squaredDistance(data[i], oldMeans[expected[i]]); }
+        assertEquals(ssd, km.sumOfSquaredDistance(), 1e-6 * ssd);
+    }
+
+    @Test public void testSeparatedClusters() {
+        checkAgainstOld(blobs(2500, 4, 5, 0.8, 7), 5, 1);
+    }
+
+    @Test public void testOverlappingClusters() {
+        //Many points change cluster over many iterations, which exercises the Hamerly bounds
+        checkAgainstOld(blobs(2500, 3, 6, 3.0, 11), 6, 4);
+        checkAgainstOld(blobs(1500, 2, 8, 5.0, 13), 8, 1);
+    }
+
+    @Test public void testThreadInvariance() {
+        double[][] data = blobs(5000, 5, 7, 2.0, 17);
+        DenseKMeans one = new DenseKMeans(data, 7);
+        one.setSeed(3);
+        int[] a = one.run();
+        DenseKMeans four = new DenseKMeans(data, 7);
+        four.setSeed(3);
+        four.setNumThreads(4);
+        assertArrayEquals(a, four.run());
+        assertEquals(one.getIterations(), four.getIterations());
+        for(int j = 0; j < 7; j++) {
+            assertArrayEquals(one.getCentroids()[j], four.getCentroids()[j], 0.0);
+        }
+        assertEquals(one.silhouette(300), four.silhouette(300), 0.0);
+    }
+
+    @Test public void testSilhouette() {
+        double[][] data = blobs(400, 3, 4, 1.5, 19);
+        DenseKMeans km = new DenseKMeans(data, 4);
+        km.setSeed(5);
+        int[] a = km.run();
+        int[] sizes = new int[4];
+        for(int x : a) { sizes[x]++; }
+        double total = 0;
+        for(int i = 0; i < data.length; i++) {
+            double[] sums = new double[4];
+            for(int i2 = 0; i2 < data.length; i2++) {
+                if(i2 != i) { sums[a[i2]] += Math.sqrt(DenseKMeans.squaredDistance(data[i], data[i2])); }
+            }
+            if(sizes[a[i]] <= 1) { continue; }
+            double own = sums[a[i]] / (sizes[a[i]] - 1), neighbour = Double.MAX_VALUE;
+            for(int j = 0; j < 4; j++) {
+                if(j != a[i] && sizes[j] > 0) { neighbour = Math.min(neighbour, sums[j] / sizes[j]); }
+            }
+            total += (neighbour - own) / Math.max(own, neighbour);
+        }
+        assertEquals(total / data.length, km.silhouette(), 1e-9);
+        assertEquals(km.silhouette(), km.silhouette(data.length), 0.0);
+        //a large sample is close to the exact value
+        assertEquals(km.silhouette(), km.silhouette(300), 0.05);
+    }
+
+    public static void main(String args[]) {
+        org.junit.runner.JUnitCore.main("org.seqcode.ml.clustering.kmeans.unittests.TestDenseKMeans");
+    }
+}
@@ -101,55 +101,42 @@ public class HMM
    * @param steps	the number of iterations performed
    */
   public void baumWelch(int[] o, int steps)
-  { 
-    int T = o.length;
-    double[][] fwd;
-    double[][] bwd;
-
-    double pi1[] = new double[numStates];
-    double a1[][] = new double[numStates][numStates];
-    double b1[][] = new double[numStates][sigmaSize];
-
-    for (int s = 0; s < steps; s++) {
-      // calculation of Forward and Backward Variables from the current model
-      fwd = forwardProc(o);
-      bwd = backwardProc(o);
-
-      // re-estimation of initial state probabilities
-      for (int i = 0; i < numStates; i++)
-			pi1[i] = gamma(i, 0, o, fwd, bwd);
+  {
+    List<int[]> seqs = new ArrayList<int[]>();
+    seqs.add(o);
+    baumWelch(seqs, steps, 1);
+  }
 
-      // re-estimation of transition probabilities
-      for (int i = 0; i < numStates; i++) {
-		for (int j = 0; j < numStates; j++) {
-		  double num = 0;
-		  double denom = 0;
-		  for (int t = 0; t <= T - 1; t++) {
-		    num += xi(t, i, j, o, fwd, bwd);
-		    denom += gamma(i, t, o, fwd, bwd);
-		  }
-		  a1[i][j] = divide(num, denom);
-		}
-      }
+  /**
+   * Baum-Welch training on several independent observation
+   * sequences (e.g. one per chromosome), using scaled
+   * forward-backward. Sequences are processed in parallel.
+   *
+   * @param seqs		the observation sequences
+   * @param steps		the number of iterations performed
+   * @param numThreads	the number of worker threads
+   * @return			the log-likelihood of the sequences under
+   *					the model before the final iteration
+   */
+  public double baumWelch(List<int[]> seqs, int steps, int numThreads)
+  {
+    HMMEngine engine = new HMMEngine(this);
+    engine.setNumThreads(numThreads);
+    double logLik = engine.baumWelch(seqs, steps, Double.NEGATIVE_INFINITY);
+    engine.copyTo(this);
+    return logLik;
+  }
 
-      // re-estimation of emission probabilities
-      for (int i = 0; i < numStates; i++) {
-		for (int k = 0; k < sigmaSize; k++) {
-		  double num = 0;
-		  double denom = 0;
-	
-		  for (int t = 0; t <= T - 1; t++) {
-		    double g = gamma(i, t, o, fwd, bwd);
-		    num += g * (k == o[t] ? 1 : 0);
-		    denom += g;
-		  }
-		  b1[i][k] = divide(num, denom);
-		}
-      }
-      pi = pi1;
-      a = a1;
-      b = b1;
-    }
+  /**
+   * Log-likelihood of an observation sequence, computed with
+   * a scaled forward pass (safe for long sequences).
+   *
+   * @param o		the observation sequence
+   * @return		log P(o | this HMM)
+   */
+  public double logLikelihood(int[] o)
+  {
+    return new HMMEngine(this).logLikelihood(o);
   }
 
 
@@ -286,58 +273,14 @@ public class HMM
    */
   public double[][] viterbi(int[] o)
   {
-  	int T = o.length;
-  	int min_state;
-  	double min_weight, weight;
-  	double stateOptProb = 0.0;
-  	int[] Q = new int[T];
-  	int[][] sTable = new int[numStates][T];
-  	double[][] aTable = new double[numStates][T];
-  	double[][] answer = new double[2][T];
-  	
-  	// calulate accumulations and best states for time 0
-  	for(int i = 0; i < numStates; i++) {
-  		aTable[i][0] = -1*Math.log(pi[i]) - Math.log(b[i][o[0]]);
-  		sTable[i][0] = 0;
-  	}
-  	
-  	// fill up the rest of the tables
-  	for(int t = 1; t < T; t++) {
-  		for(int j = 0; j < numStates; j++) {
-  			min_weight = aTable[0][t-1] - Math.log(a[0][j]);
-  			min_state = 0;
-  			for(int i = 1; i < numStates; i++) {
-  				weight = aTable[i][t-1] - Math.log(a[i][j]);
-  				if(weight < min_weight) {
-  					min_weight = weight;
-  					min_state = i;
-  				}
-  			}
-  			aTable[j][t] = min_weight - Math.log(b[j][o[t]]);
-  			sTable[j][t] = min_state;
-  		}
-  	}
-  	
-  	// find minimum value for time T-1
-  	min_weight = aTable[0][T-1];
-  	min_state = 1;
-  	for(int i = 1; i < numStates; i++) {
-  		if(aTable[i][T-1] < min_weight) {
-  			min_weight = aTable[i][T-1];
-  			min_state = i;
-  		}
-  	}
-
-  	// trace back to find the optimized state sequence
-  	Q[T-1] = min_state;
-  	for(int t = T-2; t >= 0; t--)
-  		Q[t] = sTable[Q[t+1]][t+1];
-  	
-  	// store answers and return them
-  	answer[0][0] = min_weight;
-  	for(int i = 0; i < T; i++)
-  		answer[1][i] = Q[i];
-  	return answer;
+    int T = o.length;
+    double[] logProb = new double[1];
+    int[] Q = new HMMEngine(this).viterbi(o, logProb);
+    double[][] answer = new double[2][T];
+    answer[0][0] = -logProb[0];
+    for (int i = 0; i < T; i++)
+      answer[1][i] = Q[i];
+    return answer;
   }
   
   /** 
@@ -0,0 +1,461 @@
+package org.seqcode.ml.hmm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Discrete-emission HMM training and decoding over flat primitive arrays.
+ *
+ * Forward-backward uses per-step scaling, and Viterbi works in log space, so genome-length observation
+ * sequences do not underflow. Baum-Welch accumulates the expected initial, transition and emission counts
+ * in a single backward sweep per sequence, and several observation sequences (e.g. one per chromosome)
+ * are processed in parallel; their counts are summed in sequence order, so results do not depend on the
+ * number of threads.
+ *
+ * Emissions are stored only for the symbols in the model's alphabet. For large sparse alphabets (e.g.
+ * binarized multi-mark signal in genome bins, where most of the 2^marks combinations never occur), build
+ * the model from the observed symbols with forObservations(). Symbols outside the alphabet are treated as
+ * uninformative: they contribute the same emission probability (1) to every state.
+ */
+public class HMMEngine
+{
+  private int numStates;
+  /** sorted alphabet; null for the dense alphabet 0..numSymbols-1 */
+  private int[] symbols;
+  private int numSymbols;
+  private double[] pi;
+  /** transitions, row-major: a[i*N+j] */
+  private double[] a;
+  /** emissions, row-major over alphabet positions: b[i*M+k] */
+  private double[] b;
+  private int numThreads = 1;
+  private double lastLogLikelihood = Double.NaN;
+
+  /**
+   * Engine for the parameters of an existing HMM (copied), over its dense alphabet
+   */
+  public HMMEngine(HMM hmm)
+  {
+    numStates = hmm.numStates;
+    numSymbols = hmm.sigmaSize;
+    pi = hmm.pi.clone();
+    a = new double[numStates*numStates];
+    b = new double[numStates*numSymbols];
+    for (int i = 0; i < numStates; i++) {
+      System.arraycopy(hmm.a[i], 0, a, i*numStates, numStates);
+      System.arraycopy(hmm.b[i], 0, b, i*numSymbols, numSymbols);
+    }
+  }
+
+  /**
+   * Randomly initialized engine over the given alphabet
+   *
+   * @param numStates		number of states
+   * @param alphabet		symbols that can be emitted (need not be sorted or distinct)
+   * @param seed			random seed for the initial parameters
+   */
+  public HMMEngine(int numStates, int[] alphabet, long seed)
+  {
+    this.numStates = numStates;
+    int[] s = alphabet.clone();
+    Arrays.sort(s);
+    int m = 0;
+    for (int k = 0; k < s.length; k++)
+      if (k == 0 || s[k] != s[k-1])
+        s[m++] = s[k];
+    symbols = Arrays.copyOf(s, m);
+    numSymbols = m;
+    pi = new double[numStates];
+    a = new double[numStates*numStates];
+    b = new double[numStates*numSymbols];
+    Random rand = new Random(seed);
+    randomRow(rand, pi, 0, numStates);
+    for (int i = 0; i < numStates; i++) {
+      randomRow(rand, a, i*numStates, numStates);
+      randomRow(rand, b, i*numSymbols, numSymbols);
+    }
+  }
+
+  /**
+   * Randomly initialized engine whose alphabet is the set of symbols occurring in the sequences
+   */
+  public static HMMEngine forObservations(int numStates, List<int[]> sequences, long seed)
+  {
+    int total = 0;
+    for (int[] o : sequences)
+      total += o.length;
+    int[] all = new int[total];
+    int p = 0;
+    for (int[] o : sequences) {
+      System.arraycopy(o, 0, all, p, o.length);
+      p += o.length;
+    }
+    return new HMMEngine(numStates, all, seed);
+  }
+
+  private static void randomRow(Random rand, double[] x, int off, int len)
+  {
+    double sum = 0;
+    for (int k = 0; k < len; k++) {
+      x[off+k] = 0.5 + rand.nextDouble();
+      sum += x[off+k];
+    }
+    for (int k = 0; k < len; k++)
+      x[off+k] /= sum;
+  }
+
+  public void setNumThreads(int t) { numThreads = Math.max(1, t); }
+  public int getNumStates() { return numStates; }
+  public int getNumSymbols() { return numSymbols; }
+  /** Log-likelihood of the training data under the model before the last Baum-Welch step */
+  public double getLastLogLikelihood() { return lastLogLikelihood; }
+  public double getInitial(int i) { return pi[i]; }
+  public double getTransition(int i, int j) { return a[i*numStates+j]; }
+  /** Emission probability of a symbol (1 for symbols outside the alphabet) */
+  public double getEmission(int i, int symbol)
+  {
+    int k = symbolIndex(symbol);
+    return k < 0 ? 1.0 : b[i*numSymbols+k];
+  }
+  /** The alphabet, in emission-table order */
+  public int[] getAlphabet()
+  {
+    if (symbols != null)
+      return symbols.clone();
+    int[] s = new int[numSymbols];
+    for (int k = 0; k < numSymbols; k++)
+      s[k] = k;
+    return s;
+  }
+
+  /**
+   * Copies the parameters into an HMM (dense alphabets only)
+   */
+  public void copyTo(HMM hmm)
+  {
+    if (symbols != null && (symbols.length == 0 || symbols[0] < 0 || symbols[symbols.length-1] >= hmm.sigmaSize))
+      throw new IllegalArgumentException("Alphabet does not fit the HMM's vocabulary size");
+    if (hmm.numStates != numStates)
+      throw new IllegalArgumentException("HMM has " + hmm.numStates + " states; expected " + numStates);
+    hmm.pi = pi.clone();
+    hmm.a = new double[numStates][numStates];
+    hmm.b = new double[numStates][hmm.sigmaSize];
+    for (int i = 0; i < numStates; i++) {
+      System.arraycopy(a, i*numStates, hmm.a[i], 0, numStates);
+      for (int k = 0; k < numSymbols; k++)
+        hmm.b[i][symbols == null ? k : symbols[k]] = b[i*numSymbols+k];
+    }
+  }
+
+  /* alphabet position of a symbol, or -1 */
+  private int symbolIndex(int symbol)
+  {
+    if (symbols == null)
+      return symbol >= 0 && symbol < numSymbols ? symbol : -1;
+    int k = Arrays.binarySearch(symbols, symbol);
+    return k < 0 ? -1 : k;
+  }
+
+  /* observation sequence as alphabet positions */
+  private int[] encode(int[] o)
+  {
+    int[] c = new int[o.length];
+    for (int t = 0; t < o.length; t++)
+      c[t] = symbolIndex(o[t]);
+    return c;
+  }
+
+  private double emission(int i, int c)
+  {
+    return c < 0 ? 1.0 : b[i*numSymbols+c];
+  }
+
+  /**
+   * Scaled forward pass. fwd (length T*N, row t at t*N) receives the normalized forward variables, and
+   * scale[t] the normalizer of step t.
+   *
+   * @return	log P(o | model), or negative infinity if o is impossible
+   */
+  private double forward(int[] c, double[] fwd, double[] scale)
+  {
+    int N = numStates, T = c.length;
+    double logLik = 0;
+    for (int t = 0; t < T; t++) {
+      double sum = 0;
+      int row = t*N;
+      for (int j = 0; j < N; j++) {
+        double v;
+        if (t == 0) {
+          v = pi[j];
+        } else {
+          v = 0;
+          int prev = row - N;
+          for (int i = 0; i < N; i++)
+            v += fwd[prev+i] * a[i*N+j];
+        }
+        v *= emission(j, c[t]);
+        fwd[row+j] = v;
+        sum += v;
+      }
+      if (sum <= 0)
+        return Double.NEGATIVE_INFINITY;
+      scale[t] = sum;
+      for (int j = 0; j < N; j++)
+        fwd[row+j] /= sum;
+      logLik += Math.log(sum);
+    }
+    return logLik;
+  }
+
+  /**
+   * Log-likelihood of an observation sequence
+   */
+  public double logLikelihood(int[] o)
+  {
+    if (o.length == 0)
+      return 0;
+    return forward(encode(o), new double[o.length*numStates], new double[o.length]);
+  }
+
+  /**
+   * Posterior state probabilities P(state i at t | o), as a T x N array
+   */
+  public double[][] posterior(int[] o)
+  {
+    int N = numStates, T = o.length;
+    double[][] post = new double[T][N];
+    if (T == 0)
+      return post;
+    int[] c = encode(o);
+    double[] fwd = new double[T*N], scale = new double[T];
+    if (forward(c, fwd, scale) == Double.NEGATIVE_INFINITY)
+      throw new IllegalArgumentException("Observation sequence is impossible under the model");
+    double[] beta = new double[N], next = new double[N], tmp = new double[N];
+    Arrays.fill(next, 1.0);
+    for (int t = T-1; t >= 0; t--) {
+      if (t < T-1) {
+        for (int j = 0; j < N; j++)
+          tmp[j] = emission(j, c[t+1]) * next[j] / scale[t+1];
+        for (int i = 0; i < N; i++) {
+          double s = 0;
+          for (int j = 0; j < N; j++)
+            s += a[i*N+j] * tmp[j];
+          beta[i] = s;
+        }
+        double[] x = next; next = beta; beta = x;
+      }
+      for (int i = 0; i < N; i++)
+        post[t][i] = fwd[t*N+i] * next[i];
+    }
+    return post;
+  }
+
+  /**
+   * Log-space Viterbi decoding
+   *
+   * @param o		the observation sequence
+   * @return		the most probable state path
+   */
+  public int[] viterbi(int[] o)
+  {
+    return viterbi(o, null);
+  }
+
+  /**
+   * Log-space Viterbi decoding
+   *
+   * @param o			the observation sequence
+   * @param logProb		if not null, logProb[0] receives the log probability of the best path
+   * @return			the most probable state path
+   */
+  public int[] viterbi(int[] o, double[] logProb)
+  {
+    int N = numStates, T = o.length;
+    int[] path = new int[T];
+    if (T == 0)
+      return path;
+    int[] c = encode(o);
+    double[] logA = new double[N*N], logB = new double[N*numSymbols];
+    for (int k = 0; k < logA.length; k++)
+      logA[k] = Math.log(a[k]);
+    for (int k = 0; k < logB.length; k++)
+      logB[k] = Math.log(b[k]);
+    int[] back = new int[T*N];
+    double[] score = new double[N], next = new double[N];
+    for (int i = 0; i < N; i++)
+      score[i] = Math.log(pi[i]) + (c[0] < 0 ? 0 : logB[i*numSymbols+c[0]]);
+    for (int t = 1; t < T; t++) {
+      for (int j = 0; j < N; j++) {
+        int best = 0;
+        double bestScore = score[0] + logA[j];
+        for (int i = 1; i < N; i++) {
+          double s = score[i] + logA[i*N+j];
+          if (s > bestScore) {
+            bestScore = s;
+            best = i;
+          }
+        }
+        back[t*N+j] = best;
+        next[j] = bestScore + (c[t] < 0 ? 0 : logB[j*numSymbols+c[t]]);
+      }
+      double[] x = score; score = next; next = x;
+    }
+    int last = 0;
+    for (int i = 1; i < N; i++)
+      if (score[i] > score[last])
+        last = i;
+    if (logProb != null)
+      logProb[0] = score[last];
+    path[T-1] = last;
+    for (int t = T-1; t > 0; t--)
+      path[t-1] = back[t*N+path[t]];
+    return path;
+  }
+
+  /* Expected counts from one or more sequences */
+  private static class Counts
+  {
+    double[] pi, trans, emit, stateTotal, transTotal;
+    double logLik = 0;
+    int numSequences = 0;
+    Counts(int N, int M)
+    {
+      pi = new double[N];
+      trans = new double[N*N];
+      emit = new double[N*M];
+      stateTotal = new double[N];	//expected occupancy over observations in the alphabet
+      transTotal = new double[N];	//expected occupancy over t < T-1
+    }
+    void add(Counts x)
+    {
+      for (int k = 0; k < pi.length; k++) pi[k] += x.pi[k];
+      for (int k = 0; k < trans.length; k++) trans[k] += x.trans[k];
+      for (int k = 0; k < emit.length; k++) emit[k] += x.emit[k];
+      for (int k = 0; k < stateTotal.length; k++) stateTotal[k] += x.stateTotal[k];
+      for (int k = 0; k < transTotal.length; k++) transTotal[k] += x.transTotal[k];
+      logLik += x.logLik;
+      numSequences += x.numSequences;
+    }
+  }
+
+  /* E-step for one sequence: forward pass, then one backward sweep accumulating all expected counts */
+  private Counts expectedCounts(int[] o)
+  {
+    int N = numStates, M = numSymbols, T = o.length;
+    Counts cnt = new Counts(N, M);
+    if (T == 0)
+      return cnt;
+    int[] c = encode(o);
+    double[] fwd = new double[T*N], scale = new double[T];
+    double logLik = forward(c, fwd, scale);
+    if (logLik == Double.NEGATIVE_INFINITY) {
+      cnt.logLik = logLik;
+      return cnt;
+    }
+    cnt.logLik = logLik;
+    cnt.numSequences = 1;
+    double[] beta = new double[N], next = new double[N], tmp = new double[N];
+    Arrays.fill(next, 1.0);
+    for (int t = T-1; t >= 0; t--) {
+      int row = t*N;
+      if (t < T-1) {
+        for (int j = 0; j < N; j++)
+          tmp[j] = emission(j, c[t+1]) * next[j] / scale[t+1];
+        for (int i = 0; i < N; i++) {
+          double f = fwd[row+i], s = 0;
+          int ai = i*N;
+          for (int j = 0; j < N; j++) {
+            double x = a[ai+j] * tmp[j];
+            s += x;
+            cnt.trans[ai+j] += f * x;
+          }
+          beta[i] = s;
+        }
+        double[] x = next; next = beta; beta = x;
+      }
+      //next now holds the scaled backward variables for time t
+      for (int i = 0; i < N; i++) {
+        double g = fwd[row+i] * next[i];
+        if (c[t] >= 0) {
+          cnt.emit[i*M+c[t]] += g;
+          cnt.stateTotal[i] += g;
+        }
+        if (t < T-1)
+          cnt.transTotal[i] += g;
+        if (t == 0)
+          cnt.pi[i] += g;
+      }
+    }
+    return cnt;
+  }
+
+  /**
+   * Baum-Welch training on several observation sequences
+   *
+   * @param sequences	observation sequences (treated as independent)
+   * @param steps		maximum number of iterations
+   * @param tolerance	stop when the log-likelihood improves by less than this
+   * @return			log-likelihood of the sequences under the model before the final update
+   */
+  public double baumWelch(final List<int[]> sequences, int steps, double tolerance)
+  {
+    ExecutorService exec = numThreads > 1 && sequences.size() > 1 ? Executors.newFixedThreadPool(Math.min(numThreads, sequences.size())) : null;
+    try {
+      double prevLogLik = Double.NEGATIVE_INFINITY;
+      for (int s = 0; s < steps; s++) {
+        Counts total = new Counts(numStates, numSymbols);
+        if (exec == null) {
+          for (int[] o : sequences)
+            total.add(expectedCounts(o));
+        } else {
+          List<Future<Counts>> futures = new ArrayList<Future<Counts>>();
+          for (final int[] o : sequences)
+            futures.add(exec.submit(new Callable<Counts>() {
+              public Counts call() { return expectedCounts(o); }
+            }));
+          for (Future<Counts> f : futures)
+            total.add(f.get());
+        }
+        if (total.numSequences == 0)
+          throw new IllegalArgumentException("No observation sequence is possible under the model");
+        lastLogLikelihood = total.logLik;
+        update(total);
+        if (s > 0 && total.logLik - prevLogLik < tolerance)
+          break;
+        prevLogLik = total.logLik;
+      }
+      return lastLogLikelihood;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (exec != null)
+        exec.shutdown();
+    }
+  }
+
+  /* M-step; rows with no expected occupancy keep their previous values */
+  private void update(Counts cnt)
+  {
+    int N = numStates, M = numSymbols;
+    for (int i = 0; i < N; i++)
+      pi[i] = cnt.pi[i] / cnt.numSequences;
+    for (int i = 0; i < N; i++) {
+      if (cnt.transTotal[i] > 0)
+        for (int j = 0; j < N; j++)
+          a[i*N+j] = cnt.trans[i*N+j] / cnt.transTotal[i];
+      if (cnt.stateTotal[i] > 0)
+        for (int k = 0; k < M; k++)
+          b[i*M+k] = cnt.emit[i*M+k] / cnt.stateTotal[i];
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package org.seqcode.ml.hmm.unittests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+import org.seqcode.ml.hmm.HMM;
+import org.seqcode.ml.hmm.HMMEngine;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks HMMEngine against the unscaled forward-backward, xi and gamma of HMM, the Viterbi recursion HMM used
+ * before it delegated to the engine, and brute-force enumeration of state paths.
+ */
+public class TestHMMEngine
+{
+  private static final int N = 3, M = 4;
+
+  private static HMM randomHMM(long seed)
+  {
+    HMM hmm = new HMM(N, M);
+    new HMMEngine(N, new int[]{0, 1, 2, 3}, seed).copyTo(hmm);
+    return hmm;
+  }
+
+  private static int[] randomSequence(Random rand, int T)
+  {
+    int[] o = new int[T];
+    for (int t = 0; t < T; t++)
+      o[t] = rand.nextInt(M);
+    return o;
+  }
+
+  @Test public void testLogLikelihood()
+  {
+    Random rand = new Random(3);
+    for (int trial = 0; trial < 20; trial++) {
+      HMM hmm = randomHMM(trial);
+      int[] o = randomSequence(rand, 1 + rand.nextInt(60));
+      double[][] fwd = hmm.forwardProc(o);
+      double p = 0;
+      for (int i = 0; i < N; i++)
+        p += fwd[i][o.length-1];
+      assertEquals(Math.log(p), hmm.logLikelihood(o), 1e-9 * Math.abs(Math.log(p)));
+    }
+    //the unscaled forward pass underflows on long sequences; the scaled one does not
+    HMM hmm = randomHMM(99);
+    int[] o = randomSequence(rand, 20000);
+    double ll = hmm.logLikelihood(o);
+    assertFalse(Double.isInfinite(ll) || Double.isNaN(ll));
+    assertTrue(ll < 0);
+  }
+
+  @Test public void testPosterior()
+  {
+    Random rand = new Random(5);
+    for (int trial = 0; trial < 10; trial++) {
+      HMM hmm = randomHMM(trial);
+      int[] o = randomSequence(rand, 1 + rand.nextInt(60));
+      double[][] fwd = hmm.forwardProc(o), bwd = hmm.backwardProc(o);
+      double[][] post = new HMMEngine(hmm).posterior(o);
+      for (int t = 0; t < o.length; t++)
+        for (int i = 0; i < N; i++)
+          assertEquals(hmm.gamma(i, t, o, fwd, bwd), post[t][i], 1e-9);
+    }
+  }
+
+  @Test public void testViterbi()
+  {
+    Random rand = new Random(7);
+    //brute force over all state paths of short sequences
+    for (int trial = 0; trial < 20; trial++) {
+      HMM hmm = randomHMM(trial);
+      int[] o = randomSequence(rand, 1 + rand.nextInt(7));
+      int T = o.length;
+      int[] path = new int[T], best = null;
+      double bestLog = Double.NEGATIVE_INFINITY;
+      for (int code = 0; code < Math.pow(N, T); code++) {
+        int c = code;
+        for (int t = 0; t < T; t++) {
+          path[t] = c % N;
+          c /= N;
+        }
+        double lp = Math.log(hmm.pi[path[0]]) + Math.log(hmm.b[path[0]][o[0]]);
+        for (int t = 1; t < T; t++)
+          lp += Math.log(hmm.a[path[t-1]][path[t]]) + Math.log(hmm.b[path[t]][o[t]]);
+        if (lp > bestLog) {
+          bestLog = lp;
+          best = path.clone();
+        }
+      }
+      double[] logProb = new double[1];
+      assertArrayEquals(best, new HMMEngine(hmm).viterbi(o, logProb));
+      assertEquals(bestLog, logProb[0], 1e-9);
+    }
+    //the old negative-log recursion on longer sequences
+    for (int trial = 0; trial < 10; trial++) {
+      HMM hmm = randomHMM(100 + trial);
+      int[] o = randomSequence(rand, 300);
+      double[][] expected = oldViterbi(hmm, o), actual = hmm.viterbi(o);
+      assertEquals(expected[0][0], actual[0][0], 1e-9 * expected[0][0]);
+      assertArrayEquals(expected[1], actual[1], 0.0);
+    }
+  }
+
+  /* HMM.viterbi before it used the engine, with the final-state search starting at state 0 */
+  private static double[][] oldViterbi(HMM hmm, int[] o)
+  {
+    int T = o.length, numStates = hmm.numStates;
+    int min_state;
+    double min_weight, weight;
+    int[] Q = new int[T];
+    int[][] sTable = new int[numStates][T];
+    double[][] aTable = new double[numStates][T];
+    double[][] answer = new double[2][T];
+
+    for (int i = 0; i < numStates; i++) {
+      aTable[i][0] = -1*Math.log(hmm.pi[i]) - Math.log(hmm.b[i][o[0]]);
+      sTable[i][0] = 0;
+    }
+    for (int t = 1; t < T; t++) {
+      for (int j = 0; j < numStates; j++) {
+        min_weight = aTable[0][t-1] - Math.log(hmm.a[0][j]);
+        min_state = 0;
+        for (int i = 1; i < numStates; i++) {
+          weight = aTable[i][t-1] - Math.log(hmm.a[i][j]);
+          if (weight < min_weight) {
+            min_weight = weight;
+            min_state = i;
+          }
+        }
+        aTable[j][t] = min_weight - Math.log(hmm.b[j][o[t]]);
+        sTable[j][t] = min_state;
+      }
+    }
+    min_weight = aTable[0][T-1];
+    min_state = 0;
+    for (int i = 1; i < numStates; i++) {
+      if (aTable[i][T-1] < min_weight) {
+        min_weight = aTable[i][T-1];
+        min_state = i;
+      }
+    }
+    Q[T-1] = min_state;
+    for (int t = T-2; t >= 0; t--)
+      Q[t] = sTable[Q[t+1]][t+1];
+    answer[0][0] = min_weight;
+    for (int i = 0; i < T; i++)
+      answer[1][i] = Q[i];
+    return answer;
+  }
+
+  @Test public void testBaumWelchStep()
+  {
+    Random rand = new Random(11);
+    for (int trial = 0; trial < 10; trial++) {
+      HMM hmm = randomHMM(trial);
+      List<int[]> seqs = new ArrayList<int[]>();
+      for (int s = 0; s < 1 + trial % 4; s++)
+        seqs.add(randomSequence(rand, 2 + rand.nextInt(50)));
+
+      //expected counts from the unscaled xi and gamma, pooled over the sequences
+      double[] pi1 = new double[N];
+      double[][] aNum = new double[N][N], bNum = new double[N][M];
+      double[] aDenom = new double[N], bDenom = new double[N];
+      double ll = 0;
+      for (int[] o : seqs) {
+        int T = o.length;
+        double[][] fwd = hmm.forwardProc(o), bwd = hmm.backwardProc(o);
+        double p = 0;
+        for (int i = 0; i < N; i++)
+          p += fwd[i][T-1];
+        ll += Math.log(p);
+        for (int i = 0; i < N; i++) {
+          pi1[i] += hmm.gamma(i, 0, o, fwd, bwd) / seqs.size();
+          for (int t = 0; t < T; t++) {
+            double g = hmm.gamma(i, t, o, fwd, bwd);
+            bNum[i][o[t]] += g;
+            bDenom[i] += g;
+            if (t < T-1) {
+              aDenom[i] += g;
+              for (int j = 0; j < N; j++)
+                aNum[i][j] += hmm.xi(t, i, j, o, fwd, bwd);
+            }
+          }
+        }
+      }
+
+      for (int threads : new int[]{1, 3}) {
+        HMM trained = randomHMM(trial);
+        assertEquals(ll, trained.baumWelch(seqs, 1, threads), 1e-9 * Math.abs(ll));
+        for (int i = 0; i < N; i++) {
+          assertEquals(pi1[i], trained.pi[i], 1e-9);
+          for (int j = 0; j < N; j++)
+            assertEquals(aNum[i][j] / aDenom[i], trained.a[i][j], 1e-9);
+          for (int k = 0; k < M; k++)
+            assertEquals(bNum[i][k] / bDenom[i], trained.b[i][k], 1e-9);
+        }
+      }
+    }
+  }
+
+  @Test public void testSparseAlphabet()
+  {
+    Random rand = new Random(13);
+    int[] alphabet = {3, 17, 42, 64};
+    List<int[]> seqs = new ArrayList<int[]>();
+    for (int s = 0; s < 3; s++) {
+      int[] o = new int[100];
+      for (int t = 0; t < o.length; t++)
+        o[t] = alphabet[rand.nextInt(alphabet.length)];
+      seqs.add(o);
+    }
+    HMMEngine sparse = HMMEngine.forObservations(N, seqs, 17);
+    assertArrayEquals(alphabet, sparse.getAlphabet());
+    //the same model over the dense vocabulary 0..64
+    HMM hmm = new HMM(N, 65);
+    sparse.copyTo(hmm);
+    HMMEngine dense = new HMMEngine(hmm);
+    for (int[] o : seqs)
+      assertEquals(dense.logLikelihood(o), sparse.logLikelihood(o), 1e-9);
+    sparse.baumWelch(seqs, 3, Double.NEGATIVE_INFINITY);
+    dense.baumWelch(seqs, 3, Double.NEGATIVE_INFINITY);
+    for (int i = 0; i < N; i++) {
+      for (int j = 0; j < N; j++)
+        assertEquals(dense.getTransition(i, j), sparse.getTransition(i, j), 1e-12);
+      for (int k : alphabet)
+        assertEquals(dense.getEmission(i, k), sparse.getEmission(i, k), 1e-12);
+    }
+    //symbols outside the alphabet are uninformative
+    assertEquals(1.0, sparse.getEmission(0, 5), 0.0);
+  }
+
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("org.seqcode.ml.hmm.unittests.TestHMMEngine");
+  }
+}
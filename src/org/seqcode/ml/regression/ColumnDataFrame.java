@@ -0,0 +1,180 @@
+package org.seqcode.ml.regression;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+import org.seqcode.gseutils.models.Model;
+
+/**
+ * ColumnDataFrame is a column-oriented counterpart to DataFrame: each column is a primitive
+ * double[] (numeric) or String[] (factor) array, and a name-to-index schema locates columns.
+ * Missing numeric values are NaN.
+ *
+ * Predictors, Predicted and DataRegression work on ColumnDataFrames. A Model-based DataFrame
+ * is converted with fromModels(), which reads each field of each row once by reflection.
+ */
+public class ColumnDataFrame {
+
+	private int size;
+	private Map<String,Integer> schema;
+	private ArrayList<double[]> numeric;
+	private ArrayList<String[]> factors;
+	private ArrayList<String> names;
+
+	/**
+	 * Creates an empty frame with the given number of rows.
+	 *
+	 * @param size
+	 */
+	public ColumnDataFrame(int size) {
+		this.size = size;
+		schema = new LinkedHashMap<String,Integer>();
+		numeric = new ArrayList<double[]>();
+		factors = new ArrayList<String[]>();
+		names = new ArrayList<String>();
+	}
+
+	/**
+	 * Converts a Model-based frame: Number fields become numeric columns (null values become NaN)
+	 * and String fields become factor columns.  Fields of other types are skipped.
+	 *
+	 * @param frame
+	 * @return
+	 */
+	public static <M extends Model> ColumnDataFrame fromModels(DataFrame<M> frame) {
+		ColumnDataFrame cf = new ColumnDataFrame(frame.size());
+		Class<M> cls = frame.getModelClass();
+		for(String name : frame.getFields()) {
+			Field f;
+			try {
+				f = cls.getField(name);
+			} catch (NoSuchFieldException e) {
+				continue;
+			}
+			Class<?> type = f.getType();
+			try {
+				if(Model.isSubclass(type, Number.class)) {
+					double[] values = new double[frame.size()];
+					for(int i = 0; i < values.length; i++) {
+						Number n = (Number)f.get(frame.object(i));
+						values[i] = n == null ? Double.NaN : n.doubleValue();
+					}
+					cf.addColumn(name, values);
+				} else if(Model.isSubclass(type, String.class)) {
+					String[] values = new String[frame.size()];
+					for(int i = 0; i < values.length; i++) {
+						values[i] = (String)f.get(frame.object(i));
+					}
+					cf.addFactor(name, values);
+				}
+			} catch(IllegalAccessException e) {
+				throw new IllegalStateException(String.format("Couldn't access field %s: %s",
+						name, e.getMessage()));
+			}
+		}
+		return cf;
+	}
+
+	/**
+	 * Adds a numeric column; the array is used directly, not copied.
+	 */
+	public ColumnDataFrame addColumn(String name, double[] values) {
+		checkColumn(name, values.length);
+		schema.put(name, names.size());
+		names.add(name);
+		numeric.add(values);
+		factors.add(null);
+		return this;
+	}
+
+	/**
+	 * Adds a factor column; the array is used directly, not copied.
+	 */
+	public ColumnDataFrame addFactor(String name, String[] values) {
+		checkColumn(name, values.length);
+		schema.put(name, names.size());
+		names.add(name);
+		numeric.add(null);
+		factors.add(values);
+		return this;
+	}
+
+	private void checkColumn(String name, int length) {
+		if(schema.containsKey(name)) {
+			throw new IllegalArgumentException(String.format("Duplicate column name: %s", name));
+		}
+		if(length != size) {
+			throw new IllegalArgumentException(String.format(
+					"Column %s has %d values; the frame has %d rows", name, length, size));
+		}
+	}
+
+	public int size() { return size; }
+	public int getNumColumns() { return names.size(); }
+	public List<String> getColumnNames() { return Collections.unmodifiableList(names); }
+	public boolean hasColumn(String name) { return schema.containsKey(name); }
+
+	/**
+	 * @return the index of the named column, or -1
+	 */
+	public int columnIndex(String name) {
+		Integer idx = schema.get(name);
+		return idx == null ? -1 : idx;
+	}
+
+	public boolean isNumeric(String name) {
+		int idx = columnIndex(name);
+		return idx != -1 && numeric.get(idx) != null;
+	}
+
+	public boolean isFactor(String name) {
+		int idx = columnIndex(name);
+		return idx != -1 && factors.get(idx) != null;
+	}
+
+	/**
+	 * The backing array of a numeric column (not a copy).
+	 */
+	public double[] column(String name) {
+		int idx = columnIndex(name);
+		if(idx == -1 || numeric.get(idx) == null) {
+			throw new IllegalArgumentException(String.format("Unknown numeric column: %s", name));
+		}
+		return numeric.get(idx);
+	}
+
+	/**
+	 * The backing array of a factor column (not a copy).
+	 */
+	public String[] factor(String name) {
+		int idx = columnIndex(name);
+		if(idx == -1 || factors.get(idx) == null) {
+			throw new IllegalArgumentException(String.format("Unknown factor column: %s", name));
+		}
+		return factors.get(idx);
+	}
+
+	/**
+	 * The sorted distinct non-null values of a factor column.
+	 */
+	public TreeSet<String> factorValues(String name) {
+		TreeSet<String> values = new TreeSet<String>();
+		for(String v : factor(name)) {
+			if(v != null) { values.add(v); }
+		}
+		return values;
+	}
+
+	public double mean(String name) {
+		double[] x = column(name);
+		double sum = 0.0;
+		int count = 0;
+		for(int i = 0; i < x.length; i++) {
+			if(!Double.isNaN(x[i])) {
+				sum += x[i];
+				count += 1;
+			}
+		}
+		return count > 0 ? sum / (double)count : Double.NaN;
+	}
+}
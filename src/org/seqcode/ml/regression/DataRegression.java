@@ -60,6 +60,7 @@ public class DataRegression<M extends Model> {
 	}
 	
 	private DataFrame<M> frame;
+	private ColumnDataFrame columns;
 	private Predicted<M> dataY;
 	private Predictors<M> dataX;
 	
@@ -74,7 +75,19 @@ public class DataRegression<M extends Model> {
 	private Normal ndist;
 	
 	public DataRegression(DataFrame<M> f, String stmt) { 
+		this(f, ColumnDataFrame.fromModels(f), stmt);
+	}
+	
+	/**
+	 * A regression over a columnar frame, e.g. "x ~ y - 1"
+	 */
+	public DataRegression(ColumnDataFrame f, String stmt) { 
+		this(null, f, stmt);
+	}
+	
+	private DataRegression(DataFrame<M> f, ColumnDataFrame cf, String stmt) { 
 		frame = f;
+		columns = cf;
 		engine = new cern.jet.random.engine.DRand();
 		ndist = new Normal(0.0, 1.0, engine);
 		
@@ -87,12 +100,13 @@ public class DataRegression<M extends Model> {
 		dataYVar = vs.get(0);
 		dataXVars = vs.subList(1, vs.size()).toArray(new String[vs.size()-1]);
 		
-		dataY = new Predicted<M>(frame, dataYVar);
-		dataX = new Predictors<M>(frame, dataXVars);
+		dataY = new Predicted<M>(columns, dataYVar);
+		dataX = new Predictors<M>(columns, dataXVars);
 	}
 	
 	public DataRegression(DataFrame<M> f, RegressionModel m) { 
 		frame = f;
+		columns = ColumnDataFrame.fromModels(f);
 		engine = new cern.jet.random.engine.DRand(); 
 		ndist = new Normal(0.0, 1.0, engine);
 		
@@ -110,18 +124,28 @@ public class DataRegression<M extends Model> {
 			dataXVars[i] = ivars.get(i-plus).getName();
 		}
 		
-		dataY = new Predicted<M>(frame, dataYVar);
-		dataX = new Predictors<M>(frame, dataXVars);
+		dataY = new Predicted<M>(columns, dataYVar);
+		dataX = new Predictors<M>(columns, dataXVars);
 	}
 	
 	public void filter(Predicate<M> p) { 
-		frame.filter(p);
+		if(frame == null) { 
+			throw new IllegalStateException("Model filters need a Model-based DataFrame");
+		}
+		frame = frame.filter(p);
+		columns = ColumnDataFrame.fromModels(frame);
+		dataY = new Predicted<M>(columns, dataYVar);
+		dataX = new Predictors<M>(columns, dataXVars);
 	}
 	
 	public void transform(Transformation<M,M> t) {
+		if(frame == null) { 
+			throw new IllegalStateException("Model transformations need a Model-based DataFrame");
+		}
 		frame = frame.transform(t);
-		dataY = new Predicted<M>(frame, dataYVar);
-		dataX = new Predictors<M>(frame, dataXVars);		
+		columns = ColumnDataFrame.fromModels(frame);
+		dataY = new Predicted<M>(columns, dataYVar);
+		dataX = new Predictors<M>(columns, dataXVars);		
 	}
 	
 	public Vector<String> getPredictorNames() { 
@@ -140,6 +164,7 @@ public class DataRegression<M extends Model> {
 	}
 	
 	public DataFrame<M> getFrame() { return frame; }
+	public ColumnDataFrame getColumnFrame() { return columns; }
 	
 	public Map<String,Double> calculateRegression() { 
 		calculate();
@@ -178,11 +203,70 @@ public class DataRegression<M extends Model> {
 	}
 	
 	public void calculate(BitVector selector, Map<String,Transformation<Double,Double>> transforms) {
-		Matrix y = dataY.createVector(selector);
-		Matrix X = dataX.createMatrix(selector, transforms);
+		double[] y = dataY.createArray(selector);
+		double[][] X = dataX.createColumns(selector, transforms);
 		calculate(X, y); 
 	}
 	
+	/**
+	 * Least squares on a column-major design matrix, through the normal equations: 
+	 * X'X and X'y are accumulated column by column and X'X = R'R is factored by Cholesky,
+	 * so no n-by-k Matrix is built.  Falls back to the QR solution if X'X is singular.
+	 * 
+	 * @param X  the design matrix, X[column][row]
+	 * @param y  the predicted values
+	 */
+	public void calculate(double[][] X, double[] y) { 
+		int n = y.length, k = X.length;
+		Matrix XtX = new Matrix(k, k);
+		Matrix Xty = new Matrix(k, 1);
+		for(int a = 0; a < k; a++) { 
+			double[] xa = X[a];
+			for(int b = a; b < k; b++) { 
+				double[] xb = X[b];
+				double sum = 0.0;
+				for(int i = 0; i < n; i++) { sum += xa[i]*xb[i]; }
+				XtX.set(a, b, sum);
+				XtX.set(b, a, sum);
+			}
+			double sum = 0.0;
+			for(int i = 0; i < n; i++) { sum += xa[i]*y[i]; }
+			Xty.set(a, 0, sum);
+		}
+		
+		CholeskyDecomposition chol = new CholeskyDecomposition(XtX);
+		if(!chol.isSPD()) {
+			Matrix Xm = new Matrix(n, k), ym = new Matrix(n, 1);
+			for(int i = 0; i < n; i++) { 
+				ym.set(i, 0, y[i]);
+				for(int a = 0; a < k; a++) { Xm.set(i, a, X[a][i]); }
+			}
+			calculate(Xm, ym);
+			return;
+		}
+		qr = null;
+		Matrix R = chol.getL().transpose();
+		Rinv = R.inverse();
+		Vbeta = Rinv.times(Rinv.transpose());
+		betaHat = chol.solve(Xty);
+		
+		// residuals, in a second pass for accuracy
+		double[] beta = betaHat.getColumnPackedCopy();
+		double mean = 0.0;
+		for(int i = 0; i < n; i++) { mean += y[i]; }
+		mean /= (double)n;
+		double SSE = 0.0, SST = 0.0;
+		for(int i = 0; i < n; i++) { 
+			double yhat = 0.0;
+			for(int a = 0; a < k; a++) { yhat += X[a][i]*beta[a]; }
+			double sseDiff = y[i]-yhat, sstDiff = y[i]-mean;
+			SSE += sseDiff*sseDiff;
+			SST += sstDiff*sstDiff;
+		}
+		s2 = SSE / (double)(n - k);
+		r2 = 1.0 - (SSE / SST);
+	}
+	
 	public static Matrix leastSquares(Matrix X, Matrix y) { 
 		QRDecomposition qr = new QRDecomposition(X);
 		Matrix R = qr.getR();
@@ -311,7 +395,7 @@ public class DataRegression<M extends Model> {
 
 		// n : number of datapoints
 		// k : number of predictors
-		double n = (double)frame.size();
+		double n = (double)getN();
 		double k = (double)dataX.getNumColumns();
 		double coeff = 1.0 / (n - k);
 		
@@ -4,85 +4,58 @@
  */
 package org.seqcode.ml.regression;
 
-import java.util.*;
-
 import org.seqcode.gseutils.BitVector;
 import org.seqcode.gseutils.models.*;
 
-import java.lang.reflect.*;
-
 import Jama.*;
 
 public class Predicted<M extends Model> {
 
-	private DataFrame<M> frame;
-	private Field numericField;
-	
-	public Predicted(DataFrame<M> f, String pfn) { 
-		frame = f;
-		numericField = null;
-		
-		Class<M> mcls = frame.getModelClass();
+	private double[] values;
 
-		try {
-			Field mf = mcls.getField(pfn);
-			Class t = mf.getType();
-			if(Model.isSubclass(t, Number.class)) { 
-				numericField = mf;
-			} else { 
-				throw new IllegalArgumentException(String.format(
-						"Field %s is not numeric", pfn, t.getName()));					
-			}
-			
-		} catch (NoSuchFieldException e) {
-			e.printStackTrace();
+	public Predicted(DataFrame<M> f, String pfn) {
+		this(ColumnDataFrame.fromModels(f), pfn);
+	}
+
+	public Predicted(ColumnDataFrame f, String pfn) {
+		if(!f.hasColumn(pfn)) {
 			throw new IllegalArgumentException(String.format(
-					"Unknown field name: %s", pfn));					
+					"Unknown field name: %s", pfn));
 		}
+		if(!f.isNumeric(pfn)) {
+			throw new IllegalArgumentException(String.format(
+					"Field %s is not numeric", pfn));
+		}
+		values = f.column(pfn);
 	}
-	
-	public Matrix createVector(BitVector selector) {
-		int rows = selector != null ? selector.countOnBits() : frame.size();
-		Matrix m = new Matrix(rows, 1);
-
-		for(int i = 0, j = 0; j < frame.size(); j++) {
-			if(selector == null || selector.isOn(j)) { 
-				M rowValue = frame.object(j);
-				
-				try {
-					Number numValue = (Number)numericField.get(rowValue);
-					m.set(i, 0, numValue.doubleValue());
 
-				} catch (IllegalAccessException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(String.format("Couldn't access field %s: %s", 
-							numericField.getName(), e.getMessage()));
-				}
-				
-				i++;
+	public int size() { return values.length; }
+
+	/**
+	 * The predicted values of the selected rows (all rows if selector is null).
+	 * Without a selector this is the frame's own column, not a copy.
+	 */
+	public double[] createArray(BitVector selector) {
+		if(selector == null) { return values; }
+		double[] y = new double[selector.countOnBits()];
+		for(int i = 0, j = 0; j < values.length; j++) {
+			if(selector.isOn(j)) {
+				y[i++] = values[j];
 			}
 		}
-
-		return m;
+		return y;
 	}
-	
-	public Matrix createVector() { 
-		int rows = frame.size();
-		Matrix m = new Matrix(rows, 1);
 
-		for(int i = 0; i < rows; i++) { 
-			M rowValue = frame.object(i);
-			try {
-				Number numValue = (Number)numericField.get(rowValue);
-				m.set(i, 0, numValue.doubleValue());
-
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
-				throw new IllegalStateException(String.format("Couldn't access field %s: %s", 
-						numericField.getName(), e.getMessage()));
-			}
+	public Matrix createVector(BitVector selector) {
+		double[] y = createArray(selector);
+		Matrix m = new Matrix(y.length, 1);
+		for(int i = 0; i < y.length; i++) {
+			m.set(i, 0, y[i]);
 		}
-
 		return m;
 	}
+
+	public Matrix createVector() {
+		return createVector(null);
+	}
 }
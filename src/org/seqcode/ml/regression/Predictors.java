@@ -10,458 +10,341 @@ import java.util.regex.*;
 import org.seqcode.gseutils.BitVector;
 import org.seqcode.gseutils.models.*;
 
-import java.lang.reflect.*;
-
 import Jama.*;
 
+/**
+ * The design matrix of a regression: an optional intercept, numeric predictors, factor
+ * predictors (one indicator column per non-baseline level) and interactions.  Columns are
+ * read from a ColumnDataFrame; a Model-based DataFrame is converted once, at construction.
+ */
 public class Predictors<M extends Model> {
 
 	private static Pattern interactionPattern = Pattern.compile("([^:]+):(.+)");
-	
-	private DataFrame<M> frame;
+
+	private ColumnDataFrame frame;
 	private boolean hasConstant;
-	
-	private Vector<Field> numeric;  // the list of 'numeric' variables.
-	
-	private Vector<Field> factor;  // the list of factor variables.
-	private Map<Field,Vector<Object>> factorCodes;  // the unique values that can be taken by each factor variable.
-	
+
+	private Vector<String> numeric;  // the list of 'numeric' variables.
+
+	private Vector<String> factor;  // the list of factor variables.
+	private Map<String,Vector<String>> factorCodes;  // the non-baseline values that can be taken by each factor variable.
+
 	// Each interaction is the product of one or more variables, some of which may be factors and the others 'numeric'.
 	private Vector<Interaction> interactions;
-	
-	// Each InteractionValue is a product of values from
-	// the variables in an interaction which are 'factor' variables.  
-	private Map<Interaction,Vector<InteractionValue>> interactionValues;  
-	
+
 	private int cols;
 	private Vector<String> columnNames;
-	
-	public Predictors(DataFrame<M> f, String... fs) { 
+
+	public Predictors(DataFrame<M> f, String... fs) {
+		this(ColumnDataFrame.fromModels(f), fs);
+	}
+
+	public Predictors(ColumnDataFrame f, String... fs) {
 		frame = f;
-		numeric = new Vector<Field>();
-		factor = new Vector<Field>();
+		numeric = new Vector<String>();
+		factor = new Vector<String>();
 		interactions = new Vector<Interaction>();
 		hasConstant = false;
-		factorCodes = new HashMap<Field,Vector<Object>>();
-		interactionValues = new HashMap<Interaction,Vector<InteractionValue>>();
+		factorCodes = new HashMap<String,Vector<String>>();
 		columnNames = new Vector<String>();
 		cols = 0;
-		
-		Class<M> mcls = frame.getModelClass();
+
 		Set<String> seenFields = new HashSet<String>();
-		ModelFieldAnalysis<M> analysis = new ModelFieldAnalysis<M>(f.getModelClass());
-		
-		for(int i = 0; i < fs.length; i++) { 
-			if(seenFields.contains(fs[i])) { 
+
+		for(int i = 0; i < fs.length; i++) {
+			if(seenFields.contains(fs[i])) {
 				throw new IllegalArgumentException(String.format(
 						"Duplicate field name: %s", fs[i]));
 			}
-			
-			if(fs[i].equals("1")) { 
+
+			if(fs[i].equals("1")) {
 				hasConstant = true;
 				cols += 1;
-			} else { 
-				try { 
+			} else {
+				try {
 					Matcher inMatcher = interactionPattern.matcher(fs[i]);
-					Field mf = analysis.findField(fs[i]);
-					if(mf != null) { 
-						Class t = mf.getType();
-						if(Model.isSubclass(t, Number.class)) { 
-							addPredictor(fs[i]);
-						} else if (Model.isSubclass(t, String.class)) { 
-							addFactor(fs[i]);
-						} else { 
-							throw new IllegalArgumentException(String.format(
-									"Field %s is not a regression-ready predictor", fs[i]));
-						}
-
-					} else if (inMatcher.matches()) { 
+					if(frame.isNumeric(fs[i])) {
+						addPredictor(fs[i]);
+					} else if(frame.isFactor(fs[i])) {
+						addFactor(fs[i]);
+					} else if (inMatcher.matches()) {
 						String[] array = fs[i].split(":");
 						addInteraction(array);
-					} else { 
+					} else {
 						throw new IllegalArgumentException(String.format(
-								"Unknown field name: %s", fs[i]));						
+								"Unknown field name: %s", fs[i]));
 					}
-					
-				} catch(NoSuchFieldException e) { 
+
+				} catch(NoSuchFieldException e) {
 					throw new IllegalArgumentException(String.format(
 							"Unknown field name: %s", fs[i]));
 				}
 			}
-			
+
 			seenFields.add(fs[i]);
 		}
-		
-		if(hasConstant) { 
+
+		if(hasConstant) {
 			columnNames.insertElementAt("(Intercept)", 0);
 		}
 	}
-	
+
 	public int size() {
 		return frame.size();
 	}
 
 	public void addConstant() {
-		if(!hasConstant) { 
+		if(!hasConstant) {
 			hasConstant = true;
+			cols += 1;
 			columnNames.insertElementAt("(Intercept)", 0);
 		}
 	}
-	
+
 	public void addInteraction(String... fns) throws NoSuchFieldException {
-		ModelFieldAnalysis<M> mfa = new ModelFieldAnalysis<M>(frame.getModelClass());
-		Field[] fields = mfa.findFields(fns);
-		for(int i = 0; i < fields.length; i++) { 
-			if(fields[i] == null) { throw new NoSuchFieldException(fns[i]); }
+		for(int i = 0; i < fns.length; i++) {
+			if(!frame.isNumeric(fns[i]) && !frame.isFactor(fns[i])) { throw new NoSuchFieldException(fns[i]); }
 		}
-		
-		Interaction inter = new Interaction(fields);
-		
-		if(interactions.contains(inter)) { 
+
+		Interaction inter = new Interaction(fns);
+
+		if(interactions.contains(inter)) {
 			throw new IllegalArgumentException(
 					String.format("Cannot add the same interaction %s twice.", inter.toString()));
 		}
 		interactions.add(inter);
-		
-		String[] factorFields = inter.findFactorFieldNames();
-		Vector<InteractionValue> values = inter.allInteractionValues(factorFields);
-		
-		interactionValues.put(inter, values);
-		cols += values.size();
-		
-		for(InteractionValue value : values) { 
-			String colName = String.format("%s(%s)", inter.toString(), value.toString());
+
+		cols += inter.values.size();
+		for(String value : inter.values) {
+			String colName = String.format("%s(%s)", inter.toString(), value);
 			columnNames.add(colName);
 		}
 	}
-	
-	public void addPredictor(String fn) throws NoSuchFieldException { 
-		Field f = frame.getModelClass().getField(fn);
-		Class t = f.getType();
-		if(Model.isSubclass(t, Double.class)) { 
-			numeric.add(f);
-		} else if (Model.isSubclass(t, Integer.class)) { 
-			numeric.add(f);
-		} else { 
+
+	public void addPredictor(String fn) throws NoSuchFieldException {
+		if(!frame.isNumeric(fn)) {
 			throw new NoSuchFieldException(String.format(
-					"%s is not a numeric field (%s)", fn, t.getName()));
+					"%s is not a numeric field", fn));
 		}
+		numeric.add(fn);
 		cols += 1;
 		columnNames.add(fn);
 	}
-	
-	public Set<String> findFactorValues(String fn) { 
-		TreeSet<String> values = new TreeSet<String>();
-		for(Object v : frame.fieldValues(fn)) { 
-			values.add((String)v);
-		}
-		values.remove(values.first());
+
+	public Set<String> findFactorValues(String fn) {
+		TreeSet<String> values = frame.factorValues(fn);
+		if(!values.isEmpty()) { values.remove(values.first()); }
 		return values;
 	}
-	
+
 	public void addFactor(String fn) throws NoSuchFieldException {
-		Field f = frame.getModelClass().getField(fn);
-		Class t = f.getType();
-		if(Model.isSubclass(t, String.class)) {
+		if(frame.isFactor(fn)) {
 			Set<String> values = findFactorValues(fn);
-			factor.add(f);			
-			//factorCodes.put(f, new Vector(new TreeSet<String>(values)));
-			factorCodes.put(f, new Vector(values));
+			factor.add(fn);
+			factorCodes.put(fn, new Vector<String>(values));
 			cols += values.size();
-			for(String obj : values) { 
+			for(String obj : values) {
 				columnNames.add(String.format("%s(%s)", fn, obj));
 			}
-			
-		} else { 
+
+		} else {
 			throw new IllegalArgumentException(String.format("%s is not a valid factor-field.", fn));
 		}
 	}
-	
+
 	public int getNumColumns() { return cols; }
 	public String getColumnName(int i) { return columnNames.get(i); }
-	
-	public Matrix createMatrix() { 
+
+	public Matrix createMatrix() {
 		return createMatrix(null);
 	}
-	
-	public Matrix createMatrix(BitVector selector) { 
+
+	public Matrix createMatrix(BitVector selector) {
 		return createMatrix(selector, null);
 	}
-	
-	public Matrix createMatrix(BitVector selector, Map<String,Transformation<Double,Double>> transforms) { 
+
+	public Matrix createMatrix(BitVector selector, Map<String,Transformation<Double,Double>> transforms) {
+		double[][] columns = createColumns(selector, transforms);
 		int rows = selector != null ? selector.countOnBits() : frame.size();
-		Matrix m = new Matrix(rows, cols);
-		
-		int cidx = 0;
-		if(hasConstant) { 
-			for(int i = 0, j = 0; j < frame.size(); j++) {
-				if(selector == null || selector.isOn(j)) { 
-					m.set(i, cidx, 1.0);
-					i += 1;
-				}
+		double[][] m = new double[rows][cols];
+		for(int j = 0; j < cols; j++) {
+			double[] c = columns[j];
+			for(int i = 0; i < rows; i++) {
+				m[i][j] = c[i];
 			}
+		}
+		return new Matrix(m, rows, cols);
+	}
+
+	/**
+	 * The design matrix by column, for the selected rows (all rows if selector is null).
+	 * Untransformed numeric columns without a selector are the frame's own arrays, not copies.
+	 */
+	public double[][] createColumns(BitVector selector, Map<String,Transformation<Double,Double>> transforms) {
+		int rows = selector != null ? selector.countOnBits() : frame.size();
+		double[][] m = new double[cols][];
+
+		int cidx = 0;
+		if(hasConstant) {
+			m[cidx] = new double[rows];
+			Arrays.fill(m[cidx], 1.0);
 			cidx += 1;
 		}
 
-		for(Field f : numeric) {
-			Transformation<Double,Double> transform = 
-				transforms != null && transforms.containsKey(f.getName()) ? 
-					transforms.get(f.getName()) : null;
-			
-			for(int i = 0, j = 0; j < frame.size(); j++) {
-				if(selector == null || selector.isOn(j)) { 
-					M rowValue = frame.object(j);
-					try {
-						Double numValue = ((Number)f.get(rowValue)).doubleValue();
-						if(transform != null) { 
-							numValue = transform.transform(numValue);
-						}
-						
-						m.set(i, cidx, numValue);
-
-					} catch (IllegalAccessException e) {
-						e.printStackTrace();
-						throw new IllegalStateException(String.format("Couldn't access field %s: %s", 
-								f.getName(), e.getMessage()));
+		for(String f : numeric) {
+			Transformation<Double,Double> transform =
+				transforms != null && transforms.containsKey(f) ?
+					transforms.get(f) : null;
+			double[] values = frame.column(f);
+
+			if(selector == null && transform == null) {
+				m[cidx] = values;
+			} else {
+				double[] c = new double[rows];
+				for(int i = 0, j = 0; j < values.length; j++) {
+					if(selector == null || selector.isOn(j)) {
+						c[i++] = transform != null ? transform.transform(values[j]) : values[j];
 					}
-					i+=1;
 				}
+				m[cidx] = c;
 			}
 			cidx += 1;
 		}
-		
-		for(Field f : factor) {
-			Vector<Object> factorValues = factorCodes.get(f);
-			for(int i = 0, j = 0; j < frame.size(); j++) {
-				if(selector==null || selector.isOn(j)) { 
-					M rowValue = frame.object(j);
-					try {
-						Object factorValue = f.get(rowValue);
-						int idx = factorValues.indexOf(factorValue);
-						if(idx != -1) { 
-							m.set(i, cidx+idx, 1.0);
-						}
-
-					} catch (IllegalAccessException e) {
-						e.printStackTrace();
-						throw new IllegalStateException(String.format("Couldn't access field %s: %s", 
-								f.getName(), e.getMessage()));
+
+		for(String f : factor) {
+			Vector<String> factorValues = factorCodes.get(f);
+			Map<String,Integer> codes = new HashMap<String,Integer>();
+			for(int k = 0; k < factorValues.size(); k++) {
+				codes.put(factorValues.get(k), k);
+				m[cidx+k] = new double[rows];
+			}
+			String[] values = frame.factor(f);
+			for(int i = 0, j = 0; j < values.length; j++) {
+				if(selector==null || selector.isOn(j)) {
+					Integer idx = values[j] == null ? null : codes.get(values[j]);
+					if(idx != null) {
+						m[cidx+idx][i] = 1.0;
 					}
 					i += 1;
 				}
 			}
-			
+
 			cidx += factorValues.size();
 		}
 
-		for(Interaction in : interactions) { 
-			Vector<InteractionValue> values = interactionValues.get(in);
+		for(Interaction in : interactions) {
+			int nv = in.values.size();
+			for(int k = 0; k < nv; k++) {
+				m[cidx+k] = new double[rows];
+			}
 			for(int i = 0, j = 0; j < frame.size(); j++) {
-				if(selector==null || selector.isOn(j)) { 
-					M rowValue = frame.object(j);
-					InteractionValue inValue = in.calculateInteractionValue(rowValue);
-					Double numValue = in.calculatePredictor(rowValue);
-
-					int idx = values.indexOf(inValue);
-					if(idx != -1) { 
-						m.set(i, cidx+idx, numValue);
+				if(selector==null || selector.isOn(j)) {
+					int idx = in.column(j);
+					if(idx != -1) {
+						m[cidx+idx][i] = in.calculatePredictor(j);
 					}
 					i+=1;
 				}
 			}
-			cidx += values.size();
+			cidx += nv;
 		}
-		
+
 		return m;
 	}
-	
-	private class Interaction { 
-		
-		public Set<Field> fields;
-		
-		public Interaction(Field... fs) { 
-			fields = new HashSet<Field>();
-			for(int i = 0; i < fs.length; i++) { 
-				fields.add(fs[i]);
-			}
-		}
-		
-		public int hashCode() { 
-			int code = 17;
-			for(Field f : fields) { 
-				code += f.hashCode();
-			}
-			code *= 37;
-			return code;
-		}
-		
-		public String toString() {
-			StringBuilder sb = new StringBuilder();
 
-			for(Field f : fields) { 
-				if(isFactorField(f)) { 
-					if(sb.length() > 0) { sb.append(":"); }
-					sb.append(f.getName());
-				}
-			}
-			
-			for(Field f : fields) { 
-				if(!isFactorField(f)) { 
-					if(sb.length() > 0) { sb.append(":"); }
-					sb.append(f.getName());
-				}
-			}
-			
-			return sb.toString();
-		}
-		
-		public boolean equals(Object o) { 
-			if(!(o instanceof Predictors.Interaction)) { return false; }
-			Interaction in = (Interaction)o;
-			if(fields.size() != in.fields.size()) { return false; }
-			for(Field f : fields) { 
-				if(!(in.fields.contains(f))) { 
-					return false; 
-				}
-			}
-			return true;
-		}
-		
-		private boolean isNumericField(Field f) { 
-			return Model.isSubclass(f.getType(), Number.class);
-		}
-		
-		private boolean isFactorField(Field f) { 
-			return Model.isSubclass(f.getType(), String.class);
-		}
-		
-		public InteractionValue calculateInteractionValue(Object o) { 
-			InteractionValue value = new InteractionValue();
-			
-			for(Field f : fields) { 
-				if(isFactorField(f)) {  
-					try {
-						String v = (String) f.get(o);
-						value.values.add(v);
-						
-					} catch (IllegalAccessException e) {
-						e.printStackTrace();
-					}
+	private class Interaction {
+
+		public Vector<String> factorFields, numericFields;
+		// The factor-value combinations, one per column, as "v1_v2"; the first combination is the baseline
+		public Vector<String> values;
+		private Vector<Map<String,Integer>> levelIndex;
+		private int[] radix;
+		private boolean hasBaseline;
+
+		public Interaction(String... fs) {
+			factorFields = new Vector<String>();
+			numericFields = new Vector<String>();
+			for(int i = 0; i < fs.length; i++) {
+				if(factorFields.contains(fs[i]) || numericFields.contains(fs[i])) { continue; }
+				if(frame.isFactor(fs[i])) {
+					factorFields.add(fs[i]);
+				} else {
+					numericFields.add(fs[i]);
 				}
 			}
-			return value;			
-		}
-		
-		public Double calculatePredictor(Object o) {
-			Double value = 1.0;
-			for(Field f : fields) { 
-				if(isNumericField(f)) {  
-					try {
-						Number n = (Number)f.get(o);
-						value *= n.doubleValue();
-					} catch (IllegalAccessException e) {
-						e.printStackTrace();
+
+			levelIndex = new Vector<Map<String,Integer>>();
+			radix = new int[factorFields.size()];
+			values = new Vector<String>();
+			values.add("");
+			for(int f = 0; f < factorFields.size(); f++) {
+				TreeSet<String> levels = frame.factorValues(factorFields.get(f));
+				Map<String,Integer> index = new HashMap<String,Integer>();
+				for(String v : levels) { index.put(v, index.size()); }
+				Vector<String> extended = new Vector<String>();
+				for(String prev : values) {
+					for(String v : levels) {
+						extended.add(prev.length() > 0 ? prev + "_" + v : v);
 					}
 				}
+				levelIndex.add(index);
+				radix[f] = index.size();
+				values = extended;
 			}
-			return value;
-		}
-		
-		public String[] findFactorFieldNames() { 
-			Vector<String> fs = new Vector<String>();
-			for(Field f : fields) { 
-				if(isFactorField(f)) {  
-					fs.add(f.getName());
-				}
-			}
-			return fs.toArray(new String[fs.size()]);
-		}
-		
-		public String[] findNumericFieldNames() { 
-			Vector<String> fs = new Vector<String>();
-			for(Field f : fields) { 
-				if(isNumericField(f)) {  
-					fs.add(f.getName());
-				}
-			}
-			return fs.toArray(new String[fs.size()]);
-		}
-		
-		public Vector<InteractionValue> allInteractionValues(String[] names) { 
-			Vector<InteractionValue> vv = new Vector<InteractionValue>();
-			vv.add(new InteractionValue());
-			
-			String[] ff = findFactorFieldNames();
-			for(int i = 0; i < ff.length; i++) {
-				//Set values = findFactorValues(ff[i]);
-				Set values = frame.fieldValues(ff[i]);
-				
-				vv = appendValues(vv, values);
-			}
-			
+
 			// Analogous to taking out the very first value of a set of factor values.
-			vv.remove(0);
-			
-			return vv;
+			hasBaseline = !factorFields.isEmpty();
+			if(hasBaseline && !values.isEmpty()) { values.remove(0); }
 		}
-		
-		private Vector<InteractionValue> appendValues(Vector<InteractionValue> prev, Set vals) { 
-			Vector<InteractionValue> newv = new Vector<InteractionValue>();
-			for(InteractionValue v : prev) { 
-				newv.addAll(v.extend(vals));
+
+		/**
+		 * The column (within this interaction) that row j contributes to, or -1
+		 */
+		public int column(int row) {
+			int combo = 0;
+			for(int f = 0; f < factorFields.size(); f++) {
+				String v = frame.factor(factorFields.get(f))[row];
+				Integer level = v == null ? null : levelIndex.get(f).get(v);
+				if(level == null) { return -1; }
+				combo = combo * radix[f] + level;
 			}
-			return newv;
-		}
-	}
-	
-	private class InteractionValue { 
-		
-		public Vector values;
-		
-		public InteractionValue() { 
-			values = new Vector();
-		}
-		
-		public InteractionValue(InteractionValue v ) { 
-			values = new Vector(v.values);
-		}
-		
-		public InteractionValue(InteractionValue v, Object o) { 
-			values = new Vector(v.values);
-			values.add(o);
+			return hasBaseline ? combo - 1 : combo;
 		}
-		
-		public Vector<InteractionValue> extend(Set vals) { 
-			Vector<InteractionValue> ivs = new Vector<InteractionValue>();
-			for(Object v : vals) { 
-				ivs.add(new InteractionValue(this, v));
-			}
-			return ivs;
+
+		public int hashCode() {
+			int code = 17;
+			for(String f : factorFields) { code += f.hashCode(); }
+			for(String f : numericFields) { code += f.hashCode(); }
+			code *= 37;
+			return code;
 		}
-		
-		public String toString() { 
+
+		public String toString() {
 			StringBuilder sb = new StringBuilder();
-			for(int i = 0; i < values.size(); i++) { 
-				if(i > 0) { sb.append("_"); }
-				sb.append(values.get(i).toString());
+			for(String f : factorFields) {
+				if(sb.length() > 0) { sb.append(":"); }
+				sb.append(f);
+			}
+			for(String f : numericFields) {
+				if(sb.length() > 0) { sb.append(":"); }
+				sb.append(f);
 			}
 			return sb.toString();
 		}
-		
-		public int hashCode() { 
-			 int code = 17;
-			 for(Object v : values) { code += v.hashCode(); code *= 37; }
-			 return code;
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Predictors.Interaction)) { return false; }
+			Interaction in = (Interaction)o;
+			return new HashSet<String>(factorFields).equals(new HashSet<String>(in.factorFields)) &&
+				new HashSet<String>(numericFields).equals(new HashSet<String>(in.numericFields));
 		}
-		
-		public boolean equals(Object o) { 
-			if(!(o instanceof Predictors.InteractionValue)) { return false; }
-			InteractionValue iv = (InteractionValue)o;
-			if(iv.values.size() != values.size()) { return false; }
-			for(int i = 0; i < values.size(); i++) { 
-				if(!values.get(i).equals(iv.values.get(i))) { return false; }
+
+		public double calculatePredictor(int row) {
+			double value = 1.0;
+			for(String f : numericFields) {
+				value *= frame.column(f)[row];
 			}
-			return true;
+			return value;
 		}
 	}
 
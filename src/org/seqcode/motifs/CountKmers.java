@@ -8,19 +8,25 @@ import org.seqcode.genome.GenomeConfig;
 import org.seqcode.genome.location.Point;
 import org.seqcode.genome.location.Region;
 import org.seqcode.genome.sequence.SequenceGenerator;
-import org.seqcode.genome.sequence.SequenceUtils;
+import org.seqcode.genome.sequence.kmers.DenseKmerCounts;
+import org.seqcode.genome.sequence.kmers.KmerCodec;
+import org.seqcode.genome.sequence.kmers.KmerCounter;
+import org.seqcode.genome.sequence.kmers.KmerCounts;
 import org.seqcode.gsebricks.verbs.location.PointParser;
 import org.seqcode.gsebricks.verbs.location.RegionParser;
 import org.seqcode.gseutils.*;
 
 
 /** Use:
- *   java org.seqcode.motifs.CountKmers --species "$SC;sacCer3" --mink 4 --maxk 6 [--outputcounts] [--includerc] [--topn 100]
+ *   java org.seqcode.motifs.CountKmers --species "$SC;sacCer3" --mink 4 --maxk 6 [--outputcounts] [--includerc] [--topn 100] [--threads 4]
  *
  *   outputcounts: output counts instead of frequencies
  *   includerc: include counts from reverse complement strand too
  *   topn: only output the top N kmers instead of all of them.
  *   table: output frequencies per region
+ *   threads: number of threads to count with
+ *   
+ *   k-mers containing non-ACGT characters (e.g. N) are not counted.
  *
  */
 
@@ -31,24 +37,20 @@ public class CountKmers {
     private GenomeConfig gconfig;
     private List<Region> regions;
     private int win;
-    private List<int[]> counts;
-    private SequenceGenerator seqgen;
+    private KmerCounter counter;
+    private KmerCounts[] counts;
+    private SequenceGenerator<Region> seqgen;
     private boolean outputCounts, includeRC;
     private int topN;
     private boolean fullTable=false;
+    private int numThreads=1;
 
     /* use this if you're going to feed in sequences, but not Regions */
     public void init(int mink, int maxk) {
         this.mink = mink;
         this.maxk = maxk;
-        counts = new ArrayList<int[]>();
-        for (int i = 0; i <= maxk; i++) {
-            int[] l = new int[(4 << ((i-1) * 2))];
-            for (int j = 0; j < l.length; j++) {
-                l[j] = 0;
-            }
-            counts.add(l);
-        }
+        counter = new KmerCounter(mink, maxk, includeRC ? KmerCounter.Strand.BOTH : KmerCounter.Strand.FORWARD);
+        counts = counter.newCounts();
     }
 
     public void parseArgs(String args[]) throws NotFoundException {
@@ -61,6 +63,7 @@ public class CountKmers {
         includeRC = Args.parseFlags(args).contains("includerc");
         fullTable = Args.parseFlags(args).contains("table");
         topN = Args.parseInteger(args,"topn",-1);
+        numThreads = Args.parseInteger(args,"threads",1);
         seqgen = gconfig.getSequenceGenerator();
 
         for(Region r : regions){
@@ -128,146 +131,103 @@ public class CountKmers {
 	}
 
     public void addToCounts(Region r) {
-        String s = seqgen.execute(r);
-        addToCounts(s);
-        if (includeRC) {
-            addToCounts(SequenceUtils.reverseComplement(s));
-        }
+        addToCounts(seqgen.execute(r));
     }
-    public void addToCounts(String s) {
-        char[] chars = s.toCharArray();
-        for (int i = 0; i < chars.length; i++) {
-            if (chars[i] == 'A' || chars[i] == 'a') {
-                chars[i] = 0;
-            } else if (chars[i] == 'C' || chars[i] == 'c') {
-                chars[i] = 1;
-            } else if (chars[i] == 'G' || chars[i] == 'g') {
-                chars[i] = 2;
-            } else {
-                chars[i] = 3;
-            }
-        }
-        for (int k = mink; k <= maxk; k++) {
-            int[] l = counts.get(k);
-            for (int i = 0; i < chars.length - k; i++) {
-                int index = 0;
-                for (int j = 0; j < k; j++) {
-                    char c = chars[i + j];
-                    if (c > 3) {
-                        i += k;
-                        break;
-                    }
-                    index = (index << 2) + c;
-                }
-                l[index]++;
-            }
+    public void addToCounts(CharSequence s) {
+        counter.count(s, counts);
+    }
+    /* counts a batch of sequences, spreading the work over numThreads threads */
+    public void addToCounts(Collection<? extends CharSequence> seqs, int numThreads) {
+        KmerCounter.merge(counts, counter.count(new ArrayList<CharSequence>(seqs), numThreads));
+    }
+    /* counts all the regions, spreading the work over numThreads threads */
+    public void addToCounts(List<Region> regs) {
+        List<String> seqs = new ArrayList<String>();
+        for (Region r : regs) {
+            seqs.add(seqgen.execute(r));
         }
+        KmerCounter.merge(counts, counter.count(seqs, numThreads));
     }
 
     public String indexToString(int index, int k) {
-        char[] out = new char[k];
-        int pos = k - 1;
-        while (pos >= 0) {
-            out[pos--] = (char)(index & 3);
-            index >>= 2;
-        }
-        for (int i = 0; i < out.length; i++) {
-            if (out[i] == 0) {
-                out[i] = 'A';
-            } else if (out[i] == 1) {
-                out[i] = 'C';
-            } else if (out[i] == 2) {
-                out[i] = 'G';
-            } else {
-                out[i] = 'T';
-            }
-        }
-        return new String(out);
+        return KmerCodec.decode(index, k);
     }
 
     public Set<String> getKeySet(int k) {
         HashSet<String> s = new HashSet<String>();
-        int[] l = counts.get(k);
-        for (int i = 0; i < l.length; i++) {
-            if (l[i] > 0) {
-                s.add(indexToString(i,k));
-            }
+        for (long kmer : counts[k].kmers()) {
+            s.add(KmerCodec.decode(kmer,k));
         }
         return s;       
     }
 
     public Map<String,Integer> getCounts(int k) {
-        int[] l = counts.get(k);
+        KmerCounts l = counts[k];
         Map<String,Integer> output = new HashMap<String,Integer>();
-        for (int i = 0; i < l.length; i++) {
-            if (l[i] > 0) {
-                output.put(indexToString(i,k),
-                           l[i]);
-            }
+        for (long kmer : l.kmers()) {
+            output.put(KmerCodec.decode(kmer,k),
+                       l.get(kmer));
         }
         return output;
     }
 
     public int getCount(String key, int k) throws NumberFormatException {
-        char[] chars = key.toCharArray();
-        for (int i = 0; i < chars.length; i++) {
-            if (chars[i] == 'A' || chars[i] == 'a') {
-                chars[i] = 0;
-            } else if (chars[i] == 'C' || chars[i] == 'c') {
-                chars[i] = 1;
-            } else if (chars[i] == 'G' || chars[i] == 'g') {
-                chars[i] = 2;
-            } else {
-                chars[i] = 3;
-            }
+        return counts[k].get(key.substring(0,k));
+    }
+
+    /* k-mer counts for length k, indexed by the 2-bit k-mer code (see KmerCodec) */
+    public KmerCounts getKmerCounts(int k) {
+        return counts[k];
+    }
+
+    /* all counts for length k, including zeros where the k-mers can be enumerated densely */
+    private int[] countArray(int k) {
+        KmerCounts l = counts[k];
+        if (l instanceof DenseKmerCounts) {
+            return ((DenseKmerCounts)l).getArray();
         }
-        int index = 0;
-        for (int j = 0; j < k; j++) {
-            char c = chars[j];
-            if (c > 3) {
-                throw new NumberFormatException("Invalid character in " + key);
-            }
-            index = (index << 2) + c;
+        long[] kmers = l.kmers();
+        int[] array = new int[kmers.length];
+        for (int i = 0; i < kmers.length; i++) {
+            array[i] = l.get(kmers[i]);
         }
-        return counts.get(k)[index];
+        return array;
     }
 
     public int getMinCount(int k) {
         if (topN < 0) {
             return 0;
         }
-        ArrayList<Integer> list = new ArrayList<Integer>();
-        int[] array = counts.get(k);
-        for (int i = 0; i < array.length; i++) {
-            list.add(array[i]);
-        }
-        Collections.sort(list);       
-        if (topN == 0) {
-            return list.get(list.size() - 1) + 1;
+        int[] list = countArray(k).clone();
+        Arrays.sort(list);       
+        if (topN == 0 || list.length == 0) {
+            return list.length == 0 ? 1 : list[list.length - 1] + 1;
         }
 
-        return list.get(list.size() - topN);
+        return list[Math.max(0, list.length - topN)];
     }
 
     public void print(PrintWriter pw) {
         System.err.println(String.format("Printing from %d to %d", mink, maxk));
         for (int k = mink; k <= maxk; k++) {
-            int[] l = counts.get(k);
+            KmerCounts l = counts[k];
             int minCount = getMinCount(k);
-            System.err.println(String.format("Length at %d is %d",k,l.length));
-            long total = 0;
-            for (int i = 0; i < l.length; i++) {
-                total += l[i];
-            }
-            for (int i = 0; i < l.length; i++) {
-                String key = indexToString(i,k);
-                if (l[i] < minCount) {
+            boolean dense = l instanceof DenseKmerCounts;
+            long[] kmers = dense ? null : l.kmers();
+            long n = dense ? KmerCodec.numKmers(k) : kmers.length;
+            System.err.println(String.format("Length at %d is %d",k,n));
+            long total = l.total();
+            for (int i = 0; i < n; i++) {
+                long kmer = dense ? i : kmers[i];
+                int c = l.get(kmer);
+                if (c < minCount) {
                     continue;
                 }
+                String key = KmerCodec.decode(kmer,k);
                 if (outputCounts) {
-                    pw.println(key + "\t" + l[i]);
+                    pw.println(key + "\t" + c);
                 } else {
-                    pw.println(key + "\t" + (((double)l[i]) / ((double)total)));
+                    pw.println(key + "\t" + (((double)c) / ((double)total)));
                 }
             }
         }
@@ -276,9 +236,7 @@ public class CountKmers {
     public static void main(String args[]) throws Exception {
         CountKmers counter = new CountKmers();
         counter.parseArgs(args);
-        for (Region r : counter.regions) {
-            counter.addToCounts(r);
-        }
+        counter.addToCounts(counter.regions);
         PrintWriter pw = new PrintWriter(System.out);
         counter.print(pw);
         pw.close();
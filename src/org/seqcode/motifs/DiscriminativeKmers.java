@@ -2,6 +2,7 @@ package org.seqcode.motifs;
 
 import java.util.*;
 import java.io.*;
+import java.nio.CharBuffer;
 import java.sql.*;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
@@ -19,6 +20,9 @@ import org.seqcode.data.motifdb.*;
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.location.Region;
 import org.seqcode.genome.sequence.SequenceGenerator;
+import org.seqcode.genome.sequence.kmers.KmerCodec;
+import org.seqcode.genome.sequence.kmers.KmerCounter;
+import org.seqcode.genome.sequence.kmers.KmerCounts;
 import org.seqcode.gsebricks.verbs.*;
 import org.seqcode.gseutils.*;
 
@@ -41,6 +45,13 @@ public class DiscriminativeKmers {
     private final static long intmask = 0xffffffffL;
     private final static int maxshift = 3;
     private final static char[] toChar = {'A','C','G','T'};
+    /* forward-strand counter for each k; counters hold no per-call state, so one per k is shared by all calls */
+    private final static KmerCounter[] forwardCounters = new KmerCounter[KmerCodec.MAX_K+1];
+    static {
+        for (int k = 1; k <= KmerCodec.MAX_K; k++) {
+            forwardCounters[k] = new KmerCounter(k,k,KmerCounter.Strand.FORWARD);
+        }
+    }
 
     public static long charsToLong(char[] chars) {
         long out = 0;
@@ -105,47 +116,23 @@ public class DiscriminativeKmers {
         return new String(longToChars(l,k));
     }
     public static  char[] longToChars(long l, int k) {
-        char[] chars = new char[k];
-        while (k-- > 0) {
-            int b = (int)(l & 3);
-            l >>= 2;
-            chars[k] = toChar[b];
-        }
-        return chars;
+        return KmerCodec.decodeChars(l,k);
     }
     public static long reverseComplement(long kmer,
                                          int k) {
-        long out = 0;
-        for (int i = 0; i < k; i++) {
-            byte b = (byte)((kmer ^ 3) & 3);
-            kmer >>= 2;
-            out = (out << 2) | b;
-        }
-        return out;
+        return KmerCodec.reverseComplement(kmer,k);
     }
-    /** returns a map from kmers to their frequency 
-     * in the string.
+    /** adds the kmers in the string to the counts.
+     * kmers that span a non-ACGT character are skipped. 
      */
-    public static Map<Long,Integer> count(char[] chars, 
-                                          int k,
-                                          long mask,
-                                          Map<Long,Integer> map) {
-        if (map == null) {
-            map = new HashMap<Long,Integer>();
-        }
-        long l = 0;
-        for (int i = 0; i < k-1; i++) {
-            l = addChar(l,mask,chars[i]);
-        }
-        for (int i = k; i < chars.length; i++) {
-            l = addChar(l,mask,chars[i]);
-            if (!map.containsKey(l)) {
-                map.put(l,1);
-            } else {
-                map.put(l,map.get(l)+1);
-            }            
+    public static KmerCounts count(char[] chars, 
+                                   int k,
+                                   KmerCounts counts) {
+        if (counts == null) {
+            counts = KmerCounts.create(k);
         }
-        return map;
+        forwardCounters[k].count(CharBuffer.wrap(chars), counts);
+        return counts;
     }
     /** return the number of bases that two kmers have in common.
      */
@@ -433,26 +420,20 @@ public class DiscriminativeKmers {
         }
     }
     public void run() {
-        Map<Long,Integer> fgcounts = new HashMap<Long,Integer>();
-        Map<Long,Integer> bgcounts = new HashMap<Long,Integer>();
+        KmerCounts fgcounts = KmerCounts.create(k);
+        KmerCounts bgcounts = KmerCounts.create(k);
         for (char[] chars : foreground.values()) {
-            count(chars, k, mask, fgcounts);
+            count(chars, k, fgcounts);
         }
         for (char[] chars : background.values()) {
-            count(chars, k, mask, bgcounts);
-        }
-        int fgsum = 0;
-        int bgsum = 0;
-        for (long l : fgcounts.keySet()) {
-            fgsum += fgcounts.get(l);
-        }
-        for (long l : bgcounts.keySet()) {
-            bgsum += bgcounts.get(l);
+            count(chars, k, bgcounts);
         }
+        int fgsum = (int)fgcounts.total();
+        int bgsum = (int)bgcounts.total();
         System.err.println("Read " + fgsum + " kmers from the fg set and " + bgsum + " from the background set");
         List<KmerCount> enriched = new ArrayList<KmerCount>();
-        for (long l : fgcounts.keySet()) {
-            int bgcount = (bgcounts.containsKey(l) ? bgcounts.get(l) : 0) + 1;
+        for (long l : fgcounts.kmers()) {
+            int bgcount = bgcounts.get(l) + 1;
             double bgprob = ((double)bgcount) / ((double)bgsum);
             int fgcount = fgcounts.get(l);
             double fgprob = ((double)fgcount) / ((double)fgsum);
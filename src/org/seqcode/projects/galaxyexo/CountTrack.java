@@ -0,0 +1,160 @@
+package org.seqcode.projects.galaxyexo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.seqcode.deepseq.experiments.Sample;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+import org.seqcode.gseutils.Pair;
+
+/**
+ * Weighted intervals (or points) over a genome, stored per chromosome as sorted start and end
+ * coordinates with cumulative weights, so that the total weight of the features overlapping
+ * any query interval costs two binary searches:
+ *
+ * 		count(s,e) = W(features starting at or before e) - W(features ending before s)
+ *
+ * The prefix arrays are built once and are read-only afterwards, so a CountTrack can be shared
+ * between permutation threads without locking.
+ */
+public class CountTrack {
+	protected Genome genome;
+	protected List<String> chroms;
+	protected Map<String,Integer> chromIndex = new HashMap<String,Integer>();
+	protected int[][] starts, ends;		// sorted coordinates per chromosome
+	protected double[][] startCum, endCum;	// cumulative weights; startCum[c][i] = weight of starts[c][0..i-1]
+	protected double total=0;
+
+	protected CountTrack(Genome g, int[][] s, float[][] sw, int[][] e, float[][] ew){
+		genome = g;
+		chroms = g.getChromList();
+		for(int c=0; c<chroms.size(); c++)
+			chromIndex.put(chroms.get(c), c);
+		starts = s; ends = e;
+		startCum = cumulate(sw);
+		endCum = e==s ? startCum : cumulate(ew);
+		for(int c=0; c<chroms.size(); c++)
+			total += startCum[c][startCum[c].length-1];
+	}
+
+	/**
+	 * Track of the given regions, each with weight one.
+	 */
+	public static CountTrack fromRegions(Genome g, List<Region> regions){
+		List<String> chroms = g.getChromList();
+		Map<String,Integer> index = new HashMap<String,Integer>();
+		for(int c=0; c<chroms.size(); c++)
+			index.put(chroms.get(c), c);
+		int[] n = new int[chroms.size()];
+		for(Region r : regions){
+			Integer c = index.get(r.getChrom());
+			if(c!=null)
+				n[c]++;
+		}
+		int[][] s = new int[chroms.size()][], e = new int[chroms.size()][];
+		float[][] w = new float[chroms.size()][];
+		for(int c=0; c<chroms.size(); c++){
+			s[c] = new int[n[c]]; e[c] = new int[n[c]];
+			w[c] = new float[n[c]];
+			Arrays.fill(w[c], 1.0f);
+			n[c]=0;
+		}
+		for(Region r : regions){
+			Integer c = index.get(r.getChrom());
+			if(c!=null){
+				s[c][n[c]] = r.getStart();
+				e[c][n[c]] = r.getEnd();
+				n[c]++;
+			}
+		}
+		for(int c=0; c<chroms.size(); c++){
+			Arrays.sort(s[c]);
+			Arrays.sort(e[c]);
+		}
+		return new CountTrack(g, s, w, e, w);
+	}
+
+	/**
+	 * Track of the 5' positions of the hits in the given samples (both strands), weighted by hit weight.
+	 */
+	public static CountTrack fromSamples(Genome g, Collection<Sample> samples){
+		List<String> chroms = g.getChromList();
+		int[][] pos = new int[chroms.size()][];
+		float[][] w = new float[chroms.size()][];
+		for(int c=0; c<chroms.size(); c++){
+			int[][] p = new int[samples.size()*2][];
+			float[][] pw = new float[samples.size()*2][];
+			int k=0, n=0;
+			for(Sample s : samples){
+				for(char strand : new char[]{'+','-'}){
+					Pair<int[],float[]> arrays = s.getChromHitArrays(chroms.get(c), strand);
+					p[k] = arrays==null ? new int[0] : arrays.car();
+					pw[k] = arrays==null ? new float[0] : arrays.cdr();
+					n += p[k].length;
+					k++;
+				}
+			}
+			//k-way merge of the already sorted arrays
+			pos[c] = new int[n]; w[c] = new float[n];
+			int[] next = new int[k];
+			for(int i=0; i<n; i++){
+				int best=-1;
+				for(int j=0; j<k; j++)
+					if(next[j]<p[j].length && (best==-1 || p[j][next[j]]<p[best][next[best]]))
+						best=j;
+				pos[c][i] = p[best][next[best]];
+				w[c][i] = pw[best][next[best]];
+				next[best]++;
+			}
+		}
+		return new CountTrack(g, pos, w, pos, w);
+	}
+
+	/* cumulative sums of the (float) weights, accumulated in double */
+	private static double[][] cumulate(float[][] w){
+		double[][] cum = new double[w.length][];
+		for(int c=0; c<w.length; c++){
+			cum[c] = new double[w[c].length+1];
+			for(int i=0; i<w[c].length; i++)
+				cum[c][i+1] = cum[c][i]+w[c][i];
+		}
+		return cum;
+	}
+
+	/* number of values in the sorted array that are <= x */
+	private static int countAtMost(int[] a, int x){
+		int lo=0, hi=a.length;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(a[mid]<=x)
+				lo=mid+1;
+			else
+				hi=mid;
+		}
+		return lo;
+	}
+
+	public Genome getGenome(){return genome;}
+	public List<String> getChroms(){return chroms;}
+	public int getChromIndex(String chrom){
+		Integer c = chromIndex.get(chrom);
+		return c==null ? -1 : c;
+	}
+	public double getTotal(){return total;}
+
+	/**
+	 * Total weight of features overlapping [start,end] (inclusive) on the chromosome with the given index
+	 */
+	public double count(int chrom, int start, int end){
+		if(chrom<0)
+			return 0;
+		return startCum[chrom][countAtMost(starts[chrom], end)] - endCum[chrom][countAtMost(ends[chrom], start-1)];
+	}
+	public double count(Region r){
+		return count(getChromIndex(r.getChrom()), r.getStart(), r.getEnd());
+	}
+}
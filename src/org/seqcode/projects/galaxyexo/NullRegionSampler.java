@@ -0,0 +1,180 @@
+package org.seqcode.projects.galaxyexo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.sequence.SequenceGenerator;
+
+/**
+ * Draws random genomic regions that are matched to a set of observed regions by GC content
+ * and mappability, for use as a permutation null.
+ *
+ * The genome is split into fixed size tiles once, and each tile is assigned to a stratum:
+ * a GC-content bin crossed with a mappability bin. There is no mappability track in this code base,
+ * so mappability is approximated from the sequence itself: the fraction of the tile that is
+ * upper case (i.e. not soft-masked as repeat) and not N. Tiles that are mostly N or that overlap
+ * the blacklist are never drawn. Without sequence, every tile is in one stratum and sampling is
+ * uniform over the (non-blacklisted) genome, as in PointEnrichmentTester.randomRegionPick.
+ *
+ * A null region for an observed region is a tile from the observed region's stratum (or the nearest
+ * non-empty stratum) with a random offset inside it. The tile tables are read-only after construction,
+ * so one sampler can be shared by several threads, each with its own SplittableRandom.
+ */
+public class NullRegionSampler {
+	public static final int GC_BINS = 10, MAP_BINS = 4;
+	protected static final double MIN_CALLED = 0.5;	// tiles with fewer called (non-N) bases are never drawn
+
+	protected Genome genome;
+	protected SequenceGenerator<Region> seqgen;
+	protected List<String> chroms;
+	protected int tileSize;
+	protected int[] chromLengths;
+	protected int[][] tileChrom, tileStart;	// per stratum: chromosome index and start of each tile
+	protected int numStrata;
+
+	/**
+	 * @param g genome
+	 * @param seqgen sequence source used to stratify tiles, or null to sample uniformly
+	 * @param tileSize size of the tiles; null regions start at a random position within a tile
+	 * @param blacklist regions never to be drawn from (may be null)
+	 */
+	public NullRegionSampler(Genome g, SequenceGenerator<Region> seqgen, int tileSize, List<Region> blacklist){
+		genome = g;
+		this.seqgen = seqgen;
+		this.tileSize = tileSize;
+		chroms = g.getChromList();
+		numStrata = seqgen==null ? 1 : GC_BINS*MAP_BINS;
+
+		chromLengths = new int[chroms.size()];
+		List<Region> black = blacklist==null ? new ArrayList<Region>() : Region.mergeRegions(new ArrayList<Region>(blacklist));
+		int[] counts = new int[numStrata];
+		List<int[]> tiles = new ArrayList<int[]>();	// chrom, start, stratum
+		for(int c=0; c<chroms.size(); c++){
+			String chrom = chroms.get(c);
+			chromLengths[c] = g.getChromLength(chrom);
+			List<Region> chromBlack = new ArrayList<Region>();
+			for(Region b : black)
+				if(b.getChrom().equals(chrom))
+					chromBlack.add(b);
+			Collections.sort(chromBlack);
+			int b=0;
+			for(int start=1; start+tileSize-1<=chromLengths[c]; start+=tileSize){
+				int end = start+tileSize-1;
+				//merged blacklist regions have increasing ends, so one pass finds all overlaps
+				while(b<chromBlack.size() && chromBlack.get(b).getEnd()<start)
+					b++;
+				if(b<chromBlack.size() && chromBlack.get(b).getStart()<=end)
+					continue;
+				int s = 0;
+				if(seqgen!=null){
+					s = stratumOf(new Region(g, chrom, start, end));
+					if(s<0)
+						continue;
+				}
+				tiles.add(new int[]{c, start, s});
+				counts[s]++;
+			}
+		}
+		tileChrom = new int[numStrata][];
+		tileStart = new int[numStrata][];
+		for(int s=0; s<numStrata; s++){
+			tileChrom[s] = new int[counts[s]];
+			tileStart[s] = new int[counts[s]];
+			counts[s]=0;
+		}
+		for(int[] t : tiles){
+			tileChrom[t[2]][counts[t[2]]] = t[0];
+			tileStart[t[2]][counts[t[2]]] = t[1];
+			counts[t[2]]++;
+		}
+	}
+
+	/**
+	 * Stratum of a region, from its GC content and mappability, or -1 if it's mostly N.
+	 * Always 0 when the sampler was built without sequence.
+	 */
+	public int stratumOf(Region r){
+		if(seqgen==null)
+			return 0;
+		String seq = seqgen.execute(r);
+		int gc=0, called=0, unique=0;
+		for(int i=0; i<seq.length(); i++){
+			char b = seq.charAt(i);
+			switch(b){
+			case 'G': case 'C': gc++; called++; unique++; break;
+			case 'A': case 'T': called++; unique++; break;
+			case 'g': case 'c': gc++; called++; break;
+			case 'a': case 't': called++; break;
+			default: break;
+			}
+		}
+		if(called==0 || called < MIN_CALLED*seq.length())
+			return -1;
+		int gcBin = Math.min(GC_BINS-1, (int)(GC_BINS*(double)gc/called));
+		int mapBin = Math.min(MAP_BINS-1, (int)(MAP_BINS*(double)unique/seq.length()));
+		return gcBin*MAP_BINS + mapBin;
+	}
+
+	/**
+	 * The non-empty stratum closest to s (by GC and mappability bin), to use for regions whose own
+	 * stratum has no tiles. Mostly-N regions (s=-1) are matched to the largest stratum.
+	 */
+	public int nearestStratum(int s){
+		if(s>=0 && tileChrom[s].length>0)
+			return s;
+		int best=-1;
+		double bestDist = Double.MAX_VALUE;
+		for(int t=0; t<numStrata; t++){
+			if(tileChrom[t].length==0)
+				continue;
+			double d = s<0 ? -tileChrom[t].length :
+				Math.abs(t/MAP_BINS - s/MAP_BINS) + Math.abs(t%MAP_BINS - s%MAP_BINS)/(double)(MAP_BINS+1);
+			if(d<bestDist){
+				bestDist=d;
+				best=t;
+			}
+		}
+		if(best<0)
+			throw new IllegalStateException("No genome tiles available for sampling");
+		return best;
+	}
+
+	/**
+	 * Stratum to draw each region's null counterparts from
+	 */
+	public int[] matchStrata(List<Region> regions){
+		int[] strata = new int[regions.size()];
+		for(int i=0; i<regions.size(); i++)
+			strata[i] = nearestStratum(stratumOf(regions.get(i)));
+		return strata;
+	}
+
+	public List<String> getChroms(){return chroms;}
+	public int getNumStrata(){return numStrata;}
+	public int getNumTiles(int stratum){return tileChrom[stratum].length;}
+
+	/**
+	 * Draws a region of the given width from the given stratum. The chromosome index (into getChroms())
+	 * and start are written to out, so the permutation inner loop doesn't allocate.
+	 */
+	public void sample(SplittableRandom rand, int stratum, int width, int[] out){
+		int t = rand.nextInt(tileChrom[stratum].length);
+		int c = tileChrom[stratum][t];
+		int start = tileStart[stratum][t] + rand.nextInt(tileSize);
+		out[0] = c;
+		out[1] = Math.max(1, Math.min(start, chromLengths[c]-width+1));
+	}
+
+	/**
+	 * Draws a region matched to the given stratum and width
+	 */
+	public Region sample(SplittableRandom rand, int stratum, int width){
+		int[] out = new int[2];
+		sample(rand, stratum, width, out);
+		return new Region(genome, chroms.get(out[0]), out[1], out[1]+width-1);
+	}
+}
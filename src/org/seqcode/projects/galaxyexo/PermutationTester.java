@@ -0,0 +1,168 @@
+package org.seqcode.projects.galaxyexo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.seqcode.genome.location.Region;
+
+/**
+ * Permutation test for the enrichment of a CountTrack in a set of regions. The statistic is the
+ * total track weight overlapping the regions; the null distribution comes from re-drawing every region
+ * (same width, GC/mappability stratum) with a NullRegionSampler and recomputing the statistic.
+ *
+ * Permutations run in batches on a thread pool. Each permutation gets its own SplittableRandom,
+ * split in order from one seeded root, so the null statistics (and the p-value) are the same
+ * whatever the number of threads. After each batch the empirical p-value, (exceed+1)/(n+1), is
+ * checked against alpha and the test stops early once a z-interval around it no longer contains alpha.
+ */
+public class PermutationTester {
+	protected CountTrack track;
+	protected NullRegionSampler sampler;
+	protected int numThreads = 1;
+	protected int minPermutations = 100;
+	protected int maxPermutations = 10000;
+	protected int batchSize = 100;
+	protected double alpha = 0.05;
+	protected double stopZ = 2.576;	// 99% interval for the early stopping check
+	protected long seed = 1;
+
+	public PermutationTester(CountTrack track, NullRegionSampler sampler){
+		this.track = track;
+		this.sampler = sampler;
+	}
+
+	public void setThreads(int t){numThreads=Math.max(1, t);}
+	public void setMinPermutations(int m){minPermutations=m;}
+	public void setMaxPermutations(int m){maxPermutations=m;}
+	public void setBatchSize(int b){batchSize=Math.max(1, b);}
+	public void setAlpha(double a){alpha=a;}
+	public void setSeed(long s){seed=s;}
+
+	/**
+	 * Outcome of a test
+	 */
+	public static class Result {
+		protected double observed;
+		protected double[] nullStats;
+		protected int exceed;
+		protected boolean stoppedEarly;
+
+		public double getObserved(){return observed;}
+		/** null statistics, one per permutation run */
+		public double[] getNullStats(){return nullStats;}
+		public int getNumPermutations(){return nullStats.length;}
+		/** number of permutations with a statistic at least as large as the observed one */
+		public int getNumExceeding(){return exceed;}
+		public boolean stoppedEarly(){return stoppedEarly;}
+		public double getPValue(){return (exceed+1.0)/(nullStats.length+1.0);}
+		public double getNullMean(){
+			double sum=0;
+			for(double d : nullStats)
+				sum+=d;
+			return nullStats.length==0 ? 0 : sum/nullStats.length;
+		}
+		public double getNullSD(){
+			double mean = getNullMean(), ss=0;
+			for(double d : nullStats)
+				ss+=(d-mean)*(d-mean);
+			return nullStats.length<2 ? 0 : Math.sqrt(ss/(nullStats.length-1));
+		}
+	}
+
+	/**
+	 * Observed statistic: total track weight overlapping the regions
+	 */
+	public double observed(List<Region> regions){
+		double obs=0;
+		for(Region r : regions)
+			obs += track.count(r);
+		return obs;
+	}
+
+	/**
+	 * Run the test on the given regions
+	 */
+	public Result test(List<Region> regions){
+		int n = regions.size();
+		final int[] strata = sampler.matchStrata(regions);
+		final int[] widths = new int[n];
+		for(int i=0; i<n; i++)
+			widths[i] = regions.get(i).getWidth();
+		final int[] trackChrom = new int[sampler.getChroms().size()];
+		for(int c=0; c<trackChrom.length; c++)
+			trackChrom[c] = track.getChromIndex(sampler.getChroms().get(c));
+
+		Result result = new Result();
+		result.observed = observed(regions);
+		final double[] nullStats = new double[maxPermutations];
+		SplittableRandom root = new SplittableRandom(seed);
+		int done=0, exceed=0;
+		boolean stop=false;
+
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try{
+			while(done<maxPermutations && !stop){
+				int batchEnd = Math.min(maxPermutations, done+batchSize);
+				//Split the generators here, in permutation order, so results don't depend on scheduling
+				final SplittableRandom[] rngs = new SplittableRandom[batchEnd-done];
+				for(int p=0; p<rngs.length; p++)
+					rngs[p] = root.split();
+				final int batchStart = done;
+				int chunk = (rngs.length+numThreads-1)/numThreads;
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for(int from=0; from<rngs.length; from+=chunk){
+					final int f = from, t = Math.min(rngs.length, from+chunk);
+					futures.add(exec.submit(new Callable<Void>(){
+						public Void call(){
+							int[] draw = new int[2];
+							for(int p=f; p<t; p++){
+								double stat=0;
+								for(int i=0; i<strata.length; i++){
+									sampler.sample(rngs[p], strata[i], widths[i], draw);
+									stat += track.count(trackChrom[draw[0]], draw[1], draw[1]+widths[i]-1);
+								}
+								nullStats[batchStart+p] = stat;
+							}
+							return null;
+						}
+					}));
+				}
+				for(Future<?> fut : futures){
+					try{
+						fut.get();
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					}catch(ExecutionException e){
+						throw new RuntimeException(e.getCause());
+					}
+				}
+				for(int p=done; p<batchEnd; p++)
+					if(nullStats[p]>=result.observed)
+						exceed++;
+				done = batchEnd;
+
+				//Early stopping: is the p-value clearly on one side of alpha?
+				if(done>=minPermutations && done<maxPermutations){
+					double pv = (exceed+1.0)/(done+1.0);
+					double se = Math.sqrt(pv*(1-pv)/done);
+					if(pv-stopZ*se>alpha || pv+stopZ*se<alpha)
+						stop=true;
+				}
+			}
+		}finally{
+			exec.shutdown();
+		}
+		result.nullStats = new double[done];
+		System.arraycopy(nullStats, 0, result.nullStats, 0, done);
+		result.exceed = exceed;
+		result.stoppedEarly = done<maxPermutations;
+		return result;
+	}
+}
@@ -14,6 +14,7 @@ import org.seqcode.genome.GenomeConfig;
 import org.seqcode.genome.location.NamedRegion;
 import org.seqcode.genome.location.Point;
 import org.seqcode.genome.location.Region;
+import org.seqcode.genome.sequence.SequenceGenerator;
 import org.seqcode.gsebricks.verbs.location.ChromRegionIterator;
 import org.seqcode.gseutils.ArgParser;
 import org.seqcode.gseutils.Args;
@@ -23,15 +24,17 @@ import cern.jet.random.engine.DRand;
 
 /**
  * Utility to access peak enrichment at a set of genomic regions.  Statistical significance
- * of peak enrichment over the set of sites is accessed using Poisson model.  The null 
- * distribution comes from randomly placed peaks thought a genome.  
+ * of peak enrichment over the set of sites is accessed using Poisson model and an empirical
+ * permutation p-value.  The null distribution comes from randomly placing the regions through
+ * the genome (matched for GC content and mappability when the genome sequence is given), 
+ * evaluated in parallel by PermutationTester.  
  * 
  * Input:
  * 		- Genome
  * 		- GFF file of peak locations
  *		- A set of genomic regions to test peak enrichment
  * Output:
- * 		- A text file indicating the number of overlap and Poisson p-value.
+ * 		- A text file indicating the number of overlap, Poisson p-value and empirical p-value.
  * 
  * @author naomi yamada
  */
@@ -42,7 +45,12 @@ public class PointEnrichmentTester {
 	protected List<Point> gff;
 	protected List<Region> regions;
 	protected int ext; //distance to expand so that I don't double count points
-	protected int numItr = 1000;
+	protected int numItr = 1000; // maximum number of permutations
+	protected int minItr = 100; // permutations to run before stopping early
+	protected double alpha = 0.05; // stop early once the empirical p-val is clearly above or below alpha
+	protected int numThreads = 1;
+	protected long seed = 1;
+	protected int tileSize = 1000; // genome tile size for drawing matched random regions
 	protected Poisson poisson;
 	protected int pseudocounts; // noise added to prevent calling significance in telomere regions
 	protected boolean printRandOverlap = false; // flag to print number of random overlap
@@ -59,6 +67,11 @@ public class PointEnrichmentTester {
 	public void setNoise(int c){pseudocounts=c;}
 	public void setExpansion(int e){ext=e;}
 	public void printRandOverlap(){printRandOverlap=true;}
+	public void setPermutations(int min, int max){minItr=min; numItr=max;}
+	public void setAlpha(double a){alpha=a;}
+	public void setThreads(int t){numThreads=t;}
+	public void setSeed(long s){seed=s;}
+	public void setTileSize(int t){tileSize=t;}
 	
 	public void execute() throws FileNotFoundException{
 		
@@ -69,20 +82,34 @@ public class PointEnrichmentTester {
 		for (Point point : gff){
 			expandedGff.add(point.expand(ext));
 		}
-		List <Region> mergedGff = Region.mergeRegions(expandedGff);	
-		int totalOverlap = 0; // number of total overlap between two regions
-		for (Region gff : mergedGff){
-			for (Region reg : regions){
-				if (gff.overlaps(reg))
-					totalOverlap ++;
-			}
-		}
+		List <Region> mergedGff = Region.mergeRegions(expandedGff);
+		
+		// Null: the regions are re-drawn through the genome (matched by width, and by GC & mappability 
+		// when the genome sequence is given), and the merged points overlapping them are counted again.
+		// Summing track counts over the regions gives the number of overlapping (point, region) pairs.
+		CountTrack track = CountTrack.fromRegions(gconfig.getGenome(), mergedGff);
+		@SuppressWarnings("unchecked")
+		SequenceGenerator<Region> seqgen = gconfig.sequenceAvailable() && gconfig.getSequenceGenerator().usingLocalFiles() ?
+				gconfig.getSequenceGenerator() : null;
+		NullRegionSampler sampler = new NullRegionSampler(gconfig.getGenome(), seqgen, tileSize, null);
+		PermutationTester permuter = new PermutationTester(track, sampler);
+		permuter.setThreads(numThreads);
+		permuter.setMinPermutations(Math.min(minItr, numItr));
+		permuter.setMaxPermutations(numItr);
+		permuter.setAlpha(alpha);
+		permuter.setSeed(seed);
+		PermutationTester.Result result = permuter.test(regions);
+		int totalOverlap = (int)result.getObserved(); // number of total overlap between two regions
+		double[] nullOverlaps = result.getNullStats();
 		
 		File outFile = new File(outbase+File.separator+"point_enrichment.txt");
 		outFile.getParentFile().mkdirs();
 		PrintWriter writer = new PrintWriter(outFile);		
 		writer.println("total number of non-overlapping gff points : "+mergedGff.size());
 		writer.println("number of overlap between gff points and regions with size "+totalRegionSize+" : "+totalOverlap);	
+		writer.println("number of overlap with random regions for iteration one : "+(int)nullOverlaps[0]);
+		writer.println("mean number of overlap with "+(seqgen==null ? "" : "GC and mappability matched ")+"random regions : "
+				+String.format("%.2f (sd %.2f)", result.getNullMean(), result.getNullSD()));
 		
 		PrintWriter w = null;
 		if (printRandOverlap){
@@ -91,25 +118,11 @@ public class PointEnrichmentTester {
 		}
 		
 		double maxPval = 0;
-		// Determined p-val based on Poisson distributions for numItr times and return the max p-val
-		for (int i=0 ; i < numItr ; i++){
+		// Determined p-val based on Poisson distributions for each permutation and return the max p-val
+		for (int i=0 ; i < nullOverlaps.length ; i++){
 			double pValuePoisson =1;
-			// produce random hits through genome
-			List<Region> randomRegions = randomRegionPick(gconfig.getGenome(), null, mergedGff.size(),1);
-			int numRandOverlaps=0;
-			for (Region randRegion : randomRegions){
-				for (Region reg : regions){
-					if (randRegion.overlaps(reg)){
-						numRandOverlaps++;
-						break;
-					}
-				}
-			}
-			if (i ==1){writer.println("number of overlap with random regions for iteration one : "+numRandOverlaps);}
-			if (w != null){ 
-				w.print(numRandOverlaps+"\t");
-				w.close();
-				}
+			int numRandOverlaps = (int)nullOverlaps[i];
+			if (w != null){ w.print(numRandOverlaps+"\t");}
 			if (numRandOverlaps >totalOverlap){
 				pValuePoisson=1;
 			}else{
@@ -119,7 +132,10 @@ public class PointEnrichmentTester {
 			}
 			if (pValuePoisson >maxPval) {maxPval = pValuePoisson;}		
 		}
+		if (w != null){ w.close();}
 		writer.println("Poisson p-val : "+maxPval);
+		writer.println("empirical p-val : "+result.getPValue()+" ("+result.getNumPermutations()+" permutations"
+				+(result.stoppedEarly() ? ", stopped early" : "")+")");
 		writer.close();
 	}
 	
@@ -189,6 +205,13 @@ public class PointEnrichmentTester {
                     "--pseudo <pseudocounts to suppress telomere enrichment (default=0) > \n " +
                     "--ext <window size to merge gff points to prevent event double counts (default=20) > \n " +
                     "--print <flag to print number of random overlaps with region> \n " +
+                    "--seq <genome sequence; random regions are then matched to the regions' GC content and mappability> \n " +
+                    "--maxperm <maximum number of permutations (default=1000) > \n " +
+                    "--minperm <permutations to run before stopping early (default=100) > \n " +
+                    "--alpha <stop once the empirical p-val is clearly above or below this (default=0.05) > \n " +
+                    "--threads <number of threads (default=1) > \n " +
+                    "--seed <random seed; results don't depend on the number of threads (default=1) > \n " +
+                    "--tile <genome tile size for drawing matched random regions (default=1000) > \n " +
                     "");
 			System.exit(0);
 		}
@@ -215,6 +238,16 @@ public class PointEnrichmentTester {
 		tester.setNoise(pseudo);
 		tester.setExpansion(expand);
 		if (ap.hasKey("print")){tester.printRandOverlap();}		
+		int maxPerm = Args.parseInteger(args,"maxperm", 1000);
+		if (maxPerm < 1){
+			System.err.println("--maxperm must be at least 1.");
+			System.exit(0);
+		}
+		tester.setPermutations(Args.parseInteger(args,"minperm", 100), maxPerm);
+		tester.setAlpha(Args.parseDouble(args,"alpha", 0.05));
+		tester.setThreads(Args.parseInteger(args,"threads", 1));
+		tester.setSeed(Args.parseLong(args,"seed", 1));
+		tester.setTileSize(Args.parseInteger(args,"tile", 1000));
 		tester.execute();
 	}	
 }
@@ -20,8 +20,11 @@ import org.seqcode.deepseq.experiments.ControlledExperiment;
 import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
+import org.seqcode.deepseq.experiments.Sample;
 import org.seqcode.genome.GenomeConfig;
 import org.seqcode.genome.location.Point;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.sequence.SequenceGenerator;
 import org.seqcode.gseutils.Args;
 import org.seqcode.math.diff.CountsDataset;
 import org.seqcode.math.diff.DifferentialEnrichment;
@@ -64,6 +67,10 @@ public class SignificanceTester {
 	protected String outDirName, outFileBase;
 	protected File outDir;
 	protected boolean rankByQ;
+	protected int numPermutations = 0; //set-level permutation test of signal tags around the sites (0 = off)
+	protected int numThreads = 1;
+	protected long seed = 1;
+	protected SequenceGenerator<Region> seqgen = null; //for GC & mappability matched permutations
 	
 	//Constructor
 	public SignificanceTester(ExptConfig econ, EventsConfig config, ExperimentManager manager, BindingManager bman, String gffFileName, int win, double q, double minfold, boolean rankByQ, String outDirName) {
@@ -103,6 +110,17 @@ public class SignificanceTester {
 	}
 	
 	
+	/**
+	 * Also test whether the signal tags around the sites as a set are enriched over randomly placed
+	 * windows (matched for GC content and mappability if seqgen is not null)
+	 */
+	public void setPermutationTest(int permutations, int threads, long seed, SequenceGenerator<Region> seqgen){
+		numPermutations = permutations;
+		numThreads = threads;
+		this.seed = seed;
+		this.seqgen = seqgen;
+	}
+	
 	/**
 	 * Execute the enrichment tester
 	 */
@@ -121,6 +139,8 @@ public class SignificanceTester {
 		
 		bindingManager.writeReplicateCounts(outDirName+File.separator+outFileBase+"_replicatecounts.txt");
 		writeBindingEventGFFFiles(outDirName+File.separator+outFileBase, events);
+		if(numPermutations>0)
+			writePermutationTests(outDirName+File.separator+outFileBase+"_permutation.txt");
 		
 		//Statistical analysis: inter-condition differences
 		if(manager.getNumConditions()>1 && config.getRunDiffTests()){
@@ -146,6 +166,38 @@ public class SignificanceTester {
 		System.out.println("Output files written to: "+outDirName);
 	}
 	
+	/**
+	 * Per-condition permutation test of the total signal tags in windows around the sites
+	 */
+	public void writePermutationTests(String filename){
+		List<Region> windows = new ArrayList<Region>();
+		for(Point p : potentialSites)
+			windows.add(p.expand(searchRegionWin/2));
+		NullRegionSampler sampler = new NullRegionSampler(config.getGenome(), seqgen, Math.max(searchRegionWin, 1000), null);
+		try {
+			FileWriter fout = new FileWriter(filename);
+			fout.write("#Condition\tObservedTags\tNullMeanTags\tNullSDTags\tPermutations\tEmpiricalP\n");
+			for(ExperimentCondition cond : manager.getConditions()){
+				List<Sample> signals = new ArrayList<Sample>();
+				for(ControlledExperiment rep : cond.getReplicates())
+					if(!signals.contains(rep.getSignal()))
+						signals.add(rep.getSignal());
+				PermutationTester permuter = new PermutationTester(CountTrack.fromSamples(config.getGenome(), signals), sampler);
+				permuter.setThreads(numThreads);
+				permuter.setMaxPermutations(numPermutations);
+				permuter.setMinPermutations(Math.min(100, numPermutations));
+				permuter.setAlpha(qThres);
+				permuter.setSeed(seed);
+				PermutationTester.Result result = permuter.test(windows);
+				fout.write(String.format("%s\t%.1f\t%.1f\t%.1f\t%d\t%.3e\n", cond.getName(), result.getObserved(),
+						result.getNullMean(), result.getNullSD(), result.getNumPermutations(), result.getPValue()));
+			}
+			fout.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/**
      * Print all binding events to files
      */
@@ -245,6 +297,12 @@ public class SignificanceTester {
 			double minFold = Args.parseDouble(args, "minfold", 2);
 			boolean rankbyq = Args.parseFlags(args).contains("rankbyq");
 			SignificanceTester tester = new SignificanceTester(econ, config, manager, bman, siteFile, win, qThres, minFold, rankbyq, outDirName); 
+			int permutations = Args.parseInteger(args, "permutations", 0);
+			if(permutations>0){
+				@SuppressWarnings("unchecked")
+				SequenceGenerator<Region> seqgen = gcon.getSequenceGenerator().usingLocalFiles() ? gcon.getSequenceGenerator() : null;
+				tester.setPermutationTest(permutations, Args.parseInteger(args, "threads", 1), Args.parseLong(args, "seed", 1), seqgen);
+			}
 			
 			tester.execute();
 			
@@ -269,12 +327,17 @@ public class SignificanceTester {
 				"\t--q <Q-value minimum (corrected p-value)>  default=0.01\n" +
 				"\t--minfold <min event fold-change>  default=2\n" +
 				"\t--rankbyq [flag to rank by Q-value] default=rank by signal tags\n" +
+				"\t--permutations <max permutations for a set-level test of signal tags around the sites>  default=0 (off)\n" +
+				"\t--threads <threads for the permutation test>  default=1\n" +
+				"\t--seed <random seed for the permutation test>  default=1\n" +
+				"\t--seq <genome sequence; permuted windows are then matched for GC content and mappability>\n" +
 				"\n" +
 				"\t--design <experiment design file>  optional: can use design file instead of --expt, --ctrl and --format\n");
 		System.err.println("\tOutput:\n" +
 				"\t- GFF file containing all significant peak-pairs (i.e. passing Q-value and fold thresholds) with annotation.\n" +
 				"\t- GFF file containing all input peak-pairs with annotation.\n" +
-				"\t- Text file containing per-replicate signal tag counts for all peak-pairs.\n");
+				"\t- Text file containing per-replicate signal tag counts for all peak-pairs.\n" +
+				"\t- Text file containing per-condition permutation p-values (if --permutations is given).\n");
 		System.err.println("\tExample Usage:\n" +
 				"\tjava -Xmx2G org.seqcode.projects.galaxyexo.SignificanceTester --gen mm10 --format IDX --exptFoxa2-r1 FoxA2_07-633_liver_-_-_-_XO111_kaz1-S001_Pugh40203mm10.tab --exptFoxa2-r2 FoxA2_07-633_liver_-_-_-_XO211_kaz1-S001_Pugh40205mm10.tab --ctrlFoxa2 IgG_12-370_liver_-_-_-_XO_kaz1-S001_Pugh4020mm10.idx --gff genetrack_s5e10F1/cwpair_output_mode_f0u5d25b1/S_FoxA2_07-633_liver_-_-_-_XO_kaz1-S001_Pugh4020mm10_s5e10F1.gff --win 50 --q 0.01 --minfold 2\n" +
 				"");
@@ -0,0 +1,206 @@
+package org.seqcode.projects.galaxyexo.unittests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import org.junit.*;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.sequence.SequenceGenerator;
+import org.seqcode.projects.galaxyexo.CountTrack;
+import org.seqcode.projects.galaxyexo.NullRegionSampler;
+import org.seqcode.projects.galaxyexo.PermutationTester;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests CountTrack counts against brute force, and PermutationTester's thread invariance and early stopping
+ */
+public class TestPermutationTester {
+
+	private Genome genome;
+	private SequenceGenerator<Region> seqgen;
+	private List<Region> features;
+	private CountTrack track;
+
+	@Before public void setUp() {
+		Map<String,Integer> lengths = new HashMap<String,Integer>();
+		lengths.put("1", 400000);
+		lengths.put("2", 250000);
+		lengths.put("3", 100000);
+		genome = new Genome("test", lengths);
+		//Synthetic sequence: GC content varies in 5kb blocks, soft-masking in 3kb blocks, some 20kb blocks of N
+		seqgen = new SequenceGenerator<Region>(){
+			public String execute(Region r){
+				StringBuilder sb = new StringBuilder();
+				int chromOffset = r.getChrom().hashCode()*7919;
+				for(int x=r.getStart(); x<=r.getEnd(); x++){
+					int y = x+chromOffset;
+					if(Math.floorMod(y/20000, 7)==6){
+						sb.append('N');
+						continue;
+					}
+					double gc = Math.floorMod(y/5000, 10)/10.0+0.05;
+					long h = ((long)y*2654435761L) & 0xffffffffL;
+					char b = (h%1000)/1000.0 < gc ? ((h&1)==0 ? 'G' : 'C') : ((h&1)==0 ? 'A' : 'T');
+					sb.append(Math.floorMod(y/3000, 4)==0 ? Character.toLowerCase(b) : b);
+				}
+				return sb.toString();
+			}
+		};
+		//Features clustered in the first 50kb of chromosome 1, sparse elsewhere
+		Random rand = new Random(3);
+		features = new ArrayList<Region>();
+		for(int i=0; i<3000; i++){
+			int s = 1+rand.nextInt(49000);
+			features.add(new Region(genome, "1", s, s+rand.nextInt(300)));
+		}
+		for(String chrom : genome.getChromList()){
+			for(int i=0; i<300; i++){
+				int s = 1+rand.nextInt(genome.getChromLength(chrom)-1000);
+				features.add(new Region(genome, chrom, s, s+rand.nextInt(300)));
+			}
+		}
+		track = CountTrack.fromRegions(genome, features);
+	}
+
+	private PermutationTester tester(NullRegionSampler sampler, int threads){
+		PermutationTester pt = new PermutationTester(track, sampler);
+		pt.setThreads(threads);
+		pt.setSeed(11);
+		pt.setMinPermutations(100);
+		pt.setMaxPermutations(2000);
+		pt.setBatchSize(100);
+		pt.setAlpha(0.05);
+		return pt;
+	}
+
+	private List<Region> randomRegions(Random rand, int n, int width){
+		List<Region> regions = new ArrayList<Region>();
+		for(int i=0; i<n; i++){
+			String chrom = genome.getChromList().get(rand.nextInt(genome.getChromList().size()));
+			int s = 1+rand.nextInt(genome.getChromLength(chrom)-width);
+			regions.add(new Region(genome, chrom, s, s+width-1));
+		}
+		return regions;
+	}
+
+	@Test public void testCountBruteForce() {
+		Random rand = new Random(7);
+		assertEquals(features.size(), track.getTotal(), 1e-9);
+		for(Region q : randomRegions(rand, 500, 1+rand.nextInt(2000))){
+			int brute=0;
+			for(Region f : features)
+				if(f.getChrom().equals(q.getChrom()) && f.getStart()<=q.getEnd() && f.getEnd()>=q.getStart())
+					brute++;
+			assertEquals(q.getLocationString(), brute, track.count(q), 1e-9);
+		}
+		assertEquals(0, track.count(-1, 1, 100), 0);
+	}
+
+	@Test public void testThreadInvariance() {
+		List<Region> regions = randomRegions(new Random(5), 40, 500);
+		regions.add(new Region(genome, "1", 20000, 20499));
+		for(NullRegionSampler sampler : new NullRegionSampler[]{new NullRegionSampler(genome, null, 1000, null), new NullRegionSampler(genome, seqgen, 1000, null)}){
+			PermutationTester.Result r1 = tester(sampler, 1).test(regions);
+			PermutationTester.Result r4 = tester(sampler, 4).test(regions);
+			PermutationTester.Result r7 = tester(sampler, 7).test(regions);
+			assertArrayEquals(r1.getNullStats(), r4.getNullStats(), 0);
+			assertArrayEquals(r1.getNullStats(), r7.getNullStats(), 0);
+			assertEquals(r1.getPValue(), r4.getPValue(), 0);
+			assertEquals(r1.getPValue(), r7.getPValue(), 0);
+			assertEquals(r1.getObserved(), r4.getObserved(), 0);
+		}
+	}
+
+	/* Replays the stopping rule over the null statistics: it must hold at the end, and at no earlier batch */
+	private static void checkStopping(PermutationTester.Result r, int min, int max, int batch, double alpha){
+		int exceed=0;
+		double[] stats = r.getNullStats();
+		for(int n=1; n<=stats.length; n++){
+			if(stats[n-1]>=r.getObserved())
+				exceed++;
+			if(n%batch==0 || n==stats.length){
+				double pv = (exceed+1.0)/(n+1.0);
+				double se = Math.sqrt(pv*(1-pv)/n);
+				boolean stop = n>=min && n<max && (pv-2.576*se>alpha || pv+2.576*se<alpha);
+				if(n<stats.length)
+					assertFalse("should have stopped after "+n, stop);
+				else
+					assertEquals(r.stoppedEarly(), stop);
+			}
+		}
+		assertEquals(exceed, r.getNumExceeding());
+		assertEquals((exceed+1.0)/(stats.length+1.0), r.getPValue(), 1e-12);
+	}
+
+	@Test public void testEarlyStopping() {
+		NullRegionSampler sampler = new NullRegionSampler(genome, null, 1000, null);
+		//Regions on the feature cluster: clearly enriched, so the test stops after the first batch
+		List<Region> enriched = new ArrayList<Region>();
+		for(int s=1000; s<45000; s+=2000)
+			enriched.add(new Region(genome, "1", s, s+499));
+		PermutationTester.Result r = tester(sampler, 3).test(enriched);
+		assertTrue(r.stoppedEarly());
+		assertEquals(100, r.getNumPermutations());
+		assertEquals(0, r.getNumExceeding());
+		checkStopping(r, 100, 2000, 100, 0.05);
+
+		//Regions drawn from the null itself: clearly not significant, so it stops early too
+		List<Region> nullRegions = new ArrayList<Region>();
+		SplittableRandom rand = new SplittableRandom(9);
+		for(int i=0; i<30; i++)
+			nullRegions.add(sampler.sample(rand, 0, 500));
+		r = tester(sampler, 3).test(nullRegions);
+		assertTrue(r.stoppedEarly());
+		assertTrue(r.getPValue()>0.05);
+		checkStopping(r, 100, 2000, 100, 0.05);
+
+		//No early stopping when the minimum is the maximum
+		PermutationTester pt = tester(sampler, 2);
+		pt.setMinPermutations(2000);
+		r = pt.test(enriched);
+		assertFalse(r.stoppedEarly());
+		assertEquals(2000, r.getNumPermutations());
+		checkStopping(r, 2000, 2000, 100, 0.05);
+	}
+
+	@Test public void testSamplerStrata() {
+		List<Region> blacklist = new ArrayList<Region>();
+		blacklist.add(new Region(genome, "2", 10000, 80000));
+		blacklist.add(new Region(genome, "3", 1, 40000));
+		int tile=1000;
+		NullRegionSampler sampler = new NullRegionSampler(genome, seqgen, tile, blacklist);
+		assertEquals(NullRegionSampler.GC_BINS*NullRegionSampler.MAP_BINS, sampler.getNumStrata());
+		SplittableRandom rand = new SplittableRandom(4);
+		int nonEmpty=0;
+		for(int s=0; s<sampler.getNumStrata(); s++){
+			if(sampler.getNumTiles(s)==0)
+				continue;
+			nonEmpty++;
+			for(int i=0; i<50; i++){
+				Region r = sampler.sample(rand, s, 200);
+				assertEquals(200, r.getWidth());
+				assertTrue(r.getEnd()<=genome.getChromLength(r.getChrom()));
+				int tileStart = ((r.getStart()-1)/tile)*tile+1;
+				Region t = new Region(genome, r.getChrom(), tileStart, tileStart+tile-1);
+				assertEquals(s, sampler.stratumOf(t));
+				for(Region b : blacklist)
+					assertFalse(t.overlaps(b));
+			}
+		}
+		assertTrue(nonEmpty>5);
+		//Mostly-N regions are matched to some non-empty stratum
+		int n = sampler.nearestStratum(-1);
+		assertTrue(sampler.getNumTiles(n)>0);
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("org.seqcode.projects.galaxyexo.unittests.TestPermutationTester");
+	}
+
+}
@@ -410,7 +410,7 @@ Listener<EventObject>, PainterContainer, MouseListener {
 						}
 					} else {
 						System.err.println("Using old ChipSeq painters");
-						histomod = new SeqDataModel(new org.seqcode.data.readdb.Client(),
+						histomod = new SeqDataModel(org.seqcode.data.readdb.ClientPool.getShared(),
 								alignments);
 						p = new SeqAboveBelowStrandPainter((SeqDataModel)histomod);
 					}
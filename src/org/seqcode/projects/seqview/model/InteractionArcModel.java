@@ -10,7 +10,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import org.seqcode.data.readdb.Client;
+import org.seqcode.data.readdb.ClientPool;
 import org.seqcode.data.readdb.ClientException;
 import org.seqcode.data.readdb.PairedHit;
 import org.seqcode.data.readdb.PairedHitLeftComparator;
@@ -20,7 +20,7 @@ import org.seqcode.genome.location.Region;
 
 public class InteractionArcModel extends SeqViewModel implements RegionModel, Runnable {
 
-	private Client client;
+	private ClientPool client;
 	private Set<SeqAlignment> alignments;
 	private Set<String> ids;
 	private Region region;
@@ -30,7 +30,7 @@ public class InteractionArcModel extends SeqViewModel implements RegionModel, Ru
 	private InteractionArcModelProperties props;
 
 	public InteractionArcModel(Collection<SeqAlignment> alignments) throws IOException, ClientException {
-		client = new Client();
+		client = ClientPool.getShared();
 		comparator = new PairedHitLeftComparator();
 		this.alignments = new HashSet<SeqAlignment>();
 		this.alignments.addAll(alignments);
@@ -110,7 +110,6 @@ public class InteractionArcModel extends SeqViewModel implements RegionModel, Ru
 				notifyListeners();
 			}
 		}
-		client.close();
 	}
 
 	public void setRegion(Region r) {
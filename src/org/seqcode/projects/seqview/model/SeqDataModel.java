@@ -31,7 +31,7 @@ import org.seqcode.gsebricks.verbs.WeightedRunningOverlapSum;
  */
 public class SeqDataModel extends SeqViewModel implements RegionModel, Runnable {
     
-    private Client client;
+    private ClientPool client;
     private Collection<String> alignids;
     private Collection<SeqAlignment> alignments;
     private SeqAlignment align;
@@ -46,7 +46,7 @@ public class SeqDataModel extends SeqViewModel implements RegionModel, Runnable
     private ArrayList<SeqHit> results;
     private SeqDataProperties props;
 
-    public SeqDataModel(Client c, Collection<SeqAlignment> alignments) throws IOException {
+    public SeqDataModel(ClientPool c, Collection<SeqAlignment> alignments) throws IOException {
         client = c;
         extension = 0;
         totalSum = null;
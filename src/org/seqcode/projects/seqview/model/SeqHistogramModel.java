@@ -14,7 +14,7 @@ import org.seqcode.genome.location.Region;
  */
 public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runnable {
     
-    private Client client;
+    private ClientPool client;
     private TreeMap<Integer,Float> resultsPlus, resultsMinus, resultsPval;
     private Set<SeqAlignment> alignments;
     private Set<String> ids;
@@ -29,7 +29,7 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
         props = new SeqHistogramModelProperties();
         region = null;
         newinput = false;
-        client = new Client();
+        client = ClientPool.getShared();
         ids = new HashSet<String>();
         ids.add(Integer.toString(a.getDBID()));
         if(!client.exists(Integer.toString(a.getDBID()))){
@@ -43,7 +43,7 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
         props = new SeqHistogramModelProperties();
         region = null;
         newinput = false;
-        client = new Client();
+        client = ClientPool.getShared();
         ids = new HashSet<String>();
         for (SeqAlignment align : alignments) {
             ids.add(Integer.toString(align.getDBID()));
@@ -82,6 +82,28 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
     }
     
     
+    /* adds the reads (or read weights, with UseWeights) of all the alignments on one strand into output.
+       The server merges the alignments; older servers are asked through the per-alignment TreeMap methods.
+    */
+    private void addHistogram(DenseWeightHistogram output, int chromid, boolean type2, boolean paired, int extension, int width, boolean plusStrand) throws IOException, ClientException {
+    	int start = output.getStart(), end = region.getEnd(), dedup = (int)props.DeDuplicate;
+    	if (props.UseWeights) {
+    		DenseWeightHistogram h = client.getMergedWeightHistogram(ids, chromid, type2, paired, extension, width, dedup, start, end, null, plusStrand);
+    		if (h == null) {
+    			h = DenseWeightHistogram.fromTreeMap(start, end, width,
+    			                                     client.getWeightHistogram(ids, chromid, type2, paired, extension, width, dedup, start, end, null, plusStrand));
+    		}
+    		output.add(h);
+    	} else {
+    		DenseHistogram h = client.getMergedHistogram(ids, chromid, type2, paired, extension, width, dedup, start, end, null, plusStrand);
+    		if (h == null) {
+    			h = DenseHistogram.fromTreeMap(start, end, width,
+    			                               client.getHistogram(ids, chromid, type2, paired, extension, width, dedup, start, end, null, plusStrand));
+    		}
+    		output.add(h);
+    	}
+    }
+    
     public boolean isReady() {return !newinput;}
     public Map<Integer,Float> getPlus() {return resultsPlus;}
     public Map<Integer,Float> getMinus() {return resultsMinus;}
@@ -106,194 +128,33 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
                     resultsPlus = null;
                     resultsMinus = null;
                     resultsPval = null;
-                    if (props.UseWeights) {
-                        if (!props.ShowPairedReads || props.ShowSingleReads) {
-                        	try{
-                        		if(props.ShowType1Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsFF(resultsPlus,
-	                                                                       client.getWeightHistogram(ids,
-	                                                                                                 region.getGenome().getChromID(region.getChrom()),
-	                                                                                                 false, //type1
-	                                                                                                 false,
-	                                                                                                 extension,
-	                                                                                                 width,
-	                                                                                                 (int)props.DeDuplicate,
-	                                                                                                 region.getStart(),
-	                                                                                                 region.getEnd(),
-	                                                                                                 null,
-	                                                                                                 true));
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsFF(resultsMinus,
-	                                                                        client.getWeightHistogram(ids,
-	                                                                                                  region.getGenome().getChromID(region.getChrom()),
-	                                                                                                  false, //type1
-	                                                                                                  false,
-	                                                                                                  extension,
-	                                                                                                  width,
-	                                                                                                  (int)props.DeDuplicate,
-	                                                                                                  region.getStart(),
-	                                                                                                  region.getEnd(),
-	                                                                                                  null,
-	                                                                                                  false));
-                        		}
-                        		if(props.ShowType2Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsFF(resultsPlus,
-	                                                                       client.getWeightHistogram(ids,
-	                                                                                                 region.getGenome().getChromID(region.getChrom()),
-	                                                                                                 true, //type2
-	                                                                                                 false,
-	                                                                                                 extension,
-	                                                                                                 width,
-	                                                                                                 (int)props.DeDuplicate,
-	                                                                                                 region.getStart(),
-	                                                                                                 region.getEnd(),
-	                                                                                                 null,
-	                                                                                                 true));
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsFF(resultsMinus,
-	                                                                        client.getWeightHistogram(ids,
-	                                                                                                  region.getGenome().getChromID(region.getChrom()),
-	                                                                                                  true, //type2
-	                                                                                                  false,
-	                                                                                                  extension,
-	                                                                                                  width,
-	                                                                                                  (int)props.DeDuplicate,
-	                                                                                                  region.getStart(),
-	                                                                                                  region.getEnd(),
-	                                                                                                  null,
-	                                                                                                  false));
-                        		}
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no single read alignments
-                            }
-                        }
-                        if (props.ShowPairedReads) {
-                        	try{
-	                            resultsPlus = Aggregator.mergeHistogramsFF(resultsPlus,
-	                                                                    client.getWeightHistogram(ids,
-	                                                                                              region.getGenome().getChromID(region.getChrom()),
-	                                                                                              false,
-	                                                                                              true,
-	                                                                                              extension,
-	                                                                                              width,
-	                                                                                              (int)props.DeDuplicate,
-	                                                                                              region.getStart(),
-	                                                                                              region.getEnd(),
-	                                                                                              null,
-	                                                                                              true));
-	                            
-	                            resultsMinus = Aggregator.mergeHistogramsFF(resultsMinus,
-	                                                                     client.getWeightHistogram(ids,
-	                                                                                               region.getGenome().getChromID(region.getChrom()),
-	                                                                                               false,
-	                                                                                               true,
-	                                                                                               extension,
-	                                                                                               width,
-	                                                                                               (int)props.DeDuplicate,
-	                                                                                               region.getStart(),
-	                                                                                               region.getEnd(),
-	                                                                                               null,
-	                                                                                               false));
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no paired read alignments
-                            }
+                    int chromid = region.getGenome().getChromID(region.getChrom());
+                    DenseWeightHistogram plus = new DenseWeightHistogram(region.getStart(), region.getEnd(), width);
+                    DenseWeightHistogram minus = new DenseWeightHistogram(region.getStart(), region.getEnd(), width);
+                    if (!props.ShowPairedReads || props.ShowSingleReads) {
+                    	try{
+                    		if(props.ShowType1Reads){
+                    			addHistogram(plus, chromid, false, false, extension, width, true);
+                    			addHistogram(minus, chromid, false, false, extension, width, false);
+                    		}
+                    		if(props.ShowType2Reads){
+                    			addHistogram(plus, chromid, true, false, extension, width, true);
+                    			addHistogram(minus, chromid, true, false, extension, width, false);
+                    		}
+                    	}catch (Exception ex) {
+                            //Fail silently if there are no single read alignments
                         }
-
-                    } else {
-                        if (!props.ShowPairedReads || props.ShowSingleReads) {
-                        	try{
-                        		if(props.ShowType1Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                           region.getGenome().getChromID(region.getChrom()),
-	                                                                                           false, //type1
-	                                                                                           false,
-	                                                                                           extension,
-	                                                                                           width,
-	                                                                                           (int)props.DeDuplicate,
-	                                                                                           region.getStart(),
-	                                                                                           region.getEnd(),
-	                                                                                           null,
-	                                                                                           true),
-	                                                                    resultsPlus);
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                            region.getGenome().getChromID(region.getChrom()),
-	                                                                                            false, //type1
-	                                                                                            false,
-	                                                                                            extension,
-	                                                                                            width,
-	                                                                                            (int)props.DeDuplicate,
-	                                                                                            region.getStart(),
-	                                                                                            region.getEnd(),
-	                                                                                            null,
-	                                                                                            false),
-	                                                                     resultsMinus);
-                        		}
-                        		if(props.ShowType2Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                           region.getGenome().getChromID(region.getChrom()),
-	                                                                                           true, //type2
-	                                                                                           false,
-	                                                                                           extension,
-	                                                                                           width,
-	                                                                                           (int)props.DeDuplicate,
-	                                                                                           region.getStart(),
-	                                                                                           region.getEnd(),
-	                                                                                           null,
-	                                                                                           true),
-	                                                                    resultsPlus);
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                            region.getGenome().getChromID(region.getChrom()),
-	                                                                                            true, //type2
-	                                                                                            false,
-	                                                                                            extension,
-	                                                                                            width,
-	                                                                                            (int)props.DeDuplicate,
-	                                                                                            region.getStart(),
-	                                                                                            region.getEnd(),
-	                                                                                            null,
-	                                                                                            false),
-	                                                                     resultsMinus);
-                        		}
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no single read alignments
-                            }
-                        }
-                        if (props.ShowPairedReads) {
-                        	try{
-	                            resultsPlus = Aggregator.mergeHistogramsIF(
-	                                                                    client.getHistogram(ids,
-	                                                                                        region.getGenome().getChromID(region.getChrom()),
-	                                                                                        false,
-	                                                                                        true,
-	                                                                                        extension,
-	                                                                                        width,
-	                                                                                        (int)props.DeDuplicate,
-	                                                                                        region.getStart(),
-	                                                                                        region.getEnd(),
-	                                                                                        null,
-	                                                                                        true),
-	                                                                       resultsPlus);
-	                            
-	                            resultsMinus = Aggregator.mergeHistogramsIF(
-	                                                                     client.getHistogram(ids,
-	                                                                                         region.getGenome().getChromID(region.getChrom()),
-	                                                                                         false,
-	                                                                                         true,
-	                                                                                         extension,
-	                                                                                         width,
-	                                                                                         (int)props.DeDuplicate,
-	                                                                                         region.getStart(),
-	                                                                                         region.getEnd(),
-	                                                                                         null,
-	                                                                                         false),
-	                                                                       resultsMinus);
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no paired read alignments
-                            }
+                    }
+                    if (props.ShowPairedReads) {
+                    	try{
+                    		addHistogram(plus, chromid, false, true, extension, width, true);
+                    		addHistogram(minus, chromid, false, true, extension, width, false);
+                    	}catch (Exception ex) {
+                            //Fail silently if there are no paired read alignments
                         }
                     }
+                    resultsPlus = plus.toTreeMap();
+                    resultsMinus = minus.toTreeMap();
                 } catch (Exception ex) {
                     //ex.printStackTrace();
                 }
@@ -309,6 +170,5 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
                 notifyListeners();
             }
         }
-        client.close();
     }
  }
@@ -3,7 +3,7 @@ package org.seqcode.projects.seqview.model;
 import java.io.IOException;
 import java.util.*;
 
-import org.seqcode.data.readdb.Client;
+import org.seqcode.data.readdb.ClientPool;
 import org.seqcode.data.readdb.ClientException;
 import org.seqcode.data.readdb.PairedHit;
 import org.seqcode.data.readdb.PairedHitLeftComparator;
@@ -13,7 +13,7 @@ import org.seqcode.genome.location.Region;
 
 public class SeqPairedEndModel extends SeqViewModel implements RegionModel, Runnable {
 
-    private Client client;
+    private ClientPool client;
     private Set<SeqAlignment> alignments;
     private Set<String> ids;
     private Region region;
@@ -23,7 +23,7 @@ public class SeqPairedEndModel extends SeqViewModel implements RegionModel, Runn
     private SeqPairedEndModelProperties props;
     
     public SeqPairedEndModel (Collection<SeqAlignment> alignments) throws IOException, ClientException{
-        client = new Client();
+        client = ClientPool.getShared();
         comparator = new PairedHitLeftComparator();
         this.alignments = new HashSet<SeqAlignment>();
         this.alignments.addAll(alignments);
@@ -144,6 +144,5 @@ public class SeqPairedEndModel extends SeqViewModel implements RegionModel, Runn
                 notifyListeners();
             }
         }
-        client.close();
     }
 }
@@ -1,10 +1,11 @@
 package org.seqcode.tools.location;
 
 import java.io.*;
-import java.util.*;
 
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.location.Region;
+import org.seqcode.genome.location.RegionSet;
+import org.seqcode.genome.location.SortedIntervals;
 import org.seqcode.gseutils.Args;
 
 
@@ -17,13 +18,14 @@ import org.seqcode.gseutils.Args;
  * java RegionListOverlap --species "$MM;mm9" --one fileone.txt --two filetwo.txt --colone 0 --coltwo 3 --window 50 [--stats]
  *
  * --stats says to use --one as a test set and --two as a gold standard set to report the TP and FP rates for one
+ *
+ * Both lists are held as RegionSets and overlaps are found with a sweep join over each chromosome's
+ * SortedIntervals, so large lists are compared in O(n log n) rather than O(n*m).
  */
 
 public class RegionListOverlap {
 
     public static void main(String args[]) throws Exception {
-        Map<String,List<Region>> one = new HashMap<String,List<Region>>();
-        Map<String,List<Region>> two = new HashMap<String,List<Region>>();
         String fone = Args.parseString(args,"one",null);
         String ftwo = Args.parseString(args,"two",null);
         int colone = Args.parseInteger(args,"colone",0);
@@ -32,55 +34,57 @@ public class RegionListOverlap {
         Genome genome = Args.parseGenome(args).cdr();
         boolean stats = Args.parseFlags(args).contains("stats");
 
-        readFile(genome, fone, colone, one);
-        readFile(genome, ftwo, coltwo, two);
+        RegionSet one = readFile(genome, fone, colone);
+        RegionSet two = readFile(genome, ftwo, coltwo);
 
-        int overlap = 0;
-        int onecount = count(one);
-        int twocount = count(two);
+        overlap(one, two, window, stats, System.out);
+    }
 
-        Map<Region, Boolean> foundTwo = new HashMap<Region,Boolean>();
-        for (String chrom : two.keySet()) {
-            for (Region r : two.get(chrom)) {
-                foundTwo.put(r,Boolean.FALSE);
-            }
-        }
+    /**
+     * Prints the regions of one that overlap a region of two within the window (or, with stats, the TP and FP
+     * regions of one, the FN regions of two and a summary line). Identical regions in two are reported as one.
+     */
+    public static void overlap(RegionSet one, RegionSet two, int window, boolean stats, PrintStream out) {
+        int overlap = 0;
+        int onecount = one.size();
+        int twocount = two.size();
 
-        for (String chrom : one.keySet()) {
-            if (!two.containsKey(chrom)) { continue;}
-            List<Region> lone = one.get(chrom);
-            List<Region> ltwo = two.get(chrom);
-            Collections.sort(lone);
-            Collections.sort(ltwo);
-            for (Region orig : lone) {
-                Region r = orig.expand(window,window);
-                boolean found = false;
-                for (Region o : ltwo) {
-                    if (r.overlaps(o)) {
-                        foundTwo.put(o, Boolean.TRUE);
-                        if (stats) {
-                            System.out.println("TP\t" + orig);
-                        } else {
-                            System.out.println(orig.toString());
-                        }
-                        overlap++;
-                        found = true;
-                        break;
+        //Sweep join per chromosome: for each region in one, the first region in two (by start) within the window
+        boolean[] foundTwo = new boolean[two.size()];
+        for (String chrom : one.getChroms()) {
+            if (two.chromIndex(chrom) < 0) { continue;}
+            SortedIntervals ione = one.intervals(chrom);
+            int[] hits = ione.firstOverlap(two.intervals(chrom), window);
+            int[] range = one.chromRange(chrom);
+            for (int i = range[0]; i < range[1]; i++) {
+                Region orig = one.getRegion(i);
+                if (hits[i] >= 0) {
+                    foundTwo[hits[i]] = true;
+                    if (stats) {
+                        out.println("TP\t" + orig);
+                    } else {
+                        out.println(orig.toString());
                     }
+                    overlap++;
+                } else if (stats) {
+                    out.println("FP\t" + orig);
                 }
-                if (stats && !found) {
-                    System.out.println("FP\t" + orig);
-                }
-
             }
         }
         int fn = 0;
-        for (Region r : foundTwo.keySet()) {
-            if (!foundTwo.get(r)) {
-                System.out.println("FN\t" + r);
+        for (int j = 0; j < two.size(); ) {
+            //identical regions are adjacent in sorted order; the run is found if any of them was
+            int k = j;
+            boolean found = false;
+            while (k < two.size() && two.getChrom(k).equals(two.getChrom(j)) && two.getStart(k) == two.getStart(j) && two.getEnd(k) == two.getEnd(j)) {
+                found |= foundTwo[k];
+                k++;
+            }
+            if (!found) {
+                out.println("FN\t" + two.getRegion(j));
                 fn++;
             }
-
+            j = k;
         }
 
         if (stats) {
@@ -88,21 +92,12 @@ public class RegionListOverlap {
             int fp = onecount - overlap;
             double tprate = ((double)tp) / onecount;
             double fnrate = 1 - ((double)overlap) / twocount;
-            System.out.println(String.format("n=%d  tp=%d  fp=%d  fn=%d   tpr=%.2f   fnr=%.2f",
+            out.println(String.format("n=%d  tp=%d  fp=%d  fn=%d   tpr=%.2f   fnr=%.2f",
                                              onecount, tp,fp,fn,tprate,fnrate));
         }
     }
-    public static int count(Map<String,List<Region>> map) {
-        int count = 0;
-        for (String chrom : map.keySet()) {
-            count += map.get(chrom).size();
-        }
-        return count;
-    }
-    public static void readFile(Genome genome, String fname, int column, Map<String,List<Region>> map) throws IOException {
-        if (map == null) {
-            throw new NullPointerException("Can't give me a null map");
-        }
+    public static RegionSet readFile(Genome genome, String fname, int column) throws IOException {
+        RegionSet.Builder regions = new RegionSet.Builder(genome);
         BufferedReader reader = new BufferedReader(new FileReader(fname));
         String line = null;
         while ((line = reader.readLine()) != null) {
@@ -112,12 +107,10 @@ public class RegionListOverlap {
                 System.err.println("Couldn't parse " + pieces[column] + " in " + fname);
                 continue;
             }
-            if (!map.containsKey(r.getChrom())) {
-                map.put(r.getChrom(), new ArrayList<Region>());
-            }
-            map.get(r.getChrom()).add(r);
+            regions.add(r.getChrom(), r.getStart(), r.getEnd());
         }
         reader.close();
+        return regions.build();
     }
 
-}
\ No newline at end of file
+}
@@ -3,7 +3,7 @@ package org.seqcode.tools.sequence;
 import java.util.*;
 import java.io.*;
 
-import org.seqcode.data.io.parsing.FASTAStream;
+import org.seqcode.data.io.parsing.IndexedFASTAFile;
 import org.seqcode.gseutils.*;
 import org.seqcode.motifs.CountKmers;
 
@@ -13,15 +13,16 @@ import cern.jet.random.ChiSquare;
 /**
  * Compare the frequency of kmers in two FASTA files.  
  *
- * java org.seqcode.genome.sequence.CompareKmers --k 6 --one foo.fasta --two bar.fasta
+ * java org.seqcode.genome.sequence.CompareKmers --k 6 --one foo.fasta --two bar.fasta [--threads 4]
  *
  */
 
 
 public class CompareKmers {
     
-    private FASTAStream fastaone, fastatwo;
+    private IndexedFASTAFile fastaone, fastatwo;
     private int k;
+    private int numThreads;
     private CountKmers one, two;
     
     public static void main(String args[]) throws Exception {
@@ -35,8 +36,9 @@ public class CompareKmers {
         String fone = Args.parseString(args,"one",null);
         String ftwo = Args.parseString(args,"two",null);
         k = Args.parseInteger(args,"k",6);
-        fastaone = new FASTAStream(new File(fone));
-        fastatwo = new FASTAStream(new File(ftwo));
+        numThreads = Args.parseInteger(args,"threads",1);
+        fastaone = new IndexedFASTAFile(new File(fone));
+        fastatwo = new IndexedFASTAFile(new File(ftwo));
         one = new CountKmers();
         one.init(k,k);
         two = new CountKmers();
@@ -48,11 +50,12 @@ public class CompareKmers {
         read(fastaone, one);
         read(fastatwo, two);
     }
-    public void read(FASTAStream stream, CountKmers kmers) {
-        while (stream.hasNext()) {
-            Pair<String,String> pair = stream.next();
-            kmers.addToCounts(pair.cdr());
+    public void read(IndexedFASTAFile fasta, CountKmers kmers) {
+        List<CharSequence> seqs = new ArrayList<CharSequence>(fasta.size());
+        for (int i = 0; i < fasta.size(); i++) {
+            seqs.add(fasta.getSequence(i));
         }
+        kmers.addToCounts(seqs, numThreads);
     }
     public void report() {
         Set<String> allKeys = one.getKeySet(k);
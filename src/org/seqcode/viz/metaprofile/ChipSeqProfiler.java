@@ -6,7 +6,6 @@ package org.seqcode.viz.metaprofile;
 
 import java.util.*;
 
-import org.seqcode.data.seqdata.*;
 import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.experiments.ControlledExperiment;
 import org.seqcode.deepseq.experiments.ExperimentManager;
@@ -53,23 +52,25 @@ public class ChipSeqProfiler implements PointProfiler<Point,PointProfile> {
 		int start = Math.max(1, a.getLocation()-left);
 		int end = Math.min(a.getLocation()+right, a.getGenome().getChromLength(a.getChrom()));
 		
-		Region query = new Region(a.getGenome(), a.getChrom(), start, end);
 		int ext = 200;
 		Region extQuery = new Region(a.getGenome(), a.getChrom(), start-ext>0 ? start-ext : 1, end+ext < a.getGenome().getChromLength(a.getChrom()) ? end+ext : a.getGenome().getChromLength(a.getChrom()) );
 		
-		double[] array = new double[params.getNumBins()];
-		for(int i = 0; i < array.length; i++) { array[i] = 0; }
+		//Bin ranges are accumulated in a difference array and summed once at the end
+		double[] diff = new double[params.getNumBins()+1];
 		
 		for(ControlledExperiment expt : manager.getReplicates()){
 			List<StrandedBaseCount> sbcs = expt.getSignal().getBases(extQuery);
 			for(StrandedBaseCount sbc : sbcs){
-				SeqHit hit = new SeqHit(genome, a.getChrom(), sbc);
-				if(extension>0)
-					hit = hit.extendHit(extension);
+				char hitStrand = sbc.getStrand();
+				if(readStrand!='.' && hitStrand!=readStrand)
+					continue;
+				//Same coordinates as SeqHit(genome, chrom, sbc).extendHit(extension)
+				int hitStart = hitStrand=='+' ? sbc.getCoordinate() : sbc.getCoordinate()-1-extension;
+				int hitEnd = hitStrand=='+' ? sbc.getCoordinate()+1+extension : sbc.getCoordinate();
 				
-				if(hit.overlaps(query) && (readStrand=='.' || hit.getStrand()==readStrand)){
-					int startOffset = Math.max(0, hit.getStart()-start);
-					int endOffset = Math.max(0, Math.min(end, hit.getEnd()-start));
+				if((hitStart <= start && hitEnd >= start) || (start <= hitStart && end >= hitStart)){
+					int startOffset = Math.max(0, hitStart-start);
+					int endOffset = Math.max(0, Math.min(end, hitEnd-start));
 				
 					if(!strand) { 
 						int tmpEnd = window-startOffset;
@@ -81,17 +82,20 @@ public class ChipSeqProfiler implements PointProfiler<Point,PointProfile> {
 					int startbin = params.findBin(startOffset);
 					int endbin = params.findBin(endOffset);
 					
-					addToArray(startbin, endbin, array, 1.0);
+					if(startbin<=endbin){
+						diff[startbin] += 1.0;
+						diff[endbin+1] -= 1.0;
+					}
 				}	
 			}
 		}
-		return new PointProfile(a, params, array, (a instanceof StrandedPoint));
-	}
-
-	private void addToArray(int i, int j, double[] array, double value) { 
-		for(int k = i; k <= j; k++) { 
-			array[k] += value;
+		double[] array = new double[params.getNumBins()];
+		double running=0;
+		for(int i = 0; i < array.length; i++) {
+			running += diff[i];
+			array[i] = running;
 		}
+		return new PointProfile(a, params, array, (a instanceof StrandedPoint));
 	}
 
 	public void cleanup() {
@@ -163,6 +163,40 @@ public class MetaProfile implements Profile, ProfileListener{
 		}
 	}
 	
+	/**
+	 * Add all profiles from a partial MetaProfile (e.g. one accumulated by a worker thread).
+	 * As in addProfile, profiles already in this MetaProfile are skipped, and an ADDED event is dispatched 
+	 * for each profile that is added. 
+	 */
+	public synchronized void addProfiles(MetaProfile partial) {
+		if(partial.params.getNumBins() != params.getNumBins()) { 
+			throw new IllegalArgumentException(String.format("Partial profile length %d doesn't" +
+					" match bin-length %d", partial.params.getNumBins(), params.getNumBins()));
+		}
+		if(isNormalized() || partial.isNormalized()) { 
+			throw new IllegalArgumentException("Can't merge normalized MetaProfiles");
+		}
+		if(partial.stranded){
+			stranded=true;
+		}
+		Set<Profile> seen = new HashSet<Profile>(profiles);
+		List<Profile> added = new ArrayList<Profile>();
+		for(Profile p : partial.profiles){
+			if(seen.add(p)){
+				profiles.add(p);
+				added.add(p);
+				for(int i = 0; i< values.length ;i++)
+					values[i] += p.value(i);
+			}
+		}
+		for(int i = 0; i< values.length ;i++) { 
+			max = Math.max(max, values[i]);
+			min = Math.min(min, values[i]);
+		}
+		for(Profile p : added)
+			dispatchChange(new ProfileEvent(this, p));
+	}
+	
 	public String toString() { return name; }
 	
 	public int hashCode() { return name.hashCode(); }
@@ -1,100 +1,168 @@
 package org.seqcode.viz.metaprofile;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import org.seqcode.data.core.*;
 import org.seqcode.genome.location.Point;
 
-
+/**
+ * MetaProfileHandler: adds points to a MetaProfile in the background.
+ *
+ * Points from each addPoints call are de-duplicated and split into chunks, keeping the caller's order.
+ * Chunks are profiled concurrently on a shared pool, each into its own partial MetaProfile, and the partials
+ * are merged into the main profile in chunk order, so the profiles end up in input order. ProfileListeners on the main profile therefore still see an ADDED event for every point profile,
+ * delivered chunk by chunk as the work progresses.
+ *
+ * PointProfilers are called concurrently, so their execute methods must not modify shared state.
+ */
 public class MetaProfileHandler<T extends Point, ProfileClass extends Profile> {
 
+	private static final int MAX_CHUNK_SIZE = 500;
+
 	private MetaProfile profile;
-	private PointProfiler<T, ProfileClass> profiler, threadSafe;
+	private PointProfiler<T, ProfileClass> profiler;
+	private boolean normalizedMeta;
 	private Vector<PointAddingThread> currentlyAdding;
-	
-	public MetaProfileHandler(String name, BinningParameters bps, PointProfiler<T,ProfileClass> pp, boolean normalizedMeta) { 
-		if(normalizedMeta)
-			profile = new NormalizedMetaProfile(name, bps);
-		else
-			profile = new MetaProfile(name, bps);		
+	private ExecutorService pool=null;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	public MetaProfileHandler(String name, BinningParameters bps, PointProfiler<T,ProfileClass> pp, boolean normalizedMeta) {
+		this.normalizedMeta = normalizedMeta;
+		profile = newProfile(name, bps);
 		profiler = pp;
-		threadSafe = new ThreadSafeProfiler();
 		currentlyAdding = new Vector<PointAddingThread>();
 	}
-	
+
 	public MetaProfile getProfile() { return profile; }
-	
+
+	/**
+	 * Set the number of threads used to run the profiler (takes effect before the first addPoints call)
+	 */
+	public void setNumThreads(int t){ numThreads = Math.max(1, t);}
+
 	public boolean addingPoints(){
-		synchronized(currentlyAdding) { 
-			for(PointAddingThread pat : currentlyAdding) { 
+		synchronized(currentlyAdding) {
+			for(PointAddingThread pat : currentlyAdding) {
 				if(pat.running){return true;}
 			}
 		}return(false);
 	}
-	
-	public void addPoints(Collection<T> points) { 
+
+	public void addPoints(Collection<T> points) {
 		addPoints(points.iterator());
 	}
-	
-	public void addPoints(Iterator<T> points) { 
+
+	public void addPoints(Iterator<T> points) {
 		PointAddingThread pat = new PointAddingThread(points);
 		startAddingThread(pat);
 	}
-	
-	private void startAddingThread(PointAddingThread pat) { 
-		synchronized(currentlyAdding) { 
+
+	private MetaProfile newProfile(String name, BinningParameters bps){
+		if(normalizedMeta)
+			return new NormalizedMetaProfile(name, bps);
+		else
+			return new MetaProfile(name, bps);
+	}
+
+	private synchronized ExecutorService getPool(){
+		if(pool==null){
+			pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MetaProfileHandler worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	private void startAddingThread(PointAddingThread pat) {
+		synchronized(currentlyAdding) {
 			currentlyAdding.add(pat);
 			Thread t = new Thread(pat);
-			t.start();		
+			t.start();
 		}
 	}
-	
-	private void addingThreadFinished(PointAddingThread pat) { 
-		synchronized(currentlyAdding) { 
+
+	private void addingThreadFinished(PointAddingThread pat) {
+		synchronized(currentlyAdding) {
 			currentlyAdding.remove(pat);
 		}
 	}
-	
-	public void stopAllAddingThreads() { 
-		synchronized(currentlyAdding) { 
-			for(PointAddingThread pat : currentlyAdding) { 
+
+	public void stopAllAddingThreads() {
+		synchronized(currentlyAdding) {
+			for(PointAddingThread pat : currentlyAdding) {
 				pat.stopAdding();
 			}
 		}
 	}
-	
-	private class ThreadSafeProfiler implements PointProfiler<T,ProfileClass> {
 
-		public BinningParameters getBinningParameters() {
-			return profiler.getBinningParameters();
+	/**
+	 * Profiles one chunk of points into a partial MetaProfile
+	 */
+	private class ChunkProfiler implements Callable<MetaProfile> {
+		private List<T> chunk;
+		private PointAddingThread owner;
+
+		public ChunkProfiler(List<T> chunk, PointAddingThread owner){
+			this.chunk = chunk;
+			this.owner = owner;
 		}
 
-		public ProfileClass execute(T a) {
-			synchronized(this) { 
-				return profiler.execute(a);
+		public MetaProfile call() {
+			MetaProfile partial = newProfile(profile.getName(), profile.getBinningParameters());
+			for(T pt : chunk){
+				if(!owner.running)
+					break;
+				partial.addProfile(profiler.execute(pt));
 			}
-		} 	
-		public void cleanup() {}
+			return partial;
+		}
 	}
-	
-	private class PointAddingThread implements Runnable { 
-		
-		public boolean running;
+
+	private class PointAddingThread implements Runnable {
+
+		public volatile boolean running;
 		private Iterator<T> points;
 
-		public PointAddingThread(Iterator<T> pts) { 
+		public PointAddingThread(Iterator<T> pts) {
 			running = true;
 			points = pts;
 		}
-		
-		public void stopAdding() { 
+
+		public void stopAdding() {
 			running = false;
 		}
-		
-		public void run() { 
-			while(running && points.hasNext()) { 
-				T pt = points.next();
-				profile.addProfile(threadSafe.execute(pt));
+
+		public void run() {
+			try{
+				//Collect unique points in input order
+				LinkedHashSet<T> unique = new LinkedHashSet<T>();
+				while(running && points.hasNext())
+					unique.add(points.next());
+				List<T> ordered = new ArrayList<T>(unique);
+
+				//Fan the chunks out over the pool
+				int chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, ordered.size()/(numThreads*4)));
+				List<Future<MetaProfile>> partials = new ArrayList<Future<MetaProfile>>();
+				ExecutorService exec = getPool();
+				for(int i=0; i<ordered.size(); i+=chunkSize)
+					partials.add(exec.submit(new ChunkProfiler(ordered.subList(i, Math.min(ordered.size(), i+chunkSize)), this)));
+
+				//Merge in chunk order (chunks cut short by stopAdding are still kept)
+				for(Future<MetaProfile> f : partials)
+					profile.addProfiles(f.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
 			}
 			running=false;
 			addingThreadFinished(this);
@@ -18,23 +18,33 @@ import org.seqcode.gsebricks.verbs.motifs.WeightMatrixScorer;
 public class MotifProfiler implements PointProfiler<Point, Profile>{
 
 	private WeightMatrix motif;
-	private WeightMatrixScorer scorer;
-	private SequenceGenerator seqgen;
+	//MetaProfileHandler calls execute from several pool threads, so each thread gets its own scorer & generator
+	private ThreadLocal<WeightMatrixScorer> scorer;
+	private ThreadLocal<SequenceGenerator> seqgen;
 	private Genome gen;
 	private BinningParameters params=null;
 	private double minThreshold=0;
 	
-	public MotifProfiler(BinningParameters bp, Genome g, WeightMatrix wm, double minThres, boolean useCache, String seqPath){
+	public MotifProfiler(BinningParameters bp, Genome g, WeightMatrix wm, double minThres, final boolean useCache, final String seqPath){
 		minThreshold=minThres;
 		gen=g;
 		params=bp; 
 		motif=wm;
-		scorer = new WeightMatrixScorer(motif);
-		seqgen = new SequenceGenerator();
-		seqgen.useCache(useCache);
-		if(useCache){
-			seqgen.setGenomePath(seqPath);
-		}
+		scorer = new ThreadLocal<WeightMatrixScorer>(){
+			protected WeightMatrixScorer initialValue(){
+				return new WeightMatrixScorer(motif);
+			}
+		};
+		seqgen = new ThreadLocal<SequenceGenerator>(){
+			protected SequenceGenerator initialValue(){
+				SequenceGenerator sg = new SequenceGenerator();
+				sg.useCache(useCache);
+				if(useCache){
+					sg.setGenomePath(seqPath);
+				}
+				return sg;
+			}
+		};
 	}
 
 	public BinningParameters getBinningParameters() {
@@ -55,8 +65,8 @@ public class MotifProfiler implements PointProfiler<Point, Profile>{
 		boolean strand = (a instanceof StrandedPoint) ? 
 				((StrandedPoint)a).getStrand() == '+' : true;
 		
-		String seq = seqgen.execute(query);
-		WeightMatrixScoreProfile profiler = scorer.execute(seq);
+		String seq = seqgen.get().execute(query);
+		WeightMatrixScoreProfile profiler = scorer.get().execute(seq);
 		for(int i=query.getStart(); i<query.getEnd(); i+=params.getBinSize()){
 			double maxScore=Double.MIN_VALUE;
 			int maxPos=0;
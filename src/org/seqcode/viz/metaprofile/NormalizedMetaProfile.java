@@ -1,5 +1,8 @@
 package org.seqcode.viz.metaprofile;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class NormalizedMetaProfile extends MetaProfile{
 
 	public NormalizedMetaProfile(String n, BinningParameters bps) {
@@ -36,4 +39,49 @@ public class NormalizedMetaProfile extends MetaProfile{
 		}
 	}
 
+	/**
+	 * Merge a partial NormalizedMetaProfile: the running means are combined, weighted by profile counts.
+	 * As in addProfile, profiles already in this MetaProfile are skipped (and their values taken out of the partial's mean).
+	 */
+	public synchronized void addProfiles(MetaProfile partial) {
+		if(!(partial instanceof NormalizedMetaProfile)) { 
+			throw new IllegalArgumentException("Can only merge a NormalizedMetaProfile into a NormalizedMetaProfile");
+		}
+		if(partial.params.getNumBins() != params.getNumBins()) { 
+			throw new IllegalArgumentException(String.format("Partial profile length %d doesn't" +
+					" match bin-length %d", partial.params.getNumBins(), params.getNumBins()));
+		}
+		if(isNormalized()) { 
+			throw new IllegalArgumentException("Can't add profile to a normalized MetaProfile");
+		}
+		if(partial.stranded){
+			stranded=true;
+		}
+		double count = profiles.size(), partialCount = partial.profiles.size();
+		if(partialCount==0)
+			return;
+		//Totals of the partial's new profiles: its mean times its count, less any duplicates
+		double[] sums = new double[values.length];
+		for(int i = 0; i< values.length ;i++)
+			sums[i] = partial.values[i]*partialCount;
+		Set<Profile> seen = new HashSet<Profile>(profiles);
+		int added=0;
+		for(Profile p : partial.profiles){
+			if(seen.add(p)){
+				profiles.add(p);
+				added++;
+			}else{
+				for(int i = 0; i< values.length ;i++)
+					sums[i] -= p.value(i);
+			}
+		}
+		if(added==0)
+			return;
+		min=max=0.0;
+		for(int i = 0; i< values.length ;i++) { 
+			values[i] = (values[i]*count + sums[i])/(count+added);
+			max = Math.max(max, values[i]);
+			min = Math.min(min, values[i]);
+		}
+	}
 }